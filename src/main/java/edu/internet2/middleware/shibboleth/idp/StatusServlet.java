@@ -19,8 +19,6 @@ package edu.internet2.middleware.shibboleth.idp;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -36,8 +34,6 @@ import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 import org.opensaml.xml.security.x509.X509Credential;
 import org.opensaml.xml.util.Base64;
-import org.opensaml.xml.util.DatatypeHelper;
-import org.opensaml.xml.util.LazyList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,8 +41,13 @@ import edu.internet2.middleware.shibboleth.common.attribute.resolver.AttributeRe
 import edu.internet2.middleware.shibboleth.common.attribute.resolver.AttributeResolver;
 import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartyConfiguration;
 import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartyConfigurationManager;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.CachingCredentialValidator;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.JAASLoginExecutor;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.LoginFailureTracker;
+import edu.internet2.middleware.shibboleth.idp.profile.SigningService;
 import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
-import edu.internet2.middleware.shibboleth.idp.util.IPRange;
+import edu.internet2.middleware.shibboleth.idp.util.IPRangeSet;
+import edu.internet2.middleware.shibboleth.idp.util.LatencyHistogram;
 
 /** A Servlet for displaying the status of the IdP. */
 public class StatusServlet extends HttpServlet {
@@ -58,7 +59,8 @@ public class StatusServlet extends HttpServlet {
     
     private final Logger log = LoggerFactory.getLogger(StatusServlet.class);
 
-    private LazyList<IPRange> allowedIPs;
+    /** Client addresses allowed to access the status page. */
+    private IPRangeSet allowedIPs;
 
     /** Formatter used when print date/times. */
     private DateTimeFormatter dateFormat;
@@ -72,23 +74,24 @@ public class StatusServlet extends HttpServlet {
     /** Relying party configuration manager used by the IdP. */
     private RelyingPartyConfigurationManager rpConfigManager;
 
+    /** Executor running the JAAS logins of the IdP. */
+    private JAASLoginExecutor loginExecutor;
+
+    /** Service signing the assertions and responses of the IdP. */
+    private SigningService signingService;
+
     /** {@inheritDoc} */
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
 
-        allowedIPs = new LazyList<IPRange>();
-
-        String cidrBlocks = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(IP_PARAM_NAME));
-        if (cidrBlocks != null) {
-            for (String cidrBlock : cidrBlocks.split(" ")) {
-                allowedIPs.add(IPRange.parseCIDRBlock(cidrBlock));
-            }
-        }
+        allowedIPs = IPRangeSet.parseCIDRBlocks(config.getInitParameter(IP_PARAM_NAME));
 
         dateFormat = ISODateTimeFormat.dateTimeNoMillis();
         startTime = new DateTime(ISOChronology.getInstanceUTC());
         attributeResolver = HttpServletHelper.getAttributeResolver(config.getServletContext());
         rpConfigManager = HttpServletHelper.getRelyingPartyConfirmationManager(config.getServletContext());
+        loginExecutor = HttpServletHelper.getJAASLoginExecutor(config.getServletContext());
+        signingService = HttpServletHelper.getSigningService(config.getServletContext());
     }
 
     /** {@inheritDoc} */
@@ -105,6 +108,10 @@ public class StatusServlet extends HttpServlet {
         output.println();
         printIdPInformation(output);
         output.println();
+        printAuthenticationInformation(output);
+        output.println();
+        printSigningInformation(output);
+        output.println();
         printRelyingPartyConfigurationsInformation(output, request.getParameter("relyingParty"));
 
         output.flush();
@@ -119,19 +126,7 @@ public class StatusServlet extends HttpServlet {
      */
     protected boolean isAuthenticated(HttpServletRequest request) throws ServletException {
         log.debug("Attempting to authenticate client '{}'", request.getRemoteAddr());
-        try {
-            InetAddress clientAddress = InetAddress.getByName(request.getRemoteAddr());
-
-            for (IPRange range : allowedIPs) {
-                if (range.contains(clientAddress)) {
-                    return true;
-                }
-            }
-
-            return false;
-        } catch (UnknownHostException e) {
-            throw new ServletException(e);
-        }
+        return allowedIPs.contains(request.getRemoteAddr());
     }
 
     /**
@@ -178,6 +173,107 @@ public class StatusServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Prints out information about the JAAS logins run on behalf of the username/password login handler. This includes
+     * the limits of the login executor, the number of logins in progress, refused and timed out, and the distribution
+     * of the time taken by the authentication backend, as well as the use of the credential cache and the tracking of
+     * failed logins if they are enabled.
+     * 
+     * @param out output writer to which information will be written
+     */
+    protected void printAuthenticationInformation(PrintWriter out) {
+        LatencyHistogram latencies = loginExecutor.getLatencies();
+
+        out.println("### Authentication Information");
+        out.println("jaas_login_threads: " + loginExecutor.getThreads());
+        out.println("jaas_login_queue_size: " + loginExecutor.getQueueSize());
+        out.println("jaas_login_timeout: " + loginExecutor.getTimeout() + "ms");
+        out.println("jaas_active_logins: " + loginExecutor.getActiveLogins());
+        out.println("jaas_queued_logins: " + loginExecutor.getQueuedLogins());
+        out.println("jaas_rejected_logins: " + loginExecutor.getRejectedLogins());
+        out.println("jaas_timed_out_logins: " + loginExecutor.getTimedOutLogins());
+        out.println("jaas_logins: " + latencies.getCount());
+        out.println("jaas_login_mean_latency: " + latencies.getMean() + "ms");
+        out.println("jaas_login_p50_latency: " + formatLatencyBound(latencies.getPercentile(50)));
+        out.println("jaas_login_p90_latency: " + formatLatencyBound(latencies.getPercentile(90)));
+        out.println("jaas_login_p99_latency: " + formatLatencyBound(latencies.getPercentile(99)));
+
+        long[] counts = latencies.getCounts();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                out.println("jaas_login_latency_bucket: " + formatLatencyBound(LatencyHistogram.getUpperBound(i)) + " "
+                        + counts[i]);
+            }
+        }
+
+        CachingCredentialValidator credentialCache = HttpServletHelper.getCredentialCache(getServletContext());
+        if (credentialCache != null) {
+            long hits = credentialCache.getHits() + credentialCache.getNegativeHits();
+            long lookups = hits + credentialCache.getMisses();
+            out.println("credential_cache_size: " + credentialCache.getSize());
+            out.println("credential_cache_hits: " + credentialCache.getHits());
+            out.println("credential_cache_negative_hits: " + credentialCache.getNegativeHits());
+            out.println("credential_cache_misses: " + credentialCache.getMisses());
+            out.println("credential_cache_evictions: " + credentialCache.getEvictions());
+            out.println("credential_cache_hit_rate: " + (lookups == 0 ? 0 : hits * 100 / lookups) + "%");
+        }
+
+        LoginFailureTracker failureTracker = HttpServletHelper.getLoginFailureTracker(getServletContext());
+        if (failureTracker != null) {
+            out.println("login_failure_window: " + failureTracker.getWindow() + "ms");
+            out.println("login_failure_tracked_usernames: " + failureTracker.getTrackedUsernames());
+            out.println("login_failure_tracked_addresses: " + failureTracker.getTrackedAddresses());
+            out.println("login_failure_refused_logins: " + failureTracker.getRefusedLogins());
+        }
+    }
+
+    /**
+     * Prints out information about the signing of assertions and responses. This includes the size of the signing
+     * service's worker pool, the number of signatures being computed, waiting for a worker or computed by the caller,
+     * the reuse of prepared signature parameters, and the distribution of the time taken to compute signatures.
+     * 
+     * @param out output writer to which information will be written
+     */
+    protected void printSigningInformation(PrintWriter out) {
+        LatencyHistogram latencies = signingService.getLatencies();
+
+        out.println("### Signing Information");
+        out.println("signing_threads: " + signingService.getThreads());
+        out.println("signing_queue_size: " + signingService.getQueueSize());
+        out.println("signing_active_signatures: " + signingService.getActiveSignatures());
+        out.println("signing_queued_signatures: " + signingService.getQueuedSignatures());
+        out.println("signing_caller_signatures: " + signingService.getCallerSignatures());
+        out.println("signing_prepared_credentials: " + signingService.getPreparedCredentials());
+        out.println("signing_parameter_cache_hits: " + signingService.getParameterCacheHits());
+        out.println("signatures: " + latencies.getCount());
+        out.println("signing_mean_latency: " + latencies.getMean() + "ms");
+        out.println("signing_p50_latency: " + formatLatencyBound(latencies.getPercentile(50)));
+        out.println("signing_p90_latency: " + formatLatencyBound(latencies.getPercentile(90)));
+        out.println("signing_p99_latency: " + formatLatencyBound(latencies.getPercentile(99)));
+
+        long[] counts = latencies.getCounts();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                out.println("signing_latency_bucket: " + formatLatencyBound(LatencyHistogram.getUpperBound(i)) + " "
+                        + counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Formats the upper bound of a latency histogram bucket.
+     * 
+     * @param bound upper bound in milliseconds
+     * 
+     * @return the formatted bound
+     */
+    private String formatLatencyBound(long bound) {
+        if (bound == Long.MAX_VALUE) {
+            return ">" + LatencyHistogram.MAX_BOUND + "ms";
+        }
+        return "<=" + bound + "ms";
+    }
+
     /**
      * Prints information about relying party configurations. If the given relying party is null then the configuration
      * for all relying parties is printed. If the relying party ID is not null then the relying party configurations for
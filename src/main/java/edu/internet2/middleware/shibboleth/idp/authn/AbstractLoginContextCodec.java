@@ -0,0 +1,195 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecInput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecOutput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.ObjectCodec;
+
+/**
+ * Base class for codecs of {@link LoginContext}s. The fields of {@link LoginContext} are written in a section of their
+ * own, versioned independently of the fields added by subclasses, followed by the fields of the subclass.
+ * 
+ * @param <T> type of login context encoded by the codec
+ */
+public abstract class AbstractLoginContextCodec<T extends LoginContext> implements ObjectCodec<T> {
+
+    /** Version of the format of the {@link LoginContext} fields. */
+    private static final int LOGIN_CONTEXT_VERSION = 1;
+
+    /** Flag set if authentication must be forced. */
+    private static final int FORCE_AUTHN = 1;
+
+    /** Flag set if authentication must be passive. */
+    private static final int PASSIVE_AUTHN = 2;
+
+    /** Flag set if authentication has been attempted. */
+    private static final int AUTHN_ATTEMPTED = 4;
+
+    /** Flag set if the principal has been authenticated. */
+    private static final int PRINCIPAL_AUTHENTICATED = 8;
+
+    /** {@inheritDoc} */
+    public void encode(T loginContext, CodecOutput out) throws IOException {
+        out.startSection();
+        out.writeVarInt(LOGIN_CONTEXT_VERSION);
+        encodeLoginContext(loginContext, out);
+        out.endSection();
+
+        encodeFields(loginContext, out);
+    }
+
+    /** {@inheritDoc} */
+    public T decode(CodecInput in, int version) throws IOException {
+        T loginContext = newLoginContext();
+
+        in.enterSection();
+        decodeLoginContext(loginContext, in, in.readVarInt());
+        in.exitSection();
+
+        decodeFields(loginContext, in, version);
+        return loginContext;
+    }
+
+    /**
+     * Creates an empty login context to decode into.
+     * 
+     * @return an empty login context
+     */
+    protected abstract T newLoginContext();
+
+    /**
+     * Encodes the fields added by the login context subclass.
+     * 
+     * @param loginContext the login context
+     * @param out output to encode the fields to
+     * 
+     * @throws IOException thrown if the fields can not be encoded
+     */
+    protected abstract void encodeFields(T loginContext, CodecOutput out) throws IOException;
+
+    /**
+     * Decodes the fields added by the login context subclass.
+     * 
+     * @param loginContext the login context to decode into
+     * @param in input to decode the fields from
+     * @param version version of the format the fields were encoded with
+     * 
+     * @throws IOException thrown if the fields can not be decoded
+     */
+    protected abstract void decodeFields(T loginContext, CodecInput in, int version) throws IOException;
+
+    /**
+     * Encodes the fields of {@link LoginContext}.
+     * 
+     * @param loginContext the login context
+     * @param out output to encode the fields to
+     * 
+     * @throws IOException thrown if the fields can not be encoded
+     */
+    private void encodeLoginContext(LoginContext loginContext, CodecOutput out) throws IOException {
+        int flags = 0;
+        if (loginContext.isForceAuthRequired()) {
+            flags |= FORCE_AUTHN;
+        }
+        if (loginContext.isPassiveAuthRequired()) {
+            flags |= PASSIVE_AUTHN;
+        }
+        if (loginContext.getAuthenticationAttempted()) {
+            flags |= AUTHN_ATTEMPTED;
+        }
+        if (loginContext.isPrincipalAuthenticated()) {
+            flags |= PRINCIPAL_AUTHENTICATED;
+        }
+        out.writeVarInt(flags);
+
+        out.writeDictionaryString(loginContext.getRelyingPartyId());
+        out.writeString(loginContext.getProfileHandlerURL());
+        out.writeString(loginContext.getAuthenticationEngineURL());
+        out.writeString(loginContext.getSessionID());
+        out.writeDictionaryString(loginContext.getDefaultAuthenticationMethod());
+        out.writeDictionaryString(loginContext.getAttemptedAuthnMethod());
+
+        List<String> requestedMethods = loginContext.getRequestedAuthenticationMethods();
+        out.writeVarInt(requestedMethods.size());
+        for (String requestedMethod : requestedMethods) {
+            out.writeDictionaryString(requestedMethod);
+        }
+
+        out.writeObject(loginContext.getAuthenticationMethodInformation());
+        out.writeObject(loginContext.getAuthenticationFailure());
+
+        Map<String, Serializable> properties = loginContext.getProperties();
+        out.writeVarInt(properties.size());
+        for (Map.Entry<String, Serializable> property : properties.entrySet()) {
+            out.writeString(property.getKey());
+            out.writeObject(property.getValue());
+        }
+    }
+
+    /**
+     * Decodes the fields of {@link LoginContext}.
+     * 
+     * @param loginContext the login context to decode into
+     * @param in input to decode the fields from
+     * @param version version of the format the fields were encoded with
+     * 
+     * @throws IOException thrown if the fields can not be decoded
+     */
+    private void decodeLoginContext(LoginContext loginContext, CodecInput in, int version) throws IOException {
+        int flags = in.readVarInt();
+        loginContext.setForceAuthRequired((flags & FORCE_AUTHN) != 0);
+        loginContext.setPassiveAuthRequired((flags & PASSIVE_AUTHN) != 0);
+        if ((flags & AUTHN_ATTEMPTED) != 0) {
+            loginContext.setAuthenticationAttempted();
+        }
+        loginContext.setPrincipalAuthenticated((flags & PRINCIPAL_AUTHENTICATED) != 0);
+
+        loginContext.setRelyingParty(in.readDictionaryString());
+        loginContext.setProfileHandlerURL(in.readString());
+        loginContext.setAuthenticationEngineURL(in.readString());
+        loginContext.setSessionID(in.readString());
+        loginContext.setDefaultAuthenticationMethod(in.readDictionaryString());
+        loginContext.setAttemptedAuthnMethod(in.readDictionaryString());
+
+        int requestedMethodCount = in.readVarInt();
+        List<String> requestedMethods = loginContext.getRequestedAuthenticationMethods();
+        requestedMethods.clear();
+        for (int i = 0; i < requestedMethodCount; i++) {
+            requestedMethods.add(in.readDictionaryString());
+        }
+
+        loginContext.setAuthenticationMethodInformation(in.readObject(AuthenticationMethodInformation.class));
+        loginContext.setAuthenticationFailure(in.readObject(AuthenticationException.class));
+
+        int propertyCount = in.readVarInt();
+        for (int i = 0; i < propertyCount; i++) {
+            String key = in.readString();
+            Object value = in.readObject();
+            if (key != null && value instanceof Serializable) {
+                loginContext.setProperty(key, (Serializable) value);
+            }
+        }
+    }
+}
@@ -0,0 +1,726 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.security.auth.Subject;
+import javax.servlet.ServletContext;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.joda.time.DateTime;
+import org.opensaml.ws.transport.http.HTTPTransportUtils;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.common.session.SessionManager;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginHandlerSelectionIndex.Selection;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.PreviousSessionLoginHandler;
+import edu.internet2.middleware.shibboleth.idp.profile.IdPProfileHandlerManager;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AbstractSessionManager;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AuthenticationMethodInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.ServiceInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionCookieEncoder;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionCookieSigner;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionImpl;
+import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
+
+/**
+ * Selects the login handler authenticating a user and records the outcome of the authentication in the login context
+ * and the user's session.
+ * 
+ * The {@link AuthenticationEngine} creates the processor and binds it to the Servlet context, from which profile
+ * handlers look it up through {@link HttpServletHelper#getAuthenticationProcessor(ServletContext)} to complete
+ * requests the user's existing session satisfies without a trip through the engine.
+ */
+public class AuthenticationProcessor {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AuthenticationProcessor.class);
+
+    /** Servlet context of the web application. */
+    private ServletContext servletContext;
+
+    /** Whether the public credentials of a {@link Subject} are retained after authentication. */
+    private boolean retainSubjectsPublicCredentials;
+
+    /** Whether the private credentials of a {@link Subject} are retained after authentication. */
+    private boolean retainSubjectsPrivateCredentials;
+
+    /** Profile handler manager. */
+    private IdPProfileHandlerManager handlerManager;
+
+    /** Session manager. */
+    private SessionManager<Session> sessionManager;
+
+    /** Encoder of sessions carried in the session cookie, or null if cookies only reference sessions by ID. */
+    private SessionCookieEncoder sessionCookieEncoder;
+
+    /**
+     * Signer of cookies which reference sessions held by the session manager, or null if they are signed with the
+     * secret of the session they reference.
+     */
+    private SessionCookieSigner sessionCookieSigner;
+
+    /**
+     * Constructor. The services used by the processor are looked up in the Servlet context.
+     * 
+     * @param context Servlet context of the web application
+     * @param retainPublicCredentials whether the public credentials of a {@link Subject} are retained after
+     *            authentication
+     * @param retainPrivateCredentials whether the private credentials of a {@link Subject} are retained after
+     *            authentication
+     */
+    public AuthenticationProcessor(ServletContext context, boolean retainPublicCredentials,
+            boolean retainPrivateCredentials) {
+        if (context == null) {
+            throw new IllegalArgumentException("Servlet context may not be null");
+        }
+
+        servletContext = context;
+        retainSubjectsPublicCredentials = retainPublicCredentials;
+        retainSubjectsPrivateCredentials = retainPrivateCredentials;
+        handlerManager = HttpServletHelper.getProfileHandlerManager(context);
+        sessionManager = HttpServletHelper.getSessionManager(context);
+        sessionCookieEncoder = HttpServletHelper.getSessionCookieEncoder(context);
+        sessionCookieSigner = HttpServletHelper.getSessionCookieSigner(context);
+    }
+
+    /**
+     * Authenticates the user from their existing IdP session, within the current profile request, if the previous
+     * session login handler would be selected for the login context. The session is updated exactly as it would be
+     * had the request gone through the authentication engine, but the user is not redirected to the engine and back
+     * and the login context does not need to be bound.
+     * 
+     * Only the stock {@link PreviousSessionLoginHandler} is run this way, other implementations may depend on being
+     * invoked by the engine. Requests for forced or passive authentication are always left to the engine, which
+     * reports their failures.
+     * 
+     * @param loginContext login context created by the profile handler
+     * @param httpRequest current HTTP request
+     * @param httpResponse current HTTP response
+     * 
+     * @return true if the login context now holds the outcome of the authentication and the profile handler may
+     *         complete the request, false if the request must be sent to the authentication engine
+     */
+    public boolean authenticateWithSession(LoginContext loginContext, HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse) {
+        if (loginContext == null || loginContext.isForceAuthRequired() || loginContext.isPassiveAuthRequired()) {
+            return false;
+        }
+
+        Session idpSession = (Session) httpRequest.getAttribute(Session.HTTP_SESSION_BINDING_ATTRIBUTE);
+        if (idpSession == null) {
+            return false;
+        }
+
+        LoginHandler previousSessionHandler = handlerManager.getLoginHandlerIndex().getPreviousSessionHandler();
+        if (previousSessionHandler == null || previousSessionHandler.getClass() != PreviousSessionLoginHandler.class) {
+            return false;
+        }
+
+        try {
+            if (selectLoginHandler(idpSession, loginContext) != previousSessionHandler) {
+                return false;
+            }
+        } catch (AuthenticationException e) {
+            // leave it to the engine to report the failure, as it always has
+            return false;
+        }
+
+        log.debug("Authenticating user {} from their existing IdP session without going through the engine",
+                idpSession.getPrincipalName());
+        loginContext.setAuthenticationAttempted();
+        ((PreviousSessionLoginHandler) previousSessionHandler).authenticate(httpRequest);
+        recordAuthentication(loginContext, httpRequest, httpResponse);
+        return true;
+    }
+
+    /**
+     * Selects the login handler used to authenticate the user.
+     * 
+     * The login handlers able to provide the requested authentication methods, and those of them supporting passive
+     * authentication, are looked up in the handler manager's {@link LoginHandlerSelectionIndex}. Only the use of the
+     * previous session handler and forced re-authentication depend on the user's session.
+     * 
+     * @param idpSession current user's session, or null if they don't have one
+     * @param loginContext current login context
+     * 
+     * @return the login handler to use for this request
+     * 
+     * @throws AuthenticationException thrown if no login handler meets the given requirements
+     */
+    public LoginHandler selectLoginHandler(Session idpSession, LoginContext loginContext)
+            throws AuthenticationException {
+        LoginHandlerSelectionIndex index = handlerManager.getLoginHandlerIndex();
+        Selection selection = index.getSelection(loginContext.getRequestedAuthenticationMethods());
+        log.debug("Authentication methods supported for requested authentication methods {}: {}", loginContext
+                .getRequestedAuthenticationMethods(), selection.getMethods());
+
+        AuthenticationMethodInformation previousMethod = null;
+        if (index.getPreviousSessionHandler() != null) {
+            previousMethod = getActiveAuthenticationMethod(idpSession, selection);
+        }
+
+        if (selection.getMethods().isEmpty() && previousMethod == null) {
+            log.warn("No authentication method, requested by the service provider, is supported");
+            throw new AuthenticationException(
+                    "No authentication method, requested by the service provider, is supported");
+        }
+
+        List<String> methods = selection.getMethods();
+        if (loginContext.isForceAuthRequired()) {
+            log.debug("Forced authentication is required, filtering possible login handlers accordingly");
+            previousMethod = null;
+            methods = filterByForceAuthentication(idpSession, index, selection, methods);
+            if (methods.isEmpty()) {
+                log.info("Force authentication requested but no login handlers available to support it");
+                throw new ForceAuthenticationException();
+            }
+        }
+
+        if (loginContext.isPassiveAuthRequired()) {
+            log.debug("Passive authentication is required, filtering possible login handlers accordingly");
+            if (previousMethod != null && !index.getPreviousSessionHandler().supportsPassive()) {
+                previousMethod = null;
+            }
+            methods = filterByPassiveAuthentication(index, selection, methods);
+            if (methods.isEmpty() && previousMethod == null) {
+                log.warn("Passive authentication required but no login handlers available to support it");
+                throw new PassiveAuthenticationException();
+            }
+        }
+
+        if (previousMethod != null) {
+            log.debug("Basing previous session authentication on active authentication method {}", previousMethod
+                    .getAuthenticationMethod());
+            loginContext.setAttemptedAuthnMethod(previousMethod.getAuthenticationMethod());
+            loginContext.setAuthenticationMethodInformation(previousMethod);
+            return index.getPreviousSessionHandler();
+        }
+
+        String method = loginContext.getDefaultAuthenticationMethod();
+        if (method == null || !methods.contains(method)) {
+            method = methods.get(0);
+        }
+        loginContext.setAttemptedAuthnMethod(method);
+        LoginHandler loginHandler = index.getLoginHandler(method);
+        log.debug("Authenticating user with login handler of type {}", loginHandler.getClass().getName());
+        return loginHandler;
+    }
+
+    /**
+     * Gets the active authentication method of the user's session on which the previous session login handler may
+     * base its authentication. Expired methods are removed from the session, but the methods are only checked once
+     * the earliest of them may have expired.
+     * 
+     * @param idpSession current IdP session, may be null if no session currently exists
+     * @param selection authentication methods which may satisfy the request
+     * 
+     * @return the first active method that satisfies the request, or null if there is none
+     */
+    protected AuthenticationMethodInformation getActiveAuthenticationMethod(Session idpSession, Selection selection) {
+        if (idpSession == null) {
+            log.debug("Previous session login handler can not be used because there is no existing IdP session");
+            return null;
+        }
+
+        Collection<AuthenticationMethodInformation> currentAuthnMethods = idpSession.getAuthenticationMethods()
+                .values();
+        long now = System.currentTimeMillis();
+        if (getEarliestAuthenticationExpiration(idpSession, now) <= now) {
+            Iterator<AuthenticationMethodInformation> methodItr = currentAuthnMethods.iterator();
+            while (methodItr.hasNext()) {
+                if (methodItr.next().isExpired()) {
+                    methodItr.remove();
+                }
+            }
+        }
+
+        for (AuthenticationMethodInformation currentAuthnMethod : currentAuthnMethods) {
+            if (selection.isRequested(currentAuthnMethod.getAuthenticationMethod())) {
+                return currentAuthnMethod;
+            }
+        }
+
+        log.debug("Previous session login handler can not be used, no active authentication methods match required methods");
+        return null;
+    }
+
+    /**
+     * Gets the earliest instant at which one of the authentication methods of a session expires.
+     * 
+     * @param idpSession the session
+     * @param now the current instant, in milliseconds since the epoch
+     * 
+     * @return earliest expiration instant, in milliseconds since the epoch, or {@link Long#MIN_VALUE} if it is not
+     *         known
+     */
+    protected long getEarliestAuthenticationExpiration(Session idpSession, long now) {
+        if (idpSession instanceof SessionImpl) {
+            return ((SessionImpl) idpSession).getEarliestAuthenticationExpiration(now);
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Filters out any authentication method based on the requirement for forced authentication.
+     * 
+     * During forced authentication any handler that has not previously been used to authenticate the user or any
+     * handlers that have been and support force re-authentication may be used. Filter out any of the other ones.
+     * 
+     * @param idpSession user's current IdP session
+     * @param index login handler selection index
+     * @param selection authentication methods which may satisfy the request
+     * @param methods authentication methods to filter
+     * 
+     * @return the remaining authentication methods
+     */
+    protected List<String> filterByForceAuthentication(Session idpSession, LoginHandlerSelectionIndex index,
+            Selection selection, List<String> methods) {
+        if (idpSession == null) {
+            return methods;
+        }
+
+        Set<String> excludedMethods = null;
+        LoginHandler loginHandler;
+        for (String activeMethod : idpSession.getAuthenticationMethods().keySet()) {
+            if (!selection.contains(activeMethod)) {
+                continue;
+            }
+            loginHandler = index.getLoginHandler(activeMethod);
+            if (!loginHandler.supportsForceAuthentication()) {
+                log.debug("Removing LoginHandler {}, it does not support forced re-authentication", loginHandler
+                        .getClass().getName());
+                if (excludedMethods == null) {
+                    excludedMethods = new HashSet<String>();
+                }
+                excludedMethods.addAll(loginHandler.getSupportedAuthenticationMethods());
+            }
+        }
+
+        if (excludedMethods == null) {
+            return methods;
+        }
+
+        List<String> remainingMethods = new ArrayList<String>(methods.size());
+        for (String method : methods) {
+            if (!excludedMethods.contains(method)) {
+                remainingMethods.add(method);
+            }
+        }
+        log.debug("Authentication methods remaining after forced authentication requirement filtering: {}",
+                remainingMethods);
+        return remainingMethods;
+    }
+
+    /**
+     * Filters out any authentication method whose login handler doesn't support passive authentication.
+     * 
+     * @param index login handler selection index
+     * @param selection authentication methods which may satisfy the request
+     * @param methods authentication methods to filter
+     * 
+     * @return the remaining authentication methods
+     */
+    protected List<String> filterByPassiveAuthentication(LoginHandlerSelectionIndex index, Selection selection,
+            List<String> methods) {
+        if (methods == selection.getMethods()) {
+            return selection.getPassiveMethods();
+        }
+
+        List<String> remainingMethods = new ArrayList<String>(methods.size());
+        for (String method : methods) {
+            if (index.getLoginHandler(method).supportsPassive()) {
+                remainingMethods.add(method);
+            }
+        }
+        log.debug("Authentication methods remaining after passive authentication requirement filtering: {}",
+                remainingMethods);
+        return remainingMethods;
+    }
+
+    /**
+     * Records the outcome of the login handler's authentication in the login context and, if the user was
+     * authenticated, in their Shibboleth session.
+     * 
+     * @param loginContext current login context
+     * @param httpRequest current HTTP request
+     * @param httpResponse current HTTP response
+     */
+    public void recordAuthentication(LoginContext loginContext, HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse) {
+
+        Session idpSession = (Session) httpRequest.getAttribute(Session.HTTP_SESSION_BINDING_ATTRIBUTE);
+
+        try {
+            // We allow a login handler to override the authentication method in the
+            // event that it supports multiple methods
+            String actualAuthnMethod = DatatypeHelper.safeTrimOrNullString((String) httpRequest
+                    .getAttribute(LoginHandler.AUTHENTICATION_METHOD_KEY));
+            if (actualAuthnMethod != null) {
+                if (!loginContext.getRequestedAuthenticationMethods().isEmpty()
+                        && !loginContext.getRequestedAuthenticationMethods().contains(actualAuthnMethod)) {
+                    String msg = "Relying patry required an authentication method of "
+                            + loginContext.getRequestedAuthenticationMethods() + " but the login handler performed "
+                            + actualAuthnMethod;
+                    log.error(msg);
+                    throw new AuthenticationException(msg);
+                }
+            } else {
+                actualAuthnMethod = loginContext.getAttemptedAuthnMethod();
+            }
+
+            // Check to make sure the login handler did the right thing
+            validateSuccessfulAuthentication(loginContext, httpRequest, actualAuthnMethod);
+            if (loginContext.getAuthenticationFailure() != null) {
+                return;
+            }
+
+            // Check for an overridden authn instant.
+            DateTime actualAuthnInstant = (DateTime) httpRequest.getAttribute(LoginHandler.AUTHENTICATION_INSTANT_KEY);
+
+            // Get the Subject from the request. If force authentication was required then make sure the
+            // Subject identifies the same user that authenticated before
+            Subject subject = getLoginHandlerSubject(httpRequest);
+            if (loginContext.isForceAuthRequired()) {
+                validateForcedReauthentication(idpSession, actualAuthnMethod, subject);
+
+                // Reset the authn instant.
+                if (actualAuthnInstant == null) {
+                    actualAuthnInstant = new DateTime();
+                }
+            }
+
+            loginContext.setPrincipalAuthenticated(true);
+            updateUserSession(loginContext, subject, actualAuthnMethod, actualAuthnInstant, httpRequest, httpResponse);
+            log.debug("User {} authenticated with method {}", loginContext.getPrincipalName(),
+                    loginContext.getAuthenticationMethod());
+        } catch (AuthenticationException e) {
+            log.error("Authentication failed with the error:", e);
+            loginContext.setPrincipalAuthenticated(false);
+            loginContext.setAuthenticationFailure(e);
+        }
+    }
+
+    /**
+     * Validates that the authentication was successfully performed by the login handler. An authentication is
+     * considered successful if no error is bound to the request attribute {@link LoginHandler#AUTHENTICATION_ERROR_KEY}
+     * and there is a value for at least one of the following request attributes: {@link LoginHandler#SUBJECT_KEY},
+     * {@link LoginHandler#PRINCIPAL_KEY}, or {@link LoginHandler#PRINCIPAL_NAME_KEY}.
+     * 
+     * @param loginContext current login context
+     * @param httpRequest current HTTP request
+     * @param authenticationMethod the authentication method used to authenticate the user
+     * 
+     * @throws AuthenticationException thrown if the authentication was not successful
+     */
+    protected void validateSuccessfulAuthentication(LoginContext loginContext, HttpServletRequest httpRequest,
+            String authenticationMethod) throws AuthenticationException {
+        log.debug("Validating authentication was performed successfully");
+
+        if (authenticationMethod == null) {
+            log.error("No authentication method reported by login handler.");
+            throw new AuthenticationException("No authentication method reported by login handler.");
+        }
+
+        String errorMessage = DatatypeHelper.safeTrimOrNullString((String) httpRequest
+                .getAttribute(LoginHandler.AUTHENTICATION_ERROR_KEY));
+        if (errorMessage != null) {
+            log.debug("Error returned from login handler for authentication method {}:\n{}",
+                    loginContext.getAttemptedAuthnMethod(), errorMessage);
+            loginContext.setAuthenticationFailure(new AuthenticationException(errorMessage));
+            loginContext.setPrincipalAuthenticated(false);
+            return;
+        }
+
+        AuthenticationException authnException = (AuthenticationException) httpRequest
+                .getAttribute(LoginHandler.AUTHENTICATION_EXCEPTION_KEY);
+        if (authnException != null) {
+            log.debug("Exception returned from login handler for authentication method {}:\n{}",
+                    loginContext.getAttemptedAuthnMethod(), authnException);
+            loginContext.setAuthenticationFailure(authnException);
+            loginContext.setPrincipalAuthenticated(false);
+            return;
+        }
+
+        Subject subject = (Subject) httpRequest.getAttribute(LoginHandler.SUBJECT_KEY);
+        Principal principal = (Principal) httpRequest.getAttribute(LoginHandler.PRINCIPAL_KEY);
+        String principalName = DatatypeHelper.safeTrimOrNullString((String) httpRequest
+                .getAttribute(LoginHandler.PRINCIPAL_NAME_KEY));
+
+        if (subject == null && principal == null && principalName == null) {
+            log.error("No user identified by login handler.");
+            throw new AuthenticationException("No user identified by login handler.");
+        }
+    }
+
+    /**
+     * Gets the subject from the request coming back from the login handler.
+     * 
+     * @param httpRequest request coming back from the login handler
+     * 
+     * @return the {@link Subject} created from the request
+     * 
+     * @throws AuthenticationException thrown if no subject can be retrieved from the request
+     */
+    protected Subject getLoginHandlerSubject(HttpServletRequest httpRequest) throws AuthenticationException {
+        Subject subject = (Subject) httpRequest.getAttribute(LoginHandler.SUBJECT_KEY);
+        Principal principal = (Principal) httpRequest.getAttribute(LoginHandler.PRINCIPAL_KEY);
+        String principalName = DatatypeHelper.safeTrimOrNullString((String) httpRequest
+                .getAttribute(LoginHandler.PRINCIPAL_NAME_KEY));
+
+        if (subject == null && (principal != null || principalName != null)) {
+            subject = new Subject();
+            if (principal == null) {
+                principal = new UsernamePrincipal(principalName);
+            }
+            subject.getPrincipals().add(principal);
+        }
+
+        return subject;
+    }
+
+    /**
+     * If forced authentication was required this method checks to ensure that the re-authenticated subject contains a
+     * principal name that is equal to the principal name associated with the authentication method. If this is the
+     * first time the subject has authenticated with this method than this check always passes.
+     * 
+     * @param idpSession user's IdP session
+     * @param authnMethod method used to authenticate the user
+     * @param subject subject that was authenticated
+     * 
+     * @throws AuthenticationException thrown if this check fails
+     */
+    protected void validateForcedReauthentication(Session idpSession, String authnMethod, Subject subject)
+            throws AuthenticationException {
+        if (idpSession != null) {
+            AuthenticationMethodInformation authnMethodInfo = idpSession.getAuthenticationMethods().get(authnMethod);
+            if (authnMethodInfo != null) {
+                boolean princpalMatch = false;
+                for (Principal princpal : subject.getPrincipals()) {
+                    if (authnMethodInfo.getAuthenticationPrincipal().equals(princpal)) {
+                        princpalMatch = true;
+                        break;
+                    }
+                }
+
+                if (!princpalMatch) {
+                    throw new ForceAuthenticationException(
+                            "Authenticated principal does not match previously authenticated principal");
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the user's Shibboleth session with authentication information. If no session exists a new one will be
+     * created, held by the session manager unless sessions are carried in the cookie and the encoder is not to store
+     * them. A session cookie is issued for new sessions and, if sessions are carried in the cookie, whenever the
+     * session is updated.
+     * 
+     * @param loginContext current login context
+     * @param authenticationSubject subject created from the authentication method
+     * @param authenticationMethod the method used to authenticate the subject
+     * @param authenticationInstant the time of authentication
+     * @param httpRequest current HTTP request
+     * @param httpResponse current HTTP response
+     */
+    protected void updateUserSession(LoginContext loginContext, Subject authenticationSubject,
+            String authenticationMethod, DateTime authenticationInstant, HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse) {
+        Principal authenticationPrincipal = authenticationSubject.getPrincipals().iterator().next();
+        log.debug("Updating session information for principal {}", authenticationPrincipal.getName());
+
+        Session idpSession = (Session) httpRequest.getAttribute(Session.HTTP_SESSION_BINDING_ATTRIBUTE);
+        boolean newSession = idpSession == null;
+        if (newSession) {
+            log.debug("Creating shibboleth session for principal {}", authenticationPrincipal.getName());
+            if (sessionCookieEncoder != null && !sessionCookieEncoder.isStoreSessions()
+                    && sessionManager instanceof AbstractSessionManager) {
+                idpSession = ((AbstractSessionManager) sessionManager).createUnmanagedSession();
+            } else {
+                idpSession = (Session) sessionManager.createSession();
+            }
+            loginContext.setSessionID(idpSession.getSessionID());
+        }
+
+        // Merge the information in the current session subject with the information from the
+        // login handler subject
+        idpSession.setSubject(mergeSubjects(idpSession.getSubject(), authenticationSubject));
+
+        // Check if an existing authentication method with no updated timestamp was used (i.e. SSO occurred);
+        // if not record the new information
+        AuthenticationMethodInformation authnMethodInfo = idpSession.getAuthenticationMethods().get(
+                authenticationMethod);
+        if (authnMethodInfo == null || authenticationInstant != null) {
+            log.debug("Recording authentication and service information in Shibboleth session for principal: {}",
+                    authenticationPrincipal.getName());
+            LoginHandler loginHandler = handlerManager.getLoginHandlerIndex().getLoginHandler(
+                    loginContext.getAttemptedAuthnMethod());
+            DateTime authnInstant = authenticationInstant;
+            if (authnInstant == null) {
+                authnInstant = new DateTime();
+            }
+            authnMethodInfo = new AuthenticationMethodInformationImpl(idpSession.getSubject(), authenticationPrincipal,
+                    authenticationMethod, authnInstant, loginHandler.getAuthenticationDuration());
+        }
+
+        loginContext.setAuthenticationMethodInformation(authnMethodInfo);
+        idpSession.getAuthenticationMethods().put(authnMethodInfo.getAuthenticationMethod(), authnMethodInfo);
+        sessionManager.indexSession(idpSession, idpSession.getPrincipalName());
+
+        ServiceInformation serviceInfo = new ServiceInformationImpl(loginContext.getRelyingPartyId(), new DateTime(),
+                authnMethodInfo);
+        idpSession.getServicesInformation().put(serviceInfo.getEntityID(), serviceInfo);
+
+        if (newSession || sessionCookieEncoder != null) {
+            addSessionCookie(httpRequest, httpResponse, idpSession);
+        }
+    }
+
+    /**
+     * Merges the two {@link Subject}s in to a new {@link Subject}. The new subjects contains all the {@link Principal}s
+     * from both subjects. If {@link #retainSubjectsPrivateCredentials} is true then the new subject will contain all
+     * the private credentials from both subjects, if not the new subject will not contain private credentials. If
+     * {@link #retainSubjectsPublicCredentials} is true then the new subject will contain all the public credentials
+     * from both subjects, if not the new subject will not contain public credentials.
+     * 
+     * @param subject1 first subject to merge, may be null
+     * @param subject2 second subject to merge, may be null
+     * 
+     * @return subject containing the merged information
+     */
+    protected Subject mergeSubjects(Subject subject1, Subject subject2) {
+        if (subject1 == null && subject2 == null) {
+            return new Subject();
+        }
+
+        if (subject1 == null) {
+            return subject2;
+        }
+
+        if (subject2 == null) {
+            return subject1;
+        }
+
+        Set<Principal> principals = new HashSet<Principal>(3);
+        principals.addAll(subject1.getPrincipals());
+        principals.addAll(subject2.getPrincipals());
+
+        Set<Object> publicCredentials = new HashSet<Object>(3);
+        if (retainSubjectsPublicCredentials) {
+            log.debug("Merging in subjects public credentials");
+            publicCredentials.addAll(subject1.getPublicCredentials());
+            publicCredentials.addAll(subject2.getPublicCredentials());
+        }
+
+        Set<Object> privateCredentials = new HashSet<Object>(3);
+        if (retainSubjectsPrivateCredentials) {
+            log.debug("Merging in subjects private credentials");
+            privateCredentials.addAll(subject1.getPrivateCredentials());
+            privateCredentials.addAll(subject2.getPrivateCredentials());
+        }
+
+        return new Subject(false, principals, publicCredentials, privateCredentials);
+    }
+
+    /**
+     * Adds an IdP session cookie to the outbound response. If a {@link SessionCookieEncoder} is available the cookie
+     * carries the whole session, unless the session is too large, in which case the cookie falls back to referencing
+     * the session held by the session manager.
+     * 
+     * @param httpRequest current request
+     * @param httpResponse current response
+     * @param userSession user's session
+     */
+    protected void addSessionCookie(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+            Session userSession) {
+        httpRequest.setAttribute(Session.HTTP_SESSION_BINDING_ATTRIBUTE, userSession);
+
+        String cookieValue = null;
+        if (sessionCookieEncoder != null) {
+            cookieValue = sessionCookieEncoder.encode(userSession, httpRequest.getRemoteAddr());
+            if (cookieValue == null) {
+                log.debug("Session {} can not be carried in the session cookie, referencing it by ID instead",
+                        userSession.getSessionID());
+                if (sessionManager.getSession(userSession.getSessionID()) == null) {
+                    log.warn("Session {} is not held by this node's session manager and will be lost",
+                            userSession.getSessionID());
+                }
+            }
+        }
+        if (cookieValue == null) {
+            cookieValue = buildSessionReference(httpRequest, userSession);
+        }
+
+        log.debug("Adding IdP session cookie to HTTP response");
+        String cookieDomain = HttpServletHelper.getCookieDomain(servletContext);
+
+        Cookie sessionCookie = new Cookie(IDP_SESSION_COOKIE_NAME, HTTPTransportUtils.urlEncode(cookieValue));
+        sessionCookie.setVersion(1);
+        if (cookieDomain != null) {
+            sessionCookie.setDomain(cookieDomain);
+        }
+        sessionCookie.setPath("".equals(httpRequest.getContextPath()) ? "/" : httpRequest.getContextPath());
+        sessionCookie.setSecure(httpRequest.isSecure());
+        httpResponse.addCookie(sessionCookie);
+    }
+
+    /**
+     * Builds a session cookie value referencing a session held by the session manager, signed by the session cookie
+     * signer if one is configured, or else with the session's own secret.
+     * 
+     * @param httpRequest current request
+     * @param userSession user's session
+     * 
+     * @return the cookie value
+     */
+    protected String buildSessionReference(HttpServletRequest httpRequest, Session userSession) {
+        byte[] remoteAddress = httpRequest.getRemoteAddr().getBytes();
+        byte[] sessionId = userSession.getSessionID().getBytes();
+
+        byte[] signatureBytes;
+        if (sessionCookieSigner != null) {
+            signatureBytes = sessionCookieSigner.sign(remoteAddress, sessionId);
+        } else {
+            signatureBytes = SessionCookieSigner.signWithSessionSecret(userSession.getSessionSecret(), remoteAddress,
+                    sessionId);
+        }
+        String signature = Base64.encodeBytes(signatureBytes, Base64.DONT_BREAK_LINES);
+
+        StringBuilder cookieValue = new StringBuilder();
+        cookieValue.append(Base64.encodeBytes(remoteAddress, Base64.DONT_BREAK_LINES)).append("|");
+        cookieValue.append(Base64.encodeBytes(sessionId, Base64.DONT_BREAK_LINES)).append("|");
+        cookieValue.append(signature);
+        return cookieValue.toString();
+    }
+}
\ No newline at end of file
@@ -245,6 +245,15 @@ public class LoginContext implements Serializable {
         return propsMap.get(key);
     }
 
+    /**
+     * Gets the map holding the optional property objects.
+     * 
+     * @return map holding the optional property objects
+     */
+    synchronized Map<String, Serializable> getProperties() {
+        return propsMap;
+    }
+
     /**
      * Gets the entity ID of the relying party.
      * 
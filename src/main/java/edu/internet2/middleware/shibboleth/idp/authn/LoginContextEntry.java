@@ -17,11 +17,10 @@
 
 package edu.internet2.middleware.shibboleth.idp.authn;
 
-import org.joda.time.DateTime;
-import org.opensaml.util.storage.AbstractExpiringObject;
+import edu.internet2.middleware.shibboleth.idp.util.AbstractExpiringEntry;
 
 /** Storage service entry for login contexts. */
-public class LoginContextEntry extends AbstractExpiringObject {
+public class LoginContextEntry extends AbstractExpiringEntry {
 
     /** Serial version UID. */
     private static final long serialVersionUID = -1528197153404835381L;
@@ -36,7 +35,7 @@ public class LoginContextEntry extends AbstractExpiringObject {
      * @param lifetime lifetime of the entry
      */
     public LoginContextEntry(LoginContext ctx, long lifetime) {
-        super(new DateTime().plus(lifetime));
+        super(lifetime);
         loginCtx = ctx;
     }
 
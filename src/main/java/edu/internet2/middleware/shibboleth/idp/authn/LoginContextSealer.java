@@ -0,0 +1,627 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecRegistry;
+import edu.internet2.middleware.shibboleth.idp.util.codec.DefaultCodecRegistry;
+
+/**
+ * Seals {@link LoginContext}s so that they can be carried by the browser, in a cookie or a form field, instead of
+ * being kept in a storage service while the user authenticates.
+ * 
+ * A login context is encoded with the {@link DefaultCodecRegistry}, encrypted with AES-128 in CBC mode under a random
+ * IV, and authenticated with an HMAC-SHA256 over the ciphertext and the address of the client it is issued to. The
+ * encryption and MAC keys are derived from a configured key. Contexts are sealed with the first key; the others are
+ * only accepted when unsealing, which allows keys to be rolled over. If no keys are given a random key is generated, in
+ * which case sealed contexts are not accepted by other nodes or after a restart.
+ * 
+ * A sealed context expires after the configured lifetime. Once a context has been consumed by
+ * {@link #markConsumed(String)} it is refused if presented again to the same sealer until it expires. That replay
+ * guard is local to the node, other nodes accept a consumed context until it expires. Since every context has the same
+ * lifetime, consumed contexts are forgotten in the order they were consumed as they expire; if the configured maximum
+ * number of unexpired consumed contexts is reached, further contexts can not be consumed until some expire.
+ */
+public class LoginContextSealer {
+
+    /** Default lifetime of a sealed context, 30 minutes in milliseconds. */
+    public static final long DEFAULT_LIFETIME = 1800000;
+
+    /** Minimum length, in bytes, of a key. */
+    public static final int MIN_KEY_LENGTH = 16;
+
+    /** Default maximum length, in characters, of a sealed context. */
+    public static final int DEFAULT_MAX_SEALED_LENGTH = 3800;
+
+    /** Prefix of sealed contexts, distinguishing them from the keys of contexts kept in a storage service. */
+    public static final String SEALED_PREFIX = "s1.";
+
+    /** Default maximum number of unexpired consumed contexts remembered to refuse their replay. */
+    public static final int DEFAULT_MAX_CONSUMED = 100000;
+
+    /** Version of the sealed format. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** Length, in bytes, of the AES key and IV. */
+    private static final int AES_LENGTH = 16;
+
+    /** Length, in bytes, of the MAC. */
+    private static final int MAC_LENGTH = 32;
+
+    /** Length, in bytes, of generated keys. */
+    private static final int GENERATED_KEY_LENGTH = 32;
+
+    /** MAC algorithm used to authenticate sealed contexts and to derive keys. */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /** Cipher used to encrypt sealed contexts. */
+    private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(LoginContextSealer.class);
+
+    /** Encryption keys, in the order of the configured keys. */
+    private final List<SecretKeySpec> encryptionKeys;
+
+    /** MAC keys, in the order of the configured keys. */
+    private final List<SecretKeySpec> macKeys;
+
+    /** Per-thread MACs, one for each key. */
+    private final ThreadLocal<Mac[]> macs;
+
+    /** Per-thread ciphers. */
+    private final ThreadLocal<Cipher> ciphers;
+
+    /** Codecs used to encode login contexts. */
+    private final CodecRegistry codecRegistry;
+
+    /** Source of the IVs. */
+    private final SecureRandom random;
+
+    /** Lifetime of a sealed context in milliseconds. */
+    private final long lifetime;
+
+    /** Maximum length, in characters, of a sealed context. */
+    private int maxSealedLength;
+
+    /** Maximum number of unexpired consumed contexts remembered. */
+    private int maxConsumed;
+
+    /** Expiration instants of consumed contexts, indexed by the Base64 MAC of the sealed context. */
+    private final Map<String, Long> consumed;
+
+    /** Base64 MACs of the consumed contexts, in the order they were consumed and so in order of expiration. */
+    private final ArrayDeque<String> consumedOrder;
+
+    /** Constructor, generating a random key. */
+    public LoginContextSealer() {
+        this(Collections.singletonList(generateKey()), DEFAULT_LIFETIME);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param base64Keys Base64 encoded keys, the first one is used for sealing
+     * @param contextLifetime lifetime of a sealed context in milliseconds
+     */
+    public LoginContextSealer(List<String> base64Keys, long contextLifetime) {
+        if (base64Keys == null || base64Keys.isEmpty()) {
+            throw new IllegalArgumentException("At least one key must be given");
+        }
+        if (contextLifetime <= 0) {
+            throw new IllegalArgumentException("Login context lifetime must be greater than zero");
+        }
+
+        encryptionKeys = new ArrayList<SecretKeySpec>(base64Keys.size());
+        macKeys = new ArrayList<SecretKeySpec>(base64Keys.size());
+        for (String base64Key : base64Keys) {
+            byte[] key = null;
+            if (!DatatypeHelper.isEmpty(base64Key)) {
+                key = Base64.decode(DatatypeHelper.safeTrim(base64Key));
+            }
+            if (key == null || key.length < MIN_KEY_LENGTH) {
+                throw new IllegalArgumentException("Login context sealing keys must be at least " + MIN_KEY_LENGTH
+                        + " Base64 encoded bytes");
+            }
+            byte[] encryptionKey = new byte[AES_LENGTH];
+            System.arraycopy(deriveKey(key, "login context encryption"), 0, encryptionKey, 0, AES_LENGTH);
+            encryptionKeys.add(new SecretKeySpec(encryptionKey, "AES"));
+            macKeys.add(new SecretKeySpec(deriveKey(key, "login context authentication"), MAC_ALGORITHM));
+        }
+
+        lifetime = contextLifetime;
+        maxSealedLength = DEFAULT_MAX_SEALED_LENGTH;
+        codecRegistry = new DefaultCodecRegistry();
+        random = new SecureRandom();
+        maxConsumed = DEFAULT_MAX_CONSUMED;
+        consumed = new ConcurrentHashMap<String, Long>();
+        consumedOrder = new ArrayDeque<String>();
+
+        macs = new ThreadLocal<Mac[]>() {
+            /** {@inheritDoc} */
+            protected Mac[] initialValue() {
+                return createMacs();
+            }
+        };
+        ciphers = new ThreadLocal<Cipher>() {
+            /** {@inheritDoc} */
+            protected Cipher initialValue() {
+                return createCipher();
+            }
+        };
+
+        // fail now, rather than on the first request, if the keys or algorithms are not usable
+        createMacs();
+        createCipher();
+    }
+
+    /**
+     * Gets the lifetime of a sealed context.
+     * 
+     * @return lifetime of a sealed context in milliseconds
+     */
+    public long getLifetime() {
+        return lifetime;
+    }
+
+    /**
+     * Gets the maximum length of a sealed context. Contexts which do not fit are not sealed.
+     * 
+     * @return maximum length, in characters, of a sealed context
+     */
+    public int getMaxSealedLength() {
+        return maxSealedLength;
+    }
+
+    /**
+     * Sets the maximum length of a sealed context. Contexts which do not fit are not sealed.
+     * 
+     * @param length maximum length, in characters, of a sealed context
+     */
+    public void setMaxSealedLength(int length) {
+        if (length < 1) {
+            throw new IllegalArgumentException("Maximum sealed length must be greater than zero");
+        }
+        maxSealedLength = length;
+    }
+
+    /**
+     * Gets the maximum number of unexpired consumed contexts remembered to refuse their replay.
+     * 
+     * @return maximum number of unexpired consumed contexts
+     */
+    public int getMaxConsumed() {
+        return maxConsumed;
+    }
+
+    /**
+     * Sets the maximum number of unexpired consumed contexts remembered to refuse their replay. Once reached, further
+     * contexts can not be consumed until some expire.
+     * 
+     * @param max maximum number of unexpired consumed contexts
+     */
+    public void setMaxConsumed(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Maximum number of consumed contexts must be greater than zero");
+        }
+        maxConsumed = max;
+    }
+
+    /**
+     * Seals a login context for the given client.
+     * 
+     * @param loginContext the login context
+     * @param clientAddress address of the client the sealed context is issued to
+     * 
+     * @return the sealed context, made of URL and cookie safe characters and starting with {@link #SEALED_PREFIX}, or
+     *         null if the context could not be encoded or does not fit in the maximum sealed length
+     */
+    public String seal(LoginContext loginContext, String clientAddress) {
+        byte[] encoded;
+        try {
+            encoded = codecRegistry.encode(loginContext);
+        } catch (IOException e) {
+            log.warn("Unable to encode login context, it can not be sealed: {}", e.getMessage());
+            return null;
+        }
+
+        byte[] plaintext = new byte[8 + encoded.length];
+        writeLong(System.currentTimeMillis() + lifetime, plaintext, 0);
+        System.arraycopy(encoded, 0, plaintext, 8, encoded.length);
+
+        byte[] iv = new byte[AES_LENGTH];
+        random.nextBytes(iv);
+        byte[] ciphertext;
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKeys.get(0), new IvParameterSpec(iv));
+            ciphertext = cipher.doFinal(plaintext);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to encrypt login context", e);
+        }
+
+        byte[] sealed = new byte[1 + AES_LENGTH + ciphertext.length + MAC_LENGTH];
+        sealed[0] = FORMAT_VERSION;
+        System.arraycopy(iv, 0, sealed, 1, AES_LENGTH);
+        System.arraycopy(ciphertext, 0, sealed, 1 + AES_LENGTH, ciphertext.length);
+        byte[] mac = computeMac(macs.get()[0], sealed, sealed.length - MAC_LENGTH, clientAddress);
+        System.arraycopy(mac, 0, sealed, sealed.length - MAC_LENGTH, MAC_LENGTH);
+
+        String encodedSeal = SEALED_PREFIX + encode(sealed);
+        if (encodedSeal.length() > maxSealedLength) {
+            log.debug("Sealed login context is {} characters long, over the limit of {}", encodedSeal.length(),
+                    maxSealedLength);
+            return null;
+        }
+        return encodedSeal;
+    }
+
+    /**
+     * Unseals a login context.
+     * 
+     * @param sealedContext the sealed context
+     * @param clientAddress address of the client presenting the sealed context
+     * 
+     * @return the login context, or null if the sealed context was not issued to the client, has been tampered with,
+     *         has expired or has been consumed
+     */
+    public LoginContext unseal(String sealedContext, String clientAddress) {
+        byte[] sealed = decodeSealed(sealedContext);
+        if (sealed == null || sealed.length < 1 + AES_LENGTH * 2 + MAC_LENGTH || sealed[0] != FORMAT_VERSION) {
+            log.debug("Sealed login context is malformed");
+            return null;
+        }
+
+        byte[] mac = new byte[MAC_LENGTH];
+        System.arraycopy(sealed, sealed.length - MAC_LENGTH, mac, 0, MAC_LENGTH);
+        int keyIndex = -1;
+        Mac[] threadMacs = macs.get();
+        for (int i = 0; i < threadMacs.length; i++) {
+            if (isEqual(computeMac(threadMacs[i], sealed, sealed.length - MAC_LENGTH, clientAddress), mac)
+                    && keyIndex == -1) {
+                keyIndex = i;
+            }
+        }
+        if (keyIndex == -1) {
+            log.warn("Sealed login context presented by {} failed authentication", clientAddress);
+            return null;
+        }
+
+        if (consumed.containsKey(encode(mac))) {
+            log.warn("Sealed login context presented by {} has already been consumed", clientAddress);
+            return null;
+        }
+
+        byte[] plaintext;
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, encryptionKeys.get(keyIndex), new IvParameterSpec(sealed, 1,
+                    AES_LENGTH));
+            plaintext = cipher.doFinal(sealed, 1 + AES_LENGTH, sealed.length - 1 - AES_LENGTH - MAC_LENGTH);
+        } catch (GeneralSecurityException e) {
+            log.warn("Unable to decrypt sealed login context: {}", e.getMessage());
+            return null;
+        }
+
+        if (readLong(plaintext, 0) < System.currentTimeMillis()) {
+            log.debug("Sealed login context has expired");
+            return null;
+        }
+
+        byte[] encoded = new byte[plaintext.length - 8];
+        System.arraycopy(plaintext, 8, encoded, 0, encoded.length);
+        try {
+            return codecRegistry.decode(encoded, LoginContext.class);
+        } catch (IOException e) {
+            log.warn("Unable to decode sealed login context: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether a value is a sealed context rather than the key of a context kept in a storage service.
+     * 
+     * @param value the value
+     * 
+     * @return true if the value is a sealed context
+     */
+    public static boolean isSealed(String value) {
+        return value != null && value.startsWith(SEALED_PREFIX);
+    }
+
+    /**
+     * Records that a sealed context has been consumed, so that it is refused if presented again before it expires. The
+     * context must not be used if it can not be recorded, that is if it has already been consumed or if the maximum
+     * number of unexpired consumed contexts has been reached.
+     * 
+     * @param sealedContext the sealed context
+     * 
+     * @return true if the context was recorded as consumed, false if it must be refused
+     */
+    public boolean markConsumed(String sealedContext) {
+        byte[] sealed = decodeSealed(sealedContext);
+        if (sealed == null || sealed.length < MAC_LENGTH) {
+            return false;
+        }
+
+        byte[] mac = new byte[MAC_LENGTH];
+        System.arraycopy(sealed, sealed.length - MAC_LENGTH, mac, 0, MAC_LENGTH);
+        String encodedMac = encode(mac);
+        long now = System.currentTimeMillis();
+        synchronized (consumedOrder) {
+            String oldest = consumedOrder.peek();
+            while (oldest != null) {
+                Long expiration = consumed.get(oldest);
+                if (expiration != null && expiration >= now) {
+                    break;
+                }
+                consumed.remove(oldest);
+                consumedOrder.poll();
+                oldest = consumedOrder.peek();
+            }
+
+            if (consumed.containsKey(encodedMac)) {
+                log.warn("Sealed login context has already been consumed");
+                return false;
+            }
+            if (consumed.size() >= maxConsumed) {
+                log.warn("{} unexpired login contexts have been consumed, refusing to consume another one",
+                        consumed.size());
+                return false;
+            }
+            consumed.put(encodedMac, now + lifetime);
+            consumedOrder.add(encodedMac);
+        }
+        return true;
+    }
+
+    /**
+     * Computes the MAC of a sealed context. The client address is length prefixed so that no two pairs of sealed
+     * content and address are authenticated over the same bytes.
+     * 
+     * @param mac the MAC to use
+     * @param sealed buffer holding the sealed content
+     * @param length length of the sealed content
+     * @param clientAddress address of the client
+     * 
+     * @return the MAC
+     */
+    private byte[] computeMac(Mac mac, byte[] sealed, int length, String clientAddress) {
+        byte[] address = toBytes(clientAddress != null ? clientAddress : "");
+        mac.update((byte) (address.length >>> 8));
+        mac.update((byte) address.length);
+        mac.update(address);
+        mac.update(sealed, 0, length);
+        return mac.doFinal();
+    }
+
+    /**
+     * Creates a MAC for each of the keys.
+     * 
+     * @return the MACs, in key order
+     */
+    private Mac[] createMacs() {
+        Mac[] newMacs = new Mac[macKeys.size()];
+        try {
+            for (int i = 0; i < newMacs.length; i++) {
+                newMacs[i] = Mac.getInstance(MAC_ALGORITHM);
+                newMacs[i].init(macKeys.get(i));
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to initialize " + MAC_ALGORITHM + " for login contexts", e);
+        }
+        return newMacs;
+    }
+
+    /**
+     * Creates a cipher.
+     * 
+     * @return the cipher
+     */
+    private Cipher createCipher() {
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKeys.get(0), new IvParameterSpec(new byte[AES_LENGTH]));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to initialize " + CIPHER_ALGORITHM + " for login contexts", e);
+        }
+    }
+
+    /**
+     * Derives a key from a configured key.
+     * 
+     * @param key the configured key
+     * @param purpose what the derived key is used for
+     * 
+     * @return the derived key
+     */
+    private static byte[] deriveKey(byte[] key, String purpose) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac.doFinal(toBytes(purpose));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to derive login context keys", e);
+        }
+    }
+
+    /**
+     * Compares two byte arrays in time which depends only on their length, not on their content.
+     * 
+     * @param expected the expected value
+     * @param actual the value to check
+     * 
+     * @return true if both arrays are equal, false if not
+     */
+    private static boolean isEqual(byte[] expected, byte[] actual) {
+        if (expected.length != actual.length) {
+            return false;
+        }
+
+        int difference = 0;
+        for (int i = 0; i < expected.length; i++) {
+            difference |= expected[i] ^ actual[i];
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Decodes the bytes of a sealed context.
+     * 
+     * @param sealedContext the sealed context
+     * 
+     * @return the bytes, or null if the value is not a validly encoded sealed context
+     */
+    private static byte[] decodeSealed(String sealedContext) {
+        if (!isSealed(sealedContext)) {
+            return null;
+        }
+        return decode(sealedContext.substring(SEALED_PREFIX.length()));
+    }
+
+    /**
+     * Encodes bytes in the URL and filename safe Base64 alphabet, without padding.
+     * 
+     * @param bytes the bytes
+     * 
+     * @return the encoded bytes
+     */
+    private static String encode(byte[] bytes) {
+        String base64 = Base64.encodeBytes(bytes, Base64.DONT_BREAK_LINES);
+        StringBuilder encoded = new StringBuilder(base64.length());
+        for (int i = 0; i < base64.length(); i++) {
+            char c = base64.charAt(i);
+            if (c == '+') {
+                encoded.append('-');
+            } else if (c == '/') {
+                encoded.append('_');
+            } else if (c != '=') {
+                encoded.append(c);
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Decodes bytes encoded in the URL and filename safe Base64 alphabet, without padding.
+     * 
+     * @param encoded the encoded bytes
+     * 
+     * @return the bytes, or null if the text is not validly encoded
+     */
+    private static byte[] decode(String encoded) {
+        if (encoded == null || encoded.length() % 4 == 1) {
+            return null;
+        }
+
+        StringBuilder base64 = new StringBuilder(encoded.length() + 2);
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            if (c == '-') {
+                base64.append('+');
+            } else if (c == '_') {
+                base64.append('/');
+            } else if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                base64.append(c);
+            } else {
+                return null;
+            }
+        }
+        while (base64.length() % 4 != 0) {
+            base64.append('=');
+        }
+        return Base64.decode(base64.toString());
+    }
+
+    /**
+     * Gets the UTF-8 encoding of a string.
+     * 
+     * @param string the string
+     * 
+     * @return the encoded string
+     */
+    private static byte[] toBytes(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Writes a long in big-endian order.
+     * 
+     * @param value the long
+     * @param buffer buffer to write to
+     * @param offset offset in the buffer
+     */
+    private static void writeLong(long value, byte[] buffer, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Reads a long in big-endian order.
+     * 
+     * @param buffer buffer to read from
+     * @param offset offset in the buffer
+     * 
+     * @return the long
+     */
+    private static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Generates a random, Base64 encoded, key.
+     * 
+     * @return the key
+     */
+    private static String generateKey() {
+        byte[] key = new byte[GENERATED_KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        return Base64.encodeBytes(key, Base64.DONT_BREAK_LINES);
+    }
+}
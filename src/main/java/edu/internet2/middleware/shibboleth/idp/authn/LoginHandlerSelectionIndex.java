@@ -0,0 +1,223 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.opensaml.saml2.core.AuthnContext;
+
+/**
+ * An immutable index of the configured login handlers used to select the handler that authenticates a user.
+ * 
+ * The index is built each time the login handlers are loaded. For every distinct list of requested authentication
+ * methods it computes, once, the methods able to satisfy the request and the subset of those whose handler supports
+ * passive authentication, so that selecting a handler for a request only requires looking at the user's session.
+ */
+public class LoginHandlerSelectionIndex {
+
+    /** Maximum number of distinct lists of requested methods for which a selection is kept. */
+    public static final int MAX_SELECTIONS = 256;
+
+    /** Login handlers, keyed by the authentication methods they support. */
+    private final Map<String, LoginHandler> loginHandlers;
+
+    /** Handler for {@link AuthnContext#PREVIOUS_SESSION_AUTHN_CTX}, may be null. */
+    private final LoginHandler previousSessionHandler;
+
+    /** Selection used when no particular methods are requested. */
+    private final Selection unrestrictedSelection;
+
+    /** Selections, keyed by the list of requested methods. */
+    private final ConcurrentMap<List<String>, Selection> selections;
+
+    /**
+     * Constructor.
+     * 
+     * @param handlers login handlers, keyed by the authentication methods they support
+     */
+    public LoginHandlerSelectionIndex(Map<String, LoginHandler> handlers) {
+        Map<String, LoginHandler> handlerMap = new LinkedHashMap<String, LoginHandler>();
+        if (handlers != null) {
+            handlerMap.putAll(handlers);
+        }
+        loginHandlers = Collections.unmodifiableMap(handlerMap);
+        previousSessionHandler = handlerMap.get(AuthnContext.PREVIOUS_SESSION_AUTHN_CTX);
+        unrestrictedSelection = buildSelection(null);
+        selections = new ConcurrentHashMap<List<String>, Selection>();
+    }
+
+    /**
+     * Gets the login handlers, keyed by the authentication methods they support.
+     * 
+     * @return unmodifiable map of login handlers
+     */
+    public Map<String, LoginHandler> getLoginHandlers() {
+        return loginHandlers;
+    }
+
+    /**
+     * Gets the login handler for an authentication method.
+     * 
+     * @param authenticationMethod the authentication method
+     * 
+     * @return the login handler or null if no handler supports the method
+     */
+    public LoginHandler getLoginHandler(String authenticationMethod) {
+        return loginHandlers.get(authenticationMethod);
+    }
+
+    /**
+     * Gets the handler which authenticates users based on their existing session.
+     * 
+     * @return previous session login handler, or null if none is configured
+     */
+    public LoginHandler getPreviousSessionHandler() {
+        return previousSessionHandler;
+    }
+
+    /**
+     * Gets the selection of methods which may satisfy a list of requested authentication methods.
+     * 
+     * @param requestedMethods requested authentication methods, null or empty if any method may be used
+     * 
+     * @return the selection, never null
+     */
+    public Selection getSelection(List<String> requestedMethods) {
+        if (requestedMethods == null || requestedMethods.isEmpty()) {
+            return unrestrictedSelection;
+        }
+
+        Selection selection = selections.get(requestedMethods);
+        if (selection == null) {
+            List<String> key = Collections.unmodifiableList(new ArrayList<String>(requestedMethods));
+            selection = buildSelection(key);
+            if (selections.size() < MAX_SELECTIONS) {
+                Selection existing = selections.putIfAbsent(key, selection);
+                if (existing != null) {
+                    selection = existing;
+                }
+            }
+        }
+        return selection;
+    }
+
+    /**
+     * Builds the selection of methods which may satisfy a list of requested authentication methods.
+     * 
+     * @param requestedMethods requested authentication methods, null if any method may be used
+     * 
+     * @return the selection
+     */
+    protected Selection buildSelection(List<String> requestedMethods) {
+        List<String> methods = new ArrayList<String>();
+        List<String> passiveMethods = new ArrayList<String>();
+        for (Map.Entry<String, LoginHandler> handler : loginHandlers.entrySet()) {
+            String method = handler.getKey();
+            if (method.equals(AuthnContext.PREVIOUS_SESSION_AUTHN_CTX)) {
+                continue;
+            }
+            if (requestedMethods != null && !requestedMethods.contains(method)) {
+                continue;
+            }
+            methods.add(method);
+            if (handler.getValue().supportsPassive()) {
+                passiveMethods.add(method);
+            }
+        }
+        return new Selection(requestedMethods, methods, passiveMethods);
+    }
+
+    /** The authentication methods which may satisfy a given list of requested methods. */
+    public static class Selection {
+
+        /** Requested methods, null if any method may be used. */
+        private final List<String> requestedMethods;
+
+        /** Methods which may be used, in the order the handlers were configured. */
+        private final List<String> methods;
+
+        /** Methods which may be used and whose handler supports passive authentication. */
+        private final List<String> passiveMethods;
+
+        /** Set of the methods which may be used. */
+        private final Set<String> methodSet;
+
+        /**
+         * Constructor.
+         * 
+         * @param requested requested methods, null if any method may be used
+         * @param supported methods which may be used
+         * @param passive methods which may be used and whose handler supports passive authentication
+         */
+        protected Selection(List<String> requested, List<String> supported, List<String> passive) {
+            requestedMethods = requested;
+            methods = Collections.unmodifiableList(supported);
+            passiveMethods = Collections.unmodifiableList(passive);
+            methodSet = Collections.unmodifiableSet(new HashSet<String>(supported));
+        }
+
+        /**
+         * Gets whether an authentication method satisfies the request.
+         * 
+         * @param method the authentication method
+         * 
+         * @return true if any method may be used or the method was requested
+         */
+        public boolean isRequested(String method) {
+            return requestedMethods == null || requestedMethods.contains(method);
+        }
+
+        /**
+         * Gets the methods which may be used, other than the previous session, in the order the handlers were
+         * configured.
+         * 
+         * @return unmodifiable list of methods
+         */
+        public List<String> getMethods() {
+            return methods;
+        }
+
+        /**
+         * Gets the methods which may be used and whose handler supports passive authentication.
+         * 
+         * @return unmodifiable list of methods
+         */
+        public List<String> getPassiveMethods() {
+            return passiveMethods;
+        }
+
+        /**
+         * Gets whether a method may be used.
+         * 
+         * @param method the method
+         * 
+         * @return true if the method may be used
+         */
+        public boolean contains(String method) {
+            return methodSet.contains(method);
+        }
+    }
+}
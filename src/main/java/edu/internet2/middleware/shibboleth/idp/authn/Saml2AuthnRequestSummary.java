@@ -0,0 +1,621 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml2.core.AuthnContextComparisonTypeEnumeration;
+import org.opensaml.saml2.core.AuthnContextDeclRef;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.NameIDPolicy;
+import org.opensaml.saml2.core.RequestedAuthnContext;
+import org.opensaml.saml2.core.RequesterID;
+import org.opensaml.saml2.core.Scoping;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.xml.schema.XSBooleanValue;
+
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecInput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecOutput;
+
+/**
+ * The parts of a SAML 2 {@link AuthnRequest} the SSO profile handler needs once the user has been authenticated: the
+ * request ID, its issuer, the assertion consumer service it asked for, its NameIDPolicy, subject, requested
+ * authentication contexts and scoping.
+ * 
+ * A summary is a handful of strings, so it is cheap to keep with a pending login, and {@link #buildAuthnRequest()}
+ * rebuilds a request object from it without parsing any XML. A request carrying content the summary does not hold,
+ * such as extensions or an encrypted subject identifier, is reported as not {@link #isComplete() complete} and must be
+ * unmarshalled from its serialized form instead. The signature of the request is never part of the summary, it has
+ * been checked when the request was first decoded.
+ */
+public class Saml2AuthnRequestSummary implements Serializable {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 4424795785046130599L;
+
+    /** Flag set if the summary holds everything the request carried but its signature. */
+    private static final int COMPLETE = 1;
+
+    /** Flag set if the request carried a NameIDPolicy. */
+    private static final int NAMEID_POLICY = 2;
+
+    /** Flag set if the request carried a subject name identifier. */
+    private static final int SUBJECT_NAMEID = 4;
+
+    /** Flag set if the request carried a RequestedAuthnContext. */
+    private static final int REQUESTED_AUTHN_CONTEXT = 8;
+
+    /** Flag set if the request carried a Scoping. */
+    private static final int SCOPING = 16;
+
+    /** Combination of the flags above. */
+    private int flags;
+
+    /** ID of the request. */
+    private String id;
+
+    /** SAML version of the request. */
+    private String version;
+
+    /** Issue instant of the request, in milliseconds since the epoch, or -1 if the request had none. */
+    private long issueInstant;
+
+    /** Destination of the request. */
+    private String destination;
+
+    /** Consent given for the request. */
+    private String consent;
+
+    /** Entity ID of the request issuer. */
+    private String issuer;
+
+    /** Format of the request issuer. */
+    private String issuerFormat;
+
+    /** Human readable name of the requester. */
+    private String providerName;
+
+    /** Whether the request forces authentication, null if not specified. */
+    private Boolean forceAuthn;
+
+    /** Whether the request requires passive authentication, null if not specified. */
+    private Boolean passive;
+
+    /** Location of the assertion consumer service the response is to be sent to. */
+    private String assertionConsumerServiceURL;
+
+    /** Index of the assertion consumer service the response is to be sent to. */
+    private Integer assertionConsumerServiceIndex;
+
+    /** Index of the attribute consuming service. */
+    private Integer attributeConsumingServiceIndex;
+
+    /** Binding the response is to be sent with. */
+    private String protocolBinding;
+
+    /** Format of the NameIDPolicy. */
+    private String nameIdPolicyFormat;
+
+    /** SPNameQualifier of the NameIDPolicy. */
+    private String nameIdPolicySPNameQualifier;
+
+    /** AllowCreate of the NameIDPolicy, null if not specified. */
+    private Boolean nameIdPolicyAllowCreate;
+
+    /** Value of the subject name identifier. */
+    private String subjectNameId;
+
+    /** Format of the subject name identifier. */
+    private String subjectNameIdFormat;
+
+    /** NameQualifier of the subject name identifier. */
+    private String subjectNameQualifier;
+
+    /** SPNameQualifier of the subject name identifier. */
+    private String subjectSPNameQualifier;
+
+    /** Comparison of the RequestedAuthnContext. */
+    private String authnContextComparison;
+
+    /** Requested authentication context classes. */
+    private String[] authnContextClassRefs;
+
+    /** Requested authentication context declarations. */
+    private String[] authnContextDeclRefs;
+
+    /** ProxyCount of the Scoping. */
+    private Integer proxyCount;
+
+    /** RequesterIDs of the Scoping. */
+    private String[] requesterIds;
+
+    /**
+     * Constructor.
+     * 
+     * @param request the request to summarize
+     */
+    public Saml2AuthnRequestSummary(AuthnRequest request) {
+        if (request == null) {
+            throw new IllegalArgumentException("Authentication request may not be null");
+        }
+
+        boolean complete = request.getExtensions() == null && request.getConditions() == null;
+
+        id = request.getID();
+        version = request.getVersion() != null ? request.getVersion().toString() : null;
+        issueInstant = request.getIssueInstant() != null ? request.getIssueInstant().getMillis() : -1;
+        destination = request.getDestination();
+        consent = request.getConsent();
+        if (request.getIssuer() != null) {
+            issuer = request.getIssuer().getValue();
+            issuerFormat = request.getIssuer().getFormat();
+            complete &= request.getIssuer().getNameQualifier() == null
+                    && request.getIssuer().getSPNameQualifier() == null;
+        }
+        providerName = request.getProviderName();
+        forceAuthn = toBoolean(request.isForceAuthnXSBoolean());
+        passive = toBoolean(request.isPassiveXSBoolean());
+        assertionConsumerServiceURL = request.getAssertionConsumerServiceURL();
+        assertionConsumerServiceIndex = request.getAssertionConsumerServiceIndex();
+        attributeConsumingServiceIndex = request.getAttributeConsumingServiceIndex();
+        protocolBinding = request.getProtocolBinding();
+
+        NameIDPolicy nameIdPolicy = request.getNameIDPolicy();
+        if (nameIdPolicy != null) {
+            flags |= NAMEID_POLICY;
+            nameIdPolicyFormat = nameIdPolicy.getFormat();
+            nameIdPolicySPNameQualifier = nameIdPolicy.getSPNameQualifier();
+            nameIdPolicyAllowCreate = toBoolean(nameIdPolicy.getAllowCreateXSBoolean());
+        }
+
+        Subject subject = request.getSubject();
+        if (subject != null) {
+            complete &= subject.getBaseID() == null && subject.getEncryptedID() == null
+                    && subject.getSubjectConfirmations().isEmpty();
+            NameID nameId = subject.getNameID();
+            if (nameId != null) {
+                flags |= SUBJECT_NAMEID;
+                subjectNameId = nameId.getValue();
+                subjectNameIdFormat = nameId.getFormat();
+                subjectNameQualifier = nameId.getNameQualifier();
+                subjectSPNameQualifier = nameId.getSPNameQualifier();
+                complete &= nameId.getSPProvidedID() == null;
+            }
+        }
+
+        RequestedAuthnContext requestedAuthnContext = request.getRequestedAuthnContext();
+        if (requestedAuthnContext != null) {
+            flags |= REQUESTED_AUTHN_CONTEXT;
+            if (requestedAuthnContext.getComparison() != null) {
+                authnContextComparison = requestedAuthnContext.getComparison().toString();
+            }
+            List<AuthnContextClassRef> classRefs = requestedAuthnContext.getAuthnContextClassRefs();
+            authnContextClassRefs = new String[classRefs.size()];
+            for (int i = 0; i < authnContextClassRefs.length; i++) {
+                authnContextClassRefs[i] = classRefs.get(i).getAuthnContextClassRef();
+            }
+            List<AuthnContextDeclRef> declRefs = requestedAuthnContext.getAuthnContextDeclRefs();
+            authnContextDeclRefs = new String[declRefs.size()];
+            for (int i = 0; i < authnContextDeclRefs.length; i++) {
+                authnContextDeclRefs[i] = declRefs.get(i).getAuthnContextDeclRef();
+            }
+        }
+
+        Scoping scoping = request.getScoping();
+        if (scoping != null) {
+            flags |= SCOPING;
+            complete &= scoping.getIDPList() == null;
+            proxyCount = scoping.getProxyCount();
+            List<RequesterID> requesters = scoping.getRequesterIDs();
+            requesterIds = new String[requesters.size()];
+            for (int i = 0; i < requesterIds.length; i++) {
+                requesterIds[i] = requesters.get(i).getRequesterID();
+            }
+        }
+
+        if (complete) {
+            flags |= COMPLETE;
+        }
+    }
+
+    /** Constructor used when decoding a summary. */
+    private Saml2AuthnRequestSummary() {
+    }
+
+    /**
+     * Gets whether the summary holds everything carried by the request, other than its signature. The request object
+     * built from an incomplete summary lacks some of the content of the original request.
+     * 
+     * @return true if the summary holds everything carried by the request
+     */
+    public boolean isComplete() {
+        return (flags & COMPLETE) != 0;
+    }
+
+    /**
+     * Gets the ID of the request.
+     * 
+     * @return ID of the request
+     */
+    public String getID() {
+        return id;
+    }
+
+    /**
+     * Gets the entity ID of the request issuer.
+     * 
+     * @return entity ID of the request issuer
+     */
+    public String getIssuer() {
+        return issuer;
+    }
+
+    /**
+     * Gets the location of the assertion consumer service the response is to be sent to.
+     * 
+     * @return location of the assertion consumer service, may be null
+     */
+    public String getAssertionConsumerServiceURL() {
+        return assertionConsumerServiceURL;
+    }
+
+    /**
+     * Gets the index of the assertion consumer service the response is to be sent to.
+     * 
+     * @return index of the assertion consumer service, may be null
+     */
+    public Integer getAssertionConsumerServiceIndex() {
+        return assertionConsumerServiceIndex;
+    }
+
+    /**
+     * Gets the binding the response is to be sent with.
+     * 
+     * @return binding the response is to be sent with, may be null
+     */
+    public String getProtocolBinding() {
+        return protocolBinding;
+    }
+
+    /**
+     * Gets the format of the NameIDPolicy.
+     * 
+     * @return format of the NameIDPolicy, may be null
+     */
+    public String getNameIDPolicyFormat() {
+        return nameIdPolicyFormat;
+    }
+
+    /**
+     * Gets the SPNameQualifier of the NameIDPolicy.
+     * 
+     * @return SPNameQualifier of the NameIDPolicy, may be null
+     */
+    public String getNameIDPolicySPNameQualifier() {
+        return nameIdPolicySPNameQualifier;
+    }
+
+    /**
+     * Builds a request object holding the content of the summary. No XML is parsed.
+     * 
+     * @return the request object
+     */
+    public AuthnRequest buildAuthnRequest() {
+        AuthnRequest request = buildObject(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        request.setID(id);
+        if (version != null) {
+            request.setVersion(SAMLVersion.valueOf(version));
+        }
+        if (issueInstant != -1) {
+            request.setIssueInstant(new DateTime(issueInstant, ISOChronology.getInstanceUTC()));
+        }
+        request.setDestination(destination);
+        request.setConsent(consent);
+        if (issuer != null) {
+            Issuer requestIssuer = buildObject(Issuer.DEFAULT_ELEMENT_NAME);
+            requestIssuer.setValue(issuer);
+            requestIssuer.setFormat(issuerFormat);
+            request.setIssuer(requestIssuer);
+        }
+        request.setProviderName(providerName);
+        if (forceAuthn != null) {
+            request.setForceAuthn(new XSBooleanValue(forceAuthn, false));
+        }
+        if (passive != null) {
+            request.setIsPassive(new XSBooleanValue(passive, false));
+        }
+        request.setAssertionConsumerServiceURL(assertionConsumerServiceURL);
+        request.setAssertionConsumerServiceIndex(assertionConsumerServiceIndex);
+        request.setAttributeConsumingServiceIndex(attributeConsumingServiceIndex);
+        request.setProtocolBinding(protocolBinding);
+
+        if ((flags & NAMEID_POLICY) != 0) {
+            NameIDPolicy nameIdPolicy = buildObject(NameIDPolicy.DEFAULT_ELEMENT_NAME);
+            nameIdPolicy.setFormat(nameIdPolicyFormat);
+            nameIdPolicy.setSPNameQualifier(nameIdPolicySPNameQualifier);
+            if (nameIdPolicyAllowCreate != null) {
+                nameIdPolicy.setAllowCreate(new XSBooleanValue(nameIdPolicyAllowCreate, false));
+            }
+            request.setNameIDPolicy(nameIdPolicy);
+        }
+
+        if ((flags & SUBJECT_NAMEID) != 0) {
+            NameID nameId = buildObject(NameID.DEFAULT_ELEMENT_NAME);
+            nameId.setValue(subjectNameId);
+            nameId.setFormat(subjectNameIdFormat);
+            nameId.setNameQualifier(subjectNameQualifier);
+            nameId.setSPNameQualifier(subjectSPNameQualifier);
+            Subject subject = buildObject(Subject.DEFAULT_ELEMENT_NAME);
+            subject.setNameID(nameId);
+            request.setSubject(subject);
+        }
+
+        if ((flags & REQUESTED_AUTHN_CONTEXT) != 0) {
+            RequestedAuthnContext requestedAuthnContext = buildObject(RequestedAuthnContext.DEFAULT_ELEMENT_NAME);
+            requestedAuthnContext.setComparison(toComparison(authnContextComparison));
+            for (String classRef : authnContextClassRefs) {
+                AuthnContextClassRef ref = buildObject(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+                ref.setAuthnContextClassRef(classRef);
+                requestedAuthnContext.getAuthnContextClassRefs().add(ref);
+            }
+            for (String declRef : authnContextDeclRefs) {
+                AuthnContextDeclRef ref = buildObject(AuthnContextDeclRef.DEFAULT_ELEMENT_NAME);
+                ref.setAuthnContextDeclRef(declRef);
+                requestedAuthnContext.getAuthnContextDeclRefs().add(ref);
+            }
+            request.setRequestedAuthnContext(requestedAuthnContext);
+        }
+
+        if ((flags & SCOPING) != 0) {
+            Scoping scoping = buildObject(Scoping.DEFAULT_ELEMENT_NAME);
+            scoping.setProxyCount(proxyCount);
+            for (String requesterId : requesterIds) {
+                RequesterID requester = buildObject(RequesterID.DEFAULT_ELEMENT_NAME);
+                requester.setRequesterID(requesterId);
+                scoping.getRequesterIDs().add(requester);
+            }
+            request.setScoping(scoping);
+        }
+
+        return request;
+    }
+
+    /**
+     * Encodes the summary.
+     * 
+     * @param out output to encode the summary to
+     */
+    void encode(CodecOutput out) {
+        out.writeVarInt(flags);
+        out.writeString(id);
+        out.writeDictionaryString(version);
+        out.writeSignedVarLong(issueInstant);
+        out.writeDictionaryString(destination);
+        out.writeDictionaryString(consent);
+        out.writeDictionaryString(issuer);
+        out.writeDictionaryString(issuerFormat);
+        out.writeDictionaryString(providerName);
+        out.writeVarInt(encodeBoolean(forceAuthn) | encodeBoolean(passive) << 2
+                | encodeBoolean(nameIdPolicyAllowCreate) << 4);
+        out.writeDictionaryString(assertionConsumerServiceURL);
+        out.writeSignedVarLong(encodeIndex(assertionConsumerServiceIndex));
+        out.writeSignedVarLong(encodeIndex(attributeConsumingServiceIndex));
+        out.writeDictionaryString(protocolBinding);
+        out.writeDictionaryString(nameIdPolicyFormat);
+        out.writeDictionaryString(nameIdPolicySPNameQualifier);
+        out.writeString(subjectNameId);
+        out.writeDictionaryString(subjectNameIdFormat);
+        out.writeDictionaryString(subjectNameQualifier);
+        out.writeDictionaryString(subjectSPNameQualifier);
+        out.writeDictionaryString(authnContextComparison);
+        encodeStrings(authnContextClassRefs, out);
+        encodeStrings(authnContextDeclRefs, out);
+        out.writeSignedVarLong(encodeIndex(proxyCount));
+        encodeStrings(requesterIds, out);
+    }
+
+    /**
+     * Decodes a summary.
+     * 
+     * @param in input to decode the summary from
+     * 
+     * @return the summary
+     * 
+     * @throws IOException thrown if the summary can not be decoded
+     */
+    static Saml2AuthnRequestSummary decode(CodecInput in) throws IOException {
+        Saml2AuthnRequestSummary summary = new Saml2AuthnRequestSummary();
+        summary.flags = in.readVarInt();
+        summary.id = in.readString();
+        summary.version = in.readDictionaryString();
+        summary.issueInstant = in.readSignedVarLong();
+        summary.destination = in.readDictionaryString();
+        summary.consent = in.readDictionaryString();
+        summary.issuer = in.readDictionaryString();
+        summary.issuerFormat = in.readDictionaryString();
+        summary.providerName = in.readDictionaryString();
+        int booleans = in.readVarInt();
+        summary.forceAuthn = decodeBoolean(booleans);
+        summary.passive = decodeBoolean(booleans >> 2);
+        summary.nameIdPolicyAllowCreate = decodeBoolean(booleans >> 4);
+        summary.assertionConsumerServiceURL = in.readDictionaryString();
+        summary.assertionConsumerServiceIndex = decodeIndex(in.readSignedVarLong());
+        summary.attributeConsumingServiceIndex = decodeIndex(in.readSignedVarLong());
+        summary.protocolBinding = in.readDictionaryString();
+        summary.nameIdPolicyFormat = in.readDictionaryString();
+        summary.nameIdPolicySPNameQualifier = in.readDictionaryString();
+        summary.subjectNameId = in.readString();
+        summary.subjectNameIdFormat = in.readDictionaryString();
+        summary.subjectNameQualifier = in.readDictionaryString();
+        summary.subjectSPNameQualifier = in.readDictionaryString();
+        summary.authnContextComparison = in.readDictionaryString();
+        summary.authnContextClassRefs = decodeStrings(in);
+        summary.authnContextDeclRefs = decodeStrings(in);
+        summary.proxyCount = decodeIndex(in.readSignedVarLong());
+        summary.requesterIds = decodeStrings(in);
+        return summary;
+    }
+
+    /**
+     * Builds a SAML object.
+     * 
+     * @param <T> type of the object
+     * @param name element name of the object
+     * 
+     * @return the object
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends SAMLObject> T buildObject(QName name) {
+        return ((SAMLObjectBuilder<T>) Configuration.getBuilderFactory().getBuilder(name)).buildObject();
+    }
+
+    /**
+     * Converts a schema boolean into a boolean.
+     * 
+     * @param value the schema boolean, may be null
+     * 
+     * @return the boolean, or null if none was given
+     */
+    private static Boolean toBoolean(XSBooleanValue value) {
+        return value != null ? value.getValue() : null;
+    }
+
+    /**
+     * Converts the textual form of a comparison back into its enumeration.
+     * 
+     * @param comparison textual form of the comparison, may be null
+     * 
+     * @return the comparison, or null if none was given
+     */
+    private static AuthnContextComparisonTypeEnumeration toComparison(String comparison) {
+        AuthnContextComparisonTypeEnumeration[] comparisons = { AuthnContextComparisonTypeEnumeration.EXACT,
+                AuthnContextComparisonTypeEnumeration.MINIMUM, AuthnContextComparisonTypeEnumeration.MAXIMUM,
+                AuthnContextComparisonTypeEnumeration.BETTER, };
+        for (AuthnContextComparisonTypeEnumeration candidate : comparisons) {
+            if (candidate.toString().equals(comparison)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Encodes an optional boolean into two bits.
+     * 
+     * @param value the boolean, may be null
+     * 
+     * @return 0 if the boolean is null, 1 if false and 2 if true
+     */
+    private static int encodeBoolean(Boolean value) {
+        if (value == null) {
+            return 0;
+        }
+        return value.booleanValue() ? 2 : 1;
+    }
+
+    /**
+     * Decodes an optional boolean from the two lowest bits of a number.
+     * 
+     * @param bits the encoded boolean
+     * 
+     * @return the boolean, may be null
+     */
+    private static Boolean decodeBoolean(int bits) {
+        switch (bits & 3) {
+            case 1:
+                return Boolean.FALSE;
+            case 2:
+                return Boolean.TRUE;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Encodes an optional non-negative number.
+     * 
+     * @param value the number, may be null
+     * 
+     * @return -1 if the number is null, the number otherwise
+     */
+    private static long encodeIndex(Integer value) {
+        return value != null ? value.longValue() : -1;
+    }
+
+    /**
+     * Decodes an optional non-negative number.
+     * 
+     * @param value the encoded number
+     * 
+     * @return the number, or null if none was encoded
+     */
+    private static Integer decodeIndex(long value) {
+        return value >= 0 ? Integer.valueOf((int) value) : null;
+    }
+
+    /**
+     * Encodes an optional array of strings.
+     * 
+     * @param strings the strings, may be null
+     * @param out output to encode the strings to
+     */
+    private static void encodeStrings(String[] strings, CodecOutput out) {
+        if (strings == null) {
+            out.writeVarInt(0);
+            return;
+        }
+        out.writeVarInt(strings.length + 1);
+        for (String string : strings) {
+            out.writeDictionaryString(string);
+        }
+    }
+
+    /**
+     * Decodes an optional array of strings.
+     * 
+     * @param in input to decode the strings from
+     * 
+     * @return the strings, may be null
+     * 
+     * @throws IOException thrown if the strings can not be decoded
+     */
+    private static String[] decodeStrings(CodecInput in) throws IOException {
+        int length = in.readVarInt();
+        if (length == 0) {
+            return null;
+        }
+        String[] strings = new String[length - 1];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readDictionaryString();
+        }
+        return strings;
+    }
+}
@@ -17,10 +17,16 @@
 
 package edu.internet2.middleware.shibboleth.idp.authn;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
-import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.opensaml.Configuration;
 import org.opensaml.saml2.core.AuthnContext;
@@ -47,11 +53,18 @@ import org.w3c.dom.Element;
  * A SAML 2.0 {@link LoginContext}.
  * 
  * This class can interpret {@link RequestedAuthnContext} and act accordingly.
+ * 
+ * The authentication request is not kept as an object. The context holds a {@link Saml2AuthnRequestSummary} of it,
+ * which is all the SSO profile handler needs to build the response, and the serialized request compressed with
+ * DEFLATE, which is only inflated and parsed if the full request is asked for.
  */
 public class Saml2LoginContext extends LoginContext implements Serializable {
 
     /** Serial version UID. */
-    private static final long serialVersionUID = -7117092606828289070L;
+    private static final long serialVersionUID = 1922484706453011557L;
+
+    /** Character encoding of the serialized authentication request. */
+    private static final String REQUEST_ENCODING = "UTF-8";
 
     /** Relay state from authentication request. */
     private String relayState;
@@ -59,8 +72,11 @@ public class Saml2LoginContext extends LoginContext implements Serializable {
     /** The authentication request. */
     private transient AuthnRequest authnRequest;
 
-    /** Serialized authentication request. */
-    private String serialAuthnRequest;
+    /** Serialized authentication request, compressed with DEFLATE. */
+    private byte[] deflatedAuthnRequest;
+
+    /** Summary of the authentication request, null until computed if the context was restored without one. */
+    private Saml2AuthnRequestSummary authnRequestSummary;
 
     /** Unsolicited SSO indicator. */
     private boolean unsolicited;
@@ -83,16 +99,22 @@ public class Saml2LoginContext extends LoginContext implements Serializable {
         
         setRelyingParty(relyingParty);
         relayState = state;
-        authnRequest = request;
-        serialAuthnRequest = serializeRequest(request);
+        deflatedAuthnRequest = deflate(serializeRequest(request));
+        authnRequestSummary = new Saml2AuthnRequestSummary(request);
 
         setForceAuthRequired(request.isForceAuthn());
         setPassiveAuthRequired(request.isPassive());
         getRequestedAuthenticationMethods().addAll(extractRequestedAuthenticationMethods(request));
     }
 
+    /** Creates an empty instance of Saml2LoginContext, to be restored by {@link Saml2LoginContextCodec}. */
+    Saml2LoginContext() {
+        super();
+    }
+
     /**
-     * Gets the authentication request object.
+     * Gets the authentication request object. The request is unmarshalled from its serialized form the first time it
+     * is asked for.
      * 
      * @return the authentication request object
      * 
@@ -100,9 +122,13 @@ public class Saml2LoginContext extends LoginContext implements Serializable {
      */
     public synchronized AuthnRequest getAuthenticiationRequestXmlObject() throws UnmarshallingException {
         if (authnRequest == null) {
+            if (deflatedAuthnRequest == null) {
+                throw new UnmarshallingException("Login context does not hold a serialized authentication request");
+            }
             try {
                 ParserPool parser = Configuration.getParserPool();
-                Document requestDoc = parser.parse(new StringReader(serialAuthnRequest));
+                Document requestDoc = parser.parse(new InflaterInputStream(new ByteArrayInputStream(
+                        deflatedAuthnRequest)));
                 Unmarshaller requestUnmarshaller =
                         Configuration.getUnmarshallerFactory().getUnmarshaller(AuthnRequest.TYPE_NAME);
                 authnRequest = (AuthnRequest) requestUnmarshaller.unmarshall(requestDoc.getDocumentElement());
@@ -114,6 +140,38 @@ public class Saml2LoginContext extends LoginContext implements Serializable {
         return authnRequest;
     }
 
+    /**
+     * Gets the summary of the authentication request.
+     * 
+     * @return summary of the authentication request
+     * 
+     * @throws UnmarshallingException thrown if the context was restored without a summary and the serialized form of
+     *             the request, from which it is then computed, can not be unmarshalled
+     */
+    public synchronized Saml2AuthnRequestSummary getAuthenticationRequestSummary() throws UnmarshallingException {
+        if (authnRequestSummary == null) {
+            authnRequestSummary = new Saml2AuthnRequestSummary(getAuthenticiationRequestXmlObject());
+        }
+        return authnRequestSummary;
+    }
+
+    /**
+     * Gets an authentication request object holding what is needed to respond to the request. If the summary of the
+     * request is complete the object is built from it without parsing any XML, otherwise the serialized request is
+     * unmarshalled.
+     * 
+     * @return the authentication request object
+     * 
+     * @throws UnmarshallingException thrown if the serialized form of the request can not be unmarshalled
+     */
+    public AuthnRequest getResponseAuthenticationRequest() throws UnmarshallingException {
+        Saml2AuthnRequestSummary summary = getAuthenticationRequestSummary();
+        if (summary.isComplete()) {
+            return summary.buildAuthnRequest();
+        }
+        return getAuthenticiationRequestXmlObject();
+    }
+
     /**
      * Gets the serialized authentication request that started the login process.
      * 
@@ -122,7 +180,29 @@ public class Saml2LoginContext extends LoginContext implements Serializable {
      * @throws UnmarshallingException thrown if the serialized form on the authentication request can be unmarshalled
      */
     public String getAuthenticationRequest() throws UnmarshallingException {
-        return serialAuthnRequest;
+        try {
+            return inflate(getDeflatedAuthenticationRequest());
+        } catch (IOException e) {
+            throw new UnmarshallingException("Unable to inflate serialized authentication request", e);
+        }
+    }
+
+    /**
+     * Gets the serialized authentication request, compressed with DEFLATE.
+     * 
+     * @return the compressed serialized authentication request
+     */
+    synchronized byte[] getDeflatedAuthenticationRequest() {
+        return deflatedAuthnRequest;
+    }
+
+    /**
+     * Gets the summary of the authentication request, if one has been computed.
+     * 
+     * @return summary of the authentication request, may be null
+     */
+    synchronized Saml2AuthnRequestSummary getAuthenticationRequestSummaryIfPresent() {
+        return authnRequestSummary;
     }
 
     /**
@@ -152,6 +232,32 @@ public class Saml2LoginContext extends LoginContext implements Serializable {
         unsolicited = isUnsolicited;
     }
 
+    /**
+     * Restores the relay state and the serialized authentication request. The request is only unmarshalled if it is
+     * asked for.
+     * 
+     * @param state relay state from the authentication request
+     * @param serializedRequest serialized authentication request
+     */
+    synchronized void restoreAuthenticationRequest(String state, String serializedRequest) {
+        restoreAuthenticationRequest(state, deflate(serializedRequest), null);
+    }
+
+    /**
+     * Restores the relay state, the compressed serialized authentication request and its summary.
+     * 
+     * @param state relay state from the authentication request
+     * @param deflatedRequest serialized authentication request, compressed with DEFLATE
+     * @param summary summary of the authentication request, computed from the request when first needed if null
+     */
+    synchronized void restoreAuthenticationRequest(String state, byte[] deflatedRequest,
+            Saml2AuthnRequestSummary summary) {
+        relayState = state;
+        deflatedAuthnRequest = deflatedRequest;
+        authnRequestSummary = summary;
+        authnRequest = null;
+    }
+
     /**
      * Serializes an authentication request into a string.
      * 
@@ -169,6 +275,54 @@ public class Saml2LoginContext extends LoginContext implements Serializable {
         return writer.toString();
     }
 
+    /**
+     * Compresses a serialized request with DEFLATE.
+     * 
+     * @param serializedRequest the serialized request, may be null
+     * 
+     * @return the compressed request, or null if no request was given
+     */
+    private static byte[] deflate(String serializedRequest) {
+        if (serializedRequest == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(serializedRequest.length() / 2);
+        try {
+            OutputStream out = new DeflaterOutputStream(bytes);
+            out.write(serializedRequest.getBytes(REQUEST_ENCODING));
+            out.close();
+        } catch (IOException e) {
+            // UTF-8 is always supported and a ByteArrayOutputStream does not fail
+            throw new IllegalStateException("Unable to compress serialized authentication request", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Inflates a serialized request compressed with DEFLATE.
+     * 
+     * @param deflatedRequest the compressed request, may be null
+     * 
+     * @return the serialized request, or null if no request was given
+     * 
+     * @throws IOException thrown if the request is not validly compressed
+     */
+    private static String inflate(byte[] deflatedRequest) throws IOException {
+        if (deflatedRequest == null) {
+            return null;
+        }
+
+        InputStream in = new InflaterInputStream(new ByteArrayInputStream(deflatedRequest));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(deflatedRequest.length * 4);
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toString(REQUEST_ENCODING);
+    }
+
     /**
      * Extracts the authentication methods requested within the request.
      * 
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.io.IOException;
+
+import org.opensaml.xml.io.UnmarshallingException;
+
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecInput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecOutput;
+
+/**
+ * Codec for {@link Saml2LoginContext}. The authentication request is carried as its summary along with its compressed
+ * serialized form, which is only unmarshalled again if the decoded login context is asked for the full request.
+ * 
+ * Version 1 carried the uncompressed serialized request. Version 2 leaves that field empty and appends the compressed
+ * request and its summary.
+ */
+public class Saml2LoginContextCodec extends AbstractLoginContextCodec<Saml2LoginContext> {
+
+    /** Type ID of the codec. */
+    public static final int TYPE_ID = 23;
+
+    /** {@inheritDoc} */
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    /** {@inheritDoc} */
+    public Class<Saml2LoginContext> getType() {
+        return Saml2LoginContext.class;
+    }
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return 2;
+    }
+
+    /** {@inheritDoc} */
+    protected Saml2LoginContext newLoginContext() {
+        return new Saml2LoginContext();
+    }
+
+    /** {@inheritDoc} */
+    protected void encodeFields(Saml2LoginContext loginContext, CodecOutput out) throws IOException {
+        Saml2AuthnRequestSummary summary;
+        try {
+            summary = loginContext.getAuthenticationRequestSummary();
+        } catch (UnmarshallingException e) {
+            throw new IOException("Unable to read the authentication request of the login context: "
+                    + e.getMessage());
+        }
+
+        out.writeString(loginContext.getRelayState());
+        out.writeString(null);
+        out.writeBoolean(loginContext.isUnsolicited());
+        out.writeBytes(loginContext.getDeflatedAuthenticationRequest());
+        summary.encode(out);
+    }
+
+    /** {@inheritDoc} */
+    protected void decodeFields(Saml2LoginContext loginContext, CodecInput in, int version) throws IOException {
+        String relayState = in.readString();
+        String serializedRequest = in.readString();
+        loginContext.setUnsolicited(in.readBoolean());
+        if (version < 2) {
+            loginContext.restoreAuthenticationRequest(relayState, serializedRequest);
+        } else {
+            byte[] deflatedRequest = in.readBytes();
+            loginContext.restoreAuthenticationRequest(relayState, deflatedRequest, Saml2AuthnRequestSummary
+                    .decode(in));
+        }
+    }
+}
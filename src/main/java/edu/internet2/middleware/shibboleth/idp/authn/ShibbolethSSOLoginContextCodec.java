@@ -0,0 +1,63 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.io.IOException;
+
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecInput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecOutput;
+
+/** Codec for {@link ShibbolethSSOLoginContext}. */
+public class ShibbolethSSOLoginContextCodec extends AbstractLoginContextCodec<ShibbolethSSOLoginContext> {
+
+    /** Type ID of the codec. */
+    public static final int TYPE_ID = 22;
+
+    /** {@inheritDoc} */
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    /** {@inheritDoc} */
+    public Class<ShibbolethSSOLoginContext> getType() {
+        return ShibbolethSSOLoginContext.class;
+    }
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return 1;
+    }
+
+    /** {@inheritDoc} */
+    protected ShibbolethSSOLoginContext newLoginContext() {
+        return new ShibbolethSSOLoginContext();
+    }
+
+    /** {@inheritDoc} */
+    protected void encodeFields(ShibbolethSSOLoginContext loginContext, CodecOutput out) throws IOException {
+        out.writeString(loginContext.getSpAssertionConsumerService());
+        out.writeString(loginContext.getSpTarget());
+    }
+
+    /** {@inheritDoc} */
+    protected void decodeFields(ShibbolethSSOLoginContext loginContext, CodecInput in, int version)
+            throws IOException {
+        loginContext.setSpAssertionConsumerService(in.readString());
+        loginContext.setSpTarget(in.readString());
+    }
+}
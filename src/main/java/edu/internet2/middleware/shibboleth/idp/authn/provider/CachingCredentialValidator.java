@@ -0,0 +1,354 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.Principal;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.security.auth.Subject;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link CredentialValidator} which remembers, for a short time, the outcome of validations performed by another
+ * validator, so that repeated logins with the same credentials do not reach the authentication backend.
+ * 
+ * One entry is kept per username, holding a salted PBKDF2 hash of the username and password together with either the
+ * validated subject or, for credentials the backend rejected with a {@link FailedLoginException}, a marker of the
+ * failure. A login is answered from the cache only if its credentials hash to the stored value and the entry has not
+ * expired; any other outcome of the backend, such as it being unavailable, is not cached. Passwords themselves are never
+ * stored and the salt is generated at startup. The cache holds at most a fixed number of entries and evicts the least
+ * recently used one when full.
+ */
+public class CachingCredentialValidator implements CredentialValidator {
+
+    /** Default maximum number of cached entries. */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /** Default number of PBKDF2 iterations used to hash credentials. */
+    public static final int DEFAULT_ITERATIONS = 2048;
+
+    /** PBKDF2 algorithm used to hash credentials. */
+    private static final String KDF_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    /** Length, in bits, of the credential hashes. */
+    private static final int HASH_LENGTH = 256;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CachingCredentialValidator.class);
+
+    /** Validator whose outcomes are cached. */
+    private final CredentialValidator delegate;
+
+    /** Time, in milliseconds, a successful validation is remembered. */
+    private final long successLifetime;
+
+    /** Time, in milliseconds, a rejected credential is remembered. */
+    private final long failureLifetime;
+
+    /** Number of PBKDF2 iterations used to hash credentials. */
+    private final int iterations;
+
+    /** Salt of the credential hashes. */
+    private final byte[] salt;
+
+    /** Cached entries keyed by username, in access order. */
+    private final LinkedHashMap<String, CacheEntry> entries;
+
+    /** Number of logins answered with a cached success. */
+    private final AtomicLong hits;
+
+    /** Number of logins answered with a cached failure. */
+    private final AtomicLong negativeHits;
+
+    /** Number of logins passed to the delegate. */
+    private final AtomicLong misses;
+
+    /** Number of entries evicted to respect the maximum size. */
+    private final AtomicLong evictions;
+
+    /**
+     * Constructor.
+     * 
+     * @param validator validator whose outcomes are cached
+     * @param successTtl time, in milliseconds, a successful validation is remembered, 0 not to remember them
+     * @param failureTtl time, in milliseconds, rejected credentials are remembered, 0 not to remember them
+     */
+    public CachingCredentialValidator(CredentialValidator validator, long successTtl, long failureTtl) {
+        this(validator, successTtl, failureTtl, DEFAULT_MAX_ENTRIES, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param validator validator whose outcomes are cached
+     * @param successTtl time, in milliseconds, a successful validation is remembered, 0 not to remember them
+     * @param failureTtl time, in milliseconds, rejected credentials are remembered, 0 not to remember them
+     * @param maxEntries maximum number of cached entries
+     * @param hashIterations number of PBKDF2 iterations used to hash credentials
+     */
+    public CachingCredentialValidator(CredentialValidator validator, long successTtl, long failureTtl,
+            final int maxEntries, int hashIterations) {
+        if (validator == null) {
+            throw new IllegalArgumentException("Credential validator may not be null");
+        }
+        if (successTtl < 0 || failureTtl < 0) {
+            throw new IllegalArgumentException("Cache lifetimes may not be negative");
+        }
+        if (maxEntries < 1 || hashIterations < 1) {
+            throw new IllegalArgumentException("Maximum entries and hash iterations must be greater than zero");
+        }
+
+        delegate = validator;
+        successLifetime = successTtl;
+        failureLifetime = failureTtl;
+        iterations = hashIterations;
+        salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        hits = new AtomicLong();
+        negativeHits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+        entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            /** Serial version UID. */
+            private static final long serialVersionUID = -2372612396577318545L;
+
+            /** {@inheritDoc} */
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** {@inheritDoc} */
+    public Subject validate(String username, String password) throws LoginException {
+        byte[] hash = hash(username, password);
+        long now = System.currentTimeMillis();
+
+        synchronized (entries) {
+            CacheEntry entry = entries.get(username);
+            if (entry != null) {
+                if (entry.expiration <= now) {
+                    entries.remove(username);
+                } else if (isEqual(entry.hash, hash)) {
+                    if (entry.subject != null) {
+                        hits.incrementAndGet();
+                        log.debug("Credentials of user {} validated from the cache", username);
+                        return copy(entry.subject);
+                    }
+                    negativeHits.incrementAndGet();
+                    log.debug("Credentials of user {} rejected from the cache", username);
+                    throw new FailedLoginException("Invalid credentials");
+                }
+            }
+        }
+
+        misses.incrementAndGet();
+        Subject subject;
+        try {
+            subject = delegate.validate(username, password);
+        } catch (FailedLoginException e) {
+            if (failureLifetime > 0) {
+                store(username, new CacheEntry(hash, null, System.currentTimeMillis() + failureLifetime));
+            }
+            throw e;
+        }
+
+        if (successLifetime > 0) {
+            store(username, new CacheEntry(hash, copy(subject), System.currentTimeMillis() + successLifetime));
+        } else {
+            remove(username);
+        }
+        return subject;
+    }
+
+    /**
+     * Forgets the cached outcome for a username, for example because the user's password changed.
+     * 
+     * @param username the username
+     */
+    public void remove(String username) {
+        synchronized (entries) {
+            entries.remove(username);
+        }
+    }
+
+    /**
+     * Gets the number of cached entries.
+     * 
+     * @return number of cached entries
+     */
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Gets the number of logins answered with a cached success.
+     * 
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of logins answered with a cached failure.
+     * 
+     * @return number of negative cache hits
+     */
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    /**
+     * Gets the number of logins passed to the underlying validator.
+     * 
+     * @return number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of entries evicted to respect the maximum size of the cache.
+     * 
+     * @return number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Stores an entry, replacing any entry for the same username.
+     * 
+     * @param username the username
+     * @param entry the entry
+     */
+    private void store(String username, CacheEntry entry) {
+        synchronized (entries) {
+            entries.put(username, entry);
+        }
+    }
+
+    /**
+     * Computes the salted hash of a username and password.
+     * 
+     * @param username the username
+     * @param password the password
+     * 
+     * @return the hash
+     * 
+     * @throws LoginException thrown if the hash can not be computed
+     */
+    protected byte[] hash(String username, String password) throws LoginException {
+        byte[] user;
+        try {
+            user = username.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new LoginException("UTF-8 encoding is not supported");
+        }
+        byte[] userSalt = new byte[salt.length + user.length];
+        System.arraycopy(salt, 0, userSalt, 0, salt.length);
+        System.arraycopy(user, 0, userSalt, salt.length, user.length);
+
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), userSalt, iterations, HASH_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(KDF_ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            LoginException le = new LoginException("Unable to hash credentials");
+            le.initCause(e);
+            throw le;
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Compares two hashes in constant time.
+     * 
+     * @param a first hash
+     * @param b second hash
+     * 
+     * @return true if the hashes are equal
+     */
+    private static boolean isEqual(byte[] a, byte[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+        int result = 0;
+        for (int i = 0; i < a.length; i++) {
+            result |= a[i] ^ b[i];
+        }
+        return result == 0;
+    }
+
+    /**
+     * Copies a subject, so that changes made to the subject returned to a caller do not affect the cached one.
+     * 
+     * @param subject the subject
+     * 
+     * @return the copy
+     */
+    private static Subject copy(Subject subject) {
+        return new Subject(false, new HashSet<Principal>(subject.getPrincipals()), new HashSet<Object>(subject
+                .getPublicCredentials()), new HashSet<Object>(subject.getPrivateCredentials()));
+    }
+
+    /** Cached outcome of the validation of a user's credentials. */
+    private static class CacheEntry {
+
+        /** Hash of the validated credentials. */
+        private final byte[] hash;
+
+        /** Validated subject, or null if the credentials were rejected. */
+        private final Subject subject;
+
+        /** Instant, in milliseconds since the epoch, at which the entry expires. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         * 
+         * @param credentialHash hash of the validated credentials
+         * @param validatedSubject validated subject, or null if the credentials were rejected
+         * @param expirationInstant instant at which the entry expires
+         */
+        CacheEntry(byte[] credentialHash, Subject validatedSubject, long expirationInstant) {
+            hash = credentialHash;
+            subject = validatedSubject;
+            expiration = expirationInstant;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.LoginException;
+
+/**
+ * Validates a username and password.
+ * 
+ * Implementations are used concurrently and are long lived, so they may hold on to resources, such as pools of
+ * connections to a directory, across validations.
+ */
+public interface CredentialValidator {
+
+    /**
+     * Validates a username and password.
+     * 
+     * @param username the username
+     * @param password the password
+     * 
+     * @return the subject describing the authenticated user
+     * 
+     * @throws LoginException thrown if the credentials are not valid or could not be checked
+     */
+    public Subject validate(String username, String password) throws LoginException;
+}
@@ -18,8 +18,6 @@
 package edu.internet2.middleware.shibboleth.idp.authn.provider;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
@@ -33,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationEngine;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginHandler;
 import edu.internet2.middleware.shibboleth.idp.util.IPRange;
+import edu.internet2.middleware.shibboleth.idp.util.IPRangeSet;
 
 /**
  * IP Address authentication handler.
@@ -48,8 +47,8 @@ public class IPAddressLoginHandler extends AbstractLoginHandler {
     /** The username to use for IP-address "authenticated" users. */
     private String authenticatedUser;
 
-    /** List of configured IP ranged. */
-    private List<IPRange> ipRanges;
+    /** Configured IP ranges, compiled for lookup. */
+    private IPRangeSet ipRanges;
 
     /** Whether a user is "authenticated" if their IP address is within a configured IP range. */
     private boolean ipInRangeIsAuthenticated;
@@ -71,7 +70,7 @@ public class IPAddressLoginHandler extends AbstractLoginHandler {
         if (ranges == null || ranges.isEmpty()) {
             throw new IllegalArgumentException("The list of IP ranges may not be null or empty");
         }
-        ipRanges = new ArrayList<IPRange>(ranges);
+        ipRanges = new IPRangeSet(ranges);
 
         this.ipInRangeIsAuthenticated = isIpInRangeAuthenticated;
     }
@@ -89,21 +88,24 @@ public class IPAddressLoginHandler extends AbstractLoginHandler {
     /** {@inheritDoc} */
     public void login(HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
         log.debug("Attempting to authenticated client '{}'", httpRequest.getRemoteAddr());
+        byte[] clientAddress;
         try {
-            InetAddress clientAddress = InetAddress.getByName(httpRequest.getRemoteAddr());
-            if (authenticate(clientAddress)) {
-                log.debug("Authenticated user by IP address");
-                httpRequest.setAttribute(LoginHandler.PRINCIPAL_NAME_KEY, authenticatedUser);
-                httpRequest.setAttribute(LoginHandler.AUTHENTICATION_METHOD_KEY, AuthnContext.IP_AUTHN_CTX);
-            } else {
-                log.debug("Client IP address {} failed authentication.", httpRequest.getRemoteAddr());
-                httpRequest.setAttribute(LoginHandler.AUTHENTICATION_ERROR_KEY,
-                        "Client failed IP address authentication");
-            }
-        } catch (UnknownHostException e) {
-            String msg = "Unable to resolve " + httpRequest.getRemoteAddr() + " in to an IP address";
+            clientAddress = IPRange.parseAddress(httpRequest.getRemoteAddr());
+        } catch (IllegalArgumentException e) {
+            String msg = "Unable to parse " + httpRequest.getRemoteAddr() + " in to an IP address";
             log.warn(msg);
             httpRequest.setAttribute(LoginHandler.AUTHENTICATION_ERROR_KEY, msg);
+            AuthenticationEngine.returnToAuthenticationEngine(httpRequest, httpResponse);
+            return;
+        }
+
+        if (authenticate(clientAddress)) {
+            log.debug("Authenticated user by IP address");
+            httpRequest.setAttribute(LoginHandler.PRINCIPAL_NAME_KEY, authenticatedUser);
+            httpRequest.setAttribute(LoginHandler.AUTHENTICATION_METHOD_KEY, AuthnContext.IP_AUTHN_CTX);
+        } else {
+            log.debug("Client IP address {} failed authentication.", httpRequest.getRemoteAddr());
+            httpRequest.setAttribute(LoginHandler.AUTHENTICATION_ERROR_KEY, "Client failed IP address authentication");
         }
 
         AuthenticationEngine.returnToAuthenticationEngine(httpRequest, httpResponse);
@@ -117,20 +119,19 @@ public class IPAddressLoginHandler extends AbstractLoginHandler {
      * @return true if the client address is authenticated, false it not
      */
     protected boolean authenticate(InetAddress clientAddress) {
-        if (ipInRangeIsAuthenticated) {
-            for (IPRange range : ipRanges) {
-                if (range.contains(clientAddress)) {
-                    return true;
-                }
-            }
-        } else {
-            for (IPRange range : ipRanges) {
-                if (!range.contains(clientAddress)) {
-                    return true;
-                }
-            }
-        }
+        return authenticate(clientAddress.getAddress());
+    }
 
-        return false;
+    /**
+     * Authenticates the client address.
+     * 
+     * In default allow mode the client is authenticated if its address is in none of the configured ranges.
+     * 
+     * @param clientAddress the client address
+     * 
+     * @return true if the client address is authenticated, false it not
+     */
+    protected boolean authenticate(byte[] clientAddress) {
+        return ipRanges.contains(clientAddress) == ipInRangeIsAuthenticated;
     }
-}
\ No newline at end of file
+}
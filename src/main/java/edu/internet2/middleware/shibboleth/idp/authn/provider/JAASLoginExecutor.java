@@ -0,0 +1,328 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.util.LatencyHistogram;
+
+/**
+ * Runs JAAS logins on a bounded pool of worker threads, so that a slow authentication backend can only tie up a
+ * limited number of container threads.
+ * 
+ * At most {@link #getThreads()} logins run at once and at most {@link #getQueueSize()} more wait for a worker; further
+ * logins are refused immediately. The caller waits at most {@link #getTimeout()} for a login to complete, after which
+ * the login is cancelled and reported as failed. The time taken by the JAAS login modules is recorded in a
+ * {@link LatencyHistogram}.
+ */
+public class JAASLoginExecutor {
+
+    /** Default number of worker threads. */
+    public static final int DEFAULT_THREADS = 16;
+
+    /** Default number of logins which may wait for a worker. */
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    /** Default time, in milliseconds, a caller waits for a login to complete. */
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(JAASLoginExecutor.class);
+
+    /** Pool running the logins. */
+    private final ThreadPoolExecutor executor;
+
+    /** Number of worker threads. */
+    private final int threads;
+
+    /** Number of logins which may wait for a worker. */
+    private final int queueSize;
+
+    /** Time, in milliseconds, a caller waits for a login to complete. */
+    private final long timeout;
+
+    /** Time taken by the login modules to complete logins. */
+    private final LatencyHistogram latencies;
+
+    /** Number of logins refused because the pool and its queue were full. */
+    private final AtomicLong rejectedLogins;
+
+    /** Number of logins which did not complete in time. */
+    private final AtomicLong timedOutLogins;
+
+    /** Constructor. */
+    public JAASLoginExecutor() {
+        this(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param workers number of worker threads, must be greater than zero
+     * @param queue number of logins which may wait for a worker, may be zero
+     * @param loginTimeout time, in milliseconds, a caller waits for a login to complete, must be greater than zero
+     */
+    public JAASLoginExecutor(int workers, int queue, long loginTimeout) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Number of worker threads must be greater than zero");
+        }
+        if (queue < 0) {
+            throw new IllegalArgumentException("Queue size may not be negative");
+        }
+        if (loginTimeout < 1) {
+            throw new IllegalArgumentException("Login timeout must be greater than zero");
+        }
+
+        threads = workers;
+        queueSize = queue;
+        timeout = loginTimeout;
+        latencies = new LatencyHistogram();
+        rejectedLogins = new AtomicLong();
+        timedOutLogins = new AtomicLong();
+
+        BlockingQueue<Runnable> workQueue;
+        if (queue == 0) {
+            workQueue = new SynchronousQueue<Runnable>();
+        } else {
+            workQueue = new ArrayBlockingQueue<Runnable>(queue);
+        }
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, workQueue, new WorkerThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Authenticates a user with JAAS.
+     * 
+     * @param configName name of the JAAS configuration used to authenticate the user
+     * @param callbackHandler handler providing the user's credentials to the login modules
+     * 
+     * @return the subject populated by the login modules
+     * 
+     * @throws LoginException thrown if the user could not be authenticated, if the login was refused because too many
+     *             are in progress or if it did not complete in time
+     */
+    public Subject login(final String configName, final CallbackHandler callbackHandler) throws LoginException {
+        return execute(new Callable<Subject>() {
+            /** {@inheritDoc} */
+            public Subject call() throws LoginException {
+                LoginContext jaasLoginCtx = new LoginContext(configName, callbackHandler);
+                jaasLoginCtx.login();
+                return jaasLoginCtx.getSubject();
+            }
+        });
+    }
+
+    /**
+     * Authenticates a user with a credential validator.
+     * 
+     * @param validator validator checking the user's credentials
+     * @param username the username
+     * @param password the password
+     * 
+     * @return the subject returned by the validator
+     * 
+     * @throws LoginException thrown if the user could not be authenticated, if the login was refused because too many
+     *             are in progress or if it did not complete in time
+     */
+    public Subject login(final CredentialValidator validator, final String username, final String password)
+            throws LoginException {
+        return execute(new Callable<Subject>() {
+            /** {@inheritDoc} */
+            public Subject call() throws LoginException {
+                return validator.validate(username, password);
+            }
+        });
+    }
+
+    /**
+     * Wraps a credential validator so that its validations are run by this executor.
+     * 
+     * @param validator the validator
+     * 
+     * @return a validator running the given one on this executor
+     */
+    public CredentialValidator getExecutingValidator(final CredentialValidator validator) {
+        return new CredentialValidator() {
+            /** {@inheritDoc} */
+            public Subject validate(String username, String password) throws LoginException {
+                return login(validator, username, password);
+            }
+        };
+    }
+
+    /**
+     * Runs a login on a worker thread and waits for it to complete, recording the time it took.
+     * 
+     * @param login the login
+     * 
+     * @return the subject returned by the login
+     * 
+     * @throws LoginException thrown if the login failed, was refused because too many are in progress or did not
+     *             complete in time
+     */
+    protected Subject execute(final Callable<Subject> login) throws LoginException {
+        Future<Subject> result;
+        try {
+            result = executor.submit(new Callable<Subject>() {
+                /** {@inheritDoc} */
+                public Subject call() throws Exception {
+                    long start = System.currentTimeMillis();
+                    try {
+                        return login.call();
+                    } finally {
+                        latencies.record(System.currentTimeMillis() - start);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedLogins.incrementAndGet();
+            log.warn("Refusing JAAS login, {} logins are already in progress or waiting", threads + queueSize);
+            throw new LoginException("authentication service is busy");
+        }
+
+        try {
+            return result.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            timedOutLogins.incrementAndGet();
+            log.warn("JAAS login did not complete within {}ms", timeout);
+            throw new LoginException("authentication timed out");
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new LoginException("authentication interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LoginException) {
+                throw (LoginException) e.getCause();
+            }
+            log.debug("JAAS login failed", e.getCause());
+            throw new LoginException("unknown authentication error");
+        }
+    }
+
+    /**
+     * Gets the number of worker threads.
+     * 
+     * @return number of worker threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Gets the number of logins which may wait for a worker.
+     * 
+     * @return number of logins which may wait for a worker
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Gets the time a caller waits for a login to complete.
+     * 
+     * @return time in milliseconds
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Gets the number of logins currently being run by a worker.
+     * 
+     * @return number of active logins
+     */
+    public int getActiveLogins() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Gets the number of logins currently waiting for a worker.
+     * 
+     * @return number of waiting logins
+     */
+    public int getQueuedLogins() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Gets the number of logins refused because too many were in progress.
+     * 
+     * @return number of refused logins
+     */
+    public long getRejectedLogins() {
+        return rejectedLogins.get();
+    }
+
+    /**
+     * Gets the number of logins which did not complete in time.
+     * 
+     * @return number of timed out logins
+     */
+    public long getTimedOutLogins() {
+        return timedOutLogins.get();
+    }
+
+    /**
+     * Gets the histogram of the time taken by the login modules to complete logins, successful or not.
+     * 
+     * @return login latency histogram
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /** Stops the worker threads, interrupting any login in progress. */
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /** Creates the daemon worker threads of the pool. */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        /** Number of threads created so far. */
+        private final AtomicInteger created = new AtomicInteger();
+
+        /** {@inheritDoc} */
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "JAASLogin-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
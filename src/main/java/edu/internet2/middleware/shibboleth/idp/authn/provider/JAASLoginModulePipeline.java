@@ -0,0 +1,481 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link CredentialValidator} which runs the login modules of a JAAS configuration, reusing them across validations.
+ * 
+ * A {@link javax.security.auth.login.LoginContext} looks up its configuration and instantiates its login modules by
+ * reflection each time it is created, so any connection a login module opens is thrown away after a single login. This
+ * validator looks the configuration up once and keeps chains of instantiated login modules, each used by one
+ * validation at a time and re-initialized with a fresh subject, callback handler and shared state before every use.
+ * Login modules which hold on to connections across initializations thus keep them across logins.
+ * 
+ * The login and commit phases, the abort on failure and the meaning of the control flags are the same as those of a
+ * {@link javax.security.auth.login.LoginContext}, including the fallback to the <code>other</code> configuration
+ * entry. A chain in which a login module failed with an unexpected exception is discarded. The configuration is read
+ * when the first validation occurs and may be re-read with {@link #refresh()}, which discards the idle chains.
+ */
+public class JAASLoginModulePipeline implements CredentialValidator {
+
+    /** Default maximum number of idle login module chains kept for reuse. */
+    public static final int DEFAULT_MAX_IDLE_CHAINS = 32;
+
+    /** Name of the configuration entry used when no entry exists for the configured name. */
+    private static final String OTHER = "other";
+
+    /** Login phase. */
+    private static final int LOGIN = 0;
+
+    /** Commit phase. */
+    private static final int COMMIT = 1;
+
+    /** Abort phase. */
+    private static final int ABORT = 2;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(JAASLoginModulePipeline.class);
+
+    /** Name of the JAAS configuration entry. */
+    private final String configName;
+
+    /** JAAS configuration, or null to use the default configuration. */
+    private final Configuration configuration;
+
+    /** Maximum number of idle chains kept for reuse. */
+    private final int maxIdleChains;
+
+    /** Idle chains. */
+    private final ConcurrentLinkedQueue<ModuleChain> idleChains;
+
+    /** Number of idle chains. */
+    private final AtomicInteger idleChainCount;
+
+    /** Number of chains created so far. */
+    private final AtomicLong createdChains;
+
+    /** Current definition of the pipeline, null until the configuration has been read. */
+    private volatile PipelineDefinition definition;
+
+    /**
+     * Constructor.
+     * 
+     * @param name name of the JAAS configuration entry
+     */
+    public JAASLoginModulePipeline(String name) {
+        this(name, null, DEFAULT_MAX_IDLE_CHAINS);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param name name of the JAAS configuration entry
+     * @param config JAAS configuration, or null to use the default configuration
+     * @param maxIdle maximum number of idle login module chains kept for reuse
+     */
+    public JAASLoginModulePipeline(String name, Configuration config, int maxIdle) {
+        if (name == null) {
+            throw new IllegalArgumentException("JAAS configuration name may not be null");
+        }
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("Maximum number of idle chains may not be negative");
+        }
+
+        configName = name;
+        configuration = config;
+        maxIdleChains = maxIdle;
+        idleChains = new ConcurrentLinkedQueue<ModuleChain>();
+        idleChainCount = new AtomicInteger();
+        createdChains = new AtomicLong();
+    }
+
+    /**
+     * Gets the name of the JAAS configuration entry.
+     * 
+     * @return name of the JAAS configuration entry
+     */
+    public String getConfigName() {
+        return configName;
+    }
+
+    /**
+     * Gets the number of login module chains created so far.
+     * 
+     * @return number of chains created
+     */
+    public long getCreatedChains() {
+        return createdChains.get();
+    }
+
+    /**
+     * Gets the number of idle login module chains.
+     * 
+     * @return number of idle chains
+     */
+    public int getIdleChains() {
+        return idleChainCount.get();
+    }
+
+    /**
+     * Reads the JAAS configuration again and discards the idle login module chains. Chains in use are discarded once
+     * their validation completes.
+     * 
+     * @throws LoginException thrown if the configuration does not define the login modules or they can not be loaded
+     */
+    public synchronized void refresh() throws LoginException {
+        definition = readDefinition();
+        ModuleChain chain = idleChains.poll();
+        while (chain != null) {
+            idleChainCount.decrementAndGet();
+            chain = idleChains.poll();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Subject validate(String username, String password) throws LoginException {
+        ModuleChain chain = acquireChain();
+        try {
+            Subject subject = new Subject();
+            CallbackHandler callbackHandler = new CredentialCallbackHandler(username, password);
+            Map<String, Object> sharedState = new HashMap<String, Object>();
+            AppConfigurationEntry[] entries = chain.definition.entries;
+            for (int i = 0; i < entries.length; i++) {
+                chain.modules[i].initialize(subject, callbackHandler, sharedState, entries[i].getOptions());
+            }
+
+            try {
+                invoke(chain, LOGIN);
+                invoke(chain, COMMIT);
+            } catch (LoginException e) {
+                try {
+                    invoke(chain, ABORT);
+                } catch (LoginException ae) {
+                    log.debug("Unable to abort login of user " + username, ae);
+                }
+                throw e;
+            }
+            return subject;
+        } catch (RuntimeException e) {
+            chain.broken = true;
+            throw e;
+        } finally {
+            releaseChain(chain);
+        }
+    }
+
+    /**
+     * Runs a phase of the login on every module of a chain, following the semantics of the control flags.
+     * 
+     * @param chain the chain
+     * @param phase the phase
+     * 
+     * @throws LoginException thrown if the phase failed
+     */
+    private void invoke(ModuleChain chain, int phase) throws LoginException {
+        AppConfigurationEntry[] entries = chain.definition.entries;
+        LoginException firstError = null;
+        LoginException firstRequiredError = null;
+        boolean success = false;
+
+        for (int i = 0; i < entries.length; i++) {
+            LoginModuleControlFlag flag = entries[i].getControlFlag();
+            try {
+                if (invoke(chain, chain.modules[i], phase)) {
+                    if (phase != ABORT && flag == LoginModuleControlFlag.SUFFICIENT && firstRequiredError == null) {
+                        return;
+                    }
+                    success = true;
+                }
+            } catch (LoginException e) {
+                if (flag == LoginModuleControlFlag.REQUISITE) {
+                    if (phase != ABORT) {
+                        throw firstRequiredError != null ? firstRequiredError : e;
+                    }
+                    if (firstRequiredError == null) {
+                        firstRequiredError = e;
+                    }
+                } else if (flag == LoginModuleControlFlag.REQUIRED) {
+                    if (firstRequiredError == null) {
+                        firstRequiredError = e;
+                    }
+                } else if (firstError == null) {
+                    firstError = e;
+                }
+            }
+        }
+
+        if (firstRequiredError != null) {
+            throw firstRequiredError;
+        } else if (!success && firstError != null) {
+            throw firstError;
+        } else if (!success) {
+            throw new LoginException("Login Failure: all modules ignored");
+        }
+    }
+
+    /**
+     * Runs a phase of the login on a module. An unexpected exception is reported as a {@link LoginException} and marks
+     * the chain as broken.
+     * 
+     * @param chain chain the module belongs to
+     * @param module the module
+     * @param phase the phase
+     * 
+     * @return true if the module succeeded, false if it should be ignored
+     * 
+     * @throws LoginException thrown if the module failed
+     */
+    private boolean invoke(ModuleChain chain, LoginModule module, int phase) throws LoginException {
+        try {
+            switch (phase) {
+                case LOGIN:
+                    return module.login();
+                case COMMIT:
+                    return module.commit();
+                default:
+                    return module.abort();
+            }
+        } catch (RuntimeException e) {
+            chain.broken = true;
+            LoginException le = new LoginException(e.toString());
+            le.initCause(e);
+            throw le;
+        }
+    }
+
+    /**
+     * Takes an idle chain of the current definition, or creates one.
+     * 
+     * @return the chain
+     * 
+     * @throws LoginException thrown if the configuration can not be read or a login module can not be instantiated
+     */
+    private ModuleChain acquireChain() throws LoginException {
+        PipelineDefinition current = getDefinition();
+        ModuleChain chain = idleChains.poll();
+        while (chain != null) {
+            idleChainCount.decrementAndGet();
+            if (chain.definition == current) {
+                return chain;
+            }
+            chain = idleChains.poll();
+        }
+
+        LoginModule[] modules = new LoginModule[current.moduleClasses.length];
+        for (int i = 0; i < modules.length; i++) {
+            try {
+                modules[i] = current.moduleClasses[i].newInstance();
+            } catch (Exception e) {
+                LoginException le = new LoginException("Unable to instantiate login module "
+                        + current.moduleClasses[i].getName());
+                le.initCause(e);
+                throw le;
+            }
+        }
+        createdChains.incrementAndGet();
+        log.debug("Created login module chain for JAAS configuration {}", configName);
+        return new ModuleChain(current, modules);
+    }
+
+    /**
+     * Returns a chain for reuse, unless it is broken, belongs to a previous definition or enough chains are idle.
+     * 
+     * @param chain the chain
+     */
+    private void releaseChain(ModuleChain chain) {
+        if (chain.broken || chain.definition != definition) {
+            return;
+        }
+        if (idleChainCount.incrementAndGet() > maxIdleChains) {
+            idleChainCount.decrementAndGet();
+            return;
+        }
+        idleChains.offer(chain);
+    }
+
+    /**
+     * Gets the current definition of the pipeline, reading the configuration if it has not yet been read.
+     * 
+     * @return the current definition
+     * 
+     * @throws LoginException thrown if the configuration does not define the login modules or they can not be loaded
+     */
+    private PipelineDefinition getDefinition() throws LoginException {
+        PipelineDefinition current = definition;
+        if (current == null) {
+            synchronized (this) {
+                if (definition == null) {
+                    definition = readDefinition();
+                }
+                current = definition;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Reads the definition of the pipeline from the JAAS configuration.
+     * 
+     * @return the definition
+     * 
+     * @throws LoginException thrown if the configuration does not define the login modules or they can not be loaded
+     */
+    @SuppressWarnings("unchecked")
+    private PipelineDefinition readDefinition() throws LoginException {
+        Configuration config = configuration;
+        if (config == null) {
+            try {
+                config = Configuration.getConfiguration();
+            } catch (SecurityException e) {
+                LoginException le = new LoginException("Unable to read the JAAS configuration");
+                le.initCause(e);
+                throw le;
+            }
+        }
+
+        AppConfigurationEntry[] entries = config.getAppConfigurationEntry(configName);
+        if (entries == null) {
+            entries = config.getAppConfigurationEntry(OTHER);
+        }
+        if (entries == null || entries.length == 0) {
+            throw new LoginException("No LoginModules configured for " + configName);
+        }
+
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = ClassLoader.getSystemClassLoader();
+        }
+
+        Class<? extends LoginModule>[] moduleClasses = new Class[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            try {
+                moduleClasses[i] = Class.forName(entries[i].getLoginModuleName(), true, loader).asSubclass(
+                        LoginModule.class);
+            } catch (Exception e) {
+                LoginException le = new LoginException("Unable to load login module "
+                        + entries[i].getLoginModuleName());
+                le.initCause(e);
+                throw le;
+            }
+        }
+
+        log.debug("Read {} login modules for JAAS configuration {}", entries.length, configName);
+        return new PipelineDefinition(entries, moduleClasses);
+    }
+
+    /** The login modules of the JAAS configuration entry, as read at one point in time. */
+    private static class PipelineDefinition {
+
+        /** Configuration entries of the login modules. */
+        private final AppConfigurationEntry[] entries;
+
+        /** Classes of the login modules. */
+        private final Class<? extends LoginModule>[] moduleClasses;
+
+        /**
+         * Constructor.
+         * 
+         * @param configEntries configuration entries of the login modules
+         * @param classes classes of the login modules
+         */
+        PipelineDefinition(AppConfigurationEntry[] configEntries, Class<? extends LoginModule>[] classes) {
+            entries = configEntries;
+            moduleClasses = classes;
+        }
+    }
+
+    /** Instances of the login modules of a definition, used by one validation at a time. */
+    private static class ModuleChain {
+
+        /** Definition the modules were instantiated from. */
+        private final PipelineDefinition definition;
+
+        /** The login modules. */
+        private final LoginModule[] modules;
+
+        /** Whether a login module of the chain failed unexpectedly. */
+        private boolean broken;
+
+        /**
+         * Constructor.
+         * 
+         * @param pipelineDefinition definition the modules were instantiated from
+         * @param loginModules the login modules
+         */
+        ModuleChain(PipelineDefinition pipelineDefinition, LoginModule[] loginModules) {
+            definition = pipelineDefinition;
+            modules = loginModules;
+        }
+    }
+
+    /** A callback handler which provides a username and password to the login modules. */
+    private static class CredentialCallbackHandler implements CallbackHandler {
+
+        /** The username. */
+        private final String username;
+
+        /** The password. */
+        private final String password;
+
+        /**
+         * Constructor.
+         * 
+         * @param name the username
+         * @param pass the password
+         */
+        CredentialCallbackHandler(String name, String pass) {
+            username = name;
+            password = pass;
+        }
+
+        /** {@inheritDoc} */
+        public void handle(Callback[] callbacks) {
+            if (callbacks == null) {
+                return;
+            }
+
+            for (Callback cb : callbacks) {
+                if (cb instanceof NameCallback) {
+                    ((NameCallback) cb).setName(username);
+                } else if (cb instanceof PasswordCallback) {
+                    ((PasswordCallback) cb).setPassword(password.toCharArray());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks failed logins per username and per client address over a sliding window, so that clients guessing or
+ * endlessly retrying passwords can be refused before the authentication backend is involved.
+ * 
+ * Each window is split into {@value #SLOTS} slots, failures older than the window are forgotten one slot at a time. A
+ * login is refused while the failures recorded in the window for its username or its client address reach the
+ * configured maximum. A successful login clears the failures of its username but not those of its address, as many
+ * users may share an address. At most a fixed number of usernames and of addresses are tracked, the least recently
+ * active being forgotten first.
+ */
+public class LoginFailureTracker {
+
+    /** Default length, in milliseconds, of the sliding window. */
+    public static final long DEFAULT_WINDOW = 300000;
+
+    /** Default maximum number of usernames, and of addresses, tracked. */
+    public static final int DEFAULT_MAX_TRACKED = 10000;
+
+    /** Number of slots the window is split in. */
+    private static final int SLOTS = 10;
+
+    /** Length, in milliseconds, of the sliding window. */
+    private final long window;
+
+    /** Length, in milliseconds, of a slot of the window. */
+    private final long slotLength;
+
+    /** Number of failures within the window after which logins for a username are refused, 0 for no limit. */
+    private final int maxUsernameFailures;
+
+    /** Number of failures within the window after which logins from an address are refused, 0 for no limit. */
+    private final int maxAddressFailures;
+
+    /** Failures by username. */
+    private final Map<String, FailureWindow> usernameFailures;
+
+    /** Failures by client address. */
+    private final Map<String, FailureWindow> addressFailures;
+
+    /** Number of refused logins. */
+    private final AtomicLong refusedLogins;
+
+    /**
+     * Constructor.
+     * 
+     * @param windowLength length, in milliseconds, of the sliding window
+     * @param maxPerUsername failures within the window after which logins for a username are refused, 0 for no limit
+     * @param maxPerAddress failures within the window after which logins from an address are refused, 0 for no limit
+     * @param maxTracked maximum number of usernames, and of addresses, tracked
+     */
+    public LoginFailureTracker(long windowLength, int maxPerUsername, int maxPerAddress, int maxTracked) {
+        if (windowLength < SLOTS) {
+            throw new IllegalArgumentException("Window length must be at least " + SLOTS + "ms");
+        }
+        if (maxPerUsername < 0 || maxPerAddress < 0) {
+            throw new IllegalArgumentException("Maximum number of failures may not be negative");
+        }
+        if (maxTracked < 1) {
+            throw new IllegalArgumentException("Maximum number of tracked keys must be greater than zero");
+        }
+
+        window = windowLength;
+        slotLength = windowLength / SLOTS;
+        maxUsernameFailures = maxPerUsername;
+        maxAddressFailures = maxPerAddress;
+        usernameFailures = createMap(maxTracked);
+        addressFailures = createMap(maxTracked);
+        refusedLogins = new AtomicLong();
+    }
+
+    /**
+     * Checks whether a login must be refused because of the failures recently recorded for its username or address.
+     * 
+     * @param username username of the login
+     * @param address client address of the login, may be null
+     * 
+     * @return true if the login must be refused
+     */
+    public boolean isRefused(String username, String address) {
+        long now = System.currentTimeMillis();
+        if (exceeds(usernameFailures, username, maxUsernameFailures, now)
+                || exceeds(addressFailures, address, maxAddressFailures, now)) {
+            refusedLogins.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a failed login.
+     * 
+     * @param username username of the login
+     * @param address client address of the login, may be null
+     */
+    public void recordFailure(String username, String address) {
+        long now = System.currentTimeMillis();
+        if (maxUsernameFailures > 0) {
+            record(usernameFailures, username, now);
+        }
+        if (maxAddressFailures > 0) {
+            record(addressFailures, address, now);
+        }
+    }
+
+    /**
+     * Records a successful login, which clears the failures of its username.
+     * 
+     * @param username username of the login
+     */
+    public void recordSuccess(String username) {
+        synchronized (usernameFailures) {
+            usernameFailures.remove(username);
+        }
+    }
+
+    /**
+     * Gets the length of the sliding window.
+     * 
+     * @return length of the window in milliseconds
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Gets the number of logins refused so far.
+     * 
+     * @return number of refused logins
+     */
+    public long getRefusedLogins() {
+        return refusedLogins.get();
+    }
+
+    /**
+     * Gets the number of usernames currently tracked.
+     * 
+     * @return number of usernames tracked
+     */
+    public int getTrackedUsernames() {
+        synchronized (usernameFailures) {
+            return usernameFailures.size();
+        }
+    }
+
+    /**
+     * Gets the number of client addresses currently tracked.
+     * 
+     * @return number of addresses tracked
+     */
+    public int getTrackedAddresses() {
+        synchronized (addressFailures) {
+            return addressFailures.size();
+        }
+    }
+
+    /**
+     * Checks whether the failures recorded for a key reach a maximum.
+     * 
+     * @param failures failures by key
+     * @param key the key, may be null
+     * @param max the maximum, 0 for no limit
+     * @param now the current instant
+     * 
+     * @return true if the maximum is reached
+     */
+    private boolean exceeds(Map<String, FailureWindow> failures, String key, int max, long now) {
+        if (max == 0 || key == null) {
+            return false;
+        }
+        synchronized (failures) {
+            FailureWindow failureWindow = failures.get(key);
+            return failureWindow != null && failureWindow.count(now) >= max;
+        }
+    }
+
+    /**
+     * Records a failure for a key.
+     * 
+     * @param failures failures by key
+     * @param key the key, may be null
+     * @param now the current instant
+     */
+    private void record(Map<String, FailureWindow> failures, String key, long now) {
+        if (key == null) {
+            return;
+        }
+        synchronized (failures) {
+            FailureWindow failureWindow = failures.get(key);
+            if (failureWindow == null) {
+                failureWindow = new FailureWindow();
+                failures.put(key, failureWindow);
+            }
+            failureWindow.add(now);
+        }
+    }
+
+    /**
+     * Creates a map, in access order, holding at most a given number of entries.
+     * 
+     * @param maxEntries maximum number of entries
+     * 
+     * @return the map
+     */
+    private static Map<String, FailureWindow> createMap(final int maxEntries) {
+        return new LinkedHashMap<String, FailureWindow>(16, 0.75f, true) {
+            /** Serial version UID. */
+            private static final long serialVersionUID = 2470566613429937094L;
+
+            /** {@inheritDoc} */
+            protected boolean removeEldestEntry(Map.Entry<String, FailureWindow> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /** Failures recorded for a key, counted per slot of the window. */
+    private class FailureWindow {
+
+        /** Number of failures in each slot. */
+        private final int[] counts = new int[SLOTS];
+
+        /** Index, since the epoch, of the slot each count belongs to. */
+        private final long[] slots = new long[SLOTS];
+
+        /**
+         * Records a failure.
+         * 
+         * @param now the current instant
+         */
+        void add(long now) {
+            long slot = now / slotLength;
+            int index = (int) (slot % SLOTS);
+            if (slots[index] != slot) {
+                slots[index] = slot;
+                counts[index] = 0;
+            }
+            counts[index]++;
+        }
+
+        /**
+         * Counts the failures within the window.
+         * 
+         * @param now the current instant
+         * 
+         * @return number of failures
+         */
+        int count(long now) {
+            long oldest = now / slotLength - SLOTS + 1;
+            int count = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                if (slots[i] >= oldest) {
+                    count += counts[i];
+                }
+            }
+            return count;
+        }
+    }
+}
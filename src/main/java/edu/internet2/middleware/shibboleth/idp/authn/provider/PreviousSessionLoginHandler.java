@@ -100,6 +100,17 @@ public class PreviousSessionLoginHandler extends AbstractLoginHandler {
 
     /** {@inheritDoc} */
     public void login(HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+        authenticate(httpRequest);
+        AuthenticationEngine.returnToAuthenticationEngine(httpRequest, httpResponse);
+    }
+
+    /**
+     * Authenticates the user from their existing IdP session, reporting the outcome in the request attributes read by
+     * the authentication engine.
+     * 
+     * @param httpRequest current HTTP request
+     */
+    public void authenticate(HttpServletRequest httpRequest) {
         if (reportPreviousSessionAuthnMethod) {
             httpRequest.setAttribute(LoginHandler.AUTHENTICATION_METHOD_KEY, AuthnContext.PREVIOUS_SESSION_AUTHN_CTX);
         }
@@ -112,7 +123,5 @@ public class PreviousSessionLoginHandler extends AbstractLoginHandler {
             log.debug("Using existing IdP session for {}", idpSession.getPrincipalName());
             httpRequest.setAttribute(LoginHandler.PRINCIPAL_NAME_KEY, idpSession.getPrincipalName());
         }
-
-        AuthenticationEngine.returnToAuthenticationEngine(httpRequest, httpResponse);
     }
 }
\ No newline at end of file
@@ -27,6 +27,7 @@ import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.NameCallback;
 import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.FailedLoginException;
 import javax.security.auth.login.LoginException;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -43,6 +44,7 @@ import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationEngine;
 import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationException;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginHandler;
 import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 
 /**
  * This Servlet authenticates a user via JAAS. The user's credential is always added to the returned {@link Subject} as
@@ -84,6 +86,39 @@ public class UsernamePasswordLoginServlet extends HttpServlet {
     /** HTTP request parameter containing the user's password. */
     private final String passwordAttribute = "j_password";
 
+    /** init-param which can be passed to the servlet to construct a new JAAS login context for every login. */
+    private final String reuseLoginModulesInitParam = "reuseLoginModules";
+
+    /** init-param which can be passed to the servlet to use a credential validator bound to the Servlet context. */
+    private final String credentialValidatorInitParam = "credentialValidatorId";
+
+    /** init-param giving the time, in milliseconds, successfully validated credentials are cached. */
+    private final String credentialCacheLifetimeInitParam = "credentialCacheLifetime";
+
+    /** init-param giving the time, in milliseconds, rejected credentials are cached. */
+    private final String failedCredentialCacheLifetimeInitParam = "failedCredentialCacheLifetime";
+
+    /** init-param giving the maximum number of users whose credentials are cached. */
+    private final String credentialCacheSizeInitParam = "credentialCacheSize";
+
+    /** init-param giving the number of failed logins after which further logins for a username are refused. */
+    private final String maxUsernameFailuresInitParam = "maxLoginFailuresPerUsername";
+
+    /** init-param giving the number of failed logins after which further logins from an address are refused. */
+    private final String maxAddressFailuresInitParam = "maxLoginFailuresPerAddress";
+
+    /** init-param giving the time, in milliseconds, over which failed logins are counted. */
+    private final String failureWindowInitParam = "loginFailureWindow";
+
+    /** Executor running the JAAS logins. */
+    private JAASLoginExecutor loginExecutor;
+
+    /** Validator checking the user's credentials, null if a JAAS login context is used per login. */
+    private CredentialValidator credentialValidator;
+
+    /** Tracker of failed logins, null if failed logins are not tracked. */
+    private LoginFailureTracker failureTracker;
+
     /** {@inheritDoc} */
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
@@ -106,6 +141,105 @@ public class UsernamePasswordLoginServlet extends HttpServlet {
         } else {
             authenticationMethod = AuthnContext.PPT_AUTHN_CTX;
         }
+
+        loginExecutor = HttpServletHelper.getJAASLoginExecutor(config.getServletContext());
+        String validatorId = DatatypeHelper.safeTrimOrNullString(getInitParameter(credentialValidatorInitParam));
+        if (validatorId != null) {
+            credentialValidator = (CredentialValidator) config.getServletContext().getAttribute(validatorId);
+            if (credentialValidator == null) {
+                throw new ServletException("No credential validator bound to the Servlet context as " + validatorId);
+            }
+        } else if (!"false".equalsIgnoreCase(DatatypeHelper.safeTrimOrNullString(getInitParameter(
+                reuseLoginModulesInitParam)))) {
+            credentialValidator = new JAASLoginModulePipeline(jaasConfigName);
+        }
+        if (credentialValidator != null) {
+            credentialValidator = loginExecutor.getExecutingValidator(credentialValidator);
+        }
+
+        initCredentialCache(config);
+        initFailureTracker(config);
+    }
+
+    /**
+     * Sets up the cache of validated credentials if a lifetime is given for successful or rejected credentials. The
+     * cache is consulted before a login is handed to the login executor.
+     * 
+     * @param config the Servlet configuration
+     * 
+     * @throws ServletException thrown if the init-params are invalid
+     */
+    protected void initCredentialCache(ServletConfig config) throws ServletException {
+        long successLifetime = getLongInitParameter(credentialCacheLifetimeInitParam, 0);
+        long failureLifetime = getLongInitParameter(failedCredentialCacheLifetimeInitParam, 0);
+        if (successLifetime == 0 && failureLifetime == 0) {
+            return;
+        }
+        if (credentialValidator == null) {
+            log.warn("Credentials can not be cached when a JAAS login context is used per login, not caching them");
+            return;
+        }
+
+        int size = (int) getLongInitParameter(credentialCacheSizeInitParam,
+                CachingCredentialValidator.DEFAULT_MAX_ENTRIES);
+        try {
+            CachingCredentialValidator cache = new CachingCredentialValidator(credentialValidator, successLifetime,
+                    failureLifetime, size, CachingCredentialValidator.DEFAULT_ITERATIONS);
+            credentialValidator = cache;
+            config.getServletContext().setAttribute(HttpServletHelper.CREDENTIAL_CACHE_ATTRIBUTE, cache);
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid credential cache configuration", e);
+        }
+        log.info("Caching validated credentials for {}ms and rejected credentials for {}ms", successLifetime,
+                failureLifetime);
+    }
+
+    /**
+     * Sets up the tracking of failed logins if a maximum number of failures per username or per address is given.
+     * 
+     * @param config the Servlet configuration
+     * 
+     * @throws ServletException thrown if the init-params are invalid
+     */
+    protected void initFailureTracker(ServletConfig config) throws ServletException {
+        int maxPerUsername = (int) getLongInitParameter(maxUsernameFailuresInitParam, 0);
+        int maxPerAddress = (int) getLongInitParameter(maxAddressFailuresInitParam, 0);
+        if (maxPerUsername == 0 && maxPerAddress == 0) {
+            return;
+        }
+
+        long window = getLongInitParameter(failureWindowInitParam, LoginFailureTracker.DEFAULT_WINDOW);
+        try {
+            failureTracker = new LoginFailureTracker(window, maxPerUsername, maxPerAddress,
+                    LoginFailureTracker.DEFAULT_MAX_TRACKED);
+            config.getServletContext().setAttribute(HttpServletHelper.LOGIN_FAILURE_TRACKER_ATTRIBUTE, failureTracker);
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Invalid failed login tracking configuration", e);
+        }
+        log.info("Refusing logins after {} failures per username or {} failures per address within {}ms",
+                new Object[] {maxPerUsername, maxPerAddress, window});
+    }
+
+    /**
+     * Gets the value of a numeric init-param.
+     * 
+     * @param name name of the init-param
+     * @param defaultValue value used if the init-param is not given
+     * 
+     * @return value of the init-param
+     * 
+     * @throws ServletException thrown if the init-param is not a number
+     */
+    private long getLongInitParameter(String name, long defaultValue) throws ServletException {
+        String value = DatatypeHelper.safeTrimOrNullString(getInitParameter(name));
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new ServletException("init-param " + name + " must be a number", e);
+        }
     }
 
     /** {@inheritDoc} */
@@ -159,6 +293,16 @@ public class UsernamePasswordLoginServlet extends HttpServlet {
      * Authenticate a username and password against JAAS. If authentication succeeds the name of the first principal, or
      * the username if that is empty, and the subject are placed into the request in their respective attributes.
      * 
+     * The JAAS login is run by the {@link JAASLoginExecutor} bound to the Servlet context, which bounds the number of
+     * logins in progress and the time this thread waits for one to complete. The credentials are checked by the
+     * {@link CredentialValidator} named by the <code>credentialValidatorId</code> init-param if there is one. Otherwise,
+     * unless the <code>reuseLoginModules</code> init-param is false, the login modules are run by a
+     * {@link JAASLoginModulePipeline}, which reuses them across logins, rather than through a new JAAS login context.
+     * 
+     * If failed logins are tracked, logins for a username or from an address with too many recent failures are refused
+     * before the credentials are checked, and credentials rejected with a {@link FailedLoginException} count as
+     * failures. If credentials are cached, recently validated or rejected credentials are answered from the cache.
+     * 
      * @param request current authentication request
      * @param username the principal name of the user to be authenticated
      * @param password the password of the user to be authenticated
@@ -169,16 +313,31 @@ public class UsernamePasswordLoginServlet extends HttpServlet {
         try {
             log.debug("Attempting to authenticate user {}", username);
 
-            SimpleCallbackHandler cbh = new SimpleCallbackHandler(username, password);
-
-            javax.security.auth.login.LoginContext jaasLoginCtx = new javax.security.auth.login.LoginContext(
-                    jaasConfigName, cbh);
+            if (failureTracker != null && failureTracker.isRefused(username, request.getRemoteAddr())) {
+                log.warn("Refusing login of user {} from {}, too many failed logins", username, request
+                        .getRemoteAddr());
+                throw new LoginException("too many failed logins");
+            }
 
-            jaasLoginCtx.login();
+            Subject loginSubject;
+            try {
+                if (credentialValidator != null) {
+                    loginSubject = credentialValidator.validate(username, password);
+                } else {
+                    SimpleCallbackHandler cbh = new SimpleCallbackHandler(username, password);
+                    loginSubject = loginExecutor.login(jaasConfigName, cbh);
+                }
+            } catch (FailedLoginException e) {
+                if (failureTracker != null) {
+                    failureTracker.recordFailure(username, request.getRemoteAddr());
+                }
+                throw e;
+            }
+            if (failureTracker != null) {
+                failureTracker.recordSuccess(username);
+            }
             log.debug("Successfully authenticated user {}", username);
 
-            Subject loginSubject = jaasLoginCtx.getSubject();
-
             Set<Principal> principals = loginSubject.getPrincipals();
             principals.add(new UsernamePrincipal(username));
 
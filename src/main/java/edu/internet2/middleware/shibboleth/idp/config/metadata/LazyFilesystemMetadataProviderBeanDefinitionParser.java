@@ -0,0 +1,76 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.config.metadata;
+
+import java.io.File;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.xml.util.DatatypeHelper;
+import org.opensaml.xml.util.XMLHelper;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.xml.ParserContext;
+import org.w3c.dom.Element;
+
+import edu.internet2.middleware.shibboleth.common.config.metadata.AbstractMetadataProviderBeanDefinitionParser;
+import edu.internet2.middleware.shibboleth.idp.metadata.LazyFilesystemMetadataProvider;
+
+/** Spring bean definition parser for {@link LazyFilesystemMetadataProvider}s. */
+public class LazyFilesystemMetadataProviderBeanDefinitionParser extends AbstractMetadataProviderBeanDefinitionParser {
+
+    /** Schema type. */
+    public static final QName SCHEMA_TYPE = new QName(MetadataNamespaceHandler.NAMESPACE,
+            "LazyFilesystemMetadataProvider");
+
+    /** {@inheritDoc} */
+    protected Class getBeanClass(Element element) {
+        return LazyFilesystemMetadataProvider.class;
+    }
+
+    /** {@inheritDoc} */
+    protected void doParse(Element config, ParserContext parserContext, BeanDefinitionBuilder builder) {
+        super.doParse(config, parserContext, builder);
+
+        builder.addConstructorArgValue(new File(DatatypeHelper.safeTrim(config.getAttributeNS(null,
+                "metadataFile"))));
+
+        String parserPoolRef = DatatypeHelper.safeTrimOrNullString(config.getAttributeNS(null, "parserPoolRef"));
+        if (parserPoolRef == null) {
+            parserPoolRef = "shibboleth.ParserPool";
+        }
+        builder.addConstructorArgReference(parserPoolRef);
+
+        if (config.hasAttributeNS(null, "maxCachedEntities")) {
+            builder.addPropertyValue("maxCachedEntities", Integer.parseInt(DatatypeHelper.safeTrim(config
+                    .getAttributeNS(null, "maxCachedEntities"))));
+        }
+
+        String trustEngineRef = DatatypeHelper.safeTrimOrNullString(config.getAttributeNS(null, "trustEngineRef"));
+        if (trustEngineRef != null) {
+            builder.addPropertyReference("signatureTrustEngine", trustEngineRef);
+        }
+
+        if (config.hasAttributeNS(null, "requireSignedMetadata")) {
+            builder.addPropertyValue("requireSignedMetadata", XMLHelper.getAttributeValueAsBoolean(config
+                    .getAttributeNodeNS(null, "requireSignedMetadata")));
+        }
+
+        builder.setInitMethodName("initialize");
+        builder.setDestroyMethodName("destroy");
+    }
+}
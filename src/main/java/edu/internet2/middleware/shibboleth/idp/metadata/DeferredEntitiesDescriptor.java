@@ -0,0 +1,69 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.metadata;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.impl.EntitiesDescriptorImpl;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+
+/**
+ * The document element of a metadata aggregate whose entities are loaded one at a time, as they are looked up.
+ * 
+ * The group carries the name, ID and validity of the aggregate but none of its entities or nested groups, which
+ * should be looked up through {@link #getEntityDescriptor(String)} instead of being walked. A new instance is created
+ * every time the aggregate is reloaded, so that users of the metadata can tell when it changed.
+ */
+public class DeferredEntitiesDescriptor extends EntitiesDescriptorImpl {
+
+    /** Provider loading the entities of the aggregate. */
+    private final LazyFilesystemMetadataProvider provider;
+
+    /**
+     * Constructor.
+     * 
+     * @param metadataProvider provider loading the entities of the aggregate
+     */
+    protected DeferredEntitiesDescriptor(LazyFilesystemMetadataProvider metadataProvider) {
+        super(SAMLConstants.SAML20MD_NS, EntitiesDescriptor.DEFAULT_ELEMENT_LOCAL_NAME, SAMLConstants.SAML20MD_PREFIX);
+        provider = metadataProvider;
+    }
+
+    /**
+     * Gets the provider loading the entities of the aggregate.
+     * 
+     * @return provider loading the entities of the aggregate
+     */
+    public LazyFilesystemMetadataProvider getProvider() {
+        return provider;
+    }
+
+    /**
+     * Gets the metadata of an entity of the aggregate, loading it if needed.
+     * 
+     * @param entityId ID of the entity
+     * 
+     * @return the metadata of the entity, or null if the aggregate has no valid metadata for it
+     * 
+     * @throws MetadataProviderException thrown if the metadata of the entity can not be loaded
+     */
+    public EntityDescriptor getEntityDescriptor(String entityId) throws MetadataProviderException {
+        return provider.getEntityDescriptor(entityId);
+    }
+}
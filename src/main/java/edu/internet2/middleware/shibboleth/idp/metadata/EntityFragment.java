@@ -0,0 +1,124 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.metadata;
+
+import org.joda.time.DateTime;
+
+/** The location of an entity's metadata within a metadata document, and the context needed to parse it on its own. */
+final class EntityFragment {
+
+    /** ID of the entity. */
+    private final String entityId;
+
+    /** Offset of the first byte of the entity's metadata in the document. */
+    private final long offset;
+
+    /** Number of bytes of the entity's metadata. */
+    private final int length;
+
+    /** Namespace declarations in scope of the entity, as they appear in the document, shared between siblings. */
+    private final String namespaceDeclarations;
+
+    /** Earliest expiration of the groups enclosing the entity, null if none expires. */
+    private final DateTime enclosingValidUntil;
+
+    /** Digest of the entity's metadata as it was read when the document was verified, null until computed. */
+    private byte[] digest;
+
+    /**
+     * Constructor.
+     * 
+     * @param id ID of the entity
+     * @param start offset of the first byte of the entity's metadata in the document
+     * @param size number of bytes of the entity's metadata
+     * @param declarations namespace declarations in scope of the entity
+     * @param validUntil earliest expiration of the groups enclosing the entity, may be null
+     */
+    EntityFragment(String id, long start, int size, String declarations, DateTime validUntil) {
+        entityId = id;
+        offset = start;
+        length = size;
+        namespaceDeclarations = declarations;
+        enclosingValidUntil = validUntil;
+    }
+
+    /**
+     * Gets the ID of the entity.
+     * 
+     * @return ID of the entity
+     */
+    String getEntityId() {
+        return entityId;
+    }
+
+    /**
+     * Gets the offset of the first byte of the entity's metadata in the document.
+     * 
+     * @return offset of the first byte of the entity's metadata
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Gets the number of bytes of the entity's metadata.
+     * 
+     * @return number of bytes of the entity's metadata
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the namespace declarations in scope of the entity, as attributes ready to be added to an enclosing
+     * element.
+     * 
+     * @return namespace declarations in scope of the entity, may be empty
+     */
+    String getNamespaceDeclarations() {
+        return namespaceDeclarations;
+    }
+
+    /**
+     * Gets the earliest expiration of the groups enclosing the entity.
+     * 
+     * @return earliest expiration of the groups enclosing the entity, null if none expires
+     */
+    DateTime getEnclosingValidUntil() {
+        return enclosingValidUntil;
+    }
+
+    /**
+     * Gets the digest of the entity's metadata as it was read when the document was verified.
+     * 
+     * @return digest of the entity's metadata, null if not computed yet
+     */
+    byte[] getDigest() {
+        return digest;
+    }
+
+    /**
+     * Sets the digest of the entity's metadata. Only set while the document is loaded, before the fragment is
+     * published to other threads.
+     * 
+     * @param entityDigest digest of the entity's metadata
+     */
+    void setDigest(byte[] entityDigest) {
+        digest = entityDigest;
+    }
+}
@@ -0,0 +1,1008 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.metadata;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.signature.XMLSignature;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.opensaml.Configuration;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml2.metadata.provider.FilterException;
+import org.opensaml.saml2.metadata.provider.MetadataFilter;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.opensaml.xml.util.XMLConstants;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A metadata provider for large metadata aggregates read from a file, which only unmarshalls the metadata of the
+ * entities actually looked up.
+ * 
+ * When loaded, the file is copied to a private file, only readable by the IdP, from which everything else is read.
+ * The copy is scanned once for the location of each entity's metadata, without building any XML object, and the byte
+ * range and digest of each entity kept in an index. The metadata of an entity is read from the copy, checked against
+ * its digest, parsed and unmarshalled on its own when it is first looked up, and kept in a cache of the most
+ * recently used entities. Its DOM is released once unmarshalled. Heap use is so bounded by the number of entities
+ * the IdP actually talks to rather than by the size of the aggregate. Changes to the original file, whether or not
+ * they can be loaded, never reach the metadata served until they have been loaded, and verified, as a whole.
+ * 
+ * If a signature trust engine is set, the signature on the aggregate is verified each time it is loaded, which
+ * requires parsing the whole aggregate into a DOM that is discarded right after. Any metadata filter is applied to
+ * each entity's metadata when it is unmarshalled, rather than to the aggregate as a whole.
+ * 
+ * {@link #getMetadata()} returns a {@link DeferredEntitiesDescriptor} carrying the name and validity of the aggregate
+ * but none of its entities, which must be looked up by ID. The file is checked for changes when an entity is not
+ * cached, and reloaded if it changed, observers being notified.
+ */
+public class LazyFilesystemMetadataProvider implements ObservableMetadataProvider {
+
+    /** Default number of entities whose metadata is kept unmarshalled. */
+    public static final int DEFAULT_MAX_CACHED_ENTITIES = 500;
+
+    /** Algorithm of the digests of the copy and of each entity's metadata. */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /** Name of the element enclosing the metadata of an entity when it is parsed on its own. */
+    private static final String FRAGMENT_ELEMENT = "EntityFragment";
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(LazyFilesystemMetadataProvider.class);
+
+    /** File the metadata aggregate is read from. */
+    private final File metadataFile;
+
+    /** Pool of parsers used to parse the aggregate and the metadata of each entity. */
+    private final ParserPool parserPool;
+
+    /** Observers notified when the aggregate is reloaded. */
+    private final List<Observer> observers;
+
+    /** Maximum number of entities whose metadata is kept unmarshalled. */
+    private int maxCachedEntities;
+
+    /** Whether metadata which is no longer valid is ignored. */
+    private boolean requireValidMetadata;
+
+    /** Filter applied to the metadata of each entity when it is unmarshalled, may be null. */
+    private MetadataFilter metadataFilter;
+
+    /** Trust engine used to verify the signature on the aggregate, may be null. */
+    private SignatureTrustEngine signatureTrustEngine;
+
+    /** Whether the aggregate must be signed. */
+    private boolean requireSignedMetadata;
+
+    /** Modification time of the file when it last failed to load, -1 if it never did. */
+    private volatile long rejectedLastModified;
+
+    /** Currently loaded aggregate, null until the provider is initialized. */
+    private volatile LoadedAggregate aggregate;
+
+    /** Number of entity lookups answered from the cache. */
+    private final AtomicLong hits;
+
+    /** Number of entities whose metadata was read from the file and unmarshalled. */
+    private final AtomicLong loads;
+
+    /** Number of entities dropped from the cache to make room for others. */
+    private final AtomicLong evictions;
+
+    /**
+     * Constructor.
+     * 
+     * @param file file the metadata aggregate is read from
+     * @param pool pool of parsers used to parse the metadata
+     */
+    public LazyFilesystemMetadataProvider(File file, ParserPool pool) {
+        if (file == null) {
+            throw new IllegalArgumentException("Metadata file may not be null");
+        }
+        if (pool == null) {
+            throw new IllegalArgumentException("Parser pool may not be null");
+        }
+
+        metadataFile = file;
+        parserPool = pool;
+        observers = new CopyOnWriteArrayList<Observer>();
+        maxCachedEntities = DEFAULT_MAX_CACHED_ENTITIES;
+        requireValidMetadata = true;
+        rejectedLastModified = -1;
+        hits = new AtomicLong();
+        loads = new AtomicLong();
+        evictions = new AtomicLong();
+    }
+
+    /**
+     * Loads the aggregate. Does nothing if it is already loaded.
+     * 
+     * @throws MetadataProviderException thrown if the aggregate can not be loaded
+     */
+    public synchronized void initialize() throws MetadataProviderException {
+        if (aggregate == null) {
+            aggregate = load();
+        }
+    }
+
+    /**
+     * Reloads the aggregate if its file changed since it was last loaded, dropping all cached entities and notifying
+     * the observers of the provider. The previously loaded aggregate is kept if the file can not be loaded, and the
+     * file is then only reloaded on lookups once it changes again.
+     * 
+     * @return true if the aggregate was reloaded
+     * 
+     * @throws MetadataProviderException thrown if the changed file can not be loaded
+     */
+    public boolean refresh() throws MetadataProviderException {
+        synchronized (this) {
+            LoadedAggregate current = aggregate;
+            if (current != null && !current.isStale()) {
+                return false;
+            }
+            long lastModified = metadataFile.lastModified();
+            try {
+                aggregate = load();
+            } catch (MetadataProviderException e) {
+                rejectedLastModified = lastModified;
+                throw e;
+            }
+            if (current != null) {
+                current.discard();
+            }
+        }
+
+        for (Observer observer : observers) {
+            observer.onEvent(this);
+        }
+        return true;
+    }
+
+    /** Drops the loaded aggregate and all cached entities. */
+    public synchronized void destroy() {
+        if (aggregate != null) {
+            aggregate.discard();
+        }
+        aggregate = null;
+        observers.clear();
+    }
+
+    /**
+     * Gets the file the metadata aggregate is read from.
+     * 
+     * @return file the metadata aggregate is read from
+     */
+    public File getMetadataFile() {
+        return metadataFile;
+    }
+
+    /**
+     * Gets the maximum number of entities whose metadata is kept unmarshalled.
+     * 
+     * @return maximum number of entities whose metadata is kept unmarshalled
+     */
+    public int getMaxCachedEntities() {
+        return maxCachedEntities;
+    }
+
+    /**
+     * Sets the maximum number of entities whose metadata is kept unmarshalled. Takes effect when the aggregate is
+     * next loaded.
+     * 
+     * @param max maximum number of entities whose metadata is kept unmarshalled
+     */
+    public void setMaxCachedEntities(int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("Maximum number of cached entities must be greater than zero");
+        }
+        maxCachedEntities = max;
+    }
+
+    /**
+     * Gets the trust engine used to verify the signature on the aggregate.
+     * 
+     * @return trust engine used to verify the signature on the aggregate, may be null
+     */
+    public SignatureTrustEngine getSignatureTrustEngine() {
+        return signatureTrustEngine;
+    }
+
+    /**
+     * Sets the trust engine used to verify the signature on the aggregate.
+     * 
+     * @param engine trust engine used to verify the signature on the aggregate, may be null
+     */
+    public void setSignatureTrustEngine(SignatureTrustEngine engine) {
+        signatureTrustEngine = engine;
+    }
+
+    /**
+     * Gets whether the aggregate must be signed.
+     * 
+     * @return whether the aggregate must be signed
+     */
+    public boolean isRequireSignedMetadata() {
+        return requireSignedMetadata;
+    }
+
+    /**
+     * Sets whether the aggregate must be signed.
+     * 
+     * @param required whether the aggregate must be signed
+     */
+    public void setRequireSignedMetadata(boolean required) {
+        requireSignedMetadata = required;
+    }
+
+    /**
+     * Gets the number of entities in the loaded aggregate.
+     * 
+     * @return number of entities in the loaded aggregate
+     */
+    public int getEntityCount() {
+        LoadedAggregate current = aggregate;
+        if (current == null) {
+            return 0;
+        }
+        return current.fragments.size();
+    }
+
+    /**
+     * Gets the number of entities whose metadata is currently unmarshalled.
+     * 
+     * @return number of entities whose metadata is currently unmarshalled
+     */
+    public int getCachedEntityCount() {
+        LoadedAggregate current = aggregate;
+        if (current == null) {
+            return 0;
+        }
+        synchronized (current.entities) {
+            return current.entities.size();
+        }
+    }
+
+    /**
+     * Gets the number of entity lookups answered from the cache.
+     * 
+     * @return number of entity lookups answered from the cache
+     */
+    public long getCacheHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of entities whose metadata was read from the file and unmarshalled.
+     * 
+     * @return number of entities whose metadata was read from the file and unmarshalled
+     */
+    public long getEntityLoads() {
+        return loads.get();
+    }
+
+    /**
+     * Gets the number of entities dropped from the cache to make room for others.
+     * 
+     * @return number of entities dropped from the cache
+     */
+    public long getCacheEvictions() {
+        return evictions.get();
+    }
+
+    /** {@inheritDoc} */
+    public List<Observer> getObservers() {
+        return observers;
+    }
+
+    /** {@inheritDoc} */
+    public boolean requireValidMetadata() {
+        return requireValidMetadata;
+    }
+
+    /** {@inheritDoc} */
+    public void setRequireValidMetadata(boolean requireValid) {
+        requireValidMetadata = requireValid;
+    }
+
+    /** {@inheritDoc} */
+    public MetadataFilter getMetadataFilter() {
+        return metadataFilter;
+    }
+
+    /** {@inheritDoc} */
+    public void setMetadataFilter(MetadataFilter newFilter) throws MetadataProviderException {
+        metadataFilter = newFilter;
+    }
+
+    /** {@inheritDoc} */
+    public XMLObject getMetadata() throws MetadataProviderException {
+        return getAggregate().metadata;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Only the aggregate as a whole can be looked up by name, nested groups are not kept.
+     */
+    public EntitiesDescriptor getEntitiesDescriptor(String name) throws MetadataProviderException {
+        DeferredEntitiesDescriptor metadata = getAggregate().metadata;
+        if (name == null || !name.equals(metadata.getName())) {
+            return null;
+        }
+        if (requireValidMetadata && !isValid(metadata.getValidUntil())) {
+            log.debug("Metadata group {} is no longer valid", name);
+            return null;
+        }
+        return metadata;
+    }
+
+    /** {@inheritDoc} */
+    public EntityDescriptor getEntityDescriptor(String entityID) throws MetadataProviderException {
+        if (entityID == null) {
+            return null;
+        }
+
+        LoadedAggregate current = getAggregate();
+        EntityFragment fragment = current.fragments.get(entityID);
+        EntityDescriptor entity = null;
+        if (fragment != null) {
+            synchronized (current.entities) {
+                entity = current.entities.get(entityID);
+            }
+        }
+
+        if (entity != null) {
+            hits.incrementAndGet();
+        } else {
+            if (current.isStale() && metadataFile.lastModified() != rejectedLastModified) {
+                try {
+                    refresh();
+                    return getEntityDescriptor(entityID);
+                } catch (MetadataProviderException e) {
+                    log.error("Unable to reload changed metadata file " + metadataFile
+                            + ", it will not be reloaded until it changes again", e);
+                }
+            }
+            if (fragment == null) {
+                return null;
+            }
+            try {
+                entity = loadEntity(current, fragment);
+            } catch (MetadataProviderException e) {
+                if (aggregate != null && aggregate != current) {
+                    log.debug("Metadata file {} was reloaded while looking up entity {}", metadataFile, entityID);
+                    return getEntityDescriptor(entityID);
+                }
+                throw e;
+            }
+            if (entity == null) {
+                return null;
+            }
+        }
+
+        if (requireValidMetadata && !(isValid(fragment.getEnclosingValidUntil()) && isValid(entity.getValidUntil()))) {
+            log.debug("Metadata of entity {} is no longer valid", entityID);
+            return null;
+        }
+        return entity;
+    }
+
+    /** {@inheritDoc} */
+    public List<RoleDescriptor> getRole(String entityID, QName roleName) throws MetadataProviderException {
+        EntityDescriptor entity = getEntityDescriptor(entityID);
+        if (entity == null || roleName == null) {
+            return null;
+        }
+
+        List<RoleDescriptor> roles = entity.getRoleDescriptors(roleName);
+        if (roles == null || !requireValidMetadata) {
+            return roles;
+        }
+        List<RoleDescriptor> validRoles = new ArrayList<RoleDescriptor>(roles.size());
+        for (RoleDescriptor role : roles) {
+            if (isValid(role.getValidUntil())) {
+                validRoles.add(role);
+            }
+        }
+        return validRoles;
+    }
+
+    /** {@inheritDoc} */
+    public RoleDescriptor getRole(String entityID, QName roleName, String supportedProtocol)
+            throws MetadataProviderException {
+        List<RoleDescriptor> roles = getRole(entityID, roleName);
+        if (roles == null || supportedProtocol == null) {
+            return null;
+        }
+
+        for (RoleDescriptor role : roles) {
+            if (role.isSupportedProtocol(supportedProtocol)) {
+                return role;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the currently loaded aggregate.
+     * 
+     * @return the currently loaded aggregate
+     * 
+     * @throws MetadataProviderException thrown if the provider is not initialized
+     */
+    private LoadedAggregate getAggregate() throws MetadataProviderException {
+        LoadedAggregate current = aggregate;
+        if (current == null) {
+            throw new MetadataProviderException("Metadata provider for " + metadataFile + " is not initialized");
+        }
+        return current;
+    }
+
+    /**
+     * Loads the aggregate: copies the file, verifies the signature of the copy if required, indexes the location of
+     * each entity's metadata in the copy and computes the digest of each entity's metadata.
+     * 
+     * @return the loaded aggregate
+     * 
+     * @throws MetadataProviderException thrown if the aggregate can not be loaded
+     */
+    private LoadedAggregate load() throws MetadataProviderException {
+        long start = System.currentTimeMillis();
+        long lastModified = metadataFile.lastModified();
+        long length = metadataFile.length();
+        if (!metadataFile.canRead()) {
+            throw new MetadataProviderException("Metadata file " + metadataFile + " can not be read");
+        }
+
+        File copy = createCopy();
+        boolean loaded = false;
+        try {
+            byte[] copyDigest = copy(metadataFile, copy);
+            LoadedAggregate loadedAggregate = load(copy, copyDigest, lastModified, length);
+            log.info("Indexed {} entities of metadata file {} in {}ms", new Object[] {
+                    loadedAggregate.fragments.size(), metadataFile, System.currentTimeMillis() - start, });
+            loaded = true;
+            return loadedAggregate;
+        } finally {
+            if (!loaded && !copy.delete()) {
+                log.warn("Unable to delete copy {} of metadata file {}", copy, metadataFile);
+            }
+        }
+    }
+
+    /**
+     * Loads the aggregate from the private copy of the file.
+     * 
+     * @param copy private copy of the file
+     * @param copyDigest digest of the content written to the copy
+     * @param lastModified modification time of the file when it was copied
+     * @param length length of the file when it was copied
+     * 
+     * @return the loaded aggregate
+     * 
+     * @throws MetadataProviderException thrown if the aggregate can not be loaded
+     */
+    private LoadedAggregate load(File copy, byte[] copyDigest, long lastModified, long length)
+            throws MetadataProviderException {
+        verifySignature(copy);
+
+        MetadataFragmentScanner scanner;
+        InputStream input = null;
+        try {
+            input = new BufferedInputStream(new FileInputStream(copy), 64 * 1024);
+            scanner = new MetadataFragmentScanner(input);
+            scanner.scan();
+        } catch (IOException e) {
+            throw new MetadataProviderException("Unable to read metadata file " + metadataFile, e);
+        } finally {
+            close(input);
+        }
+
+        if (!MessageDigest.isEqual(copyDigest, digestFragments(copy, scanner.getFragments().values()))) {
+            throw new MetadataProviderException("Copy " + copy + " of metadata file " + metadataFile
+                    + " was modified while it was loaded");
+        }
+
+        boolean aggregated = EntitiesDescriptor.DEFAULT_ELEMENT_LOCAL_NAME.equals(scanner.getRootName());
+        if (!SAMLConstants.SAML20MD_NS.equals(scanner.getRootNamespace())
+                || !(aggregated || EntityDescriptor.DEFAULT_ELEMENT_LOCAL_NAME.equals(scanner.getRootName()))) {
+            throw new MetadataProviderException("Metadata file " + metadataFile + " does not contain SAML metadata");
+        }
+
+        DeferredEntitiesDescriptor metadata = new DeferredEntitiesDescriptor(this);
+        if (aggregated) {
+            Map<String, String> attributes = scanner.getRootAttributes();
+            metadata.setName(attributes.get(EntitiesDescriptor.NAME_ATTRIB_NAME));
+            metadata.setID(attributes.get(EntitiesDescriptor.ID_ATTRIB_NAME));
+            String validUntil = attributes.get(EntitiesDescriptor.VALID_UNTIL_ATTRIB_NAME);
+            if (validUntil != null) {
+                try {
+                    metadata.setValidUntil(new DateTime(validUntil.trim(), ISOChronology.getInstanceUTC()));
+                } catch (IllegalArgumentException e) {
+                    throw new MetadataProviderException("Invalid validUntil attribute " + validUntil);
+                }
+            }
+        }
+
+        return new LoadedAggregate(metadata, Collections.unmodifiableMap(scanner.getFragments()), copy,
+                lastModified, length);
+    }
+
+    /**
+     * Creates the private file to which the metadata file is copied, only readable and writable by the IdP.
+     * 
+     * @return the private file
+     * 
+     * @throws MetadataProviderException thrown if the file can not be created
+     */
+    private File createCopy() throws MetadataProviderException {
+        File copy;
+        try {
+            copy = File.createTempFile("shibboleth-metadata", ".xml");
+        } catch (IOException e) {
+            throw new MetadataProviderException("Unable to create copy of metadata file " + metadataFile, e);
+        }
+        copy.deleteOnExit();
+        if (!(copy.setReadable(false, false) && copy.setReadable(true, true) && copy.setWritable(false, false) && copy
+                .setWritable(true, true))) {
+            copy.delete();
+            throw new MetadataProviderException("Unable to restrict access to copy of metadata file " + metadataFile);
+        }
+        return copy;
+    }
+
+    /**
+     * Copies a file.
+     * 
+     * @param source file to copy
+     * @param destination file to copy to
+     * 
+     * @return digest of the copied content
+     * 
+     * @throws MetadataProviderException thrown if the file can not be copied
+     */
+    private byte[] copy(File source, File destination) throws MetadataProviderException {
+        MessageDigest digest = newDigest();
+        InputStream input = null;
+        OutputStream output = null;
+        try {
+            input = new FileInputStream(source);
+            output = new FileOutputStream(destination);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+            }
+            output.close();
+            output = null;
+        } catch (IOException e) {
+            throw new MetadataProviderException("Unable to copy metadata file " + metadataFile, e);
+        } finally {
+            close(input);
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    log.debug("Unable to close copy of metadata file " + metadataFile, e);
+                }
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Reads the whole copy of the file once more, computing the digest of each entity's metadata and of the copy.
+     * 
+     * @param copy private copy of the file
+     * @param fragments locations of the entities' metadata
+     * 
+     * @return digest of the copy, which must match the digest computed when it was written
+     * 
+     * @throws MetadataProviderException thrown if the copy can not be read
+     */
+    private byte[] digestFragments(File copy, Collection<EntityFragment> fragments) throws MetadataProviderException {
+        List<EntityFragment> ordered = new ArrayList<EntityFragment>(fragments);
+        Collections.sort(ordered, new Comparator<EntityFragment>() {
+            /** {@inheritDoc} */
+            public int compare(EntityFragment fragment1, EntityFragment fragment2) {
+                return fragment1.getOffset() < fragment2.getOffset() ? -1
+                        : (fragment1.getOffset() == fragment2.getOffset() ? 0 : 1);
+            }
+        });
+
+        MessageDigest copyDigest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        InputStream input = null;
+        try {
+            input = new BufferedInputStream(new FileInputStream(copy), 64 * 1024);
+            long position = 0;
+            for (EntityFragment fragment : ordered) {
+                position += digest(input, fragment.getOffset() - position, buffer, copyDigest, null);
+                MessageDigest fragmentDigest = newDigest();
+                position += digest(input, fragment.getLength(), buffer, copyDigest, fragmentDigest);
+                fragment.setDigest(fragmentDigest.digest());
+            }
+            digest(input, Long.MAX_VALUE, buffer, copyDigest, null);
+        } catch (IOException e) {
+            throw new MetadataProviderException("Unable to read copy of metadata file " + metadataFile, e);
+        } finally {
+            close(input);
+        }
+        return copyDigest.digest();
+    }
+
+    /**
+     * Reads bytes from a stream into one or two digests.
+     * 
+     * @param input stream to read from
+     * @param count number of bytes to read, {@link Long#MAX_VALUE} to read up to the end of the stream
+     * @param buffer buffer used to read
+     * @param digest1 digest updated with the bytes read
+     * @param digest2 second digest updated with the bytes read, may be null
+     * 
+     * @return number of bytes read
+     * 
+     * @throws IOException thrown if the stream ends before the given number of bytes, unless told to read to its end
+     */
+    private static long digest(InputStream input, long count, byte[] buffer, MessageDigest digest1,
+            MessageDigest digest2) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                if (count == Long.MAX_VALUE) {
+                    break;
+                }
+                throw new EOFException("Metadata ends within an entity");
+            }
+            digest1.update(buffer, 0, read);
+            if (digest2 != null) {
+                digest2.update(buffer, 0, read);
+            }
+            remaining -= read;
+        }
+        return count - remaining;
+    }
+
+    /**
+     * Creates a digest of the algorithm used for the copy and the entities' metadata.
+     * 
+     * @return the digest
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not supported by the JVM", e);
+        }
+    }
+
+    /**
+     * Verifies the signature on the aggregate, if a trust engine is set.
+     * 
+     * @param copy private copy of the file
+     * 
+     * @throws MetadataProviderException thrown if the signature is missing but required, or is not valid
+     */
+    private void verifySignature(File copy) throws MetadataProviderException {
+        if (signatureTrustEngine == null) {
+            if (requireSignedMetadata) {
+                throw new MetadataProviderException("Signed metadata is required but no signature trust engine is set");
+            }
+            return;
+        }
+
+        Document document;
+        InputStream input = null;
+        try {
+            input = new BufferedInputStream(new FileInputStream(copy), 64 * 1024);
+            document = parserPool.parse(input);
+        } catch (IOException e) {
+            throw new MetadataProviderException("Unable to read metadata file " + metadataFile, e);
+        } catch (XMLParserException e) {
+            throw new MetadataProviderException("Unable to parse metadata file " + metadataFile, e);
+        } finally {
+            close(input);
+        }
+
+        Element root = document.getDocumentElement();
+        Element signatureElement = null;
+        for (Element child : XMLHelper.getChildElements(root)) {
+            if (XMLConstants.XMLSIG_NS.equals(child.getNamespaceURI())
+                    && Signature.DEFAULT_ELEMENT_LOCAL_NAME.equals(child.getLocalName())) {
+                signatureElement = child;
+                break;
+            }
+        }
+        if (signatureElement == null) {
+            if (requireSignedMetadata) {
+                throw new MetadataProviderException("Metadata file " + metadataFile + " is not signed");
+            }
+            log.debug("Metadata file {} is not signed", metadataFile);
+            return;
+        }
+
+        String rootId = null;
+        if (root.hasAttributeNS(null, EntitiesDescriptor.ID_ATTRIB_NAME)) {
+            rootId = root.getAttributeNS(null, EntitiesDescriptor.ID_ATTRIB_NAME);
+            root.setIdAttributeNS(null, EntitiesDescriptor.ID_ATTRIB_NAME, true);
+        }
+
+        try {
+            XMLSignature xmlSignature = new XMLSignature(signatureElement, "");
+            if (xmlSignature.getSignedInfo().getLength() != 1) {
+                throw new MetadataProviderException("Signature on metadata file " + metadataFile
+                        + " must contain exactly one reference");
+            }
+            String uri = xmlSignature.getSignedInfo().item(0).getURI();
+            if (!"".equals(uri) && !("#" + rootId).equals(uri)) {
+                throw new MetadataProviderException("Signature on metadata file " + metadataFile
+                        + " does not reference its document element");
+            }
+
+            Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(signatureElement);
+            Signature signature = (Signature) unmarshaller.unmarshall(signatureElement);
+            CriteriaSet criteria = new CriteriaSet();
+            criteria.add(new UsageCriteria(UsageType.SIGNING));
+            if (!signatureTrustEngine.validate(signature, criteria)) {
+                throw new MetadataProviderException("Signature on metadata file " + metadataFile
+                        + " is not trusted");
+            }
+        } catch (XMLSecurityException e) {
+            throw new MetadataProviderException("Unable to read signature on metadata file " + metadataFile, e);
+        } catch (UnmarshallingException e) {
+            throw new MetadataProviderException("Unable to read signature on metadata file " + metadataFile, e);
+        } catch (SecurityException e) {
+            throw new MetadataProviderException("Unable to verify signature on metadata file " + metadataFile, e);
+        }
+        log.debug("Verified signature on metadata file {}", metadataFile);
+    }
+
+    /**
+     * Reads the metadata of an entity from the copy of the file, checks it against its digest, parses and unmarshalls
+     * it and caches it.
+     * 
+     * @param current aggregate the entity belongs to
+     * @param fragment location of the entity's metadata
+     * 
+     * @return the metadata of the entity, or null if it was filtered out
+     * 
+     * @throws MetadataProviderException thrown if the metadata of the entity can not be read
+     */
+    private EntityDescriptor loadEntity(LoadedAggregate current, EntityFragment fragment)
+            throws MetadataProviderException {
+        byte[] content = new byte[fragment.getLength()];
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(current.copy, "r");
+            file.seek(fragment.getOffset());
+            file.readFully(content);
+        } catch (IOException e) {
+            throw new MetadataProviderException("Unable to read metadata of entity " + fragment.getEntityId()
+                    + " from " + metadataFile, e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    log.debug("Unable to close metadata file " + metadataFile, e);
+                }
+            }
+        }
+
+        if (!MessageDigest.isEqual(fragment.getDigest(), newDigest().digest(content))) {
+            throw new MetadataProviderException("Metadata of entity " + fragment.getEntityId() + " read from "
+                    + current.copy + " does not match the metadata loaded from " + metadataFile);
+        }
+
+        EntityDescriptor entity;
+        try {
+            InputStream input = new SequenceInputStream(new ByteArrayInputStream(("<" + FRAGMENT_ELEMENT
+                    + fragment.getNamespaceDeclarations() + ">").getBytes("UTF-8")), new SequenceInputStream(
+                    new ByteArrayInputStream(content), new ByteArrayInputStream(("</" + FRAGMENT_ELEMENT + ">")
+                            .getBytes("UTF-8"))));
+            Element element = XMLHelper.getFirstChildElement(parserPool.parse(input).getDocumentElement());
+            Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(element);
+            if (unmarshaller == null) {
+                throw new MetadataProviderException("No unmarshaller registered for metadata of entity "
+                        + fragment.getEntityId());
+            }
+            entity = (EntityDescriptor) unmarshaller.unmarshall(element);
+        } catch (IOException e) {
+            throw new MetadataProviderException("Unable to read metadata of entity " + fragment.getEntityId(), e);
+        } catch (XMLParserException e) {
+            throw new MetadataProviderException("Unable to parse metadata of entity " + fragment.getEntityId(), e);
+        } catch (UnmarshallingException e) {
+            throw new MetadataProviderException("Unable to unmarshall metadata of entity " + fragment.getEntityId(),
+                    e);
+        } catch (ClassCastException e) {
+            throw new MetadataProviderException("Metadata of entity " + fragment.getEntityId()
+                    + " is not an entity descriptor", e);
+        }
+
+        if (!fragment.getEntityId().equals(entity.getEntityID())) {
+            throw new MetadataProviderException("Metadata of entity " + fragment.getEntityId() + " in " + metadataFile
+                    + " is out of date, the file must be reloaded");
+        }
+
+        if (metadataFilter != null) {
+            try {
+                metadataFilter.doFilter(entity);
+            } catch (FilterException e) {
+                log.warn("Metadata of entity {} was rejected by the metadata filter: {}", fragment.getEntityId(), e
+                        .getMessage());
+                return null;
+            }
+        }
+
+        entity.releaseChildrenDOM(true);
+        entity.releaseDOM();
+        loads.incrementAndGet();
+        log.debug("Loaded metadata of entity {}", fragment.getEntityId());
+
+        synchronized (current.entities) {
+            EntityDescriptor cached = current.entities.get(fragment.getEntityId());
+            if (cached != null) {
+                return cached;
+            }
+            current.entities.put(fragment.getEntityId(), entity);
+        }
+        return entity;
+    }
+
+    /**
+     * Gets whether metadata with the given expiration is still valid.
+     * 
+     * @param validUntil expiration of the metadata, may be null
+     * 
+     * @return whether the metadata is still valid
+     */
+    private static boolean isValid(DateTime validUntil) {
+        return validUntil == null || validUntil.isAfterNow();
+    }
+
+    /**
+     * Closes a stream, ignoring errors.
+     * 
+     * @param stream the stream, may be null
+     */
+    private void close(InputStream stream) {
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            log.debug("Unable to close metadata file " + metadataFile, e);
+        }
+    }
+
+    /** A loaded aggregate along with the metadata of its recently used entities. */
+    private final class LoadedAggregate {
+
+        /** Document element of the aggregate. */
+        private final DeferredEntitiesDescriptor metadata;
+
+        /** Locations of the entities' metadata, by entity ID. */
+        private final Map<String, EntityFragment> fragments;
+
+        /** Metadata of the recently used entities, least recently used first. */
+        private final Map<String, EntityDescriptor> entities;
+
+        /** Private copy of the file the entities' metadata is read from. */
+        private final File copy;
+
+        /** Modification time of the file when it was loaded. */
+        private final long lastModified;
+
+        /** Length of the file when it was loaded. */
+        private final long length;
+
+        /**
+         * Constructor.
+         * 
+         * @param root document element of the aggregate
+         * @param entityFragments locations of the entities' metadata
+         * @param fileCopy private copy of the file the entities' metadata is read from
+         * @param fileLastModified modification time of the file when it was loaded
+         * @param fileLength length of the file when it was loaded
+         */
+        private LoadedAggregate(DeferredEntitiesDescriptor root, Map<String, EntityFragment> entityFragments,
+                File fileCopy, long fileLastModified, long fileLength) {
+            metadata = root;
+            fragments = entityFragments;
+            copy = fileCopy;
+            lastModified = fileLastModified;
+            length = fileLength;
+
+            final int maxEntries = maxCachedEntities;
+            entities = new LinkedHashMap<String, EntityDescriptor>(16, 0.75f, true) {
+                /** Serial version UID. */
+                private static final long serialVersionUID = 4937012553850390428L;
+
+                /** {@inheritDoc} */
+                protected boolean removeEldestEntry(Map.Entry<String, EntityDescriptor> eldest) {
+                    if (size() > maxEntries) {
+                        evictions.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * Gets whether the file changed since the aggregate was loaded.
+         * 
+         * @return whether the file changed since the aggregate was loaded
+         */
+        private boolean isStale() {
+            return metadataFile.lastModified() != lastModified || metadataFile.length() != length;
+        }
+
+        /** Deletes the private copy of the file once the aggregate is replaced or the provider destroyed. */
+        private void discard() {
+            if (!copy.delete()) {
+                log.warn("Unable to delete copy {} of metadata file {}", copy, metadataFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,702 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans a metadata document for the location of each entity's metadata, without building a DOM or any XML object.
+ * The document is read once, front to back, keeping only the elements enclosing the current position.
+ * 
+ * The scanner understands the subset of XML used by SAML metadata documents: UTF-8 encoded elements and attributes,
+ * comments, CDATA sections and processing instructions. Documents with a document type declaration are rejected.
+ * Entities nested within another entity's metadata are not looked for, and only the first occurrence of an entity ID
+ * is kept. The scanner does not check that the document is well-formed beyond matching element names, each entity's
+ * metadata being parsed on its own when it is used.
+ */
+final class MetadataFragmentScanner {
+
+    /** Pattern of the encoding declared by an XML declaration. */
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']+)[\"']");
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(MetadataFragmentScanner.class);
+
+    /** Document being scanned. */
+    private final InputStream input;
+
+    /** Offset of the next byte of the document. */
+    private long position;
+
+    /** Elements enclosing the current position, outermost first, up to and including the entity being scanned. */
+    private final List<ElementScope> scopes;
+
+    /** Locations of the entities found so far, by entity ID, in document order. */
+    private final Map<String, EntityFragment> fragments;
+
+    /** Buffer accumulating names and attribute values. */
+    private final TokenBuffer token;
+
+    /** Namespace of the document element, null until read. */
+    private String rootNamespace;
+
+    /** Local name of the document element, null until read. */
+    private String rootName;
+
+    /** Attributes of the document element, by name. */
+    private Map<String, String> rootAttributes;
+
+    /** Entity being scanned, null if the current position is outside any entity. */
+    private String entityId;
+
+    /** Offset of the first byte of the entity being scanned. */
+    private long entityStart;
+
+    /** Number of open elements within the entity being scanned. */
+    private int entityDepth;
+
+    /**
+     * Constructor.
+     * 
+     * @param document document to scan, it should be buffered
+     */
+    MetadataFragmentScanner(InputStream document) {
+        input = document;
+        scopes = new ArrayList<ElementScope>();
+        fragments = new LinkedHashMap<String, EntityFragment>();
+        token = new TokenBuffer();
+    }
+
+    /**
+     * Scans the whole document.
+     * 
+     * @throws IOException thrown if the document can not be read
+     * @throws MetadataProviderException thrown if the document is not a supported metadata document
+     */
+    void scan() throws IOException, MetadataProviderException {
+        int b = read();
+        if (b == 0xFE || b == 0xFF || b == 0) {
+            throw new MetadataProviderException("Only UTF-8 encoded metadata documents are supported");
+        }
+
+        while (b != -1) {
+            if (b == '<') {
+                readMarkup(position - 1);
+            }
+            b = read();
+        }
+
+        if (rootName == null) {
+            throw new MetadataProviderException("Metadata document contains no element");
+        }
+        if (!scopes.isEmpty()) {
+            throw new MetadataProviderException("Metadata document ends before element " + scopes.get(0).name
+                    + " is closed");
+        }
+    }
+
+    /**
+     * Gets the locations of the entities in the document.
+     * 
+     * @return locations of the entities in the document, by entity ID, in document order
+     */
+    Map<String, EntityFragment> getFragments() {
+        return fragments;
+    }
+
+    /**
+     * Gets the namespace of the document element.
+     * 
+     * @return namespace of the document element
+     */
+    String getRootNamespace() {
+        return rootNamespace;
+    }
+
+    /**
+     * Gets the local name of the document element.
+     * 
+     * @return local name of the document element
+     */
+    String getRootName() {
+        return rootName;
+    }
+
+    /**
+     * Gets the attributes of the document element.
+     * 
+     * @return attributes of the document element, by name, with their values unescaped
+     */
+    Map<String, String> getRootAttributes() {
+        return rootAttributes;
+    }
+
+    /**
+     * Reads markup, following a '<'.
+     * 
+     * @param start offset of the '<'
+     * 
+     * @throws IOException thrown if the document can not be read
+     * @throws MetadataProviderException thrown if the markup is not supported
+     */
+    private void readMarkup(long start) throws IOException, MetadataProviderException {
+        int b = readRequired();
+        if (b == '?') {
+            String instruction = readUntil("?>");
+            if (instruction.startsWith("xml ") && rootName == null) {
+                Matcher encoding = ENCODING.matcher(instruction);
+                if (encoding.find() && !"UTF-8".equalsIgnoreCase(encoding.group(1))) {
+                    throw new MetadataProviderException("Only UTF-8 encoded metadata documents are supported");
+                }
+            }
+        } else if (b == '!') {
+            b = readRequired();
+            if (b == '-' && readRequired() == '-') {
+                readUntil("-->");
+            } else if (b == '[' && "CDATA".equals(readUntil("["))) {
+                readUntil("]]>");
+            } else {
+                throw new MetadataProviderException(
+                        "Metadata documents with a document type declaration are not supported");
+            }
+        } else if (b == '/') {
+            readEndTag();
+        } else {
+            readStartTag(start, b);
+        }
+    }
+
+    /**
+     * Reads a start tag or an empty element tag.
+     * 
+     * @param start offset of the tag's '<'
+     * @param first first byte of the element name
+     * 
+     * @throws IOException thrown if the document can not be read
+     * @throws MetadataProviderException thrown if the tag is malformed
+     */
+    private void readStartTag(long start, int first) throws IOException, MetadataProviderException {
+        token.reset();
+        token.write(first);
+        int b = readRequired();
+        while (!isWhitespace(b) && b != '>' && b != '/') {
+            token.write(b);
+            b = readRequired();
+        }
+        String name = tokenString();
+
+        List<String[]> attributes = new ArrayList<String[]>();
+        while (true) {
+            while (isWhitespace(b)) {
+                b = readRequired();
+            }
+            if (b == '>') {
+                openElement(start, name, attributes, false);
+                return;
+            }
+            if (b == '/') {
+                if (readRequired() != '>') {
+                    throw malformed(name);
+                }
+                openElement(start, name, attributes, true);
+                return;
+            }
+
+            token.reset();
+            while (b != '=' && !isWhitespace(b)) {
+                if (b == '>' || b == '/') {
+                    throw malformed(name);
+                }
+                token.write(b);
+                b = readRequired();
+            }
+            String attributeName = tokenString();
+            while (isWhitespace(b)) {
+                b = readRequired();
+            }
+            if (b != '=') {
+                throw malformed(name);
+            }
+            b = readRequired();
+            while (isWhitespace(b)) {
+                b = readRequired();
+            }
+            if (b != '"' && b != '\'') {
+                throw malformed(name);
+            }
+            int quote = b;
+            token.reset();
+            b = readRequired();
+            while (b != quote) {
+                token.write(b);
+                b = readRequired();
+            }
+            attributes.add(new String[] { attributeName, tokenString(), String.valueOf((char) quote), });
+            b = readRequired();
+        }
+    }
+
+    /**
+     * Reads an end tag, following its "</".
+     * 
+     * @throws IOException thrown if the document can not be read
+     * @throws MetadataProviderException thrown if the tag does not close the innermost open element
+     */
+    private void readEndTag() throws IOException, MetadataProviderException {
+        String name = readUntil(">").trim();
+
+        if (entityId != null && entityDepth > 0) {
+            entityDepth--;
+            return;
+        }
+
+        if (scopes.isEmpty() || !scopes.get(scopes.size() - 1).name.equals(name)) {
+            throw new MetadataProviderException("Unexpected end of element " + name + " at byte " + position);
+        }
+        closeElement(scopes.remove(scopes.size() - 1));
+    }
+
+    /**
+     * Processes the start of an element.
+     * 
+     * @param start offset of the element's '<'
+     * @param name qualified name of the element
+     * @param attributes attributes of the element, as name, escaped value and quote
+     * @param empty whether the element is empty, and so already closed
+     * 
+     * @throws MetadataProviderException thrown if an attribute of the element is invalid
+     */
+    private void openElement(long start, String name, List<String[]> attributes, boolean empty)
+            throws MetadataProviderException {
+        if (entityId != null) {
+            if (!empty) {
+                entityDepth++;
+            }
+            return;
+        }
+
+        ElementScope parent = null;
+        if (!scopes.isEmpty()) {
+            parent = scopes.get(scopes.size() - 1);
+        }
+        ElementScope scope = new ElementScope(parent, name);
+        for (String[] attribute : attributes) {
+            if ("xmlns".equals(attribute[0])) {
+                scope.declare("", unescape(attribute[1]), " " + attribute[0] + "=" + attribute[2] + attribute[1]
+                        + attribute[2]);
+            } else if (attribute[0].startsWith("xmlns:")) {
+                scope.declare(attribute[0].substring(6), unescape(attribute[1]), " " + attribute[0] + "="
+                        + attribute[2] + attribute[1] + attribute[2]);
+            }
+        }
+
+        String prefix = "";
+        String localName = name;
+        int colon = name.indexOf(':');
+        if (colon >= 0) {
+            prefix = name.substring(0, colon);
+            localName = name.substring(colon + 1);
+        }
+        String namespace = scope.resolve(prefix);
+        boolean metadataElement = SAMLConstants.SAML20MD_NS.equals(namespace);
+
+        if (parent == null) {
+            if (rootName != null) {
+                throw new MetadataProviderException("Metadata document contains more than one document element");
+            }
+            rootNamespace = namespace;
+            rootName = localName;
+            rootAttributes = new HashMap<String, String>();
+            for (String[] attribute : attributes) {
+                rootAttributes.put(attribute[0], unescape(attribute[1]));
+            }
+        }
+
+        if (metadataElement && "EntitiesDescriptor".equals(localName)) {
+            scope.validUntil = earliest(scope.validUntil, getAttribute(attributes, "validUntil"));
+        } else if (metadataElement && "EntityDescriptor".equals(localName)) {
+            String id = getAttribute(attributes, "entityID");
+            if (id != null) {
+                entityId = unescape(id);
+                entityStart = start;
+                entityDepth = 0;
+            }
+        }
+
+        if (empty) {
+            closeElement(scope);
+        } else {
+            scopes.add(scope);
+        }
+    }
+
+    /**
+     * Processes the end of an element.
+     * 
+     * @param scope the element
+     */
+    private void closeElement(ElementScope scope) {
+        if (entityId == null) {
+            return;
+        }
+
+        if (fragments.containsKey(entityId)) {
+            log.warn("Entity {} appears more than once in metadata, only its first occurrence will be used", entityId);
+        } else {
+            String declarations = "";
+            DateTime validUntil = null;
+            if (scope.parent != null) {
+                declarations = scope.parent.getDeclarations();
+                validUntil = scope.parent.validUntil;
+            }
+            fragments.put(entityId, new EntityFragment(entityId, entityStart, (int) (position - entityStart),
+                    declarations, validUntil));
+        }
+        entityId = null;
+    }
+
+    /**
+     * Reads up to and including a terminator.
+     * 
+     * @param terminator the terminator
+     * 
+     * @return the content read before the terminator
+     * 
+     * @throws IOException thrown if the document can not be read or ends before the terminator
+     */
+    private String readUntil(String terminator) throws IOException {
+        token.reset();
+        while (!token.endsWith(terminator)) {
+            token.write(readRequired());
+        }
+        return token.decode(terminator.length());
+    }
+
+    /**
+     * Reads the next byte of the document.
+     * 
+     * @return the next byte, or -1 at the end of the document
+     * 
+     * @throws IOException thrown if the document can not be read
+     */
+    private int read() throws IOException {
+        int b = input.read();
+        if (b != -1) {
+            position++;
+        }
+        return b;
+    }
+
+    /**
+     * Reads the next byte of the document, which must not be at its end.
+     * 
+     * @return the next byte
+     * 
+     * @throws IOException thrown if the document can not be read or is at its end
+     */
+    private int readRequired() throws IOException {
+        int b = read();
+        if (b == -1) {
+            throw new IOException("Metadata document ends within markup");
+        }
+        return b;
+    }
+
+    /**
+     * Gets the content of the token buffer as a string.
+     * 
+     * @return content of the token buffer
+     */
+    private String tokenString() {
+        return token.decode(0);
+    }
+
+    /**
+     * Creates the exception reporting a malformed tag.
+     * 
+     * @param name name of the element
+     * 
+     * @return the exception
+     */
+    private MetadataProviderException malformed(String name) {
+        return new MetadataProviderException("Malformed tag of element " + name + " at byte " + position);
+    }
+
+    /**
+     * Gets whether a byte is XML whitespace.
+     * 
+     * @param b the byte
+     * 
+     * @return whether the byte is XML whitespace
+     */
+    private static boolean isWhitespace(int b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    /**
+     * Gets the escaped value of an attribute.
+     * 
+     * @param attributes attributes, as name, escaped value and quote
+     * @param name name of the attribute
+     * 
+     * @return the escaped value of the attribute, or null if it is not present
+     */
+    private static String getAttribute(List<String[]> attributes, String name) {
+        for (String[] attribute : attributes) {
+            if (name.equals(attribute[0])) {
+                return attribute[1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the earliest of an expiration and an expiration attribute.
+     * 
+     * @param validUntil the expiration, may be null
+     * @param attribute the expiration attribute, may be null
+     * 
+     * @return the earliest of the two expirations, null if neither expires
+     * 
+     * @throws MetadataProviderException thrown if the attribute is not a valid date and time
+     */
+    private static DateTime earliest(DateTime validUntil, String attribute) throws MetadataProviderException {
+        if (attribute == null) {
+            return validUntil;
+        }
+
+        DateTime attributeValidUntil;
+        try {
+            attributeValidUntil = new DateTime(unescape(attribute).trim(), ISOChronology.getInstanceUTC());
+        } catch (IllegalArgumentException e) {
+            throw new MetadataProviderException("Invalid validUntil attribute " + attribute);
+        }
+        if (validUntil != null && validUntil.isBefore(attributeValidUntil)) {
+            return validUntil;
+        }
+        return attributeValidUntil;
+    }
+
+    /**
+     * Replaces the predefined entity and character references of an attribute value.
+     * 
+     * @param value the escaped value
+     * 
+     * @return the unescaped value
+     * 
+     * @throws MetadataProviderException thrown if the value contains an unsupported reference
+     */
+    static String unescape(String value) throws MetadataProviderException {
+        int ampersand = value.indexOf('&');
+        if (ampersand < 0) {
+            return value;
+        }
+
+        StringBuilder unescaped = new StringBuilder(value.length());
+        int from = 0;
+        while (ampersand >= 0) {
+            unescaped.append(value, from, ampersand);
+            int semicolon = value.indexOf(';', ampersand);
+            if (semicolon < 0) {
+                throw new MetadataProviderException("Unterminated reference in attribute value " + value);
+            }
+            String reference = value.substring(ampersand + 1, semicolon);
+            if ("amp".equals(reference)) {
+                unescaped.append('&');
+            } else if ("lt".equals(reference)) {
+                unescaped.append('<');
+            } else if ("gt".equals(reference)) {
+                unescaped.append('>');
+            } else if ("quot".equals(reference)) {
+                unescaped.append('"');
+            } else if ("apos".equals(reference)) {
+                unescaped.append('\'');
+            } else if (reference.startsWith("#")) {
+                try {
+                    if (reference.startsWith("#x")) {
+                        unescaped.appendCodePoint(Integer.parseInt(reference.substring(2), 16));
+                    } else {
+                        unescaped.appendCodePoint(Integer.parseInt(reference.substring(1)));
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new MetadataProviderException("Invalid character reference in attribute value " + value);
+                }
+            } else {
+                throw new MetadataProviderException("Unsupported entity reference in attribute value " + value);
+            }
+            from = semicolon + 1;
+            ampersand = value.indexOf('&', from);
+        }
+        unescaped.append(value, from, value.length());
+        return unescaped.toString();
+    }
+
+    /** An element enclosing the current position, outside of any entity. */
+    private static final class ElementScope {
+
+        /** Enclosing element, null for the document element. */
+        private final ElementScope parent;
+
+        /** Qualified name of the element. */
+        private final String name;
+
+        /** Namespaces declared on the element, by prefix, null if none is. */
+        private Map<String, String> namespaces;
+
+        /** Namespace declarations in scope, by prefix, shared with the enclosing element unless any is made here. */
+        private Map<String, String> declarations;
+
+        /** Namespace declarations in scope as attributes, computed when first needed. */
+        private String declarationText;
+
+        /** Earliest expiration of the element and the groups enclosing it, null if none expires. */
+        private DateTime validUntil;
+
+        /**
+         * Constructor.
+         * 
+         * @param enclosing enclosing element, null for the document element
+         * @param qualifiedName qualified name of the element
+         */
+        private ElementScope(ElementScope enclosing, String qualifiedName) {
+            parent = enclosing;
+            name = qualifiedName;
+            if (enclosing == null) {
+                declarations = Collections.emptyMap();
+            } else {
+                declarations = enclosing.declarations;
+                validUntil = enclosing.validUntil;
+            }
+        }
+
+        /**
+         * Records a namespace declaration made on the element.
+         * 
+         * @param prefix prefix of the namespace, empty for the default namespace
+         * @param namespace the namespace
+         * @param declaration the declaration, as it appears in the document
+         */
+        private void declare(String prefix, String namespace, String declaration) {
+            if (namespaces == null) {
+                namespaces = new HashMap<String, String>();
+                declarations = new LinkedHashMap<String, String>(declarations);
+            }
+            namespaces.put(prefix, namespace);
+            declarations.put(prefix, declaration);
+        }
+
+        /**
+         * Resolves a namespace prefix in the scope of the element.
+         * 
+         * @param prefix the prefix, empty for the default namespace
+         * 
+         * @return the namespace, or null if the prefix is not declared
+         */
+        private String resolve(String prefix) {
+            for (ElementScope scope = this; scope != null; scope = scope.parent) {
+                if (scope.namespaces != null && scope.namespaces.containsKey(prefix)) {
+                    return scope.namespaces.get(prefix);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Gets the namespace declarations in scope of the element, as attributes.
+         * 
+         * @return the namespace declarations in scope of the element
+         */
+        private String getDeclarations() {
+            if (declarationText == null) {
+                if (namespaces == null && parent != null) {
+                    declarationText = parent.getDeclarations();
+                } else {
+                    StringBuilder text = new StringBuilder();
+                    for (String declaration : declarations.values()) {
+                        text.append(declaration);
+                    }
+                    declarationText = text.toString();
+                }
+            }
+            return declarationText;
+        }
+    }
+
+    /** A byte buffer which can be checked for a suffix and decoded without being copied. */
+    private static final class TokenBuffer extends ByteArrayOutputStream {
+
+        /** Constructor. */
+        private TokenBuffer() {
+            super(256);
+        }
+
+        /**
+         * Gets whether the buffer ends with an ASCII string.
+         * 
+         * @param suffix the string
+         * 
+         * @return whether the buffer ends with the string
+         */
+        private boolean endsWith(String suffix) {
+            int length = suffix.length();
+            if (count < length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (buf[count - length + i] != suffix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Decodes the content of the buffer as UTF-8.
+         * 
+         * @param trailing number of trailing bytes left out
+         * 
+         * @return content of the buffer
+         */
+        private String decode(int trailing) {
+            try {
+                return new String(buf, 0, count - trailing, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                // UTF-8 is always supported
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
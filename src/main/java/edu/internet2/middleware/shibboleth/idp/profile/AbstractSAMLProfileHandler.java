@@ -24,11 +24,15 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 
 import org.opensaml.common.IdentifierGenerator;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.SignableSAMLObject;
 import org.opensaml.common.binding.decoding.SAMLMessageDecoder;
 import org.opensaml.common.binding.encoding.SAMLMessageEncoder;
+import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml1.core.NameIdentifier;
 import org.opensaml.saml2.metadata.AttributeAuthorityDescriptor;
 import org.opensaml.saml2.metadata.AuthnAuthorityDescriptor;
@@ -37,6 +41,7 @@ import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.NameIDFormat;
 import org.opensaml.saml2.metadata.PDPDescriptor;
 import org.opensaml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
 import org.opensaml.saml2.metadata.SSODescriptor;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
@@ -46,11 +51,15 @@ import org.opensaml.ws.message.encoder.MessageEncodingException;
 import org.opensaml.ws.security.SecurityPolicyResolver;
 import org.opensaml.ws.transport.InTransport;
 import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.security.SecurityException;
 import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.signature.SignatureException;
 import org.opensaml.xml.util.DatatypeHelper;
 import org.opensaml.xml.util.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.web.context.ServletContextAware;
 
 import edu.internet2.middleware.shibboleth.common.attribute.BaseAttribute;
 import edu.internet2.middleware.shibboleth.common.attribute.encoding.AttributeEncoder;
@@ -64,13 +73,17 @@ import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartySecur
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.AbstractSAMLProfileConfiguration;
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.CryptoOperationRequirementLevel;
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.SAMLMDRelyingPartyConfigurationManager;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 
 /**
  * Base class for SAML profile handlers.
  */
 public abstract class AbstractSAMLProfileHandler extends
-        AbstractShibbolethProfileHandler<SAMLMDRelyingPartyConfigurationManager, Session> {
+        AbstractShibbolethProfileHandler<SAMLMDRelyingPartyConfigurationManager, Session> implements
+        ServletContextAware {
 
     /** SAML message audit log. */
     private final Logger auditLog = LoggerFactory.getLogger(AuditLogEntry.AUDIT_LOGGER_NAME);
@@ -99,9 +112,22 @@ public abstract class AbstractSAMLProfileHandler extends
     /** Credential resolver for resolving keys from metadata. */
     private MetadataCredentialResolver metadataCredentialResolver;
 
+    /** Servlet context of the web application this handler is deployed in. */
+    private ServletContext servletContext;
+
+    /** Service signing the assertions and responses of this handler. */
+    private SigningService signingService;
+
+    /** Response plans of the relying parties known from metadata, dropped when the metadata of their party changes. */
+    private EntityMetadataCache<ResponsePlan> responsePlans;
+
+    /** Default relying party configuration current when the kept response plans were built. */
+    private volatile RelyingPartyConfiguration responsePlanConfiguration;
+
     /** Constructor. */
     protected AbstractSAMLProfileHandler() {
         super();
+        responsePlans = new EntityMetadataCache<ResponsePlan>();
     }
 
     /**
@@ -185,6 +211,15 @@ public abstract class AbstractSAMLProfileHandler extends
         return null;
     }
 
+    /**
+     * A convenience method for retrieving the index of the current metadata provider.
+     * 
+     * @return the index of the metadata provider or null
+     */
+    public MetadataIndex getMetadataIndex() {
+        return MetadataIndex.getInstance(getMetadataProvider());
+    }
+
     /**
      * A convenience method for obtaining a metadata credential resolver for the current metadata provider.
      * 
@@ -212,6 +247,73 @@ public abstract class AbstractSAMLProfileHandler extends
         return supportedOutboundBindings;
     }
 
+    /**
+     * Gets the Servlet context of the web application this handler is deployed in.
+     * 
+     * @return Servlet context of the web application, may be null if the handler was not loaded within one
+     */
+    public ServletContext getServletContext() {
+        return servletContext;
+    }
+
+    /**
+     * Sets the Servlet context of the web application this handler is deployed in. This is done by the
+     * {@link IdPProfileHandlerManager} which loads the handler.
+     * 
+     * @param context Servlet context of the web application
+     */
+    public void setServletContext(ServletContext context) {
+        servletContext = context;
+    }
+
+    /**
+     * Gets the service signing the assertions and responses of this handler. Unless one was set, the service bound to
+     * the Servlet context is used, or, for handlers not loaded within a web application, one signing on the caller's
+     * thread.
+     * 
+     * @return service signing the assertions and responses of this handler
+     */
+    public SigningService getSigningService() {
+        synchronized (this) {
+            if (signingService == null) {
+                if (servletContext != null) {
+                    signingService = HttpServletHelper.getSigningService(servletContext);
+                } else {
+                    log.debug("Handler was not given a Servlet context, signing on the caller's thread");
+                    signingService = new SigningService(0, 0);
+                }
+            }
+        }
+        return signingService;
+    }
+
+    /**
+     * Sets the service signing the assertions and responses of this handler.
+     * 
+     * @param service service signing the assertions and responses of this handler
+     */
+    public void setSigningService(SigningService service) {
+        signingService = service;
+    }
+
+    /**
+     * Gets the Servlet context to use while processing a request. Handlers loaded by a profile handler manager within a
+     * web application already know the context and never touch the request's HTTP session. Otherwise the context is
+     * taken from the HTTP session, which is created if the request does not have one yet.
+     * 
+     * @param httpRequest current HTTP request
+     * 
+     * @return the Servlet context
+     */
+    protected ServletContext getServletContext(HttpServletRequest httpRequest) {
+        if (servletContext != null) {
+            return servletContext;
+        }
+
+        log.debug("Handler was not given a Servlet context, getting it from the HTTP session");
+        return httpRequest.getSession().getServletContext();
+    }
+
     /**
      * Gets the user's session, if there is one.
      * 
@@ -235,6 +337,50 @@ public abstract class AbstractSAMLProfileHandler extends
         return getSessionManager().getSession(principalName);
     }
 
+    /**
+     * Populates the request context with information about the user from their session, without looking at the
+     * current request.
+     * 
+     * This methods populates the following request context properties: user's session, user's principal name, service
+     * authentication method
+     * 
+     * @param requestContext current request context
+     * @param userSession the user's session
+     */
+    protected void populateUserInformation(BaseSAMLProfileRequestContext requestContext, Session userSession) {
+        requestContext.setUserSession(userSession);
+        requestContext.setPrincipalName(userSession.getPrincipalName());
+        ServiceInformation serviceInfo = userSession.getServicesInformation().get(
+                requestContext.getInboundMessageIssuer());
+        if (serviceInfo != null) {
+            requestContext.setPrincipalAuthenticationMethod(serviceInfo.getAuthenticationMethod()
+                    .getAuthenticationMethod());
+        }
+    }
+
+    /**
+     * Claims the attributes resolved ahead of time, by the {@link AttributePreResolver}, for the request of the given
+     * login context.
+     * 
+     * @param loginContext login context of the request
+     * @param requestContext current request context, populated with the user's principal name
+     * 
+     * @return the attributes, or null if they must be resolved
+     */
+    protected Map<String, BaseAttribute> claimPreResolvedAttributes(LoginContext loginContext,
+            BaseSAMLProfileRequestContext requestContext) {
+        String ticket = (String) loginContext.getProperty(AttributePreResolver.TICKET_PROPERTY);
+        if (ticket == null || servletContext == null) {
+            return null;
+        }
+
+        AttributePreResolver preResolver = HttpServletHelper.getAttributePreResolver(servletContext);
+        if (preResolver == null) {
+            return null;
+        }
+        return preResolver.claim(ticket, requestContext.getPrincipalName(), loginContext.getRelyingPartyId());
+    }
+
     /**
      * Gets an ID generator which may be used for SAML assertions, requests, etc.
      * 
@@ -283,7 +429,7 @@ public abstract class AbstractSAMLProfileHandler extends
     /** {@inheritDoc} */
     public RelyingPartyConfiguration getRelyingPartyConfiguration(String relyingPartyId) {
         try {
-            if (getMetadataProvider().getEntityDescriptor(relyingPartyId) == null) {
+            if (getMetadataIndex().getEntityDescriptor(relyingPartyId) == null) {
                 log.warn("No metadata for relying party {}, treating party as anonymous", relyingPartyId);
                 return getRelyingPartyConfigurationManager().getAnonymousRelyingConfiguration();
             }
@@ -335,7 +481,7 @@ public abstract class AbstractSAMLProfileHandler extends
 
         EntityDescriptor relyingPartyMetadata;
         try {
-            relyingPartyMetadata = metadataProvider.getEntityDescriptor(relyingPartyId);
+            relyingPartyMetadata = MetadataIndex.getInstance(metadataProvider).getEntityDescriptor(relyingPartyId);
             requestContext.setPeerEntityMetadata(relyingPartyMetadata);
         } catch (MetadataProviderException e) {
             log.error("Error looking up metadata for relying party " + relyingPartyId, e);
@@ -373,8 +519,8 @@ public abstract class AbstractSAMLProfileHandler extends
         requestContext.setOutboundMessageIssuer(assertingPartyId);
 
         try {
-            EntityDescriptor localEntityDescriptor = requestContext.getMetadataProvider().getEntityDescriptor(
-                    assertingPartyId);
+            EntityDescriptor localEntityDescriptor = MetadataIndex.getInstance(requestContext.getMetadataProvider())
+                    .getEntityDescriptor(assertingPartyId);
             if (localEntityDescriptor != null) {
                 requestContext.setLocalEntityMetadata(localEntityDescriptor);
             }
@@ -384,6 +530,56 @@ public abstract class AbstractSAMLProfileHandler extends
         }
     }
 
+    /**
+     * Gets the service provider role of the relying party supporting a protocol. Unless overridden,
+     * {@link #populateRelyingPartyInformation(BaseSAMLProfileRequestContext)} has already been invoked and the
+     * properties it provides are available in the request context.
+     * 
+     * @param requestContext current request context
+     * @param protocol the protocol
+     * 
+     * @return the service provider role, or null if the relying party has no metadata or no role supporting the
+     *         protocol
+     */
+    protected SPSSODescriptor getRelyingPartySPSSODescriptor(BaseSAMLProfileRequestContext requestContext,
+            String protocol) {
+        MetadataIndex.EntityRecord relyingPartyRecord = getRelyingPartyMetadataRecord(requestContext);
+        if (relyingPartyRecord == null) {
+            return null;
+        }
+        return relyingPartyRecord.getSPSSODescriptor(protocol);
+    }
+
+    /**
+     * Gets the indexed metadata record of the relying party. The record is only returned if it describes the same
+     * metadata as the peer entity metadata of the request context.
+     * 
+     * @param requestContext current request context
+     * 
+     * @return the metadata record of the relying party, or null if the relying party has no metadata
+     */
+    protected MetadataIndex.EntityRecord getRelyingPartyMetadataRecord(BaseSAMLProfileRequestContext requestContext) {
+        EntityDescriptor relyingPartyMetadata = requestContext.getPeerEntityMetadata();
+        if (relyingPartyMetadata == null) {
+            return null;
+        }
+
+        MetadataIndex index = MetadataIndex.getInstance(requestContext.getMetadataProvider());
+        if (index != null) {
+            try {
+                MetadataIndex.EntityRecord relyingPartyRecord = index.getEntity(relyingPartyMetadata.getEntityID());
+                if (relyingPartyRecord != null && relyingPartyRecord.getEntityDescriptor() == relyingPartyMetadata) {
+                    return relyingPartyRecord;
+                }
+            } catch (MetadataProviderException e) {
+                log.debug("Unable to look up indexed metadata of relying party {}", relyingPartyMetadata
+                        .getEntityID());
+            }
+        }
+
+        return new MetadataIndex.EntityRecord(relyingPartyMetadata, null);
+    }
+
     /**
      * Populates the request context with information from the inbound SAML message. Unless overridden,
      * {@link #populateRequestContext(BaseSAMLProfileRequestContext)} has already invoked
@@ -606,7 +802,14 @@ public abstract class AbstractSAMLProfileHandler extends
 
         RoleDescriptor relyingPartyRole = requestContext.getPeerEntityRoleMetadata();
         if (relyingPartyRole != null) {
-            List<String> relyingPartySupportedFormats = getEntitySupportedFormats(relyingPartyRole);
+            List<String> relyingPartySupportedFormats = null;
+            MetadataIndex.EntityRecord relyingPartyRecord = getRelyingPartyMetadataRecord(requestContext);
+            if (relyingPartyRecord != null) {
+                relyingPartySupportedFormats = relyingPartyRecord.getNameIDFormats(relyingPartyRole);
+            }
+            if (relyingPartySupportedFormats == null) {
+                relyingPartySupportedFormats = getEntitySupportedFormats(relyingPartyRole);
+            }
             if (relyingPartySupportedFormats != null && !relyingPartySupportedFormats.isEmpty()) {
                 nameFormats.addAll(relyingPartySupportedFormats);
             }
@@ -752,15 +955,10 @@ public abstract class AbstractSAMLProfileHandler extends
         try {
             SAMLMessageEncoder encoder = getOutboundMessageEncoder(requestContext);
 
-            AbstractSAMLProfileConfiguration profileConfig = (AbstractSAMLProfileConfiguration) requestContext
-                    .getProfileConfiguration();
-            if (profileConfig != null) {
+            ResponsePlan plan = getResponsePlan(requestContext);
+            if (plan != null) {
                 if (isSignResponse(requestContext)) {
-                    Credential signingCredential = profileConfig.getSigningCredential();
-                    if (signingCredential == null) {
-                        signingCredential = requestContext.getRelyingPartyConfiguration().getDefaultSigningCredential();
-                    }
-
+                    Credential signingCredential = plan.getSigningCredential();
                     if (signingCredential == null) {
                         throw new ProfileException(
                                 "Signing of responses is required but no signing credential is available");
@@ -771,7 +969,12 @@ public abstract class AbstractSAMLProfileHandler extends
                                 "Signing of response is required but signing credential does not have a private key");
                     }
 
-                    requestContext.setOutboundSAMLMessageSigningCredential(signingCredential);
+                    SAMLObject response = requestContext.getOutboundSAMLMessage();
+                    if (isSOAPBinding(encoder.getBindingURI()) && response instanceof SignableSAMLObject) {
+                        signResponse((SignableSAMLObject) response, signingCredential);
+                    } else {
+                        requestContext.setOutboundSAMLMessageSigningCredential(signingCredential);
+                    }
                 }
             }
 
@@ -786,6 +989,103 @@ public abstract class AbstractSAMLProfileHandler extends
         }
     }
 
+    /**
+     * Checks whether a binding carries the response in a SOAP message. Such responses are signed by the signing service
+     * before they are encoded. Responses sent through the other bindings are signed by their encoder, which may sign
+     * the URL or form carrying the response instead of the response or update the response before signing it.
+     * 
+     * @param bindingURI URI of the outbound binding
+     * 
+     * @return true if the binding carries the response in a SOAP message
+     */
+    protected boolean isSOAPBinding(String bindingURI) {
+        return SAMLConstants.SAML1_SOAP11_BINDING_URI.equals(bindingURI)
+                || SAMLConstants.SAML2_SOAP11_BINDING_URI.equals(bindingURI);
+    }
+
+    /**
+     * Signs a response with the signing service of this handler.
+     * 
+     * @param response the response
+     * @param signingCredential credential used to sign the response
+     * 
+     * @throws ProfileException thrown if the response can not be signed
+     */
+    protected void signResponse(SignableSAMLObject response, Credential signingCredential) throws ProfileException {
+        try {
+            getSigningService().sign(response, signingCredential);
+        } catch (SecurityException e) {
+            String msg = "Error preparing signature for signing";
+            log.error(msg);
+            throw new ProfileException(msg, e);
+        } catch (MarshallingException e) {
+            String msg = "Unable to marshall response for signing";
+            log.error(msg, e);
+            throw new ProfileException(msg, e);
+        } catch (SignatureException e) {
+            String msg = "Unable to sign response";
+            log.error(msg, e);
+            throw new ProfileException(msg, e);
+        }
+    }
+
+    /**
+     * Gets the response plan for the relying party of the current request, building it if there is none yet or if the
+     * relying party configuration or metadata it was built from has since been reloaded. Plans of relying parties
+     * without metadata are built for each request and never kept, since any entity ID may be claimed by such a party.
+     * 
+     * A plan is dropped as soon as the {@link MetadataIndex} signals that the metadata of its party changed. Every plan
+     * is dropped once the relying party configuration has been reloaded, which is noticed by the default relying party
+     * configuration having been replaced, so plans do not hold on to the previous configuration.
+     * 
+     * @param requestContext current request context, populated with the relying party and profile information
+     * 
+     * @return response plan for the relying party, or null if no profile configuration is available for it
+     */
+    protected ResponsePlan getResponsePlan(BaseSAMLProfileRequestContext requestContext) {
+        if (!(requestContext.getProfileConfiguration() instanceof AbstractSAMLProfileConfiguration)) {
+            return null;
+        }
+
+        String relyingPartyId = requestContext.getInboundMessageIssuer();
+        if (relyingPartyId == null || requestContext.getPeerEntityMetadata() == null) {
+            return new ResponsePlan(requestContext);
+        }
+
+        RelyingPartyConfiguration defaultConfiguration = getRelyingPartyConfigurationManager()
+                .getDefaultRelyingPartyConfiguration();
+        if (defaultConfiguration != responsePlanConfiguration) {
+            log.debug("Relying party configuration was reloaded, dropping the response plans of profile {}",
+                    getProfileId());
+            responsePlans.clear();
+            responsePlanConfiguration = defaultConfiguration;
+        }
+
+        MetadataIndex index = MetadataIndex.getInstance(requestContext.getMetadataProvider());
+        ResponsePlan plan = responsePlans.get(index, relyingPartyId);
+        if (plan == null || !plan.isCurrent(requestContext)) {
+            log.debug("Building response plan of profile {} for relying party {}", getProfileId(), relyingPartyId);
+            plan = new ResponsePlan(requestContext);
+            responsePlans.put(index, relyingPartyId, getRelyingPartyMetadataRecord(requestContext), plan);
+        }
+
+        return plan;
+    }
+
+    /**
+     * Gets the number of response plans currently kept by this handler.
+     * 
+     * @return number of response plans currently kept by this handler
+     */
+    public int getResponsePlanCount() {
+        return responsePlans.size();
+    }
+
+    /** Discards all the response plans kept by this handler. */
+    public void clearResponsePlans() {
+        responsePlans.clear();
+    }
+
     /**
      * Determine whether responses should be signed.
      * 
@@ -797,13 +1097,12 @@ public abstract class AbstractSAMLProfileHandler extends
 
         SAMLMessageEncoder encoder = getOutboundMessageEncoder(requestContext);
 
-        AbstractSAMLProfileConfiguration profileConfig = (AbstractSAMLProfileConfiguration) requestContext
-                .getProfileConfiguration();
+        ResponsePlan plan = getResponsePlan(requestContext);
 
-        if (profileConfig != null) {
+        if (plan != null) {
             try {
-                return profileConfig.getSignResponses() == CryptoOperationRequirementLevel.always
-                        || (profileConfig.getSignResponses() == CryptoOperationRequirementLevel.conditional && !encoder
+                return plan.getSignResponses() == CryptoOperationRequirementLevel.always
+                        || (plan.getSignResponses() == CryptoOperationRequirementLevel.conditional && !encoder
                                 .providesMessageIntegrity(requestContext));
             } catch (MessageEncodingException e) {
                 log.error("Unable to determine if outbound encoding '{}' provides message integrity protection",
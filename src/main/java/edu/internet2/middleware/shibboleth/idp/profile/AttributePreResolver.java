@@ -0,0 +1,414 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.common.attribute.BaseAttribute;
+
+/**
+ * Resolves the attributes of a user for a relying party on a bounded pool of worker threads as soon as the user is
+ * authenticated, so that the profile handler finds them resolved, or being resolved, when the user is sent back to it.
+ * 
+ * Each resolution is identified by a random ticket, carried to the profile handler in the login context under
+ * {@link #TICKET_PROPERTY}. A resolution is only handed to a claim for the same principal and relying party, and is
+ * discarded if it is not claimed within its lifetime. A claim waits at most {@link #getClaimTimeout()} for a
+ * resolution still in progress. A resolution that was refused, failed, expired or did not complete in time is simply
+ * not returned, and the profile handler then resolves the attributes itself.
+ */
+public class AttributePreResolver {
+
+    /** Name of the login context property bearing the ticket of a resolution: {@value} . */
+    public static final String TICKET_PROPERTY = "shibboleth.AttributePreResolutionTicket";
+
+    /** Default number of worker threads. */
+    public static final int DEFAULT_THREADS = 8;
+
+    /** Default number of resolutions which may wait for a worker. */
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    /** Default time, in milliseconds, a resolution is kept waiting to be claimed. */
+    public static final long DEFAULT_LIFETIME = 30000;
+
+    /** Default time, in milliseconds, a claim waits for a resolution in progress. */
+    public static final long DEFAULT_CLAIM_TIMEOUT = 5000;
+
+    /** Default maximum number of resolutions kept waiting to be claimed. */
+    public static final int DEFAULT_MAX_RESOLUTIONS = 1024;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AttributePreResolver.class);
+
+    /** Pool running the resolutions. */
+    private final ThreadPoolExecutor executor;
+
+    /** Resolutions waiting to be claimed, indexed by ticket. */
+    private final Map<String, Resolution> resolutions;
+
+    /** Time, in milliseconds, a resolution is kept waiting to be claimed. */
+    private final long lifetime;
+
+    /** Time, in milliseconds, a claim waits for a resolution in progress. */
+    private final long claimTimeout;
+
+    /** Maximum number of resolutions kept waiting to be claimed. */
+    private int maxResolutions;
+
+    /** Number of resolutions started. */
+    private final AtomicLong submitted;
+
+    /** Number of resolutions refused because the pool or the unclaimed resolutions were full. */
+    private final AtomicLong rejected;
+
+    /** Number of claims which received resolved attributes. */
+    private final AtomicLong hits;
+
+    /** Number of claims which did not receive resolved attributes. */
+    private final AtomicLong misses;
+
+    /** Constructor. */
+    public AttributePreResolver() {
+        this(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE, DEFAULT_LIFETIME, DEFAULT_CLAIM_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param workers number of worker threads, must be greater than zero
+     * @param queue number of resolutions which may wait for a worker, may be zero
+     * @param resolutionLifetime time, in milliseconds, a resolution is kept waiting to be claimed, must be greater
+     *            than zero
+     * @param timeout time, in milliseconds, a claim waits for a resolution in progress, may be zero
+     */
+    public AttributePreResolver(int workers, int queue, long resolutionLifetime, long timeout) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Number of worker threads must be greater than zero");
+        }
+        if (queue < 0) {
+            throw new IllegalArgumentException("Queue size may not be negative");
+        }
+        if (resolutionLifetime < 1) {
+            throw new IllegalArgumentException("Resolution lifetime must be greater than zero");
+        }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Claim timeout may not be negative");
+        }
+
+        lifetime = resolutionLifetime;
+        claimTimeout = timeout;
+        maxResolutions = DEFAULT_MAX_RESOLUTIONS;
+        resolutions = new ConcurrentHashMap<String, Resolution>();
+        submitted = new AtomicLong();
+        rejected = new AtomicLong();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+
+        BlockingQueue<Runnable> workQueue;
+        if (queue == 0) {
+            workQueue = new SynchronousQueue<Runnable>();
+        } else {
+            workQueue = new ArrayBlockingQueue<Runnable>(queue);
+        }
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, workQueue, new WorkerThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts resolving the attributes of a principal for a relying party.
+     * 
+     * @param principalName name of the principal
+     * @param relyingPartyId ID of the relying party
+     * @param resolution the resolution, run on a worker thread
+     * 
+     * @return the ticket by which the resolution is claimed, or null if the resolution was refused
+     */
+    public String submit(String principalName, String relyingPartyId,
+            Callable<Map<String, BaseAttribute>> resolution) {
+        if (principalName == null || relyingPartyId == null || resolution == null) {
+            return null;
+        }
+
+        if (resolutions.size() >= maxResolutions) {
+            purgeExpired();
+            if (resolutions.size() >= maxResolutions) {
+                rejected.incrementAndGet();
+                log.debug("Not pre-resolving attributes, {} resolutions are already waiting to be claimed",
+                        maxResolutions);
+                return null;
+            }
+        }
+
+        Future<Map<String, BaseAttribute>> result;
+        try {
+            result = executor.submit(resolution);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            log.debug("Not pre-resolving attributes, all workers are busy");
+            return null;
+        }
+
+        String ticket = UUID.randomUUID().toString();
+        resolutions.put(ticket, new Resolution(result, principalName, relyingPartyId, System.currentTimeMillis()
+                + lifetime));
+        submitted.incrementAndGet();
+        log.debug("Pre-resolving attributes of principal {} for relying party {}", principalName, relyingPartyId);
+        return ticket;
+    }
+
+    /**
+     * Claims the attributes resolved for a principal and relying party. A ticket can only be claimed once.
+     * 
+     * @param ticket ticket returned when the resolution was submitted, may be null
+     * @param principalName name of the principal the attributes are needed for
+     * @param relyingPartyId ID of the relying party the attributes are needed for
+     * 
+     * @return the resolved attributes, or null if the attributes must be resolved by the caller
+     */
+    public Map<String, BaseAttribute> claim(String ticket, String principalName, String relyingPartyId) {
+        if (ticket == null) {
+            return null;
+        }
+
+        Resolution resolution = resolutions.remove(ticket);
+        if (resolution == null || resolution.getExpiration() < System.currentTimeMillis()
+                || !resolution.getPrincipalName().equals(principalName)
+                || !resolution.getRelyingPartyId().equals(relyingPartyId)) {
+            if (resolution != null) {
+                resolution.getResult().cancel(true);
+            }
+            misses.incrementAndGet();
+            log.debug("No usable pre-resolved attributes for principal {} and relying party {}", principalName,
+                    relyingPartyId);
+            return null;
+        }
+
+        try {
+            Map<String, BaseAttribute> attributes = resolution.getResult().get(claimTimeout, TimeUnit.MILLISECONDS);
+            hits.incrementAndGet();
+            log.debug("Using pre-resolved attributes for principal {} and relying party {}", principalName,
+                    relyingPartyId);
+            return attributes;
+        } catch (TimeoutException e) {
+            resolution.getResult().cancel(true);
+            log.debug("Pre-resolution of attributes did not complete within {}ms", claimTimeout);
+        } catch (InterruptedException e) {
+            resolution.getResult().cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.debug("Pre-resolution of attributes failed", e.getCause());
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Gets the time a resolution is kept waiting to be claimed.
+     * 
+     * @return time in milliseconds
+     */
+    public long getLifetime() {
+        return lifetime;
+    }
+
+    /**
+     * Gets the time a claim waits for a resolution in progress.
+     * 
+     * @return time in milliseconds
+     */
+    public long getClaimTimeout() {
+        return claimTimeout;
+    }
+
+    /**
+     * Gets the maximum number of resolutions kept waiting to be claimed.
+     * 
+     * @return maximum number of unclaimed resolutions
+     */
+    public int getMaxResolutions() {
+        return maxResolutions;
+    }
+
+    /**
+     * Sets the maximum number of resolutions kept waiting to be claimed.
+     * 
+     * @param max maximum number of unclaimed resolutions, must be greater than zero
+     */
+    public void setMaxResolutions(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Maximum number of resolutions must be greater than zero");
+        }
+        maxResolutions = max;
+    }
+
+    /**
+     * Gets the number of resolutions started.
+     * 
+     * @return number of resolutions started
+     */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * Gets the number of resolutions refused because too many were in progress or waiting to be claimed.
+     * 
+     * @return number of refused resolutions
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Gets the number of claims which received resolved attributes.
+     * 
+     * @return number of successful claims
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of claims which did not receive resolved attributes.
+     * 
+     * @return number of unsuccessful claims
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Stops the worker threads, interrupting any resolution in progress. */
+    public void destroy() {
+        executor.shutdownNow();
+        resolutions.clear();
+    }
+
+    /** Discards the resolutions which were not claimed within their lifetime. */
+    protected void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Resolution> resolutionItr = resolutions.values().iterator();
+        Resolution resolution;
+        while (resolutionItr.hasNext()) {
+            resolution = resolutionItr.next();
+            if (resolution.getExpiration() < now) {
+                resolution.getResult().cancel(true);
+                resolutionItr.remove();
+            }
+        }
+    }
+
+    /** A resolution waiting to be claimed. */
+    private static class Resolution {
+
+        /** Result of the resolution. */
+        private final Future<Map<String, BaseAttribute>> result;
+
+        /** Name of the principal whose attributes are resolved. */
+        private final String principalName;
+
+        /** ID of the relying party the attributes are resolved for. */
+        private final String relyingPartyId;
+
+        /** Instant, in milliseconds since the epoch, after which the resolution may no longer be claimed. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         * 
+         * @param future result of the resolution
+         * @param principal name of the principal whose attributes are resolved
+         * @param relyingParty ID of the relying party the attributes are resolved for
+         * @param expirationInstant instant after which the resolution may no longer be claimed
+         */
+        public Resolution(Future<Map<String, BaseAttribute>> future, String principal, String relyingParty,
+                long expirationInstant) {
+            result = future;
+            principalName = principal;
+            relyingPartyId = relyingParty;
+            expiration = expirationInstant;
+        }
+
+        /**
+         * Gets the result of the resolution.
+         * 
+         * @return result of the resolution
+         */
+        public Future<Map<String, BaseAttribute>> getResult() {
+            return result;
+        }
+
+        /**
+         * Gets the name of the principal whose attributes are resolved.
+         * 
+         * @return name of the principal
+         */
+        public String getPrincipalName() {
+            return principalName;
+        }
+
+        /**
+         * Gets the ID of the relying party the attributes are resolved for.
+         * 
+         * @return ID of the relying party
+         */
+        public String getRelyingPartyId() {
+            return relyingPartyId;
+        }
+
+        /**
+         * Gets the instant after which the resolution may no longer be claimed.
+         * 
+         * @return instant in milliseconds since the epoch
+         */
+        public long getExpiration() {
+            return expiration;
+        }
+    }
+
+    /** Creates the daemon worker threads of the pool. */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        /** Number of threads created so far. */
+        private final AtomicInteger created = new AtomicInteger();
+
+        /** {@inheritDoc} */
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "AttributePreResolver-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import edu.internet2.middleware.shibboleth.common.attribute.BaseAttribute;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+
+/** A profile handler able to resolve a user's attributes, for the request it will complete, ahead of time. */
+public interface AttributePreResolvingProfileHandler {
+
+    /**
+     * Creates a resolution of the attributes the handler will need to complete the request of the given login context.
+     * The resolution is run on another thread, after the current request may have completed, so it must not use the
+     * current request.
+     * 
+     * @param loginContext login context of an authenticated user
+     * @param userSession the user's session
+     * 
+     * @return the resolution, or null if the attributes can not be resolved ahead of time
+     */
+    public Callable<Map<String, BaseAttribute>> createAttributeResolution(LoginContext loginContext,
+            Session userSession);
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+
+/**
+ * A cache of values derived from the metadata of entities, whose entries are dropped when the metadata of their entity
+ * changes, as signaled by a {@link MetadataIndex}.
+ * 
+ * The cache follows the index it is used with: if a different index is passed in, because the metadata provider was
+ * replaced, every entry is dropped and the cache listens to the new index instead.
+ * 
+ * @param <V> type of cached values
+ */
+public class EntityMetadataCache<V> implements MetadataIndex.EntityChangeListener {
+
+    /** Cached values, indexed by entity ID. */
+    private final ConcurrentHashMap<String, V> values;
+
+    /** Index the cache listens to. */
+    private volatile MetadataIndex index;
+
+    /** Constructor. */
+    public EntityMetadataCache() {
+        values = new ConcurrentHashMap<String, V>();
+    }
+
+    /**
+     * Gets the value cached for an entity.
+     * 
+     * @param currentIndex index of the current metadata
+     * @param entityId ID of the entity
+     * 
+     * @return the cached value, or null if none is cached
+     */
+    public V get(MetadataIndex currentIndex, String entityId) {
+        follow(currentIndex);
+        if (entityId == null) {
+            return null;
+        }
+        return values.get(entityId);
+    }
+
+    /**
+     * Caches a value derived from the metadata of an entity. The value is not cached if the metadata it was derived
+     * from is no longer the current metadata of the entity, that is if the entity's current record is neither the
+     * given one nor has the same digest.
+     * 
+     * @param currentIndex index of the current metadata
+     * @param entityId ID of the entity
+     * @param source record of the metadata the value was derived from
+     * @param value the value, not cached if null
+     */
+    public void put(MetadataIndex currentIndex, String entityId, MetadataIndex.EntityRecord source, V value) {
+        follow(currentIndex);
+        if (currentIndex == null || entityId == null || source == null || value == null) {
+            return;
+        }
+
+        values.put(entityId, value);
+        try {
+            MetadataIndex.EntityRecord record = currentIndex.getEntity(entityId);
+            if (!isSameMetadata(source, record)) {
+                values.remove(entityId);
+            }
+        } catch (MetadataProviderException e) {
+            values.remove(entityId);
+        }
+    }
+
+    /**
+     * Gets whether two records hold the same metadata.
+     * 
+     * @param source record a value was derived from
+     * @param current current record of the entity, may be null
+     * 
+     * @return true if both are the same record or have the same digest
+     */
+    private static boolean isSameMetadata(MetadataIndex.EntityRecord source, MetadataIndex.EntityRecord current) {
+        if (current == null) {
+            return false;
+        }
+        if (current == source) {
+            return true;
+        }
+        return source.getDigest() != null && source.getDigest().equals(current.getDigest());
+    }
+
+    /**
+     * Gets the number of cached values.
+     * 
+     * @return number of cached values
+     */
+    public int size() {
+        return values.size();
+    }
+
+    /** Drops every cached value. */
+    public void clear() {
+        values.clear();
+    }
+
+    /** {@inheritDoc} */
+    public void entitiesChanged(MetadataIndex changedIndex, Set<String> entityIds) {
+        if (changedIndex != index) {
+            return;
+        }
+
+        if (entityIds == null) {
+            values.clear();
+        } else {
+            for (String entityId : entityIds) {
+                values.remove(entityId);
+            }
+        }
+    }
+
+    /**
+     * Makes the cache listen to the given index, dropping every cached value if it was listening to another one.
+     * 
+     * @param currentIndex index of the current metadata
+     */
+    private void follow(MetadataIndex currentIndex) {
+        if (currentIndex == index) {
+            return;
+        }
+
+        synchronized (this) {
+            if (currentIndex != index) {
+                if (index != null) {
+                    index.getEntityChangeListeners().remove(this);
+                }
+                values.clear();
+                index = currentIndex;
+                if (currentIndex != null) {
+                    currentIndex.getEntityChangeListeners().add(this);
+                }
+            }
+        }
+    }
+}
@@ -21,12 +21,14 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
+import org.springframework.web.context.ServletContextAware;
 
 import edu.internet2.middleware.shibboleth.common.config.BaseReloadableService;
 import edu.internet2.middleware.shibboleth.common.profile.AbstractErrorHandler;
@@ -35,12 +37,17 @@ import edu.internet2.middleware.shibboleth.common.profile.ProfileHandlerManager;
 import edu.internet2.middleware.shibboleth.common.profile.provider.AbstractRequestURIMappedProfileHandler;
 import edu.internet2.middleware.shibboleth.common.service.ServiceException;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginHandler;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginHandlerSelectionIndex;
 
 /**
  * Implementation of a {@link ProfileHandlerManager} that maps the request path, without the servlet context, to a
  * profile handler and adds support for authentication handlers.
+ * 
+ * The manager hands the Servlet context of the web application it is loaded in to every profile handler that wants
+ * it, so handlers need not reach it through the request's HTTP session and thereby create one.
  */
-public class IdPProfileHandlerManager extends BaseReloadableService implements ProfileHandlerManager {
+public class IdPProfileHandlerManager extends BaseReloadableService implements ProfileHandlerManager,
+        ServletContextAware {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(IdPProfileHandlerManager.class);
@@ -54,11 +61,18 @@ public class IdPProfileHandlerManager extends BaseReloadableService implements P
     /** Map of authentication methods to login handlers. */
     private Map<String, LoginHandler> loginHandlers;
 
+    /** Index used to select the login handler for a request, replaced whenever the login handlers are loaded. */
+    private volatile LoginHandlerSelectionIndex loginHandlerIndex;
+
+    /** Servlet context of the web application this manager is loaded in. */
+    private ServletContext servletContext;
+
     /** Constructor. */
     public IdPProfileHandlerManager() {
         super();
         profileHandlers = new HashMap<String, AbstractRequestURIMappedProfileHandler>();
         loginHandlers = new HashMap<String, LoginHandler>();
+        loginHandlerIndex = new LoginHandlerSelectionIndex(loginHandlers);
     }
 
     /** {@inheritDoc} */
@@ -102,6 +116,72 @@ public class IdPProfileHandlerManager extends BaseReloadableService implements P
         return handler;
     }
 
+    /**
+     * Gets the profile handler for a context relative URL, such as the profile handler URL of a login context. The
+     * handlers are registered under request paths relative to the profile Servlet, so the URL is matched against them
+     * with its leading path segments removed one at a time.
+     * 
+     * @param url URL relative to the web application's context path
+     * 
+     * @return the profile handler, or null if none handles the URL
+     */
+    public ProfileHandler getProfileHandler(String url) {
+        if (url == null) {
+            return null;
+        }
+
+        Lock readLock = getReadWriteLock().readLock();
+        readLock.lock();
+        try {
+            String requestPath = url;
+            while (requestPath.length() > 0) {
+                ProfileHandler handler = profileHandlers.get(requestPath);
+                if (handler != null) {
+                    return handler;
+                }
+                int nextSegment = requestPath.indexOf('/', 1);
+                if (nextSegment < 0) {
+                    break;
+                }
+                requestPath = requestPath.substring(nextSegment);
+            }
+        } finally {
+            readLock.unlock();
+        }
+
+        log.debug("{}: No profile handler registered for URL {}", getId(), url);
+        return null;
+    }
+
+    /**
+     * Gets the Servlet context of the web application this manager is loaded in.
+     * 
+     * @return Servlet context of the web application, may be null
+     */
+    public ServletContext getServletContext() {
+        return servletContext;
+    }
+
+    /**
+     * Sets the Servlet context of the web application this manager is loaded in and hands it to the currently
+     * registered profile handlers.
+     * 
+     * @param context Servlet context of the web application
+     */
+    public void setServletContext(ServletContext context) {
+        servletContext = context;
+
+        Lock readLock = getReadWriteLock().readLock();
+        readLock.lock();
+        try {
+            for (AbstractRequestURIMappedProfileHandler profileHandler : profileHandlers.values()) {
+                injectServletContext(profileHandler);
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
     /**
      * Gets the registered profile handlers.
      * 
@@ -120,12 +200,23 @@ public class IdPProfileHandlerManager extends BaseReloadableService implements P
         return loginHandlers;
     }
 
+    /**
+     * Gets the index used to select the login handler for a request. The index is immutable and is replaced as a whole
+     * when a new configuration is loaded.
+     * 
+     * @return login handler selection index
+     */
+    public LoginHandlerSelectionIndex getLoginHandlerIndex() {
+        return loginHandlerIndex;
+    }
+
     /** {@inheritDoc} */
     protected void onNewContextCreated(ApplicationContext newServiceContext) throws ServiceException {
         log.debug("{}: Loading new configuration into service", getId());
         AbstractErrorHandler oldErrorHandler = errorHandler;
         Map<String, AbstractRequestURIMappedProfileHandler> oldProfileHandlers = profileHandlers;
         Map<String, LoginHandler> oldLoginHandlers = loginHandlers;
+        LoginHandlerSelectionIndex oldLoginHandlerIndex = loginHandlerIndex;
 
         try {
             loadNewErrorHandler(newServiceContext);
@@ -135,6 +226,7 @@ public class IdPProfileHandlerManager extends BaseReloadableService implements P
             errorHandler = oldErrorHandler;
             profileHandlers = oldProfileHandlers;
             loginHandlers = oldLoginHandlers;
+            loginHandlerIndex = oldLoginHandlerIndex;
             throw new ServiceException(getId() + " configuration is not valid, retaining old configuration", e);
         }
     }
@@ -165,6 +257,7 @@ public class IdPProfileHandlerManager extends BaseReloadableService implements P
         AbstractRequestURIMappedProfileHandler<?, ?> profileHandler;
         for (String profileBeanName : profileBeanNames) {
             profileHandler = (AbstractRequestURIMappedProfileHandler) newServiceContext.getBean(profileBeanName);
+            injectServletContext(profileHandler);
             for (String requestPath : profileHandler.getRequestPaths()) {
                 newProfileHandlers.put(requestPath, profileHandler);
                 log.debug("{}: Loaded profile handler for handling requests to request path {}", getId(), requestPath);
@@ -193,6 +286,19 @@ public class IdPProfileHandlerManager extends BaseReloadableService implements P
                 newLoginHandlers.put(authnMethod, authnHandler);
             }
         }
+        LoginHandlerSelectionIndex newLoginHandlerIndex = new LoginHandlerSelectionIndex(newLoginHandlers);
         loginHandlers = newLoginHandlers;
+        loginHandlerIndex = newLoginHandlerIndex;
+    }
+
+    /**
+     * Hands the Servlet context, if known, to a profile handler that wants it.
+     * 
+     * @param profileHandler the profile handler
+     */
+    protected void injectServletContext(ProfileHandler profileHandler) {
+        if (servletContext != null && profileHandler instanceof ServletContextAware) {
+            ((ServletContextAware) profileHandler).setServletContext(servletContext);
+        }
     }
-}
\ No newline at end of file
+}
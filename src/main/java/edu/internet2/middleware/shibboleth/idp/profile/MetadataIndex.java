@@ -0,0 +1,967 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.joda.time.DateTime;
+import org.opensaml.Configuration;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.common.Extensions;
+import org.opensaml.saml2.common.TimeBoundSAMLObject;
+import org.opensaml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml2.metadata.AttributeAuthorityDescriptor;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.Endpoint;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.NameIDFormat;
+import org.opensaml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+import org.opensaml.samlext.saml2mdui.UIInfo;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.Marshaller;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.metadata.DeferredEntitiesDescriptor;
+
+/**
+ * An index over the entities of a metadata provider, mapping an entity ID to a record of its pre-resolved roles,
+ * supported name identifier formats, endpoints and user interface information in a single hash lookup.
+ * 
+ * The index is built from the provider's whole metadata document on a background thread when it is created, and
+ * rebuilt there and swapped in as a whole every time the provider signals its metadata changed, the previous index
+ * answering lookups in the meantime. Until the index is first built, and for providers which can not signal changes
+ * and so are never indexed, lookups are passed on to the provider.
+ * 
+ * Each entity is indexed along with a digest of its metadata and of the name and extensions of the groups enclosing
+ * it. When the index is rebuilt, the IDs of the entities which were added, removed or whose digest changed are
+ * published to the registered {@link EntityChangeListener}s, letting caches drop just those entries. Records always
+ * refer to the metadata objects of the provider's current document, even for entities which did not change, so that
+ * no previous document is kept alive; anything which must tell whether an entity's metadata changed compares digests,
+ * as {@link EntityMetadataCache} does, rather than metadata objects.
+ * 
+ * The index only answers for entities it can answer for exactly as the provider would: entities whose metadata, or
+ * the metadata enclosing it, is past its validity, and entity IDs appearing more than once, are looked up from the
+ * provider again and their records are not kept.
+ * 
+ * Groups of entities which are only loaded as they are looked up, {@link DeferredEntitiesDescriptor}s, are not
+ * walked. Entities which are not indexed are looked up from these groups instead, and their records are not kept.
+ * Listeners are told that all entities may have changed whenever such a group is reloaded.
+ */
+public class MetadataIndex implements ObservableMetadataProvider.Observer {
+
+    /** Protocols for which roles are resolved when the index is built. */
+    private static final String[] INDEXED_PROTOCOLS = { SAMLConstants.SAML20P_NS, SAMLConstants.SAML11P_NS,
+            SAMLConstants.SAML10P_NS, };
+
+    /** Indexes shared by all the users of a provider. */
+    private static final Map<MetadataProvider, MetadataIndex> INSTANCES =
+            new WeakHashMap<MetadataProvider, MetadataIndex>();
+
+    /** Algorithm used to digest the metadata of an entity. */
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(MetadataIndex.class);
+
+    /** Indexed provider, weakly held so that shared indexes do not keep replaced providers alive. */
+    private final WeakReference<MetadataProvider> provider;
+
+    /** Records of the indexed entities by entity ID, null until built or if the metadata can not be indexed. */
+    private volatile Map<String, EntityRecord> entities;
+
+    /** Groups whose entities are loaded as they are looked up, searched for entities which are not indexed. */
+    private volatile List<DeferredEntitiesDescriptor> deferredGroups;
+
+    /** Whether the index was ever built. */
+    private volatile boolean built;
+
+    /** Whether a rebuild of the index is waiting to run. */
+    private final AtomicBoolean rebuildPending;
+
+    /** Thread rebuilding the index when the metadata changed, only kept while there is work to do. */
+    private final ThreadPoolExecutor rebuilder;
+
+    /** Listeners notified of the entities which changed when the index is rebuilt. */
+    private final List<EntityChangeListener> entityChangeListeners;
+
+    /**
+     * Constructor.
+     * 
+     * @param metadataProvider provider whose entities are indexed
+     */
+    public MetadataIndex(MetadataProvider metadataProvider) {
+        if (metadataProvider == null) {
+            throw new IllegalArgumentException("Metadata provider may not be null");
+        }
+        provider = new WeakReference<MetadataProvider>(metadataProvider);
+
+        deferredGroups = Collections.emptyList();
+        rebuildPending = new AtomicBoolean(false);
+        rebuilder = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new RebuilderThreadFactory());
+        entityChangeListeners = new CopyOnWriteArrayList<EntityChangeListener>();
+
+        if (metadataProvider instanceof ObservableMetadataProvider) {
+            ((ObservableMetadataProvider) metadataProvider).getObservers().add(this);
+            onEvent(metadataProvider);
+        }
+    }
+
+    /**
+     * Gets the index shared by all the users of a metadata provider, creating it if needed.
+     * 
+     * @param metadataProvider the metadata provider
+     * 
+     * @return the index of the provider, or null if the provider is null
+     */
+    public static MetadataIndex getInstance(MetadataProvider metadataProvider) {
+        if (metadataProvider == null) {
+            return null;
+        }
+
+        synchronized (INSTANCES) {
+            MetadataIndex index = INSTANCES.get(metadataProvider);
+            if (index == null) {
+                index = new MetadataIndex(metadataProvider);
+                INSTANCES.put(metadataProvider, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Gets the record of an entity.
+     * 
+     * @param entityId ID of the entity
+     * 
+     * @return the record of the entity, or null if the provider has no metadata for it
+     * 
+     * @throws MetadataProviderException thrown if the entity had to be looked up from the provider and the lookup
+     *             failed
+     */
+    public EntityRecord getEntity(String entityId) throws MetadataProviderException {
+        if (entityId == null) {
+            return null;
+        }
+
+        Map<String, EntityRecord> currentEntities = getEntities();
+        if (currentEntities != null) {
+            EntityRecord record = currentEntities.get(entityId);
+            if (record == null) {
+                return getDeferredEntity(entityId);
+            }
+            if (record.isValid()) {
+                return record;
+            }
+        }
+
+        MetadataProvider metadataProvider = provider.get();
+        if (metadataProvider == null) {
+            return null;
+        }
+        EntityDescriptor entityDescriptor = metadataProvider.getEntityDescriptor(entityId);
+        if (entityDescriptor == null) {
+            return null;
+        }
+        return new EntityRecord(entityDescriptor, null);
+    }
+
+    /**
+     * Gets the metadata of an entity.
+     * 
+     * @param entityId ID of the entity
+     * 
+     * @return the metadata of the entity, or null if the provider has no metadata for it
+     * 
+     * @throws MetadataProviderException thrown if the entity had to be looked up from the provider and the lookup
+     *             failed
+     */
+    public EntityDescriptor getEntityDescriptor(String entityId) throws MetadataProviderException {
+        EntityRecord record = getEntity(entityId);
+        if (record == null) {
+            return null;
+        }
+        return record.getEntityDescriptor();
+    }
+
+    /**
+     * Gets the number of entities currently indexed.
+     * 
+     * @return number of entities currently indexed, 0 if the metadata is not indexed
+     */
+    public int getEntityCount() {
+        Map<String, EntityRecord> currentEntities = getEntities();
+        if (currentEntities == null) {
+            return 0;
+        }
+        return currentEntities.size();
+    }
+
+    /**
+     * Gets the listeners notified of the entities which changed when the index is rebuilt. Listeners are notified on
+     * the thread rebuilding the index, after the new index was swapped in.
+     * 
+     * @return listeners notified of the entities which changed when the index is rebuilt
+     */
+    public List<EntityChangeListener> getEntityChangeListeners() {
+        return entityChangeListeners;
+    }
+
+    /** {@inheritDoc} */
+    public void onEvent(MetadataProvider metadataProvider) {
+        if (rebuildPending.compareAndSet(false, true)) {
+            log.debug("Metadata changed, scheduling rebuild of entity index");
+            rebuilder.execute(new Runnable() {
+                /** {@inheritDoc} */
+                public void run() {
+                    rebuildPending.set(false);
+                    rebuild();
+                }
+            });
+        }
+    }
+
+    /**
+     * Rebuilds the index from the provider's current metadata and notifies the listeners of the entities which were
+     * added, removed or changed since the index was last built.
+     */
+    public void rebuild() {
+        Set<String> changedEntityIds;
+        synchronized (this) {
+            Map<String, EntityRecord> previousEntities = entities;
+            List<DeferredEntitiesDescriptor> previousDeferredGroups = deferredGroups;
+            boolean previouslyBuilt = built;
+            HashSet<String> changes = new HashSet<String>();
+            ArrayList<DeferredEntitiesDescriptor> deferred = new ArrayList<DeferredEntitiesDescriptor>();
+
+            Map<String, EntityRecord> rebuiltEntities = buildEntities(previousEntities, changes, deferred);
+            deferredGroups = Collections.unmodifiableList(deferred);
+            entities = rebuiltEntities;
+            built = true;
+
+            if (!previouslyBuilt) {
+                return;
+            }
+            if (previousEntities == null || entities == null || !isSame(previousDeferredGroups, deferred)) {
+                changedEntityIds = null;
+            } else {
+                changedEntityIds = Collections.unmodifiableSet(changes);
+            }
+        }
+
+        if (changedEntityIds != null && changedEntityIds.isEmpty()) {
+            log.debug("Rebuilt entity index, no entity changed");
+            return;
+        }
+
+        if (changedEntityIds == null) {
+            log.debug("Rebuilt entity index, notifying listeners that all entities may have changed");
+        } else {
+            log.debug("Rebuilt entity index, notifying listeners that {} entities changed", changedEntityIds.size());
+        }
+        for (EntityChangeListener listener : entityChangeListeners) {
+            try {
+                listener.entitiesChanged(this, changedEntityIds);
+            } catch (RuntimeException e) {
+                log.error("Entity change listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Gets the current records of the indexed entities.
+     * 
+     * @return current records of the indexed entities, or null if the metadata is not indexed, or not indexed yet
+     */
+    private Map<String, EntityRecord> getEntities() {
+        return entities;
+    }
+
+    /**
+     * Looks up an entity which is not indexed from the groups whose entities are loaded as they are looked up.
+     * 
+     * @param entityId ID of the entity
+     * 
+     * @return a record of the entity, or null if no such group has metadata for it
+     * 
+     * @throws MetadataProviderException thrown if the metadata of the entity can not be loaded
+     */
+    private EntityRecord getDeferredEntity(String entityId) throws MetadataProviderException {
+        for (DeferredEntitiesDescriptor group : deferredGroups) {
+            EntityDescriptor entityDescriptor = group.getEntityDescriptor(entityId);
+            if (entityDescriptor != null) {
+                return new EntityRecord(entityDescriptor, null);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds the records of all the entities in the provider's metadata, keeping the previous records of the entities
+     * which did not change.
+     * 
+     * @param previousEntities records of the previous index, may be null
+     * @param changes set to which the IDs of the entities added, removed or changed since the previous index are added
+     * @param deferred list to which the groups whose entities are loaded as they are looked up are added
+     * 
+     * @return records of the entities indexed by entity ID, or null if the metadata could not be read
+     */
+    private Map<String, EntityRecord> buildEntities(Map<String, EntityRecord> previousEntities, Set<String> changes,
+            List<DeferredEntitiesDescriptor> deferred) {
+        MetadataProvider metadataProvider = provider.get();
+        if (metadataProvider == null) {
+            return null;
+        }
+
+        XMLObject metadata;
+        try {
+            metadata = metadataProvider.getMetadata();
+        } catch (MetadataProviderException e) {
+            log.error("Unable to read metadata to index, entities will be looked up from the provider", e);
+            return null;
+        }
+        if (metadata == null) {
+            return null;
+        }
+
+        MessageDigest digester;
+        try {
+            digester = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            log.error("Digest algorithm " + DIGEST_ALGORITHM + " is not supported, entities will not be indexed", e);
+            return null;
+        }
+
+        BuildContext context = new BuildContext(digester, previousEntities);
+        if (metadata instanceof EntitiesDescriptor) {
+            indexEntities(context, (EntitiesDescriptor) metadata, null, "");
+        } else if (metadata instanceof EntityDescriptor) {
+            indexEntity(context, (EntityDescriptor) metadata, null, "");
+        }
+
+        for (String entityId : context.duplicates) {
+            log.warn("Entity {} appears more than once in metadata, it will be looked up from the provider", entityId);
+            context.records.remove(entityId);
+        }
+
+        if (previousEntities != null) {
+            for (String entityId : previousEntities.keySet()) {
+                if (!context.records.containsKey(entityId)) {
+                    changes.add(entityId);
+                }
+            }
+        }
+        changes.addAll(context.changes);
+        changes.addAll(context.duplicates);
+        deferred.addAll(context.deferredGroups);
+
+        log.debug("Indexed metadata of {} entities, {} kept unchanged", context.records.size(), context.kept);
+        return Collections.unmodifiableMap(context.records);
+    }
+
+    /**
+     * Adds the records of the entities within a group to the index.
+     * 
+     * @param context state of the index being built
+     * @param group group of entities
+     * @param validUntil expiration of the metadata enclosing the group, may be null
+     * @param enclosingDigest digest of the name and extensions of the groups enclosing the group
+     */
+    private void indexEntities(BuildContext context, EntitiesDescriptor group, DateTime validUntil,
+            String enclosingDigest) {
+        if (group instanceof DeferredEntitiesDescriptor) {
+            context.deferredGroups.add((DeferredEntitiesDescriptor) group);
+            return;
+        }
+
+        DateTime groupValidUntil = earliest(validUntil, group);
+
+        String groupDigest = enclosingDigest;
+        try {
+            StringBuilder groupContent = new StringBuilder(enclosingDigest);
+            groupContent.append('/').append(group.getName());
+            if (group.getExtensions() != null) {
+                groupContent.append(serialize(group.getExtensions()));
+            }
+            groupDigest = digest(context.digester, groupContent.toString());
+        } catch (MarshallingException e) {
+            log.error("Unable to digest metadata of entity group " + group.getName(), e);
+            context.undigestable = true;
+        }
+
+        if (group.getEntityDescriptors() != null) {
+            for (EntityDescriptor entity : group.getEntityDescriptors()) {
+                indexEntity(context, entity, groupValidUntil, groupDigest);
+            }
+        }
+
+        if (group.getEntitiesDescriptors() != null) {
+            for (EntitiesDescriptor childGroup : group.getEntitiesDescriptors()) {
+                indexEntities(context, childGroup, groupValidUntil, groupDigest);
+            }
+        }
+    }
+
+    /**
+     * Adds the record of an entity to the index, reporting it as changed unless its digest is the same as in the
+     * previous index. The previous record is only kept if it refers to the very same metadata objects.
+     * 
+     * @param context state of the index being built
+     * @param entity the entity
+     * @param validUntil expiration of the metadata enclosing the entity, may be null
+     * @param enclosingDigest digest of the name and extensions of the groups enclosing the entity
+     */
+    private void indexEntity(BuildContext context, EntityDescriptor entity, DateTime validUntil,
+            String enclosingDigest) {
+        String entityId = entity.getEntityID();
+        if (entityId == null) {
+            return;
+        }
+
+        if (context.records.containsKey(entityId)) {
+            context.duplicates.add(entityId);
+            return;
+        }
+
+        DateTime entityValidUntil = earliest(validUntil, entity);
+        if (entity.getRoleDescriptors() != null) {
+            for (RoleDescriptor role : entity.getRoleDescriptors()) {
+                entityValidUntil = earliest(entityValidUntil, role);
+            }
+        }
+
+        String entityDigest = null;
+        if (!context.undigestable) {
+            try {
+                entityDigest = digest(context.digester, enclosingDigest + serialize(entity));
+            } catch (MarshallingException e) {
+                log.error("Unable to digest metadata of entity " + entityId, e);
+            }
+        }
+
+        EntityRecord previousRecord = null;
+        if (context.previousEntities != null) {
+            previousRecord = context.previousEntities.get(entityId);
+        }
+
+        EntityRecord record;
+        if (previousRecord != null && entityDigest != null && entityDigest.equals(previousRecord.getDigest())) {
+            if (previousRecord.getEntityDescriptor() == entity
+                    && equal(entityValidUntil, previousRecord.getValidUntil())) {
+                record = previousRecord;
+            } else {
+                record = new EntityRecord(entity, entityValidUntil, entityDigest);
+            }
+            context.kept++;
+        } else {
+            record = new EntityRecord(entity, entityValidUntil, entityDigest);
+            if (context.previousEntities != null) {
+                context.changes.add(entityId);
+            }
+        }
+
+        context.records.put(entityId, record);
+    }
+
+    /**
+     * Serializes a metadata element. Elements without a DOM are marshalled, and their DOM released afterwards.
+     * 
+     * @param metadata the metadata element
+     * 
+     * @return the serialized element
+     * 
+     * @throws MarshallingException thrown if the element can not be marshalled
+     */
+    private String serialize(XMLObject metadata) throws MarshallingException {
+        if (metadata.getDOM() != null) {
+            return XMLHelper.nodeToString(metadata.getDOM());
+        }
+
+        Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(metadata);
+        if (marshaller == null) {
+            throw new MarshallingException("No marshaller registered for " + metadata.getElementQName());
+        }
+        StringWriter writer = new StringWriter();
+        XMLHelper.writeNode(marshaller.marshall(metadata), writer);
+        metadata.releaseChildrenDOM(true);
+        metadata.releaseDOM();
+        return writer.toString();
+    }
+
+    /**
+     * Digests a string.
+     * 
+     * @param digester digester to use
+     * @param content the string
+     * 
+     * @return the base64 encoded digest of the string
+     */
+    private static String digest(MessageDigest digester, String content) {
+        try {
+            return Base64.encodeBytes(digester.digest(content.getBytes("UTF-8")), Base64.DONT_BREAK_LINES);
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets whether two lists hold the same groups, in the same order.
+     * 
+     * @param first the first list
+     * @param second the second list
+     * 
+     * @return true if both lists hold the same instances in the same order
+     */
+    private static boolean isSame(List<DeferredEntitiesDescriptor> first, List<DeferredEntitiesDescriptor> second) {
+        if (first.size() != second.size()) {
+            return false;
+        }
+        for (int i = 0; i < first.size(); i++) {
+            if (first.get(i) != second.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets whether two expirations are the same.
+     * 
+     * @param first the first expiration, may be null
+     * @param second the second expiration, may be null
+     * 
+     * @return true if both expirations are null or the same instant
+     */
+    private static boolean equal(DateTime first, DateTime second) {
+        if (first == null) {
+            return second == null;
+        }
+        return second != null && first.isEqual(second);
+    }
+
+    /**
+     * Gets the earliest of an expiration and the expiration of a metadata element.
+     * 
+     * @param validUntil the expiration, may be null
+     * @param metadata the metadata element
+     * 
+     * @return the earliest of the two expirations, null if neither expires
+     */
+    private static DateTime earliest(DateTime validUntil, TimeBoundSAMLObject metadata) {
+        DateTime metadataValidUntil = metadata.getValidUntil();
+        if (metadataValidUntil == null || (validUntil != null && validUntil.isBefore(metadataValidUntil))) {
+            return validUntil;
+        }
+        return metadataValidUntil;
+    }
+
+    /**
+     * The metadata of an entity along with its roles, supported name identifier formats, endpoints and user interface
+     * information resolved ahead of use. Roles are resolved for the SAML 2, SAML 1.1 and SAML 1.0 protocols, and
+     * looked up from the entity metadata for any other protocol.
+     */
+    public static class EntityRecord {
+
+        /** Metadata of the entity. */
+        private final EntityDescriptor entityDescriptor;
+
+        /** Time the metadata of the entity, or any metadata enclosing it, expires, null if it does not expire. */
+        private final DateTime validUntil;
+
+        /** Digest of the metadata of the entity and of the groups enclosing it, null if it was not digested. */
+        private final String digest;
+
+        /** Service provider roles of the entity, indexed by protocol. */
+        private final Map<String, SPSSODescriptor> spDescriptors;
+
+        /** Attribute authority roles of the entity, indexed by protocol. */
+        private final Map<String, AttributeAuthorityDescriptor> aaDescriptors;
+
+        /** Name identifier formats supported by each of the resolved roles. */
+        private final Map<RoleDescriptor, List<String>> nameIdFormats;
+
+        /** Assertion consumer services of the service provider roles, indexed by protocol then binding. */
+        private final Map<String, Map<String, List<AssertionConsumerService>>> assertionConsumerServices;
+
+        /** SAML 2 single logout services of the entity, indexed by binding. */
+        private final Map<String, List<SingleLogoutService>> singleLogoutServices;
+
+        /** User interface information of the entity, may be null. */
+        private final UIInfo uiInfo;
+
+        /**
+         * Constructor.
+         * 
+         * @param entity metadata of the entity
+         * @param expiration time the metadata of the entity, or any metadata enclosing it, expires, may be null
+         */
+        public EntityRecord(EntityDescriptor entity, DateTime expiration) {
+            this(entity, expiration, null);
+        }
+
+        /**
+         * Constructor.
+         * 
+         * @param entity metadata of the entity
+         * @param expiration time the metadata of the entity, or any metadata enclosing it, expires, may be null
+         * @param metadataDigest digest of the metadata of the entity and of the groups enclosing it, may be null
+         */
+        public EntityRecord(EntityDescriptor entity, DateTime expiration, String metadataDigest) {
+            entityDescriptor = entity;
+            validUntil = expiration;
+            digest = metadataDigest;
+
+            spDescriptors = new HashMap<String, SPSSODescriptor>();
+            aaDescriptors = new HashMap<String, AttributeAuthorityDescriptor>();
+            nameIdFormats = new IdentityHashMap<RoleDescriptor, List<String>>();
+            assertionConsumerServices = new HashMap<String, Map<String, List<AssertionConsumerService>>>();
+            for (String protocol : INDEXED_PROTOCOLS) {
+                SPSSODescriptor spDescriptor = entity.getSPSSODescriptor(protocol);
+                if (spDescriptor != null) {
+                    spDescriptors.put(protocol, spDescriptor);
+                    nameIdFormats.put(spDescriptor, getFormats(spDescriptor.getNameIDFormats()));
+                    assertionConsumerServices.put(protocol, indexByBinding(spDescriptor
+                            .getAssertionConsumerServices()));
+                }
+
+                AttributeAuthorityDescriptor aaDescriptor = entity.getAttributeAuthorityDescriptor(protocol);
+                if (aaDescriptor != null) {
+                    aaDescriptors.put(protocol, aaDescriptor);
+                    nameIdFormats.put(aaDescriptor, getFormats(aaDescriptor.getNameIDFormats()));
+                }
+            }
+
+            SPSSODescriptor saml2Descriptor = spDescriptors.get(SAMLConstants.SAML20P_NS);
+            if (saml2Descriptor != null) {
+                singleLogoutServices = indexByBinding(saml2Descriptor.getSingleLogoutServices());
+            } else {
+                singleLogoutServices = Collections.emptyMap();
+            }
+
+            uiInfo = findUIInfo(entity);
+        }
+
+        /**
+         * Gets the metadata of the entity.
+         * 
+         * @return metadata of the entity
+         */
+        public EntityDescriptor getEntityDescriptor() {
+            return entityDescriptor;
+        }
+
+        /**
+         * Gets the time the metadata of the entity, or any metadata enclosing it, expires.
+         * 
+         * @return time the metadata expires, null if it does not expire
+         */
+        public DateTime getValidUntil() {
+            return validUntil;
+        }
+
+        /**
+         * Gets the digest of the metadata of the entity and of the groups enclosing it.
+         * 
+         * @return digest of the metadata, null if it was not digested
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * Gets whether the metadata of the entity is still within its validity period.
+         * 
+         * @return true if the metadata of the entity has not expired
+         */
+        public boolean isValid() {
+            return validUntil == null || validUntil.isAfterNow();
+        }
+
+        /**
+         * Gets the service provider role of the entity supporting a protocol.
+         * 
+         * @param protocol the protocol
+         * 
+         * @return the service provider role, or null if the entity has none supporting the protocol
+         */
+        public SPSSODescriptor getSPSSODescriptor(String protocol) {
+            SPSSODescriptor spDescriptor = spDescriptors.get(protocol);
+            if (spDescriptor == null && !isIndexedProtocol(protocol)) {
+                spDescriptor = entityDescriptor.getSPSSODescriptor(protocol);
+            }
+            return spDescriptor;
+        }
+
+        /**
+         * Gets the attribute authority role of the entity supporting a protocol.
+         * 
+         * @param protocol the protocol
+         * 
+         * @return the attribute authority role, or null if the entity has none supporting the protocol
+         */
+        public AttributeAuthorityDescriptor getAttributeAuthorityDescriptor(String protocol) {
+            AttributeAuthorityDescriptor aaDescriptor = aaDescriptors.get(protocol);
+            if (aaDescriptor == null && !isIndexedProtocol(protocol)) {
+                aaDescriptor = entityDescriptor.getAttributeAuthorityDescriptor(protocol);
+            }
+            return aaDescriptor;
+        }
+
+        /**
+         * Gets the name identifier formats supported by a role of the entity.
+         * 
+         * @param role the role
+         * 
+         * @return unmodifiable list of the supported formats, or null if the role was not resolved by this record
+         */
+        public List<String> getNameIDFormats(RoleDescriptor role) {
+            return nameIdFormats.get(role);
+        }
+
+        /**
+         * Gets the assertion consumer services of the service provider role of the entity supporting a protocol.
+         * 
+         * @param protocol the protocol
+         * @param binding binding of the services
+         * 
+         * @return unmodifiable list of the services, in metadata order, empty if there are none
+         */
+        public List<AssertionConsumerService> getAssertionConsumerServices(String protocol, String binding) {
+            Map<String, List<AssertionConsumerService>> services = assertionConsumerServices.get(protocol);
+            if (services == null) {
+                SPSSODescriptor spDescriptor = getSPSSODescriptor(protocol);
+                if (spDescriptor == null) {
+                    return Collections.emptyList();
+                }
+                services = indexByBinding(spDescriptor.getAssertionConsumerServices());
+            }
+
+            List<AssertionConsumerService> boundServices = services.get(binding);
+            if (boundServices == null) {
+                return Collections.emptyList();
+            }
+            return boundServices;
+        }
+
+        /**
+         * Gets the SAML 2 single logout services of the entity.
+         * 
+         * @param binding binding of the services
+         * 
+         * @return unmodifiable list of the services, in metadata order, empty if there are none
+         */
+        public List<SingleLogoutService> getSingleLogoutServices(String binding) {
+            List<SingleLogoutService> services = singleLogoutServices.get(binding);
+            if (services == null) {
+                return Collections.emptyList();
+            }
+            return services;
+        }
+
+        /**
+         * Gets the user interface information of the entity, the first carried by any of its service provider roles.
+         * 
+         * @return user interface information of the entity, or null if it has none
+         */
+        public UIInfo getUIInfo() {
+            return uiInfo;
+        }
+
+        /**
+         * Gets whether roles supporting a protocol are resolved when a record is built.
+         * 
+         * @param protocol the protocol
+         * 
+         * @return true if roles supporting the protocol are resolved when a record is built
+         */
+        private static boolean isIndexedProtocol(String protocol) {
+            for (String indexedProtocol : INDEXED_PROTOCOLS) {
+                if (indexedProtocol.equals(protocol)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Gets the format URIs of a list of name identifier formats.
+         * 
+         * @param formats the name identifier formats, may be null
+         * 
+         * @return unmodifiable list of the format URIs
+         */
+        private static List<String> getFormats(List<NameIDFormat> formats) {
+            if (formats == null || formats.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            ArrayList<String> formatUris = new ArrayList<String>(formats.size());
+            for (NameIDFormat format : formats) {
+                formatUris.add(format.getFormat());
+            }
+            return Collections.unmodifiableList(formatUris);
+        }
+
+        /**
+         * Groups endpoints by binding, keeping their metadata order.
+         * 
+         * @param <T> type of endpoint
+         * @param endpoints the endpoints, may be null
+         * 
+         * @return unmodifiable lists of the endpoints indexed by binding
+         */
+        private static <T extends Endpoint> Map<String, List<T>> indexByBinding(List<T> endpoints) {
+            if (endpoints == null || endpoints.isEmpty()) {
+                return Collections.emptyMap();
+            }
+
+            HashMap<String, List<T>> index = new HashMap<String, List<T>>();
+            for (T endpoint : endpoints) {
+                List<T> boundEndpoints = index.get(endpoint.getBinding());
+                if (boundEndpoints == null) {
+                    boundEndpoints = new ArrayList<T>();
+                    index.put(endpoint.getBinding(), boundEndpoints);
+                }
+                boundEndpoints.add(endpoint);
+            }
+
+            for (Map.Entry<String, List<T>> entry : index.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            return index;
+        }
+
+        /**
+         * Finds the first user interface information carried by a service provider role of an entity.
+         * 
+         * @param entity the entity
+         * 
+         * @return the user interface information, or null if there is none
+         */
+        private static UIInfo findUIInfo(EntityDescriptor entity) {
+            Extensions exts;
+            for (RoleDescriptor role : entity.getRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME)) {
+                exts = role.getExtensions();
+                if (exts != null) {
+                    for (XMLObject object : exts.getOrderedChildren()) {
+                        if (object instanceof UIInfo) {
+                            return (UIInfo) object;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Listener notified of the entities which changed when an index is rebuilt. */
+    public static interface EntityChangeListener {
+
+        /**
+         * Called after an index was rebuilt and some of its entities were added, removed or changed.
+         * 
+         * @param index the rebuilt index
+         * @param entityIds IDs of the entities which were added, removed or changed, or null if any entity may have
+         *            changed
+         */
+        public void entitiesChanged(MetadataIndex index, Set<String> entityIds);
+    }
+
+    /** State of an index being built. */
+    private static class BuildContext {
+
+        /** Digester of entity metadata. */
+        private final MessageDigest digester;
+
+        /** Records of the previous index, may be null. */
+        private final Map<String, EntityRecord> previousEntities;
+
+        /** Records indexed so far. */
+        private final HashMap<String, EntityRecord> records;
+
+        /** Entity IDs seen more than once so far. */
+        private final HashSet<String> duplicates;
+
+        /** IDs of the entities added or changed so far. */
+        private final HashSet<String> changes;
+
+        /** Groups whose entities are loaded as they are looked up, found so far. */
+        private final List<DeferredEntitiesDescriptor> deferredGroups;
+
+        /** Number of entities whose previous record was kept so far. */
+        private int kept;
+
+        /** Whether the metadata of an enclosing group could not be digested, so entities can not be compared. */
+        private boolean undigestable;
+
+        /**
+         * Constructor.
+         * 
+         * @param metadataDigester digester of entity metadata
+         * @param previous records of the previous index, may be null
+         */
+        public BuildContext(MessageDigest metadataDigester, Map<String, EntityRecord> previous) {
+            digester = metadataDigester;
+            previousEntities = previous;
+            records = new HashMap<String, EntityRecord>();
+            duplicates = new HashSet<String>();
+            changes = new HashSet<String>();
+            deferredGroups = new ArrayList<DeferredEntitiesDescriptor>();
+        }
+    }
+
+    /** Factory of the daemon thread rebuilding the index. */
+    private static class RebuilderThreadFactory implements ThreadFactory {
+
+        /** {@inheritDoc} */
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "shibboleth-metadata-index");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.opensaml.saml2.metadata.Endpoint;
+import org.opensaml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.util.DatatypeHelper;
+
+import edu.internet2.middleware.shibboleth.common.profile.provider.BaseSAMLProfileRequestContext;
+import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartyConfiguration;
+import edu.internet2.middleware.shibboleth.common.relyingparty.provider.AbstractSAMLProfileConfiguration;
+import edu.internet2.middleware.shibboleth.common.relyingparty.provider.CryptoOperationRequirementLevel;
+import edu.internet2.middleware.shibboleth.common.relyingparty.provider.saml2.AbstractSAML2ProfileConfiguration;
+
+/**
+ * The decisions and values a profile handler needs to build every response to a given relying party, computed once
+ * from the relying party configuration, the profile configuration and the relying party's metadata.
+ * 
+ * A plan only holds plain values and references to configuration and metadata objects; XML objects are still built
+ * for each response since they can not be shared between documents. Whether the outbound binding itself protects the
+ * message depends on the transport of each request, so requirement levels are kept as configured and the binding is
+ * only consulted when a level is {@link CryptoOperationRequirementLevel#conditional}.
+ * 
+ * A plan is only valid for the configuration and metadata objects it was built from. Reloading either produces new
+ * objects, so {@link #isCurrent(BaseSAMLProfileRequestContext)} then fails and the plan is built again.
+ */
+public class ResponsePlan {
+
+    /** Relying party configuration the plan was built from. */
+    private final RelyingPartyConfiguration relyingPartyConfiguration;
+
+    /** Profile configuration the plan was built from. */
+    private final AbstractSAMLProfileConfiguration profileConfiguration;
+
+    /** Role metadata of the relying party the plan was built from. */
+    private final RoleDescriptor peerRoleMetadata;
+
+    /** Entity ID of the relying party. */
+    private final String relyingPartyId;
+
+    /** Lifetime, in milliseconds, of issued assertions. */
+    private final long assertionLifetime;
+
+    /** Audiences of issued assertions, starting with the relying party itself. */
+    private final List<String> assertionAudiences;
+
+    /** Audiences of the proxy restriction of issued assertions. */
+    private final List<String> proxyAudiences;
+
+    /** Proxy count of the proxy restriction of issued assertions. */
+    private final int proxyCount;
+
+    /** Whether assertions are signed. */
+    private final CryptoOperationRequirementLevel signAssertions;
+
+    /** Whether responses are signed. */
+    private final CryptoOperationRequirementLevel signResponses;
+
+    /** Whether assertions are encrypted. */
+    private final CryptoOperationRequirementLevel encryptAssertion;
+
+    /** Whether name identifiers are encrypted. */
+    private final CryptoOperationRequirementLevel encryptNameID;
+
+    /** Whether the relying party metadata asks for signed assertions, null if it does not say. */
+    private final Boolean wantAssertionsSigned;
+
+    /** Credential used to sign assertions and responses. */
+    private final Credential signingCredential;
+
+    /** Endpoint used when a request does not name one, null until first selected. */
+    private volatile Endpoint defaultEndpoint;
+
+    /**
+     * Constructor.
+     * 
+     * @param requestContext request context populated with the relying party and profile information
+     */
+    public ResponsePlan(BaseSAMLProfileRequestContext requestContext) {
+        if (!(requestContext.getProfileConfiguration() instanceof AbstractSAMLProfileConfiguration)) {
+            throw new IllegalArgumentException("Request context does not contain a SAML profile configuration");
+        }
+
+        relyingPartyConfiguration = requestContext.getRelyingPartyConfiguration();
+        profileConfiguration = (AbstractSAMLProfileConfiguration) requestContext.getProfileConfiguration();
+        peerRoleMetadata = requestContext.getPeerEntityRoleMetadata();
+        relyingPartyId = requestContext.getInboundMessageIssuer();
+
+        assertionLifetime = profileConfiguration.getAssertionLifetime();
+
+        ArrayList<String> audiences = new ArrayList<String>();
+        audiences.add(relyingPartyId);
+        if (profileConfiguration.getAssertionAudiences() != null) {
+            audiences.addAll(profileConfiguration.getAssertionAudiences());
+        }
+        assertionAudiences = Collections.unmodifiableList(audiences);
+
+        signAssertions = profileConfiguration.getSignAssertions();
+        signResponses = profileConfiguration.getSignResponses();
+
+        if (profileConfiguration instanceof AbstractSAML2ProfileConfiguration) {
+            AbstractSAML2ProfileConfiguration saml2Config = (AbstractSAML2ProfileConfiguration) profileConfiguration;
+            proxyAudiences = copyOf(saml2Config.getProxyAudiences());
+            proxyCount = saml2Config.getProxyCount();
+            encryptAssertion = saml2Config.getEncryptAssertion();
+            encryptNameID = saml2Config.getEncryptNameID();
+        } else {
+            proxyAudiences = Collections.emptyList();
+            proxyCount = 0;
+            encryptAssertion = CryptoOperationRequirementLevel.never;
+            encryptNameID = CryptoOperationRequirementLevel.never;
+        }
+
+        if (peerRoleMetadata instanceof SPSSODescriptor) {
+            wantAssertionsSigned = ((SPSSODescriptor) peerRoleMetadata).getWantAssertionsSigned();
+        } else {
+            wantAssertionsSigned = null;
+        }
+
+        if (profileConfiguration.getSigningCredential() != null) {
+            signingCredential = profileConfiguration.getSigningCredential();
+        } else if (relyingPartyConfiguration != null) {
+            signingCredential = relyingPartyConfiguration.getDefaultSigningCredential();
+        } else {
+            signingCredential = null;
+        }
+    }
+
+    /**
+     * Gets whether this plan was built from the configuration and metadata in the given request context.
+     * 
+     * @param requestContext current request context
+     * 
+     * @return true if this plan may be used for the request, false if it must be built again
+     */
+    public boolean isCurrent(BaseSAMLProfileRequestContext requestContext) {
+        return relyingPartyConfiguration == requestContext.getRelyingPartyConfiguration()
+                && profileConfiguration == requestContext.getProfileConfiguration()
+                && peerRoleMetadata == requestContext.getPeerEntityRoleMetadata()
+                && DatatypeHelper.safeEquals(relyingPartyId, requestContext.getInboundMessageIssuer());
+    }
+
+    /**
+     * Gets the entity ID of the relying party.
+     * 
+     * @return entity ID of the relying party
+     */
+    public String getRelyingPartyId() {
+        return relyingPartyId;
+    }
+
+    /**
+     * Gets the lifetime, in milliseconds, of issued assertions.
+     * 
+     * @return lifetime of issued assertions
+     */
+    public long getAssertionLifetime() {
+        return assertionLifetime;
+    }
+
+    /**
+     * Gets the audiences of issued assertions, starting with the relying party itself.
+     * 
+     * @return unmodifiable list of audiences of issued assertions
+     */
+    public List<String> getAssertionAudiences() {
+        return assertionAudiences;
+    }
+
+    /**
+     * Gets the audiences of the proxy restriction of issued assertions.
+     * 
+     * @return unmodifiable list of proxy audiences, empty if no proxy restriction is issued
+     */
+    public List<String> getProxyAudiences() {
+        return proxyAudiences;
+    }
+
+    /**
+     * Gets the proxy count of the proxy restriction of issued assertions.
+     * 
+     * @return proxy count of the proxy restriction of issued assertions
+     */
+    public int getProxyCount() {
+        return proxyCount;
+    }
+
+    /**
+     * Gets whether assertions are signed.
+     * 
+     * @return whether assertions are signed
+     */
+    public CryptoOperationRequirementLevel getSignAssertions() {
+        return signAssertions;
+    }
+
+    /**
+     * Gets whether responses are signed.
+     * 
+     * @return whether responses are signed
+     */
+    public CryptoOperationRequirementLevel getSignResponses() {
+        return signResponses;
+    }
+
+    /**
+     * Gets whether assertions are encrypted.
+     * 
+     * @return whether assertions are encrypted
+     */
+    public CryptoOperationRequirementLevel getEncryptAssertion() {
+        return encryptAssertion;
+    }
+
+    /**
+     * Gets whether name identifiers are encrypted.
+     * 
+     * @return whether name identifiers are encrypted
+     */
+    public CryptoOperationRequirementLevel getEncryptNameID() {
+        return encryptNameID;
+    }
+
+    /**
+     * Gets whether the relying party metadata asks for signed assertions.
+     * 
+     * @return whether the relying party metadata asks for signed assertions, null if it does not say
+     */
+    public Boolean getWantAssertionsSigned() {
+        return wantAssertionsSigned;
+    }
+
+    /**
+     * Gets the credential used to sign assertions and responses.
+     * 
+     * @return credential used to sign assertions and responses, null if none is configured
+     */
+    public Credential getSigningCredential() {
+        return signingCredential;
+    }
+
+    /**
+     * Gets the endpoint used when a request does not name one.
+     * 
+     * @return endpoint used when a request does not name one, null if it has not been selected yet
+     */
+    public Endpoint getDefaultEndpoint() {
+        return defaultEndpoint;
+    }
+
+    /**
+     * Sets the endpoint used when a request does not name one.
+     * 
+     * @param endpoint endpoint used when a request does not name one
+     */
+    public void setDefaultEndpoint(Endpoint endpoint) {
+        defaultEndpoint = endpoint;
+    }
+
+    /**
+     * Copies a collection of strings in to an unmodifiable list.
+     * 
+     * @param values values to copy, may be null
+     * 
+     * @return unmodifiable list of the values, empty if there were none
+     */
+    private static List<String> copyOf(Collection<String> values) {
+        if (values == null || values.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<String>(values));
+    }
+}
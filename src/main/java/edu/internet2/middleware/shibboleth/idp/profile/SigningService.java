@@ -0,0 +1,463 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.SignableXMLObject;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureException;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.util.XMLObjectHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.util.LatencyHistogram;
+
+/**
+ * Signs SAML assertions and messages on a bounded pool of worker threads, so that no more RSA or DSA signatures are
+ * computed at once than there are CPU cores to compute them.
+ * 
+ * The signature parameters derived from a credential by {@link SecurityHelper#prepareSignatureParams}, the signature
+ * and canonicalization algorithms and the KeyInfo, only depend on the credential and the global security
+ * configuration. They are therefore prepared once per credential and copied onto each new signature. Credentials are
+ * weakly referenced, so the parameters of credentials dropped by a configuration reload are discarded with them.
+ * 
+ * At most {@link #getThreads()} signatures are computed at once and at most {@link #getQueueSize()} more wait for a
+ * worker. When the queue is full the caller computes the signature itself rather than waiting, so signing never fails
+ * because the IdP is busy. A service without worker threads signs everything on the caller's thread. The time taken to
+ * marshall and sign the objects is recorded in a {@link LatencyHistogram}.
+ * 
+ * The caller blocks until its signature is computed, so the pool does not make any single signature faster nor overlap
+ * it with the rest of the request. It is a concurrency limiter: under load, requests wait for a core instead of all
+ * signing at once and contending for the CPU. Below that load a service without worker threads, which only reuses the
+ * prepared parameters, signs as fast and saves the hand-off to a worker.
+ */
+public class SigningService {
+
+    /** Default number of worker threads, the number of available CPU cores. */
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** Default number of signatures which may wait for a worker. */
+    public static final int DEFAULT_QUEUE_SIZE = 4 * DEFAULT_THREADS;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(SigningService.class);
+
+    /** Pool computing the signatures, null if signatures are computed by the caller. */
+    private final ThreadPoolExecutor executor;
+
+    /** Number of worker threads. */
+    private final int threads;
+
+    /** Number of signatures which may wait for a worker. */
+    private final int queueSize;
+
+    /** Builder of signatures. */
+    private final XMLObjectBuilder<Signature> signatureBuilder;
+
+    /** Signature parameters prepared for the credentials used so far. */
+    private final Map<Credential, SignatureParameters> preparedParameters;
+
+    /** Time taken to marshall and sign objects. */
+    private final LatencyHistogram latencies;
+
+    /** Number of signatures computed by the caller because the queue was full. */
+    private final AtomicLong callerSignatures;
+
+    /** Number of signatures whose parameters had already been prepared. */
+    private final AtomicLong parameterCacheHits;
+
+    /** Constructor. */
+    public SigningService() {
+        this(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param workers number of worker threads, zero to compute all signatures on the caller's thread
+     * @param queue number of signatures which may wait for a worker, may be zero
+     */
+    @SuppressWarnings("unchecked")
+    public SigningService(int workers, int queue) {
+        if (workers < 0) {
+            throw new IllegalArgumentException("Number of worker threads may not be negative");
+        }
+        if (queue < 0) {
+            throw new IllegalArgumentException("Queue size may not be negative");
+        }
+
+        threads = workers;
+        queueSize = queue;
+        signatureBuilder = (XMLObjectBuilder<Signature>) Configuration.getBuilderFactory().getBuilder(
+                Signature.DEFAULT_ELEMENT_NAME);
+        preparedParameters = Collections.synchronizedMap(new WeakHashMap<Credential, SignatureParameters>());
+        latencies = new LatencyHistogram();
+        callerSignatures = new AtomicLong();
+        parameterCacheHits = new AtomicLong();
+
+        if (workers == 0) {
+            executor = null;
+            return;
+        }
+
+        BlockingQueue<Runnable> workQueue;
+        if (queue == 0) {
+            workQueue = new SynchronousQueue<Runnable>();
+        } else {
+            workQueue = new ArrayBlockingQueue<Runnable>(queue);
+        }
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, workQueue, new WorkerThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Signs an object. A signature carrying the parameters prepared for the credential is attached to the object,
+     * which releases any DOM the object had, then the object is marshalled and the signature is computed. The caller
+     * waits until the signature has been computed, even if interrupted.
+     * 
+     * @param xmlObject object to sign
+     * @param credential credential used to sign the object
+     * 
+     * @throws SecurityException thrown if the signature parameters can not be derived from the credential
+     * @throws MarshallingException thrown if the object can not be marshalled
+     * @throws SignatureException thrown if the signature can not be computed
+     */
+    public void sign(SignableXMLObject xmlObject, Credential credential) throws SecurityException,
+            MarshallingException, SignatureException {
+        if (xmlObject == null) {
+            throw new IllegalArgumentException("Object to sign may not be null");
+        }
+        if (credential == null) {
+            throw new IllegalArgumentException("Signing credential may not be null");
+        }
+
+        Signature signature = buildSignature(credential);
+        xmlObject.setSignature(signature);
+
+        SigningTask task = new SigningTask(xmlObject, signature);
+        if (executor == null) {
+            task.call();
+            return;
+        }
+
+        Future<Object> result;
+        try {
+            result = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            callerSignatures.incrementAndGet();
+            log.debug("{} signatures are already being computed or waiting, signing on the caller's thread", threads
+                    + queueSize);
+            task.call();
+            return;
+        }
+
+        awaitSignature(result);
+    }
+
+    /**
+     * Builds a signature carrying the parameters prepared for a credential, preparing them first if the credential
+     * was not used before.
+     * 
+     * @param credential the signing credential
+     * 
+     * @return the signature
+     * 
+     * @throws SecurityException thrown if the signature parameters can not be derived from the credential
+     */
+    protected Signature buildSignature(Credential credential) throws SecurityException {
+        SignatureParameters parameters = preparedParameters.get(credential);
+        if (parameters == null) {
+            log.debug("Preparing signature parameters for signing credential {}", credential.getEntityId());
+            parameters = new SignatureParameters(credential);
+            preparedParameters.put(credential, parameters);
+        } else {
+            parameterCacheHits.incrementAndGet();
+        }
+
+        Signature signature = signatureBuilder.buildObject(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(credential);
+        parameters.applyTo(signature);
+        return signature;
+    }
+
+    /**
+     * Waits for a signature computed by a worker.
+     * 
+     * @param result pending result of the signing task
+     * 
+     * @throws MarshallingException thrown if the object could not be marshalled
+     * @throws SignatureException thrown if the signature could not be computed
+     */
+    private void awaitSignature(Future<Object> result) throws MarshallingException, SignatureException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    result.get();
+                    return;
+                } catch (InterruptedException e) {
+                    // the object is in use by the worker, so it can not be handed back before the signature is done
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MarshallingException) {
+                throw (MarshallingException) cause;
+            }
+            if (cause instanceof SignatureException) {
+                throw (SignatureException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SignatureException("Unable to compute signature", cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of worker threads.
+     * 
+     * @return number of worker threads, zero if signatures are computed by the caller
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Gets the number of signatures which may wait for a worker.
+     * 
+     * @return number of signatures which may wait for a worker
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Gets the number of signatures currently being computed by a worker.
+     * 
+     * @return number of active signatures
+     */
+    public int getActiveSignatures() {
+        if (executor == null) {
+            return 0;
+        }
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Gets the number of signatures currently waiting for a worker.
+     * 
+     * @return number of waiting signatures
+     */
+    public int getQueuedSignatures() {
+        if (executor == null) {
+            return 0;
+        }
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Gets the number of signatures computed by the caller because the queue was full.
+     * 
+     * @return number of signatures computed by the caller
+     */
+    public long getCallerSignatures() {
+        return callerSignatures.get();
+    }
+
+    /**
+     * Gets the number of credentials for which signature parameters are currently prepared.
+     * 
+     * @return number of prepared credentials
+     */
+    public int getPreparedCredentials() {
+        return preparedParameters.size();
+    }
+
+    /**
+     * Gets the number of signatures built with parameters which had already been prepared.
+     * 
+     * @return number of parameter cache hits
+     */
+    public long getParameterCacheHits() {
+        return parameterCacheHits.get();
+    }
+
+    /**
+     * Gets the histogram of the time taken to marshall and sign objects, successfully or not.
+     * 
+     * @return signing latency histogram
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /** Stops the worker threads. */
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Marshalls an object and computes its signature. */
+    private class SigningTask implements Callable<Object> {
+
+        /** Object to sign. */
+        private final SignableXMLObject xmlObject;
+
+        /** Signature attached to the object. */
+        private final Signature signature;
+
+        /**
+         * Constructor.
+         * 
+         * @param signed object to sign
+         * @param objectSignature signature attached to the object
+         */
+        public SigningTask(SignableXMLObject signed, Signature objectSignature) {
+            xmlObject = signed;
+            signature = objectSignature;
+        }
+
+        /** {@inheritDoc} */
+        public Object call() throws MarshallingException, SignatureException {
+            long start = System.currentTimeMillis();
+            try {
+                Configuration.getMarshallerFactory().getMarshaller(xmlObject).marshall(xmlObject);
+                Signer.signObject(signature);
+                return null;
+            } finally {
+                latencies.record(System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+    /** Signature parameters prepared for a credential. */
+    private class SignatureParameters {
+
+        /** Signature algorithm URI. */
+        private final String signatureAlgorithm;
+
+        /** Output length of HMAC signatures, or null. */
+        private final Integer hmacOutputLength;
+
+        /** Canonicalization algorithm URI. */
+        private final String canonicalizationAlgorithm;
+
+        /** Marshalled KeyInfo copied onto each signature, or null if signatures carry no KeyInfo. */
+        private final KeyInfo keyInfo;
+
+        /**
+         * Constructor.
+         * 
+         * @param credential credential from which the parameters are derived
+         * 
+         * @throws SecurityException thrown if the parameters can not be derived from the credential
+         */
+        public SignatureParameters(Credential credential) throws SecurityException {
+            Signature template = signatureBuilder.buildObject(Signature.DEFAULT_ELEMENT_NAME);
+            // TODO pull SecurityConfiguration from SAMLMessageContext? needs to be added
+            // TODO how to pull what keyInfoGenName to use?
+            SecurityHelper.prepareSignatureParams(template, credential, null, null);
+
+            signatureAlgorithm = template.getSignatureAlgorithm();
+            hmacOutputLength = template.getHMACOutputLength();
+            canonicalizationAlgorithm = template.getCanonicalizationAlgorithm();
+            keyInfo = template.getKeyInfo();
+            if (keyInfo != null) {
+                keyInfo.setParent(null);
+                try {
+                    Configuration.getMarshallerFactory().getMarshaller(keyInfo).marshall(keyInfo);
+                } catch (MarshallingException e) {
+                    throw new SecurityException("Unable to marshall KeyInfo of signing credential", e);
+                }
+            }
+        }
+
+        /**
+         * Copies the parameters onto a signature.
+         * 
+         * @param signature the signature
+         * 
+         * @throws SecurityException thrown if the KeyInfo can not be copied
+         */
+        public void applyTo(Signature signature) throws SecurityException {
+            signature.setSignatureAlgorithm(signatureAlgorithm);
+            if (hmacOutputLength != null) {
+                signature.setHMACOutputLength(hmacOutputLength);
+            }
+            signature.setCanonicalizationAlgorithm(canonicalizationAlgorithm);
+
+            if (keyInfo != null) {
+                try {
+                    // the DOM of the template is shared, so it is copied by one thread at a time
+                    synchronized (keyInfo) {
+                        signature.setKeyInfo(XMLObjectHelper.cloneXMLObject(keyInfo));
+                    }
+                } catch (MarshallingException e) {
+                    throw new SecurityException("Unable to copy KeyInfo of signing credential", e);
+                } catch (UnmarshallingException e) {
+                    throw new SecurityException("Unable to copy KeyInfo of signing credential", e);
+                }
+            }
+        }
+    }
+
+    /** Creates the daemon worker threads of the pool. */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        /** Number of threads created so far. */
+        private final AtomicInteger created = new AtomicInteger();
+
+        /** {@inheritDoc} */
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "XMLSigner-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
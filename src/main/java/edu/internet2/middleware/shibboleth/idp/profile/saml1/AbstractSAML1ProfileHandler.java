@@ -17,14 +17,12 @@
 
 package edu.internet2.middleware.shibboleth.idp.profile.saml1;
 
-import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
 import javax.xml.namespace.QName;
 
 import org.joda.time.DateTime;
-import org.opensaml.Configuration;
 import org.opensaml.common.SAMLObject;
 import org.opensaml.common.SAMLObjectBuilder;
 import org.opensaml.common.SAMLVersion;
@@ -46,17 +44,11 @@ import org.opensaml.saml1.core.StatusCode;
 import org.opensaml.saml1.core.StatusMessage;
 import org.opensaml.saml1.core.Subject;
 import org.opensaml.saml1.core.SubjectConfirmation;
-import org.opensaml.saml2.metadata.SPSSODescriptor;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
-import org.opensaml.xml.XMLObjectBuilder;
-import org.opensaml.xml.io.Marshaller;
 import org.opensaml.xml.io.MarshallingException;
 import org.opensaml.xml.security.SecurityException;
-import org.opensaml.xml.security.SecurityHelper;
 import org.opensaml.xml.security.credential.Credential;
-import org.opensaml.xml.signature.Signature;
 import org.opensaml.xml.signature.SignatureException;
-import org.opensaml.xml.signature.Signer;
 import org.opensaml.xml.util.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -72,6 +64,7 @@ import edu.internet2.middleware.shibboleth.common.profile.provider.BaseSAMLProfi
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.CryptoOperationRequirementLevel;
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.saml1.AbstractSAML1ProfileConfiguration;
 import edu.internet2.middleware.shibboleth.idp.profile.AbstractSAMLProfileHandler;
+import edu.internet2.middleware.shibboleth.idp.profile.ResponsePlan;
 import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
 
@@ -117,9 +110,6 @@ public abstract class AbstractSAML1ProfileHandler extends AbstractSAMLProfileHan
     /** Builder for StatusMessage objects. */
     private SAMLObjectBuilder<StatusMessage> statusMessageBuilder;
 
-    /** For building signature. */
-    private XMLObjectBuilder<Signature> signatureBuilder;
-
     /**
      * Default constructor.
      */
@@ -144,7 +134,6 @@ public abstract class AbstractSAML1ProfileHandler extends AbstractSAMLProfileHan
                 StatusCode.DEFAULT_ELEMENT_NAME);
         statusMessageBuilder = (SAMLObjectBuilder<StatusMessage>) getBuilderFactory().getBuilder(
                 StatusMessage.DEFAULT_ELEMENT_NAME);
-        signatureBuilder = (XMLObjectBuilder<Signature>) getBuilderFactory().getBuilder(Signature.DEFAULT_ELEMENT_NAME);
     }
 
     /** {@inheritDoc} */
@@ -282,29 +271,21 @@ public abstract class AbstractSAML1ProfileHandler extends AbstractSAMLProfileHan
      * @return constructed conditions
      */
     protected Conditions buildConditions(BaseSAML1ProfileRequestContext<?, ?, ?> requestContext, DateTime issueInstant) {
-        AbstractSAML1ProfileConfiguration profileConfig = requestContext.getProfileConfiguration();
+        ResponsePlan plan = getResponsePlan(requestContext);
 
         Conditions conditions = conditionsBuilder.buildObject();
         conditions.setNotBefore(issueInstant);
-        conditions.setNotOnOrAfter(issueInstant.plus(profileConfig.getAssertionLifetime()));
-
-        Collection<String> audiences;
+        conditions.setNotOnOrAfter(issueInstant.plus(plan.getAssertionLifetime()));
 
         AudienceRestrictionCondition audienceRestriction = audienceRestrictionConditionBuilder.buildObject();
         conditions.getAudienceRestrictionConditions().add(audienceRestriction);
 
-        Audience audience = audienceBuilder.buildObject();
-        audience.setUri(requestContext.getInboundMessageIssuer());
-        audienceRestriction.getAudiences().add(audience);
-
-        // add other audience restrictions
-        audiences = profileConfig.getAssertionAudiences();
-        if (audiences != null && audiences.size() > 0) {
-            for (String audienceUri : audiences) {
-                audience = audienceBuilder.buildObject();
-                audience.setUri(audienceUri);
-                audienceRestriction.getAudiences().add(audience);
-            }
+        // add audience restrictions, the relying party first
+        Audience audience;
+        for (String audienceUri : plan.getAssertionAudiences()) {
+            audience = audienceBuilder.buildObject();
+            audience.setUri(audienceUri);
+            audienceRestriction.getAudiences().add(audience);
         }
 
         return conditions;
@@ -581,14 +562,9 @@ public abstract class AbstractSAML1ProfileHandler extends AbstractSAMLProfileHan
             return;
         }
 
-        AbstractSAML1ProfileConfiguration profileConfig = requestContext.getProfileConfiguration();
-
         log.debug("Determining credential to use to sign assertion to relying party '{}'", requestContext
                 .getInboundMessageIssuer());
-        Credential signatureCredential = profileConfig.getSigningCredential();
-        if (signatureCredential == null) {
-            signatureCredential = requestContext.getRelyingPartyConfiguration().getDefaultSigningCredential();
-        }
+        Credential signatureCredential = getResponsePlan(requestContext).getSigningCredential();
 
         if (signatureCredential == null) {
             String msg = "No signing credential is specified for relying party configuration "
@@ -598,25 +574,12 @@ public abstract class AbstractSAML1ProfileHandler extends AbstractSAMLProfileHan
         }
 
         log.debug("Signing assertion to relying party '{}'", requestContext.getInboundMessageIssuer());
-        Signature signature = signatureBuilder.buildObject(Signature.DEFAULT_ELEMENT_NAME);
-
-        signature.setSigningCredential(signatureCredential);
         try {
-            // TODO pull SecurityConfiguration from SAMLMessageContext? needs to be added
-            // TODO how to pull what keyInfoGenName to use?
-            SecurityHelper.prepareSignatureParams(signature, signatureCredential, null, null);
+            getSigningService().sign(assertion, signatureCredential);
         } catch (SecurityException e) {
             String msg = "Error preparing signature for signing";
             log.error(msg);
             throw new ProfileException(msg, e);
-        }
-
-        assertion.setSignature(signature);
-
-        Marshaller assertionMarshaller = Configuration.getMarshallerFactory().getMarshaller(assertion);
-        try {
-            assertionMarshaller.marshall(assertion);
-            Signer.signObject(signature);
         } catch (MarshallingException e) {
             String errMsg = "Unable to marshall assertion for signing";
             log.error(errMsg, e);
@@ -638,23 +601,20 @@ public abstract class AbstractSAML1ProfileHandler extends AbstractSAMLProfileHan
     protected boolean isSignAssertion(BaseSAML1ProfileRequestContext<?, ?, ?> requestContext) throws ProfileException {
 
         SAMLMessageEncoder encoder = getOutboundMessageEncoder(requestContext);
-        AbstractSAML1ProfileConfiguration profileConfig = requestContext.getProfileConfiguration();
+        ResponsePlan plan = getResponsePlan(requestContext);
 
         try {
-            boolean signAssertion = profileConfig.getSignAssertions() == CryptoOperationRequirementLevel.always
-                    || (profileConfig.getSignAssertions() == CryptoOperationRequirementLevel.conditional && !encoder
+            boolean signAssertion = plan.getSignAssertions() == CryptoOperationRequirementLevel.always
+                    || (plan.getSignAssertions() == CryptoOperationRequirementLevel.conditional && !encoder
                             .providesMessageIntegrity(requestContext));
 
             log.debug("IdP relying party configuration '{}' indicates to sign assertions: {}", requestContext
                     .getRelyingPartyConfiguration().getRelyingPartyId(), signAssertion);
 
-            if (!signAssertion && requestContext.getPeerEntityRoleMetadata() instanceof SPSSODescriptor) {
-                SPSSODescriptor ssoDescriptor = (SPSSODescriptor) requestContext.getPeerEntityRoleMetadata();
-                if (ssoDescriptor.getWantAssertionsSigned() != null) {
-                    signAssertion = ssoDescriptor.getWantAssertionsSigned().booleanValue();
-                    log.debug("Entity metadata for relying party '{} 'indicates to sign assertions: {}", requestContext
-                            .getInboundMessageIssuer(), signAssertion);
-                }
+            if (!signAssertion && plan.getWantAssertionsSigned() != null) {
+                signAssertion = plan.getWantAssertionsSigned().booleanValue();
+                log.debug("Entity metadata for relying party '{} 'indicates to sign assertions: {}", requestContext
+                        .getInboundMessageIssuer(), signAssertion);
             }
 
             return signAssertion;
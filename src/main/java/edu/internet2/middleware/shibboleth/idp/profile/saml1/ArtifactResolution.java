@@ -181,7 +181,8 @@ public class ArtifactResolution extends AbstractSAML1ProfileHandler {
         EntityDescriptor relyingPartyMetadata = requestContext.getPeerEntityMetadata();
         if (relyingPartyMetadata != null) {
             requestContext.setPeerEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setPeerEntityRoleMetadata(relyingPartyMetadata.getSPSSODescriptor(SAMLConstants.SAML11P_NS));
+            requestContext.setPeerEntityRoleMetadata(getRelyingPartySPSSODescriptor(requestContext,
+                    SAMLConstants.SAML11P_NS));
         }
     }
 
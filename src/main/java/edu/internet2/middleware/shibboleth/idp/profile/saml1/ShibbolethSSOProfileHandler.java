@@ -19,6 +19,8 @@ package edu.internet2.middleware.shibboleth.idp.profile.saml1;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
@@ -52,6 +54,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.internet2.middleware.shibboleth.common.ShibbolethConstants;
+import edu.internet2.middleware.shibboleth.common.attribute.BaseAttribute;
 import edu.internet2.middleware.shibboleth.common.profile.ProfileException;
 import edu.internet2.middleware.shibboleth.common.profile.provider.BaseSAMLProfileRequestContext;
 import edu.internet2.middleware.shibboleth.common.relyingparty.ProfileConfiguration;
@@ -60,7 +63,9 @@ import edu.internet2.middleware.shibboleth.common.relyingparty.provider.SAMLMDRe
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.saml1.ShibbolethSSOConfiguration;
 import edu.internet2.middleware.shibboleth.common.session.SessionManager;
 import edu.internet2.middleware.shibboleth.common.util.HttpHelper;
+import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationProcessor;
 import edu.internet2.middleware.shibboleth.idp.authn.ShibbolethSSOLoginContext;
+import edu.internet2.middleware.shibboleth.idp.profile.AttributePreResolvingProfileHandler;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
 import edu.internet2.middleware.shibboleth.idp.session.impl.ServiceInformationImpl;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
@@ -68,7 +73,8 @@ import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 import org.opensaml.saml1.core.NameIdentifier;
 
 /** Shibboleth SSO request profile handler. */
-public class ShibbolethSSOProfileHandler extends AbstractSAML1ProfileHandler {
+public class ShibbolethSSOProfileHandler extends AbstractSAML1ProfileHandler implements
+        AttributePreResolvingProfileHandler {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(ShibbolethSSOProfileHandler.class);
@@ -121,7 +127,7 @@ public class ShibbolethSSOProfileHandler extends AbstractSAML1ProfileHandler {
 
         HttpServletRequest httpRequest = ((HttpServletRequestAdapter) inTransport).getWrappedRequest();
         HttpServletResponse httpResponse = ((HttpServletResponseAdapter) outTransport).getWrappedResponse();
-        ServletContext servletContext = httpRequest.getSession().getServletContext();
+        ServletContext servletContext = getServletContext(httpRequest);
 
 	LoginContext loginContext = HttpServletHelper.getLoginContext(
                 getStorageService(), servletContext, httpRequest);
@@ -169,8 +175,17 @@ public class ShibbolethSSOProfileHandler extends AbstractSAML1ProfileHandler {
             throw new ProfileException(msg);
         }
 
-        HttpServletHelper.bindLoginContext(loginContext, getStorageService(), httpRequest.getSession()
-                .getServletContext(), httpRequest, httpResponse);
+        AuthenticationProcessor authenticationProcessor = HttpServletHelper
+                .getAuthenticationProcessor(getServletContext(httpRequest));
+        if (authenticationProcessor != null
+                && authenticationProcessor.authenticateWithSession(loginContext, httpRequest, httpResponse)) {
+            log.debug("Existing IdP session satisfies the authentication request, completing it directly");
+            completeAuthenticationRequest(loginContext, inTransport, outTransport);
+            return;
+        }
+
+        HttpServletHelper.bindLoginContext(loginContext, getStorageService(), getServletContext(httpRequest),
+                httpRequest, httpResponse);
 
         try {
             String authnEngineUrl = HttpServletHelper.getContextRelativeUrl(httpRequest, authenticationManagerPath)
@@ -240,6 +255,37 @@ public class ShibbolethSSOProfileHandler extends AbstractSAML1ProfileHandler {
         requestContext.setLoginContext(loginContext);
     }
 
+    /** {@inheritDoc} */
+    public Callable<Map<String, BaseAttribute>> createAttributeResolution(LoginContext loginContext,
+            final Session userSession) {
+        if (!(loginContext instanceof ShibbolethSSOLoginContext) || userSession == null) {
+            return null;
+        }
+
+        final ShibbolethSSOLoginContext shibLoginContext = (ShibbolethSSOLoginContext) loginContext;
+        return new Callable<Map<String, BaseAttribute>>() {
+            /** {@inheritDoc} */
+            public Map<String, BaseAttribute> call() throws Exception {
+                ShibbolethSSORequestContext requestContext = new ShibbolethSSORequestContext();
+                requestContext.setCommunicationProfileId(getProfileId());
+                requestContext.setLoginContext(shibLoginContext);
+                requestContext.setInboundSAMLProtocol(ShibbolethConstants.SHIB_SSO_PROFILE_URI);
+                requestContext.setOutboundSAMLProtocol(SAMLConstants.SAML11P_NS);
+                requestContext.setMetadataProvider(getMetadataProvider());
+                requestContext.setInboundMessageIssuer(shibLoginContext.getRelyingPartyId());
+
+                populateRelyingPartyInformation(requestContext);
+                populateAssertingPartyInformation(requestContext);
+                requestContext.setProfileConfiguration((ShibbolethSSOConfiguration) requestContext
+                        .getRelyingPartyConfiguration().getProfileConfiguration(getProfileId()));
+                populateUserInformation(requestContext, userSession);
+
+                return requestContext.getProfileConfiguration().getAttributeAuthority().getAttributes(
+                        requestContext);
+            }
+        };
+    }
+
     /**
      * Creates a response to the Shibboleth SSO and sends the user, with response in tow, back to the relying party
      * after they've been authenticated.
@@ -261,7 +307,12 @@ public class ShibbolethSSOProfileHandler extends AbstractSAML1ProfileHandler {
                 throw new ProfileException("Authentication failure", loginContext.getAuthenticationFailure());
             }
 
-            resolveAttributes(requestContext);
+            Map<String, BaseAttribute> preResolvedAttributes = claimPreResolvedAttributes(loginContext, requestContext);
+            if (preResolvedAttributes != null) {
+                requestContext.setAttributes(preResolvedAttributes);
+            } else {
+                resolveAttributes(requestContext);
+            }
 
             ArrayList<Statement> statements = new ArrayList<Statement>();
             statements.add(buildAuthenticationStatement(requestContext));
@@ -345,7 +396,8 @@ public class ShibbolethSSOProfileHandler extends AbstractSAML1ProfileHandler {
         EntityDescriptor relyingPartyMetadata = requestContext.getPeerEntityMetadata();
         if (relyingPartyMetadata != null) {
             requestContext.setPeerEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setPeerEntityRoleMetadata(relyingPartyMetadata.getSPSSODescriptor(SAMLConstants.SAML11P_NS));
+            requestContext.setPeerEntityRoleMetadata(getRelyingPartySPSSODescriptor(requestContext,
+                    SAMLConstants.SAML11P_NS));
         }
     }
 
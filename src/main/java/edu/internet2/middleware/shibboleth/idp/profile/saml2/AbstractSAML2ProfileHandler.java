@@ -17,7 +17,6 @@
 
 package edu.internet2.middleware.shibboleth.idp.profile.saml2;
 
-import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -50,16 +49,16 @@ import org.opensaml.saml2.core.SubjectConfirmationData;
 import org.opensaml.saml2.encryption.Encrypter;
 import org.opensaml.saml2.encryption.Encrypter.KeyPlacement;
 import org.opensaml.saml2.metadata.Endpoint;
+import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
 import org.opensaml.security.MetadataCredentialResolver;
 import org.opensaml.security.MetadataCriteria;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
 import org.opensaml.ws.transport.http.HTTPInTransport;
-import org.opensaml.xml.XMLObjectBuilder;
 import org.opensaml.xml.encryption.EncryptionException;
 import org.opensaml.xml.encryption.EncryptionParameters;
 import org.opensaml.xml.encryption.KeyEncryptionParameters;
-import org.opensaml.xml.io.Marshaller;
 import org.opensaml.xml.io.MarshallingException;
 import org.opensaml.xml.security.CriteriaSet;
 import org.opensaml.xml.security.SecurityConfiguration;
@@ -70,9 +69,7 @@ import org.opensaml.xml.security.credential.UsageType;
 import org.opensaml.xml.security.criteria.EntityIDCriteria;
 import org.opensaml.xml.security.criteria.KeyAlgorithmCriteria;
 import org.opensaml.xml.security.criteria.UsageCriteria;
-import org.opensaml.xml.signature.Signature;
 import org.opensaml.xml.signature.SignatureException;
-import org.opensaml.xml.signature.Signer;
 import org.opensaml.xml.util.DatatypeHelper;
 import org.opensaml.xml.util.Pair;
 import org.opensaml.xml.util.XMLHelper;
@@ -91,6 +88,9 @@ import edu.internet2.middleware.shibboleth.common.profile.provider.BaseSAMLProfi
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.CryptoOperationRequirementLevel;
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.saml2.AbstractSAML2ProfileConfiguration;
 import edu.internet2.middleware.shibboleth.idp.profile.AbstractSAMLProfileHandler;
+import edu.internet2.middleware.shibboleth.idp.profile.EntityMetadataCache;
+import edu.internet2.middleware.shibboleth.idp.profile.MetadataIndex;
+import edu.internet2.middleware.shibboleth.idp.profile.ResponsePlan;
 import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
 
@@ -142,8 +142,8 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
     /** For building audience. */
     private SAMLObjectBuilder<Audience> audienceBuilder;
 
-    /** For building signature. */
-    private XMLObjectBuilder<Signature> signatureBuilder;
+    /** Key encryption credentials of peers, dropped when the metadata of the peer changes. */
+    private EntityMetadataCache<Credential> keyEncryptionCredentials;
 
     /** Constructor. */
     @SuppressWarnings("unchecked")
@@ -171,7 +171,7 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
         proxyRestrictionBuilder = (SAMLObjectBuilder<ProxyRestriction>) getBuilderFactory().getBuilder(
                 ProxyRestriction.DEFAULT_ELEMENT_NAME);
         audienceBuilder = (SAMLObjectBuilder<Audience>) getBuilderFactory().getBuilder(Audience.DEFAULT_ELEMENT_NAME);
-        signatureBuilder = (XMLObjectBuilder<Signature>) getBuilderFactory().getBuilder(Signature.DEFAULT_ELEMENT_NAME);
+        keyEncryptionCredentials = new EntityMetadataCache<Credential>();
     }
 
     /** {@inheritDoc} */
@@ -320,9 +320,10 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
             throws ProfileException {
 
         SAMLMessageEncoder encoder = getOutboundMessageEncoder(requestContext);
+        ResponsePlan plan = getResponsePlan(requestContext);
         try {
-            return requestContext.getProfileConfiguration().getEncryptAssertion() == CryptoOperationRequirementLevel.always
-                    || (requestContext.getProfileConfiguration().getEncryptAssertion() == CryptoOperationRequirementLevel.conditional && !encoder
+            return plan.getEncryptAssertion() == CryptoOperationRequirementLevel.always
+                    || (plan.getEncryptAssertion() == CryptoOperationRequirementLevel.conditional && !encoder
                             .providesMessageConfidentiality(requestContext));
         } catch (MessageEncodingException e) {
             log.error("Unable to determine if outbound encoding '{}' can provide confidentiality",
@@ -401,41 +402,34 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
      * @return constructed conditions
      */
     protected Conditions buildConditions(BaseSAML2ProfileRequestContext<?, ?, ?> requestContext, DateTime issueInstant) {
-        AbstractSAML2ProfileConfiguration profileConfig = requestContext.getProfileConfiguration();
+        ResponsePlan plan = getResponsePlan(requestContext);
 
         Conditions conditions = conditionsBuilder.buildObject();
         conditions.setNotBefore(issueInstant);
-        conditions.setNotOnOrAfter(issueInstant.plus(profileConfig.getAssertionLifetime()));
+        conditions.setNotOnOrAfter(issueInstant.plus(plan.getAssertionLifetime()));
 
-        Collection<String> audiences;
+        Audience audience;
 
-        // add audience restrictions
+        // add audience restrictions, the relying party first
         AudienceRestriction audienceRestriction = audienceRestrictionBuilder.buildObject();
         // TODO we should only do this for certain outgoing bindings, not globally
-        Audience audience = audienceBuilder.buildObject();
-        audience.setAudienceURI(requestContext.getInboundMessageIssuer());
-        audienceRestriction.getAudiences().add(audience);
-        audiences = profileConfig.getAssertionAudiences();
-        if (audiences != null && audiences.size() > 0) {
-            for (String audienceUri : audiences) {
-                audience = audienceBuilder.buildObject();
-                audience.setAudienceURI(audienceUri);
-                audienceRestriction.getAudiences().add(audience);
-            }
+        for (String audienceUri : plan.getAssertionAudiences()) {
+            audience = audienceBuilder.buildObject();
+            audience.setAudienceURI(audienceUri);
+            audienceRestriction.getAudiences().add(audience);
         }
         conditions.getAudienceRestrictions().add(audienceRestriction);
 
         // add proxy restrictions
-        audiences = profileConfig.getProxyAudiences();
-        if (audiences != null && audiences.size() > 0) {
+        if (!plan.getProxyAudiences().isEmpty()) {
             ProxyRestriction proxyRestriction = proxyRestrictionBuilder.buildObject();
-            for (String audienceUri : audiences) {
+            for (String audienceUri : plan.getProxyAudiences()) {
                 audience = audienceBuilder.buildObject();
                 audience.setAudienceURI(audienceUri);
                 proxyRestriction.getAudiences().add(audience);
             }
 
-            proxyRestriction.setProxyCount(profileConfig.getProxyCount());
+            proxyRestriction.setProxyCount(plan.getProxyCount());
             conditions.getConditions().add(proxyRestriction);
         }
 
@@ -572,14 +566,9 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
             return;
         }
 
-        AbstractSAML2ProfileConfiguration profileConfig = requestContext.getProfileConfiguration();
-
         log.debug("Determining signing credntial for assertion to relying party '{}'",
                 requestContext.getInboundMessageIssuer());
-        Credential signatureCredential = profileConfig.getSigningCredential();
-        if (signatureCredential == null) {
-            signatureCredential = requestContext.getRelyingPartyConfiguration().getDefaultSigningCredential();
-        }
+        Credential signatureCredential = getResponsePlan(requestContext).getSigningCredential();
 
         if (signatureCredential == null) {
             String msg = "No signing credential is specified for relying party configuration "
@@ -589,25 +578,12 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
         }
 
         log.debug("Signing assertion to relying party {}", requestContext.getInboundMessageIssuer());
-        Signature signature = signatureBuilder.buildObject(Signature.DEFAULT_ELEMENT_NAME);
-
-        signature.setSigningCredential(signatureCredential);
         try {
-            // TODO pull SecurityConfiguration from SAMLMessageContext? needs to be added
-            // TODO how to pull what keyInfoGenName to use?
-            SecurityHelper.prepareSignatureParams(signature, signatureCredential, null, null);
+            getSigningService().sign(assertion, signatureCredential);
         } catch (SecurityException e) {
             String msg = "Error preparing signature for signing";
             log.error(msg);
             throw new ProfileException(msg, e);
-        }
-
-        assertion.setSignature(signature);
-
-        Marshaller assertionMarshaller = Configuration.getMarshallerFactory().getMarshaller(assertion);
-        try {
-            assertionMarshaller.marshall(assertion);
-            Signer.signObject(signature);
         } catch (MarshallingException e) {
             String errMsg = "Unable to marshall assertion for signing";
             log.error(errMsg, e);
@@ -629,23 +605,20 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
     protected boolean isSignAssertion(BaseSAML2ProfileRequestContext<?, ?, ?> requestContext) throws ProfileException {
 
         SAMLMessageEncoder encoder = getOutboundMessageEncoder(requestContext);
-        AbstractSAML2ProfileConfiguration profileConfig = requestContext.getProfileConfiguration();
+        ResponsePlan plan = getResponsePlan(requestContext);
 
         try {
-            boolean signAssertion = profileConfig.getSignAssertions() == CryptoOperationRequirementLevel.always
-                    || (profileConfig.getSignAssertions() == CryptoOperationRequirementLevel.conditional && !encoder
+            boolean signAssertion = plan.getSignAssertions() == CryptoOperationRequirementLevel.always
+                    || (plan.getSignAssertions() == CryptoOperationRequirementLevel.conditional && !encoder
                             .providesMessageIntegrity(requestContext));
 
             log.debug("IdP relying party configuration '{}' indicates to sign assertions: {}", requestContext
                     .getRelyingPartyConfiguration().getRelyingPartyId(), signAssertion);
 
-            if (!signAssertion && requestContext.getPeerEntityRoleMetadata() instanceof SPSSODescriptor) {
-                SPSSODescriptor ssoDescriptor = (SPSSODescriptor) requestContext.getPeerEntityRoleMetadata();
-                if (ssoDescriptor.getWantAssertionsSigned() != null) {
-                    signAssertion = ssoDescriptor.getWantAssertionsSigned().booleanValue();
-                    log.debug("Entity metadata for relying party '{} 'indicates to sign assertions: {}",
-                            requestContext.getInboundMessageIssuer(), signAssertion);
-                }
+            if (!signAssertion && plan.getWantAssertionsSigned() != null) {
+                signAssertion = plan.getWantAssertionsSigned().booleanValue();
+                log.debug("Entity metadata for relying party '{} 'indicates to sign assertions: {}",
+                        requestContext.getInboundMessageIssuer(), signAssertion);
             }
 
             return signAssertion;
@@ -750,8 +723,9 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
         SAMLMessageEncoder encoder = getOutboundMessageEncoder(requestContext);
         boolean nameIdEncRequiredByConfig = false;
         try {
-            nameIdEncRequiredByConfig = requestContext.getProfileConfiguration().getEncryptNameID() == CryptoOperationRequirementLevel.always
-                    || (requestContext.getProfileConfiguration().getEncryptNameID() == CryptoOperationRequirementLevel.conditional && !encoder
+            ResponsePlan plan = getResponsePlan(requestContext);
+            nameIdEncRequiredByConfig = plan.getEncryptNameID() == CryptoOperationRequirementLevel.always
+                    || (plan.getEncryptNameID() == CryptoOperationRequirementLevel.conditional && !encoder
                             .providesMessageConfidentiality(requestContext));
         } catch (MessageEncodingException e) {
             String msg = "Unable to determine if outbound encoding '" + encoder.getBindingURI()
@@ -796,8 +770,7 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
         HTTPInTransport inTransport = (HTTPInTransport) requestContext.getInboundMessageTransport();
         confirmationData.setAddress(inTransport.getPeerAddress());
         confirmationData.setInResponseTo(requestContext.getInboundSAMLMessageId());
-        confirmationData.setNotOnOrAfter(issueInstant.plus(requestContext.getProfileConfiguration()
-                .getAssertionLifetime()));
+        confirmationData.setNotOnOrAfter(issueInstant.plus(getResponsePlan(requestContext).getAssertionLifetime()));
 
         Endpoint relyingPartyEndpoint = requestContext.getPeerEntityEndpoint();
         if (relyingPartyEndpoint != null) {
@@ -923,6 +896,21 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
      * @throws SecurityException thrown if there is a problem resolving the credential from the peer's metadata
      */
     protected Credential getKeyEncryptionCredential(String peerEntityId) throws SecurityException {
+        MetadataIndex metadataIndex = getMetadataIndex();
+        Credential keyEncryptionCredential = keyEncryptionCredentials.get(metadataIndex, peerEntityId);
+        if (keyEncryptionCredential != null) {
+            return keyEncryptionCredential;
+        }
+
+        MetadataIndex.EntityRecord peerMetadata = null;
+        if (metadataIndex != null) {
+            try {
+                peerMetadata = metadataIndex.getEntity(peerEntityId);
+            } catch (MetadataProviderException e) {
+                log.debug("Unable to look up indexed metadata of peer entity {}", peerEntityId);
+            }
+        }
+
         MetadataCredentialResolver kekCredentialResolver = getMetadataCredentialResolver();
 
         CriteriaSet criteriaSet = new CriteriaSet();
@@ -936,7 +924,9 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
         // or are erroneously flagged for use='encryption', filter out those that wouldn't work.
         criteriaSet.add(new KeyAlgorithmCriteria("RSA"));
 
-        return kekCredentialResolver.resolveSingle(criteriaSet);
+        keyEncryptionCredential = kekCredentialResolver.resolveSingle(criteriaSet);
+        keyEncryptionCredentials.put(metadataIndex, peerEntityId, peerMetadata, keyEncryptionCredential);
+        return keyEncryptionCredential;
     }
 
     /**
@@ -210,7 +210,8 @@ public class ArtifactResolution extends AbstractSAML2ProfileHandler {
         EntityDescriptor relyingPartyMetadata = requestContext.getPeerEntityMetadata();
         if (relyingPartyMetadata != null) {
             requestContext.setPeerEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setPeerEntityRoleMetadata(relyingPartyMetadata.getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+            requestContext.setPeerEntityRoleMetadata(getRelyingPartySPSSODescriptor(requestContext,
+                    SAMLConstants.SAML20P_NS));
         }
     }
 
@@ -22,19 +22,26 @@ import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartyConfi
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.saml2.LogoutRequestConfiguration;
 import edu.internet2.middleware.shibboleth.common.session.SessionManager;
 import edu.internet2.middleware.shibboleth.common.util.HttpHelper;
+import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationEngine;
+import edu.internet2.middleware.shibboleth.idp.profile.EntityMetadataCache;
+import edu.internet2.middleware.shibboleth.idp.profile.MetadataIndex;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionCookieEncoder;
 import edu.internet2.middleware.shibboleth.idp.slo.HTTPClientInTransportAdapter;
 import edu.internet2.middleware.shibboleth.idp.slo.HTTPClientOutTransportAdapter;
 import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext;
 import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutInformation;
 import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContextStorageHelper;
+import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.security.GeneralSecurityException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
@@ -73,7 +80,6 @@ import org.opensaml.saml2.metadata.Endpoint;
 import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.Organization;
 import org.opensaml.saml2.metadata.OrganizationDisplayName;
-import org.opensaml.saml2.metadata.RoleDescriptor;
 import org.opensaml.saml2.metadata.SPSSODescriptor;
 import org.opensaml.saml2.metadata.ServiceName;
 import org.opensaml.saml2.metadata.SingleLogoutService;
@@ -107,9 +113,12 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
     private final SAMLObjectBuilder<NameID> nameIDBuilder;
     private final SAMLObjectBuilder<LogoutRequest> requestBuilder;
     private final SAMLObjectBuilder<Issuer> issuerBuilder;
+    /** Display names of services, dropped when the metadata of the service changes. */
+    private final EntityMetadataCache<Map<String, String>> serviceDisplayNames;
 
     public SLOProfileHandler() {
         super();
+        serviceDisplayNames = new EntityMetadataCache<Map<String, String>>();
         sloServiceBuilder = (SAMLObjectBuilder<SingleLogoutService>) getBuilderFactory().getBuilder(
                 SingleLogoutService.DEFAULT_ELEMENT_NAME);
         responseBuilder =
@@ -156,7 +165,8 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
                 requestContext.getPeerEntityMetadata();
         if (relyingPartyMetadata != null) {
             requestContext.setPeerEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setPeerEntityRoleMetadata(relyingPartyMetadata.getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+            requestContext.setPeerEntityRoleMetadata(getRelyingPartySPSSODescriptor(requestContext,
+                    SAMLConstants.SAML20P_NS));
         }
     }
 
@@ -341,7 +351,9 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
 
         SingleLogoutContext sloContext =
                 buildSingleLogoutContext(initialRequest, idpSession);
-        destroySession(sloContext);
+        destroySession(sloContext, idpSession);
+        clearSessionCookie(servletRequest,
+                ((HttpServletResponseAdapter) outTransport).getWrappedResponse());
 
         if (getInboundBinding().equals(SAMLConstants.SAML2_SOAP11_BINDING_URI)) {
             log.info("Issuing Backchannel logout requests");
@@ -390,7 +402,7 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
             log.error("Exception was caught while administratively logging out user '{}'",
                     idpSession.getPrincipalName(), e);
         }
-        destroySession(sloContext);
+        destroySession(sloContext, idpSession);
         return sloContext;
     }
 
@@ -440,13 +452,46 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
     }
 
     /**
-     * Destroy idp session.
+     * Destroy idp session. If sessions are carried in the session cookie,
+     * cookies still held by the user agent are revoked as well.
      *
      * @param sloContext
+     * @param idpSession
      */
-    private void destroySession(SingleLogoutContext sloContext) {
+    private void destroySession(SingleLogoutContext sloContext, Session idpSession) {
         log.info("Invalidating session '{}'.", sloContext.getIdpSessionID());
         getSessionManager().destroySession(sloContext.getIdpSessionID());
+
+        if (getServletContext() != null) {
+            SessionCookieEncoder sessionCookieEncoder =
+                    HttpServletHelper.getSessionCookieEncoder(getServletContext());
+            if (sessionCookieEncoder != null) {
+                sessionCookieEncoder.revoke(idpSession);
+            }
+        }
+    }
+
+    /**
+     * Expires the idp session cookie of the user agent.
+     *
+     * @param servletRequest
+     * @param servletResponse
+     */
+    private void clearSessionCookie(HttpServletRequest servletRequest,
+            HttpServletResponse servletResponse) {
+        Cookie sessionCookie =
+                new Cookie(AuthenticationEngine.IDP_SESSION_COOKIE_NAME, "");
+        sessionCookie.setVersion(1);
+        String cookieDomain =
+                HttpServletHelper.getCookieDomain(getServletContext(servletRequest));
+        if (cookieDomain != null) {
+            sessionCookie.setDomain(cookieDomain);
+        }
+        sessionCookie.setPath("".equals(servletRequest.getContextPath())
+                ? "/" : servletRequest.getContextPath());
+        sessionCookie.setSecure(servletRequest.isSecure());
+        sessionCookie.setMaxAge(0);
+        servletResponse.addCookie(sessionCookie);
     }
 
     /**
@@ -599,12 +644,11 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
      * @return
      */
     private Endpoint getEndpointForBinding(String spEntityID, String bindingURI) {
-        RoleDescriptor spMetadata = null;
+        MetadataIndex.EntityRecord spRecord = null;
         try {
             //retrieve metadata
-            spMetadata =
-                    getMetadataProvider().getRole(spEntityID, SPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS);
-            if (spMetadata == null) {
+            spRecord = getMetadataIndex().getEntity(spEntityID);
+            if (spRecord == null || spRecord.getSPSSODescriptor(SAMLConstants.SAML20P_NS) == null) {
                 log.warn("SP Metadata is null");
                 return null;
             }
@@ -613,19 +657,14 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
             return null;
         }
 
-        //find endpoint for SingleLogoutService
-        BasicEndpointSelector es = new BasicEndpointSelector();
-        es.setEndpointType(SingleLogoutService.DEFAULT_ELEMENT_NAME);
-        es.setMetadataProvider(getMetadataProvider());
-        es.getSupportedIssuerBindings().add(bindingURI);
-        es.setEntityRoleMetadata(spMetadata);
-        Endpoint endpoint = es.selectEndpoint();
-        if (endpoint == null) {
+        //find endpoint for SingleLogoutService, the first one supporting the binding
+        List<SingleLogoutService> endpoints = spRecord.getSingleLogoutServices(bindingURI);
+        if (endpoints.isEmpty()) {
             log.info("Cannot get SAML2 SingleLogoutService endpoint for SP '{}' and binding '{}'.", spEntityID, bindingURI);
             return null;
         }
 
-        return endpoint;
+        return endpoints.get(0);
     }
 
     /**
@@ -677,24 +716,38 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
      * @param sloContext
      */
     private void populateServiceDisplayNames(SingleLogoutContext sloContext) {
-        MetadataProvider mdProvider = getMetadataProvider();
+        MetadataIndex mdIndex = getMetadataIndex();
         for (LogoutInformation serviceInfo : sloContext.getServiceInformation().values()) {
-            EntityDescriptor spMetadata;
             String spEntityID = serviceInfo.getEntityID();
-            try {
-                spMetadata = mdProvider.getEntityDescriptor(spEntityID);
-            } catch (MetadataProviderException ex) {
-                log.warn("Can not get metadata for relying party '{}'", spEntityID);
-                continue;
-            }
-            Map<String, String> serviceNames = extractServiceNames(spMetadata);
-            if (serviceNames != null && serviceNames.size() > 0) {
-                serviceInfo.setDisplayName(serviceNames);
-            } else {
-                Map<String, String> organizationDNames = extractOrganizationDisplayNames(spMetadata);
-                if (organizationDNames != null && organizationDNames.size() > 0) {
-                    serviceInfo.setDisplayName(organizationDNames);
+            Map<String, String> displayNames = serviceDisplayNames.get(mdIndex, spEntityID);
+            if (displayNames == null) {
+                MetadataIndex.EntityRecord spRecord;
+                try {
+                    spRecord = mdIndex.getEntity(spEntityID);
+                } catch (MetadataProviderException ex) {
+                    log.warn("Can not get metadata for relying party '{}'", spEntityID);
+                    continue;
+                }
+                if (spRecord == null) {
+                    log.debug("No metadata for relying party '{}'", spEntityID);
+                    continue;
                 }
+                EntityDescriptor spMetadata = spRecord.getEntityDescriptor();
+
+                displayNames = extractServiceNames(spMetadata);
+                if (displayNames == null || displayNames.isEmpty()) {
+                    displayNames = extractOrganizationDisplayNames(spMetadata);
+                }
+                if (displayNames == null) {
+                    displayNames = Collections.emptyMap();
+                } else {
+                    displayNames = Collections.unmodifiableMap(displayNames);
+                }
+                serviceDisplayNames.put(mdIndex, spEntityID, spRecord, displayNames);
+            }
+
+            if (!displayNames.isEmpty()) {
+                serviceInfo.setDisplayName(displayNames);
             }
         }
     }
@@ -20,6 +20,8 @@ package edu.internet2.middleware.shibboleth.idp.profile.saml2;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
@@ -71,6 +73,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
 
+import edu.internet2.middleware.shibboleth.common.attribute.BaseAttribute;
 import edu.internet2.middleware.shibboleth.common.profile.ProfileException;
 import edu.internet2.middleware.shibboleth.common.profile.provider.BaseSAMLProfileRequestContext;
 import edu.internet2.middleware.shibboleth.common.relyingparty.ProfileConfiguration;
@@ -79,15 +82,18 @@ import edu.internet2.middleware.shibboleth.common.relyingparty.provider.SAMLMDRe
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.saml2.SSOConfiguration;
 import edu.internet2.middleware.shibboleth.common.session.SessionManager;
 import edu.internet2.middleware.shibboleth.common.util.HttpHelper;
+import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationProcessor;
 import edu.internet2.middleware.shibboleth.idp.authn.PassiveAuthenticationException;
 import edu.internet2.middleware.shibboleth.idp.authn.Saml2LoginContext;
+import edu.internet2.middleware.shibboleth.idp.profile.AttributePreResolvingProfileHandler;
+import edu.internet2.middleware.shibboleth.idp.profile.ResponsePlan;
 import edu.internet2.middleware.shibboleth.idp.session.impl.ServiceInformationImpl;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
 import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 
 /** SAML 2.0 SSO request profile handler. */
-public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
+public class SSOProfileHandler extends AbstractSAML2ProfileHandler implements AttributePreResolvingProfileHandler {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(SSOProfileHandler.class);
@@ -154,7 +160,7 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
     public void processRequest(HTTPInTransport inTransport, HTTPOutTransport outTransport) throws ProfileException {
         HttpServletRequest httpRequest = ((HttpServletRequestAdapter) inTransport).getWrappedRequest();
         HttpServletResponse httpResponse = ((HttpServletResponseAdapter) outTransport).getWrappedResponse();
-        ServletContext servletContext = httpRequest.getSession().getServletContext();
+        ServletContext servletContext = getServletContext(httpRequest);
 
         LoginContext loginContext = HttpServletHelper.getLoginContext(getStorageService(),
                 servletContext, httpRequest);
@@ -210,8 +216,17 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
             loginContext.setProfileHandlerURL(HttpHelper.getRequestUriWithoutContext(httpRequest));
             loginContext.setDefaultAuthenticationMethod(rpConfig.getDefaultAuthenticationMethod());
 
-            HttpServletHelper.bindLoginContext(loginContext, getStorageService(), httpRequest.getSession()
-                    .getServletContext(), httpRequest, httpResponse);
+            AuthenticationProcessor authenticationProcessor = HttpServletHelper
+                    .getAuthenticationProcessor(getServletContext(httpRequest));
+            if (authenticationProcessor != null
+                    && authenticationProcessor.authenticateWithSession(loginContext, httpRequest, httpResponse)) {
+                log.debug("Existing IdP session satisfies the authentication request, completing it directly");
+                completeAuthenticationRequest(loginContext, inTransport, outTransport);
+                return;
+            }
+
+            HttpServletHelper.bindLoginContext(loginContext, getStorageService(), getServletContext(httpRequest),
+                    httpRequest, httpResponse);
 
             String authnEngineUrl = HttpServletHelper.getContextRelativeUrl(httpRequest, authenticationManagerPath)
                     .buildURL();
@@ -226,6 +241,38 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
         }
     }
 
+    /** {@inheritDoc} */
+    public Callable<Map<String, BaseAttribute>> createAttributeResolution(LoginContext loginContext,
+            final Session userSession) {
+        if (!(loginContext instanceof Saml2LoginContext) || userSession == null) {
+            return null;
+        }
+
+        final Saml2LoginContext saml2LoginContext = (Saml2LoginContext) loginContext;
+        return new Callable<Map<String, BaseAttribute>>() {
+            /** {@inheritDoc} */
+            public Map<String, BaseAttribute> call() throws Exception {
+                SSORequestContext requestContext = new SSORequestContext();
+                requestContext.setCommunicationProfileId(getProfileId());
+                requestContext.setLoginContext(saml2LoginContext);
+                requestContext.setInboundSAMLProtocol(SAMLConstants.SAML20P_NS);
+                requestContext.setOutboundSAMLProtocol(SAMLConstants.SAML20P_NS);
+                requestContext.setMetadataProvider(getMetadataProvider());
+                requestContext.setInboundMessageIssuer(saml2LoginContext.getRelyingPartyId());
+
+                populateRelyingPartyInformation(requestContext);
+                populateAssertingPartyInformation(requestContext);
+                populateSAMLMessageInformation(requestContext);
+                requestContext.setProfileConfiguration((SSOConfiguration) requestContext
+                        .getRelyingPartyConfiguration().getProfileConfiguration(getProfileId()));
+                populateUserInformation(requestContext, userSession);
+
+                return requestContext.getProfileConfiguration().getAttributeAuthority().getAttributes(
+                        requestContext);
+            }
+        };
+    }
+
     /**
      * Creates a response to the {@link AuthnRequest} and sends the user, with response in tow, back to the relying
      * party after they've been authenticated.
@@ -270,7 +317,12 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
                 }
             }
 
-            resolveAttributes(requestContext);
+            Map<String, BaseAttribute> preResolvedAttributes = claimPreResolvedAttributes(loginContext, requestContext);
+            if (preResolvedAttributes != null) {
+                requestContext.setAttributes(preResolvedAttributes);
+            } else {
+                resolveAttributes(requestContext);
+            }
 
             ArrayList<Statement> statements = new ArrayList<Statement>();
             statements.add(buildAuthnStatement(requestContext));
@@ -395,7 +447,7 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
         
         log.debug("Checking if message issuer is a member of affiliation '{}'", spNameQualifier);
         try {
-            EntityDescriptor affiliation = getMetadataProvider().getEntityDescriptor(spNameQualifier);
+            EntityDescriptor affiliation = getMetadataIndex().getEntityDescriptor(spNameQualifier);
             if (affiliation != null) {
                 AffiliationDescriptor affiliationDescriptor = affiliation.getAffiliationDescriptor();
                 if (affiliationDescriptor != null && affiliationDescriptor.getMembers() != null) {
@@ -465,7 +517,8 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
         EntityDescriptor relyingPartyMetadata = requestContext.getPeerEntityMetadata();
         if (relyingPartyMetadata != null) {
             requestContext.setPeerEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setPeerEntityRoleMetadata(relyingPartyMetadata.getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+            requestContext.setPeerEntityRoleMetadata(getRelyingPartySPSSODescriptor(requestContext,
+                    SAMLConstants.SAML20P_NS));
         }
     }
 
@@ -500,7 +553,7 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
             Saml2LoginContext loginContext = ssoRequestContext.getLoginContext();
             requestContext.setRelayState(loginContext.getRelayState());
 
-            AuthnRequest authnRequest = deserializeRequest(loginContext.getAuthenticationRequest());
+            AuthnRequest authnRequest = loginContext.getResponseAuthenticationRequest();
             requestContext.setInboundMessage(authnRequest);
             requestContext.setInboundSAMLMessage(authnRequest);
             requestContext.setInboundSAMLMessageId(authnRequest.getID());
@@ -687,6 +740,17 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
                 log.warn("Unable to generate endpoint for anonymous party.  No ACS URL provided.");
             }
         } else {
+            // the default endpoint only depends on metadata so it is kept in the relying party's response plan
+            ResponsePlan plan = null;
+            if (authnRequest.getAssertionConsumerServiceIndex() == null
+                    && authnRequest.getAssertionConsumerServiceURL() == null
+                    && authnRequest.getProtocolBinding() == null) {
+                plan = getResponsePlan(requestContext);
+                if (plan != null && plan.getDefaultEndpoint() != null) {
+                    return plan.getDefaultEndpoint();
+                }
+            }
+
             AuthnResponseEndpointSelector endpointSelector = new AuthnResponseEndpointSelector();
             endpointSelector.setEndpointType(AssertionConsumerService.DEFAULT_ELEMENT_NAME);
             endpointSelector.setMetadataProvider(getMetadataProvider());
@@ -695,6 +759,10 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
             endpointSelector.setSamlRequest(requestContext.getInboundSAMLMessage());
             endpointSelector.getSupportedIssuerBindings().addAll(getSupportedOutboundBindings());
             endpoint = endpointSelector.selectEndpoint();
+
+            if (plan != null) {
+                plan.setDefaultEndpoint(endpoint);
+            }
         }
 
         return endpoint;
@@ -44,6 +44,7 @@ import org.opensaml.xml.util.DatatypeHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.internet2.middleware.shibboleth.idp.profile.MetadataIndex;
 import edu.internet2.middleware.shibboleth.idp.profile.saml2.SSOProfileHandler.SSORequestContext;
 
 /**
@@ -246,8 +247,10 @@ public class UnsolicitedSSODecoder extends BaseSAML2MessageDecoder implements SA
             throws MessageDecodingException {
         SPSSODescriptor spssoDesc = null;
         try {
-            spssoDesc = (SPSSODescriptor) mdProvider.getRole(entityId, SPSSODescriptor.DEFAULT_ELEMENT_NAME,
-                    SAMLConstants.SAML20P_NS);
+            MetadataIndex.EntityRecord spRecord = MetadataIndex.getInstance(mdProvider).getEntity(entityId);
+            if (spRecord != null) {
+                spssoDesc = spRecord.getSPSSODescriptor(SAMLConstants.SAML20P_NS);
+            }
         } catch (MetadataProviderException e) {
             throw new MessageDecodingException("Error resolving metadata role for SP entityId: " + entityId, e);
         }
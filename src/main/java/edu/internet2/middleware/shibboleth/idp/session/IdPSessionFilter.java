@@ -18,9 +18,6 @@
 package edu.internet2.middleware.shibboleth.idp.session;
 
 import java.io.IOException;
-import java.security.GeneralSecurityException;
-import java.security.MessageDigest;
-import java.util.Arrays;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -30,6 +27,7 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
 
 import org.joda.time.DateTime;
 import org.opensaml.ws.transport.http.HTTPTransportUtils;
@@ -41,6 +39,10 @@ import org.slf4j.MDC;
 
 import edu.internet2.middleware.shibboleth.common.session.SessionManager;
 import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationEngine;
+import edu.internet2.middleware.shibboleth.idp.session.impl.RejectedCookieCache;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionCookieEncoder;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionCookieSigner;
+import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 
 /**
  * A filter that adds the current users {@link Session} the request, if the user has a session.
@@ -56,6 +58,18 @@ public class IdPSessionFilter implements Filter {
     /** IdP session manager. */
     private SessionManager<Session> sessionManager;
 
+    /** Encoder of sessions carried in the session cookie, or null if cookies only reference sessions by ID. */
+    private SessionCookieEncoder sessionCookieEncoder;
+
+    /**
+     * Signer used to verify cookies which reference sessions held by the session manager, or null if they are signed
+     * with the secret of the session they reference.
+     */
+    private SessionCookieSigner sessionCookieSigner;
+
+    /** Cookie values recently rejected, or null if rejected values are not remembered. */
+    private RejectedCookieCache rejectedCookies;
+
     /** {@inheritDoc} */
     public void destroy() {
 
@@ -66,7 +80,11 @@ public class IdPSessionFilter implements Filter {
             ServletException {
         HttpServletRequest httpRequest = (HttpServletRequest) request;
         
-        MDC.put("JSESSIONID", httpRequest.getSession().getId());
+        // never create a container session just to log its ID
+        HttpSession httpSession = httpRequest.getSession(false);
+        if (httpSession != null) {
+            MDC.put("JSESSIONID", httpSession.getId());
+        }
         MDC.put("clientIP", httpRequest.getRemoteAddr());
 
         Cookie sessionCookie = getIdPSessionCookie(httpRequest);
@@ -89,6 +107,17 @@ public class IdPSessionFilter implements Filter {
         }
 
         sessionManager = (SessionManager<Session>) filterConfig.getServletContext().getAttribute(sessionManagerId);
+        sessionCookieEncoder = HttpServletHelper.getSessionCookieEncoder(filterConfig.getServletContext());
+        sessionCookieSigner = HttpServletHelper.getSessionCookieSigner(filterConfig.getServletContext());
+
+        String rejectedCookieCacheParam = filterConfig.getInitParameter("rejectedCookieCacheSize");
+        int rejectedCookieCacheSize = RejectedCookieCache.DEFAULT_SIZE;
+        if (!DatatypeHelper.isEmpty(rejectedCookieCacheParam)) {
+            rejectedCookieCacheSize = Integer.parseInt(DatatypeHelper.safeTrim(rejectedCookieCacheParam));
+        }
+        if (rejectedCookieCacheSize > 0) {
+            rejectedCookies = new RejectedCookieCache(rejectedCookieCacheSize);
+        }
 
         String consistentAddressParam = filterConfig.getInitParameter("ensureConsistentClientAddress");
         if (DatatypeHelper.isEmpty(consistentAddressParam)) {
@@ -122,7 +151,18 @@ public class IdPSessionFilter implements Filter {
     }
 
     /**
-     * Gets the user session associated with a session cookie.
+     * Gets the cache of recently rejected session cookie values.
+     * 
+     * @return cache of recently rejected cookie values, or null if rejected values are not remembered
+     */
+    public RejectedCookieCache getRejectedCookies() {
+        return rejectedCookies;
+    }
+
+    /**
+     * Gets the user session associated with a session cookie. Sessions carried in the cookie itself are decoded
+     * without consulting the session manager. Cookie values which do not yield a session are remembered, for the
+     * client they came from, and turned away without further checks if presented again.
      * 
      * @param sessionCookie the session cookie
      * @param httpRequest the current HTTP request
@@ -134,10 +174,40 @@ public class IdPSessionFilter implements Filter {
             return null;
         }
 
+        String clientAddress = httpRequest.getRemoteAddr();
+        String cookieValue = HTTPTransportUtils.urlDecode(sessionCookie.getValue());
+        if (rejectedCookies != null && rejectedCookies.contains(clientAddress, cookieValue)) {
+            log.trace("IdP session cookie was recently rejected, ignoring it");
+            return null;
+        }
+
+        Session userSession;
+        if (sessionCookieEncoder != null && SessionCookieEncoder.isEncodedSession(cookieValue)) {
+            userSession = sessionCookieEncoder.decode(cookieValue, clientAddress);
+        } else {
+            userSession = getReferencedSession(cookieValue, httpRequest);
+        }
+
+        if (userSession == null && rejectedCookies != null) {
+            rejectedCookies.add(clientAddress, cookieValue);
+        }
+        return userSession;
+    }
+
+    /**
+     * Gets the session referenced by a session cookie value. If a session cookie signer is configured the cookie is
+     * verified before the session manager is consulted, otherwise it is verified against the secret of the session it
+     * references.
+     * 
+     * @param cookieValue the decoded cookie value
+     * @param httpRequest the current HTTP request
+     * 
+     * @return the referenced session or null if the cookie is not valid or the session no longer exists
+     */
+    protected Session getReferencedSession(String cookieValue, HttpServletRequest httpRequest) {
         // index 0: remote address
         // index 1: session ID
-        // index 2: Base64(HMAC(index 0 + index 1))
-        String cookieValue = HTTPTransportUtils.urlDecode(sessionCookie.getValue());
+        // index 2: Base64(HMAC(index 0 + index 1)), or Base64(SHA1(session secret + index 0 + index 1))
         String[] valueComponents = cookieValue.split("\\|");
         if (valueComponents.length != 3) {
             log.warn("IdP session cookie has an improperly formated value: {}", cookieValue);
@@ -147,35 +217,45 @@ public class IdPSessionFilter implements Filter {
         byte[] remoteAddressBytes = Base64.decode(valueComponents[0]);
         byte[] sessionIdBytes = Base64.decode(valueComponents[1]);
         byte[] signatureBytes = Base64.decode(valueComponents[2]);
+        if (!isCookieValid(httpRequest, remoteAddressBytes, sessionIdBytes, signatureBytes)) {
+            return null;
+        }
 
         String sessionId = new String(sessionIdBytes);
         Session userSession = sessionManager.getSession(sessionId);
-
-        if (userSession != null) {
-            if (isCookieValid(httpRequest, remoteAddressBytes, sessionIdBytes, signatureBytes, userSession
-                    .getSessionSecret())) {
-                return userSession;
-            }
-        } else {
+        if (userSession == null) {
             log.debug("No session associated with session ID {} - session must have timed out", valueComponents[1]);
+            return null;
         }
-        return null;
+
+        if (sessionCookieSigner == null
+                && !SessionCookieSigner.verifyWithSessionSecret(userSession.getSessionSecret(), remoteAddressBytes,
+                        sessionIdBytes, signatureBytes)) {
+            log.error("Session cookie has been tampered with, its signature no longer matches expected value");
+            return null;
+        }
+        return userSession;
     }
 
     /**
      * Validates the session cookie. This validates that the cookie came from the same IP address to which it was given,
-     * if consistent address checking is enabled, and that cookie data hasn't been changed.
+     * if consistent address checking is enabled, and, if a session cookie signer is configured, that cookie data hasn't
+     * been changed.
      * 
      * @param httpRequest incoming HTTP request
      * @param remoteAddressBytes remote address from the cookie value
      * @param sessionIdBytes session ID from the cookie value
      * @param signatureBytes signature from the cookie value
-     * @param sessionSecret secrete associated with the user's session
      * 
      * @return true if the information in the cookie is valid, false if not
      */
     protected boolean isCookieValid(HttpServletRequest httpRequest, byte[] remoteAddressBytes, byte[] sessionIdBytes,
-            byte[] signatureBytes, byte[] sessionSecret) {
+            byte[] signatureBytes) {
+        if (remoteAddressBytes == null || sessionIdBytes == null || signatureBytes == null) {
+            log.warn("IdP session cookie has an improperly encoded value");
+            return false;
+        }
+
         if (consistentAddress) {
             String remoteAddress = new String(remoteAddressBytes);
             if (!httpRequest.getRemoteAddr().equals(remoteAddress)) {
@@ -185,19 +265,12 @@ public class IdPSessionFilter implements Filter {
             }
         }
 
-        try {
-            MessageDigest digester = MessageDigest.getInstance("SHA");
-            digester.update(sessionSecret);
-            digester.update(remoteAddressBytes);
-            digester.update(sessionIdBytes);
-            if (!Arrays.equals(digester.digest(), signatureBytes)) {
-                log.error("Session cookie has been tampered with, its signature no longer matches expected value");
-                return false;
-            }
-        } catch (GeneralSecurityException e) {
-            log.error("Unable to compute signature over session cookie material", e);
+        if (sessionCookieSigner != null
+                && !sessionCookieSigner.verify(remoteAddressBytes, sessionIdBytes, signatureBytes)) {
+            log.error("Session cookie has been tampered with, its signature no longer matches expected value");
+            return false;
         }
 
         return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,436 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.ssl.util.Hex;
+import org.opensaml.saml1.core.NameIdentifier;
+import org.opensaml.saml2.core.NameID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.common.session.SessionManager;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+
+/**
+ * Base class for IdP session managers. Takes care of generating session IDs and secrets and of the principal and name
+ * identifier indexes over the sessions; subclasses decide how sessions are stored.
+ */
+public abstract class AbstractSessionManager implements SessionManager<Session> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AbstractSessionManager.class);
+
+    /** Number of random bits within a session ID. */
+    private final int sessionIDSize = 32;
+
+    /** A {@link SecureRandom} PRNG to generate session IDs. */
+    private final SecureRandom prng = new SecureRandom();
+
+    /** Lifetime, in milliseconds, of session. */
+    private long sessionLifetime;
+
+    /** Principal and name identifier indexes over the sessions. */
+    private final SessionIndex sessionIndex = new SessionIndex();
+
+    /** Maximum number of sessions a single principal may hold, 0 for no limit. */
+    private int maxSessionsPerPrincipal;
+
+    /** Number of sessions destroyed because their principal held more than the maximum number of sessions. */
+    private final AtomicLong principalEvictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     * 
+     * @param lifetime lifetime, in milliseconds, of sessions
+     */
+    protected AbstractSessionManager(long lifetime) {
+        sessionLifetime = lifetime;
+    }
+
+    /**
+     * Gets the lifetime, in milliseconds, of sessions.
+     * 
+     * @return lifetime of sessions
+     */
+    public long getSessionLifetime() {
+        return sessionLifetime;
+    }
+
+    /**
+     * Gets the maximum number of sessions a single principal may hold.
+     * 
+     * @return maximum number of sessions per principal, 0 for no limit
+     */
+    public int getMaxSessionsPerPrincipal() {
+        return maxSessionsPerPrincipal;
+    }
+
+    /**
+     * Sets the maximum number of sessions a single principal may hold. When a principal is indexed under a session
+     * and then holds more sessions than this, its least recently active sessions are destroyed.
+     * 
+     * @param max maximum number of sessions per principal, 0 for no limit
+     */
+    public void setMaxSessionsPerPrincipal(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("Maximum number of sessions per principal may not be negative");
+        }
+        maxSessionsPerPrincipal = max;
+    }
+
+    /**
+     * Gets the number of sessions destroyed because their principal held more than the maximum number of sessions.
+     * 
+     * @return number of sessions evicted by the per-principal limit
+     */
+    public long getPrincipalEvictions() {
+        return principalEvictions.get();
+    }
+
+    /**
+     * Gets the secondary indexes kept over the sessions of this manager.
+     * 
+     * @return secondary session indexes
+     */
+    public SessionIndex getSessionIndex() {
+        return sessionIndex;
+    }
+
+    /**
+     * Gets a session by its ID or by one of its indexes. When looking up by principal name and the principal has more
+     * than one session the most recently active one is returned.
+     * 
+     * {@inheritDoc}
+     */
+    public Session getSession(String sessionID) {
+        if (sessionID == null) {
+            return null;
+        }
+
+        Session session = getLiveSession(sessionID);
+        if (session == null) {
+            session = getIndexedSession(sessionID);
+        }
+        return session;
+    }
+
+    /**
+     * Gets all the current sessions of a principal.
+     * 
+     * @param principalName name of the principal
+     * 
+     * @return current sessions of the principal, never null
+     */
+    public List<Session> getSessionsForPrincipal(String principalName) {
+        List<String> sessionIds = sessionIndex.getPrincipalSessions(principalName);
+        List<Session> sessions = new ArrayList<Session>(sessionIds.size());
+        for (String sessionId : sessionIds) {
+            Session session = getLiveSession(sessionId);
+            if (session != null) {
+                sessions.add(session);
+            } else {
+                sessionIndex.removePrincipalSession(principalName, sessionId);
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Indexes a session. An index equal to the session's principal name is added to the principal index, which may
+     * hold any number of sessions for the same principal. Any other index, normally one produced by
+     * {@link #getIndexFromNameID}, is bound to exactly one session.
+     * 
+     * {@inheritDoc}
+     */
+    public boolean indexSession(Session session, String index) {
+        if (session == null || index == null) {
+            return false;
+        }
+
+        if (getLiveSession(session.getSessionID()) == null) {
+            return false;
+        }
+
+        if (index.equals(session.getPrincipalName())) {
+            sessionIndex.addPrincipalSession(index, session.getSessionID());
+            enforcePrincipalSessionLimit(index, session.getSessionID());
+        } else {
+            String indexedSessionId = sessionIndex.addNameIDSession(index, session.getSessionID());
+            if (!session.getSessionID().equals(indexedSessionId)) {
+                if (getLiveSession(indexedSessionId) != null) {
+                    log.trace("Index {} is already bound to session {}", index, indexedSessionId);
+                    return false;
+                }
+
+                // the index points at a session that no longer exists, take it over
+                sessionIndex.removeNameID(index, indexedSessionId);
+                if (!session.getSessionID().equals(sessionIndex.addNameIDSession(index, session.getSessionID()))) {
+                    return false;
+                }
+            }
+        }
+
+        recordSessionIndex(session, index);
+        log.trace("Added index {} to session {}", index, session.getSessionID());
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    public void removeSessionIndex(String index) {
+        if (index == null) {
+            return;
+        }
+
+        String sessionId = sessionIndex.removeNameID(index);
+        if (sessionId != null) {
+            forgetSessionIndex(sessionId, index);
+            return;
+        }
+
+        for (String principalSessionId : sessionIndex.removePrincipal(index)) {
+            forgetSessionIndex(principalSessionId, index);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public String getIndexFromNameID(NameIdentifier nameIdentifier) {
+        if (nameIdentifier == null || nameIdentifier.getNameIdentifier() == null) {
+            return null;
+        }
+        StringBuilder b = new StringBuilder();
+        b.append(nameIdentifier.getNameIdentifier());
+        b.append("|");
+        b.append(nameIdentifier.getFormat());
+        if (nameIdentifier.getNameQualifier() != null) {
+            b.append("|");
+            b.append(nameIdentifier.getNameQualifier());
+        }
+
+        return b.toString();
+    }
+
+    /** {@inheritDoc} */
+    public String getIndexFromNameID(NameID nameIdentifier) {
+        if (nameIdentifier == null || nameIdentifier.getValue() == null) {
+            return null;
+        }
+        StringBuilder b = new StringBuilder();
+        b.append(nameIdentifier.getValue());
+        b.append("|");
+        b.append(nameIdentifier.getFormat());
+        if (nameIdentifier.getNameQualifier() != null || nameIdentifier.getSPNameQualifier() != null) {
+            b.append("|");
+            b.append(nameIdentifier.getNameQualifier());
+        }
+        if (nameIdentifier.getSPNameQualifier() != null) {
+            b.append("|");
+            b.append(nameIdentifier.getSPNameQualifier());
+        }
+
+        return b.toString();
+    }
+
+    /**
+     * Creates a session which is not held by this manager, for sessions carried entirely by their session cookie. The
+     * session can not be indexed or looked up.
+     * 
+     * @return the session
+     */
+    public Session createUnmanagedSession() {
+        return new SessionImpl(generateSessionID(), generateSessionSecret(), getSessionLifetime());
+    }
+
+    /**
+     * Generates a new, random, session ID.
+     * 
+     * @return the session ID
+     */
+    protected String generateSessionID() {
+        byte[] sid = new byte[sessionIDSize];
+        prng.nextBytes(sid);
+        return Hex.encode(sid);
+    }
+
+    /**
+     * Generates a new, random, session secret.
+     * 
+     * @return the session secret
+     */
+    protected byte[] generateSessionSecret() {
+        byte[] sessionSecret = new byte[16];
+        prng.nextBytes(sessionSecret);
+        return sessionSecret;
+    }
+
+    /**
+     * Destroys the least recently active sessions of a principal until it holds no more than the maximum number of
+     * sessions per principal.
+     * 
+     * @param principalName name of the principal
+     * @param currentSessionId ID of the session the principal was just indexed under, never destroyed
+     */
+    protected void enforcePrincipalSessionLimit(String principalName, String currentSessionId) {
+        int max = maxSessionsPerPrincipal;
+        if (max <= 0 || sessionIndex.getPrincipalSessions(principalName).size() <= max) {
+            return;
+        }
+
+        List<SessionActivity> activities = new ArrayList<SessionActivity>();
+        for (Session session : getSessionsForPrincipal(principalName)) {
+            if (!session.getSessionID().equals(currentSessionId)) {
+                activities.add(new SessionActivity(session));
+            }
+        }
+        Collections.sort(activities);
+
+        int excess = activities.size() + 1 - max;
+        for (int i = 0; i < excess && i < activities.size(); i++) {
+            String sessionId = activities.get(i).getSessionId();
+            log.debug("Principal {} holds more than {} sessions, destroying its least recently active session {}",
+                    new Object[] { principalName, max, sessionId });
+            destroySession(sessionId);
+            principalEvictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the last activity instant of a session.
+     * 
+     * @param session the session
+     * 
+     * @return last activity instant, in milliseconds since the epoch
+     */
+    protected static long getLastActivity(Session session) {
+        if (session instanceof SessionImpl) {
+            return ((SessionImpl) session).getLastActivityMillis();
+        }
+        return session.getLastActivityInstant().getMillis();
+    }
+
+    /**
+     * Gets a session via the secondary indexes. Index entries pointing at sessions which no longer exist are removed
+     * as they are encountered.
+     * 
+     * @param index name identifier index or principal name
+     * 
+     * @return the session or null if no current session is indexed under the given value
+     */
+    protected Session getIndexedSession(String index) {
+        String sessionId = sessionIndex.getNameIDSession(index);
+        if (sessionId != null) {
+            Session session = getLiveSession(sessionId);
+            if (session != null) {
+                return session;
+            }
+            sessionIndex.removeNameID(index, sessionId);
+        }
+
+        Session mostRecent = null;
+        for (String principalSessionId : sessionIndex.getPrincipalSessions(index)) {
+            Session session = getLiveSession(principalSessionId);
+            if (session == null) {
+                sessionIndex.removePrincipalSession(index, principalSessionId);
+            } else if (mostRecent == null
+                    || session.getLastActivityInstant().isAfter(mostRecent.getLastActivityInstant())) {
+                mostRecent = session;
+            }
+        }
+        return mostRecent;
+    }
+
+    /**
+     * Gets a session by its ID, destroying it if it has expired.
+     * 
+     * @param sessionID ID of the session
+     * 
+     * @return the session or null if there is no current session with the given ID
+     */
+    protected abstract Session getLiveSession(String sessionID);
+
+    /**
+     * Records, with the session, an index it has been added under so the index can be removed when the session is
+     * destroyed.
+     * 
+     * @param session the session
+     * @param index the index
+     */
+    protected abstract void recordSessionIndex(Session session, String index);
+
+    /**
+     * Forgets an index recorded with a session.
+     * 
+     * @param sessionID ID of the session
+     * @param index the index
+     */
+    protected abstract void forgetSessionIndex(String sessionID, String index);
+
+    /**
+     * Snapshot of the last activity of a session, ordered from the least to the most recently active. The instant is
+     * read once so that sessions being used while a list of these is sorted do not upset the ordering.
+     */
+    protected static class SessionActivity implements Comparable<SessionActivity> {
+
+        /** ID of the session. */
+        private final String sessionId;
+
+        /** Last activity instant of the session, in milliseconds since the epoch. */
+        private final long lastActivity;
+
+        /**
+         * Constructor.
+         * 
+         * @param session the session
+         */
+        public SessionActivity(Session session) {
+            sessionId = session.getSessionID();
+            lastActivity = AbstractSessionManager.getLastActivity(session);
+        }
+
+        /**
+         * Gets the ID of the session.
+         * 
+         * @return ID of the session
+         */
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        /**
+         * Gets the last activity instant of the session.
+         * 
+         * @return last activity instant, in milliseconds since the epoch
+         */
+        public long getLastActivity() {
+            return lastActivity;
+        }
+
+        /** {@inheritDoc} */
+        public int compareTo(SessionActivity other) {
+            if (lastActivity < other.lastActivity) {
+                return -1;
+            }
+            return lastActivity == other.lastActivity ? 0 : 1;
+        }
+    }
+}
@@ -99,9 +99,18 @@ public class AuthenticationMethodInformationImpl implements AuthenticationMethod
         return authenticationDuration;
     }
 
+    /**
+     * Gets the instant at which this method expires.
+     * 
+     * @return expiration instant, in milliseconds since the epoch
+     */
+    public synchronized long getExpirationMillis() {
+        return expirationInstant;
+    }
+
     /** {@inheritDoc} */
     public synchronized boolean isExpired() {
-        return new DateTime(expirationInstant, ISOChronology.getInstanceUTC()).isBeforeNow();
+        return expirationInstant < System.currentTimeMillis();
     }
 
     /** {@inheritDoc} */
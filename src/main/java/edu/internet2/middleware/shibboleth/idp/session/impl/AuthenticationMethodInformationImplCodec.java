@@ -0,0 +1,74 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.IOException;
+import java.security.Principal;
+
+import javax.security.auth.Subject;
+
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecInput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecOutput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.ObjectCodec;
+
+/** Codec for {@link AuthenticationMethodInformationImpl}. */
+public class AuthenticationMethodInformationImplCodec implements ObjectCodec<AuthenticationMethodInformationImpl> {
+
+    /** Type ID of the codec. */
+    public static final int TYPE_ID = 17;
+
+    /** {@inheritDoc} */
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    /** {@inheritDoc} */
+    public Class<AuthenticationMethodInformationImpl> getType() {
+        return AuthenticationMethodInformationImpl.class;
+    }
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return 1;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(AuthenticationMethodInformationImpl authnMethod, CodecOutput out) throws IOException {
+        out.writeObject(authnMethod.getAuthenticationSubject());
+        out.writeObject(authnMethod.getAuthenticationPrincipal());
+        out.writeDictionaryString(authnMethod.getAuthenticationMethod());
+        out.writeTimestamp(authnMethod.getAuthenticationInstant().getMillis());
+        out.writeVarLong(authnMethod.getAuthenticationDuration());
+    }
+
+    /** {@inheritDoc} */
+    public AuthenticationMethodInformationImpl decode(CodecInput in, int version) throws IOException {
+        Subject subject = in.readObject(Subject.class);
+        Principal principal = in.readObject(Principal.class);
+        String method = in.readDictionaryString();
+        DateTime instant = new DateTime(in.readTimestamp(), ISOChronology.getInstanceUTC());
+        long duration = in.readVarLong();
+        if (method == null) {
+            throw new IOException("Encoded authentication method information has no authentication method");
+        }
+        return new AuthenticationMethodInformationImpl(subject, principal, method, instant, duration);
+    }
+}
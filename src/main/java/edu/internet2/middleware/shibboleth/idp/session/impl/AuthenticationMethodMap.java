@@ -0,0 +1,133 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+
+/**
+ * The authentication methods of a {@link SessionImpl}, which keeps track of the earliest instant at which one of them
+ * expires.
+ * 
+ * The tracked instant is lowered as methods are added and only recomputed once it has passed, so the methods need not
+ * be scanned for expiration until one of them may actually have expired. Removing a method never makes the tracked
+ * instant later than the true one, it is merely recomputed sooner than necessary.
+ */
+class AuthenticationMethodMap extends ConcurrentHashMap<String, AuthenticationMethodInformation> {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 4830615496613027152L;
+
+    /** Earliest expiration instant of the methods, in milliseconds since the epoch, 0 if it must be recomputed. */
+    private transient long earliestExpiration;
+
+    /** Constructor. */
+    AuthenticationMethodMap() {
+        super(2);
+        earliestExpiration = Long.MAX_VALUE;
+    }
+
+    /**
+     * Gets the earliest instant at which one of the authentication methods expires. If the previously tracked instant
+     * has passed, or the expiration of some methods is not known, the methods are scanned again.
+     * 
+     * @param now the current instant, in milliseconds since the epoch
+     * 
+     * @return earliest expiration instant, in milliseconds since the epoch, {@link Long#MAX_VALUE} if there are no
+     *         methods or {@link Long#MIN_VALUE} if the expiration of some methods is not known
+     */
+    synchronized long getEarliestExpiration(long now) {
+        if (earliestExpiration == 0 || earliestExpiration <= now) {
+            long earliest = Long.MAX_VALUE;
+            for (AuthenticationMethodInformation method : values()) {
+                earliest = Math.min(earliest, getExpiration(method));
+            }
+            earliestExpiration = earliest;
+        }
+        return earliestExpiration;
+    }
+
+    /** {@inheritDoc} */
+    public AuthenticationMethodInformation put(String key, AuthenticationMethodInformation value) {
+        AuthenticationMethodInformation previous = super.put(key, value);
+        added(value);
+        return previous;
+    }
+
+    /** {@inheritDoc} */
+    public void putAll(Map<? extends String, ? extends AuthenticationMethodInformation> methods) {
+        for (Map.Entry<? extends String, ? extends AuthenticationMethodInformation> method : methods.entrySet()) {
+            put(method.getKey(), method.getValue());
+        }
+    }
+
+    /** {@inheritDoc} */
+    public AuthenticationMethodInformation putIfAbsent(String key, AuthenticationMethodInformation value) {
+        AuthenticationMethodInformation existing = super.putIfAbsent(key, value);
+        if (existing == null) {
+            added(value);
+        }
+        return existing;
+    }
+
+    /** {@inheritDoc} */
+    public AuthenticationMethodInformation replace(String key, AuthenticationMethodInformation value) {
+        AuthenticationMethodInformation previous = super.replace(key, value);
+        if (previous != null) {
+            added(value);
+        }
+        return previous;
+    }
+
+    /** {@inheritDoc} */
+    public boolean replace(String key, AuthenticationMethodInformation oldValue,
+            AuthenticationMethodInformation newValue) {
+        boolean replaced = super.replace(key, oldValue, newValue);
+        if (replaced) {
+            added(newValue);
+        }
+        return replaced;
+    }
+
+    /**
+     * Lowers the tracked earliest expiration instant to account for an added method.
+     * 
+     * @param method the added method
+     */
+    private synchronized void added(AuthenticationMethodInformation method) {
+        if (earliestExpiration != 0) {
+            earliestExpiration = Math.min(earliestExpiration, getExpiration(method));
+        }
+    }
+
+    /**
+     * Gets the expiration instant of a method.
+     * 
+     * @param method the method
+     * 
+     * @return expiration instant, in milliseconds since the epoch, or {@link Long#MIN_VALUE} if it is not known
+     */
+    private static long getExpiration(AuthenticationMethodInformation method) {
+        if (method instanceof AuthenticationMethodInformationImpl) {
+            return ((AuthenticationMethodInformationImpl) method).getExpirationMillis();
+        }
+        return Long.MIN_VALUE;
+    }
+}
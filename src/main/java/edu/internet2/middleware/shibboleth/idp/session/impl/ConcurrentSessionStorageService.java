@@ -0,0 +1,280 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.opensaml.util.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.util.ConcurrentStorageService;
+import edu.internet2.middleware.shibboleth.idp.util.TimerWheelExpirationService;
+
+/**
+ * A {@link StorageService} dedicated to holding {@link SessionManagerEntry}s.
+ * 
+ * Each partition is a lock-striped {@link ConcurrentHashMap} and partitions are created without any global lock, so
+ * concurrent readers never block and writers only contend when they hash to the same stripe. Expiration is checked
+ * inline: an entry found to be expired when it is read is removed, together with any other key it is stored under, and
+ * is never returned to the caller. Entries that are never read again are reclaimed by a
+ * {@link TimerWheelExpirationService}, if one is set, or else by a periodic sweeper.
+ */
+public class ConcurrentSessionStorageService implements ConcurrentStorageService<String, SessionManagerEntry> {
+
+    /** Default number of stripes per partition. */
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+
+    /** Default initial capacity of each partition. */
+    public static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ConcurrentSessionStorageService.class);
+
+    /** Partitions of the store. */
+    private final ConcurrentMap<String, ConcurrentMap<String, SessionManagerEntry>> store;
+
+    /** Number of stripes used by each partition. */
+    private final int concurrencyLevel;
+
+    /** Initial capacity of each partition. */
+    private final int initialCapacity;
+
+    /** Service used to expire entries as they come due, may be null. */
+    private TimerWheelExpirationService expirationService;
+
+    /** Constructor. */
+    public ConcurrentSessionStorageService() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param capacity initial capacity of each partition
+     * @param concurrency number of lock stripes used by each partition, should be roughly the number of threads
+     *            expected to update the store concurrently
+     */
+    public ConcurrentSessionStorageService(int capacity, int concurrency) {
+        if (capacity < 1 || concurrency < 1) {
+            throw new IllegalArgumentException("Capacity and concurrency level must be greater than zero");
+        }
+        initialCapacity = capacity;
+        concurrencyLevel = concurrency;
+        store = new ConcurrentHashMap<String, ConcurrentMap<String, SessionManagerEntry>>(4, 0.75f, concurrency);
+    }
+
+    /** {@inheritDoc} */
+    public boolean contains(String partition, String key) {
+        return get(partition, key) != null;
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<String> getPartitions() {
+        return store.keySet().iterator();
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<String> getKeys(String partition) {
+        ConcurrentMap<String, SessionManagerEntry> partitionMap = store.get(partition);
+        if (partitionMap == null) {
+            return Collections.<String> emptyList().iterator();
+        }
+        return partitionMap.keySet().iterator();
+    }
+
+    /** {@inheritDoc} */
+    public SessionManagerEntry get(String partition, String key) {
+        if (key == null) {
+            return null;
+        }
+
+        ConcurrentMap<String, SessionManagerEntry> partitionMap = store.get(partition);
+        if (partitionMap == null) {
+            return null;
+        }
+
+        SessionManagerEntry entry = partitionMap.get(key);
+        if (entry != null && entry.isExpired()) {
+            expire(partitionMap, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /** {@inheritDoc} */
+    public SessionManagerEntry put(String partition, String key, SessionManagerEntry value) {
+        SessionManagerEntry previous = getPartition(partition).put(key, value);
+        scheduleExpiration(partition, key, value);
+        return previous;
+    }
+
+    /**
+     * Stores the given value under the given key unless the key is already bound to an unexpired entry.
+     * 
+     * @param partition partition in which to store the entry
+     * @param key key of the entry
+     * @param value entry to store
+     * 
+     * @return the entry currently bound to the key, or null if the given value was stored
+     */
+    public SessionManagerEntry putIfAbsent(String partition, String key, SessionManagerEntry value) {
+        ConcurrentMap<String, SessionManagerEntry> partitionMap = getPartition(partition);
+        SessionManagerEntry existing = partitionMap.putIfAbsent(key, value);
+        while (existing != null && existing.isExpired()) {
+            expire(partitionMap, existing);
+            existing = partitionMap.putIfAbsent(key, value);
+        }
+        if (existing == null) {
+            scheduleExpiration(partition, key, value);
+        }
+        return existing;
+    }
+
+    /** {@inheritDoc} */
+    public SessionManagerEntry remove(String partition, String key) {
+        ConcurrentMap<String, SessionManagerEntry> partitionMap = store.get(partition);
+        if (partitionMap == null || key == null) {
+            return null;
+        }
+        SessionManagerEntry removed = partitionMap.remove(key);
+        if (removed != null) {
+            cancelExpiration(partition, key);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the given key only if it is currently bound to the given entry.
+     * 
+     * @param partition partition from which to remove the key
+     * @param key key to remove
+     * @param value entry the key is expected to be bound to
+     * 
+     * @return true if the key was removed, false if not
+     */
+    public boolean remove(String partition, String key, SessionManagerEntry value) {
+        ConcurrentMap<String, SessionManagerEntry> partitionMap = store.get(partition);
+        if (partitionMap == null || key == null) {
+            return false;
+        }
+        if (partitionMap.remove(key, value)) {
+            cancelExpiration(partition, key);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the number of keys, including session indexes, currently held in a partition.
+     * 
+     * @param partition the partition
+     * 
+     * @return number of keys in the partition
+     */
+    public int size(String partition) {
+        ConcurrentMap<String, SessionManagerEntry> partitionMap = store.get(partition);
+        if (partitionMap == null) {
+            return 0;
+        }
+        return partitionMap.size();
+    }
+
+    /**
+     * Gets the service used to expire entries as they come due.
+     * 
+     * @return service used to expire entries, may be null
+     */
+    public TimerWheelExpirationService getExpirationService() {
+        return expirationService;
+    }
+
+    /**
+     * Sets the service used to expire entries as they come due.
+     * 
+     * @param expirer service used to expire entries, may be null
+     */
+    public void setExpirationService(TimerWheelExpirationService expirer) {
+        expirationService = expirer;
+    }
+
+    /**
+     * Schedules the expiration of an entry, if an expiration service is set.
+     * 
+     * @param partition partition holding the entry
+     * @param key key of the entry
+     * @param value the entry
+     */
+    protected void scheduleExpiration(String partition, String key, SessionManagerEntry value) {
+        if (expirationService != null && value != null) {
+            expirationService.schedule(this, partition, key, value);
+        }
+    }
+
+    /**
+     * Cancels the expiration scheduled for a removed key, if an expiration service is set.
+     * 
+     * @param partition partition the key was removed from
+     * @param key the key
+     */
+    protected void cancelExpiration(String partition, String key) {
+        if (expirationService != null) {
+            expirationService.cancel(this, partition, key);
+        }
+    }
+
+    /**
+     * Gets a partition, creating it if it does not yet exist.
+     * 
+     * @param partition name of the partition
+     * 
+     * @return the partition
+     */
+    protected ConcurrentMap<String, SessionManagerEntry> getPartition(String partition) {
+        ConcurrentMap<String, SessionManagerEntry> partitionMap = store.get(partition);
+        if (partitionMap == null) {
+            ConcurrentMap<String, SessionManagerEntry> newPartition = new ConcurrentHashMap<String, SessionManagerEntry>(
+                    initialCapacity, 0.75f, concurrencyLevel);
+            partitionMap = store.putIfAbsent(partition, newPartition);
+            if (partitionMap == null) {
+                partitionMap = newPartition;
+            }
+        }
+        return partitionMap;
+    }
+
+    /**
+     * Removes every key under which an expired entry is stored.
+     * 
+     * @param partitionMap partition holding the entry
+     * @param entry the expired entry
+     */
+    protected void expire(ConcurrentMap<String, SessionManagerEntry> partitionMap, SessionManagerEntry entry) {
+        boolean removed = false;
+        for (String index : entry.getSessionIndexes()) {
+            removed |= partitionMap.remove(index, entry);
+        }
+        if (removed) {
+            log.trace("Session {} expired, removed it and its indexes from the store", entry.getSessionId());
+            entry.onExpire();
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.Subject;
+
+import org.joda.time.DateTime;
+
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+
+/**
+ * View of a session held by an {@link OffHeapSessionManager}. Changes made through the view, including changes to its
+ * authentication method and service information maps, are written back to the manager as they are made. A serialized
+ * view is deserialized as a plain, detached, {@link SessionImpl}.
+ */
+public class OffHeapSession implements Session {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = -3512417395768052294L;
+
+    /** The materialized session. */
+    private final SessionImpl session;
+
+    /** Manager the session belongs to. */
+    private final transient OffHeapSessionManager manager;
+
+    /** Write-through view of the authentication methods. */
+    private final transient Map<String, AuthenticationMethodInformation> authnMethods;
+
+    /** Write-through view of the services information. */
+    private final transient Map<String, ServiceInformation> servicesInformation;
+
+    /**
+     * Constructor.
+     * 
+     * @param materializedSession the materialized session
+     * @param sessionManager manager the session belongs to
+     */
+    OffHeapSession(SessionImpl materializedSession, OffHeapSessionManager sessionManager) {
+        session = materializedSession;
+        manager = sessionManager;
+        authnMethods = new WriteThroughMap<String, AuthenticationMethodInformation>(session
+                .getAuthenticationMethods());
+        servicesInformation = new WriteThroughMap<String, ServiceInformation>(session.getServicesInformation());
+    }
+
+    /** {@inheritDoc} */
+    public String getSessionID() {
+        return session.getSessionID();
+    }
+
+    /** {@inheritDoc} */
+    public byte[] getSessionSecret() {
+        return session.getSessionSecret();
+    }
+
+    /** {@inheritDoc} */
+    public Subject getSubject() {
+        return session.getSubject();
+    }
+
+    /** {@inheritDoc} */
+    public void setSubject(Subject subject) {
+        session.setSubject(subject);
+        writeBack();
+    }
+
+    /** {@inheritDoc} */
+    public String getPrincipalName() {
+        return session.getPrincipalName();
+    }
+
+    /** {@inheritDoc} */
+    public DateTime getLastActivityInstant() {
+        return session.getLastActivityInstant();
+    }
+
+    /** {@inheritDoc} */
+    public void setLastActivityInstant(DateTime activity) {
+        session.setLastActivityInstant(activity);
+        manager.writeLastActivity(session.getSessionID(), activity.getMillis());
+    }
+
+    /** {@inheritDoc} */
+    public long getInactivityTimeout() {
+        return session.getInactivityTimeout();
+    }
+
+    /** {@inheritDoc} */
+    public Map<String, AuthenticationMethodInformation> getAuthenticationMethods() {
+        return authnMethods;
+    }
+
+    /** {@inheritDoc} */
+    public Map<String, ServiceInformation> getServicesInformation() {
+        return servicesInformation;
+    }
+
+    /**
+     * Gets the service information for the given entity ID.
+     * 
+     * @param entityId entity ID to retrieve the service information for
+     * 
+     * @return the service information or null
+     */
+    public ServiceInformation getServiceInformation(String entityId) {
+        return session.getServiceInformation(entityId);
+    }
+
+    /**
+     * Gets the materialized session backing this view.
+     * 
+     * @return the materialized session
+     */
+    SessionImpl getSession() {
+        return session;
+    }
+
+    /**
+     * Gets the manager the session belongs to.
+     * 
+     * @return manager the session belongs to
+     */
+    OffHeapSessionManager getManager() {
+        return manager;
+    }
+
+    /**
+     * Replaces this view with the materialized session when serialized.
+     * 
+     * @return the materialized session
+     */
+    private Object writeReplace() {
+        return session;
+    }
+
+    /** Writes the session back to its manager. */
+    private void writeBack() {
+        manager.writeSession(session);
+    }
+
+    /**
+     * Map which writes the session back whenever it is modified.
+     * 
+     * @param <K> type of the keys
+     * @param <V> type of the values
+     */
+    private class WriteThroughMap<K, V> extends AbstractMap<K, V> {
+
+        /** The session's map. */
+        private final Map<K, V> delegate;
+
+        /** Write-through view of the entries. */
+        private final Set<Map.Entry<K, V>> entries;
+
+        /**
+         * Constructor.
+         * 
+         * @param map the session's map
+         */
+        public WriteThroughMap(Map<K, V> map) {
+            delegate = map;
+            entries = new AbstractSet<Map.Entry<K, V>>() {
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new WriteThroughIterator<K, V>(delegate.entrySet().iterator());
+                }
+
+                public int size() {
+                    return delegate.size();
+                }
+            };
+        }
+
+        /** {@inheritDoc} */
+        public Set<Map.Entry<K, V>> entrySet() {
+            return entries;
+        }
+
+        /** {@inheritDoc} */
+        public int size() {
+            return delegate.size();
+        }
+
+        /** {@inheritDoc} */
+        public boolean containsKey(Object key) {
+            return delegate.containsKey(key);
+        }
+
+        /** {@inheritDoc} */
+        public V get(Object key) {
+            return delegate.get(key);
+        }
+
+        /** {@inheritDoc} */
+        public V put(K key, V value) {
+            V previous = delegate.put(key, value);
+            writeBack();
+            return previous;
+        }
+
+        /** {@inheritDoc} */
+        public V remove(Object key) {
+            V previous = delegate.remove(key);
+            if (previous != null) {
+                writeBack();
+            }
+            return previous;
+        }
+
+        /** {@inheritDoc} */
+        public void clear() {
+            if (!delegate.isEmpty()) {
+                delegate.clear();
+                writeBack();
+            }
+        }
+    }
+
+    /**
+     * Iterator over map entries which writes the session back whenever an entry is removed or changed.
+     * 
+     * @param <K> type of the keys
+     * @param <V> type of the values
+     */
+    private class WriteThroughIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+
+        /** Iterator over the session's map entries. */
+        private final Iterator<Map.Entry<K, V>> delegate;
+
+        /**
+         * Constructor.
+         * 
+         * @param iterator iterator over the session's map entries
+         */
+        public WriteThroughIterator(Iterator<Map.Entry<K, V>> iterator) {
+            delegate = iterator;
+        }
+
+        /** {@inheritDoc} */
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        /** {@inheritDoc} */
+        public Map.Entry<K, V> next() {
+            final Map.Entry<K, V> entry = delegate.next();
+            return new Map.Entry<K, V>() {
+                public K getKey() {
+                    return entry.getKey();
+                }
+
+                public V getValue() {
+                    return entry.getValue();
+                }
+
+                public V setValue(V value) {
+                    V previous = entry.setValue(value);
+                    writeBack();
+                    return previous;
+                }
+
+                public boolean equals(Object obj) {
+                    return entry.equals(obj);
+                }
+
+                public int hashCode() {
+                    return entry.hashCode();
+                }
+            };
+        }
+
+        /** {@inheritDoc} */
+        public void remove() {
+            delegate.remove();
+            writeBack();
+        }
+    }
+}
@@ -0,0 +1,628 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.util.SlabAllocator;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecRegistry;
+import edu.internet2.middleware.shibboleth.idp.util.codec.DefaultCodecRegistry;
+
+/**
+ * Manager of IdP sessions which keeps the sessions outside of the Java heap.
+ * 
+ * Each session is serialized into a block obtained from a {@link SlabAllocator}. The block starts with the session's
+ * last activity instant and inactivity timeout, so activity updates and expiration checks never touch the serialized
+ * session, followed by the indexes the session is known under and finally the session itself, encoded with a
+ * {@link CodecRegistry}. Sessions are
+ * materialized as {@link OffHeapSession} views when they are looked up; a view writes every change made through it
+ * back to its block, and views still referenced by in-flight requests are shared so concurrent requests for the same
+ * session see each other's changes just as they would with an on-heap store. Only the session IDs, their block
+ * addresses and the secondary indexes remain on the heap.
+ * 
+ * Expired sessions are dropped when they are looked up and, if a sweep timer is given, by a periodic sweep which only
+ * reads the block headers.
+ */
+public class OffHeapSessionManager extends AbstractSessionManager {
+
+    /** Number of locks sessions are striped over. */
+    private static final int LOCK_STRIPES = 64;
+
+    /** Offset, within a session block, of the last activity instant. */
+    private static final int LAST_ACTIVITY_OFFSET = 0;
+
+    /** Offset, within a session block, of the inactivity timeout. */
+    private static final int TIMEOUT_OFFSET = 8;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(OffHeapSessionManager.class);
+
+    /** Allocator of the off-heap blocks holding the sessions. */
+    private final SlabAllocator allocator;
+
+    /** Block addresses indexed by session ID. */
+    private final ConcurrentMap<String, Long> addresses;
+
+    /** Locks guarding the blocks of the sessions, chosen by session ID. */
+    private final Object[] locks;
+
+    /** Materialized views of sessions still referenced by in-flight requests. */
+    private final ConcurrentMap<String, ViewReference> views;
+
+    /** Queue to which views are enqueued once no longer referenced. */
+    private final ReferenceQueue<OffHeapSession> collectedViews;
+
+    /** Registry of the codecs used to encode sessions. */
+    private CodecRegistry codecRegistry;
+
+    /**
+     * Constructor.
+     * 
+     * @param sessionAllocator allocator of the off-heap blocks holding the sessions
+     * @param lifetime lifetime, in milliseconds, of sessions
+     */
+    public OffHeapSessionManager(SlabAllocator sessionAllocator, long lifetime) {
+        this(sessionAllocator, null, 0, lifetime);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param sessionAllocator allocator of the off-heap blocks holding the sessions
+     * @param sweepTimer timer used to periodically remove expired sessions, may be null
+     * @param sweepInterval interval, in milliseconds, between sweeps
+     * @param lifetime lifetime, in milliseconds, of sessions
+     */
+    public OffHeapSessionManager(SlabAllocator sessionAllocator, Timer sweepTimer, long sweepInterval, long lifetime) {
+        super(lifetime);
+        if (sessionAllocator == null) {
+            throw new IllegalArgumentException("Session allocator may not be null");
+        }
+        allocator = sessionAllocator;
+        addresses = new ConcurrentHashMap<String, Long>(1024, 0.75f, LOCK_STRIPES);
+        views = new ConcurrentHashMap<String, ViewReference>(256, 0.75f, LOCK_STRIPES);
+        collectedViews = new ReferenceQueue<OffHeapSession>();
+        codecRegistry = new DefaultCodecRegistry();
+        locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+
+        if (sweepTimer != null) {
+            if (sweepInterval <= 0) {
+                throw new IllegalArgumentException("Sweep interval must be greater than zero");
+            }
+            sweepTimer.schedule(new SweepTask(), sweepInterval, sweepInterval);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Session createSession() {
+        String sessionID = generateSessionID();
+        SessionImpl session = new SessionImpl(sessionID, generateSessionSecret(), getSessionLifetime());
+
+        synchronized (lockFor(sessionID)) {
+            addresses.put(sessionID, writeBlock(session, Collections.<String> emptyList()));
+        }
+        OffHeapSession view = register(session);
+
+        MDC.put("idpSessionId", sessionID);
+        log.trace("Created session {}", sessionID);
+        return view;
+    }
+
+    /** {@inheritDoc} */
+    public Session createSession(String principal) {
+        return createSession();
+    }
+
+    /** {@inheritDoc} */
+    public void destroySession(String sessionID) {
+        if (sessionID == null) {
+            return;
+        }
+
+        List<String> indexes;
+        synchronized (lockFor(sessionID)) {
+            Long address = addresses.remove(sessionID);
+            if (address == null) {
+                return;
+            }
+            indexes = readIndexes(address);
+            allocator.free(address);
+        }
+        views.remove(sessionID);
+        getSessionIndex().removeSession(sessionID, indexes);
+        log.trace("Destroyed session {}", sessionID);
+    }
+
+    /**
+     * Removes all expired sessions.
+     * 
+     * @return number of sessions removed
+     */
+    public int sweep() {
+        drainCollectedViews();
+
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (Map.Entry<String, Long> entry : addresses.entrySet()) {
+            if (isExpired(entry.getKey(), now)) {
+                destroySession(entry.getKey());
+                expired++;
+            }
+        }
+        log.debug("Off-heap session sweep removed {} expired sessions, {} remain", expired, addresses.size());
+        return expired;
+    }
+
+    /**
+     * Gets the number of sessions currently held.
+     * 
+     * @return number of sessions currently held
+     */
+    public int getSessionCount() {
+        return addresses.size();
+    }
+
+    /**
+     * Gets the number of session views currently materialized on the heap.
+     * 
+     * @return number of materialized session views
+     */
+    public int getMaterializedSessionCount() {
+        drainCollectedViews();
+        return views.size();
+    }
+
+    /**
+     * Gets the allocator of the off-heap blocks holding the sessions.
+     * 
+     * @return allocator of the off-heap blocks
+     */
+    public SlabAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Gets the registry of the codecs used to encode sessions.
+     * 
+     * @return registry of the codecs used to encode sessions
+     */
+    public CodecRegistry getCodecRegistry() {
+        return codecRegistry;
+    }
+
+    /**
+     * Sets the registry of the codecs used to encode sessions. Must be set before any session is created.
+     * 
+     * @param registry registry of the codecs used to encode sessions
+     */
+    public void setCodecRegistry(CodecRegistry registry) {
+        if (registry == null) {
+            throw new IllegalArgumentException("Codec registry may not be null");
+        }
+        codecRegistry = registry;
+    }
+
+    /** {@inheritDoc} */
+    protected Session getLiveSession(String sessionID) {
+        if (!addresses.containsKey(sessionID)) {
+            return null;
+        }
+
+        if (isExpired(sessionID, System.currentTimeMillis())) {
+            destroySession(sessionID);
+            return null;
+        }
+
+        ViewReference reference = views.get(sessionID);
+        if (reference != null) {
+            OffHeapSession view = reference.get();
+            if (view != null) {
+                return view;
+            }
+        }
+
+        SessionImpl session = readSession(sessionID);
+        if (session == null) {
+            return null;
+        }
+        return register(session);
+    }
+
+    /** {@inheritDoc} */
+    protected void recordSessionIndex(Session session, String index) {
+        String sessionID = session.getSessionID();
+        synchronized (lockFor(sessionID)) {
+            Long address = addresses.get(sessionID);
+            if (address == null) {
+                return;
+            }
+
+            List<String> indexes = readIndexes(address);
+            if (!indexes.contains(index)) {
+                indexes.add(index);
+            }
+
+            // profile handlers update the service information held by the session just before indexing it, so the
+            // session itself is written back along with the new index
+            if (session instanceof OffHeapSession && ((OffHeapSession) session).getManager() == this) {
+                replaceBlock(sessionID, address, writeBlock(((OffHeapSession) session).getSession(), indexes));
+            } else {
+                replaceBlock(sessionID, address, writeBlock(address, indexes));
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    protected void forgetSessionIndex(String sessionID, String index) {
+        synchronized (lockFor(sessionID)) {
+            Long address = addresses.get(sessionID);
+            if (address == null) {
+                return;
+            }
+
+            List<String> indexes = readIndexes(address);
+            if (indexes.remove(index)) {
+                log.trace("Removing index {} for session {}", index, sessionID);
+                replaceBlock(sessionID, address, writeBlock(address, indexes));
+            }
+        }
+    }
+
+    /**
+     * Writes a session, as changed through one of its views, back to its block.
+     * 
+     * @param session the changed session
+     */
+    protected void writeSession(SessionImpl session) {
+        String sessionID = session.getSessionID();
+        synchronized (lockFor(sessionID)) {
+            Long address = addresses.get(sessionID);
+            if (address == null) {
+                log.trace("Session {} no longer exists, discarding its changes", sessionID);
+                return;
+            }
+            replaceBlock(sessionID, address, writeBlock(session, readIndexes(address)));
+        }
+    }
+
+    /**
+     * Records the last activity instant of a session in its block.
+     * 
+     * @param sessionID ID of the session
+     * @param lastActivity last activity instant, in milliseconds since the epoch
+     */
+    protected void writeLastActivity(String sessionID, long lastActivity) {
+        synchronized (lockFor(sessionID)) {
+            Long address = addresses.get(sessionID);
+            if (address != null) {
+                allocator.putLong(address, LAST_ACTIVITY_OFFSET, lastActivity);
+            }
+        }
+    }
+
+    /**
+     * Serializes a session.
+     * 
+     * @param session the session
+     * 
+     * @return the serialized session
+     * 
+     * @throws IOException thrown if the session can not be serialized
+     */
+    protected byte[] serializeSession(SessionImpl session) throws IOException {
+        return codecRegistry.encode(session);
+    }
+
+    /**
+     * Deserializes a session.
+     * 
+     * @param serializedSession the serialized session
+     * 
+     * @return the session
+     * 
+     * @throws IOException thrown if the session can not be deserialized
+     */
+    protected SessionImpl deserializeSession(byte[] serializedSession) throws IOException {
+        SessionImpl session = codecRegistry.decode(serializedSession, SessionImpl.class);
+        if (session == null) {
+            throw new IOException("Serialized session decoded to null");
+        }
+        return session;
+    }
+
+    /**
+     * Creates and shares the view of a session.
+     * 
+     * @param session the materialized session
+     * 
+     * @return the view, or the view registered concurrently by another thread
+     */
+    private OffHeapSession register(SessionImpl session) {
+        drainCollectedViews();
+
+        OffHeapSession view = new OffHeapSession(session, this);
+        ViewReference reference = new ViewReference(view, collectedViews);
+        while (true) {
+            ViewReference existing = views.putIfAbsent(session.getSessionID(), reference);
+            if (existing == null) {
+                return view;
+            }
+            OffHeapSession existingView = existing.get();
+            if (existingView != null) {
+                return existingView;
+            }
+            views.remove(session.getSessionID(), existing);
+        }
+    }
+
+    /** Removes the views which are no longer referenced. */
+    private void drainCollectedViews() {
+        Reference<? extends OffHeapSession> reference = collectedViews.poll();
+        while (reference != null) {
+            ViewReference viewReference = (ViewReference) reference;
+            views.remove(viewReference.getSessionID(), viewReference);
+            reference = collectedViews.poll();
+        }
+    }
+
+    /**
+     * Checks whether a session has expired, reading only its block header.
+     * 
+     * @param sessionID ID of the session
+     * @param now the current instant, in milliseconds since the epoch
+     * 
+     * @return true if the session exists and has expired
+     */
+    private boolean isExpired(String sessionID, long now) {
+        synchronized (lockFor(sessionID)) {
+            Long address = addresses.get(sessionID);
+            if (address == null) {
+                return false;
+            }
+            return allocator.getLong(address, LAST_ACTIVITY_OFFSET) + allocator.getLong(address, TIMEOUT_OFFSET) <= now;
+        }
+    }
+
+    /**
+     * Materializes a session from its block.
+     * 
+     * @param sessionID ID of the session
+     * 
+     * @return the session or null if the session no longer exists or can not be read
+     */
+    private SessionImpl readSession(String sessionID) {
+        byte[] block;
+        synchronized (lockFor(sessionID)) {
+            Long address = addresses.get(sessionID);
+            if (address == null) {
+                return null;
+            }
+            block = allocator.load(address);
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+            long lastActivity = in.readLong();
+            in.readLong();
+            skipIndexes(in);
+            byte[] serializedSession = new byte[in.available()];
+            in.readFully(serializedSession);
+
+            SessionImpl session = deserializeSession(serializedSession);
+            session.setLastActivityInstant(new DateTime(lastActivity));
+            return session;
+        } catch (IOException e) {
+            log.error("Unable to read session " + sessionID + ", destroying it", e);
+            destroySession(sessionID);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the indexes recorded in a block. Must be called while holding the session's lock.
+     * 
+     * @param address address of the block
+     * 
+     * @return the indexes, a modifiable list
+     */
+    private List<String> readIndexes(long address) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(allocator.load(address)));
+            in.readLong();
+            in.readLong();
+            int count = in.readInt();
+            List<String> indexes = new ArrayList<String>(count + 1);
+            for (int i = 0; i < count; i++) {
+                indexes.add(in.readUTF());
+            }
+            return indexes;
+        } catch (IOException e) {
+            log.error("Unable to read indexes of session block", e);
+            return new ArrayList<String>();
+        }
+    }
+
+    /**
+     * Skips over the indexes recorded in a block.
+     * 
+     * @param in stream positioned at the indexes
+     * 
+     * @throws IOException thrown if the block can not be read
+     */
+    private void skipIndexes(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            in.readUTF();
+        }
+    }
+
+    /**
+     * Writes a session and its indexes into a new block.
+     * 
+     * @param session the session
+     * @param indexes indexes of the session
+     * 
+     * @return address of the new block
+     */
+    private long writeBlock(SessionImpl session, List<String> indexes) {
+        try {
+            return writeBlock(session.getLastActivityMillis(), session.getInactivityTimeout(), indexes,
+                    serializeSession(session));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to serialize session " + session.getSessionID(), e);
+        }
+    }
+
+    /**
+     * Copies an existing block into a new block, replacing its indexes.
+     * 
+     * @param address address of the existing block
+     * @param indexes indexes of the session
+     * 
+     * @return address of the new block
+     */
+    private long writeBlock(long address, List<String> indexes) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(allocator.load(address)));
+            long lastActivity = in.readLong();
+            long timeout = in.readLong();
+            skipIndexes(in);
+            byte[] serializedSession = new byte[in.available()];
+            in.readFully(serializedSession);
+            return writeBlock(lastActivity, timeout, indexes, serializedSession);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read session block", e);
+        }
+    }
+
+    /**
+     * Writes a new block.
+     * 
+     * @param lastActivity last activity instant of the session
+     * @param timeout inactivity timeout of the session
+     * @param indexes indexes of the session
+     * @param serializedSession the serialized session
+     * 
+     * @return address of the new block
+     * 
+     * @throws IOException thrown if the block can not be assembled
+     */
+    private long writeBlock(long lastActivity, long timeout, List<String> indexes, byte[] serializedSession)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(serializedSession.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(lastActivity);
+        out.writeLong(timeout);
+        out.writeInt(indexes.size());
+        for (String index : indexes) {
+            out.writeUTF(index);
+        }
+        out.write(serializedSession);
+        out.close();
+        return allocator.store(bytes.toByteArray());
+    }
+
+    /**
+     * Points a session at a new block and frees its old block. Must be called while holding the session's lock.
+     * 
+     * @param sessionID ID of the session
+     * @param oldAddress address of the block being replaced
+     * @param newAddress address of the new block
+     */
+    private void replaceBlock(String sessionID, long oldAddress, long newAddress) {
+        addresses.put(sessionID, newAddress);
+        allocator.free(oldAddress);
+    }
+
+    /**
+     * Gets the lock guarding a session's block.
+     * 
+     * @param sessionID ID of the session
+     * 
+     * @return the lock
+     */
+    private Object lockFor(String sessionID) {
+        int hash = sessionID.hashCode();
+        hash ^= (hash >>> 16);
+        return locks[hash & (LOCK_STRIPES - 1)];
+    }
+
+    /** Weak reference to a session view which remembers the session ID it was registered under. */
+    private static class ViewReference extends WeakReference<OffHeapSession> {
+
+        /** ID of the session. */
+        private final String sessionID;
+
+        /**
+         * Constructor.
+         * 
+         * @param view the session view
+         * @param queue queue the reference is enqueued on once the view is no longer referenced
+         */
+        public ViewReference(OffHeapSession view, ReferenceQueue<OffHeapSession> queue) {
+            super(view, queue);
+            sessionID = view.getSessionID();
+        }
+
+        /**
+         * Gets the ID of the session.
+         * 
+         * @return ID of the session
+         */
+        public String getSessionID() {
+            return sessionID;
+        }
+    }
+
+    /** Timer task which periodically sweeps expired sessions. */
+    private class SweepTask extends TimerTask {
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                sweep();
+            } catch (Throwable t) {
+                log.error("Caught unexpected error while sweeping off-heap sessions", t);
+            }
+        }
+    }
+}
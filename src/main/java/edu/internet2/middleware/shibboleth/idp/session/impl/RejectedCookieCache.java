@@ -0,0 +1,158 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A small, bounded, cache of session cookie values recently rejected for a given client address, so that a client
+ * repeatedly presenting the same forged or stale cookie is turned away without verifying it again.
+ * 
+ * The cache is a fixed size, direct mapped, table of 64-bit fingerprints of the address and cookie value; a newly
+ * rejected value simply replaces whatever occupied its slot. Lookups and updates are lock free. A valid cookie is only
+ * mistaken for a rejected one if its fingerprint collides with that of a rejected cookie, which is negligibly rare.
+ */
+public class RejectedCookieCache {
+
+    /** Default number of slots of the cache. */
+    public static final int DEFAULT_SIZE = 4096;
+
+    /** Fingerprints of the rejected values, 0 marks an empty slot. */
+    private final AtomicLongArray fingerprints;
+
+    /** Mask turning a fingerprint in to a slot index. */
+    private final int mask;
+
+    /** Number of lookups which found a rejected value. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Constructor. */
+    public RejectedCookieCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param size number of slots of the cache, rounded up to a power of two
+     */
+    public RejectedCookieCache(int size) {
+        if (size < 1 || size > 1 << 24) {
+            throw new IllegalArgumentException("Rejected cookie cache size must be between 1 and " + (1 << 24));
+        }
+
+        int slots = Integer.highestOneBit(size);
+        if (slots < size) {
+            slots <<= 1;
+        }
+        fingerprints = new AtomicLongArray(slots);
+        mask = slots - 1;
+    }
+
+    /**
+     * Checks whether a cookie value was recently rejected for a client.
+     * 
+     * @param clientAddress address of the client
+     * @param cookieValue the cookie value
+     * 
+     * @return true if the value was recently rejected, false if not
+     */
+    public boolean contains(String clientAddress, String cookieValue) {
+        long fingerprint = fingerprint(clientAddress, cookieValue);
+        if (fingerprints.get(slot(fingerprint)) == fingerprint) {
+            hits.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records that a cookie value was rejected for a client.
+     * 
+     * @param clientAddress address of the client
+     * @param cookieValue the cookie value
+     */
+    public void add(String clientAddress, String cookieValue) {
+        long fingerprint = fingerprint(clientAddress, cookieValue);
+        fingerprints.set(slot(fingerprint), fingerprint);
+    }
+
+    /**
+     * Gets the number of slots of the cache.
+     * 
+     * @return number of slots
+     */
+    public int getSize() {
+        return fingerprints.length();
+    }
+
+    /**
+     * Gets the number of lookups which found a rejected value.
+     * 
+     * @return number of cookies turned away by the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the slot of a fingerprint.
+     * 
+     * @param fingerprint the fingerprint
+     * 
+     * @return index of the slot
+     */
+    private int slot(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    }
+
+    /**
+     * Computes the 64-bit FNV-1a fingerprint of a client address and cookie value.
+     * 
+     * @param clientAddress address of the client
+     * @param cookieValue the cookie value
+     * 
+     * @return the fingerprint, never 0
+     */
+    private long fingerprint(String clientAddress, String cookieValue) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fingerprint(hash, clientAddress);
+        hash = (hash ^ '|') * 0x100000001b3L;
+        hash = fingerprint(hash, cookieValue);
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Folds the characters of a string in to an FNV-1a hash.
+     * 
+     * @param hash the hash so far
+     * @param value the string, may be null
+     * 
+     * @return the new hash
+     */
+    private long fingerprint(long hash, String value) {
+        if (value == null) {
+            return hash;
+        }
+        long result = hash;
+        for (int i = 0; i < value.length(); i++) {
+            result = (result ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return result;
+    }
+}
@@ -119,6 +119,21 @@ public class ServiceInformationImpl implements ServiceInformation {
         }
     }
 
+    /**
+     * Sets the name identifier for the principal known by the service.
+     * 
+     * @param value name identifier value
+     * @param format name identifier format
+     * @param qualifier name qualifier
+     * @param spQualifier SP name qualifier
+     */
+    synchronized void setNameIdentifier(String value, String format, String qualifier, String spQualifier) {
+        nameIdentifier = value;
+        nameIdentifierFormat = format;
+        nameQualifier = qualifier;
+        SPNameQualifier = spQualifier;
+    }
+
     /** {@inheritDoc} */
     public synchronized String getNameIdentifier() {
         return nameIdentifier;
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.IOException;
+
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecInput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecOutput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.ObjectCodec;
+
+/** Codec for {@link ServiceInformationImpl}. */
+public class ServiceInformationImplCodec implements ObjectCodec<ServiceInformationImpl> {
+
+    /** Type ID of the codec. */
+    public static final int TYPE_ID = 18;
+
+    /** {@inheritDoc} */
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    /** {@inheritDoc} */
+    public Class<ServiceInformationImpl> getType() {
+        return ServiceInformationImpl.class;
+    }
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return 1;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(ServiceInformationImpl service, CodecOutput out) throws IOException {
+        out.writeDictionaryString(service.getEntityID());
+        out.writeTimestamp(service.getLoginInstant().getMillis());
+        out.writeObject(service.getAuthenticationMethod());
+        out.writeString(service.getNameIdentifier());
+        out.writeDictionaryString(service.getNameIdentifierFormat());
+        out.writeDictionaryString(service.getNameQualifier());
+        out.writeDictionaryString(service.getSPNameQualifier());
+    }
+
+    /** {@inheritDoc} */
+    public ServiceInformationImpl decode(CodecInput in, int version) throws IOException {
+        String entityId = in.readDictionaryString();
+        DateTime loginInstant = new DateTime(in.readTimestamp(), ISOChronology.getInstanceUTC());
+        AuthenticationMethodInformation authnMethod = in.readObject(AuthenticationMethodInformation.class);
+        ServiceInformationImpl service = new ServiceInformationImpl(entityId, loginInstant, authnMethod);
+        service.setNameIdentifier(in.readString(), in.readDictionaryString(), in.readDictionaryString(), in
+                .readDictionaryString());
+        return service;
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.opensaml.ws.transport.http.HTTPTransportUtils;
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecRegistry;
+import edu.internet2.middleware.shibboleth.idp.util.codec.DefaultCodecRegistry;
+
+/**
+ * Carries the whole state of an IdP session in the session cookie, so any node can serve the session without looking
+ * it up in the session manager.
+ * 
+ * The session, that is its principals, authentication methods and services, is encoded with a {@link CodecRegistry}
+ * then encrypted and authenticated with AES-GCM under the current key of a {@link SessionCookieKeySet}. The cookie
+ * value is the Base64 encoding of a format version, the secret index and epoch identifying the key, a random nonce
+ * and the ciphertext with its tag. The header is authenticated along with, if enabled, the address of the client the
+ * cookie is issued to. Sessions whose cookie would exceed the size budget are not encoded; they are left to the
+ * session manager and referenced by ID, as when this mode is not used.
+ * 
+ * A cookie stays valid until the session it carries becomes inactive, its key is no longer accepted or its session is
+ * {@link #revoke(Session) revoked}, as it is on logout. Revoked session IDs are remembered, by this node only, until
+ * every cookie issued for them has expired. Sessions the session manager evicts to stay within its memory budget are
+ * not revoked, their cookies remain usable.
+ * 
+ * By default sessions carried in cookies are also held by the session manager, so that the session store is still
+ * used as much as without the encoder. They must be whenever sessions are found other than through their cookie, by
+ * back-channel single logout, which looks them up by NameID, or to limit the number of sessions of a principal. If
+ * neither is needed, {@link #setStoreSessions(boolean)} keeps new sessions out of the session manager; a session that
+ * then outgrows the cookie size budget is lost.
+ */
+public class SessionCookieEncoder {
+
+    /** Default largest size, in characters, of a URL encoded cookie value. */
+    public static final int DEFAULT_MAX_COOKIE_SIZE = 3500;
+
+    /** Version of the cookie format. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** Length of the header identifying the format and key. */
+    private static final int HEADER_LENGTH = 6;
+
+    /** Length, in bytes, of the GCM nonce. */
+    private static final int NONCE_LENGTH = 12;
+
+    /** Length, in bits, of the GCM tag. */
+    private static final int TAG_BITS = 128;
+
+    /** Number of revocations after which expired revocations are purged. */
+    private static final int REVOCATION_PURGE_INTERVAL = 256;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(SessionCookieEncoder.class);
+
+    /** Keys used to encrypt the cookies. */
+    private final SessionCookieKeySet keySet;
+
+    /** Source of nonces. */
+    private final SecureRandom random;
+
+    /** Registry used to encode sessions. */
+    private CodecRegistry codecRegistry;
+
+    /** Largest size, in characters, of a URL encoded cookie value. */
+    private int maxCookieSize;
+
+    /** Whether cookies are bound to the address of the client they are issued to. */
+    private boolean bindToClientAddress;
+
+    /** Whether sessions carried in cookies are also held by the session manager. */
+    private boolean storeSessions;
+
+    /** Number of sessions encoded in to cookies. */
+    private final AtomicLong encoded;
+
+    /** Number of sessions too large to be encoded in to cookies. */
+    private final AtomicLong oversized;
+
+    /** Number of sessions decoded from cookies. */
+    private final AtomicLong decoded;
+
+    /** Number of cookies rejected because they could not be decrypted or their session had expired or was revoked. */
+    private final AtomicLong rejected;
+
+    /** Revoked session IDs and the time, in milliseconds since the epoch, until which their cookies are rejected. */
+    private final ConcurrentHashMap<String, Long> revokedSessions;
+
+    /** Number of sessions revoked. */
+    private final AtomicLong revoked;
+
+    /**
+     * Constructor.
+     * 
+     * @param keys keys used to encrypt the cookies
+     */
+    public SessionCookieEncoder(SessionCookieKeySet keys) {
+        if (keys == null) {
+            throw new IllegalArgumentException("Key set may not be null");
+        }
+        keySet = keys;
+        random = new SecureRandom();
+        codecRegistry = new DefaultCodecRegistry();
+        maxCookieSize = DEFAULT_MAX_COOKIE_SIZE;
+        bindToClientAddress = true;
+        storeSessions = true;
+        encoded = new AtomicLong();
+        oversized = new AtomicLong();
+        decoded = new AtomicLong();
+        rejected = new AtomicLong();
+        revokedSessions = new ConcurrentHashMap<String, Long>();
+        revoked = new AtomicLong();
+    }
+
+    /**
+     * Encodes a session in to a cookie value.
+     * 
+     * @param session the session
+     * @param clientAddress address of the client the cookie is issued to
+     * 
+     * @return the cookie value, which still needs to be URL encoded, or null if the session does not fit in to a
+     *         cookie or could not be encoded
+     */
+    public String encode(Session session, String clientAddress) {
+        byte[] plaintext;
+        try {
+            plaintext = codecRegistry.encode(session);
+        } catch (IOException e) {
+            log.error("Unable to encode session " + session.getSessionID(), e);
+            return null;
+        }
+
+        long epoch = keySet.getCurrentEpoch();
+        byte[] cookie = new byte[HEADER_LENGTH + NONCE_LENGTH + plaintext.length + TAG_BITS / 8];
+        cookie[0] = FORMAT_VERSION;
+        cookie[1] = 0;
+        for (int i = 0; i < 4; i++) {
+            cookie[2 + i] = (byte) (epoch >>> (24 - 8 * i));
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        System.arraycopy(nonce, 0, cookie, HEADER_LENGTH, NONCE_LENGTH);
+
+        GCMBlockCipher cipher = newCipher(true, keySet.getKey(0, epoch), nonce, cookie, clientAddress);
+        int length = cipher.processBytes(plaintext, 0, plaintext.length, cookie, HEADER_LENGTH + NONCE_LENGTH);
+        try {
+            cipher.doFinal(cookie, HEADER_LENGTH + NONCE_LENGTH + length);
+        } catch (InvalidCipherTextException e) {
+            log.error("Unable to encrypt session " + session.getSessionID(), e);
+            return null;
+        }
+
+        String cookieValue = Base64.encodeBytes(cookie, Base64.DONT_BREAK_LINES);
+        if (HTTPTransportUtils.urlEncode(cookieValue).length() > maxCookieSize) {
+            oversized.incrementAndGet();
+            log.debug("Session {} needs a {} byte cookie, more than the limit of {}", new Object[] {
+                    session.getSessionID(), cookieValue.length(), maxCookieSize});
+            return null;
+        }
+        encoded.incrementAndGet();
+        return cookieValue;
+    }
+
+    /**
+     * Decodes the session carried by a cookie value.
+     * 
+     * @param cookieValue the URL decoded cookie value
+     * @param clientAddress address of the client that sent the cookie
+     * 
+     * @return the session or null if the cookie is not valid or its session has expired
+     */
+    public Session decode(String cookieValue, String clientAddress) {
+        byte[] cookie = Base64.decode(cookieValue);
+        if (cookie == null || cookie.length < HEADER_LENGTH + NONCE_LENGTH + TAG_BITS / 8
+                || cookie[0] != FORMAT_VERSION) {
+            log.debug("Session cookie is not in a recognized format");
+            rejected.incrementAndGet();
+            return null;
+        }
+
+        long epoch = 0;
+        for (int i = 0; i < 4; i++) {
+            epoch = (epoch << 8) | (cookie[2 + i] & 0xff);
+        }
+        byte[] key = keySet.getKey(cookie[1] & 0xff, epoch);
+        if (key == null) {
+            log.debug("Session cookie was encrypted with a key that is no longer accepted");
+            rejected.incrementAndGet();
+            return null;
+        }
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(cookie, HEADER_LENGTH, nonce, 0, NONCE_LENGTH);
+        GCMBlockCipher cipher = newCipher(false, key, nonce, cookie, clientAddress);
+        int ciphertextLength = cookie.length - HEADER_LENGTH - NONCE_LENGTH;
+        byte[] plaintext = new byte[cipher.getOutputSize(ciphertextLength)];
+        Session session;
+        try {
+            int length = cipher.processBytes(cookie, HEADER_LENGTH + NONCE_LENGTH, ciphertextLength, plaintext, 0);
+            cipher.doFinal(plaintext, length);
+            session = codecRegistry.decode(plaintext, Session.class);
+        } catch (InvalidCipherTextException e) {
+            log.warn("Session cookie from {} failed authentication, it was tampered with or issued to another client",
+                    clientAddress);
+            rejected.incrementAndGet();
+            return null;
+        } catch (IOException e) {
+            log.warn("Unable to decode the session carried by a session cookie", e);
+            rejected.incrementAndGet();
+            return null;
+        }
+
+        if (session == null || session.getLastActivityInstant().getMillis() + session.getInactivityTimeout()
+                <= System.currentTimeMillis()) {
+            log.debug("Session cookie carries a session that has expired");
+            rejected.incrementAndGet();
+            return null;
+        }
+        if (isRevoked(session.getSessionID())) {
+            log.debug("Session cookie carries session {} which has been revoked", session.getSessionID());
+            rejected.incrementAndGet();
+            return null;
+        }
+        decoded.incrementAndGet();
+        return session;
+    }
+
+    /**
+     * Revokes a session, so cookies carrying it are rejected even though they have not expired. The revocation is
+     * kept until the session's inactivity timeout has passed, after which every cookie issued for it has expired.
+     * 
+     * @param session the session
+     */
+    public void revoke(Session session) {
+        if (session == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        revokedSessions.put(session.getSessionID(), now + session.getInactivityTimeout());
+        if (revoked.incrementAndGet() % REVOCATION_PURGE_INTERVAL == 0) {
+            Iterator<Map.Entry<String, Long>> revocations = revokedSessions.entrySet().iterator();
+            while (revocations.hasNext()) {
+                if (revocations.next().getValue() <= now) {
+                    revocations.remove();
+                }
+            }
+        }
+        log.debug("Revoked cookies carrying session {}", session.getSessionID());
+    }
+
+    /**
+     * Gets whether cookies carrying a session are rejected because the session was revoked.
+     * 
+     * @param sessionId ID of the session
+     * 
+     * @return true if the session was revoked and its cookies may not have expired yet
+     */
+    public boolean isRevoked(String sessionId) {
+        Long until = revokedSessions.get(sessionId);
+        if (until == null) {
+            return false;
+        }
+        if (until <= System.currentTimeMillis()) {
+            revokedSessions.remove(sessionId, until);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets whether a URL decoded session cookie value was produced by an encoder rather than by referencing a session
+     * by ID.
+     * 
+     * @param cookieValue the cookie value
+     * 
+     * @return true if the value carries an encrypted session
+     */
+    public static boolean isEncodedSession(String cookieValue) {
+        return cookieValue != null && cookieValue.indexOf('|') < 0;
+    }
+
+    /**
+     * Gets the keys used to encrypt the cookies.
+     * 
+     * @return keys used to encrypt the cookies
+     */
+    public SessionCookieKeySet getKeySet() {
+        return keySet;
+    }
+
+    /**
+     * Gets the registry used to encode sessions.
+     * 
+     * @return registry used to encode sessions
+     */
+    public CodecRegistry getCodecRegistry() {
+        return codecRegistry;
+    }
+
+    /**
+     * Sets the registry used to encode sessions.
+     * 
+     * @param registry registry used to encode sessions
+     */
+    public void setCodecRegistry(CodecRegistry registry) {
+        if (registry == null) {
+            throw new IllegalArgumentException("Codec registry may not be null");
+        }
+        codecRegistry = registry;
+    }
+
+    /**
+     * Gets the largest size, in characters, of a URL encoded cookie value.
+     * 
+     * @return largest size of a cookie value
+     */
+    public int getMaxCookieSize() {
+        return maxCookieSize;
+    }
+
+    /**
+     * Sets the largest size, in characters, of a URL encoded cookie value. Browsers limit a cookie, including its name
+     * and attributes, to 4096 bytes.
+     * 
+     * @param size largest size of a cookie value
+     */
+    public void setMaxCookieSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Maximum cookie size must be greater than zero");
+        }
+        maxCookieSize = size;
+    }
+
+    /**
+     * Gets whether cookies are bound to the address of the client they are issued to.
+     * 
+     * @return whether cookies are bound to the client address
+     */
+    public boolean isBindToClientAddress() {
+        return bindToClientAddress;
+    }
+
+    /**
+     * Sets whether cookies are bound to the address of the client they are issued to.
+     * 
+     * @param bind whether cookies are bound to the client address
+     */
+    public void setBindToClientAddress(boolean bind) {
+        bindToClientAddress = bind;
+    }
+
+    /**
+     * Gets whether sessions carried in cookies are also held by the session manager.
+     * 
+     * @return whether sessions carried in cookies are also held by the session manager
+     */
+    public boolean isStoreSessions() {
+        return storeSessions;
+    }
+
+    /**
+     * Sets whether sessions carried in cookies are also held by the session manager. They must be if single logout
+     * or a limit on the sessions of a principal is used.
+     * 
+     * @param store whether sessions carried in cookies are also held by the session manager
+     */
+    public void setStoreSessions(boolean store) {
+        storeSessions = store;
+    }
+
+    /**
+     * Gets the number of sessions encoded in to cookies.
+     * 
+     * @return number of sessions encoded in to cookies
+     */
+    public long getEncodedSessions() {
+        return encoded.get();
+    }
+
+    /**
+     * Gets the number of sessions too large to be encoded in to cookies.
+     * 
+     * @return number of sessions too large to be encoded in to cookies
+     */
+    public long getOversizedSessions() {
+        return oversized.get();
+    }
+
+    /**
+     * Gets the number of sessions decoded from cookies.
+     * 
+     * @return number of sessions decoded from cookies
+     */
+    public long getDecodedSessions() {
+        return decoded.get();
+    }
+
+    /**
+     * Gets the number of sessions revoked.
+     * 
+     * @return number of sessions revoked
+     */
+    public long getRevokedSessions() {
+        return revoked.get();
+    }
+
+    /**
+     * Gets the number of cookies rejected because they could not be decrypted or their session had expired or was
+     * revoked.
+     * 
+     * @return number of rejected cookies
+     */
+    public long getRejectedCookies() {
+        return rejected.get();
+    }
+
+    /**
+     * Creates a cipher authenticating the cookie header and, if enabled, the client address.
+     * 
+     * @param encrypt whether the cipher encrypts or decrypts
+     * @param key the key
+     * @param nonce the nonce
+     * @param cookie the cookie, whose header is authenticated
+     * @param clientAddress the client address
+     * 
+     * @return the cipher
+     */
+    private GCMBlockCipher newCipher(boolean encrypt, byte[] key, byte[] nonce, byte[] cookie, String clientAddress) {
+        byte[] address = new byte[0];
+        if (bindToClientAddress && clientAddress != null) {
+            address = clientAddress.getBytes();
+        }
+        byte[] associatedData = new byte[HEADER_LENGTH + address.length];
+        System.arraycopy(cookie, 0, associatedData, 0, HEADER_LENGTH);
+        System.arraycopy(address, 0, associatedData, HEADER_LENGTH, address.length);
+
+        GCMBlockCipher cipher = new GCMBlockCipher(new AESFastEngine());
+        cipher.init(encrypt, new AEADParameters(new KeyParameter(key), TAG_BITS, nonce, associatedData));
+        return cipher;
+    }
+}
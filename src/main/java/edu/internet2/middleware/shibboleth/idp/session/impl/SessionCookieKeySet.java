@@ -0,0 +1,200 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.DatatypeHelper;
+
+/**
+ * The keys used to encrypt session cookies.
+ * 
+ * Keys are derived from a list of shared secrets, every IdP node given the same secrets derives the same keys. Time is
+ * divided in to rotation intervals and each interval, or epoch, has its own key per secret, so keys rotate without
+ * any coordination between the nodes. Cookies are always encrypted with the key of the first secret for the current
+ * epoch; keys of the other secrets, and of a configurable number of previous epochs, are only accepted for
+ * decryption. To retire a secret, add its replacement at the head of the list and remove the old one once the
+ * sessions it protects have expired.
+ */
+public class SessionCookieKeySet {
+
+    /** Default length, in milliseconds, of a rotation interval. */
+    public static final long DEFAULT_ROTATION_INTERVAL = 24 * 60 * 60 * 1000L;
+
+    /** Minimum length, in bytes, of a secret. */
+    public static final int MIN_SECRET_LENGTH = 16;
+
+    /** Label mixed in to every derived key. */
+    private static final byte[] KEY_LABEL = "idp-session-cookie".getBytes();
+
+    /** Largest number of derived keys cached. */
+    private static final int MAX_CACHED_KEYS = 256;
+
+    /** Secrets keys are derived from, the first one is used for encryption. */
+    private final List<byte[]> secrets;
+
+    /** Length, in milliseconds, of a rotation interval. */
+    private final long rotationInterval;
+
+    /** Number of epochs before the current one whose keys are still accepted. */
+    private int previousEpochs;
+
+    /** Keys derived so far, indexed by secret and epoch. */
+    private final ConcurrentMap<Long, byte[]> derivedKeys;
+
+    /**
+     * Constructor.
+     * 
+     * @param base64Secrets Base64 encoded secrets, the first one is used for encryption
+     * @param interval length, in milliseconds, of a rotation interval
+     */
+    public SessionCookieKeySet(List<String> base64Secrets, long interval) {
+        if (base64Secrets == null || base64Secrets.isEmpty()) {
+            throw new IllegalArgumentException("At least one secret must be given");
+        }
+        if (base64Secrets.size() > 255) {
+            throw new IllegalArgumentException("No more than 255 secrets may be given");
+        }
+        if (interval < 1000) {
+            throw new IllegalArgumentException("Rotation interval must be at least one second");
+        }
+
+        secrets = new ArrayList<byte[]>(base64Secrets.size());
+        for (String base64Secret : base64Secrets) {
+            byte[] secret = null;
+            if (!DatatypeHelper.isEmpty(base64Secret)) {
+                secret = Base64.decode(DatatypeHelper.safeTrim(base64Secret));
+            }
+            if (secret == null || secret.length < MIN_SECRET_LENGTH) {
+                throw new IllegalArgumentException("Session cookie secrets must be at least " + MIN_SECRET_LENGTH
+                        + " Base64 encoded bytes");
+            }
+            secrets.add(secret);
+        }
+        rotationInterval = interval;
+        previousEpochs = 1;
+        derivedKeys = new ConcurrentHashMap<Long, byte[]>();
+    }
+
+    /**
+     * Gets the length, in milliseconds, of a rotation interval.
+     * 
+     * @return length of a rotation interval
+     */
+    public long getRotationInterval() {
+        return rotationInterval;
+    }
+
+    /**
+     * Gets the number of epochs before the current one whose keys are still accepted.
+     * 
+     * @return number of previous epochs whose keys are accepted
+     */
+    public int getPreviousEpochs() {
+        return previousEpochs;
+    }
+
+    /**
+     * Sets the number of epochs before the current one whose keys are still accepted. Cookies are re-encrypted under
+     * the current key whenever the session they carry is updated, so this need only cover the idle time of a session.
+     * 
+     * @param epochs number of previous epochs whose keys are accepted
+     */
+    public void setPreviousEpochs(int epochs) {
+        if (epochs < 0) {
+            throw new IllegalArgumentException("Number of previous epochs may not be negative");
+        }
+        previousEpochs = epochs;
+    }
+
+    /**
+     * Gets the number of secrets.
+     * 
+     * @return number of secrets
+     */
+    public int getSecretCount() {
+        return secrets.size();
+    }
+
+    /**
+     * Gets the current epoch.
+     * 
+     * @return the current epoch
+     */
+    public long getCurrentEpoch() {
+        return System.currentTimeMillis() / rotationInterval;
+    }
+
+    /**
+     * Gets the key of a secret for an epoch. Keys of epochs outside of the accepted range, which includes the next
+     * epoch to allow for clock skew between nodes, are not given out.
+     * 
+     * @param secretIndex index of the secret
+     * @param epoch the epoch
+     * 
+     * @return the key or null if the secret does not exist or the epoch is not accepted
+     */
+    public byte[] getKey(int secretIndex, long epoch) {
+        long currentEpoch = getCurrentEpoch();
+        if (secretIndex < 0 || secretIndex >= secrets.size() || epoch < currentEpoch - previousEpochs
+                || epoch > currentEpoch + 1) {
+            return null;
+        }
+
+        Long keyId = ((long) secretIndex << 48) | epoch;
+        byte[] key = derivedKeys.get(keyId);
+        if (key == null) {
+            key = deriveKey(secrets.get(secretIndex), epoch);
+            if (derivedKeys.size() >= MAX_CACHED_KEYS) {
+                derivedKeys.clear();
+            }
+            derivedKeys.put(keyId, key);
+        }
+        return key;
+    }
+
+    /**
+     * Derives the key of a secret for an epoch, as the HMAC-SHA256 of a fixed label and the epoch under the secret.
+     * 
+     * @param secret the secret
+     * @param epoch the epoch
+     * 
+     * @return the 256 bit key
+     */
+    private byte[] deriveKey(byte[] secret, long epoch) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(KEY_LABEL);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                mac.update((byte) (epoch >>> shift));
+            }
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not supported by this JVM", e);
+        }
+    }
+}
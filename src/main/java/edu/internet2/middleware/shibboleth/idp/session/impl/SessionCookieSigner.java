@@ -0,0 +1,229 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.DatatypeHelper;
+
+/**
+ * Signs and verifies the session cookies which reference sessions held by the session manager.
+ * 
+ * The signature is an HMAC-SHA256 over the client address and the session ID, keyed by a secret shared by the IdP
+ * rather than by the session's own secret, so a cookie can be verified before the session manager is consulted. Cookies
+ * are signed with the first key; the others are only accepted for verification, which allows keys to be rolled over.
+ * Keys must be configured, and be the same on every node, for cookies to be accepted across nodes and restarts. Where
+ * no signer is configured cookies are signed as before, with a SHA-1 digest over the session's own secret, the client
+ * address and the session ID, see {@link #signWithSessionSecret(byte[], byte[], byte[])}.
+ * 
+ * {@link Mac} instances, and the digesters used when signing with the session's secret, are kept per thread and
+ * signatures are compared in constant time.
+ */
+public class SessionCookieSigner {
+
+    /** MAC algorithm used to sign cookies. */
+    public static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /** Minimum length, in bytes, of a key. */
+    public static final int MIN_KEY_LENGTH = 16;
+
+    /** Per-thread digesters used to sign cookies with the secret of the session they reference. */
+    private static final ThreadLocal<MessageDigest> SESSION_SECRET_DIGESTERS = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to compute signature over session cookie material", e);
+            }
+        }
+    };
+
+    /** Keys cookies are signed with, the first one is used for signing. */
+    private final List<SecretKeySpec> keys;
+
+    /** Per-thread MACs, one for each key. */
+    private final ThreadLocal<Mac[]> macs;
+
+    /**
+     * Constructor.
+     * 
+     * @param base64Keys Base64 encoded keys, the first one is used for signing
+     */
+    public SessionCookieSigner(List<String> base64Keys) {
+        if (base64Keys == null || base64Keys.isEmpty()) {
+            throw new IllegalArgumentException("At least one key must be given");
+        }
+
+        keys = new ArrayList<SecretKeySpec>(base64Keys.size());
+        for (String base64Key : base64Keys) {
+            byte[] key = null;
+            if (!DatatypeHelper.isEmpty(base64Key)) {
+                key = Base64.decode(DatatypeHelper.safeTrim(base64Key));
+            }
+            if (key == null || key.length < MIN_KEY_LENGTH) {
+                throw new IllegalArgumentException("Session cookie signing keys must be at least " + MIN_KEY_LENGTH
+                        + " Base64 encoded bytes");
+            }
+            keys.add(new SecretKeySpec(key, MAC_ALGORITHM));
+        }
+
+        macs = new ThreadLocal<Mac[]>() {
+            protected Mac[] initialValue() {
+                return createMacs();
+            }
+        };
+
+        // fail now, rather than on the first request, if the keys or algorithm are not usable
+        createMacs();
+    }
+
+    /**
+     * Signs the content of a session cookie.
+     * 
+     * @param remoteAddress address of the client the cookie is issued to
+     * @param sessionId ID of the session the cookie references
+     * 
+     * @return the signature
+     */
+    public byte[] sign(byte[] remoteAddress, byte[] sessionId) {
+        return computeSignature(macs.get()[0], remoteAddress, sessionId);
+    }
+
+    /**
+     * Verifies the signature of a session cookie against each of the keys.
+     * 
+     * @param remoteAddress client address from the cookie
+     * @param sessionId session ID from the cookie
+     * @param signature signature from the cookie
+     * 
+     * @return true if the signature was made with one of the keys, false if not
+     */
+    public boolean verify(byte[] remoteAddress, byte[] sessionId, byte[] signature) {
+        if (remoteAddress == null || sessionId == null || signature == null) {
+            return false;
+        }
+
+        boolean valid = false;
+        for (Mac mac : macs.get()) {
+            valid |= isEqual(computeSignature(mac, remoteAddress, sessionId), signature);
+        }
+        return valid;
+    }
+
+    /**
+     * Signs the content of a session cookie with the secret of the session it references, as is done when no signer
+     * is configured. Such cookies can only be verified once the session has been looked up, but are accepted by every
+     * node, and after restarts, wherever the session itself is.
+     * 
+     * @param sessionSecret secret of the session the cookie references
+     * @param remoteAddress address of the client the cookie is issued to
+     * @param sessionId ID of the session the cookie references
+     * 
+     * @return the signature
+     */
+    public static byte[] signWithSessionSecret(byte[] sessionSecret, byte[] remoteAddress, byte[] sessionId) {
+        MessageDigest digester = SESSION_SECRET_DIGESTERS.get();
+        digester.reset();
+        digester.update(sessionSecret);
+        digester.update(remoteAddress);
+        digester.update(sessionId);
+        return digester.digest();
+    }
+
+    /**
+     * Verifies the signature of a session cookie made with the secret of the session it references.
+     * 
+     * @param sessionSecret secret of the session the cookie references
+     * @param remoteAddress client address from the cookie
+     * @param sessionId session ID from the cookie
+     * @param signature signature from the cookie
+     * 
+     * @return true if the signature was made with the session's secret, false if not
+     */
+    public static boolean verifyWithSessionSecret(byte[] sessionSecret, byte[] remoteAddress, byte[] sessionId,
+            byte[] signature) {
+        if (sessionSecret == null || remoteAddress == null || sessionId == null || signature == null) {
+            return false;
+        }
+        return isEqual(signWithSessionSecret(sessionSecret, remoteAddress, sessionId), signature);
+    }
+
+    /**
+     * Compares two byte arrays in time which depends only on their length, not on their content.
+     * 
+     * @param expected the expected value
+     * @param actual the value to check
+     * 
+     * @return true if both arrays are equal, false if not
+     */
+    protected static boolean isEqual(byte[] expected, byte[] actual) {
+        if (expected.length != actual.length) {
+            return false;
+        }
+
+        int difference = 0;
+        for (int i = 0; i < expected.length; i++) {
+            difference |= expected[i] ^ actual[i];
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Computes the signature over the content of a cookie. The address is length prefixed so that no two pairs of
+     * address and session ID are signed over the same bytes.
+     * 
+     * @param mac the MAC to use
+     * @param remoteAddress client address
+     * @param sessionId session ID
+     * 
+     * @return the signature
+     */
+    private byte[] computeSignature(Mac mac, byte[] remoteAddress, byte[] sessionId) {
+        mac.update((byte) (remoteAddress.length >>> 24));
+        mac.update((byte) (remoteAddress.length >>> 16));
+        mac.update((byte) (remoteAddress.length >>> 8));
+        mac.update((byte) remoteAddress.length);
+        mac.update(remoteAddress);
+        mac.update(sessionId);
+        return mac.doFinal();
+    }
+
+    /**
+     * Creates a MAC for each of the keys.
+     * 
+     * @return the MACs, in key order
+     */
+    private Mac[] createMacs() {
+        Mac[] newMacs = new Mac[keys.size()];
+        try {
+            for (int i = 0; i < newMacs.length; i++) {
+                newMacs[i] = Mac.getInstance(MAC_ALGORITHM);
+                newMacs[i].init(keys.get(i));
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to initialize " + MAC_ALGORITHM + " for session cookies", e);
+        }
+        return newMacs;
+    }
+}
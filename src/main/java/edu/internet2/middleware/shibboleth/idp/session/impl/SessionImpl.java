@@ -24,6 +24,8 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import javax.security.auth.Subject;
 
+import org.joda.time.DateTime;
+
 import edu.internet2.middleware.shibboleth.common.session.impl.AbstractSession;
 import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
 import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
@@ -45,6 +47,12 @@ public class SessionImpl extends AbstractSession implements Session {
     /** The list of services to which the user has logged in. */
     private Map<String, ServiceInformation> servicesInformation;
 
+    /** Last activity instant, in milliseconds since the epoch, kept so it can be read without allocating. */
+    private long lastActivityMillis;
+
+    /** Listener told when the last activity instant changes, may be null. */
+    private transient ActivityListener activityListener;
+
     /**
      * Constructor.
      * 
@@ -56,8 +64,40 @@ public class SessionImpl extends AbstractSession implements Session {
         super(sessionId, timeout);
 
         sessionSecret = secret;
-        authnMethods = new ConcurrentHashMap<String, AuthenticationMethodInformation>(2);
+        authnMethods = new AuthenticationMethodMap();
         servicesInformation = new ConcurrentHashMap<String, ServiceInformation>(2);
+        lastActivityMillis = super.getLastActivityInstant().getMillis();
+    }
+
+    /** {@inheritDoc} */
+    public void setLastActivityInstant(DateTime activity) {
+        ActivityListener listener;
+        synchronized (this) {
+            super.setLastActivityInstant(activity);
+            lastActivityMillis = activity.getMillis();
+            listener = activityListener;
+        }
+        if (listener != null) {
+            listener.activityChanged(this);
+        }
+    }
+
+    /**
+     * Sets the listener told when the last activity instant of this session changes.
+     * 
+     * @param listener the listener, may be null
+     */
+    synchronized void setActivityListener(ActivityListener listener) {
+        activityListener = listener;
+    }
+
+    /**
+     * Gets the last activity instant of this session.
+     * 
+     * @return last activity instant, in milliseconds since the epoch
+     */
+    public synchronized long getLastActivityMillis() {
+        return lastActivityMillis;
     }
 
     /** {@inheritDoc} */
@@ -70,6 +110,23 @@ public class SessionImpl extends AbstractSession implements Session {
         return authnMethods;
     }
 
+    /**
+     * Gets the earliest instant at which one of the authentication methods of this session expires. The instant is
+     * tracked as methods are added, so the methods are only scanned once it has passed.
+     * 
+     * @param now the current instant, in milliseconds since the epoch
+     * 
+     * @return earliest expiration instant, in milliseconds since the epoch, {@link Long#MAX_VALUE} if there are no
+     *         authentication methods or {@link Long#MIN_VALUE} if it is not known
+     */
+    public long getEarliestAuthenticationExpiration(long now) {
+        Map<String, AuthenticationMethodInformation> methods = getAuthenticationMethods();
+        if (methods instanceof AuthenticationMethodMap) {
+            return ((AuthenticationMethodMap) methods).getEarliestExpiration(now);
+        }
+        return Long.MIN_VALUE;
+    }
+
     /** {@inheritDoc} */
     public synchronized Map<String, ServiceInformation> getServicesInformation() {
         return servicesInformation;
@@ -107,4 +164,15 @@ public class SessionImpl extends AbstractSession implements Session {
 
         return principals.iterator().next().getName();
     }
-}
\ No newline at end of file
+
+    /** Listener told when the last activity instant of a session changes, such as its session manager persisting it. */
+    interface ActivityListener {
+
+        /**
+         * Called after the last activity instant of a session changed.
+         * 
+         * @param session the session
+         */
+        void activityChanged(SessionImpl session);
+    }
+}
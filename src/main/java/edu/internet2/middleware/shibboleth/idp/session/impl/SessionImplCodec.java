@@ -0,0 +1,106 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+
+import org.joda.time.DateTime;
+
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecInput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecOutput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.ObjectCodec;
+
+/** Codec for {@link SessionImpl}. */
+public class SessionImplCodec implements ObjectCodec<SessionImpl> {
+
+    /** Type ID of the codec. */
+    public static final int TYPE_ID = 16;
+
+    /** {@inheritDoc} */
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    /** {@inheritDoc} */
+    public Class<SessionImpl> getType() {
+        return SessionImpl.class;
+    }
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return 1;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(SessionImpl session, CodecOutput out) throws IOException {
+        out.writeString(session.getSessionID());
+        out.writeBytes(session.getSessionSecret());
+        out.writeVarLong(session.getInactivityTimeout());
+        out.writeTimestamp(session.getLastActivityMillis());
+        out.writeObject(session.getSubject());
+
+        Map<String, AuthenticationMethodInformation> authnMethods = session.getAuthenticationMethods();
+        out.writeVarInt(authnMethods.size());
+        for (Map.Entry<String, AuthenticationMethodInformation> authnMethod : authnMethods.entrySet()) {
+            out.writeDictionaryString(authnMethod.getKey());
+            out.writeObject(authnMethod.getValue());
+        }
+
+        Map<String, ServiceInformation> services = session.getServicesInformation();
+        out.writeVarInt(services.size());
+        for (Map.Entry<String, ServiceInformation> service : services.entrySet()) {
+            out.writeDictionaryString(service.getKey());
+            out.writeObject(service.getValue());
+        }
+    }
+
+    /** {@inheritDoc} */
+    public SessionImpl decode(CodecInput in, int version) throws IOException {
+        String sessionId = in.readString();
+        byte[] secret = in.readBytes();
+        long timeout = in.readVarLong();
+        SessionImpl session = new SessionImpl(sessionId, secret, timeout);
+        session.setLastActivityInstant(new DateTime(in.readTimestamp()));
+        session.setSubject(in.readObject(Subject.class));
+
+        int authnMethodCount = in.readVarInt();
+        for (int i = 0; i < authnMethodCount; i++) {
+            String authnMethod = in.readDictionaryString();
+            AuthenticationMethodInformation authnMethodInfo = in.readObject(AuthenticationMethodInformation.class);
+            if (authnMethod != null && authnMethodInfo != null) {
+                session.getAuthenticationMethods().put(authnMethod, authnMethodInfo);
+            }
+        }
+
+        int serviceCount = in.readVarInt();
+        for (int i = 0; i < serviceCount; i++) {
+            String entityId = in.readDictionaryString();
+            ServiceInformation serviceInfo = in.readObject(ServiceInformation.class);
+            if (entityId != null && serviceInfo != null) {
+                session.getServicesInformation().put(entityId, serviceInfo);
+            }
+        }
+
+        return session;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Secondary indexes over the sessions held by a {@link SessionManagerImpl}.
+ * 
+ * Two indexes are kept: a multi-valued index from principal name to the IDs of every session of that principal, and a
+ * single-valued index from a name identifier index (see {@link SessionManagerImpl#getIndexFromNameID}) to the ID of the
+ * session it was issued in. Index values are never stored as keys themselves; they are reduced to a compact 128-bit
+ * {@link IndexKey} so the indexes cost a fixed amount of memory per entry regardless of the length of the principal
+ * name or name identifier. All updates are atomic with respect to concurrent lookups and updates.
+ * 
+ * The index only holds session IDs, callers must check that an indexed session still exists and should call
+ * {@link #removeSession(String, List)} when a session is destroyed or expires.
+ */
+public class SessionIndex {
+
+    /** Digest algorithm used to derive index keys. */
+    private static final String KEY_DIGEST_ALGORITHM = "SHA-1";
+
+    /** Per-thread digester used to derive index keys. */
+    private static final ThreadLocal<MessageDigest> DIGESTER = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(KEY_DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(KEY_DIGEST_ALGORITHM + " digest is not supported by this JVM", e);
+            }
+        }
+    };
+
+    /** Index from principal name to session IDs. */
+    private final ConcurrentMap<IndexKey, PrincipalSessions> principalIndex;
+
+    /** Index from name identifier index to session ID. */
+    private final ConcurrentMap<IndexKey, String> nameIDSessions;
+
+    /** Constructor. */
+    public SessionIndex() {
+        principalIndex = new ConcurrentHashMap<IndexKey, PrincipalSessions>(1024, 0.75f, 64);
+        nameIDSessions = new ConcurrentHashMap<IndexKey, String>(1024, 0.75f, 64);
+    }
+
+    /**
+     * Adds a session to the set of sessions of a principal.
+     * 
+     * @param principalName name of the principal
+     * @param sessionId ID of the session
+     */
+    public void addPrincipalSession(String principalName, String sessionId) {
+        IndexKey key = IndexKey.valueOf(principalName);
+        while (true) {
+            PrincipalSessions sessions = principalIndex.get(key);
+            if (sessions == null) {
+                PrincipalSessions newSessions = new PrincipalSessions();
+                sessions = principalIndex.putIfAbsent(key, newSessions);
+                if (sessions == null) {
+                    sessions = newSessions;
+                }
+            }
+            if (sessions.add(sessionId)) {
+                return;
+            }
+            // the set was emptied and detached from the index concurrently, retry with a fresh set
+            principalIndex.remove(key, sessions);
+        }
+    }
+
+    /**
+     * Gets the IDs of the sessions of a principal.
+     * 
+     * @param principalName name of the principal
+     * 
+     * @return IDs of the sessions of the principal, never null
+     */
+    public List<String> getPrincipalSessions(String principalName) {
+        if (principalName == null) {
+            return Collections.emptyList();
+        }
+
+        PrincipalSessions sessions = principalIndex.get(IndexKey.valueOf(principalName));
+        if (sessions == null) {
+            return Collections.emptyList();
+        }
+        return sessions.getSessionIds();
+    }
+
+    /**
+     * Removes a session from the set of sessions of a principal.
+     * 
+     * @param principalName name of the principal
+     * @param sessionId ID of the session
+     * 
+     * @return true if the session was indexed under the principal, false if not
+     */
+    public boolean removePrincipalSession(String principalName, String sessionId) {
+        if (principalName == null) {
+            return false;
+        }
+
+        IndexKey key = IndexKey.valueOf(principalName);
+        PrincipalSessions sessions = principalIndex.get(key);
+        if (sessions == null) {
+            return false;
+        }
+
+        boolean removed = sessions.remove(sessionId);
+        if (sessions.isDetached()) {
+            principalIndex.remove(key, sessions);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all sessions of a principal from the index.
+     * 
+     * @param principalName name of the principal
+     * 
+     * @return IDs of the sessions that were indexed under the principal, never null
+     */
+    public List<String> removePrincipal(String principalName) {
+        if (principalName == null) {
+            return Collections.emptyList();
+        }
+
+        PrincipalSessions sessions = principalIndex.remove(IndexKey.valueOf(principalName));
+        if (sessions == null) {
+            return Collections.emptyList();
+        }
+        return sessions.detach();
+    }
+
+    /**
+     * Binds a name identifier index to a session, unless it is already bound to a session.
+     * 
+     * @param nameIDIndex the name identifier index
+     * @param sessionId ID of the session
+     * 
+     * @return the ID of the session the index is bound to, which is the given session ID if the binding was added
+     */
+    public String addNameIDSession(String nameIDIndex, String sessionId) {
+        String existing = nameIDSessions.putIfAbsent(IndexKey.valueOf(nameIDIndex), sessionId);
+        if (existing == null) {
+            return sessionId;
+        }
+        return existing;
+    }
+
+    /**
+     * Gets the ID of the session a name identifier index is bound to.
+     * 
+     * @param nameIDIndex the name identifier index
+     * 
+     * @return ID of the session or null if the index is not bound
+     */
+    public String getNameIDSession(String nameIDIndex) {
+        if (nameIDIndex == null) {
+            return null;
+        }
+        return nameIDSessions.get(IndexKey.valueOf(nameIDIndex));
+    }
+
+    /**
+     * Removes a name identifier index.
+     * 
+     * @param nameIDIndex the name identifier index
+     * 
+     * @return ID of the session the index was bound to or null if the index was not bound
+     */
+    public String removeNameID(String nameIDIndex) {
+        if (nameIDIndex == null) {
+            return null;
+        }
+        return nameIDSessions.remove(IndexKey.valueOf(nameIDIndex));
+    }
+
+    /**
+     * Removes a name identifier index only if it is bound to the given session.
+     * 
+     * @param nameIDIndex the name identifier index
+     * @param sessionId ID of the session
+     * 
+     * @return true if the index was removed, false if not
+     */
+    public boolean removeNameID(String nameIDIndex, String sessionId) {
+        if (nameIDIndex == null) {
+            return false;
+        }
+        return nameIDSessions.remove(IndexKey.valueOf(nameIDIndex), sessionId);
+    }
+
+    /**
+     * Removes every index entry, principal or name identifier, that points at a given session.
+     * 
+     * @param sessionId ID of the session
+     * @param indexes the values the session was indexed under
+     */
+    public void removeSession(String sessionId, List<String> indexes) {
+        for (String index : indexes) {
+            if (!removeNameID(index, sessionId)) {
+                removePrincipalSession(index, sessionId);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of principals currently indexed.
+     * 
+     * @return number of principals currently indexed
+     */
+    public int getPrincipalCount() {
+        return principalIndex.size();
+    }
+
+    /**
+     * Gets the number of name identifiers currently indexed.
+     * 
+     * @return number of name identifiers currently indexed
+     */
+    public int getNameIDCount() {
+        return nameIDSessions.size();
+    }
+
+    /** A 128-bit key derived from an index value. */
+    public static final class IndexKey implements Serializable {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 4305532513470474398L;
+
+        /** High 64 bits of the key. */
+        private final long high;
+
+        /** Low 64 bits of the key. */
+        private final long low;
+
+        /**
+         * Constructor.
+         * 
+         * @param highBits high 64 bits of the key
+         * @param lowBits low 64 bits of the key
+         */
+        private IndexKey(long highBits, long lowBits) {
+            high = highBits;
+            low = lowBits;
+        }
+
+        /**
+         * Derives the key for an index value.
+         * 
+         * @param value the index value
+         * 
+         * @return the key for the value
+         */
+        public static IndexKey valueOf(String value) {
+            if (value == null) {
+                throw new IllegalArgumentException("Index value may not be null");
+            }
+
+            byte[] digest;
+            try {
+                MessageDigest digester = DIGESTER.get();
+                digester.reset();
+                digest = digester.digest(value.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("UTF-8 encoding is not supported by this JVM", e);
+            }
+
+            long highBits = 0;
+            long lowBits = 0;
+            for (int i = 0; i < 8; i++) {
+                highBits = (highBits << 8) | (digest[i] & 0xff);
+                lowBits = (lowBits << 8) | (digest[i + 8] & 0xff);
+            }
+            return new IndexKey(highBits, lowBits);
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            return (int) (low ^ (low >>> 32));
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+
+            if (!(obj instanceof IndexKey)) {
+                return false;
+            }
+
+            IndexKey other = (IndexKey) obj;
+            return high == other.high && low == other.low;
+        }
+    }
+
+    /**
+     * The set of session IDs of a principal. Once the last session is removed the set is detached and no longer
+     * accepts additions, which lets it be removed from the index without losing a concurrent addition.
+     */
+    private static final class PrincipalSessions {
+
+        /** Session IDs, most recently added last. */
+        private final ArrayList<String> sessionIds = new ArrayList<String>(2);
+
+        /** Whether this set has been detached from the index. */
+        private boolean detached;
+
+        /**
+         * Adds a session ID to the set.
+         * 
+         * @param sessionId the session ID
+         * 
+         * @return true if the ID is now in the set, false if the set has been detached
+         */
+        synchronized boolean add(String sessionId) {
+            if (detached) {
+                return false;
+            }
+            if (!sessionIds.contains(sessionId)) {
+                sessionIds.add(sessionId);
+            }
+            return true;
+        }
+
+        /**
+         * Removes a session ID from the set, detaching the set if it becomes empty.
+         * 
+         * @param sessionId the session ID
+         * 
+         * @return true if the ID was in the set
+         */
+        synchronized boolean remove(String sessionId) {
+            boolean removed = sessionIds.remove(sessionId);
+            if (sessionIds.isEmpty()) {
+                detached = true;
+            }
+            return removed;
+        }
+
+        /**
+         * Detaches the set.
+         * 
+         * @return the session IDs that were in the set
+         */
+        synchronized List<String> detach() {
+            detached = true;
+            return new ArrayList<String>(sessionIds);
+        }
+
+        /**
+         * Gets whether the set has been detached.
+         * 
+         * @return whether the set has been detached
+         */
+        synchronized boolean isDetached() {
+            return detached;
+        }
+
+        /**
+         * Gets a snapshot of the session IDs in the set.
+         * 
+         * @return session IDs, most recently added last
+         */
+        synchronized List<String> getSessionIds() {
+            return new ArrayList<String>(sessionIds);
+        }
+    }
+}
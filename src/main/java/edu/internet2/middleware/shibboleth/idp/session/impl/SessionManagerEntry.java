@@ -34,15 +34,13 @@
 package edu.internet2.middleware.shibboleth.idp.session.impl;
 
 import java.util.List;
-import java.util.Vector;
-
-import org.joda.time.DateTime;
-import org.opensaml.util.storage.AbstractExpiringObject;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.util.AbstractExpiringEntry;
 
 /** Session store entry. */
-public class SessionManagerEntry extends AbstractExpiringObject {
+public class SessionManagerEntry extends AbstractExpiringEntry {
 
     /** Serial version UID. */
     private static final long serialVersionUID = -9160494097986587739L;
@@ -53,6 +51,18 @@ public class SessionManagerEntry extends AbstractExpiringObject {
     /** Indexes for this session. */
     private List<String> indexes;
 
+    /** Secondary index to clean up when this entry expires. */
+    private transient SessionIndex sessionIndex;
+
+    /** Estimated memory, in bytes, last accounted for this entry by its session manager. */
+    private transient volatile long estimatedSize;
+
+    /** Counts of the things the session held when its size was last estimated, packed in to one value. */
+    private transient volatile long estimatedShape;
+
+    /** Value of {@link System#nanoTime()} when the session was last used through its session manager. */
+    private transient volatile long lastUsed;
+
     /**
      * Constructor.
      * 
@@ -60,9 +70,9 @@ public class SessionManagerEntry extends AbstractExpiringObject {
      * @param lifetime lifetime of session
      */
     public SessionManagerEntry(Session session, long lifetime) {
-        super(new DateTime().plus(lifetime));
+        super(lifetime);
         userSession = session;
-        indexes = new Vector<String>();
+        indexes = new CopyOnWriteArrayList<String>();
         indexes.add(userSession.getSessionID());
     }
 
@@ -93,8 +103,85 @@ public class SessionManagerEntry extends AbstractExpiringObject {
         return indexes;
     }
 
+    /**
+     * Sets the secondary index the session's indexes are held in, so they can be removed when the entry expires.
+     * 
+     * @param index secondary session index
+     */
+    void setSessionIndex(SessionIndex index) {
+        sessionIndex = index;
+    }
+
+    /**
+     * Gets the estimated memory, in bytes, last accounted for this entry by its session manager.
+     * 
+     * @return estimated size of the entry
+     */
+    long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    /**
+     * Sets the estimated memory, in bytes, accounted for this entry by its session manager.
+     * 
+     * @param size estimated size of the entry
+     */
+    void setEstimatedSize(long size) {
+        estimatedSize = size;
+    }
+
+    /**
+     * Gets the counts of the things the session held when its size was last estimated.
+     * 
+     * @return packed counts of the session's indexes, principals, authentication methods and services
+     */
+    long getEstimatedShape() {
+        return estimatedShape;
+    }
+
+    /**
+     * Sets the counts of the things the session held when its size was last estimated.
+     * 
+     * @param shape packed counts of the session's indexes, principals, authentication methods and services
+     */
+    void setEstimatedShape(long shape) {
+        estimatedShape = shape;
+    }
+
+    /**
+     * Gets the value of {@link System#nanoTime()} when the session was last used through its session manager.
+     * 
+     * @return instant the session was last used
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Sets the value of {@link System#nanoTime()} when the session was last used through its session manager.
+     * 
+     * @param instant instant the session was last used
+     */
+    void setLastUsed(long instant) {
+        lastUsed = instant;
+    }
+
     /** {@inheritDoc} */
-    public DateTime getExpirationTime() {
-        return userSession.getLastActivityInstant().plus(userSession.getInactivityTimeout());
+    public void onExpire() {
+        if (sessionIndex != null) {
+            sessionIndex.removeSession(getSessionId(), indexes);
+        }
+    }
+
+    /**
+     * Gets the instant the session expires, which is its inactivity timeout after its last activity.
+     * 
+     * {@inheritDoc}
+     */
+    public long getExpirationInstant() {
+        if (userSession instanceof SessionImpl) {
+            return ((SessionImpl) userSession).getLastActivityMillis() + userSession.getInactivityTimeout();
+        }
+        return userSession.getLastActivityInstant().getMillis() + userSession.getInactivityTimeout();
     }
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.IOException;
+import java.util.List;
+
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecInput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecOutput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.ObjectCodec;
+
+/**
+ * Codec for {@link SessionManagerEntry}. The entry's expiration is derived from its session so only the session and
+ * the indexes recorded with it are written.
+ */
+public class SessionManagerEntryCodec implements ObjectCodec<SessionManagerEntry> {
+
+    /** Type ID of the codec. */
+    public static final int TYPE_ID = 25;
+
+    /** {@inheritDoc} */
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    /** {@inheritDoc} */
+    public Class<SessionManagerEntry> getType() {
+        return SessionManagerEntry.class;
+    }
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return 1;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(SessionManagerEntry entry, CodecOutput out) throws IOException {
+        out.writeObject(entry.getSession());
+
+        // the first index is always the session ID, which is added back by the entry's constructor
+        List<String> indexes = entry.getSessionIndexes();
+        out.writeVarInt(indexes.size() - 1);
+        for (int i = 1; i < indexes.size(); i++) {
+            out.writeString(indexes.get(i));
+        }
+    }
+
+    /** {@inheritDoc} */
+    public SessionManagerEntry decode(CodecInput in, int version) throws IOException {
+        Session session = in.readObject(Session.class);
+        if (session == null) {
+            throw new IOException("Session manager entry does not contain a session");
+        }
+
+        SessionManagerEntry entry = new SessionManagerEntry(session, 0);
+        int indexCount = in.readVarInt();
+        for (int i = 0; i < indexCount; i++) {
+            entry.getSessionIndexes().add(in.readString());
+        }
+        return entry;
+    }
+}
@@ -17,40 +17,101 @@
 
 package edu.internet2.middleware.shibboleth.idp.session.impl;
 
-import java.security.SecureRandom;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
-import org.apache.commons.ssl.util.Hex;
-import org.opensaml.saml1.core.NameIdentifier;
-import org.opensaml.saml2.core.NameID;
 import org.opensaml.util.storage.StorageService;
 import org.opensaml.xml.util.DatatypeHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
-import edu.internet2.middleware.shibboleth.common.session.SessionManager;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.util.ConcurrentStorageService;
+import edu.internet2.middleware.shibboleth.idp.util.FileBackedStorageService;
+
+/**
+ * Manager of IdP sessions.
+ * 
+ * The manager may be given a memory budget. It keeps a running estimate of the heap held by its sessions and, once
+ * the estimate exceeds the budget, destroys the least recently used sessions until the estimate is back under
+ * {@value #EVICTION_LOW_WATER_MARK} percent of the budget. Looking up a session only records, in its entry, when it
+ * was used; no lock is taken. The session to evict is the least recently used of {@value #EVICTION_SAMPLE_SIZE}
+ * sessions sampled by a hand sweeping over all the tracked sessions. The estimate of a session is taken when it is
+ * created and taken again, adjusting the running estimate by the difference, when it is used after it gained or lost
+ * an index, principal, authentication method or service. Sessions which went away without being destroyed by this
+ * manager, such as those expired by the storage service, are retired from the running estimate as sessions are
+ * created.
+ */
+public class SessionManagerImpl extends AbstractSessionManager {
 
-/** Manager of IdP sessions. */
-public class SessionManagerImpl implements SessionManager<Session> {
+    /** Percentage of the memory budget down to which sessions are evicted once the budget is exceeded. */
+    public static final int EVICTION_LOW_WATER_MARK = 90;
 
-    /** Class logger. */
-    private final Logger log = LoggerFactory.getLogger(SessionManagerImpl.class);
+    /** Number of sessions sampled to find the least recently used one. */
+    public static final int EVICTION_SAMPLE_SIZE = 8;
 
-    /** Number of random bits within a session ID. */
-    private final int sessionIDSize = 32;
+    /** Maximum number of expired sessions retired from the memory estimate each time a session is created. */
+    public static final int EXPIRED_RETIREMENTS_PER_CREATION = 2;
+
+    /**
+     * Estimated memory, in bytes, of an empty session: the store entry, the session, its subject, secret and maps and
+     * the slot the entry takes in the store.
+     */
+    public static final long SESSION_OVERHEAD = 2048;
 
-    /** A {@link SecureRandom} PRNG to generate session IDs. */
-    private final SecureRandom prng = new SecureRandom();
+    /** Estimated memory, in bytes, of an authentication method record, not counting its strings. */
+    public static final long AUTHENTICATION_METHOD_OVERHEAD = 160;
+
+    /** Estimated memory, in bytes, of a service record, not counting its strings. */
+    public static final long SERVICE_OVERHEAD = 192;
+
+    /** Estimated memory, in bytes, of a principal or of an index of the session, not counting its strings. */
+    public static final long INDEX_OVERHEAD = 64;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(SessionManagerImpl.class);
 
     /** Backing service used to store sessions. */
     private StorageService<String, SessionManagerEntry> sessionStore;
 
+    /** Backing service cast to its concurrent type, or null if it does not support conditional updates. */
+    private ConcurrentStorageService<String, SessionManagerEntry> concurrentSessionStore;
+
+    /** Backing service cast to its file backed type, or null if sessions are not persisted by this manager. */
+    private FileBackedStorageService<SessionManagerEntry> fileBackedSessionStore;
+
+    /** Listener journaling the activity of sessions, or null if sessions are not persisted by this manager. */
+    private SessionImpl.ActivityListener activityListener;
+
     /** Partition in which entries are stored. */
     private String partition;
 
-    /** Lifetime, in milliseconds, of session. */
-    private long sessionLifetime;
+    /** Memory, in bytes, the sessions of this manager may hold before the least recently active are evicted. */
+    private long memoryBudget;
+
+    /** Estimated memory, in bytes, currently held by the sessions of this manager. */
+    private final AtomicLong estimatedMemory = new AtomicLong();
+
+    /** Entries of the sessions accounted for in the memory estimate, indexed by session ID. */
+    private final ConcurrentHashMap<String, SessionManagerEntry> trackedSessions =
+            new ConcurrentHashMap<String, SessionManagerEntry>(1024);
+
+    /** Hand sweeping over the tracked sessions to sample them, only used while holding the eviction lock. */
+    private Iterator<SessionManagerEntry> evictionHand;
+
+    /** Number of sessions destroyed to keep within the memory budget. */
+    private final AtomicLong memoryEvictions = new AtomicLong();
+
+    /** Lock ensuring only one thread at a time evicts or retires sessions. */
+    private final ReentrantLock evictionLock = new ReentrantLock();
 
     /**
      * Constructor.
@@ -59,9 +120,7 @@ public class SessionManagerImpl implements SessionManager<Session> {
      * @param lifetime lifetime, in milliseconds, of sessions
      */
     public SessionManagerImpl(StorageService<String, SessionManagerEntry> storageService, long lifetime) {
-        sessionStore = storageService;
-        partition = "session";
-        sessionLifetime = lifetime;
+        this(storageService, null, lifetime);
     }
 
     /**
@@ -71,57 +130,55 @@ public class SessionManagerImpl implements SessionManager<Session> {
      * @param storageParition partition in which sessions are stored
      * @param lifetime lifetime, in milliseconds, of sessions
      */
+    @SuppressWarnings("unchecked")
     public SessionManagerImpl(StorageService<String, SessionManagerEntry> storageService, String storageParition,
             long lifetime) {
+        super(lifetime);
         sessionStore = storageService;
+        if (storageService instanceof ConcurrentStorageService) {
+            concurrentSessionStore = (ConcurrentStorageService<String, SessionManagerEntry>) storageService;
+        }
         if (!DatatypeHelper.isEmpty(storageParition)) {
             partition = DatatypeHelper.safeTrim(storageParition);
         } else {
             partition = "session";
         }
-        sessionLifetime = lifetime;
+        if (storageService instanceof FileBackedStorageService) {
+            fileBackedSessionStore = (FileBackedStorageService<SessionManagerEntry>) storageService;
+            activityListener = new SessionImpl.ActivityListener() {
+                /** {@inheritDoc} */
+                public void activityChanged(SessionImpl session) {
+                    fileBackedSessionStore.update(partition, session.getSessionID());
+                }
+            };
+        }
+
+        restoreSessionIndex();
     }
 
     /** {@inheritDoc} */
     public Session createSession() {
-        // generate a random session ID
-        byte[] sid = new byte[sessionIDSize];
-        prng.nextBytes(sid);
-        String sessionID = Hex.encode(sid);
-        
-        byte[] sessionSecret = new byte[16];
-        prng.nextBytes(sessionSecret);
-
-        Session session =
-                new SessionImpl(sessionID, sessionSecret, sessionLifetime);
-        SessionManagerEntry sessionEntry =
-                new SessionManagerEntry(session, sessionLifetime);
+        String sessionID = generateSessionID();
+        SessionImpl session = new SessionImpl(sessionID, generateSessionSecret(), getSessionLifetime());
+        session.setActivityListener(activityListener);
+        SessionManagerEntry sessionEntry = new SessionManagerEntry(session, getSessionLifetime());
+        sessionEntry.setSessionIndex(getSessionIndex());
         sessionStore.put(partition, sessionID, sessionEntry);
+        track(sessionEntry);
 
         MDC.put("idpSessionId", sessionID);
         log.trace("Created session {}", sessionID);
+
+        retireExpiredSessions(EXPIRED_RETIREMENTS_PER_CREATION);
+        if (memoryBudget > 0 && estimatedMemory.get() > memoryBudget) {
+            enforceMemoryBudget(sessionID);
+        }
         return session;
     }
 
     /** {@inheritDoc} */
     public Session createSession(String principal) {
-        // generate a random session ID
-        byte[] sid = new byte[sessionIDSize];
-        prng.nextBytes(sid);
-        String sessionID = Hex.encode(sid);
-        
-        byte[] sessionSecret = new byte[16];
-        prng.nextBytes(sessionSecret);
-
-        Session session =
-                new SessionImpl(sessionID, sessionSecret, sessionLifetime);
-        SessionManagerEntry sessionEntry =
-                new SessionManagerEntry(session, sessionLifetime);
-        sessionStore.put(partition, sessionID, sessionEntry);
-
-        MDC.put("idpSessionId", sessionID);
-        log.trace("Created session {}", sessionID);
-        return session;
+        return createSession();
     }
 
     /** {@inheritDoc} */
@@ -134,97 +191,394 @@ public class SessionManagerImpl implements SessionManager<Session> {
         if (sessionEntry == null) {
             return;
         }
-        for(String sessionIndex : sessionEntry.getSessionIndexes()){
-            sessionStore.remove(partition, sessionIndex);
+        getSessionIndex().removeSession(sessionEntry.getSessionId(), sessionEntry.getSessionIndexes());
+        boolean removed;
+        if (concurrentSessionStore != null) {
+            removed = concurrentSessionStore.remove(partition, sessionEntry.getSessionId(), sessionEntry);
+        } else {
+            removed = sessionStore.remove(partition, sessionEntry.getSessionId()) != null;
+        }
+        if (removed) {
+            untrack(sessionEntry);
         }
-        sessionStore.remove(partition, sessionID);
     }
 
-    /** {@inheritDoc} */
-    public Session getSession(String sessionID) {
-        if (sessionID == null) {
-            return null;
+    /**
+     * Gets the memory, in bytes, the sessions of this manager may hold before the least recently active are evicted.
+     * 
+     * @return memory budget, 0 for no limit
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the memory, in bytes, the sessions of this manager may hold before the least recently active are evicted.
+     * 
+     * @param budget memory budget, 0 for no limit
+     */
+    public void setMemoryBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Session memory budget may not be negative");
         }
+        memoryBudget = budget;
+    }
 
-        SessionManagerEntry sessionEntry = sessionStore.get(partition, sessionID);
-        if (sessionEntry == null) {
-            return null;
+    /**
+     * Gets the estimated memory, in bytes, currently held by the sessions of this manager.
+     * 
+     * @return estimated memory held by sessions
+     */
+    public long getEstimatedMemory() {
+        return estimatedMemory.get();
+    }
+
+    /**
+     * Gets the number of sessions destroyed to keep within the memory budget.
+     * 
+     * @return number of sessions evicted by the memory budget
+     */
+    public long getMemoryEvictions() {
+        return memoryEvictions.get();
+    }
+
+    /**
+     * Estimates the memory held by a session store entry. The estimate is deliberately rough, it only needs to grow
+     * with the number and length of the things a session accumulates.
+     * 
+     * @param sessionEntry the entry
+     * 
+     * @return estimated memory, in bytes, held by the entry
+     */
+    protected long estimateSize(SessionManagerEntry sessionEntry) {
+        Session session = sessionEntry.getSession();
+        long size = SESSION_OVERHEAD + estimateSize(session.getSessionID());
+
+        for (String index : sessionEntry.getSessionIndexes()) {
+            size += INDEX_OVERHEAD + estimateSize(index);
         }
 
-        if (sessionEntry.isExpired()) {
-            destroySession(sessionEntry.getSessionId());
-            return null;
-        } else {
-            return sessionEntry.getSession();
+        if (session.getSubject() != null) {
+            for (Principal principal : session.getSubject().getPrincipals()) {
+                size += INDEX_OVERHEAD + estimateSize(principal.getName());
+            }
+        }
+
+        for (AuthenticationMethodInformation authnMethod : session.getAuthenticationMethods().values()) {
+            size += AUTHENTICATION_METHOD_OVERHEAD + estimateSize(authnMethod.getAuthenticationMethod());
         }
+
+        for (ServiceInformation service : session.getServicesInformation().values()) {
+            size += SERVICE_OVERHEAD + estimateSize(service.getEntityID()) + estimateSize(service.getNameIdentifier())
+                    + estimateSize(service.getNameIdentifierFormat());
+        }
+
+        return size;
     }
 
-    /** {@inheritDoc} */
-    public boolean indexSession(Session session, String index) {
-        if (sessionStore.contains(partition, index)) {
-            return false;
+    /**
+     * Destroys the least recently used sessions of this manager, if the estimated memory they hold exceeds the memory
+     * budget, until it is back under the low water mark. If another thread is already doing so this method returns
+     * immediately.
+     * 
+     * @param currentSessionId ID of a session which must not be evicted, may be null
+     */
+    protected void enforceMemoryBudget(String currentSessionId) {
+        if (!evictionLock.tryLock()) {
+            return;
         }
 
-        SessionManagerEntry sessionEntry = sessionStore.get(partition, session.getSessionID());
-        if (sessionEntry == null) {
-            return false;
+        try {
+            long budget = memoryBudget;
+            long memory = estimatedMemory.get();
+            if (budget <= 0 || memory <= budget) {
+                return;
+            }
+
+            long lowWaterMark = budget / 100 * EVICTION_LOW_WATER_MARK;
+            int evicted = 0;
+            while (estimatedMemory.get() > lowWaterMark) {
+                SessionManagerEntry sessionEntry = sampleLeastRecentlyUsed(currentSessionId);
+                if (sessionEntry == null) {
+                    break;
+                }
+                if (retire(sessionEntry)) {
+                    continue;
+                }
+                log.trace("Evicting session {} to keep within the session memory budget", sessionEntry.getSessionId());
+                destroySession(sessionEntry.getSessionId());
+                untrack(sessionEntry);
+                evicted++;
+            }
+            memoryEvictions.addAndGet(evicted);
+            log.warn("Estimated session memory of {} bytes exceeded the budget of {} bytes, evicted {} sessions",
+                    new Object[] { memory, budget, evicted });
+        } finally {
+            evictionLock.unlock();
         }
+    }
 
-        if (sessionEntry.getSessionIndexes().contains(index)) {
-            return true;
+    /** {@inheritDoc} */
+    protected Session getLiveSession(String sessionID) {
+        SessionManagerEntry sessionEntry = getLiveEntry(sessionID);
+        if (sessionEntry == null) {
+            return null;
         }
+        sessionEntry.setLastUsed(System.nanoTime());
+        refreshEstimate(sessionEntry);
+        return sessionEntry.getSession();
+    }
 
-        sessionEntry.getSessionIndexes().add(index);
-        sessionStore.put(partition, index, sessionEntry);
-        log.trace("Added index {} to session {}", index, session.getSessionID());
-        return true;
+    /** {@inheritDoc} */
+    protected void recordSessionIndex(Session session, String index) {
+        SessionManagerEntry sessionEntry = sessionStore.get(partition, session.getSessionID());
+        if (sessionEntry != null && !sessionEntry.getSessionIndexes().contains(index)) {
+            sessionEntry.getSessionIndexes().add(index);
+            refreshEstimate(sessionEntry);
+            if (fileBackedSessionStore != null) {
+                fileBackedSessionStore.update(partition, sessionEntry.getSessionId());
+            }
+        }
     }
 
     /** {@inheritDoc} */
-    public void removeSessionIndex(String index) {
-        SessionManagerEntry sessionEntry = sessionStore.remove(partition, index);
+    protected void forgetSessionIndex(String sessionID, String index) {
+        SessionManagerEntry sessionEntry = sessionStore.get(partition, sessionID);
         if (sessionEntry != null) {
-            log.trace("Removing index {} for session {}", index, sessionEntry.getSessionId());
+            log.trace("Removing index {} for session {}", index, sessionID);
             sessionEntry.getSessionIndexes().remove(index);
+            refreshEstimate(sessionEntry);
+            if (fileBackedSessionStore != null) {
+                fileBackedSessionStore.update(partition, sessionID);
+            }
         }
     }
 
-    /** {@inheritDoc} */
-    public String getIndexFromNameID(NameIdentifier nameIdentifier) {
-        if (nameIdentifier == null || nameIdentifier.getNameIdentifier() == null) {
-            return null;
+    /**
+     * Starts accounting for a session entry in the memory estimate, as the most recently used session.
+     * 
+     * @param sessionEntry the entry
+     */
+    private void track(SessionManagerEntry sessionEntry) {
+        SessionManagerEntry previous;
+        synchronized (sessionEntry) {
+            sessionEntry.setEstimatedShape(getShape(sessionEntry));
+            sessionEntry.setEstimatedSize(estimateSize(sessionEntry));
+            sessionEntry.setLastUsed(System.nanoTime());
+            previous = trackedSessions.put(sessionEntry.getSessionId(), sessionEntry);
+            estimatedMemory.addAndGet(sessionEntry.getEstimatedSize());
         }
-        StringBuilder b = new StringBuilder();
-        b.append(nameIdentifier.getNameIdentifier());
-        b.append("|");
-        b.append(nameIdentifier.getFormat());
-        if (nameIdentifier.getNameQualifier() != null) {
-            b.append("|");
-            b.append(nameIdentifier.getNameQualifier());
+        if (previous != null && previous != sessionEntry) {
+            synchronized (previous) {
+                estimatedMemory.addAndGet(-previous.getEstimatedSize());
+            }
         }
+    }
 
-        return b.toString();
+    /**
+     * Stops accounting for a session entry in the memory estimate.
+     * 
+     * @param sessionEntry the entry
+     */
+    private void untrack(SessionManagerEntry sessionEntry) {
+        synchronized (sessionEntry) {
+            if (trackedSessions.remove(sessionEntry.getSessionId(), sessionEntry)) {
+                estimatedMemory.addAndGet(-sessionEntry.getEstimatedSize());
+            }
+        }
     }
 
-    /** {@inheritDoc} */
-    public String getIndexFromNameID(NameID nameIdentifier) {
-        if (nameIdentifier == null || nameIdentifier.getValue() == null) {
-            return null;
+    /**
+     * Adjusts the memory estimate to the current size of a session entry, if its session gained or lost an index,
+     * principal, authentication method or service since it was last estimated.
+     * 
+     * @param sessionEntry the entry
+     */
+    private void refreshEstimate(SessionManagerEntry sessionEntry) {
+        long shape = getShape(sessionEntry);
+        if (shape == sessionEntry.getEstimatedShape()) {
+            return;
         }
-        StringBuilder b = new StringBuilder();
-        b.append(nameIdentifier.getValue());
-        b.append("|");
-        b.append(nameIdentifier.getFormat());
-        if (nameIdentifier.getNameQualifier() != null || nameIdentifier.getSPNameQualifier() != null) {
-            b.append("|");
-            b.append(nameIdentifier.getNameQualifier());
+
+        synchronized (sessionEntry) {
+            if (trackedSessions.get(sessionEntry.getSessionId()) != sessionEntry) {
+                return;
+            }
+            long size = estimateSize(sessionEntry);
+            estimatedMemory.addAndGet(size - sessionEntry.getEstimatedSize());
+            sessionEntry.setEstimatedSize(size);
+            sessionEntry.setEstimatedShape(shape);
         }
-        if (nameIdentifier.getSPNameQualifier() != null) {
-            b.append("|");
-            b.append(nameIdentifier.getSPNameQualifier());
+    }
+
+    /**
+     * Gets the counts of the things a session entry holds, which change whenever its estimated size is likely to.
+     * 
+     * @param sessionEntry the entry
+     * 
+     * @return counts of the entry's indexes, principals, authentication methods and services, packed in to one value
+     */
+    private long getShape(SessionManagerEntry sessionEntry) {
+        Session session = sessionEntry.getSession();
+        long principals = 0;
+        if (session.getSubject() != null) {
+            principals = session.getSubject().getPrincipals().size();
         }
+        return Math.min(sessionEntry.getSessionIndexes().size(), 0xffff) | Math.min(principals, 0xffff) << 16
+                | (long) Math.min(session.getAuthenticationMethods().size(), 0xffff) << 32
+                | (long) Math.min(session.getServicesInformation().size(), 0xffff) << 48;
+    }
 
-        return b.toString();
+    /**
+     * Gets the least recently used of the next {@value #EVICTION_SAMPLE_SIZE} entries of the sessions accounted for in
+     * the memory estimate. Must only be called while holding the eviction lock.
+     * 
+     * @param excludedSessionId ID of a session which must not be returned, may be null
+     * 
+     * @return the entry, or null if no other session is accounted for
+     */
+    private SessionManagerEntry sampleLeastRecentlyUsed(String excludedSessionId) {
+        SessionManagerEntry leastRecentlyUsed = null;
+        boolean restarted = false;
+        int sampled = 0;
+        while (sampled < EVICTION_SAMPLE_SIZE) {
+            if (evictionHand == null || !evictionHand.hasNext()) {
+                if (restarted) {
+                    break;
+                }
+                evictionHand = trackedSessions.values().iterator();
+                restarted = true;
+                continue;
+            }
+
+            SessionManagerEntry sessionEntry = evictionHand.next();
+            sampled++;
+            if (sessionEntry.getSessionId().equals(excludedSessionId)) {
+                continue;
+            }
+            if (leastRecentlyUsed == null || sessionEntry.getLastUsed() - leastRecentlyUsed.getLastUsed() < 0) {
+                leastRecentlyUsed = sessionEntry;
+            }
+        }
+        return leastRecentlyUsed;
+    }
+
+    /**
+     * Retires sampled sessions from the memory estimate for as long as they have expired or are no longer in the
+     * storage service. If another thread is evicting or retiring sessions this method returns immediately.
+     * 
+     * @param max maximum number of sessions to retire
+     */
+    private void retireExpiredSessions(int max) {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+
+        try {
+            for (int i = 0; i < max; i++) {
+                SessionManagerEntry sessionEntry = sampleLeastRecentlyUsed(null);
+                if (sessionEntry == null || !retire(sessionEntry)) {
+                    return;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
     }
-}
 
+    /**
+     * Retires a session entry from the memory estimate, destroying its session, if it has expired or is no longer in
+     * the storage service.
+     * 
+     * @param sessionEntry the entry
+     * 
+     * @return true if the entry was retired, false if it is still live
+     */
+    private boolean retire(SessionManagerEntry sessionEntry) {
+        boolean stored = sessionStore.get(partition, sessionEntry.getSessionId()) == sessionEntry;
+        if (stored && !sessionEntry.isExpired()) {
+            return false;
+        }
+        if (stored) {
+            destroySession(sessionEntry.getSessionId());
+        }
+        untrack(sessionEntry);
+        return true;
+    }
+
+    /**
+     * Rebuilds the secondary session index from the sessions already in the store, such as those a
+     * {@link FileBackedStorageService} loaded from disk.
+     */
+    private void restoreSessionIndex() {
+        List<String> sessionIds = new ArrayList<String>();
+        Iterator<String> keys = sessionStore.getKeys(partition);
+        while (keys != null && keys.hasNext()) {
+            sessionIds.add(keys.next());
+        }
+
+        int restored = 0;
+        for (String sessionId : sessionIds) {
+            SessionManagerEntry sessionEntry = getLiveEntry(sessionId);
+            if (sessionEntry == null || !sessionId.equals(sessionEntry.getSessionId())) {
+                continue;
+            }
+
+            sessionEntry.setSessionIndex(getSessionIndex());
+            if (sessionEntry.getSession() instanceof SessionImpl) {
+                ((SessionImpl) sessionEntry.getSession()).setActivityListener(activityListener);
+            }
+            track(sessionEntry);
+            String principalName = sessionEntry.getSession().getPrincipalName();
+            for (String index : sessionEntry.getSessionIndexes()) {
+                if (index.equals(sessionId)) {
+                    continue;
+                }
+                if (index.equals(principalName)) {
+                    getSessionIndex().addPrincipalSession(index, sessionId);
+                } else {
+                    getSessionIndex().addNameIDSession(index, sessionId);
+                }
+            }
+            restored++;
+        }
+
+        if (restored > 0) {
+            log.info("Restored the indexes of {} existing sessions", restored);
+        }
+    }
+
+    /**
+     * Gets the store entry for a session ID, destroying the session if it has expired.
+     * 
+     * @param sessionID ID of the session
+     * 
+     * @return the entry or null if there is no current session with the given ID
+     */
+    protected SessionManagerEntry getLiveEntry(String sessionID) {
+        SessionManagerEntry sessionEntry = sessionStore.get(partition, sessionID);
+        if (sessionEntry == null) {
+            return null;
+        }
+
+        if (sessionEntry.isExpired()) {
+            destroySession(sessionEntry.getSessionId());
+            return null;
+        }
+        return sessionEntry;
+    }
+
+    /**
+     * Estimates the memory held by a string.
+     * 
+     * @param string the string, may be null
+     * 
+     * @return estimated memory, in bytes, held by the string
+     */
+    private long estimateSize(String string) {
+        if (string == null) {
+            return 0;
+        }
+        return 40 + 2 * string.length();
+    }
+}
@@ -103,6 +103,39 @@ public class SingleLogoutContext implements Serializable {
         this.serviceInformation = Collections.unmodifiableMap(serviceInfo);
     }
 
+    /**
+     * Constructor used to restore a SingleLogoutContext. The logout information
+     * map is not copied, it is filled in by the caller once the context exists.
+     *
+     * @param profileHandlerURL URL for the SLO profile handler
+     * @param requesterEntityID entityID of the requester SP (may be null)
+     * @param responderEntityID entityID of the IdP
+     * @param requestSAMLMessageID ID of the SAML LogoutRequest message
+     * @param relayState RelayState associated with the LogoutRequest
+     * @param frontChannelResponseTimeout timeout for frontchannel requests
+     * @param idpSessionID IdP session ID of the principal
+     * @param serviceInformation logout information of each session participant
+     */
+    SingleLogoutContext(
+            String profileHandlerURL,
+            String requesterEntityID,
+            String responderEntityID,
+            String requestSAMLMessageID,
+            String relayState,
+            int frontChannelResponseTimeout,
+            String idpSessionID,
+            Map<String, LogoutInformation> serviceInformation) {
+
+        this.profileHandlerURL = profileHandlerURL;
+        this.requesterEntityID = requesterEntityID;
+        this.responderEntityID = responderEntityID;
+        this.requestSAMLMessageID = requestSAMLMessageID;
+        this.relayState = relayState;
+        this.frontChannelResponseTimeout = frontChannelResponseTimeout;
+        this.idpSessionID = idpSessionID;
+        this.serviceInformation = Collections.unmodifiableMap(serviceInformation);
+    }
+
     /**
      * Create a new instance of SingleLogoutContext.
      * 
@@ -181,6 +214,15 @@ public class SingleLogoutContext implements Serializable {
         return idpSessionID;
     }
 
+    /**
+     * Returns the timeout value for frontchannel requests.
+     *
+     * @return timeout in milliseconds
+     */
+    int getFrontChannelResponseTimeout() {
+        return frontChannelResponseTimeout;
+    }
+
     /**
      * Returns the logout information associated with each session participant.
      *
@@ -468,6 +510,42 @@ public class SingleLogoutContext implements Serializable {
             return dName;
         }
 
+        /**
+         * Returns the localized display names of the SP.
+         *
+         * @return map of language and display name, or NULL if not set
+         */
+        synchronized Map<String, String> getDisplayNames() {
+            return displayName;
+        }
+
+        /**
+         * Returns the timestamp of the logout request.
+         *
+         * @return timestamp in milliseconds, or 0 if the logout is not attempted
+         */
+        synchronized long getLogoutTimestamp() {
+            return logoutTimestamp;
+        }
+
+        /**
+         * Restores the progress of the logout.
+         *
+         * @param status status of the logout
+         * @param requestId SAML logout request ID (may be null)
+         * @param displayNames map of language and display name (may be null)
+         * @param timestamp timestamp of the logout request, or 0
+         */
+        synchronized void restore(LogoutStatus status, String requestId,
+                Map<String, String> displayNames, long timestamp) {
+            this.logoutStatus = status;
+            this.logoutRequestId = requestId;
+            if (displayNames != null) {
+                this.displayName = Collections.unmodifiableMap(displayNames);
+            }
+            this.logoutTimestamp = timestamp;
+        }
+
         /**
          * Returns the elapsed milliseconds since the logout request is sent.
          * This method must only be called when the request timestamp is set.
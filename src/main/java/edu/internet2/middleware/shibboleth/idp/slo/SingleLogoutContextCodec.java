@@ -0,0 +1,145 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.slo;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutInformation;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutStatus;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecInput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecOutput;
+import edu.internet2.middleware.shibboleth.idp.util.codec.ObjectCodec;
+
+/**
+ * Codec for {@link SingleLogoutContext}. Logout statuses are written by ordinal, so new statuses may only be added at
+ * the end of {@link LogoutStatus}.
+ */
+public class SingleLogoutContextCodec implements ObjectCodec<SingleLogoutContext> {
+
+    /** Type ID of the codec. */
+    public static final int TYPE_ID = 24;
+
+    /** {@inheritDoc} */
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    /** {@inheritDoc} */
+    public Class<SingleLogoutContext> getType() {
+        return SingleLogoutContext.class;
+    }
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return 1;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(SingleLogoutContext sloContext, CodecOutput out) throws IOException {
+        out.writeString(sloContext.getProfileHandlerURL());
+        out.writeDictionaryString(sloContext.getRequesterEntityID());
+        out.writeDictionaryString(sloContext.getResponderEntityID());
+        out.writeString(sloContext.getRequestSAMLMessageID());
+        out.writeString(sloContext.getRelayState());
+        out.writeString(sloContext.getIdpSessionID());
+        out.writeVarInt(sloContext.getFrontChannelResponseTimeout());
+
+        Map<String, LogoutInformation> services = sloContext.getServiceInformation();
+        out.writeVarInt(services.size());
+        for (LogoutInformation service : services.values()) {
+            out.writeDictionaryString(service.getEntityID());
+            out.writeString(service.getNameIdentifier());
+            out.writeDictionaryString(service.getNameIdentifierFormat());
+            out.writeDictionaryString(service.getNameQualifier());
+            out.writeDictionaryString(service.getSPNameQualifier());
+            out.writeVarInt(service.getLogoutStatus().ordinal());
+            out.writeString(service.getLogoutRequestId());
+
+            Map<String, String> displayNames = service.getDisplayNames();
+            if (displayNames == null) {
+                out.writeVarInt(0);
+            } else {
+                out.writeVarInt(displayNames.size() + 1);
+                for (Map.Entry<String, String> displayName : displayNames.entrySet()) {
+                    out.writeDictionaryString(displayName.getKey());
+                    out.writeString(displayName.getValue());
+                }
+            }
+
+            long logoutTimestamp = service.getLogoutTimestamp();
+            out.writeBoolean(logoutTimestamp != 0);
+            if (logoutTimestamp != 0) {
+                out.writeTimestamp(logoutTimestamp);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public SingleLogoutContext decode(CodecInput in, int version) throws IOException {
+        String profileHandlerURL = in.readString();
+        String requesterEntityID = in.readDictionaryString();
+        String responderEntityID = in.readDictionaryString();
+        String requestSAMLMessageID = in.readString();
+        String relayState = in.readString();
+        String idpSessionID = in.readString();
+        int frontChannelResponseTimeout = in.readVarInt();
+
+        Map<String, LogoutInformation> services = new HashMap<String, LogoutInformation>();
+        SingleLogoutContext sloContext = new SingleLogoutContext(profileHandlerURL, requesterEntityID,
+                responderEntityID, requestSAMLMessageID, relayState, frontChannelResponseTimeout, idpSessionID,
+                services);
+
+        LogoutStatus[] statuses = LogoutStatus.values();
+        int serviceCount = in.readVarInt();
+        for (int i = 0; i < serviceCount; i++) {
+            String entityID = in.readDictionaryString();
+            String nameIdentifier = in.readString();
+            String nameIdentifierFormat = in.readDictionaryString();
+            String nameQualifier = in.readDictionaryString();
+            String spNameQualifier = in.readDictionaryString();
+            int statusOrdinal = in.readVarInt();
+            if (statusOrdinal >= statuses.length) {
+                throw new IOException("Unknown logout status " + statusOrdinal);
+            }
+            String logoutRequestId = in.readString();
+
+            Map<String, String> displayNames = null;
+            int displayNameCount = in.readVarInt();
+            if (displayNameCount > 0) {
+                displayNames = new HashMap<String, String>(displayNameCount - 1);
+                for (int j = 1; j < displayNameCount; j++) {
+                    displayNames.put(in.readDictionaryString(), in.readString());
+                }
+            }
+
+            long logoutTimestamp = 0;
+            if (in.readBoolean()) {
+                logoutTimestamp = in.readTimestamp();
+            }
+
+            LogoutInformation service = sloContext.new LogoutInformation(entityID, nameIdentifier,
+                    nameIdentifierFormat, nameQualifier, spNameQualifier, statuses[statusOrdinal]);
+            service.restore(statuses[statusOrdinal], logoutRequestId, displayNames, logoutTimestamp);
+            services.put(entityID, service);
+        }
+
+        return sloContext;
+    }
+}
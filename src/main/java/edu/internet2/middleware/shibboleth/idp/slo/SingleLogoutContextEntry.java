@@ -16,14 +16,13 @@
  */
 package edu.internet2.middleware.shibboleth.idp.slo;
 
-import org.joda.time.DateTime;
-import org.opensaml.util.storage.AbstractExpiringObject;
+import edu.internet2.middleware.shibboleth.idp.util.AbstractExpiringEntry;
 
 /**
  *
  * @author Adam Lantos  NIIF / HUNGARNET
  */
-public class SingleLogoutContextEntry extends AbstractExpiringObject {
+public class SingleLogoutContextEntry extends AbstractExpiringEntry {
     private static final long serialVersionUID = 8456530807574247919L;
 
     /** Stored single logout context. */
@@ -36,7 +35,7 @@ public class SingleLogoutContextEntry extends AbstractExpiringObject {
      * @param lifetime lifetime of the entry
      */
     public SingleLogoutContextEntry(SingleLogoutContext ctx, long lifetime) {
-        super(new DateTime().plus(lifetime));
+        super(lifetime);
         singleLogoutContext = ctx;
     }
 
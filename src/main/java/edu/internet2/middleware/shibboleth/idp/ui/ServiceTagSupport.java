@@ -28,7 +28,6 @@ import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.jsp.tagext.BodyTagSupport;
 
-import org.opensaml.saml2.common.Extensions;
 import org.opensaml.saml2.metadata.AttributeConsumingService;
 import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.LocalizedString;
@@ -37,7 +36,6 @@ import org.opensaml.saml2.metadata.SPSSODescriptor;
 import org.opensaml.saml2.metadata.ServiceName;
 import org.opensaml.samlext.saml2mdui.DisplayName;
 import org.opensaml.samlext.saml2mdui.UIInfo;
-import org.opensaml.xml.XMLObject;
 import org.owasp.esapi.ESAPI;
 import org.owasp.esapi.Encoder;
 import org.slf4j.Logger;
@@ -45,6 +43,7 @@ import org.slf4j.LoggerFactory;
 
 import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartyConfigurationManager;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
+import edu.internet2.middleware.shibboleth.idp.profile.MetadataIndex;
 import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 
 /**
@@ -156,11 +155,24 @@ public class ServiceTagSupport extends BodyTagSupport {
      * @return the SPs EntityDescriptor
      */
     protected EntityDescriptor getSPEntityDescriptor() {
+        MetadataIndex.EntityRecord spRecord = getSPEntityRecord();
+        if (spRecord == null) {
+            return null;
+        }
+        return spRecord.getEntityDescriptor();
+    }
+
+    /**
+     * Get the indexed metadata record for the relying party.
+     * 
+     * @return the SPs metadata record
+     */
+    protected MetadataIndex.EntityRecord getSPEntityRecord() {
         LoginContext loginContext;
         HttpServletRequest request;
         ServletContext application;
         RelyingPartyConfigurationManager rpConfigMngr;
-        EntityDescriptor spEntity;
+        MetadataIndex.EntityRecord spRecord;
 
         //
         // Populate up those things that jsp gives us.
@@ -181,9 +193,9 @@ public class ServiceTagSupport extends BodyTagSupport {
         if (loginContext == null || rpConfigMngr == null) {
             return null;
         }
-        spEntity = HttpServletHelper.getRelyingPartyMetadata(loginContext.getRelyingPartyId(), rpConfigMngr);
+        spRecord = HttpServletHelper.getRelyingPartyMetadataRecord(loginContext.getRelyingPartyId(), rpConfigMngr);
 
-        return spEntity;
+        return spRecord;
     }
 
     /**
@@ -192,27 +204,16 @@ public class ServiceTagSupport extends BodyTagSupport {
      * @return the first UIInfo for the SP.
      */
     protected UIInfo getSPUIInfo() {
-        EntityDescriptor spEntity = getSPEntityDescriptor();
-        Extensions exts;
+        MetadataIndex.EntityRecord spRecord = getSPEntityRecord();
 
-        if (null == spEntity) {
+        if (null == spRecord) {
             //
             // all done
             //
             return null;
         }
 
-        for (RoleDescriptor role : spEntity.getRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME)) {
-            exts = role.getExtensions();
-            if (exts != null) {
-                for (XMLObject object : exts.getOrderedChildren()) {
-                    if (object instanceof UIInfo) {
-                        return (UIInfo) object;
-                    }
-                }
-            }
-        }
-        return null;
+        return spRecord.getUIInfo();
     }
 
     /**
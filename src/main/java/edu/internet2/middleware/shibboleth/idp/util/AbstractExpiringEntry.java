@@ -0,0 +1,70 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.io.Serializable;
+
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.opensaml.util.storage.ExpiringObject;
+
+/**
+ * Base class for {@link ExpiringObject}s kept in a storage service. The expiration instant is held as epoch
+ * milliseconds so checking whether an entry has expired does not allocate.
+ */
+public abstract class AbstractExpiringEntry implements ExpiringObject, Serializable {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 2395113406218549312L;
+
+    /** Instant, in milliseconds since the epoch, at which this entry expires. */
+    private long expirationInstant;
+
+    /**
+     * Constructor.
+     * 
+     * @param lifetime lifetime of the entry, in milliseconds, starting now
+     */
+    protected AbstractExpiringEntry(long lifetime) {
+        expirationInstant = System.currentTimeMillis() + lifetime;
+    }
+
+    /**
+     * Gets the instant, in milliseconds since the epoch, at which this entry expires.
+     * 
+     * @return instant at which this entry expires
+     */
+    public long getExpirationInstant() {
+        return expirationInstant;
+    }
+
+    /** {@inheritDoc} */
+    public DateTime getExpirationTime() {
+        return new DateTime(getExpirationInstant(), ISOChronology.getInstanceUTC());
+    }
+
+    /** {@inheritDoc} */
+    public boolean isExpired() {
+        return getExpirationInstant() <= System.currentTimeMillis();
+    }
+
+    /** Called once the entry has been removed from its storage service because it expired. */
+    public void onExpire() {
+
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import org.opensaml.util.storage.StorageService;
+
+/**
+ * A {@link StorageService} which supports atomic conditional updates, letting callers avoid the races of checking and
+ * then updating an entry. Storage services wrapping another one implement it so that the wrapped service's atomicity is
+ * not hidden from their callers.
+ * 
+ * @param <KeyType> object type of the keys
+ * @param <ValueType> object type of the values
+ */
+public interface ConcurrentStorageService<KeyType, ValueType> extends StorageService<KeyType, ValueType> {
+
+    /**
+     * Stores the given value under the given key unless the key is already bound to a value.
+     * 
+     * @param partition partition in which to store the value
+     * @param key key of the value
+     * @param value value to store
+     * 
+     * @return the value currently bound to the key, or null if the given value was stored
+     */
+    public ValueType putIfAbsent(String partition, KeyType key, ValueType value);
+
+    /**
+     * Removes the given key only if it is currently bound to the given value.
+     * 
+     * @param partition partition from which to remove the key
+     * @param key key to remove
+     * @param value value the key is expected to be bound to
+     * 
+     * @return true if the key was removed, false if not
+     */
+    public boolean remove(String partition, KeyType key, ValueType value);
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.util.Iterator;
+
+import org.opensaml.util.storage.ExpiringObject;
+import org.opensaml.util.storage.StorageService;
+
+/**
+ * A {@link StorageService} which hands every {@link ExpiringObject} stored in it to a
+ * {@link TimerWheelExpirationService}, so that entries are expired as they come due rather than by periodically
+ * sweeping the whole store. Removing a key cancels its scheduled expiration, so the expiration service never holds on
+ * to removed entries. All storage is delegated to a wrapped storage service.
+ * 
+ * @param <KeyType> object type of the keys
+ * @param <ValueType> object type of the values
+ */
+public class ExpiringStorageService<KeyType, ValueType> implements StorageService<KeyType, ValueType> {
+
+    /** Storage service holding the entries. */
+    private final StorageService<KeyType, ValueType> delegate;
+
+    /** Service which expires the entries. */
+    private final TimerWheelExpirationService expirationService;
+
+    /**
+     * Constructor.
+     * 
+     * @param store storage service holding the entries
+     * @param expirer service which expires the entries
+     */
+    public ExpiringStorageService(StorageService<KeyType, ValueType> store, TimerWheelExpirationService expirer) {
+        if (store == null || expirer == null) {
+            throw new IllegalArgumentException("Storage service and expiration service may not be null");
+        }
+        delegate = store;
+        expirationService = expirer;
+    }
+
+    /** {@inheritDoc} */
+    public boolean contains(String partition, KeyType key) {
+        return delegate.contains(partition, key);
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<String> getPartitions() {
+        return delegate.getPartitions();
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<KeyType> getKeys(String partition) {
+        return delegate.getKeys(partition);
+    }
+
+    /** {@inheritDoc} */
+    public ValueType get(String partition, KeyType key) {
+        return delegate.get(partition, key);
+    }
+
+    /** {@inheritDoc} */
+    public ValueType put(String partition, KeyType key, ValueType value) {
+        ValueType previous = delegate.put(partition, key, value);
+        if (value instanceof ExpiringObject) {
+            expirationService.schedule(delegate, partition, key, (ExpiringObject) value);
+        }
+        return previous;
+    }
+
+    /** {@inheritDoc} */
+    public ValueType remove(String partition, KeyType key) {
+        ValueType removed = delegate.remove(partition, key);
+        if (removed instanceof ExpiringObject) {
+            expirationService.cancel(delegate, partition, key);
+        }
+        return removed;
+    }
+
+    /**
+     * Gets the storage service holding the entries.
+     * 
+     * @return storage service holding the entries
+     */
+    public StorageService<KeyType, ValueType> getStorageService() {
+        return delegate;
+    }
+}
@@ -0,0 +1,1170 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.opensaml.util.storage.ExpiringObject;
+import org.opensaml.util.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecRegistry;
+import edu.internet2.middleware.shibboleth.idp.util.codec.DefaultCodecRegistry;
+
+/**
+ * A {@link StorageService} which keeps its entries in a wrapped, in-memory, storage service and makes them durable
+ * across restarts with a write-ahead log on local disk.
+ * 
+ * Reads are served by the wrapped storage service alone. Each put or remove of a persisted partition is applied in
+ * memory and its key is queued, unless it is already waiting, for a single writer thread. The writer encodes the
+ * value each key holds when it gets to it with a {@link CodecRegistry}, so the calling thread neither encodes nor
+ * waits on the disk, and a key changed many times before it is written is only written once. The writer appends every
+ * record of a batch to the journal in one go and syncs the journal at most once per sync interval, so many requests
+ * share the cost of each fsync. The queue is bounded; once it is full, callers wait for the writer to catch up rather
+ * than letting the backlog grow without limit.
+ * 
+ * Periodically, or once the journal grows past a size limit, the writer starts a new journal and another thread
+ * writes a snapshot of every live entry, after which older journals and snapshots are deleted; the writer keeps
+ * writing and syncing the new journal meanwhile. On startup the latest snapshot is loaded and the journals written
+ * since are replayed in order; a record torn by a crash ends the replay of its journal. Expired entries are dropped
+ * while loading.
+ * 
+ * Values changed in place, without being put again, are only persisted by the next snapshot unless
+ * {@link #update(String, String)} is called after changing them. Conditional updates are atomic if the wrapped
+ * storage service is a {@link ConcurrentStorageService}.
+ * 
+ * {@link #initialize()} must be called before the storage service is used and {@link #destroy()} when it is no
+ * longer needed.
+ * 
+ * @param <ValueType> object type of the values
+ */
+public class FileBackedStorageService<ValueType> implements ConcurrentStorageService<String, ValueType>, Runnable {
+
+    /** Default maximum time, in milliseconds, a write may wait before the journal is synced to disk. */
+    public static final long DEFAULT_SYNC_INTERVAL = 10;
+
+    /** Default time, in milliseconds, between snapshots. */
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 300000;
+
+    /** Default size, in bytes, a journal may grow to before a snapshot is taken. */
+    public static final long DEFAULT_MAX_JOURNAL_SIZE = 64 * 1024 * 1024;
+
+    /** Default maximum number of keys waiting to be written before callers wait for the writer. */
+    public static final int DEFAULT_MAX_PENDING_KEYS = 65536;
+
+    /** Marker at the start of a journal. */
+    private static final int JOURNAL_MAGIC = 0x53484a4c;
+
+    /** Marker at the start of a snapshot. */
+    private static final int SNAPSHOT_MAGIC = 0x5348534e;
+
+    /** Version of the file format. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** Operation code of a put record. */
+    private static final int OP_PUT = 1;
+
+    /** Operation code of a remove record. */
+    private static final int OP_REMOVE = 2;
+
+    /** Largest record accepted when reading, anything larger is taken to be corruption. */
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    /** Number of locks used to make conditional updates atomic over storage services which do not support them. */
+    private static final int LOCK_STRIPES = 64;
+
+    /** Time, in milliseconds, a caller waits for room in the queue before checking the writer is still running. */
+    private static final long QUEUE_WAIT = 100;
+
+    /** Pattern of journal file names. */
+    private static final Pattern JOURNAL_NAME = Pattern.compile("journal-(\\d+)\\.log");
+
+    /** Pattern of snapshot file names. */
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("snapshot-(\\d+)\\.dat");
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(FileBackedStorageService.class);
+
+    /** Storage service holding the entries in memory. */
+    private final StorageService<String, ValueType> delegate;
+
+    /** Storage service holding the entries in memory, if it supports conditional updates, else null. */
+    private final ConcurrentStorageService<String, ValueType> concurrentDelegate;
+
+    /** Directory holding the journals and snapshots. */
+    private final File directory;
+
+    /** Locks making conditional updates atomic if the wrapped storage service does not support them. */
+    private final Object[] locks;
+
+    /** Keys waiting to be written, in the order they were queued. */
+    private final ArrayBlockingQueue<JournalKey> queue;
+
+    /** Keys waiting to be written, to queue each key only once. */
+    private final ConcurrentHashMap<JournalKey, Boolean> pendingKeys;
+
+    /** Lock guarding the queueing of keys and their sequence numbers, so keys are queued in sequence order. */
+    private final Object sequenceLock;
+
+    /** Lock guarding the durable sequence number. */
+    private final Object durableLock;
+
+    /** Registry used to encode values. */
+    private CodecRegistry codecRegistry;
+
+    /** Partitions which are persisted, or null if every partition is. */
+    private Set<String> partitions;
+
+    /** Maximum time, in milliseconds, a write may wait before the journal is synced to disk. */
+    private long syncInterval;
+
+    /** Time, in milliseconds, between snapshots. */
+    private long snapshotInterval;
+
+    /** Size, in bytes, a journal may grow to before a snapshot is taken. */
+    private long maxJournalSize;
+
+    /** Sequence number of the last queued key. */
+    private long queuedSequence;
+
+    /** Sequence number of the last key written. */
+    private long writtenSequence;
+
+    /** Sequence number of the last key synced to disk. */
+    private long durableSequence;
+
+    /** Thread writing the journal. */
+    private Thread writer;
+
+    /** Thread writing the current snapshot, or null if none was started since the storage service was initialized. */
+    private volatile Thread snapshotter;
+
+    /** Whether the writer should keep running. */
+    private volatile boolean running;
+
+    /** Generation of the current journal. */
+    private long generation;
+
+    /** The current journal. */
+    private FileOutputStream journal;
+
+    /** Channel of the current journal. */
+    private FileChannel journalChannel;
+
+    /** Number of bytes written to the current journal. */
+    private long journalSize;
+
+    /** Instant, in milliseconds since the epoch, of the last snapshot. */
+    private long lastSnapshot;
+
+    /** Number of records written to the journal. */
+    private volatile long writtenRecords;
+
+    /** Number of times a caller had to wait for room in the queue. */
+    private final AtomicLong queueWaits;
+
+    /** Number of times the journal was synced to disk. */
+    private volatile long syncs;
+
+    /** Time, in milliseconds, the last snapshot took. */
+    private volatile long lastSnapshotDuration;
+
+    /**
+     * Constructor.
+     * 
+     * @param store storage service holding the entries in memory
+     * @param journalDirectory directory holding the journals and snapshots, created if it does not exist
+     */
+    public FileBackedStorageService(StorageService<String, ValueType> store, String journalDirectory) {
+        this(store, journalDirectory, DEFAULT_MAX_PENDING_KEYS);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param store storage service holding the entries in memory
+     * @param journalDirectory directory holding the journals and snapshots, created if it does not exist
+     * @param maxPendingKeys maximum number of keys waiting to be written before callers wait for the writer
+     */
+    @SuppressWarnings("unchecked")
+    public FileBackedStorageService(StorageService<String, ValueType> store, String journalDirectory,
+            int maxPendingKeys) {
+        if (store == null || journalDirectory == null) {
+            throw new IllegalArgumentException("Storage service and journal directory may not be null");
+        }
+        if (maxPendingKeys < 1) {
+            throw new IllegalArgumentException("Maximum number of pending keys must be greater than zero");
+        }
+        delegate = store;
+        if (store instanceof ConcurrentStorageService) {
+            concurrentDelegate = (ConcurrentStorageService<String, ValueType>) store;
+        } else {
+            concurrentDelegate = null;
+        }
+        directory = new File(journalDirectory);
+        locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        queue = new ArrayBlockingQueue<JournalKey>(maxPendingKeys);
+        pendingKeys = new ConcurrentHashMap<JournalKey, Boolean>();
+        sequenceLock = new Object();
+        durableLock = new Object();
+        queueWaits = new AtomicLong();
+        codecRegistry = new DefaultCodecRegistry();
+        syncInterval = DEFAULT_SYNC_INTERVAL;
+        snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+        maxJournalSize = DEFAULT_MAX_JOURNAL_SIZE;
+    }
+
+    /**
+     * Loads the persisted entries in to the wrapped storage service and starts writing the journal.
+     * 
+     * @throws IOException thrown if the journal directory can not be created or a new journal or snapshot can not be
+     *             written
+     */
+    public synchronized void initialize() throws IOException {
+        if (writer != null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + directory.getAbsolutePath());
+        }
+
+        long start = System.currentTimeMillis();
+        int loaded = recover();
+        log.info("Replayed {} records from {} in {}ms", new Object[] {loaded, directory.getAbsolutePath(),
+                System.currentTimeMillis() - start});
+
+        // compact what was just replayed, on top of the first journal
+        openJournal();
+        lastSnapshot = System.currentTimeMillis();
+        writeSnapshot(generation);
+
+        running = true;
+        writer = new Thread(this, "shibboleth-storage-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Writes every queued key, syncs the journal and stops the writer, waiting for a snapshot in progress. */
+    public synchronized void destroy() {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        try {
+            writer.join();
+            Thread currentSnapshotter = snapshotter;
+            if (currentSnapshotter != null) {
+                currentSnapshotter.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+
+    /** {@inheritDoc} */
+    public boolean contains(String partition, String key) {
+        return delegate.contains(partition, key);
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<String> getPartitions() {
+        return delegate.getPartitions();
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<String> getKeys(String partition) {
+        return delegate.getKeys(partition);
+    }
+
+    /** {@inheritDoc} */
+    public ValueType get(String partition, String key) {
+        return delegate.get(partition, key);
+    }
+
+    /** {@inheritDoc} */
+    public ValueType put(String partition, String key, ValueType value) {
+        if (!isPersisted(partition) || key == null) {
+            return delegate.put(partition, key, value);
+        }
+
+        ValueType previous;
+        if (concurrentDelegate != null) {
+            previous = delegate.put(partition, key, value);
+        } else {
+            synchronized (getLock(partition, key)) {
+                previous = delegate.put(partition, key, value);
+            }
+        }
+        enqueue(partition, key);
+        return previous;
+    }
+
+    /** {@inheritDoc} */
+    public ValueType putIfAbsent(String partition, String key, ValueType value) {
+        ValueType existing;
+        if (concurrentDelegate != null) {
+            existing = concurrentDelegate.putIfAbsent(partition, key, value);
+        } else {
+            synchronized (getLock(partition, key)) {
+                existing = delegate.get(partition, key);
+                if (existing == null) {
+                    delegate.put(partition, key, value);
+                }
+            }
+        }
+        if (existing == null && isPersisted(partition)) {
+            enqueue(partition, key);
+        }
+        return existing;
+    }
+
+    /** {@inheritDoc} */
+    public ValueType remove(String partition, String key) {
+        if (!isPersisted(partition) || key == null) {
+            return delegate.remove(partition, key);
+        }
+
+        ValueType previous;
+        if (concurrentDelegate != null) {
+            previous = delegate.remove(partition, key);
+        } else {
+            synchronized (getLock(partition, key)) {
+                previous = delegate.remove(partition, key);
+            }
+        }
+        if (previous != null) {
+            enqueue(partition, key);
+        }
+        return previous;
+    }
+
+    /** {@inheritDoc} */
+    public boolean remove(String partition, String key, ValueType value) {
+        if (key == null) {
+            return false;
+        }
+
+        boolean removed;
+        if (concurrentDelegate != null) {
+            removed = concurrentDelegate.remove(partition, key, value);
+        } else {
+            synchronized (getLock(partition, key)) {
+                removed = value != null && delegate.get(partition, key) == value;
+                if (removed) {
+                    delegate.remove(partition, key);
+                }
+            }
+        }
+        if (removed && isPersisted(partition)) {
+            enqueue(partition, key);
+        }
+        return removed;
+    }
+
+    /**
+     * Journals the current value of a key whose value has been changed in place. The value is encoded by the writer,
+     * so this is cheap enough to call on every change.
+     * 
+     * @param partition partition holding the value
+     * @param key key of the value
+     */
+    public void update(String partition, String key) {
+        if (!isPersisted(partition) || key == null) {
+            return;
+        }
+        enqueue(partition, key);
+    }
+
+    /**
+     * Waits until every change made before this call has been synced to disk, or the writer has stopped.
+     * 
+     * @throws InterruptedException thrown if the calling thread is interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        long target;
+        synchronized (sequenceLock) {
+            target = queuedSequence;
+        }
+        synchronized (durableLock) {
+            while (durableSequence < target && running) {
+                durableLock.wait(100);
+            }
+        }
+    }
+
+    /**
+     * Gets the storage service holding the entries in memory.
+     * 
+     * @return storage service holding the entries in memory
+     */
+    public StorageService<String, ValueType> getStorageService() {
+        return delegate;
+    }
+
+    /**
+     * Gets the registry used to encode values.
+     * 
+     * @return registry used to encode values
+     */
+    public CodecRegistry getCodecRegistry() {
+        return codecRegistry;
+    }
+
+    /**
+     * Sets the registry used to encode values.
+     * 
+     * @param registry registry used to encode values
+     */
+    public void setCodecRegistry(CodecRegistry registry) {
+        if (registry == null) {
+            throw new IllegalArgumentException("Codec registry may not be null");
+        }
+        codecRegistry = registry;
+    }
+
+    /**
+     * Gets the partitions which are persisted.
+     * 
+     * @return partitions which are persisted, or null if every partition is
+     */
+    public Set<String> getPersistedPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Sets the partitions which are persisted. Entries of other partitions are only kept in memory.
+     * 
+     * @param persistedPartitions partitions which are persisted, null or empty to persist every partition
+     */
+    public void setPersistedPartitions(Collection<String> persistedPartitions) {
+        if (persistedPartitions == null || persistedPartitions.isEmpty()) {
+            partitions = null;
+        } else {
+            partitions = Collections.unmodifiableSet(new HashSet<String>(persistedPartitions));
+        }
+    }
+
+    /**
+     * Gets the maximum time, in milliseconds, a write may wait before the journal is synced to disk.
+     * 
+     * @return maximum time a write may wait before the journal is synced
+     */
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Sets the maximum time, in milliseconds, a write may wait before the journal is synced to disk. Longer intervals
+     * batch more writes in to each sync at the risk of losing more of them in a crash.
+     * 
+     * @param interval maximum time a write may wait before the journal is synced, 0 to sync after every write
+     */
+    public void setSyncInterval(long interval) {
+        syncInterval = Math.max(0, interval);
+    }
+
+    /**
+     * Gets the time, in milliseconds, between snapshots.
+     * 
+     * @return time between snapshots
+     */
+    public long getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * Sets the time, in milliseconds, between snapshots.
+     * 
+     * @param interval time between snapshots
+     */
+    public void setSnapshotInterval(long interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Snapshot interval must be greater than zero");
+        }
+        snapshotInterval = interval;
+    }
+
+    /**
+     * Gets the size, in bytes, a journal may grow to before a snapshot is taken.
+     * 
+     * @return size a journal may grow to before a snapshot is taken
+     */
+    public long getMaxJournalSize() {
+        return maxJournalSize;
+    }
+
+    /**
+     * Sets the size, in bytes, a journal may grow to before a snapshot is taken.
+     * 
+     * @param size size a journal may grow to before a snapshot is taken
+     */
+    public void setMaxJournalSize(long size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Maximum journal size must be greater than zero");
+        }
+        maxJournalSize = size;
+    }
+
+    /**
+     * Gets the number of keys waiting to be written.
+     * 
+     * @return number of keys waiting to be written
+     */
+    public int getPendingRecords() {
+        return queue.size();
+    }
+
+    /**
+     * Gets the number of times a caller had to wait for the writer because the queue was full.
+     * 
+     * @return number of times a caller waited for room in the queue
+     */
+    public long getQueueWaits() {
+        return queueWaits.get();
+    }
+
+    /**
+     * Gets the number of records written to the journal since the storage service was initialized.
+     * 
+     * @return number of records written to the journal
+     */
+    public long getWrittenRecords() {
+        return writtenRecords;
+    }
+
+    /**
+     * Gets the number of times the journal has been synced to disk since the storage service was initialized.
+     * 
+     * @return number of times the journal has been synced
+     */
+    public long getSyncs() {
+        return syncs;
+    }
+
+    /**
+     * Gets the time, in milliseconds, the last snapshot took.
+     * 
+     * @return time the last snapshot took
+     */
+    public long getLastSnapshotDuration() {
+        return lastSnapshotDuration;
+    }
+
+    /** Writes queued keys to the journal, syncing it and starting snapshots as they come due. */
+    public void run() {
+        ArrayList<JournalKey> batch = new ArrayList<JournalKey>();
+        ArrayList<byte[]> records = new ArrayList<byte[]>();
+        long lastSync = System.currentTimeMillis();
+        long unsyncedSequence = 0;
+
+        while (running || !queue.isEmpty()) {
+            try {
+                long wait = 1000;
+                if (unsyncedSequence > 0) {
+                    wait = Math.max(0, lastSync + syncInterval - System.currentTimeMillis());
+                }
+                JournalKey journalKey = queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (journalKey != null) {
+                    batch.add(journalKey);
+                    queue.drainTo(batch);
+                    for (JournalKey pendingKey : batch) {
+                        byte[] record = encodeCurrentValue(pendingKey);
+                        if (record != null) {
+                            records.add(record);
+                        }
+                    }
+                    writeRecords(journalChannel, records);
+                    journalSize += getSize(records);
+                    writtenRecords += records.size();
+                    writtenSequence += batch.size();
+                    unsyncedSequence = writtenSequence;
+                    batch.clear();
+                    records.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (unsyncedSequence > 0 && (now - lastSync >= syncInterval || !running)) {
+                    sync(unsyncedSequence);
+                    unsyncedSequence = 0;
+                    lastSync = now;
+                }
+
+                if (running && (now - lastSnapshot >= snapshotInterval || journalSize >= maxJournalSize)) {
+                    startSnapshot();
+                }
+            } catch (InterruptedException e) {
+                log.debug("Journal writer interrupted");
+            } catch (Throwable t) {
+                log.error("Unable to write storage service journal, recent changes may be lost on restart", t);
+                writtenSequence += batch.size();
+                unsyncedSequence = writtenSequence;
+                batch.clear();
+                records.clear();
+            }
+        }
+
+        try {
+            journalChannel.force(false);
+            journal.close();
+        } catch (IOException e) {
+            log.error("Unable to close storage service journal", e);
+        }
+        synchronized (durableLock) {
+            durableLock.notifyAll();
+        }
+    }
+
+    /**
+     * Gets whether a partition is persisted.
+     * 
+     * @param partition the partition
+     * 
+     * @return whether the partition is persisted
+     */
+    protected boolean isPersisted(String partition) {
+        return partitions == null || partitions.contains(partition);
+    }
+
+    /**
+     * Gets the lock ordering the updates of a key.
+     * 
+     * @param partition partition of the key
+     * @param key the key
+     * 
+     * @return lock for the key
+     */
+    private Object getLock(String partition, String key) {
+        int hash = 31 * (partition == null ? 0 : partition.hashCode()) + key.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Queues a key for the writer, unless it is already waiting to be written. If the queue is full the caller waits
+     * for the writer to make room, unless the writer is not running, in which case the key is dropped.
+     * 
+     * @param partition partition of the key
+     * @param key the key
+     */
+    private void enqueue(String partition, String key) {
+        JournalKey journalKey = new JournalKey(partition, key);
+        boolean interrupted = false;
+        try {
+            synchronized (sequenceLock) {
+                if (pendingKeys.putIfAbsent(journalKey, Boolean.TRUE) != null) {
+                    return;
+                }
+                if (queue.offer(journalKey)) {
+                    queuedSequence++;
+                    return;
+                }
+
+                queueWaits.incrementAndGet();
+                while (true) {
+                    try {
+                        if (queue.offer(journalKey, QUEUE_WAIT, TimeUnit.MILLISECONDS)) {
+                            queuedSequence++;
+                            return;
+                        }
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                    if (!running) {
+                        pendingKeys.remove(journalKey);
+                        log.warn("Journal writer is not running, change of key {} in partition {} will not survive "
+                                + "a restart", key, partition);
+                        return;
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Encodes the record of the value a key currently holds, a remove record if it holds none.
+     * 
+     * @param journalKey the key
+     * 
+     * @return the record or null if it could not be encoded
+     */
+    private byte[] encodeCurrentValue(JournalKey journalKey) {
+        // from here on a change of the key queues it again
+        pendingKeys.remove(journalKey);
+        ValueType value = delegate.get(journalKey.partition, journalKey.key);
+        if (value == null) {
+            return encodeRecord(OP_REMOVE, journalKey.partition, journalKey.key, null);
+        }
+        return encodeRecord(OP_PUT, journalKey.partition, journalKey.key, value);
+    }
+
+    /**
+     * Records that every key up to a given sequence number has been written and syncs the journal.
+     * 
+     * @param sequence sequence number of the last written key
+     * 
+     * @throws IOException thrown if the journal can not be synced
+     */
+    private void sync(long sequence) throws IOException {
+        journalChannel.force(false);
+        syncs++;
+        synchronized (durableLock) {
+            durableSequence = sequence;
+            durableLock.notifyAll();
+        }
+    }
+
+    /**
+     * Encodes a record.
+     * 
+     * @param op operation code of the record
+     * @param partition partition of the record
+     * @param key key of the record
+     * @param value value of a put record
+     * 
+     * @return the record or null if it could not be encoded
+     */
+    private byte[] encodeRecord(int op, String partition, String key, Object value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(op);
+            out.writeUTF(partition == null ? "" : partition);
+            out.writeUTF(key);
+            if (op == OP_PUT) {
+                out.write(codecRegistry.encode(value));
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            log.warn("Unable to encode value of key {} in partition {}, it will not survive a restart", key,
+                    partition);
+            log.debug("Encoding failure", e);
+            return null;
+        }
+    }
+
+    /**
+     * Starts a new journal.
+     * 
+     * @throws IOException thrown if the journal can not be created
+     */
+    private void openJournal() throws IOException {
+        generation++;
+        FileOutputStream newJournal = new FileOutputStream(new File(directory, "journal-" + generation + ".log"));
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(JOURNAL_MAGIC).putInt(FORMAT_VERSION).flip();
+        newJournal.getChannel().write(header);
+        newJournal.getChannel().force(true);
+
+        FileOutputStream oldJournal = journal;
+        journal = newJournal;
+        journalChannel = newJournal.getChannel();
+        journalSize = header.limit();
+        if (oldJournal != null) {
+            oldJournal.getChannel().force(false);
+            oldJournal.close();
+        }
+    }
+
+    /**
+     * Starts a new journal and, unless the previous snapshot is still being written, a thread writing a snapshot on
+     * top of which the new journal is replayed.
+     * 
+     * @throws IOException thrown if the new journal can not be created
+     */
+    private void startSnapshot() throws IOException {
+        Thread currentSnapshotter = snapshotter;
+        if (currentSnapshotter != null && currentSnapshotter.isAlive()) {
+            return;
+        }
+        lastSnapshot = System.currentTimeMillis();
+
+        // keys written from here on go to the new journal, and read the entries no earlier than the snapshot does
+        openJournal();
+        final long snapshotGeneration = generation;
+        Thread newSnapshotter = new Thread(new Runnable() {
+            /** {@inheritDoc} */
+            public void run() {
+                try {
+                    writeSnapshot(snapshotGeneration);
+                } catch (Throwable t) {
+                    log.error("Unable to write storage service snapshot, journals will be kept until the next one", t);
+                }
+            }
+        }, "shibboleth-storage-snapshot");
+        newSnapshotter.setDaemon(true);
+        snapshotter = newSnapshotter;
+        newSnapshotter.start();
+    }
+
+    /**
+     * Writes every live entry to a snapshot and deletes the journals and snapshots the new snapshot supersedes.
+     * 
+     * @param snapshotGeneration generation of the snapshot, that of the first journal replayed on top of it
+     * 
+     * @throws IOException thrown if the snapshot can not be written
+     */
+    private void writeSnapshot(long snapshotGeneration) throws IOException {
+        long start = System.currentTimeMillis();
+        File tempFile = new File(directory, "snapshot-" + snapshotGeneration + ".tmp");
+        FileOutputStream file = new FileOutputStream(tempFile);
+        int entries = 0;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 65536));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            Iterator<String> partitionItr = delegate.getPartitions();
+            while (partitionItr.hasNext()) {
+                String partition = partitionItr.next();
+                if (!isPersisted(partition)) {
+                    continue;
+                }
+                Iterator<String> keyItr = delegate.getKeys(partition);
+                while (keyItr.hasNext()) {
+                    String key = keyItr.next();
+                    ValueType value = delegate.get(partition, key);
+                    if (value == null || (value instanceof ExpiringObject && ((ExpiringObject) value).isExpired())) {
+                        continue;
+                    }
+                    byte[] record = encodeRecord(OP_PUT, partition, key, value);
+                    if (record != null) {
+                        writeRecord(out, record);
+                        entries++;
+                    }
+                }
+            }
+            out.flush();
+            file.getChannel().force(true);
+        } finally {
+            file.close();
+        }
+
+        File snapshotFile = new File(directory, "snapshot-" + snapshotGeneration + ".dat");
+        if (!tempFile.renameTo(snapshotFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename snapshot to " + snapshotFile.getAbsolutePath());
+        }
+
+        for (File oldFile : directory.listFiles()) {
+            long fileGeneration = getGeneration(oldFile, JOURNAL_NAME);
+            if (fileGeneration < 0) {
+                fileGeneration = getGeneration(oldFile, SNAPSHOT_NAME);
+            }
+            if (fileGeneration >= 0 && fileGeneration < snapshotGeneration && !oldFile.delete()) {
+                log.warn("Unable to delete superseded file {}", oldFile.getAbsolutePath());
+            }
+        }
+
+        lastSnapshotDuration = System.currentTimeMillis() - start;
+        log.debug("Wrote snapshot of {} entries in {}ms", entries, lastSnapshotDuration);
+    }
+
+    /**
+     * Loads the latest snapshot and replays the journals written after it.
+     * 
+     * @return number of entries loaded
+     */
+    private int recover() {
+        TreeMap<Long, File> journals = new TreeMap<Long, File>();
+        TreeMap<Long, File> snapshots = new TreeMap<Long, File>();
+        for (File file : directory.listFiles()) {
+            long fileGeneration = getGeneration(file, JOURNAL_NAME);
+            if (fileGeneration >= 0) {
+                journals.put(fileGeneration, file);
+                continue;
+            }
+            fileGeneration = getGeneration(file, SNAPSHOT_NAME);
+            if (fileGeneration >= 0) {
+                snapshots.put(fileGeneration, file);
+            } else if (file.getName().endsWith(".tmp")) {
+                file.delete();
+            }
+        }
+        if (!journals.isEmpty()) {
+            generation = journals.lastKey();
+        }
+        if (!snapshots.isEmpty()) {
+            generation = Math.max(generation, snapshots.lastKey());
+        }
+
+        long replayFrom = 0;
+        int loaded = 0;
+        List<Long> snapshotGenerations = new ArrayList<Long>(snapshots.keySet());
+        Collections.reverse(snapshotGenerations);
+        for (Long snapshotGeneration : snapshotGenerations) {
+            try {
+                loaded = load(snapshots.get(snapshotGeneration), SNAPSHOT_MAGIC, true);
+                replayFrom = snapshotGeneration;
+                break;
+            } catch (IOException e) {
+                log.error("Unable to load snapshot " + snapshots.get(snapshotGeneration).getAbsolutePath()
+                        + ", trying an older one", e);
+            }
+        }
+
+        for (File journalFile : journals.tailMap(replayFrom).values()) {
+            try {
+                loaded += load(journalFile, JOURNAL_MAGIC, false);
+            } catch (IOException e) {
+                log.error("Unable to replay journal " + journalFile.getAbsolutePath(), e);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Applies the records of a snapshot or journal to the wrapped storage service.
+     * 
+     * @param file the snapshot or journal
+     * @param magic marker expected at the start of the file
+     * @param complete whether the file is expected to be complete, as snapshots are, rather than possibly torn
+     * 
+     * @return number of records applied
+     * 
+     * @throws IOException thrown if the file can not be read or is corrupt
+     */
+    @SuppressWarnings("unchecked")
+    private int load(File file, int magic, boolean complete) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        int applied = 0;
+        try {
+            try {
+                if (in.readInt() != magic || in.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Unrecognized file format");
+                }
+            } catch (EOFException e) {
+                if (complete) {
+                    throw e;
+                }
+                // a journal created just before a crash
+                return 0;
+            }
+
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_SIZE) {
+                        throw new IOException("Invalid record length " + length);
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum) {
+                        throw new IOException("Record checksum mismatch");
+                    }
+                } catch (EOFException e) {
+                    break;
+                } catch (IOException e) {
+                    if (complete) {
+                        throw e;
+                    }
+                    log.warn("Stopped replaying journal {} at a damaged record, later records are lost", file
+                            .getName());
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                int op = record.readByte();
+                String partition = record.readUTF();
+                String key = record.readUTF();
+                if (op == OP_REMOVE) {
+                    delegate.remove(partition, key);
+                } else if (op == OP_PUT) {
+                    Object value = codecRegistry.decode(readRemaining(record));
+                    if (value == null || (value instanceof ExpiringObject && ((ExpiringObject) value).isExpired())) {
+                        delegate.remove(partition, key);
+                    } else {
+                        delegate.put(partition, key, (ValueType) value);
+                        applied++;
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return applied;
+    }
+
+    /**
+     * Reads the remainder of a record.
+     * 
+     * @param record the record
+     * 
+     * @return remaining bytes of the record
+     * 
+     * @throws IOException thrown if the record can not be read
+     */
+    private byte[] readRemaining(DataInputStream record) throws IOException {
+        byte[] remaining = new byte[record.available()];
+        record.readFully(remaining);
+        return remaining;
+    }
+
+    /**
+     * Writes framed records to a channel in a single write.
+     * 
+     * @param channel the channel
+     * @param records the records
+     * 
+     * @throws IOException thrown if the records can not be written
+     */
+    private void writeRecords(FileChannel channel, List<byte[]> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(getSize(records));
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (byte[] record : records) {
+            writeRecord(out, record);
+        }
+        out.flush();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes a record, framed by its length and checksum.
+     * 
+     * @param out stream to write to
+     * @param payload the record
+     * 
+     * @throws IOException thrown if the record can not be written
+     */
+    private void writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    /**
+     * Gets the size of a batch of framed records.
+     * 
+     * @param records the records
+     * 
+     * @return size, in bytes, of the framed records
+     */
+    private int getSize(List<byte[]> records) {
+        int size = 0;
+        for (byte[] record : records) {
+            size += record.length + 8;
+        }
+        return size;
+    }
+
+    /**
+     * Gets the generation of a journal or snapshot from its file name.
+     * 
+     * @param file the file
+     * @param namePattern pattern of the file names
+     * 
+     * @return generation of the file or -1 if the file name does not match the pattern
+     */
+    private long getGeneration(File file, Pattern namePattern) {
+        Matcher matcher = namePattern.matcher(file.getName());
+        if (!matcher.matches()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** A key waiting to be written. */
+    private static final class JournalKey {
+
+        /** Partition of the key. */
+        private final String partition;
+
+        /** The key. */
+        private final String key;
+
+        /**
+         * Constructor.
+         * 
+         * @param keyPartition partition of the key
+         * @param journaledKey the key
+         */
+        private JournalKey(String keyPartition, String journaledKey) {
+            partition = keyPartition;
+            key = journaledKey;
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            return 31 * (partition == null ? 0 : partition.hashCode()) + key.hashCode();
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof JournalKey)) {
+                return false;
+            }
+            JournalKey other = (JournalKey) obj;
+            return key.equals(other.key)
+                    && (partition == null ? other.partition == null : partition.equals(other.partition));
+        }
+    }
+}
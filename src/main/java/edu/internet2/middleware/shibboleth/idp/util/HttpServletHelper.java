@@ -41,10 +41,19 @@ import edu.internet2.middleware.shibboleth.common.attribute.resolver.AttributeRe
 import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartyConfigurationManager;
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.SAMLMDRelyingPartyConfigurationManager;
 import edu.internet2.middleware.shibboleth.common.session.SessionManager;
+import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationProcessor;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginContextEntry;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.CachingCredentialValidator;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.JAASLoginExecutor;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.LoginFailureTracker;
+import edu.internet2.middleware.shibboleth.idp.profile.AttributePreResolver;
 import edu.internet2.middleware.shibboleth.idp.profile.IdPProfileHandlerManager;
+import edu.internet2.middleware.shibboleth.idp.profile.MetadataIndex;
+import edu.internet2.middleware.shibboleth.idp.profile.SigningService;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionCookieEncoder;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionCookieSigner;
 
 /** A helper class that provides access to internal state from Servlets and hence also JSPs. */
 public class HttpServletHelper {
@@ -58,6 +67,24 @@ public class HttpServletHelper {
     /** Name of the key to the current authentication login context: {@value} . */
     public static final String LOGIN_CTX_KEY_NAME = "_idp_authn_lc_key";
 
+    /** Name of the request attribute marking the login context of the request as already looked up: {@value} . */
+    public static final String LOGIN_CTX_RESOLVED_ATTRIBUTE = "_idp_authn_lc_resolved";
+
+    /** Name of the request attribute counting the storage service calls made for the login context: {@value} . */
+    public static final String LOGIN_CTX_STORAGE_CALLS_ATTRIBUTE = "_idp_authn_lc_storage_calls";
+
+    /** Name of the request attribute bearing the sealed login context issued to the client, if any: {@value} . */
+    public static final String SEALED_LOGIN_CTX_ATTRIBUTE = "_idp_authn_lc_sealed";
+
+    /** Name of the {@link ServletContext} attribute bearing the {@link CachingCredentialValidator}, if any: {@value} . */
+    public static final String CREDENTIAL_CACHE_ATTRIBUTE = "shibboleth.CredentialCache";
+
+    /** Name of the {@link ServletContext} attribute bearing the {@link LoginFailureTracker}, if any: {@value} . */
+    public static final String LOGIN_FAILURE_TRACKER_ATTRIBUTE = "shibboleth.LoginFailureTracker";
+
+    /** Name of the {@link ServletContext} attribute bearing the {@link AuthenticationProcessor}: {@value} . */
+    public static final String AUTHENTICATION_PROCESSOR_ATTRIBUTE = "shibboleth.AuthenticationProcessor";
+
     /** {@link ServletContext} parameter name bearing the ID of the {@link AttributeFilteringEngine} service: {@value} . */
     public static final String ATTRIBUTE_FILTER_ENGINE_SID_CTX_PARAM = "AttributeFilterEngineId";
 
@@ -88,6 +115,24 @@ public class HttpServletHelper {
     /** {@link ServletContext} parameter name bearing the ID of the {@link SessionManager} service: {@value} . */
     public static final String SESSION_MNGR_SID_CTX_PARAM = "SessionManagerId";
 
+    /** {@link ServletContext} parameter name bearing the ID of the {@link SessionCookieEncoder} service: {@value} . */
+    public static final String SESSION_COOKIE_ENCODER_SID_CTX_PARAM = "SessionCookieEncoderId";
+
+    /** {@link ServletContext} parameter name bearing the ID of the {@link LoginContextSealer} service: {@value} . */
+    public static final String LOGIN_CONTEXT_SEALER_SID_CTX_PARAM = "LoginContextSealerId";
+
+    /** {@link ServletContext} parameter name bearing the ID of the {@link AttributePreResolver} service: {@value} . */
+    public static final String ATTRIBUTE_PRE_RESOLVER_SID_CTX_PARAM = "AttributePreResolverId";
+
+    /** {@link ServletContext} parameter name bearing the ID of the {@link JAASLoginExecutor} service: {@value} . */
+    public static final String JAAS_LOGIN_EXECUTOR_SID_CTX_PARAM = "JAASLoginExecutorId";
+
+    /** {@link ServletContext} parameter name bearing the ID of the {@link SessionCookieSigner} service: {@value} . */
+    public static final String SESSION_COOKIE_SIGNER_SID_CTX_PARAM = "SessionCookieSignerId";
+
+    /** {@link ServletContext} parameter name bearing the ID of the {@link SigningService} service: {@value} . */
+    public static final String SIGNING_SERVICE_SID_CTX_PARAM = "SigningServiceId";
+
     /** {@link ServletContext} parameter name bearing the ID of the {@link SAML1AttributeAuthority} service: {@value} . */
     public static final String STORAGE_SERVICE_SID_CTX_PARAM = "StorageServiceId";
 
@@ -115,6 +160,24 @@ public class HttpServletHelper {
     /** Default ID by which the {@link SessionManager} is know within the Servlet context: {@value} . */
     public static final String DEFAULT_SESSION_MNGR_SID = "shibboleth.SessionManager";
 
+    /** Default ID by which the {@link SessionCookieEncoder} is know within the Servlet context: {@value} . */
+    public static final String DEFAULT_SESSION_COOKIE_ENCODER_SID = "shibboleth.SessionCookieEncoder";
+
+    /** Default ID by which the {@link LoginContextSealer} is know within the Servlet context: {@value} . */
+    public static final String DEFAULT_LOGIN_CONTEXT_SEALER_SID = "shibboleth.LoginContextSealer";
+
+    /** Default ID by which the {@link AttributePreResolver} is know within the Servlet context: {@value} . */
+    public static final String DEFAULT_ATTRIBUTE_PRE_RESOLVER_SID = "shibboleth.AttributePreResolver";
+
+    /** Default ID by which the {@link JAASLoginExecutor} is know within the Servlet context: {@value} . */
+    public static final String DEFAULT_JAAS_LOGIN_EXECUTOR_SID = "shibboleth.JAASLoginExecutor";
+
+    /** Default ID by which the {@link SessionCookieSigner} is know within the Servlet context: {@value} . */
+    public static final String DEFAULT_SESSION_COOKIE_SIGNER_SID = "shibboleth.SessionCookieSigner";
+
+    /** Default ID by which the {@link SigningService} is know within the Servlet context: {@value} . */
+    public static final String DEFAULT_SIGNING_SERVICE_SID = "shibboleth.SigningService";
+
     /** Default ID by which the {@link StorageService} is know within the Servlet context: {@value} . */
     public static final String DEFAULT_STORAGE_SERVICE_SID = "shibboleth.StorageService";
 
@@ -140,6 +203,14 @@ public class HttpServletHelper {
      * Binds a {@link LoginContext} to the issuer of the current request. The binding is done by creating a random UUID,
      * placing that in a cookie in the request, and storing the context in to the storage service under that key.
      * 
+     * If a {@link LoginContextSealer} is bound to the Servlet context the context is instead sealed and the cookie
+     * carries the sealed context itself, nothing is kept in the storage service. The sealed context is also made
+     * available in the {@value #SEALED_LOGIN_CTX_ATTRIBUTE} request attribute, for pages posting it back in a form
+     * field named {@value #LOGIN_CTX_KEY_NAME}. A context too large to be sealed is kept in the storage service.
+     * 
+     * The bound context also becomes the one returned by
+     * {@link #getLoginContext(StorageService, ServletContext, HttpServletRequest)} for the rest of the request.
+     * 
      * @param loginContext the login context to be bound
      * @param storageService the storage service which will hold the context
      * @param context the Servlet context
@@ -158,16 +229,33 @@ public class HttpServletHelper {
             return;
         }
 
-        String parition = getContextParam(context, LOGIN_CTX_PARTITION_CTX_PARAM, DEFAULT_LOGIN_CTX_PARITION);
+        String contextKey = null;
+        LoginContextSealer sealer = getLoginContextSealer(context);
+        if (sealer != null) {
+            contextKey = sealer.seal(loginContext, httpRequest.getRemoteAddr());
+            if (contextKey != null) {
+                log.debug("Sealed LoginContext in to a cookie of {} characters", contextKey.length());
+                httpRequest.setAttribute(SEALED_LOGIN_CTX_ATTRIBUTE, contextKey);
+            } else {
+                log.debug("LoginContext could not be sealed, storing it in the StorageService");
+            }
+        }
+
+        if (contextKey == null) {
+            String parition = getContextParam(context, LOGIN_CTX_PARTITION_CTX_PARAM, DEFAULT_LOGIN_CTX_PARITION);
 
-        String contextKey = UUID.randomUUID().toString();
-        while (storageService.contains(parition, contextKey)) {
             contextKey = UUID.randomUUID().toString();
-        }
+            countStorageCall(httpRequest);
+            while (storageService.contains(parition, contextKey)) {
+                contextKey = UUID.randomUUID().toString();
+                countStorageCall(httpRequest);
+            }
 
-        LoginContextEntry entry = new LoginContextEntry(loginContext, 1800000);
-        log.debug("Storing LoginContext to StorageService partition {}, key {}", parition, contextKey);
-        storageService.put(parition, contextKey, entry);
+            LoginContextEntry entry = new LoginContextEntry(loginContext, 1800000);
+            log.debug("Storing LoginContext to StorageService partition {}, key {}", parition, contextKey);
+            countStorageCall(httpRequest);
+            storageService.put(parition, contextKey, entry);
+        }
 
         String cookieDomain = getCookieDomain(context);
 
@@ -179,8 +267,8 @@ public class HttpServletHelper {
         contextKeyCookie.setPath("".equals(httpRequest.getContextPath()) ? "/" : httpRequest.getContextPath());
         contextKeyCookie.setSecure(httpRequest.isSecure());
         httpResponse.addCookie(contextKeyCookie);
-        
-        httpRequest.setAttribute(LOGIN_CTX_KEY_NAME, loginContext);
+
+        cacheLoginContext(httpRequest, loginContext);
     }
 
     /**
@@ -300,6 +388,10 @@ public class HttpServletHelper {
      * Gets the {@link LoginContext} for the user issuing the HTTP request. Note, login contexts are only available
      * during the authentication process.
      * 
+     * The login context is looked up once per request; the result, including the absence of a context, is kept in
+     * request attributes, which are carried along when the request is forwarded, and returned by later calls. Binding
+     * and unbinding a context during the request update what is returned.
+     * 
      * @param context the Servlet context
      * @param storageService storage service to use when retrieving the login context
      * @param httpRequest current HTTP request
@@ -318,19 +410,49 @@ public class HttpServletHelper {
             throw new IllegalArgumentException("HTTP request may not be null");
         }
 
-        Cookie loginContextKeyCookie = getCookie(httpRequest, LOGIN_CTX_KEY_NAME);
-        if (loginContextKeyCookie == null) {
-            log.debug("LoginContext key cookie was not present in request");
+        Object boundContext = httpRequest.getAttribute(LOGIN_CTX_KEY_NAME);
+        if (boundContext instanceof LoginContext) {
+            return (LoginContext) boundContext;
+        }
+        if (httpRequest.getAttribute(LOGIN_CTX_RESOLVED_ATTRIBUTE) != null) {
             return null;
         }
 
-        String loginContextKey = DatatypeHelper.safeTrimOrNullString(loginContextKeyCookie.getValue());
+        LoginContext loginContext = lookupLoginContext(storageService, context, httpRequest);
+        cacheLoginContext(httpRequest, loginContext);
+        return loginContext;
+    }
+
+    /**
+     * Looks up the {@link LoginContext} presented with the request, either by unsealing it or by reading it from the
+     * storage service.
+     * 
+     * @param storageService storage service to use when retrieving the login context
+     * @param context the Servlet context
+     * @param httpRequest current HTTP request
+     * 
+     * @return the login context or null if none is available
+     */
+    private static LoginContext lookupLoginContext(StorageService storageService, ServletContext context,
+            HttpServletRequest httpRequest) {
+        LoginContextSealer sealer = getLoginContextSealer(context);
+        String loginContextKey = getLoginContextKey(httpRequest, sealer != null);
         if (loginContextKey == null) {
-            log.warn("Corrupted LoginContext Key cookie, it did not contain a value");
+            log.debug("LoginContext key cookie was not present in request");
+            return null;
+        }
+
+        if (LoginContextSealer.isSealed(loginContextKey)) {
+            if (sealer == null) {
+                log.warn("Sealed LoginContext presented but no LoginContextSealer is configured");
+                return null;
+            }
+            return sealer.unseal(loginContextKey, httpRequest.getRemoteAddr());
         }
 
         String partition = getContextParam(context, LOGIN_CTX_PARTITION_CTX_PARAM, DEFAULT_LOGIN_CTX_PARITION);
         log.trace("Looking up LoginContext with key {} from StorageService parition: {}", loginContextKey, partition);
+        countStorageCall(httpRequest);
         LoginContextEntry entry = (LoginContextEntry) storageService.get(partition, loginContextKey);
         if (entry != null) {
             if (entry.isExpired()) {
@@ -347,6 +469,100 @@ public class HttpServletHelper {
         return null;
     }
 
+    /**
+     * Gets the number of storage service calls made so far, during the current request, to bind, look up and unbind
+     * the login context.
+     * 
+     * @param httpRequest current HTTP request
+     * 
+     * @return number of storage service calls
+     */
+    public static int getLoginContextStorageCalls(HttpServletRequest httpRequest) {
+        Integer calls = (Integer) httpRequest.getAttribute(LOGIN_CTX_STORAGE_CALLS_ATTRIBUTE);
+        if (calls == null) {
+            return 0;
+        }
+        return calls.intValue();
+    }
+
+    /**
+     * Counts a storage service call made for the login context of the current request.
+     * 
+     * @param httpRequest current HTTP request
+     */
+    private static void countStorageCall(HttpServletRequest httpRequest) {
+        int calls = getLoginContextStorageCalls(httpRequest) + 1;
+        httpRequest.setAttribute(LOGIN_CTX_STORAGE_CALLS_ATTRIBUTE, Integer.valueOf(calls));
+        if (log.isTraceEnabled()) {
+            log.trace("LoginContext storage service call {} for request {}", calls, httpRequest.getRequestURI());
+        }
+    }
+
+    /**
+     * Makes the given login context the one returned for the rest of the request.
+     * 
+     * @param httpRequest current HTTP request
+     * @param loginContext the login context, or null if the request has none
+     */
+    private static void cacheLoginContext(HttpServletRequest httpRequest, LoginContext loginContext) {
+        if (loginContext != null) {
+            httpRequest.setAttribute(LOGIN_CTX_KEY_NAME, loginContext);
+        } else {
+            httpRequest.removeAttribute(LOGIN_CTX_KEY_NAME);
+        }
+        httpRequest.setAttribute(LOGIN_CTX_RESOLVED_ATTRIBUTE, Boolean.TRUE);
+    }
+
+    /**
+     * Records the changes made to the {@link LoginContext} bound to the current request. A context kept in a storage
+     * service is the object the caller changed, so nothing needs to be done. A sealed context is sealed again and
+     * reissued to the client.
+     * 
+     * @param loginContext the login context that was changed
+     * @param storageService the storage service which holds unsealed contexts
+     * @param context the Servlet context
+     * @param httpRequest the current HTTP request
+     * @param httpResponse the current HTTP response
+     */
+    public static void updateLoginContext(LoginContext loginContext, StorageService storageService,
+            ServletContext context, HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+        if (loginContext == null || getLoginContextSealer(context) == null) {
+            return;
+        }
+
+        log.debug("Resealing updated LoginContext");
+        bindLoginContext(loginContext, storageService, context, httpRequest, httpResponse);
+    }
+
+    /**
+     * Gets the key of the login context presented with the request, which is either the key of a context kept in the
+     * storage service or a sealed context.
+     * 
+     * @param httpRequest the current HTTP request
+     * @param allowParameter whether the key may also be given as a request parameter, as sealed contexts may be
+     * 
+     * @return the key or null if none was presented
+     */
+    private static String getLoginContextKey(HttpServletRequest httpRequest, boolean allowParameter) {
+        Cookie loginContextKeyCookie = getCookie(httpRequest, LOGIN_CTX_KEY_NAME);
+        if (loginContextKeyCookie != null) {
+            String loginContextKey = DatatypeHelper.safeTrimOrNullString(loginContextKeyCookie.getValue());
+            if (loginContextKey == null) {
+                log.warn("Corrupted LoginContext Key cookie, it did not contain a value");
+            }
+            return loginContextKey;
+        }
+
+        if (allowParameter) {
+            String loginContextKey = DatatypeHelper.safeTrimOrNullString(httpRequest.getParameter(LOGIN_CTX_KEY_NAME));
+            if (LoginContextSealer.isSealed(loginContextKey)) {
+                return loginContextKey;
+            }
+        }
+
+        return null;
+    }
+
     /**
      * Gets the {@link IdPProfileHandlerManager} service bound to the Servlet context.
      * 
@@ -436,12 +652,34 @@ public class HttpServletHelper {
      */
     public static EntityDescriptor getRelyingPartyMetadata(String relyingPartyEntityId,
             RelyingPartyConfigurationManager rpConfigMngr) {
+        MetadataIndex.EntityRecord relyingPartyRecord = getRelyingPartyMetadataRecord(relyingPartyEntityId,
+                rpConfigMngr);
+        if (relyingPartyRecord != null) {
+            return relyingPartyRecord.getEntityDescriptor();
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the indexed metadata record for a given relying party.
+     * 
+     * @param relyingPartyEntityId the ID of the relying party
+     * @param rpConfigMngr relying party configuration manager
+     * 
+     * @return the metadata record for the relying party or null if no SAML metadata exists for the given relying party
+     */
+    public static MetadataIndex.EntityRecord getRelyingPartyMetadataRecord(String relyingPartyEntityId,
+            RelyingPartyConfigurationManager rpConfigMngr) {
         if (rpConfigMngr instanceof SAMLMDRelyingPartyConfigurationManager) {
             SAMLMDRelyingPartyConfigurationManager samlRpConfigMngr = (SAMLMDRelyingPartyConfigurationManager) rpConfigMngr;
-            try {
-                return samlRpConfigMngr.getMetadataProvider().getEntityDescriptor(relyingPartyEntityId);
-            } catch (MetadataProviderException e) {
+            MetadataIndex index = MetadataIndex.getInstance(samlRpConfigMngr.getMetadataProvider());
+            if (index != null) {
+                try {
+                    return index.getEntity(relyingPartyEntityId);
+                } catch (MetadataProviderException e) {
 
+                }
             }
         }
 
@@ -520,6 +758,203 @@ public class HttpServletHelper {
         return (SessionManager<Session>) context.getAttribute(serviceId);
     }
 
+    /**
+     * Gets the {@link SessionCookieEncoder} service bound to the Servlet context.
+     * 
+     * @param context the Servlet context
+     * 
+     * @return the service or null if there is no such service bound to the context, in which case session cookies
+     *         only reference sessions held by the session manager
+     */
+    public static SessionCookieEncoder getSessionCookieEncoder(ServletContext context) {
+        return getSessionCookieEncoder(context, getContextParam(context, SESSION_COOKIE_ENCODER_SID_CTX_PARAM,
+                DEFAULT_SESSION_COOKIE_ENCODER_SID));
+    }
+
+    /**
+     * Gets the {@link SessionCookieEncoder} bound to the Servlet context.
+     * 
+     * @param context the Servlet context
+     * @param serviceId the ID under which the service bound
+     * 
+     * @return the service or null if there is no such service bound to the context
+     */
+    public static SessionCookieEncoder getSessionCookieEncoder(ServletContext context, String serviceId) {
+        return (SessionCookieEncoder) context.getAttribute(serviceId);
+    }
+
+    /**
+     * Gets the {@link LoginContextSealer} service bound to the Servlet context.
+     * 
+     * @param context the Servlet context
+     * 
+     * @return the service, or null if login contexts are kept in the storage service
+     */
+    public static LoginContextSealer getLoginContextSealer(ServletContext context) {
+        return getLoginContextSealer(context, getContextParam(context, LOGIN_CONTEXT_SEALER_SID_CTX_PARAM,
+                DEFAULT_LOGIN_CONTEXT_SEALER_SID));
+    }
+
+    /**
+     * Gets the {@link LoginContextSealer} service bound to the Servlet context.
+     * 
+     * @param context the Servlet context
+     * @param serviceId the ID under which the service bound
+     * 
+     * @return the service, or null if login contexts are kept in the storage service
+     */
+    public static LoginContextSealer getLoginContextSealer(ServletContext context, String serviceId) {
+        return (LoginContextSealer) context.getAttribute(serviceId);
+    }
+
+    /**
+     * Gets the {@link AttributePreResolver} service bound to the Servlet context.
+     * 
+     * @param context the Servlet context
+     * 
+     * @return the service, or null if attributes are not resolved ahead of time
+     */
+    public static AttributePreResolver getAttributePreResolver(ServletContext context) {
+        return getAttributePreResolver(context, getContextParam(context, ATTRIBUTE_PRE_RESOLVER_SID_CTX_PARAM,
+                DEFAULT_ATTRIBUTE_PRE_RESOLVER_SID));
+    }
+
+    /**
+     * Gets the {@link AttributePreResolver} service bound to the Servlet context.
+     * 
+     * @param context the Servlet context
+     * @param serviceId the ID under which the service bound
+     * 
+     * @return the service, or null if attributes are not resolved ahead of time
+     */
+    public static AttributePreResolver getAttributePreResolver(ServletContext context, String serviceId) {
+        return (AttributePreResolver) context.getAttribute(serviceId);
+    }
+
+    /**
+     * Gets the {@link JAASLoginExecutor} service bound to the Servlet context.
+     * 
+     * @param context the Servlet context
+     * 
+     * @return the service, never null
+     */
+    public static JAASLoginExecutor getJAASLoginExecutor(ServletContext context) {
+        return getJAASLoginExecutor(context, getContextParam(context, JAAS_LOGIN_EXECUTOR_SID_CTX_PARAM,
+                DEFAULT_JAAS_LOGIN_EXECUTOR_SID));
+    }
+
+    /**
+     * Gets the {@link JAASLoginExecutor} bound to the Servlet context. If none is bound an executor with the default
+     * limits is created and bound, so that all JAAS logins of the web application share the same limits.
+     * 
+     * @param context the Servlet context
+     * @param serviceId the ID under which the service bound
+     * 
+     * @return the service, never null
+     */
+    public static JAASLoginExecutor getJAASLoginExecutor(ServletContext context, String serviceId) {
+        synchronized (context) {
+            JAASLoginExecutor executor = (JAASLoginExecutor) context.getAttribute(serviceId);
+            if (executor == null) {
+                log.debug("No JAAS login executor configured, using one with the default limits");
+                executor = new JAASLoginExecutor();
+                context.setAttribute(serviceId, executor);
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * Gets the {@link SigningService} service bound to the Servlet context.
+     * 
+     * @param context the Servlet context
+     * 
+     * @return the service, never null
+     */
+    public static SigningService getSigningService(ServletContext context) {
+        return getSigningService(context, getContextParam(context, SIGNING_SERVICE_SID_CTX_PARAM,
+                DEFAULT_SIGNING_SERVICE_SID));
+    }
+
+    /**
+     * Gets the {@link SigningService} bound to the Servlet context. If none is bound a service with one worker thread
+     * per CPU core is created and bound, so that all profile handlers of the web application share the same workers.
+     * 
+     * @param context the Servlet context
+     * @param serviceId the ID under which the service bound
+     * 
+     * @return the service, never null
+     */
+    public static SigningService getSigningService(ServletContext context, String serviceId) {
+        synchronized (context) {
+            SigningService service = (SigningService) context.getAttribute(serviceId);
+            if (service == null) {
+                log.debug("No signing service configured, using one with a worker thread per CPU core");
+                service = new SigningService();
+                context.setAttribute(serviceId, service);
+            }
+            return service;
+        }
+    }
+
+    /**
+     * Gets the cache of verified credentials used by the username/password login handler.
+     * 
+     * @param context the Servlet context
+     * 
+     * @return the cache, or null if credentials are not cached
+     */
+    public static CachingCredentialValidator getCredentialCache(ServletContext context) {
+        return (CachingCredentialValidator) context.getAttribute(CREDENTIAL_CACHE_ATTRIBUTE);
+    }
+
+    /**
+     * Gets the tracker of failed logins used by the username/password login handler.
+     * 
+     * @param context the Servlet context
+     * 
+     * @return the tracker, or null if failed logins are not tracked
+     */
+    public static LoginFailureTracker getLoginFailureTracker(ServletContext context) {
+        return (LoginFailureTracker) context.getAttribute(LOGIN_FAILURE_TRACKER_ATTRIBUTE);
+    }
+
+    /**
+     * Gets the processor used by the authentication engine to select login handlers and record authentications.
+     * 
+     * @param context the Servlet context
+     * 
+     * @return the processor, or null if the authentication engine has not been initialized
+     */
+    public static AuthenticationProcessor getAuthenticationProcessor(ServletContext context) {
+        return (AuthenticationProcessor) context.getAttribute(AUTHENTICATION_PROCESSOR_ATTRIBUTE);
+    }
+
+    /**
+     * Gets the {@link SessionCookieSigner} service bound to the Servlet context.
+     * 
+     * @param context the Servlet context
+     * 
+     * @return the service, or null if session cookies are signed with the secret of the session they reference
+     */
+    public static SessionCookieSigner getSessionCookieSigner(ServletContext context) {
+        return getSessionCookieSigner(context, getContextParam(context, SESSION_COOKIE_SIGNER_SID_CTX_PARAM,
+                DEFAULT_SESSION_COOKIE_SIGNER_SID));
+    }
+
+    /**
+     * Gets the {@link SessionCookieSigner} bound to the Servlet context. No signer is ever created with a key of its
+     * own, which would not be shared by other nodes nor survive a restart.
+     * 
+     * @param context the Servlet context
+     * @param serviceId the ID under which the service bound
+     * 
+     * @return the service or null if there is no such service bound to the context
+     */
+    public static SessionCookieSigner getSessionCookieSigner(ServletContext context, String serviceId) {
+        return (SessionCookieSigner) context.getAttribute(serviceId);
+    }
+
     /**
      * Gets the {@link StorageService} service bound to the Servlet context.
      * 
@@ -583,30 +1018,47 @@ public class HttpServletHelper {
             throw new IllegalArgumentException("HTTP request may not be null");
         }
 
-        Cookie loginContextKeyCookie = getCookie(httpRequest, LOGIN_CTX_KEY_NAME);
-        if (loginContextKeyCookie == null) {
+        LoginContextSealer sealer = getLoginContextSealer(context);
+        String loginContextKey = getLoginContextKey(httpRequest, sealer != null);
+        if (loginContextKey == null) {
             log.debug("No LoginContext cookie available, no unbinding necessary.");
+            cacheLoginContext(httpRequest, null);
             return null;
         }
 
-        String loginContextKey = DatatypeHelper.safeTrimOrNullString(loginContextKeyCookie.getValue());
-        if (loginContextKey == null) {
-            log.warn("Corrupted LoginContext Key cookie, it did not contain a value");
-            return null;
+        Cookie loginContextKeyCookie = getCookie(httpRequest, LOGIN_CTX_KEY_NAME);
+        if (loginContextKeyCookie != null) {
+            log.debug("Expiring LoginContext cookie");
+            loginContextKeyCookie.setMaxAge(0);
+            loginContextKeyCookie.setPath("".equals(httpRequest.getContextPath()) ? "/" : httpRequest
+                    .getContextPath());
+            loginContextKeyCookie.setVersion(1);
+            httpResponse.addCookie(loginContextKeyCookie);
         }
 
-        log.debug("Expiring LoginContext cookie");
-        loginContextKeyCookie.setMaxAge(0);
-        loginContextKeyCookie.setPath("".equals(httpRequest.getContextPath()) ? "/" : httpRequest.getContextPath());
-        loginContextKeyCookie.setVersion(1);
-        httpResponse.addCookie(loginContextKeyCookie);
+        if (LoginContextSealer.isSealed(loginContextKey)) {
+            LoginContext loginContext = null;
+            if (sealer != null) {
+                loginContext = getLoginContext(storageService, context, httpRequest);
+                if (loginContext != null && !sealer.markConsumed(loginContextKey)) {
+                    log.warn("Sealed LoginContext could not be marked as consumed, refusing it");
+                    loginContext = null;
+                }
+            }
+            cacheLoginContext(httpRequest, null);
+            return loginContext;
+        }
 
         String storageServicePartition = getContextParam(context, LOGIN_CTX_PARTITION_CTX_PARAM,
                 DEFAULT_LOGIN_CTX_PARITION);
 
         log.debug("Removing LoginContext, with key {}, from StorageService partition {}", loginContextKey,
                 storageServicePartition);
+        countStorageCall(httpRequest);
         LoginContextEntry entry = (LoginContextEntry) storageService.remove(storageServicePartition, loginContextKey);
+        cacheLoginContext(httpRequest, null);
+        log.debug("LoginContext storage service calls made during this request: {}",
+                getLoginContextStorageCalls(httpRequest));
         if (entry != null && !entry.isExpired()) {
             return entry.getLoginContext();
         }
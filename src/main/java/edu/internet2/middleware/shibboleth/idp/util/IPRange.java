@@ -18,23 +18,29 @@
 package edu.internet2.middleware.shibboleth.idp.util;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.BitSet;
 
 import org.opensaml.xml.util.DatatypeHelper;
 
-/** Represents a range of IP addresses. */
+/**
+ * Represents a range of IP addresses.
+ * 
+ * Addresses are parsed from their textual form without any name resolution. Large sets of ranges should be looked up
+ * through an {@link IPRangeSet}.
+ */
 public class IPRange {
 
-    /** Number of bits within */
-    private int addressLength;
+    /** Length, in bytes, of an IPv4 address. */
+    public static final int IPV4_LENGTH = 4;
+
+    /** Length, in bytes, of an IPv6 address. */
+    public static final int IPV6_LENGTH = 16;
+
+    /** The IP network address for the range, with the bits outside the netmask cleared. */
+    private byte[] network;
 
-    /** The IP network address for the range. */
-    private BitSet network;
+    /** The number of bits in the netmask. */
+    private int prefixLength;
 
-    /** The netmask for the range. */
-    private BitSet mask;
-    
     /**
      * Constructor
      * 
@@ -52,14 +58,18 @@ public class IPRange {
      * @param maskSize the number of bits in the netmask
      */
     public IPRange(byte[] networkAddress, int maskSize) {
-        addressLength = networkAddress.length * 8;
-        if (addressLength != 32 && addressLength != 128) {
+        if (networkAddress.length != IPV4_LENGTH && networkAddress.length != IPV6_LENGTH) {
             throw new IllegalArgumentException("Network address was neither an IPv4 or IPv6 address");
         }
+        if (maskSize < 0 || maskSize > networkAddress.length * 8) {
+            throw new IllegalArgumentException("Invalid netmask size");
+        }
 
-        network = toBitSet(networkAddress);
-        mask = new BitSet(addressLength);
-        mask.set(addressLength - maskSize, addressLength, true);
+        prefixLength = maskSize;
+        network = new byte[networkAddress.length];
+        for (int i = 0; i < network.length; i++) {
+            network[i] = (byte) (networkAddress[i] & getMaskByte(i));
+        }
     }
 
     /**
@@ -76,17 +86,87 @@ public class IPRange {
         }
         
         String[] blockParts = block.split("/");
+        if (blockParts.length != 2) {
+            throw new IllegalArgumentException("Invalid CIDR block definition");
+        }
         try{
-            InetAddress networkAddress = InetAddress.getByName(blockParts[0]);
+            byte[] networkAddress = parseAddress(blockParts[0]);
             int maskSize = Integer.parseInt(blockParts[1]);
             return new IPRange(networkAddress, maskSize);
-        }catch(UnknownHostException e){
-            throw new IllegalArgumentException("Invalid IP address");
         }catch(NumberFormatException e){
             throw new IllegalArgumentException("Invalid netmask size");
         }
     }
-    
+
+    /**
+     * Parses the textual form of an IPv4 or IPv6 address. No name resolution is performed. As with
+     * {@link InetAddress}, IPv4-mapped IPv6 addresses are returned as IPv4 addresses.
+     * 
+     * @param address the textual address
+     * 
+     * @return the address, 4 bytes long for an IPv4 address and 16 bytes long for an IPv6 address
+     */
+    public static byte[] parseAddress(String address) {
+        byte[] buffer = new byte[IPV6_LENGTH];
+        int length = parseAddress(address, buffer);
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid IP address");
+        }
+        byte[] parsed = new byte[length];
+        System.arraycopy(buffer, 0, parsed, 0, length);
+        return parsed;
+    }
+
+    /**
+     * Parses the textual form of an IPv4 or IPv6 address into a buffer, without allocating. No name resolution is
+     * performed. A zone index and enclosing brackets around an IPv6 address are ignored. IPv4-mapped IPv6 addresses are
+     * parsed as IPv4 addresses.
+     * 
+     * @param address the textual address
+     * @param buffer buffer of at least 16 bytes receiving the address
+     * 
+     * @return length of the address, 4 or 16, or -1 if the text is not a valid address
+     */
+    static int parseAddress(String address, byte[] buffer) {
+        if (address == null) {
+            return -1;
+        }
+
+        int start = 0;
+        int end = address.length();
+        if (end > 1 && address.charAt(0) == '[' && address.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        }
+        for (int i = start; i < end; i++) {
+            if (address.charAt(i) == '%') {
+                end = i;
+                break;
+            }
+        }
+        if (start >= end) {
+            return -1;
+        }
+
+        for (int i = start; i < end; i++) {
+            if (address.charAt(i) == ':') {
+                if (!parseIPv6(address, start, end, buffer)) {
+                    return -1;
+                }
+                if (isIPv4Mapped(buffer)) {
+                    System.arraycopy(buffer, 12, buffer, 0, IPV4_LENGTH);
+                    return IPV4_LENGTH;
+                }
+                return IPV6_LENGTH;
+            }
+        }
+
+        if (!parseIPv4(address, start, end, buffer, 0)) {
+            return -1;
+        }
+        return IPV4_LENGTH;
+    }
+
     /**
      * Determines whether the given address is contained in the IP range.
      * 
@@ -106,34 +186,197 @@ public class IPRange {
      * @return true if the address is in the range, false it not
      */
     public boolean contains(byte[] address) {
-        if (address.length * 8 != addressLength) {
+        if (address.length != network.length) {
             return false;
         }
 
-        BitSet addrNetwork = toBitSet(address);
-        addrNetwork.and(mask);
+        for (int i = 0; i < network.length; i++) {
+            if ((address[i] & getMaskByte(i)) != (network[i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        return addrNetwork.equals(network);
+    /**
+     * Gets the network address of the range, with the bits outside the netmask cleared.
+     * 
+     * @return the network address
+     */
+    public byte[] getNetworkAddress() {
+        byte[] address = new byte[network.length];
+        System.arraycopy(network, 0, address, 0, network.length);
+        return address;
     }
 
     /**
-     * Converts a byte array to a BitSet.
+     * Gets the last address of the range, with all the bits outside the netmask set.
      * 
-     * The supplied byte array is assumed to have the most significant bit in element 0.
+     * @return the last address
+     */
+    public byte[] getLastAddress() {
+        byte[] address = new byte[network.length];
+        for (int i = 0; i < network.length; i++) {
+            address[i] = (byte) (network[i] | ~getMaskByte(i));
+        }
+        return address;
+    }
+
+    /**
+     * Gets the number of bits in the netmask.
+     * 
+     * @return number of bits in the netmask
+     */
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    /**
+     * Gets the byte of the netmask at a given position.
+     * 
+     * @param index position of the byte, most significant first
+     * 
+     * @return the netmask byte, as an unsigned value
+     */
+    private int getMaskByte(int index) {
+        int bits = prefixLength - index * 8;
+        if (bits >= 8) {
+            return 0xff;
+        }
+        if (bits <= 0) {
+            return 0;
+        }
+        return (0xff << (8 - bits)) & 0xff;
+    }
+
+    /**
+     * Parses a dotted-decimal IPv4 address.
+     * 
+     * @param text the text
+     * @param start index of the first character of the address
+     * @param end index after the last character of the address
+     * @param buffer buffer receiving the address
+     * @param offset offset in the buffer at which the address is written
+     * 
+     * @return true if the text is a valid address
+     */
+    private static boolean parseIPv4(String text, int start, int end, byte[] buffer, int offset) {
+        int octets = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = start; i <= end; i++) {
+            char c = i < end ? text.charAt(i) : '.';
+            if (c == '.') {
+                if (digits == 0 || octets == IPV4_LENGTH) {
+                    return false;
+                }
+                buffer[offset + octets++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9') {
+                value = value * 10 + c - '0';
+                if (++digits > 3 || value > 255) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return octets == IPV4_LENGTH;
+    }
+
+    /**
+     * Parses an IPv6 address made of hexadecimal groups, possibly compressed with "::" and possibly ending with a
+     * dotted-decimal IPv4 address.
      * 
-     * @param bytes the byte array with most significant bit in element 0.
+     * @param text the text
+     * @param start index of the first character of the address
+     * @param end index after the last character of the address
+     * @param buffer buffer receiving the address
      * 
-     * @return the BitSet
+     * @return true if the text is a valid address
      */
-    protected BitSet toBitSet(byte[] bytes) {
-        BitSet bits = new BitSet(bytes.length * 8);
+    private static boolean parseIPv6(String text, int start, int end, byte[] buffer) {
+        int length = 0;
+        int compressAt = -1;
+        int i = start;
 
-        for (int i = 0; i < bytes.length * 8; i++) {
-            if ((bytes[bytes.length - i / 8 - 1] & (1 << (i % 8))) > 0) {
-                bits.set(i);
+        if (text.charAt(i) == ':') {
+            if (i + 1 >= end || text.charAt(i + 1) != ':') {
+                return false;
             }
+            compressAt = 0;
+            i += 2;
         }
 
-        return bits;
+        while (i < end) {
+            int groupStart = i;
+            int value = 0;
+            while (i < end && Character.digit(text.charAt(i), 16) >= 0) {
+                value = (value << 4) | Character.digit(text.charAt(i), 16);
+                i++;
+            }
+            int digits = i - groupStart;
+
+            if (i < end && text.charAt(i) == '.') {
+                if (length > IPV6_LENGTH - IPV4_LENGTH || !parseIPv4(text, groupStart, end, buffer, length)) {
+                    return false;
+                }
+                length += IPV4_LENGTH;
+                i = end;
+                break;
+            }
+
+            if (digits == 0 || digits > 4 || length > IPV6_LENGTH - 2) {
+                return false;
+            }
+            buffer[length++] = (byte) (value >> 8);
+            buffer[length++] = (byte) value;
+
+            if (i < end) {
+                if (text.charAt(i) != ':' || i + 1 >= end) {
+                    return false;
+                }
+                i++;
+                if (text.charAt(i) == ':') {
+                    if (compressAt >= 0) {
+                        return false;
+                    }
+                    compressAt = length;
+                    i++;
+                }
+            }
+        }
+
+        if (compressAt >= 0) {
+            if (length == IPV6_LENGTH) {
+                return false;
+            }
+            int shift = IPV6_LENGTH - length;
+            for (int j = length - 1; j >= compressAt; j--) {
+                buffer[j + shift] = buffer[j];
+            }
+            for (int j = compressAt; j < compressAt + shift; j++) {
+                buffer[j] = 0;
+            }
+            return true;
+        }
+        return length == IPV6_LENGTH;
+    }
+
+    /**
+     * Checks whether an IPv6 address is an IPv4-mapped address.
+     * 
+     * @param address the IPv6 address
+     * 
+     * @return true if the address is of the form ::ffff:a.b.c.d
+     */
+    private static boolean isIPv4Mapped(byte[] address) {
+        for (int i = 0; i < 10; i++) {
+            if (address[i] != 0) {
+                return false;
+            }
+        }
+        return address[10] == (byte) 0xff && address[11] == (byte) 0xff;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,356 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable set of {@link IPRange}s compiled for fast membership tests.
+ * 
+ * The ranges are sorted and merged into disjoint address intervals, kept separately for IPv4 and IPv6, so that a
+ * lookup is a binary search over primitive arrays whatever the number of configured ranges. Looking up an address,
+ * including parsing its textual form, does not allocate.
+ */
+public class IPRangeSet {
+
+    /** Mask flipping the sign bit, used to compare unsigned 64 bit values as signed ones. */
+    private static final long SIGN_BIT = 0x8000000000000000L;
+
+    /** Per-thread buffer into which textual addresses are parsed. */
+    private static final ThreadLocal<byte[]> ADDRESS_BUFFER = new ThreadLocal<byte[]>() {
+        /** {@inheritDoc} */
+        protected byte[] initialValue() {
+            return new byte[IPRange.IPV6_LENGTH];
+        }
+    };
+
+    /** Number of ranges the set was built from. */
+    private final int rangeCount;
+
+    /** First address of each IPv4 interval, in ascending order. */
+    private final long[] ipv4Starts;
+
+    /** Last address of each IPv4 interval. */
+    private final long[] ipv4Ends;
+
+    /** High 64 bits, sign flipped, of the first address of each IPv6 interval, in ascending order. */
+    private final long[] ipv6StartsHigh;
+
+    /** Low 64 bits, sign flipped, of the first address of each IPv6 interval. */
+    private final long[] ipv6StartsLow;
+
+    /** High 64 bits, sign flipped, of the last address of each IPv6 interval. */
+    private final long[] ipv6EndsHigh;
+
+    /** Low 64 bits, sign flipped, of the last address of each IPv6 interval. */
+    private final long[] ipv6EndsLow;
+
+    /**
+     * Constructor.
+     * 
+     * @param ranges ranges contained in the set, may be null or empty
+     */
+    public IPRangeSet(Collection<IPRange> ranges) {
+        List<long[]> ipv4 = new ArrayList<long[]>();
+        List<long[]> ipv6 = new ArrayList<long[]>();
+        int count = 0;
+        if (ranges != null) {
+            for (IPRange range : ranges) {
+                if (range == null) {
+                    continue;
+                }
+                count++;
+                byte[] first = range.getNetworkAddress();
+                byte[] last = range.getLastAddress();
+                if (first.length == IPRange.IPV4_LENGTH) {
+                    ipv4.add(new long[] { toLong(first, 0, 4), toLong(last, 0, 4), });
+                } else {
+                    ipv6.add(new long[] { toLong(first, 0, 8) ^ SIGN_BIT, toLong(first, 8, 8) ^ SIGN_BIT,
+                            toLong(last, 0, 8) ^ SIGN_BIT, toLong(last, 8, 8) ^ SIGN_BIT, });
+                }
+            }
+        }
+        rangeCount = count;
+
+        ipv4 = merge(ipv4, 1);
+        ipv4Starts = new long[ipv4.size()];
+        ipv4Ends = new long[ipv4.size()];
+        for (int i = 0; i < ipv4Starts.length; i++) {
+            ipv4Starts[i] = ipv4.get(i)[0];
+            ipv4Ends[i] = ipv4.get(i)[1];
+        }
+
+        ipv6 = merge(ipv6, 2);
+        ipv6StartsHigh = new long[ipv6.size()];
+        ipv6StartsLow = new long[ipv6.size()];
+        ipv6EndsHigh = new long[ipv6.size()];
+        ipv6EndsLow = new long[ipv6.size()];
+        for (int i = 0; i < ipv6StartsHigh.length; i++) {
+            long[] interval = ipv6.get(i);
+            ipv6StartsHigh[i] = interval[0];
+            ipv6StartsLow[i] = interval[1];
+            ipv6EndsHigh[i] = interval[2];
+            ipv6EndsLow[i] = interval[3];
+        }
+    }
+
+    /**
+     * Parses a whitespace separated list of CIDR blocks into a set of ranges.
+     * 
+     * @param cidrBlocks the CIDR blocks, may be null
+     * 
+     * @return the set of ranges
+     */
+    public static IPRangeSet parseCIDRBlocks(String cidrBlocks) {
+        List<IPRange> ranges = new ArrayList<IPRange>();
+        if (cidrBlocks != null) {
+            for (String block : cidrBlocks.trim().split("\\s+")) {
+                if (block.length() > 0) {
+                    ranges.add(IPRange.parseCIDRBlock(block));
+                }
+            }
+        }
+        return new IPRangeSet(ranges);
+    }
+
+    /**
+     * Determines whether the given address is contained in any range of the set.
+     * 
+     * @param address the textual form of the address, no name resolution is performed
+     * 
+     * @return true if the address is in the set, false if it is not or is not a valid IP address
+     */
+    public boolean contains(String address) {
+        byte[] buffer = ADDRESS_BUFFER.get();
+        int length = IPRange.parseAddress(address, buffer);
+        if (length < 0) {
+            return false;
+        }
+        return contains(buffer, length);
+    }
+
+    /**
+     * Determines whether the given address is contained in any range of the set.
+     * 
+     * @param address the address to check
+     * 
+     * @return true if the address is in the set, false if not
+     */
+    public boolean contains(byte[] address) {
+        return contains(address, address.length);
+    }
+
+    /**
+     * Gets the number of ranges the set was built from.
+     * 
+     * @return number of ranges the set was built from
+     */
+    public int getRangeCount() {
+        return rangeCount;
+    }
+
+    /**
+     * Gets the number of disjoint intervals the ranges were merged into.
+     * 
+     * @return number of disjoint intervals
+     */
+    public int getIntervalCount() {
+        return ipv4Starts.length + ipv6StartsHigh.length;
+    }
+
+    /**
+     * Checks whether the set is empty.
+     * 
+     * @return true if the set contains no address
+     */
+    public boolean isEmpty() {
+        return getIntervalCount() == 0;
+    }
+
+    /**
+     * Determines whether the given address is contained in any range of the set.
+     * 
+     * @param address buffer holding the address
+     * @param length length of the address, 4 or 16
+     * 
+     * @return true if the address is in the set, false if not
+     */
+    private boolean contains(byte[] address, int length) {
+        if (length == IPRange.IPV4_LENGTH) {
+            long value = toLong(address, 0, IPRange.IPV4_LENGTH);
+            int index = findInterval(ipv4Starts, null, value, 0);
+            return index >= 0 && value <= ipv4Ends[index];
+        }
+
+        if (length == IPRange.IPV6_LENGTH) {
+            long high = toLong(address, 0, 8) ^ SIGN_BIT;
+            long low = toLong(address, 8, 8) ^ SIGN_BIT;
+            int index = findInterval(ipv6StartsHigh, ipv6StartsLow, high, low);
+            return index >= 0 && compare(high, low, ipv6EndsHigh[index], ipv6EndsLow[index]) <= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * Finds the last interval whose first address is not greater than the given address.
+     * 
+     * @param startsHigh high part of the first address of each interval
+     * @param startsLow low part of the first address of each interval, or null if addresses only have a high part
+     * @param high high part of the address
+     * @param low low part of the address, ignored if startsLow is null
+     * 
+     * @return index of the interval or -1 if the address is before every interval
+     */
+    private int findInterval(long[] startsHigh, long[] startsLow, long high, long low) {
+        int lowIndex = 0;
+        int highIndex = startsHigh.length - 1;
+        int found = -1;
+        while (lowIndex <= highIndex) {
+            int middle = (lowIndex + highIndex) >>> 1;
+            int comparison;
+            if (startsLow == null) {
+                comparison = startsHigh[middle] < high ? -1 : (startsHigh[middle] == high ? 0 : 1);
+            } else {
+                comparison = compare(startsHigh[middle], startsLow[middle], high, low);
+            }
+            if (comparison <= 0) {
+                found = middle;
+                lowIndex = middle + 1;
+            } else {
+                highIndex = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Sorts intervals and merges those that overlap or are adjacent.
+     * 
+     * @param intervals intervals, each an array holding the parts of its first address followed by those of its last
+     * @param parts number of longs making up an address
+     * 
+     * @return the disjoint intervals in ascending order
+     */
+    private static List<long[]> merge(List<long[]> intervals, final int parts) {
+        Collections.sort(intervals, new Comparator<long[]>() {
+            /** {@inheritDoc} */
+            public int compare(long[] interval1, long[] interval2) {
+                return compareParts(interval1, 0, interval2, 0, parts);
+            }
+        });
+
+        List<long[]> merged = new ArrayList<long[]>();
+        long[] current = null;
+        for (long[] interval : intervals) {
+            if (current != null && isContiguous(current, interval, parts)) {
+                if (compareParts(interval, parts, current, parts, parts) > 0) {
+                    System.arraycopy(interval, parts, current, parts, parts);
+                }
+            } else {
+                current = interval;
+                merged.add(current);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Checks whether an interval starts no later than just after the end of a preceding interval.
+     * 
+     * @param previous the preceding interval
+     * @param next the interval following it
+     * @param parts number of longs making up an address
+     * 
+     * @return true if the two intervals can be merged
+     */
+    private static boolean isContiguous(long[] previous, long[] next, int parts) {
+        if (compareParts(next, 0, previous, parts, parts) <= 0) {
+            return true;
+        }
+
+        // the interval starts right after the end of the previous one if the end plus one equals the start
+        if (parts == 1) {
+            return previous[1] + 1 == next[0];
+        }
+        long low = previous[3] + 1;
+        long high = low == SIGN_BIT ? previous[2] + 1 : previous[2];
+        return high == next[0] && low == next[1];
+    }
+
+    /**
+     * Compares addresses held within intervals.
+     * 
+     * @param interval1 interval holding the first address
+     * @param offset1 offset of the first address within its interval
+     * @param interval2 interval holding the second address
+     * @param offset2 offset of the second address within its interval
+     * @param parts number of longs making up an address
+     * 
+     * @return a negative number, zero or a positive number as the first address is lower than, equal to or greater
+     *         than the second
+     */
+    private static int compareParts(long[] interval1, int offset1, long[] interval2, int offset2, int parts) {
+        if (parts == 1) {
+            return interval1[offset1] < interval2[offset2] ? -1 : (interval1[offset1] == interval2[offset2] ? 0 : 1);
+        }
+        return compare(interval1[offset1], interval1[offset1 + 1], interval2[offset2], interval2[offset2 + 1]);
+    }
+
+    /**
+     * Compares two sign flipped 128 bit IPv6 addresses.
+     * 
+     * @param high1 high part of the first address
+     * @param low1 low part of the first address
+     * @param high2 high part of the second address
+     * @param low2 low part of the second address
+     * 
+     * @return a negative number, zero or a positive number as the first address is lower than, equal to or greater
+     *         than the second
+     */
+    private static int compare(long high1, long low1, long high2, long low2) {
+        if (high1 != high2) {
+            return high1 < high2 ? -1 : 1;
+        }
+        if (low1 != low2) {
+            return low1 < low2 ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Reads bytes of an address as a big-endian unsigned number.
+     * 
+     * @param address the address
+     * @param offset offset of the first byte to read
+     * @param count number of bytes to read, at most 8
+     * 
+     * @return the number
+     */
+    private static long toLong(byte[] address, int offset, int count) {
+        long value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            value = (value << 8) | (address[i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of operation latencies, in milliseconds, that may be updated concurrently without locking.
+ * 
+ * Latencies are counted in buckets whose upper bounds double from 1ms up to {@link #MAX_BOUND}; longer latencies are
+ * counted in a final, unbounded, bucket. Percentiles are therefore reported as the upper bound of the bucket they fall
+ * in.
+ */
+public class LatencyHistogram {
+
+    /** Upper bound, in milliseconds, of the last bounded bucket. */
+    public static final long MAX_BOUND = 65536;
+
+    /** Number of buckets, including the unbounded one. */
+    private static final int BUCKETS = 18;
+
+    /** Number of latencies counted in each bucket. */
+    private final AtomicLongArray counts;
+
+    /** Sum of all counted latencies. */
+    private final AtomicLong total;
+
+    /** Constructor. */
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        total = new AtomicLong();
+    }
+
+    /**
+     * Records the latency of an operation.
+     * 
+     * @param latency latency of the operation, in milliseconds
+     */
+    public void record(long latency) {
+        long millis = Math.max(0, latency);
+        counts.incrementAndGet(getBucket(millis));
+        total.addAndGet(millis);
+    }
+
+    /**
+     * Gets the number of recorded latencies.
+     * 
+     * @return number of recorded latencies
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Gets the mean of the recorded latencies.
+     * 
+     * @return mean latency in milliseconds, 0 if none were recorded
+     */
+    public long getMean() {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        return total.get() / count;
+    }
+
+    /**
+     * Gets the upper bound of the bucket a percentile of the recorded latencies falls in.
+     * 
+     * @param percentile the percentile, between 0 and 100
+     * 
+     * @return upper bound of the bucket in milliseconds, 0 if no latencies were recorded or {@link Long#MAX_VALUE} if
+     *         the percentile falls in the unbounded bucket
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+
+        long[] snapshot = getCounts();
+        long count = 0;
+        for (long bucketCount : snapshot) {
+            count += bucketCount;
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                return getUpperBound(i);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Gets a snapshot of the number of latencies counted in each bucket.
+     * 
+     * @return count of each bucket, the bucket bounds are given by {@link #getUpperBound(int)}
+     */
+    public long[] getCounts() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Gets the upper bound, inclusive, of a bucket.
+     * 
+     * @param bucket index of the bucket
+     * 
+     * @return upper bound in milliseconds, or {@link Long#MAX_VALUE} for the unbounded bucket
+     */
+    public static long getUpperBound(int bucket) {
+        if (bucket >= BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return 1L << bucket;
+    }
+
+    /**
+     * Gets the bucket a latency is counted in.
+     * 
+     * @param millis the latency in milliseconds
+     * 
+     * @return index of the bucket
+     */
+    private static int getBucket(long millis) {
+        if (millis > MAX_BOUND) {
+            return BUCKETS - 1;
+        }
+        if (millis <= 1) {
+            return 0;
+        }
+        return 64 - Long.numberOfLeadingZeros(millis - 1);
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Allocates variable sized blocks of memory outside of the Java heap.
+ * 
+ * Memory is reserved in fixed size slabs, either direct {@link ByteBuffer}s or, if a directory is given, memory mapped
+ * files within that directory. Slabs are carved into blocks whose size is a power of two between
+ * {@link #MIN_BLOCK_SIZE} and {@link #MAX_BLOCK_SIZE}; freed blocks are kept on a free list per block size and reused
+ * before any new slab space is handed out. Slabs are never returned to the operating system.
+ * 
+ * Blocks are identified by an address which encodes the slab index in its upper 32 bits and the offset of the block
+ * within the slab in its lower 32 bits. Each block starts with a small header holding its size class and the number of
+ * data bytes it holds. Callers are responsible for not using an address after freeing it; the allocator does no
+ * locking on behalf of the data held within a block.
+ */
+public class SlabAllocator {
+
+    /** Smallest block handed out, in bytes. */
+    public static final int MIN_BLOCK_SIZE = 128;
+
+    /** Largest block handed out, in bytes. */
+    public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+    /** Default size of a slab, in bytes. */
+    public static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+
+    /** Number of bytes of block header preceding the data of each block. */
+    private static final int HEADER_SIZE = 8;
+
+    /** Size class of the smallest block. */
+    private static final int MIN_SIZE_CLASS = 7;
+
+    /** Size class of the largest block. */
+    private static final int MAX_SIZE_CLASS = 20;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(SlabAllocator.class);
+
+    /** Size of each slab, in bytes. */
+    private final int slabSize;
+
+    /** Maximum number of slabs which may be reserved. */
+    private final int maxSlabs;
+
+    /** Directory in which slab files are created, or null if direct buffers are used. */
+    private final File slabDirectory;
+
+    /** Reserved slabs, replaced wholesale when a slab is added so readers need no lock. */
+    private volatile ByteBuffer[] slabs;
+
+    /** Offset of the first unused byte in the last slab. */
+    private int slabOffset;
+
+    /** Free blocks, per size class. */
+    private final FreeList[] freeLists;
+
+    /** Lock guarding slab reservation and the bump pointer. */
+    private final Object slabLock = new Object();
+
+    /** Number of bytes held in blocks currently allocated, including headers and padding. */
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    /**
+     * Constructor. Uses direct buffers of {@link #DEFAULT_SLAB_SIZE} bytes.
+     * 
+     * @param maxMemory maximum number of bytes to reserve
+     */
+    public SlabAllocator(long maxMemory) {
+        this(maxMemory, DEFAULT_SLAB_SIZE, null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param maxMemory maximum number of bytes to reserve, rounded up to a whole number of slabs
+     * @param size size of each slab in bytes, at least {@link #MAX_BLOCK_SIZE}
+     * @param directory directory in which memory mapped slab files are created, or null to use direct buffers
+     */
+    public SlabAllocator(long maxMemory, int size, File directory) {
+        if (size < MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Slab size may not be less than " + MAX_BLOCK_SIZE + " bytes");
+        }
+        if (maxMemory <= 0) {
+            throw new IllegalArgumentException("Maximum memory must be greater than zero");
+        }
+        if (directory != null && !directory.isDirectory()) {
+            throw new IllegalArgumentException("Slab directory " + directory.getAbsolutePath() + " does not exist");
+        }
+
+        slabSize = size;
+        maxSlabs = (int) Math.min(Integer.MAX_VALUE, (maxMemory + size - 1) / size);
+        slabDirectory = directory;
+        slabs = new ByteBuffer[0];
+        slabOffset = size;
+
+        freeLists = new FreeList[MAX_SIZE_CLASS + 1];
+        for (int i = MIN_SIZE_CLASS; i <= MAX_SIZE_CLASS; i++) {
+            freeLists[i] = new FreeList();
+        }
+    }
+
+    /**
+     * Stores the given data in a newly allocated block.
+     * 
+     * @param data data to store
+     * 
+     * @return address of the block
+     * 
+     * @throws IllegalStateException thrown if the data is larger than the largest block or if no more memory may be
+     *             reserved
+     */
+    public long store(byte[] data) {
+        long address = allocate(data.length);
+        ByteBuffer block = block(address);
+        block.putInt(data.length);
+        block.put(data);
+        return address;
+    }
+
+    /**
+     * Reads the data held in a block.
+     * 
+     * @param address address of the block
+     * 
+     * @return data held in the block
+     */
+    public byte[] load(long address) {
+        ByteBuffer block = block(address);
+        byte[] data = new byte[block.getInt()];
+        block.get(data);
+        return data;
+    }
+
+    /**
+     * Reads a long from the data held in a block.
+     * 
+     * @param address address of the block
+     * @param index offset within the block's data
+     * 
+     * @return the long
+     */
+    public long getLong(long address, int index) {
+        return slab(address).getLong(offset(address) + HEADER_SIZE + index);
+    }
+
+    /**
+     * Writes a long into the data held in a block.
+     * 
+     * @param address address of the block
+     * @param index offset within the block's data
+     * @param value the long
+     */
+    public void putLong(long address, int index, long value) {
+        slab(address).putLong(offset(address) + HEADER_SIZE + index, value);
+    }
+
+    /**
+     * Frees a block.
+     * 
+     * @param address address of the block
+     */
+    public void free(long address) {
+        int sizeClass = slab(address).getInt(offset(address));
+        freeLists[sizeClass].push(address);
+        allocatedBytes.addAndGet(-(1 << sizeClass));
+    }
+
+    /**
+     * Gets the number of bytes held in allocated blocks, including block headers and padding.
+     * 
+     * @return number of bytes held in allocated blocks
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * Gets the number of bytes reserved outside of the heap.
+     * 
+     * @return number of bytes reserved
+     */
+    public long getReservedBytes() {
+        return (long) slabs.length * slabSize;
+    }
+
+    /**
+     * Gets the maximum number of bytes which may be reserved.
+     * 
+     * @return maximum number of bytes which may be reserved
+     */
+    public long getMaxMemory() {
+        return (long) maxSlabs * slabSize;
+    }
+
+    /**
+     * Allocates a block able to hold the given number of data bytes.
+     * 
+     * @param length number of data bytes
+     * 
+     * @return address of the block
+     */
+    protected long allocate(int length) {
+        int sizeClass = sizeClass(length + HEADER_SIZE);
+
+        long address = freeLists[sizeClass].pop();
+        if (address == -1) {
+            address = carve(1 << sizeClass);
+        }
+        slab(address).putInt(offset(address), sizeClass);
+        allocatedBytes.addAndGet(1 << sizeClass);
+        return address;
+    }
+
+    /**
+     * Carves a new block out of the unused space of the slabs, reserving a new slab if needed.
+     * 
+     * @param blockSize size of the block, a power of two
+     * 
+     * @return address of the block
+     */
+    private long carve(int blockSize) {
+        synchronized (slabLock) {
+            if (slabOffset + blockSize > slabSize) {
+                // the tail of the current slab is too small, give it to the free lists rather than waste it
+                int remaining = slabSize - slabOffset;
+                for (int sizeClass = MAX_SIZE_CLASS; sizeClass >= MIN_SIZE_CLASS && slabs.length > 0; sizeClass--) {
+                    while (remaining >= 1 << sizeClass) {
+                        freeLists[sizeClass].push(address(slabs.length - 1, slabOffset));
+                        slabOffset += 1 << sizeClass;
+                        remaining -= 1 << sizeClass;
+                    }
+                }
+                addSlab();
+            }
+
+            long address = address(slabs.length - 1, slabOffset);
+            slabOffset += blockSize;
+            return address;
+        }
+    }
+
+    /** Reserves a new slab. Must be called while holding the slab lock. */
+    private void addSlab() {
+        if (slabs.length >= maxSlabs) {
+            throw new IllegalStateException("Off-heap memory limit of " + getMaxMemory() + " bytes reached");
+        }
+
+        ByteBuffer slab;
+        if (slabDirectory == null) {
+            slab = ByteBuffer.allocateDirect(slabSize);
+        } else {
+            slab = mapSlab(slabs.length);
+        }
+
+        ByteBuffer[] newSlabs = new ByteBuffer[slabs.length + 1];
+        System.arraycopy(slabs, 0, newSlabs, 0, slabs.length);
+        newSlabs[slabs.length] = slab;
+        slabs = newSlabs;
+        slabOffset = 0;
+        log.debug("Reserved off-heap slab {}, {} bytes now reserved", slabs.length - 1, getReservedBytes());
+    }
+
+    /**
+     * Maps a slab file into memory. The file is deleted once mapped, the mapping keeps the space until shutdown.
+     * 
+     * @param index index of the slab
+     * 
+     * @return the mapped slab
+     */
+    private ByteBuffer mapSlab(int index) {
+        RandomAccessFile slabFile = null;
+        try {
+            File file = File.createTempFile("slab" + index + "-", ".dat", slabDirectory);
+            file.deleteOnExit();
+            slabFile = new RandomAccessFile(file, "rw");
+            slabFile.setLength(slabSize);
+            ByteBuffer slab = slabFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, slabSize);
+            file.delete();
+            return slab;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to map off-heap slab file in " + slabDirectory, e);
+        } finally {
+            if (slabFile != null) {
+                try {
+                    slabFile.close();
+                } catch (IOException e) {
+                    log.debug("Unable to close slab file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets a view of a block, positioned at the length field that follows the size class.
+     * 
+     * @param address address of the block
+     * 
+     * @return view of the block
+     */
+    private ByteBuffer block(long address) {
+        ByteBuffer block = slab(address).duplicate();
+        int offset = offset(address);
+        block.limit(offset + (1 << block.getInt(offset)));
+        block.position(offset + 4);
+        return block;
+    }
+
+    /**
+     * Gets the slab holding a block.
+     * 
+     * @param address address of the block
+     * 
+     * @return the slab
+     */
+    private ByteBuffer slab(long address) {
+        return slabs[(int) (address >>> 32)];
+    }
+
+    /**
+     * Gets the offset of a block within its slab.
+     * 
+     * @param address address of the block
+     * 
+     * @return offset of the block
+     */
+    private int offset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * Builds the address of a block.
+     * 
+     * @param slab index of the slab holding the block
+     * @param offset offset of the block within the slab
+     * 
+     * @return address of the block
+     */
+    private long address(int slab, int offset) {
+        return ((long) slab << 32) | (offset & 0xffffffffL);
+    }
+
+    /**
+     * Gets the size class of the smallest block able to hold the given number of bytes.
+     * 
+     * @param size number of bytes, including the block header
+     * 
+     * @return the size class
+     */
+    private int sizeClass(int size) {
+        if (size > MAX_BLOCK_SIZE) {
+            throw new IllegalStateException("Block of " + size + " bytes exceeds the maximum of " + MAX_BLOCK_SIZE);
+        }
+        int sizeClass = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(sizeClass, MIN_SIZE_CLASS);
+    }
+
+    /** Stack of free block addresses. */
+    private static class FreeList {
+
+        /** Free block addresses. */
+        private long[] addresses = new long[64];
+
+        /** Number of free blocks. */
+        private int size;
+
+        /**
+         * Pushes a free block.
+         * 
+         * @param address address of the block
+         */
+        public synchronized void push(long address) {
+            if (size == addresses.length) {
+                long[] grown = new long[size * 2];
+                System.arraycopy(addresses, 0, grown, 0, size);
+                addresses = grown;
+            }
+            addresses[size++] = address;
+        }
+
+        /**
+         * Pops a free block.
+         * 
+         * @return address of the block or -1 if there are no free blocks
+         */
+        public synchronized long pop() {
+            if (size == 0) {
+                return -1;
+            }
+            return addresses[--size];
+        }
+    }
+}
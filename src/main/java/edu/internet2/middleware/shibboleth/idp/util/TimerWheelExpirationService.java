@@ -0,0 +1,545 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensaml.util.storage.ExpiringObject;
+import org.opensaml.util.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Expires storage service entries incrementally using a hierarchical timer wheel.
+ * 
+ * Entries are scheduled when they are stored and are only looked at again once their expiration instant comes due, so
+ * the cost of each tick is proportional to the number of entries expiring in that tick rather than to the size of the
+ * storage service. The wheel has {@value #LEVELS} levels of {@value #SLOTS} slots; entries further out than the lower
+ * levels can represent wait in a coarser level and are cascaded down as their time approaches.
+ * 
+ * Each key of a storage service is scheduled at most once: scheduling a new value under a key replaces the key's
+ * previous schedule, and {@link #cancel(StorageService, String, Object)}, which storage services call when a key is
+ * removed, drops it, so the wheel never holds on to entries which are no longer stored. When a key comes due the
+ * expiration of its current value is checked, so entries whose lifetime is extended after being stored (such as
+ * sessions, which expire after a period of inactivity) are simply rescheduled. {@link AbstractExpiringEntry}s are
+ * checked using their primitive expiration instant; other {@link ExpiringObject}s fall back to their expiration time.
+ * Expired values are removed from a {@link ConcurrentStorageService} only if the key is still bound to them, so a value
+ * stored again while its key is being expired is kept; other storage services remove the key unconditionally.
+ * 
+ * Scheduling and cancelling are lock-free and may be done from any thread; the wheel itself is only ever touched by the
+ * timer thread, which unlinks cancelled entries from their slots at the start of its next tick.
+ */
+public class TimerWheelExpirationService extends TimerTask {
+
+    /** Number of levels in the wheel. */
+    public static final int LEVELS = 4;
+
+    /** Number of slots in each level of the wheel. */
+    public static final int SLOTS = 64;
+
+    /** Number of bits used to index the slots of a level. */
+    private static final int SLOT_BITS = 6;
+
+    /** Mask to extract a slot index. */
+    private static final long SLOT_MASK = SLOTS - 1;
+
+    /** Number of ticks the wheel can represent. */
+    private static final long MAX_TICKS = 1L << (SLOT_BITS * LEVELS);
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(TimerWheelExpirationService.class);
+
+    /** Length of a tick in milliseconds. */
+    private final long tickLength;
+
+    /** Instant, in milliseconds since the epoch, of tick zero. */
+    private final long startInstant;
+
+    /** Wheel slots, indexed by level and slot. */
+    private final Slot[][] wheel;
+
+    /** Entries currently scheduled, indexed by the storage service, partition and key they are stored under. */
+    private final ConcurrentHashMap<EntryKey, ScheduledEntry> scheduled;
+
+    /** Entries scheduled since the last tick. */
+    private final ConcurrentLinkedQueue<ScheduledEntry> pending;
+
+    /** Entries cancelled since the last tick. */
+    private final ConcurrentLinkedQueue<ScheduledEntry> cancelled;
+
+    /** Tick the wheel is currently at. */
+    private long currentTick;
+
+    /** Total number of entries expired. */
+    private final AtomicLong totalExpired;
+
+    /** Number of entries expired by the last tick. */
+    private volatile long lastTickExpired;
+
+    /** Number of entries rescheduled by the last tick because their lifetime had been extended. */
+    private volatile long lastTickRescheduled;
+
+    /** Time, in milliseconds, the last tick took. */
+    private volatile long lastTickDuration;
+
+    /**
+     * Constructor.
+     * 
+     * @param timer timer used to drive the wheel
+     * @param tick length, in milliseconds, of a tick; this is the granularity with which entries expire
+     */
+    public TimerWheelExpirationService(Timer timer, long tick) {
+        if (tick < 1) {
+            throw new IllegalArgumentException("Tick length must be greater than zero");
+        }
+        tickLength = tick;
+        startInstant = System.currentTimeMillis();
+        wheel = new Slot[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheel[level][slot] = new Slot();
+            }
+        }
+        scheduled = new ConcurrentHashMap<EntryKey, ScheduledEntry>();
+        pending = new ConcurrentLinkedQueue<ScheduledEntry>();
+        cancelled = new ConcurrentLinkedQueue<ScheduledEntry>();
+        totalExpired = new AtomicLong();
+
+        timer.schedule(this, tickLength, tickLength);
+    }
+
+    /**
+     * Schedules the expiration of an entry, replacing any expiration already scheduled for its key.
+     * 
+     * @param store storage service holding the entry
+     * @param partition partition holding the entry
+     * @param key key of the entry
+     * @param entry the entry
+     */
+    public void schedule(StorageService<?, ?> store, String partition, Object key, ExpiringObject entry) {
+        if (store == null || key == null || entry == null) {
+            return;
+        }
+        ScheduledEntry scheduledEntry = new ScheduledEntry(new EntryKey(store, partition, key));
+        scheduledEntry.expiration = getExpirationInstant(entry);
+        ScheduledEntry previous = scheduled.put(scheduledEntry.key, scheduledEntry);
+        if (previous != null) {
+            discard(previous);
+        }
+        pending.add(scheduledEntry);
+    }
+
+    /**
+     * Cancels the expiration scheduled for a key which has been removed from a storage service. If the key has been
+     * bound to a new entry in the meantime, that entry is scheduled instead.
+     * 
+     * @param store storage service the key was removed from
+     * @param partition partition the key was removed from
+     * @param key the key
+     */
+    @SuppressWarnings("unchecked")
+    public void cancel(StorageService<?, ?> store, String partition, Object key) {
+        if (store == null || key == null) {
+            return;
+        }
+        ScheduledEntry previous = scheduled.remove(new EntryKey(store, partition, key));
+        if (previous == null) {
+            return;
+        }
+        discard(previous);
+
+        Object current = ((StorageService<Object, Object>) store).get(partition, key);
+        if (current instanceof ExpiringObject) {
+            schedule(store, partition, key, (ExpiringObject) current);
+        }
+    }
+
+    /** Advances the wheel to the current time, expiring every entry that has come due. */
+    public void run() {
+        try {
+            long start = System.currentTimeMillis();
+            long targetTick = (start - startInstant) / tickLength;
+            TickCounts counts = new TickCounts();
+
+            ScheduledEntry scheduledEntry = pending.poll();
+            while (scheduledEntry != null) {
+                if (!scheduledEntry.cancelled) {
+                    insert(scheduledEntry, currentTick + 1);
+                }
+                scheduledEntry = pending.poll();
+            }
+
+            scheduledEntry = cancelled.poll();
+            while (scheduledEntry != null) {
+                if (scheduledEntry.slot != null) {
+                    scheduledEntry.slot.unlink(scheduledEntry);
+                }
+                scheduledEntry = cancelled.poll();
+            }
+
+            while (currentTick < targetTick) {
+                currentTick++;
+                cascade();
+                Slot due = wheel[0][(int) (currentTick & SLOT_MASK)];
+                wheel[0][(int) (currentTick & SLOT_MASK)] = new Slot();
+                ScheduledEntry dueEntry = due.poll();
+                while (dueEntry != null) {
+                    process(dueEntry, start, counts);
+                    dueEntry = due.poll();
+                }
+            }
+
+            totalExpired.addAndGet(counts.expired);
+            lastTickExpired = counts.expired;
+            lastTickRescheduled = counts.rescheduled;
+            lastTickDuration = System.currentTimeMillis() - start;
+            if (counts.expired > 0 || counts.rescheduled > 0) {
+                log.debug("Expired {} entries and rescheduled {} entries in {}ms, {} entries still scheduled",
+                        new Object[] {counts.expired, counts.rescheduled, lastTickDuration, scheduled.size()});
+            }
+        } catch (Throwable t) {
+            log.error("Caught unexpected error, expiration of storage service entries may not be working", t);
+        }
+    }
+
+    /**
+     * Gets the number of entries currently scheduled for expiration.
+     * 
+     * @return number of entries currently scheduled for expiration
+     */
+    public long getScheduledEntries() {
+        return scheduled.size();
+    }
+
+    /**
+     * Gets the total number of entries expired since this service was started.
+     * 
+     * @return total number of entries expired
+     */
+    public long getTotalExpired() {
+        return totalExpired.get();
+    }
+
+    /**
+     * Gets the number of entries expired by the last tick.
+     * 
+     * @return number of entries expired by the last tick
+     */
+    public long getLastTickExpired() {
+        return lastTickExpired;
+    }
+
+    /**
+     * Gets the number of entries rescheduled by the last tick because their lifetime had been extended.
+     * 
+     * @return number of entries rescheduled by the last tick
+     */
+    public long getLastTickRescheduled() {
+        return lastTickRescheduled;
+    }
+
+    /**
+     * Gets the time, in milliseconds, the last tick took.
+     * 
+     * @return time the last tick took
+     */
+    public long getLastTickDuration() {
+        return lastTickDuration;
+    }
+
+    /**
+     * Gets the length, in milliseconds, of a tick.
+     * 
+     * @return length of a tick
+     */
+    public long getTickLength() {
+        return tickLength;
+    }
+
+    /**
+     * Gets the expiration instant of an entry.
+     * 
+     * @param entry the entry
+     * 
+     * @return expiration instant, in milliseconds since the epoch
+     */
+    protected long getExpirationInstant(ExpiringObject entry) {
+        if (entry instanceof AbstractExpiringEntry) {
+            return ((AbstractExpiringEntry) entry).getExpirationInstant();
+        }
+        return entry.getExpirationTime().getMillis();
+    }
+
+    /**
+     * Marks an entry which is no longer scheduled as cancelled and queues it to be unlinked from the wheel.
+     * 
+     * @param scheduledEntry the entry
+     */
+    private void discard(ScheduledEntry scheduledEntry) {
+        scheduledEntry.cancelled = true;
+        cancelled.add(scheduledEntry);
+    }
+
+    /**
+     * Places an entry in to the wheel.
+     * 
+     * @param scheduledEntry the entry
+     * @param earliestTick earliest tick at which the entry may be processed
+     */
+    private void insert(ScheduledEntry scheduledEntry, long earliestTick) {
+        long expirationTick = (scheduledEntry.expiration - startInstant + tickLength - 1) / tickLength;
+        if (expirationTick < earliestTick) {
+            expirationTick = earliestTick;
+        }
+        long delta = expirationTick - currentTick;
+        if (delta >= MAX_TICKS) {
+            // beyond the range of the wheel, park it in the outermost level and reschedule it when it comes around
+            expirationTick = currentTick + MAX_TICKS - 1;
+            delta = MAX_TICKS - 1;
+        }
+
+        int level = 0;
+        while (delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        wheel[level][(int) ((expirationTick >>> (SLOT_BITS * level)) & SLOT_MASK)].link(scheduledEntry);
+    }
+
+    /** Moves the entries of every higher level slot which has come due down to the lower levels. */
+    private void cascade() {
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                continue;
+            }
+
+            int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+            Slot entries = wheel[level][slot];
+            if (!entries.isEmpty()) {
+                wheel[level][slot] = new Slot();
+                ScheduledEntry scheduledEntry = entries.poll();
+                while (scheduledEntry != null) {
+                    insert(scheduledEntry, currentTick);
+                    scheduledEntry = entries.poll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Processes an entry which has come due.
+     * 
+     * @param scheduledEntry the entry
+     * @param now current time, in milliseconds since the epoch
+     * @param counts counts for the current tick
+     */
+    @SuppressWarnings("unchecked")
+    private void process(ScheduledEntry scheduledEntry, long now, TickCounts counts) {
+        if (scheduledEntry.cancelled) {
+            return;
+        }
+
+        EntryKey key = scheduledEntry.key;
+        StorageService<Object, Object> store = (StorageService<Object, Object>) key.store;
+        Object current = store.get(key.partition, key.key);
+        if (!(current instanceof ExpiringObject)) {
+            // removed without being cancelled, or already expired by the storage service itself
+            scheduled.remove(key, scheduledEntry);
+            if (current == null && scheduledEntry.expiration <= now) {
+                counts.expired++;
+            }
+            return;
+        }
+
+        long expiration = getExpirationInstant((ExpiringObject) current);
+        if (expiration > now) {
+            scheduledEntry.expiration = expiration;
+            insert(scheduledEntry, currentTick + 1);
+            counts.rescheduled++;
+            return;
+        }
+
+        if (store instanceof ConcurrentStorageService) {
+            if (!((ConcurrentStorageService<Object, Object>) store).remove(key.partition, key.key, current)) {
+                // stored again since it was read, the new value has been scheduled on its own
+                scheduled.remove(key, scheduledEntry);
+                return;
+            }
+        } else {
+            store.remove(key.partition, key.key);
+        }
+        scheduled.remove(key, scheduledEntry);
+        counts.expired++;
+        if (current instanceof AbstractExpiringEntry) {
+            ((AbstractExpiringEntry) current).onExpire();
+        }
+    }
+
+    /** Identifies a key of a storage service. */
+    private static final class EntryKey {
+
+        /** Storage service holding the key. */
+        private final StorageService<?, ?> store;
+
+        /** Partition holding the key. */
+        private final String partition;
+
+        /** The key. */
+        private final Object key;
+
+        /**
+         * Constructor.
+         * 
+         * @param entryStore storage service holding the key
+         * @param entryPartition partition holding the key
+         * @param entryKey the key
+         */
+        private EntryKey(StorageService<?, ?> entryStore, String entryPartition, Object entryKey) {
+            store = entryStore;
+            partition = entryPartition;
+            key = entryKey;
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            int hash = System.identityHashCode(store);
+            hash = 31 * hash + (partition == null ? 0 : partition.hashCode());
+            return 31 * hash + key.hashCode();
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof EntryKey)) {
+                return false;
+            }
+            EntryKey other = (EntryKey) obj;
+            return store == other.store && (partition == null ? other.partition == null
+                    : partition.equals(other.partition)) && key.equals(other.key);
+        }
+    }
+
+    /** A key waiting in the wheel. */
+    private static final class ScheduledEntry {
+
+        /** Key whose expiration is scheduled. */
+        private final EntryKey key;
+
+        /** Expiration instant the key is currently scheduled for. */
+        private long expiration;
+
+        /** Whether the key has been removed or scheduled again since this entry was scheduled. */
+        private volatile boolean cancelled;
+
+        /** Slot holding the entry, null if it is not in the wheel; only used by the timer thread. */
+        private Slot slot;
+
+        /** Previous entry in the slot; only used by the timer thread. */
+        private ScheduledEntry previous;
+
+        /** Next entry in the slot; only used by the timer thread. */
+        private ScheduledEntry next;
+
+        /**
+         * Constructor.
+         * 
+         * @param entryKey key whose expiration is scheduled
+         */
+        private ScheduledEntry(EntryKey entryKey) {
+            key = entryKey;
+        }
+    }
+
+    /** A slot of the wheel, a doubly linked list of entries so that cancelled entries are unlinked in constant time. */
+    private static final class Slot {
+
+        /** First entry of the slot. */
+        private ScheduledEntry first;
+
+        /**
+         * Gets whether the slot holds no entry.
+         * 
+         * @return true if the slot holds no entry
+         */
+        private boolean isEmpty() {
+            return first == null;
+        }
+
+        /**
+         * Adds an entry to the slot.
+         * 
+         * @param scheduledEntry entry not currently in any slot
+         */
+        private void link(ScheduledEntry scheduledEntry) {
+            scheduledEntry.slot = this;
+            scheduledEntry.previous = null;
+            scheduledEntry.next = first;
+            if (first != null) {
+                first.previous = scheduledEntry;
+            }
+            first = scheduledEntry;
+        }
+
+        /**
+         * Removes an entry from the slot.
+         * 
+         * @param scheduledEntry entry currently in this slot
+         */
+        private void unlink(ScheduledEntry scheduledEntry) {
+            if (scheduledEntry.previous != null) {
+                scheduledEntry.previous.next = scheduledEntry.next;
+            } else {
+                first = scheduledEntry.next;
+            }
+            if (scheduledEntry.next != null) {
+                scheduledEntry.next.previous = scheduledEntry.previous;
+            }
+            scheduledEntry.slot = null;
+            scheduledEntry.previous = null;
+            scheduledEntry.next = null;
+        }
+
+        /**
+         * Removes the first entry from the slot.
+         * 
+         * @return the first entry, or null if the slot is empty
+         */
+        private ScheduledEntry poll() {
+            ScheduledEntry scheduledEntry = first;
+            if (scheduledEntry != null) {
+                unlink(scheduledEntry);
+            }
+            return scheduledEntry;
+        }
+    }
+
+    /** Counts gathered during a single tick. */
+    private static final class TickCounts {
+
+        /** Number of entries expired. */
+        private long expired;
+
+        /** Number of entries rescheduled. */
+        private long rescheduled;
+    }
+}
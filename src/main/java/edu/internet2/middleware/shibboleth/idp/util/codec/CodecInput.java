@@ -0,0 +1,414 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Input from which objects are decoded by {@link ObjectCodec}s, the counterpart of {@link CodecOutput}. */
+public class CodecInput {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CodecInput.class);
+
+    /** Registry of the codecs used to decode nested objects. */
+    private final CodecRegistry registry;
+
+    /** Encoded bytes. */
+    private final byte[] buffer;
+
+    /** Position of the next byte to read. */
+    private int position;
+
+    /** Position after the last byte which may be read. */
+    private int limit;
+
+    /** Instant timestamps are relative to, in milliseconds since the epoch. */
+    private long timeBase;
+
+    /** Strings of the dictionary. */
+    private String[] dictionary;
+
+    /** Objects read so far, by handle; null for objects which were skipped. */
+    private final List<Object> handles;
+
+    /** Limit and expected handle count of each entered section, two entries per section. */
+    private int[] sections;
+
+    /** Number of entered sections. */
+    private int sectionDepth;
+
+    /**
+     * Constructor.
+     * 
+     * @param codecRegistry registry of the codecs used to decode nested objects
+     * @param bytes encoded bytes
+     */
+    CodecInput(CodecRegistry codecRegistry, byte[] bytes) {
+        registry = codecRegistry;
+        buffer = bytes;
+        limit = bytes.length;
+        dictionary = new String[0];
+        handles = new ArrayList<Object>();
+        sections = new int[16];
+    }
+
+    /**
+     * Reads a single byte.
+     * 
+     * @return the byte, between 0 and 255
+     * 
+     * @throws IOException thrown if the input is exhausted
+     */
+    public int readByte() throws IOException {
+        require(1);
+        return buffer[position++] & 0xFF;
+    }
+
+    /**
+     * Reads a boolean.
+     * 
+     * @return the boolean
+     * 
+     * @throws IOException thrown if the input is exhausted
+     */
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    /**
+     * Reads a non-negative int written as a variable length quantity.
+     * 
+     * @return the int
+     * 
+     * @throws IOException thrown if the input is exhausted or does not hold an int
+     */
+    public int readVarInt() throws IOException {
+        long value = readVarLong();
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Variable length quantity " + value + " is not an int");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads a non-negative long written as a variable length quantity.
+     * 
+     * @return the long
+     * 
+     * @throws IOException thrown if the input is exhausted or does not hold a long
+     */
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length quantity");
+    }
+
+    /**
+     * Reads a long, which may be negative, written as a variable length quantity.
+     * 
+     * @return the long
+     * 
+     * @throws IOException thrown if the input is exhausted or does not hold a long
+     */
+    public long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads a timestamp.
+     * 
+     * @return the timestamp, in milliseconds since the epoch
+     * 
+     * @throws IOException thrown if the input is exhausted
+     */
+    public long readTimestamp() throws IOException {
+        return timeBase + readSignedVarLong();
+    }
+
+    /**
+     * Reads a byte array.
+     * 
+     * @return the array, may be null
+     * 
+     * @throws IOException thrown if the input is exhausted
+     */
+    public byte[] readBytes() throws IOException {
+        int length = readVarInt();
+        if (length == 0) {
+            return null;
+        }
+        length--;
+        require(length);
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, position, bytes, 0, length);
+        position += length;
+        return bytes;
+    }
+
+    /**
+     * Reads a string written in full.
+     * 
+     * @return the string, may be null
+     * 
+     * @throws IOException thrown if the input is exhausted
+     */
+    public String readString() throws IOException {
+        int length = readVarInt();
+        if (length == 0) {
+            return null;
+        }
+        length--;
+        require(length);
+
+        int start = position;
+        position += length;
+        for (int i = start; i < position; i++) {
+            if (buffer[i] < 0) {
+                return CodecRegistry.fromUTF8(buffer, start, length);
+            }
+        }
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) buffer[start + i];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Reads a string written as a reference into the dictionary.
+     * 
+     * @return the string, may be null
+     * 
+     * @throws IOException thrown if the input is exhausted or refers to an unknown string
+     */
+    public String readDictionaryString() throws IOException {
+        int reference = readVarInt();
+        if (reference == 0) {
+            return null;
+        }
+        reference--;
+
+        if (reference < WellKnownStrings.size()) {
+            return WellKnownStrings.get(reference);
+        }
+        reference -= WellKnownStrings.size();
+        if (reference >= dictionary.length) {
+            throw new IOException("Reference to unknown dictionary string " + reference);
+        }
+        return dictionary[reference];
+    }
+
+    /**
+     * Reads an object. An object of a type whose codec is not registered is skipped and read as null.
+     * 
+     * @return the object, may be null
+     * 
+     * @throws IOException thrown if the object can not be decoded
+     */
+    public Object readObject() throws IOException {
+        int tag = readVarInt();
+        switch (tag) {
+            case CodecRegistry.TAG_NULL:
+                return null;
+            case CodecRegistry.TAG_STRING:
+                return readString();
+            case CodecRegistry.TAG_REFERENCE:
+                int handle = readVarInt();
+                if (handle >= handles.size()) {
+                    throw new IOException("Reference to unknown object " + handle);
+                }
+                return handles.get(handle);
+            case CodecRegistry.TAG_SERIALIZED:
+                int serializedHandle = reserveHandle();
+                Object deserialized = deserialize(readBytes());
+                handles.set(serializedHandle, deserialized);
+                return deserialized;
+            default:
+                return readCodecObject(tag);
+        }
+    }
+
+    /**
+     * Reads an object of the given type.
+     * 
+     * @param <T> type of the object
+     * @param type type of the object
+     * 
+     * @return the object, may be null
+     * 
+     * @throws IOException thrown if the object can not be decoded or is not of the given type
+     */
+    public <T> T readObject(Class<T> type) throws IOException {
+        Object object = readObject();
+        if (object != null && !type.isInstance(object)) {
+            throw new IOException("Expected an instance of " + type.getName() + " but read a "
+                    + object.getClass().getName());
+        }
+        return type.cast(object);
+    }
+
+    /**
+     * Enters a section written with {@link CodecOutput#startSection()}. Every section entered must be exited with
+     * {@link #exitSection()}.
+     * 
+     * @throws IOException thrown if the section prefix can not be read
+     */
+    public void enterSection() throws IOException {
+        int length = readVarInt();
+        int sectionHandles = readVarInt();
+        require(length);
+
+        if (sectionDepth * 2 == sections.length) {
+            int[] grown = new int[sections.length * 2];
+            System.arraycopy(sections, 0, grown, 0, sections.length);
+            sections = grown;
+        }
+        sections[sectionDepth * 2] = limit;
+        sections[sectionDepth * 2 + 1] = handles.size() + sectionHandles;
+        sectionDepth++;
+
+        limit = position + length;
+    }
+
+    /**
+     * Exits the most recently entered section, skipping whatever remains unread within it.
+     * 
+     * @throws IOException thrown if the section's content was inconsistent with its prefix
+     */
+    public void exitSection() throws IOException {
+        if (sectionDepth == 0) {
+            throw new IllegalStateException("No section has been entered");
+        }
+        sectionDepth--;
+        int expectedHandles = sections[sectionDepth * 2 + 1];
+        if (handles.size() > expectedHandles) {
+            throw new IOException("Section holds more objects than its prefix declares");
+        }
+        while (handles.size() < expectedHandles) {
+            handles.add(null);
+        }
+
+        position = limit;
+        limit = sections[sectionDepth * 2];
+    }
+
+    /**
+     * Reads the dictionary and time base written in front of the encoded object.
+     * 
+     * @throws IOException thrown if the header can not be read
+     */
+    void readHeader() throws IOException {
+        timeBase = readSignedVarLong();
+        int size = readVarInt();
+        dictionary = new String[size];
+        for (int i = 0; i < size; i++) {
+            dictionary[i] = readString();
+        }
+    }
+
+    /**
+     * Reads an object encoded by a codec.
+     * 
+     * @param typeId type ID of the codec
+     * 
+     * @return the object, or null if no codec is registered for the type ID
+     * 
+     * @throws IOException thrown if the object can not be decoded
+     */
+    private Object readCodecObject(int typeId) throws IOException {
+        int handle = reserveHandle();
+        enterSection();
+        int version = readVarInt();
+
+        ObjectCodec<?> codec = registry.getCodec(typeId);
+        Object object = null;
+        if (codec == null) {
+            log.debug("No codec registered for type {}, skipping object", typeId);
+        } else {
+            object = codec.decode(this, version);
+        }
+        exitSection();
+
+        handles.set(handle, object);
+        return object;
+    }
+
+    /**
+     * Reserves the handle of the next object. The object is null until it has been fully read, so references to an
+     * object from within itself are read as null.
+     * 
+     * @return the handle
+     */
+    private int reserveHandle() {
+        handles.add(null);
+        return handles.size() - 1;
+    }
+
+    /**
+     * Deserializes an object written with Java serialization.
+     * 
+     * @param bytes serialized object
+     * 
+     * @return the object
+     * 
+     * @throws IOException thrown if the object can not be deserialized
+     */
+    private Object deserialize(byte[] bytes) throws IOException {
+        if (bytes == null) {
+            return null;
+        }
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            log.debug("Unable to deserialize object of unknown class {}, reading it as null", e.getMessage());
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Checks that the given number of bytes remain to be read.
+     * 
+     * @param length number of bytes
+     * 
+     * @throws EOFException thrown if fewer bytes remain
+     */
+    private void require(int length) throws EOFException {
+        if (length > limit - position) {
+            throw new EOFException("Encoded object is truncated");
+        }
+    }
+}
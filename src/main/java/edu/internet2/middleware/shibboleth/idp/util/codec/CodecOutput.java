@@ -0,0 +1,344 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Output to which objects are encoded by {@link ObjectCodec}s.
+ * 
+ * Integers are written as variable length quantities of seven bits per byte, timestamps as signed variable length
+ * offsets from a base instant written once per encoding, and strings written through
+ * {@link #writeDictionaryString(String)} as references into a dictionary written once per encoding. Objects are
+ * written through {@link #writeObject(Object)}, which writes each distinct object once and refers back to it wherever
+ * it appears again.
+ */
+public class CodecOutput {
+
+    /** Registry of the codecs used to encode nested objects. */
+    private final CodecRegistry registry;
+
+    /** Instant timestamps are written relative to, in milliseconds since the epoch. */
+    private final long timeBase;
+
+    /** Encoded bytes. */
+    private byte[] buffer;
+
+    /** Number of encoded bytes. */
+    private int position;
+
+    /** Strings written to the dictionary, in order. */
+    private final List<String> dictionary;
+
+    /** Position of each string within the dictionary. */
+    private final Map<String, Integer> dictionaryPositions;
+
+    /** Handles of the objects written so far. */
+    private final IdentityHashMap<Object, Integer> handles;
+
+    /** Start position and handle count of each open section, two entries per section. */
+    private int[] sections;
+
+    /** Number of open sections. */
+    private int sectionDepth;
+
+    /**
+     * Constructor.
+     * 
+     * @param codecRegistry registry of the codecs used to encode nested objects
+     * @param base instant timestamps are written relative to, in milliseconds since the epoch
+     */
+    CodecOutput(CodecRegistry codecRegistry, long base) {
+        registry = codecRegistry;
+        timeBase = base;
+        buffer = new byte[256];
+        dictionary = new ArrayList<String>();
+        dictionaryPositions = new HashMap<String, Integer>();
+        handles = new IdentityHashMap<Object, Integer>();
+        sections = new int[16];
+    }
+
+    /**
+     * Writes a single byte.
+     * 
+     * @param value the byte, only the low eight bits are written
+     */
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Writes a boolean.
+     * 
+     * @param value the boolean
+     */
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    /**
+     * Writes a non-negative int as a variable length quantity.
+     * 
+     * @param value the int
+     */
+    public void writeVarInt(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Variable length ints may not be negative");
+        }
+        writeVarLong(value);
+    }
+
+    /**
+     * Writes a non-negative long as a variable length quantity.
+     * 
+     * @param value the long
+     */
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        buffer[position++] = (byte) remaining;
+    }
+
+    /**
+     * Writes a long, which may be negative, as a variable length quantity.
+     * 
+     * @param value the long
+     */
+    public void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes a timestamp.
+     * 
+     * @param instant the timestamp, in milliseconds since the epoch
+     */
+    public void writeTimestamp(long instant) {
+        writeSignedVarLong(instant - timeBase);
+    }
+
+    /**
+     * Writes a byte array.
+     * 
+     * @param bytes the array, may be null
+     */
+    public void writeBytes(byte[] bytes) {
+        if (bytes == null) {
+            writeVarInt(0);
+            return;
+        }
+        writeVarInt(bytes.length + 1);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * Writes a string in full. Strings which are likely to recur should be written with
+     * {@link #writeDictionaryString(String)} instead.
+     * 
+     * @param string the string, may be null
+     */
+    public void writeString(String string) {
+        if (string == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        int length = string.length();
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++) {
+            ascii = string.charAt(i) < 0x80;
+        }
+
+        if (ascii) {
+            writeVarInt(length + 1);
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                buffer[position++] = (byte) string.charAt(i);
+            }
+        } else {
+            writeBytes(CodecRegistry.toUTF8(string));
+        }
+    }
+
+    /**
+     * Writes a string as a reference into the dictionary, adding it to the dictionary if this is its first occurrence.
+     * 
+     * @param string the string, may be null
+     */
+    public void writeDictionaryString(String string) {
+        if (string == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        Integer wellKnown = WellKnownStrings.positionOf(string);
+        if (wellKnown != null) {
+            writeVarInt(wellKnown + 1);
+            return;
+        }
+
+        Integer dictionaryPosition = dictionaryPositions.get(string);
+        if (dictionaryPosition == null) {
+            dictionaryPosition = dictionary.size();
+            dictionary.add(string);
+            dictionaryPositions.put(string, dictionaryPosition);
+        }
+        writeVarInt(WellKnownStrings.size() + dictionaryPosition + 1);
+    }
+
+    /**
+     * Writes an object. Objects with a registered codec are encoded by that codec, strings are written in full and
+     * other objects are written with Java serialization. An object already written is written as a reference to its
+     * first occurrence.
+     * 
+     * @param object the object, may be null
+     * 
+     * @throws IOException thrown if the object can not be encoded
+     */
+    public void writeObject(Object object) throws IOException {
+        if (object == null) {
+            writeVarInt(CodecRegistry.TAG_NULL);
+            return;
+        }
+
+        if (object instanceof String) {
+            writeVarInt(CodecRegistry.TAG_STRING);
+            writeString((String) object);
+            return;
+        }
+
+        Integer handle = handles.get(object);
+        if (handle != null) {
+            writeVarInt(CodecRegistry.TAG_REFERENCE);
+            writeVarInt(handle);
+            return;
+        }
+        handles.put(object, handles.size());
+
+        ObjectCodec<Object> codec = registry.getObjectCodec(object.getClass());
+        if (codec == null) {
+            writeVarInt(CodecRegistry.TAG_SERIALIZED);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(object);
+            out.close();
+            writeBytes(bytes.toByteArray());
+            return;
+        }
+
+        writeVarInt(codec.getTypeId());
+        startSection();
+        writeVarInt(codec.getVersion());
+        codec.encode(object, this);
+        endSection();
+    }
+
+    /**
+     * Starts a section. A section is prefixed with its length, so a decoder which does not understand all of it can
+     * skip over the remainder. Every section must be ended with {@link #endSection()}.
+     */
+    public void startSection() {
+        if (sectionDepth * 2 == sections.length) {
+            int[] grown = new int[sections.length * 2];
+            System.arraycopy(sections, 0, grown, 0, sections.length);
+            sections = grown;
+        }
+        sections[sectionDepth * 2] = position;
+        sections[sectionDepth * 2 + 1] = handles.size();
+        sectionDepth++;
+    }
+
+    /** Ends the most recently started section. */
+    public void endSection() {
+        if (sectionDepth == 0) {
+            throw new IllegalStateException("No section has been started");
+        }
+        sectionDepth--;
+        int start = sections[sectionDepth * 2];
+        int sectionHandles = handles.size() - sections[sectionDepth * 2 + 1];
+        int length = position - start;
+
+        // write the prefix at the end, then rotate it to the front of the section
+        writeVarInt(length);
+        writeVarInt(sectionHandles);
+        int prefixLength = position - start - length;
+        byte[] prefix = new byte[prefixLength];
+        System.arraycopy(buffer, start + length, prefix, 0, prefixLength);
+        System.arraycopy(buffer, start, buffer, start + prefixLength, length);
+        System.arraycopy(prefix, 0, buffer, start, prefixLength);
+    }
+
+    /**
+     * Gets the strings written to the dictionary.
+     * 
+     * @return strings written to the dictionary, in order
+     */
+    List<String> getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Gets the instant timestamps are written relative to.
+     * 
+     * @return instant timestamps are written relative to, in milliseconds since the epoch
+     */
+    long getTimeBase() {
+        return timeBase;
+    }
+
+    /**
+     * Gets the encoded bytes.
+     * 
+     * @return the encoded bytes
+     */
+    byte[] toByteArray() {
+        if (sectionDepth != 0) {
+            throw new IllegalStateException(sectionDepth + " sections have not been ended");
+        }
+        byte[] bytes = new byte[position];
+        System.arraycopy(buffer, 0, bytes, 0, position);
+        return bytes;
+    }
+
+    /**
+     * Ensures the buffer can hold the given number of additional bytes.
+     * 
+     * @param additional number of additional bytes
+     */
+    private void ensureCapacity(int additional) {
+        if (position + additional > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, position + additional)];
+            System.arraycopy(buffer, 0, grown, 0, position);
+            buffer = grown;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util.codec;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of {@link ObjectCodec}s and entry point to the compact binary format they implement.
+ * 
+ * An encoding starts with a format marker and version, the instant timestamps are written relative to and the
+ * dictionary of recurring strings, followed by the encoded object. Objects for which no codec is registered are
+ * written with Java serialization, so any {@link java.io.Serializable} object graph can be encoded, but only objects
+ * with a codec benefit from the compact format.
+ */
+public class CodecRegistry {
+
+    /** Version of the format written by this registry. */
+    public static final int FORMAT_VERSION = 1;
+
+    /** Tag of a null object. */
+    static final int TAG_NULL = 0;
+
+    /** Tag of a reference to an object already read. */
+    static final int TAG_REFERENCE = 1;
+
+    /** Tag of a string. */
+    static final int TAG_STRING = 2;
+
+    /** Tag of an object written with Java serialization. */
+    static final int TAG_SERIALIZED = 3;
+
+    /** First byte of every encoding. */
+    private static final int FORMAT_MARKER = 0xB5;
+
+    /** Name of the character set strings are encoded in. */
+    private static final String UTF8 = "UTF-8";
+
+    /** Codecs indexed by the type they encode. */
+    private final Map<Class<?>, ObjectCodec<?>> codecsByType;
+
+    /** Codecs indexed by their type ID. */
+    private final Map<Integer, ObjectCodec<?>> codecsById;
+
+    /** Constructor. */
+    public CodecRegistry() {
+        codecsByType = new ConcurrentHashMap<Class<?>, ObjectCodec<?>>();
+        codecsById = new ConcurrentHashMap<Integer, ObjectCodec<?>>();
+    }
+
+    /**
+     * Registers a codec.
+     * 
+     * @param codec the codec
+     */
+    public synchronized void register(ObjectCodec<?> codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("Codec may not be null");
+        }
+        if (codec.getTypeId() < ObjectCodec.MIN_TYPE_ID) {
+            throw new IllegalArgumentException("Type ID " + codec.getTypeId() + " of codec for "
+                    + codec.getType().getName() + " is reserved");
+        }
+
+        ObjectCodec<?> existing = codecsById.get(codec.getTypeId());
+        if (existing != null && existing.getType() != codec.getType()) {
+            throw new IllegalArgumentException("Type ID " + codec.getTypeId() + " is already used by the codec for "
+                    + existing.getType().getName());
+        }
+        codecsById.put(codec.getTypeId(), codec);
+        codecsByType.put(codec.getType(), codec);
+    }
+
+    /**
+     * Registers a list of codecs.
+     * 
+     * @param codecs the codecs
+     */
+    public void setCodecs(List<ObjectCodec<?>> codecs) {
+        for (ObjectCodec<?> codec : codecs) {
+            register(codec);
+        }
+    }
+
+    /**
+     * Gets the codec for a type.
+     * 
+     * @param <T> the type
+     * @param type the type
+     * 
+     * @return the codec, or null if none is registered for the type
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ObjectCodec<T> getCodec(Class<T> type) {
+        return (ObjectCodec<T>) codecsByType.get(type);
+    }
+
+    /**
+     * Gets the codec for the class of an object about to be encoded.
+     * 
+     * @param type class of the object
+     * 
+     * @return the codec, or null if none is registered for the class
+     */
+    @SuppressWarnings("unchecked")
+    ObjectCodec<Object> getObjectCodec(Class<?> type) {
+        return (ObjectCodec<Object>) codecsByType.get(type);
+    }
+
+    /**
+     * Gets the codec with a type ID.
+     * 
+     * @param typeId the type ID
+     * 
+     * @return the codec, or null if none is registered with the type ID
+     */
+    public ObjectCodec<?> getCodec(int typeId) {
+        return codecsById.get(typeId);
+    }
+
+    /**
+     * Encodes an object.
+     * 
+     * @param object the object, may be null
+     * 
+     * @return the encoded object
+     * 
+     * @throws IOException thrown if the object can not be encoded
+     */
+    public byte[] encode(Object object) throws IOException {
+        CodecOutput body = new CodecOutput(this, System.currentTimeMillis());
+        body.writeObject(object);
+        byte[] bodyBytes = body.toByteArray();
+
+        CodecOutput header = new CodecOutput(this, 0);
+        header.writeByte(FORMAT_MARKER);
+        header.writeVarInt(FORMAT_VERSION);
+        header.writeSignedVarLong(body.getTimeBase());
+        List<String> dictionary = body.getDictionary();
+        header.writeVarInt(dictionary.size());
+        for (String string : dictionary) {
+            header.writeString(string);
+        }
+        byte[] headerBytes = header.toByteArray();
+
+        byte[] encoded = new byte[headerBytes.length + bodyBytes.length];
+        System.arraycopy(headerBytes, 0, encoded, 0, headerBytes.length);
+        System.arraycopy(bodyBytes, 0, encoded, headerBytes.length, bodyBytes.length);
+        return encoded;
+    }
+
+    /**
+     * Decodes an object.
+     * 
+     * @param encoded the encoded object
+     * 
+     * @return the object, may be null
+     * 
+     * @throws IOException thrown if the object can not be decoded
+     */
+    public Object decode(byte[] encoded) throws IOException {
+        CodecInput in = new CodecInput(this, encoded);
+        if (in.readByte() != FORMAT_MARKER) {
+            throw new IOException("Data is not in the binary codec format");
+        }
+        int formatVersion = in.readVarInt();
+        if (formatVersion > FORMAT_VERSION) {
+            throw new IOException("Data is in version " + formatVersion + " of the binary codec format, only versions "
+                    + "up to " + FORMAT_VERSION + " are supported");
+        }
+        in.readHeader();
+        return in.readObject();
+    }
+
+    /**
+     * Decodes an object of the given type.
+     * 
+     * @param <T> type of the object
+     * @param encoded the encoded object
+     * @param type type of the object
+     * 
+     * @return the object, may be null
+     * 
+     * @throws IOException thrown if the object can not be decoded or is not of the given type
+     */
+    public <T> T decode(byte[] encoded, Class<T> type) throws IOException {
+        Object object = decode(encoded);
+        if (object != null && !type.isInstance(object)) {
+            throw new IOException("Expected an instance of " + type.getName() + " but decoded a "
+                    + object.getClass().getName());
+        }
+        return type.cast(object);
+    }
+
+    /**
+     * Encodes a string as UTF-8.
+     * 
+     * @param string the string
+     * 
+     * @return the UTF-8 bytes
+     */
+    static byte[] toUTF8(String string) {
+        try {
+            return string.getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported by this JVM");
+        }
+    }
+
+    /**
+     * Decodes a string from UTF-8.
+     * 
+     * @param bytes array holding the UTF-8 bytes
+     * @param offset offset of the first byte
+     * @param length number of bytes
+     * 
+     * @return the string
+     */
+    static String fromUTF8(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported by this JVM");
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util.codec;
+
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContextCodec;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContextEntryCodec;
+import edu.internet2.middleware.shibboleth.idp.authn.Saml2LoginContextCodec;
+import edu.internet2.middleware.shibboleth.idp.authn.ShibbolethSSOLoginContextCodec;
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipalCodec;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AuthenticationMethodInformationImplCodec;
+import edu.internet2.middleware.shibboleth.idp.session.impl.ServiceInformationImplCodec;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionImplCodec;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionManagerEntryCodec;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContextCodec;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContextEntryCodec;
+
+/**
+ * Registry holding the codecs of the IdP's sessions, login contexts and single logout contexts along with the objects
+ * they refer to, and of the storage service entries holding them.
+ */
+public class DefaultCodecRegistry extends CodecRegistry {
+
+    /** Constructor. */
+    public DefaultCodecRegistry() {
+        super();
+        register(new SessionImplCodec());
+        register(new AuthenticationMethodInformationImplCodec());
+        register(new ServiceInformationImplCodec());
+        register(new SubjectCodec());
+        register(new UsernamePrincipalCodec());
+        register(new LoginContextCodec());
+        register(new ShibbolethSSOLoginContextCodec());
+        register(new Saml2LoginContextCodec());
+        register(new SingleLogoutContextCodec());
+        register(new SessionManagerEntryCodec());
+        register(new LoginContextEntryCodec());
+        register(new SingleLogoutContextEntryCodec());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util.codec;
+
+import java.io.IOException;
+
+/**
+ * Encodes objects of one type into, and decodes them from, the compact binary format of a {@link CodecRegistry}.
+ * 
+ * Each codec is identified within the format by its type ID, which must never be reused for another type, and writes
+ * a version number in front of each object it encodes. To stay compatible with data written by older and newer
+ * releases a new version of a codec may only add fields after those of the previous version: a codec must be able to
+ * decode every older version, and when decoding a newer version it reads the fields it knows about and the remaining
+ * fields are skipped.
+ * 
+ * @param <T> type of object encoded by the codec
+ */
+public interface ObjectCodec<T> {
+
+    /** Smallest type ID which may be used by a codec, smaller IDs are reserved by the format. */
+    public static final int MIN_TYPE_ID = 16;
+
+    /**
+     * Gets the ID identifying this codec's type within the format.
+     * 
+     * @return type ID, at least {@link #MIN_TYPE_ID}
+     */
+    public int getTypeId();
+
+    /**
+     * Gets the type of object encoded by this codec. Only objects of exactly this class are encoded by the codec,
+     * subclasses must be given a codec of their own.
+     * 
+     * @return type of object encoded by this codec
+     */
+    public Class<T> getType();
+
+    /**
+     * Gets the version of the format written by this codec.
+     * 
+     * @return version of the format written by this codec
+     */
+    public int getVersion();
+
+    /**
+     * Encodes an object.
+     * 
+     * @param object the object to encode
+     * @param out output to encode the object to
+     * 
+     * @throws IOException thrown if the object can not be encoded
+     */
+    public void encode(T object, CodecOutput out) throws IOException;
+
+    /**
+     * Decodes an object.
+     * 
+     * @param in input to decode the object from
+     * @param version version of the format the object was encoded with, may be greater than {@link #getVersion()}
+     * 
+     * @return the decoded object
+     * 
+     * @throws IOException thrown if the object can not be decoded
+     */
+    public T decode(CodecInput in, int version) throws IOException;
+}
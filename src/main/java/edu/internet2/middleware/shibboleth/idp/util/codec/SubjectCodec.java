@@ -0,0 +1,81 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util.codec;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.security.auth.Subject;
+
+/**
+ * Codec for {@link Subject}. Like Java serialization of a subject, only its principals and read-only flag are
+ * encoded; credentials are not.
+ */
+public class SubjectCodec implements ObjectCodec<Subject> {
+
+    /** Type ID of the codec. */
+    public static final int TYPE_ID = 19;
+
+    /** {@inheritDoc} */
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    /** {@inheritDoc} */
+    public Class<Subject> getType() {
+        return Subject.class;
+    }
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return 1;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(Subject subject, CodecOutput out) throws IOException {
+        List<Principal> principals;
+        synchronized (subject.getPrincipals()) {
+            principals = new ArrayList<Principal>(subject.getPrincipals());
+        }
+
+        out.writeBoolean(subject.isReadOnly());
+        out.writeVarInt(principals.size());
+        for (Principal principal : principals) {
+            out.writeObject(principal);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Subject decode(CodecInput in, int version) throws IOException {
+        Subject subject = new Subject();
+        boolean readOnly = in.readBoolean();
+        int principalCount = in.readVarInt();
+        for (int i = 0; i < principalCount; i++) {
+            Principal principal = in.readObject(Principal.class);
+            if (principal != null) {
+                subject.getPrincipals().add(principal);
+            }
+        }
+        if (readOnly) {
+            subject.setReadOnly();
+        }
+        return subject;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util.codec;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Strings which recur across encoded objects and are therefore known to every encoder and decoder without being
+ * written out. Entries may only ever be appended to this list, as encoded data refers to them by position.
+ */
+final class WellKnownStrings {
+
+    /** The well known strings, in the order they are referenced. */
+    private static final String[] STRINGS = {
+        // SAML 2 authentication context classes
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:Password",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:unspecified",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:Kerberos",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:TLSClient",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:X509",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:PreviousSession",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:InternetProtocol",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:InternetProtocolPassword",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:Smartcard",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:SmartcardPKI",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:MobileTwoFactorContract",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:TimeSyncToken",
+
+        // SAML 1 authentication methods
+        "urn:oasis:names:tc:SAML:1.0:am:password",
+        "urn:oasis:names:tc:SAML:1.0:am:unspecified",
+        "urn:oasis:names:tc:SAML:1.0:am:X509-PKI",
+        "urn:ietf:rfc:1510",
+        "urn:ietf:rfc:2246",
+
+        // name identifier formats
+        "urn:oasis:names:tc:SAML:2.0:nameid-format:transient",
+        "urn:oasis:names:tc:SAML:2.0:nameid-format:persistent",
+        "urn:oasis:names:tc:SAML:2.0:nameid-format:entity",
+        "urn:oasis:names:tc:SAML:1.1:nameid-format:unspecified",
+        "urn:oasis:names:tc:SAML:1.1:nameid-format:emailAddress",
+        "urn:oasis:names:tc:SAML:1.1:nameid-format:X509SubjectName",
+        "urn:mace:shibboleth:1.0:nameIdentifier"
+    };
+
+    /** Position of each well known string. */
+    private static final Map<String, Integer> POSITIONS;
+
+    static {
+        POSITIONS = new HashMap<String, Integer>(STRINGS.length * 2);
+        for (int i = 0; i < STRINGS.length; i++) {
+            POSITIONS.put(STRINGS[i], i);
+        }
+    }
+
+    /** Constructor. */
+    private WellKnownStrings() {
+    }
+
+    /**
+     * Gets the number of well known strings.
+     * 
+     * @return number of well known strings
+     */
+    static int size() {
+        return STRINGS.length;
+    }
+
+    /**
+     * Gets a well known string.
+     * 
+     * @param position position of the string
+     * 
+     * @return the string
+     */
+    static String get(int position) {
+        return STRINGS[position];
+    }
+
+    /**
+     * Gets the position of a well known string.
+     * 
+     * @param string the string
+     * 
+     * @return position of the string, or null if the string is not well known
+     */
+    static Integer positionOf(String string) {
+        return POSITIONS.get(string);
+    }
+}
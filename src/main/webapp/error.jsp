@@ -1,3 +1,4 @@
+<%@ page session="false" %>
 <%@page import="edu.internet2.middleware.shibboleth.common.profile.AbstractErrorHandler"%>
 <%@ taglib uri="urn:mace:shibboleth:2.0:idp:ui" prefix="idpui" %>
 
@@ -1,3 +1,4 @@
+<%@ page session="false" %>
 <%@ taglib uri="urn:mace:shibboleth:2.0:idp:ui" prefix="idpui" %>
 <html>
   <head>
@@ -1 +1,2 @@
+<%@ page session="false" %>
 <jsp:forward page="/profile/Metadata/SAML" />
\ No newline at end of file
@@ -1,3 +1,4 @@
+<%@ page session="false" %>
 <%@page import="edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext" %>
 <%@page import="edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContextStorageHelper" %>
 <%@page import="java.util.Locale" %>
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.authn.provider.JAASLoginModulePipelineBenchmark;
+import edu.internet2.middleware.shibboleth.idp.metadata.LazyFilesystemMetadataProviderBenchmark;
+import edu.internet2.middleware.shibboleth.idp.profile.SigningServiceBenchmark;
+import edu.internet2.middleware.shibboleth.idp.session.impl.OffHeapSessionManagerBenchmark;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionStorageServiceBenchmark;
+import edu.internet2.middleware.shibboleth.idp.util.IPRangeSetBenchmark;
+import edu.internet2.middleware.shibboleth.idp.util.codec.CodecBenchmark;
+
+/**
+ * Runs the benchmarks kept alongside the unit tests and reports their results.
+ * 
+ * Benchmarks are named <code>*Benchmark</code>, which the normal test run does not pick up. Run them all with
+ * <code>mvn -Dtest=BenchmarkSuite test</code>, or a single one by giving its name instead. Their results are logged
+ * to the {@value #RESULTS_LOGGER} logger.
+ */
+public final class BenchmarkSuite {
+
+    /** Name of the logger benchmark results are reported to: {@value} . */
+    public static final String RESULTS_LOGGER = "BENCHMARK";
+
+    /** Logger benchmark results are reported to. */
+    private static final Logger RESULTS = LoggerFactory.getLogger(RESULTS_LOGGER);
+
+    /** Constructor. */
+    private BenchmarkSuite() {
+    }
+
+    /**
+     * Builds the suite of all benchmarks.
+     * 
+     * @return the benchmarks
+     */
+    public static Test suite() {
+        TestSuite suite = new TestSuite("Benchmarks");
+        suite.addTestSuite(CodecBenchmark.class);
+        suite.addTestSuite(IPRangeSetBenchmark.class);
+        suite.addTestSuite(JAASLoginModulePipelineBenchmark.class);
+        suite.addTestSuite(LazyFilesystemMetadataProviderBenchmark.class);
+        suite.addTestSuite(OffHeapSessionManagerBenchmark.class);
+        suite.addTestSuite(SessionStorageServiceBenchmark.class);
+        suite.addTestSuite(SigningServiceBenchmark.class);
+        return suite;
+    }
+
+    /**
+     * Reports a benchmark result.
+     * 
+     * @param format format of the result, as understood by {@link String#format(String, Object...)}
+     * @param args arguments of the format
+     */
+    public static void report(String format, Object... args) {
+        RESULTS.info(String.format(format, args));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/** Tests of {@link LoginContextSealer}. */
+public class LoginContextSealerTest extends TestCase {
+
+    /** Current key. */
+    private static final String KEY = "bG9naW4tY29udGV4dC1zZWFsZXItMQ==";
+
+    /** Retired key. */
+    private static final String OLD_KEY = "bG9naW4tY29udGV4dC1zZWFsZXItMA==";
+
+    /** Address of the client. */
+    private static final String CLIENT = "192.0.2.1";
+
+    /** Tests that a sealed context unseals to an equivalent context for the client it was issued to. */
+    public void testSealAndUnseal() {
+        LoginContextSealer sealer = new LoginContextSealer(Arrays.asList(KEY), 60000);
+        String sealed = sealer.seal(buildLoginContext(), CLIENT);
+        assertNotNull(sealed);
+        assertTrue(LoginContextSealer.isSealed(sealed));
+        assertFalse(LoginContextSealer.isSealed("0f4b5f6e-8a0e-4bd2-9cf8-7d0b0a2c2d11"));
+
+        LoginContext unsealed = sealer.unseal(sealed, CLIENT);
+        assertNotNull(unsealed);
+        assertEquals("https://sp.example.org/shibboleth", unsealed.getRelyingPartyId());
+        assertEquals("/profile/SAML2/Redirect/SSO", unsealed.getProfileHandlerURL());
+        assertEquals("jdoe", unsealed.getPrincipalName());
+        assertTrue(unsealed.isForceAuthRequired());
+        assertFalse(unsealed.isPassiveAuthRequired());
+
+        assertFalse(sealed.equals(sealer.seal(buildLoginContext(), CLIENT)));
+    }
+
+    /** Tests that sealed contexts are refused when presented by another client or altered. */
+    public void testTampering() {
+        LoginContextSealer sealer = new LoginContextSealer(Arrays.asList(KEY), 60000);
+        String sealed = sealer.seal(buildLoginContext(), CLIENT);
+
+        assertNull(sealer.unseal(sealed, "192.0.2.2"));
+
+        char[] chars = sealed.toCharArray();
+        int i = chars.length / 2;
+        chars[i] = chars[i] == 'A' ? 'B' : 'A';
+        assertNull(sealer.unseal(new String(chars), CLIENT));
+        assertNull(sealer.unseal(sealed.substring(0, sealed.length() - 4), CLIENT));
+        assertNull(sealer.unseal(LoginContextSealer.SEALED_PREFIX, CLIENT));
+
+        assertNull(new LoginContextSealer().unseal(sealed, CLIENT));
+    }
+
+    /** Tests that contexts sealed with a retired key are accepted while it is still listed. */
+    public void testKeyRollover() {
+        String sealed = new LoginContextSealer(Arrays.asList(OLD_KEY), 60000).seal(buildLoginContext(), CLIENT);
+
+        assertNotNull(new LoginContextSealer(Arrays.asList(KEY, OLD_KEY), 60000).unseal(sealed, CLIENT));
+        assertNull(new LoginContextSealer(Arrays.asList(KEY), 60000).unseal(sealed, CLIENT));
+    }
+
+    /** Tests that consumed and expired contexts are refused. */
+    public void testConsumedAndExpired() throws Exception {
+        LoginContextSealer sealer = new LoginContextSealer(Arrays.asList(KEY), 60000);
+        String sealed = sealer.seal(buildLoginContext(), CLIENT);
+        assertTrue(sealer.markConsumed(sealed));
+        assertNull(sealer.unseal(sealed, CLIENT));
+        assertFalse(sealer.markConsumed(sealed));
+
+        LoginContextSealer shortLived = new LoginContextSealer(Arrays.asList(KEY), 1);
+        sealed = shortLived.seal(buildLoginContext(), CLIENT);
+        Thread.sleep(10);
+        assertNull(shortLived.unseal(sealed, CLIENT));
+    }
+
+    /**
+     * Tests that contexts are refused rather than forgotten while the replay guard is full, and accepted again once
+     * the consumed ones expire.
+     */
+    public void testConsumedLimit() throws Exception {
+        LoginContextSealer sealer = new LoginContextSealer(Arrays.asList(KEY), 50);
+        sealer.setMaxConsumed(2);
+        String first = sealer.seal(buildLoginContext(), CLIENT);
+        String second = sealer.seal(buildLoginContext(), CLIENT);
+        String third = sealer.seal(buildLoginContext(), CLIENT);
+        assertTrue(sealer.markConsumed(first));
+        assertTrue(sealer.markConsumed(second));
+        assertFalse(sealer.markConsumed(third));
+        assertNull(sealer.unseal(first, CLIENT));
+        assertNull(sealer.unseal(second, CLIENT));
+
+        Thread.sleep(100);
+        String fourth = sealer.seal(buildLoginContext(), CLIENT);
+        assertTrue(sealer.markConsumed(fourth));
+        assertNull(sealer.unseal(fourth, CLIENT));
+    }
+
+    /** Tests that contexts too large to be sealed are left to the storage service, and that short keys are refused. */
+    public void testLimits() {
+        LoginContextSealer sealer = new LoginContextSealer(Arrays.asList(KEY), 60000);
+        sealer.setMaxSealedLength(20);
+        assertNull(sealer.seal(buildLoginContext(), CLIENT));
+
+        try {
+            new LoginContextSealer(Arrays.asList("c2hvcnQ="), 60000);
+            fail("Short key should have been refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Builds a login context as a profile handler would.
+     * 
+     * @return the login context
+     */
+    private LoginContext buildLoginContext() {
+        LoginContext loginContext = new LoginContext(true, false);
+        loginContext.setRelyingParty("https://sp.example.org/shibboleth");
+        loginContext.setProfileHandlerURL("/profile/SAML2/Redirect/SSO");
+        loginContext.setAuthenticationEngineURL("/AuthnEngine");
+        loginContext.setPrincipalName("jdoe");
+        return loginContext;
+    }
+}
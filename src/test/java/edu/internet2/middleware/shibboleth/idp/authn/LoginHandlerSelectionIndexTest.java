@@ -0,0 +1,106 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml2.core.AuthnContext;
+
+import edu.internet2.middleware.shibboleth.idp.authn.LoginHandlerSelectionIndex.Selection;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.ExternalAuthnSystemLoginHandler;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.PreviousSessionLoginHandler;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.UsernamePasswordLoginHandler;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AuthenticationMethodInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionImpl;
+
+/** Tests of {@link LoginHandlerSelectionIndex}. */
+public class LoginHandlerSelectionIndexTest extends TestCase {
+
+    /** Method supported by a handler which does not support passive authentication. */
+    private static final String PASSWORD = "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport";
+
+    /** Method supported by a handler which supports passive authentication. */
+    private static final String EXTERNAL = "urn:example:external";
+
+    /** Index being tested. */
+    private LoginHandlerSelectionIndex index;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        UsernamePasswordLoginHandler passwordHandler = new UsernamePasswordLoginHandler("/Authn/UserPassword");
+        passwordHandler.getSupportedAuthenticationMethods().add(PASSWORD);
+        ExternalAuthnSystemLoginHandler externalHandler = new ExternalAuthnSystemLoginHandler();
+        externalHandler.getSupportedAuthenticationMethods().add(EXTERNAL);
+        externalHandler.setSupportsPassive(true);
+        PreviousSessionLoginHandler previousSessionHandler = new PreviousSessionLoginHandler();
+
+        Map<String, LoginHandler> handlers = new HashMap<String, LoginHandler>();
+        handlers.put(PASSWORD, passwordHandler);
+        handlers.put(EXTERNAL, externalHandler);
+        handlers.put(AuthnContext.PREVIOUS_SESSION_AUTHN_CTX, previousSessionHandler);
+        index = new LoginHandlerSelectionIndex(handlers);
+    }
+
+    /** Tests the selections computed for requested methods. */
+    public void testSelection() {
+        assertNotNull(index.getPreviousSessionHandler());
+
+        Selection any = index.getSelection(null);
+        assertEquals(2, any.getMethods().size());
+        assertFalse(any.getMethods().contains(AuthnContext.PREVIOUS_SESSION_AUTHN_CTX));
+        assertEquals(Arrays.asList(EXTERNAL), any.getPassiveMethods());
+        assertTrue(any.isRequested("urn:example:unknown"));
+
+        List<String> requested = Arrays.asList(PASSWORD, "urn:example:unknown");
+        Selection password = index.getSelection(requested);
+        assertEquals(Arrays.asList(PASSWORD), password.getMethods());
+        assertTrue(password.getPassiveMethods().isEmpty());
+        assertTrue(password.isRequested(PASSWORD));
+        assertFalse(password.isRequested(EXTERNAL));
+        assertSame(password, index.getSelection(Arrays.asList(PASSWORD, "urn:example:unknown")));
+
+        assertTrue(index.getSelection(Arrays.asList("urn:example:unknown")).getMethods().isEmpty());
+    }
+
+    /** Tests that sessions track the earliest expiration of their authentication methods. */
+    public void testEarliestExpiration() {
+        long now = System.currentTimeMillis();
+        SessionImpl session = new SessionImpl("session", new byte[0], 1800000);
+        assertEquals(Long.MAX_VALUE, session.getEarliestAuthenticationExpiration(now));
+
+        session.getAuthenticationMethods().put(PASSWORD,
+                new AuthenticationMethodInformationImpl(null, null, PASSWORD, new DateTime(now), 60000));
+        assertEquals(now + 60000, session.getEarliestAuthenticationExpiration(now));
+
+        session.getAuthenticationMethods().put(EXTERNAL,
+                new AuthenticationMethodInformationImpl(null, null, EXTERNAL, new DateTime(now - 10000), 5000));
+        assertEquals(now - 5000, session.getEarliestAuthenticationExpiration(now - 20000));
+
+        // once passed, the instant is recomputed from the remaining methods
+        session.getAuthenticationMethods().remove(EXTERNAL);
+        assertEquals(now + 60000, session.getEarliestAuthenticationExpiration(now));
+    }
+}
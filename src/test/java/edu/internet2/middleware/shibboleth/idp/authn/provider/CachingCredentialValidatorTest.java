@@ -0,0 +1,119 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+import junit.framework.TestCase;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+
+/** Tests of {@link CachingCredentialValidator}. */
+public class CachingCredentialValidatorTest extends TestCase {
+
+    /** Number of validations reaching the backend. */
+    private AtomicInteger backendCalls;
+
+    /** Whether the backend is available. */
+    private boolean backendAvailable;
+
+    /** Backend validator. */
+    private CredentialValidator backend;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        backendCalls = new AtomicInteger();
+        backendAvailable = true;
+        backend = new CredentialValidator() {
+            /** {@inheritDoc} */
+            public Subject validate(String username, String password) throws LoginException {
+                backendCalls.incrementAndGet();
+                if (!backendAvailable) {
+                    throw new LoginException("backend unavailable");
+                }
+                if (!"secret".equals(password)) {
+                    throw new FailedLoginException("Invalid credentials");
+                }
+                Subject subject = new Subject();
+                subject.getPrincipals().add(new UsernamePrincipal(username));
+                return subject;
+            }
+        };
+    }
+
+    /** Tests that successful and failed validations are answered from the cache. */
+    public void testCache() throws Exception {
+        CachingCredentialValidator cache = new CachingCredentialValidator(backend, 60000, 60000, 10, 16);
+
+        Subject subject = cache.validate("jdoe", "secret");
+        subject.getPrincipals().add(new UsernamePrincipal("added"));
+        subject = cache.validate("jdoe", "secret");
+        assertEquals(1, backendCalls.get());
+        assertEquals(1, cache.getHits());
+        assertTrue(subject.getPrincipals().contains(new UsernamePrincipal("jdoe")));
+        assertFalse(subject.getPrincipals().contains(new UsernamePrincipal("added")));
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                cache.validate("jsmith", "wrong");
+                fail("Invalid password accepted");
+            } catch (FailedLoginException e) {
+                // expected
+            }
+        }
+        assertEquals(2, backendCalls.get());
+        assertEquals(2, cache.getNegativeHits());
+
+        // other credentials for a cached user go to the backend
+        cache.validate("jsmith", "secret");
+        assertEquals(3, backendCalls.get());
+        assertEquals(3, cache.getMisses());
+
+        // outages are not cached
+        backendAvailable = false;
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.validate("jbloggs", "secret");
+                fail("Login succeeded while backend unavailable");
+            } catch (LoginException e) {
+                // expected
+            }
+        }
+        assertEquals(5, backendCalls.get());
+    }
+
+    /** Tests that the cache is bounded and entries expire. */
+    public void testBounds() throws Exception {
+        CachingCredentialValidator cache = new CachingCredentialValidator(backend, 1, 0, 2, 16);
+        cache.validate("user1", "secret");
+        cache.validate("user2", "secret");
+        cache.validate("user3", "secret");
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+
+        Thread.sleep(5);
+        cache.validate("user3", "secret");
+        assertEquals(4, backendCalls.get());
+        assertEquals(0, cache.getHits());
+    }
+}
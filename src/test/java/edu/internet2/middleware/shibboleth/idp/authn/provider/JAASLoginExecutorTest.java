@@ -0,0 +1,226 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.LoginException;
+
+import junit.framework.TestCase;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+
+/** Tests of {@link JAASLoginExecutor}. */
+public class JAASLoginExecutorTest extends TestCase {
+
+    /** Executor being tested. */
+    private JAASLoginExecutor executor;
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        if (executor != null) {
+            executor.destroy();
+        }
+        super.tearDown();
+    }
+
+    /** Tests that the outcome of a login is returned to the caller and its latency recorded. */
+    public void testLogin() throws Exception {
+        executor = new JAASLoginExecutor(2, 2, 5000);
+        CredentialValidator validator = new CredentialValidator() {
+            /** {@inheritDoc} */
+            public Subject validate(String username, String password) throws LoginException {
+                if (!"secret".equals(password)) {
+                    throw new LoginException("bad password");
+                }
+                Subject subject = new Subject();
+                subject.getPrincipals().add(new UsernamePrincipal(username));
+                return subject;
+            }
+        };
+
+        Subject subject = executor.login(validator, "jdoe", "secret");
+        assertEquals("jdoe", subject.getPrincipals().iterator().next().getName());
+        try {
+            executor.getExecutingValidator(validator).validate("jdoe", "guess");
+            fail("Login with a bad password should have failed");
+        } catch (LoginException e) {
+            assertEquals("bad password", e.getMessage());
+        }
+        assertEquals(2, executor.getLatencies().getCount());
+        assertEquals(0, executor.getRejectedLogins());
+        assertEquals(0, executor.getTimedOutLogins());
+    }
+
+    /** Tests that logins are refused once every worker is busy and the queue is full. */
+    public void testQueueFull() throws Exception {
+        executor = new JAASLoginExecutor(1, 1, 5000);
+        BlockingValidator validator = new BlockingValidator();
+        Thread[] callers = new Thread[2];
+        for (int i = 0; i < callers.length; i++) {
+            callers[i] = new LoginThread(executor, validator);
+            callers[i].start();
+        }
+        assertTrue(validator.started.await(5, TimeUnit.SECONDS));
+        waitFor(executor, 1);
+
+        try {
+            executor.login(validator, "jdoe", "secret");
+            fail("Login should have been refused");
+        } catch (LoginException e) {
+            assertEquals("authentication service is busy", e.getMessage());
+        }
+        assertEquals(1, executor.getRejectedLogins());
+
+        validator.release.countDown();
+        for (Thread caller : callers) {
+            caller.join(5000);
+            assertFalse(caller.isAlive());
+        }
+        assertEquals(2, executor.getLatencies().getCount());
+    }
+
+    /** Tests that a login not completed in time is reported as failed and its worker interrupted. */
+    public void testTimeout() throws Exception {
+        executor = new JAASLoginExecutor(1, 0, 100);
+        BlockingValidator validator = new BlockingValidator();
+
+        long start = System.currentTimeMillis();
+        try {
+            executor.login(validator, "jdoe", "secret");
+            fail("Login should have timed out");
+        } catch (LoginException e) {
+            assertEquals("authentication timed out", e.getMessage());
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, executor.getTimedOutLogins());
+        assertTrue(validator.interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    /** Tests that interrupting a caller waiting for a login cancels the login and keeps the caller interrupted. */
+    public void testInterrupt() throws Exception {
+        executor = new JAASLoginExecutor(1, 0, 60000);
+        BlockingValidator validator = new BlockingValidator();
+        LoginThread caller = new LoginThread(executor, validator);
+        caller.start();
+        assertTrue(validator.started.await(5, TimeUnit.SECONDS));
+
+        caller.interrupt();
+        caller.join(5000);
+        assertFalse(caller.isAlive());
+        assertNotNull(caller.failure);
+        assertEquals("authentication interrupted", caller.failure.getMessage());
+        assertTrue(caller.interruptedAfterLogin);
+        assertTrue(validator.interrupted.await(5, TimeUnit.SECONDS));
+        assertEquals(0, executor.getTimedOutLogins());
+    }
+
+    /** Tests that invalid pool settings are refused. */
+    public void testInvalidSettings() {
+        int[][] settings = { {0, 1, 1}, {1, -1, 1}, {1, 1, 0}, };
+        for (int[] setting : settings) {
+            try {
+                new JAASLoginExecutor(setting[0], setting[1], setting[2]);
+                fail("Invalid executor settings should be refused");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Waits for an executor to have a given number of logins waiting for a worker.
+     * 
+     * @param loginExecutor the executor
+     * @param queued expected number of waiting logins
+     * 
+     * @throws InterruptedException thrown if the wait is interrupted
+     */
+    private void waitFor(JAASLoginExecutor loginExecutor, int queued) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (loginExecutor.getQueuedLogins() < queued && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(queued, loginExecutor.getQueuedLogins());
+    }
+
+    /** Validator blocking until it is released, noting when it starts and whether it is interrupted. */
+    private static class BlockingValidator implements CredentialValidator {
+
+        /** Counted down when a validation starts. */
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        /** Counted down to let validations complete. */
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        /** Counted down when a validation is interrupted. */
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+
+        /** {@inheritDoc} */
+        public Subject validate(String username, String password) throws LoginException {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw new LoginException("interrupted");
+            }
+            return new Subject();
+        }
+    }
+
+    /** Thread running a login and keeping its failure. */
+    private static class LoginThread extends Thread {
+
+        /** Executor running the login. */
+        private final JAASLoginExecutor executor;
+
+        /** Validator checking the credentials. */
+        private final CredentialValidator validator;
+
+        /** Failure of the login, if it failed. */
+        private volatile LoginException failure;
+
+        /** Whether the thread was still interrupted once the login returned. */
+        private volatile boolean interruptedAfterLogin;
+
+        /**
+         * Constructor.
+         * 
+         * @param loginExecutor executor running the login
+         * @param credentialValidator validator checking the credentials
+         */
+        LoginThread(JAASLoginExecutor loginExecutor, CredentialValidator credentialValidator) {
+            executor = loginExecutor;
+            validator = credentialValidator;
+            setDaemon(true);
+        }
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                executor.login(validator, "jdoe", "secret");
+            } catch (LoginException e) {
+                failure = e;
+            }
+            interruptedAfterLogin = isInterrupted();
+        }
+    }
+}
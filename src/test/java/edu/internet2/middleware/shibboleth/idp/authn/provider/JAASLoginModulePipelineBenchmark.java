@@ -0,0 +1,177 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+
+import junit.framework.TestCase;
+
+import edu.internet2.middleware.shibboleth.idp.BenchmarkSuite;
+
+/**
+ * Benchmark comparing the throughput of a {@link JAASLoginModulePipeline} with that of a new JAAS login context per
+ * login, against an in-memory directory whose connections cost a number of digest rounds to open.
+ * 
+ * Run it through {@link BenchmarkSuite}.
+ */
+public class JAASLoginModulePipelineBenchmark extends TestCase {
+
+    /** Number of threads performing logins. */
+    private static final int THREADS = 8;
+
+    /** Number of logins performed by each thread. */
+    private static final int LOGINS = 5000;
+
+    /** Number of digest rounds simulating the cost of connecting to the directory. */
+    private static final int HANDSHAKE_ROUNDS = 200;
+
+    /** Configuration used by the benchmark. */
+    private Configuration configuration;
+
+    /** Default configuration, restored after the benchmark. */
+    private Configuration defaultConfiguration;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        configuration = JAASLoginModulePipelineTest.buildConfiguration(HANDSHAKE_ROUNDS);
+        try {
+            defaultConfiguration = Configuration.getConfiguration();
+        } catch (SecurityException e) {
+            defaultConfiguration = null;
+        }
+        Configuration.setConfiguration(configuration);
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        Configuration.setConfiguration(defaultConfiguration);
+        super.tearDown();
+    }
+
+    /**
+     * Compares the throughput of both ways of running the login modules.
+     * 
+     * @throws Exception thrown if a login fails
+     */
+    public void testThroughput() throws Exception {
+        final JAASLoginModulePipeline pipeline = new JAASLoginModulePipeline("single", configuration,
+                THREADS);
+
+        Login contextLogin = new Login() {
+            /** {@inheritDoc} */
+            public void login(final String username, final String password) throws Exception {
+                new LoginContext("single", new CallbackHandler() {
+                    /** {@inheritDoc} */
+                    public void handle(Callback[] callbacks) {
+                        ((NameCallback) callbacks[0]).setName(username);
+                        ((PasswordCallback) callbacks[1]).setPassword(password.toCharArray());
+                    }
+                }).login();
+            }
+        };
+        Login pipelineLogin = new Login() {
+            /** {@inheritDoc} */
+            public void login(String username, String password) throws Exception {
+                pipeline.validate(username, password);
+            }
+        };
+
+        run(contextLogin, LOGINS / 10);
+        run(pipelineLogin, LOGINS / 10);
+
+        JAASLoginModulePipelineTest.CONNECTIONS.set(0);
+        long contextRate = run(contextLogin, LOGINS);
+        int contextConnections = JAASLoginModulePipelineTest.CONNECTIONS.getAndSet(0);
+        long pipelineRate = run(pipelineLogin, LOGINS);
+        int pipelineConnections = JAASLoginModulePipelineTest.CONNECTIONS.get();
+
+        BenchmarkSuite.report("login context per login: %,8d logins/s, %,7d connections", contextRate,
+                contextConnections);
+        BenchmarkSuite.report("login module pipeline:   %,8d logins/s, %,7d connections", pipelineRate,
+                pipelineConnections);
+        assertTrue(pipelineConnections <= THREADS);
+    }
+
+    /**
+     * Performs logins from several threads.
+     * 
+     * @param login the login to perform
+     * @param logins number of logins performed by each thread
+     * 
+     * @return number of logins per second
+     * 
+     * @throws Exception thrown if a login fails
+     */
+    private long run(final Login login, final int logins) throws Exception {
+        final List<Exception> failures = new ArrayList<Exception>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            threads.add(new Thread() {
+                /** {@inheritDoc} */
+                public void run() {
+                    try {
+                        for (int j = 0; j < logins; j++) {
+                            login.login("jdoe", "secret");
+                        }
+                    } catch (Exception e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+        return THREADS * (long) logins * 1000000000L / elapsed;
+    }
+
+    /** A way of performing a login. */
+    private interface Login {
+
+        /**
+         * Performs a login.
+         * 
+         * @param username the username
+         * @param password the password
+         * 
+         * @throws Exception thrown if the login fails
+         */
+        public void login(String username, String password) throws Exception;
+    }
+}
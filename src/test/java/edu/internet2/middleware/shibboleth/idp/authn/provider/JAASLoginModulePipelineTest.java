@@ -0,0 +1,316 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+import junit.framework.TestCase;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+
+/** Tests of {@link JAASLoginModulePipeline}. */
+public class JAASLoginModulePipelineTest extends TestCase {
+
+    /** Users of the in-memory directory, mapped to their passwords. */
+    public static final Map<String, String> DIRECTORY = new ConcurrentHashMap<String, String>();
+
+    /** Number of connections opened to the in-memory directory. */
+    public static final AtomicInteger CONNECTIONS = new AtomicInteger();
+
+    static {
+        DIRECTORY.put("jdoe", "secret");
+        DIRECTORY.put("jsmith", "password");
+    }
+
+    /** Configuration used by the tests. */
+    private Configuration configuration;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        configuration = buildConfiguration(0);
+        CONNECTIONS.set(0);
+    }
+
+    /** Tests that valid credentials are accepted and login modules are reused. */
+    public void testValidate() throws Exception {
+        JAASLoginModulePipeline pipeline = new JAASLoginModulePipeline("single", configuration, 4);
+
+        Subject subject = pipeline.validate("jdoe", "secret");
+        assertTrue(subject.getPrincipals().contains(new UsernamePrincipal("jdoe")));
+        subject = pipeline.validate("jsmith", "password");
+        assertTrue(subject.getPrincipals().contains(new UsernamePrincipal("jsmith")));
+        assertFalse(subject.getPrincipals().contains(new UsernamePrincipal("jdoe")));
+
+        try {
+            pipeline.validate("jdoe", "wrong");
+            fail("Invalid password accepted");
+        } catch (FailedLoginException e) {
+            // expected
+        }
+
+        pipeline.validate("jdoe", "secret");
+        assertEquals(1, pipeline.getCreatedChains());
+        assertEquals(1, CONNECTIONS.get());
+
+        pipeline.refresh();
+        pipeline.validate("jdoe", "secret");
+        assertEquals(2, pipeline.getCreatedChains());
+    }
+
+    /** Tests that the control flags have the same meaning as for a JAAS login context. */
+    public void testControlFlags() throws Exception {
+        String[] configs = {"single", "sufficient", "requisite", "optional", "unknown"};
+        String[][] credentials = { {"jdoe", "secret"}, {"jdoe", "wrong"}, {"nobody", "secret"}};
+
+        Configuration defaultConfiguration = null;
+        try {
+            defaultConfiguration = Configuration.getConfiguration();
+        } catch (SecurityException e) {
+            // no default configuration
+        }
+        Configuration.setConfiguration(configuration);
+        try {
+            for (String config : configs) {
+                JAASLoginModulePipeline pipeline = new JAASLoginModulePipeline(config, configuration, 4);
+                for (String[] credential : credentials) {
+                    boolean expected = login(config, credential[0], credential[1]);
+                    boolean actual;
+                    try {
+                        pipeline.validate(credential[0], credential[1]);
+                        actual = true;
+                    } catch (LoginException e) {
+                        actual = false;
+                    }
+                    assertEquals(config + " " + credential[0] + "/" + credential[1], expected, actual);
+                }
+            }
+        } finally {
+            Configuration.setConfiguration(defaultConfiguration);
+        }
+    }
+
+    /**
+     * Authenticates a user with a new JAAS login context.
+     * 
+     * @param config name of the configuration entry
+     * @param username the username
+     * @param password the password
+     * 
+     * @return true if the user was authenticated
+     */
+    private boolean login(String config, final String username, final String password) {
+        try {
+            new LoginContext(config, new CallbackHandler() {
+                /** {@inheritDoc} */
+                public void handle(Callback[] callbacks) {
+                    for (Callback cb : callbacks) {
+                        if (cb instanceof NameCallback) {
+                            ((NameCallback) cb).setName(username);
+                        } else if (cb instanceof PasswordCallback) {
+                            ((PasswordCallback) cb).setPassword(password.toCharArray());
+                        }
+                    }
+                }
+            }).login();
+            return true;
+        } catch (LoginException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Builds a JAAS configuration using the in-memory directory.
+     * 
+     * @param handshakeRounds number of digest rounds simulating the cost of connecting to the directory
+     * 
+     * @return the configuration
+     */
+    public static Configuration buildConfiguration(int handshakeRounds) {
+        final Map<String, AppConfigurationEntry[]> entries = new HashMap<String, AppConfigurationEntry[]>();
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("handshakeRounds", Integer.toString(handshakeRounds));
+
+        AppConfigurationEntry directory = new AppConfigurationEntry(DirectoryLoginModule.class.getName(),
+                LoginModuleControlFlag.REQUIRED, options);
+        entries.put("single", new AppConfigurationEntry[] {directory});
+        entries.put("sufficient", new AppConfigurationEntry[] {
+                new AppConfigurationEntry(RejectingLoginModule.class.getName(), LoginModuleControlFlag.SUFFICIENT,
+                        options), directory});
+        entries.put("requisite", new AppConfigurationEntry[] {
+                new AppConfigurationEntry(DirectoryLoginModule.class.getName(), LoginModuleControlFlag.REQUISITE,
+                        options),
+                new AppConfigurationEntry(RejectingLoginModule.class.getName(), LoginModuleControlFlag.OPTIONAL,
+                        options)});
+        entries.put("optional", new AppConfigurationEntry[] {
+                new AppConfigurationEntry(RejectingLoginModule.class.getName(), LoginModuleControlFlag.OPTIONAL,
+                        options),
+                new AppConfigurationEntry(DirectoryLoginModule.class.getName(), LoginModuleControlFlag.OPTIONAL,
+                        options)});
+        entries.put("other", new AppConfigurationEntry[] {directory});
+
+        return new Configuration() {
+            /** {@inheritDoc} */
+            public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+                return entries.get(name);
+            }
+
+            /** {@inheritDoc} */
+            public void refresh() {
+            }
+        };
+    }
+
+    /** A login module checking credentials against the in-memory directory, over a connection it keeps. */
+    public static class DirectoryLoginModule implements LoginModule {
+
+        /** Simulated connection to the directory. */
+        private byte[] connection;
+
+        /** Subject being authenticated. */
+        private Subject subject;
+
+        /** Callback handler providing the credentials. */
+        private CallbackHandler callbackHandler;
+
+        /** Number of digest rounds simulating the cost of connecting to the directory. */
+        private int handshakeRounds;
+
+        /** Name of the authenticated user. */
+        private String username;
+
+        /** {@inheritDoc} */
+        public void initialize(Subject loginSubject, CallbackHandler handler, Map<String, ?> sharedState,
+                Map<String, ?> options) {
+            subject = loginSubject;
+            callbackHandler = handler;
+            handshakeRounds = Integer.parseInt((String) options.get("handshakeRounds"));
+            username = null;
+        }
+
+        /** {@inheritDoc} */
+        public boolean login() throws LoginException {
+            if (connection == null) {
+                connection = connect();
+            }
+
+            NameCallback nameCallback = new NameCallback("username");
+            PasswordCallback passwordCallback = new PasswordCallback("password", false);
+            try {
+                callbackHandler.handle(new Callback[] {nameCallback, passwordCallback});
+            } catch (Exception e) {
+                throw new LoginException(e.getMessage());
+            }
+
+            String expected = DIRECTORY.get(nameCallback.getName());
+            if (expected == null || !expected.equals(new String(passwordCallback.getPassword()))) {
+                throw new FailedLoginException("Invalid credentials");
+            }
+            username = nameCallback.getName();
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        public boolean commit() {
+            if (username == null) {
+                return false;
+            }
+            subject.getPrincipals().add(new UsernamePrincipal(username));
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        public boolean abort() {
+            username = null;
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        public boolean logout() {
+            return true;
+        }
+
+        /**
+         * Simulates opening a connection to the directory.
+         * 
+         * @return the connection
+         * 
+         * @throws LoginException thrown if the connection can not be opened
+         */
+        private byte[] connect() throws LoginException {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                byte[] state = new byte[32];
+                for (int i = 0; i < handshakeRounds; i++) {
+                    state = digest.digest(state);
+                }
+                CONNECTIONS.incrementAndGet();
+                return state;
+            } catch (NoSuchAlgorithmException e) {
+                throw new LoginException(e.getMessage());
+            }
+        }
+    }
+
+    /** A login module which rejects every login. */
+    public static class RejectingLoginModule implements LoginModule {
+
+        /** {@inheritDoc} */
+        public void initialize(Subject loginSubject, CallbackHandler handler, Map<String, ?> sharedState,
+                Map<String, ?> options) {
+        }
+
+        /** {@inheritDoc} */
+        public boolean login() throws LoginException {
+            throw new FailedLoginException("Rejected");
+        }
+
+        /** {@inheritDoc} */
+        public boolean commit() {
+            return false;
+        }
+
+        /** {@inheritDoc} */
+        public boolean abort() {
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        public boolean logout() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import junit.framework.TestCase;
+
+/** Tests of {@link LoginFailureTracker}. */
+public class LoginFailureTrackerTest extends TestCase {
+
+    /** Tests the limits on failures per username and per address. */
+    public void testLimits() {
+        LoginFailureTracker tracker = new LoginFailureTracker(60000, 3, 5, 100);
+
+        for (int i = 0; i < 3; i++) {
+            assertFalse(tracker.isRefused("jdoe", "192.168.1.1"));
+            tracker.recordFailure("jdoe", "192.168.1.1");
+        }
+        assertTrue(tracker.isRefused("jdoe", "192.168.1.2"));
+        assertFalse(tracker.isRefused("jsmith", "192.168.1.2"));
+
+        tracker.recordFailure("jsmith", "192.168.1.1");
+        tracker.recordFailure("jbloggs", "192.168.1.1");
+        assertTrue(tracker.isRefused("jane", "192.168.1.1"));
+        assertEquals(2, tracker.getRefusedLogins());
+
+        tracker.recordSuccess("jdoe");
+        assertFalse(tracker.isRefused("jdoe", "192.168.1.2"));
+    }
+
+    /** Tests that failures older than the window are forgotten. */
+    public void testWindow() throws Exception {
+        LoginFailureTracker tracker = new LoginFailureTracker(50, 2, 0, 100);
+        tracker.recordFailure("jdoe", "192.168.1.1");
+        tracker.recordFailure("jdoe", "192.168.1.1");
+        assertTrue(tracker.isRefused("jdoe", null));
+
+        Thread.sleep(120);
+        assertFalse(tracker.isRefused("jdoe", null));
+    }
+
+    /** Tests that the number of tracked keys is bounded. */
+    public void testBounds() {
+        LoginFailureTracker tracker = new LoginFailureTracker(60000, 1, 1, 10);
+        for (int i = 0; i < 100; i++) {
+            tracker.recordFailure("user" + i, "10.0.0." + i);
+        }
+        assertEquals(10, tracker.getTrackedUsernames());
+        assertEquals(10, tracker.getTrackedAddresses());
+    }
+}
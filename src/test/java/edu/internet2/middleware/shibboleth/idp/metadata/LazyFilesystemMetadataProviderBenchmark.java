@@ -0,0 +1,175 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.metadata;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.opensaml.saml2.metadata.provider.FilesystemMetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+
+import edu.internet2.middleware.shibboleth.idp.BenchmarkSuite;
+import edu.internet2.middleware.shibboleth.idp.TestCaseBase;
+
+/**
+ * Benchmark comparing the startup time and retained heap of a {@link LazyFilesystemMetadataProvider} with those of a
+ * {@link FilesystemMetadataProvider} unmarshalling the whole aggregate.
+ * 
+ * Run it through {@link BenchmarkSuite}, giving the JVM enough heap for the eager provider.
+ */
+public class LazyFilesystemMetadataProviderBenchmark extends TestCaseBase {
+
+    /** Number of entities in the generated aggregate. */
+    private static final int ENTITIES = 20000;
+
+    /** Number of distinct entities looked up, as an IdP talking to a few hundred services would. */
+    private static final int ACTIVE_ENTITIES = 300;
+
+    /** Number of lookups performed per measurement. */
+    private static final int LOOKUPS = 100000;
+
+    /** Compares both providers loading the same aggregate. */
+    public void testLoad() throws Exception {
+        File metadataFile = File.createTempFile("benchmark-metadata", ".xml");
+        metadataFile.deleteOnExit();
+        try {
+            writeAggregate(metadataFile);
+            BenchmarkSuite.report("%,d entities, %,d KB aggregate", ENTITIES, metadataFile.length() / 1024);
+
+            FilesystemMetadataProvider eager = new FilesystemMetadataProvider(metadataFile);
+            eager.setParserPool(parser);
+            eager.setRequireValidMetadata(false);
+            measure("eager", eager);
+            eager.destroy();
+            eager = null;
+
+            LazyFilesystemMetadataProvider lazy = new LazyFilesystemMetadataProvider(metadataFile, parser);
+            lazy.setMaxCachedEntities(ACTIVE_ENTITIES);
+            lazy.setRequireValidMetadata(false);
+            measure("lazy", lazy);
+            BenchmarkSuite.report("lazy: %,d loads, %,d cache hits", lazy.getEntityLoads(), lazy
+                    .getCacheHits());
+        } finally {
+            metadataFile.delete();
+        }
+    }
+
+    /**
+     * Loads an aggregate through a provider and reports the time taken, the heap retained and the cost of looking up
+     * the active entities.
+     * 
+     * @param name name of the provider
+     * @param provider the provider, not yet initialized
+     * 
+     * @throws Exception thrown if the aggregate can not be loaded
+     */
+    private void measure(String name, MetadataProvider provider) throws Exception {
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        if (provider instanceof FilesystemMetadataProvider) {
+            ((FilesystemMetadataProvider) provider).initialize();
+        } else {
+            ((LazyFilesystemMetadataProvider) provider).initialize();
+        }
+        long startupCost = (System.nanoTime() - start) / 1000000;
+
+        for (int i = 0; i < ACTIVE_ENTITIES; i++) {
+            assertNotNull(provider.getEntityDescriptor(entityId(i * (ENTITIES / ACTIVE_ENTITIES))));
+        }
+        long heapAfter = usedHeap();
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            provider.getEntityDescriptor(entityId((i % ACTIVE_ENTITIES) * (ENTITIES / ACTIVE_ENTITIES)));
+        }
+        long lookupCost = (System.nanoTime() - start) / LOOKUPS;
+
+        BenchmarkSuite.report("%s: startup %,d ms, retained heap %,d KB, lookup %,d ns", name,
+                startupCost, (heapAfter - heapBefore) / 1024, lookupCost);
+        assertNotNull(provider.getMetadata());
+    }
+
+    /**
+     * Writes an aggregate of service providers.
+     * 
+     * @param file file to write to
+     * 
+     * @throws IOException thrown if the file can not be written
+     */
+    private void writeAggregate(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<md:EntitiesDescriptor"
+                    + " xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\""
+                    + " xmlns:mdui=\"urn:oasis:names:tc:SAML:metadata:ui\" Name=\"urn:example.org:benchmark\">\n");
+            for (int i = 0; i < ENTITIES; i++) {
+                String host = "sp" + i + ".example.org";
+                writer.write("<md:EntityDescriptor entityID=\"" + entityId(i) + "\">"
+                        + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+                        + "<md:Extensions><mdui:UIInfo><mdui:DisplayName xml:lang=\"en\">Service " + i
+                        + "</mdui:DisplayName><mdui:Description xml:lang=\"en\">Benchmark service " + i
+                        + "</mdui:Description></mdui:UIInfo></md:Extensions>"
+                        + "<md:SingleLogoutService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\""
+                        + " Location=\"https://" + host + "/SLO\"/>"
+                        + "<md:NameIDFormat>urn:oasis:names:tc:SAML:2.0:nameid-format:transient</md:NameIDFormat>"
+                        + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+                        + " Location=\"https://" + host + "/POST\" index=\"1\"/>"
+                        + "<md:AssertionConsumerService"
+                        + " Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Artifact\""
+                        + " Location=\"https://" + host + "/Artifact\" index=\"2\"/>"
+                        + "</md:SPSSODescriptor>"
+                        + "<md:Organization><md:OrganizationName xml:lang=\"en\">Organization " + i
+                        + "</md:OrganizationName><md:OrganizationDisplayName xml:lang=\"en\">Organization " + i
+                        + "</md:OrganizationDisplayName><md:OrganizationURL xml:lang=\"en\">https://" + host
+                        + "/</md:OrganizationURL></md:Organization>"
+                        + "</md:EntityDescriptor>\n");
+            }
+            writer.write("</md:EntitiesDescriptor>\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Gets the ID of a generated entity.
+     * 
+     * @param index index of the entity
+     * 
+     * @return ID of the entity
+     */
+    private static String entityId(int index) {
+        return "https://sp" + index + ".example.org/shibboleth";
+    }
+
+    /**
+     * Gets the heap in use after a garbage collection.
+     * 
+     * @return heap in use, in bytes
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
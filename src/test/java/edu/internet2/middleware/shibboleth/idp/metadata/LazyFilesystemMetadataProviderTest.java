@@ -0,0 +1,251 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.metadata;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+
+import edu.internet2.middleware.shibboleth.idp.TestCaseBase;
+import edu.internet2.middleware.shibboleth.idp.profile.MetadataIndex;
+
+/** Tests of {@link LazyFilesystemMetadataProvider}. */
+public class LazyFilesystemMetadataProviderTest extends TestCaseBase {
+
+    /** Metadata of the test entities. */
+    private static final String METADATA = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" Name=\"urn:example.org:fed\">"
+            + "<!-- <md:EntityDescriptor entityID=\"urn:example.org:commented\"/> -->"
+            + "<md:EntityDescriptor entityID=\"urn:example.org:sp1\">"
+            + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+            + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+            + " Location=\"https://sp1.example.org/POST?a=1&amp;b=&gt;\" index=\"1\"/>"
+            + "</md:SPSSODescriptor></md:EntityDescriptor>\n"
+            + "<md:EntityDescriptor entityID='urn:example.org:sp&amp;2'>"
+            + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:1.1:protocol\">"
+            + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:1.0:profiles:browser-post\""
+            + " Location=\"https://sp2.example.org/POST\" index=\"1\"/>"
+            + "</md:SPSSODescriptor></md:EntityDescriptor>\n"
+            + "<md:EntityDescriptor entityID=\"urn:example.org:dup\">"
+            + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+            + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+            + " Location=\"https://dup1.example.org/POST\" index=\"1\"/>"
+            + "</md:SPSSODescriptor></md:EntityDescriptor>\n"
+            + "<md:EntitiesDescriptor xmlns:mdui=\"urn:oasis:names:tc:SAML:metadata:ui\">"
+            + "<md:EntityDescriptor entityID=\"urn:example.org:ui\">"
+            + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+            + "<md:Extensions><mdui:UIInfo><mdui:DisplayName xml:lang=\"en\">UI</mdui:DisplayName></mdui:UIInfo>"
+            + "</md:Extensions>"
+            + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+            + " Location=\"https://ui.example.org/POST\" index=\"1\"/>"
+            + "</md:SPSSODescriptor></md:EntityDescriptor>"
+            + "<md:EntityDescriptor entityID=\"urn:example.org:dup\">"
+            + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+            + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+            + " Location=\"https://dup2.example.org/POST\" index=\"1\"/>"
+            + "</md:SPSSODescriptor></md:EntityDescriptor>"
+            + "</md:EntitiesDescriptor>\n"
+            + "<md:EntitiesDescriptor validUntil=\"2001-01-01T00:00:00Z\">"
+            + "<md:EntityDescriptor entityID=\"urn:example.org:expired\">"
+            + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+            + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+            + " Location=\"https://expired.example.org/POST\" index=\"1\"/>"
+            + "</md:SPSSODescriptor></md:EntityDescriptor>"
+            + "</md:EntitiesDescriptor>"
+            + "</md:EntitiesDescriptor>\n";
+
+    /** File holding the test metadata. */
+    private File metadataFile;
+
+    /** Provider being tested. */
+    private LazyFilesystemMetadataProvider metadataProvider;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        metadataFile = File.createTempFile("lazy-metadata", ".xml");
+        metadataFile.deleteOnExit();
+        write(metadataFile, METADATA);
+
+        metadataProvider = new LazyFilesystemMetadataProvider(metadataFile, parser);
+        metadataProvider.setMaxCachedEntities(2);
+        metadataProvider.initialize();
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        metadataProvider.destroy();
+        metadataFile.delete();
+        super.tearDown();
+    }
+
+    /** Tests that the aggregate is indexed without unmarshalling any entity. */
+    public void testIndex() throws Exception {
+        assertEquals(5, metadataProvider.getEntityCount());
+        assertEquals(0, metadataProvider.getCachedEntityCount());
+
+        DeferredEntitiesDescriptor metadata = (DeferredEntitiesDescriptor) metadataProvider.getMetadata();
+        assertEquals("urn:example.org:fed", metadata.getName());
+        assertSame(metadata, metadataProvider.getEntitiesDescriptor("urn:example.org:fed"));
+        assertTrue(metadata.getEntityDescriptors().isEmpty());
+        assertNull(metadataProvider.getEntityDescriptor("urn:example.org:commented"));
+    }
+
+    /** Tests that entities are unmarshalled when first looked up and then answered from the cache. */
+    public void testLookup() throws Exception {
+        EntityDescriptor sp1 = metadataProvider.getEntityDescriptor("urn:example.org:sp1");
+        assertNotNull(sp1);
+        assertNull(sp1.getDOM());
+        SPSSODescriptor role = sp1.getSPSSODescriptor(SAMLConstants.SAML20P_NS);
+        assertEquals("https://sp1.example.org/POST?a=1&b=>", role.getAssertionConsumerServices().get(0)
+                .getLocation());
+        assertSame(sp1, metadataProvider.getEntityDescriptor("urn:example.org:sp1"));
+        assertSame(role, metadataProvider.getRole("urn:example.org:sp1", SPSSODescriptor.DEFAULT_ELEMENT_NAME,
+                SAMLConstants.SAML20P_NS));
+        assertEquals(1, metadataProvider.getEntityLoads());
+        assertEquals(2, metadataProvider.getCacheHits());
+
+        EntityDescriptor sp2 = metadataProvider.getEntityDescriptor("urn:example.org:sp&2");
+        assertNotNull(sp2.getSPSSODescriptor(SAMLConstants.SAML11P_NS));
+
+        EntityDescriptor ui = metadataProvider.getEntityDescriptor("urn:example.org:ui");
+        assertNotNull(ui.getSPSSODescriptor(SAMLConstants.SAML20P_NS).getExtensions());
+
+        assertEquals("https://dup1.example.org/POST", metadataProvider.getEntityDescriptor("urn:example.org:dup")
+                .getSPSSODescriptor(SAMLConstants.SAML20P_NS).getAssertionConsumerServices().get(0).getLocation());
+        assertNull(metadataProvider.getEntityDescriptor("urn:example.org:unknown"));
+        assertNull(metadataProvider.getEntityDescriptor(null));
+    }
+
+    /** Tests that the least recently used entities are dropped from the cache. */
+    public void testEviction() throws Exception {
+        EntityDescriptor sp1 = metadataProvider.getEntityDescriptor("urn:example.org:sp1");
+        metadataProvider.getEntityDescriptor("urn:example.org:sp&2");
+        metadataProvider.getEntityDescriptor("urn:example.org:ui");
+        assertEquals(2, metadataProvider.getCachedEntityCount());
+        assertEquals(1, metadataProvider.getCacheEvictions());
+
+        EntityDescriptor reloaded = metadataProvider.getEntityDescriptor("urn:example.org:sp1");
+        assertNotSame(sp1, reloaded);
+        assertEquals(sp1.getEntityID(), reloaded.getEntityID());
+        assertEquals(4, metadataProvider.getEntityLoads());
+    }
+
+    /** Tests that entities within expired groups are only answered if valid metadata is not required. */
+    public void testExpired() throws Exception {
+        assertNull(metadataProvider.getEntityDescriptor("urn:example.org:expired"));
+
+        metadataProvider.setRequireValidMetadata(false);
+        assertNotNull(metadataProvider.getEntityDescriptor("urn:example.org:expired"));
+    }
+
+    /** Tests that the aggregate is reloaded when its file changed and that observers are notified. */
+    public void testRefresh() throws Exception {
+        final AtomicInteger events = new AtomicInteger();
+        metadataProvider.getObservers().add(new ObservableMetadataProvider.Observer() {
+            /** {@inheritDoc} */
+            public void onEvent(MetadataProvider provider) {
+                events.incrementAndGet();
+            }
+        });
+        DeferredEntitiesDescriptor metadata = (DeferredEntitiesDescriptor) metadataProvider.getMetadata();
+        assertFalse(metadataProvider.refresh());
+
+        long lastModified = metadataFile.lastModified();
+        write(metadataFile, METADATA.replace("urn:example.org:sp1", "urn:example.org:sp3"));
+        metadataFile.setLastModified(lastModified + 10000);
+
+        assertNotNull(metadataProvider.getEntityDescriptor("urn:example.org:sp3"));
+        assertNull(metadataProvider.getEntityDescriptor("urn:example.org:sp1"));
+        assertEquals(1, events.get());
+        assertNotSame(metadata, metadataProvider.getMetadata());
+    }
+
+    /** Tests that entities are not read from a changed file which could not be loaded. */
+    public void testRejectedRefresh() throws Exception {
+        long lastModified = metadataFile.lastModified();
+        write(metadataFile, METADATA.replace("<md:EntitiesDescriptor xmlns:md", "<md:EntitiesDescriptoX xmlns:md")
+                .replace("https://sp1.example.org/", "https://evi.example.org/"));
+        metadataFile.setLastModified(lastModified + 10000);
+
+        try {
+            metadataProvider.refresh();
+            fail("Changed file does not contain metadata");
+        } catch (MetadataProviderException e) {
+            // expected
+        }
+
+        EntityDescriptor sp1 = metadataProvider.getEntityDescriptor("urn:example.org:sp1");
+        assertEquals("https://sp1.example.org/POST?a=1&b=>", sp1.getSPSSODescriptor(SAMLConstants.SAML20P_NS)
+                .getAssertionConsumerServices().get(0).getLocation());
+        assertEquals(5, metadataProvider.getEntityCount());
+    }
+
+    /** Tests that entities of the aggregate are looked up through a metadata index. */
+    public void testMetadataIndex() throws Exception {
+        MetadataIndex index = new MetadataIndex(metadataProvider);
+        index.rebuild();
+
+        assertEquals(0, index.getEntityCount());
+        assertEquals(0, metadataProvider.getCachedEntityCount());
+        EntityDescriptor sp1 = index.getEntityDescriptor("urn:example.org:sp1");
+        assertNotNull(sp1);
+        assertSame(metadataProvider.getEntityDescriptor("urn:example.org:sp1"), sp1);
+        assertNotNull(index.getEntity("urn:example.org:sp1").getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+        assertNull(index.getEntity("urn:example.org:unknown"));
+    }
+
+    /** Tests that signed metadata can not be required without a trust engine. */
+    public void testRequireSignedMetadata() throws Exception {
+        LazyFilesystemMetadataProvider signedProvider = new LazyFilesystemMetadataProvider(metadataFile, parser);
+        signedProvider.setRequireSignedMetadata(true);
+        try {
+            signedProvider.initialize();
+            fail("Signed metadata is required");
+        } catch (MetadataProviderException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Writes a metadata file.
+     * 
+     * @param file the file
+     * @param content the metadata
+     * 
+     * @throws IOException thrown if the file can not be written
+     */
+    static void write(File file, String content) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+    }
+}
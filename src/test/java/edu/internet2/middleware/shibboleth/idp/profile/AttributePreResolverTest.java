@@ -0,0 +1,124 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import edu.internet2.middleware.shibboleth.common.attribute.BaseAttribute;
+
+/** Tests of {@link AttributePreResolver}. */
+public class AttributePreResolverTest extends TestCase {
+
+    /** Pre-resolver being tested. */
+    private AttributePreResolver preResolver;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        preResolver = new AttributePreResolver(2, 2, 30000, 1000);
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        preResolver.destroy();
+        super.tearDown();
+    }
+
+    /** Tests that a resolution is handed once, and only to a claim for the same principal and relying party. */
+    public void testClaim() {
+        Map<String, BaseAttribute> attributes = new HashMap<String, BaseAttribute>();
+        String ticket = preResolver.submit("jdoe", "urn:example.org:sp1", resolution(attributes, null));
+        assertNotNull(ticket);
+
+        assertSame(attributes, preResolver.claim(ticket, "jdoe", "urn:example.org:sp1"));
+        assertNull(preResolver.claim(ticket, "jdoe", "urn:example.org:sp1"));
+
+        ticket = preResolver.submit("jdoe", "urn:example.org:sp1", resolution(attributes, null));
+        assertNull(preResolver.claim(ticket, "jsmith", "urn:example.org:sp1"));
+        ticket = preResolver.submit("jdoe", "urn:example.org:sp1", resolution(attributes, null));
+        assertNull(preResolver.claim(ticket, "jdoe", "urn:example.org:sp2"));
+        assertNull(preResolver.claim(null, "jdoe", "urn:example.org:sp1"));
+
+        assertEquals(3, preResolver.getSubmitted());
+        assertEquals(1, preResolver.getHits());
+        assertEquals(3, preResolver.getMisses());
+    }
+
+    /** Tests that a claim waits for a resolution in progress, and gives up on one which takes too long. */
+    public void testInProgress() throws Exception {
+        Map<String, BaseAttribute> attributes = new HashMap<String, BaseAttribute>();
+        CountDownLatch latch = new CountDownLatch(1);
+        String ticket = preResolver.submit("jdoe", "urn:example.org:sp1", resolution(attributes, latch));
+        latch.countDown();
+        assertSame(attributes, preResolver.claim(ticket, "jdoe", "urn:example.org:sp1"));
+
+        ticket = preResolver.submit("jdoe", "urn:example.org:sp1", resolution(attributes, new CountDownLatch(1)));
+        long start = System.currentTimeMillis();
+        assertNull(preResolver.claim(ticket, "jdoe", "urn:example.org:sp1"));
+        assertTrue(System.currentTimeMillis() - start >= preResolver.getClaimTimeout());
+    }
+
+    /** Tests that failed resolutions are not handed out and that resolutions are refused once the pool is full. */
+    public void testFailureAndRejection() {
+        String ticket = preResolver.submit("jdoe", "urn:example.org:sp1", new Callable<Map<String, BaseAttribute>>() {
+            /** {@inheritDoc} */
+            public Map<String, BaseAttribute> call() throws Exception {
+                throw new Exception("resolver failure");
+            }
+        });
+        assertNull(preResolver.claim(ticket, "jdoe", "urn:example.org:sp1"));
+
+        CountDownLatch latch = new CountDownLatch(1);
+        Map<String, BaseAttribute> attributes = new HashMap<String, BaseAttribute>();
+        int accepted = 0;
+        for (int i = 0; i < 6; i++) {
+            if (preResolver.submit("user" + i, "urn:example.org:sp1", resolution(attributes, latch)) != null) {
+                accepted++;
+            }
+        }
+        latch.countDown();
+        assertEquals(4, accepted);
+        assertEquals(2, preResolver.getRejected());
+    }
+
+    /**
+     * Creates a resolution returning the given attributes.
+     * 
+     * @param attributes attributes returned by the resolution
+     * @param latch latch the resolution waits on before returning, may be null
+     * 
+     * @return the resolution
+     */
+    private Callable<Map<String, BaseAttribute>> resolution(final Map<String, BaseAttribute> attributes,
+            final CountDownLatch latch) {
+        return new Callable<Map<String, BaseAttribute>>() {
+            /** {@inheritDoc} */
+            public Map<String, BaseAttribute> call() throws Exception {
+                if (latch != null) {
+                    latch.await();
+                }
+                return attributes;
+            }
+        };
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.DOMMetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.XMLObject;
+import org.w3c.dom.Element;
+
+import edu.internet2.middleware.shibboleth.idp.TestCaseBase;
+
+/** Tests of {@link MetadataIndex}. */
+public class MetadataIndexTest extends TestCaseBase {
+
+    /** Metadata of the test entities. */
+    private static final String METADATA = "<md:EntitiesDescriptor"
+            + " xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" xmlns:mdui=\"urn:oasis:names:tc:SAML:metadata:ui\">"
+            + "<md:EntityDescriptor entityID=\"urn:example.org:sp1\">"
+            + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+            + "<md:Extensions><mdui:UIInfo><mdui:DisplayName xml:lang=\"en\">SP 1</mdui:DisplayName></mdui:UIInfo>"
+            + "</md:Extensions>"
+            + "<md:SingleLogoutService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\""
+            + " Location=\"https://sp1.example.org/SLO\"/>"
+            + "<md:NameIDFormat>urn:oasis:names:tc:SAML:2.0:nameid-format:transient</md:NameIDFormat>"
+            + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+            + " Location=\"https://sp1.example.org/POST\" index=\"1\"/>"
+            + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Artifact\""
+            + " Location=\"https://sp1.example.org/Artifact\" index=\"2\"/>"
+            + "</md:SPSSODescriptor></md:EntityDescriptor>"
+            + "<md:EntityDescriptor entityID=\"urn:example.org:sp2\">"
+            + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:1.1:protocol\">"
+            + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:1.0:profiles:browser-post\""
+            + " Location=\"https://sp2.example.org/POST\" index=\"1\"/>"
+            + "</md:SPSSODescriptor></md:EntityDescriptor>"
+            + "<md:EntityDescriptor entityID=\"urn:example.org:dup\">"
+            + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+            + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+            + " Location=\"https://dup1.example.org/POST\" index=\"1\"/>"
+            + "</md:SPSSODescriptor></md:EntityDescriptor>"
+            + "<md:EntitiesDescriptor validUntil=\"2001-01-01T00:00:00Z\">"
+            + "<md:EntityDescriptor entityID=\"urn:example.org:expired\">"
+            + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+            + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+            + " Location=\"https://expired.example.org/POST\" index=\"1\"/>"
+            + "</md:SPSSODescriptor></md:EntityDescriptor>"
+            + "<md:EntityDescriptor entityID=\"urn:example.org:dup\">"
+            + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+            + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+            + " Location=\"https://dup2.example.org/POST\" index=\"1\"/>"
+            + "</md:SPSSODescriptor></md:EntityDescriptor>"
+            + "</md:EntitiesDescriptor></md:EntitiesDescriptor>";
+
+    /** Provider of the test metadata. */
+    private DOMMetadataProvider metadataProvider;
+
+    /** Index being tested. */
+    private MetadataIndex index;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        metadataProvider = new DOMMetadataProvider(parser.parse(new StringReader(METADATA)).getDocumentElement());
+        metadataProvider.setRequireValidMetadata(false);
+        metadataProvider.initialize();
+
+        index = new MetadataIndex(metadataProvider);
+        index.rebuild();
+    }
+
+    /** Tests that entity records carry the pre-resolved roles, formats, endpoints and user interface information. */
+    public void testEntityRecord() throws Exception {
+        MetadataIndex.EntityRecord record = index.getEntity("urn:example.org:sp1");
+        assertNotNull(record);
+        assertSame(metadataProvider.getEntityDescriptor("urn:example.org:sp1"), record.getEntityDescriptor());
+
+        assertNotNull(record.getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+        assertNull(record.getSPSSODescriptor(SAMLConstants.SAML11P_NS));
+        assertNull(record.getAttributeAuthorityDescriptor(SAMLConstants.SAML20P_NS));
+        assertEquals(1, record.getNameIDFormats(record.getSPSSODescriptor(SAMLConstants.SAML20P_NS)).size());
+
+        assertEquals(1, record.getAssertionConsumerServices(SAMLConstants.SAML20P_NS,
+                SAMLConstants.SAML2_ARTIFACT_BINDING_URI).size());
+        assertEquals("https://sp1.example.org/POST", record.getAssertionConsumerServices(SAMLConstants.SAML20P_NS,
+                SAMLConstants.SAML2_POST_BINDING_URI).get(0).getLocation());
+        assertTrue(record.getAssertionConsumerServices(SAMLConstants.SAML11P_NS,
+                SAMLConstants.SAML2_POST_BINDING_URI).isEmpty());
+        assertEquals(1, record.getSingleLogoutServices(SAMLConstants.SAML2_REDIRECT_BINDING_URI).size());
+        assertTrue(record.getSingleLogoutServices(SAMLConstants.SAML2_POST_BINDING_URI).isEmpty());
+        assertNotNull(record.getUIInfo());
+
+        record = index.getEntity("urn:example.org:sp2");
+        assertNotNull(record.getSPSSODescriptor(SAMLConstants.SAML11P_NS));
+        assertNull(record.getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+        assertNull(record.getUIInfo());
+
+        assertNull(index.getEntity("urn:example.org:unknown"));
+        assertNull(index.getEntity(null));
+    }
+
+    /** Tests that duplicated and expired entities are answered by the provider. */
+    public void testProviderFallback() throws Exception {
+        assertEquals(3, index.getEntityCount());
+
+        assertSame(metadataProvider.getEntityDescriptor("urn:example.org:dup"), index
+                .getEntityDescriptor("urn:example.org:dup"));
+        assertSame(metadataProvider.getEntityDescriptor("urn:example.org:expired"), index
+                .getEntityDescriptor("urn:example.org:expired"));
+
+        metadataProvider.setRequireValidMetadata(true);
+        assertNull(index.getEntityDescriptor("urn:example.org:expired"));
+    }
+
+    /** Tests that a rebuild keeps the digests of unchanged entities and reports the changed ones. */
+    public void testRebuild() throws Exception {
+        final Set<String> changedEntities = Collections.synchronizedSet(new HashSet<String>());
+        index.getEntityChangeListeners().add(new MetadataIndex.EntityChangeListener() {
+            /** {@inheritDoc} */
+            public void entitiesChanged(MetadataIndex changedIndex, Set<String> entityIds) {
+                changedEntities.addAll(entityIds);
+            }
+        });
+
+        EntityMetadataCache<String> cache = new EntityMetadataCache<String>();
+        cache.put(index, "urn:example.org:sp1", index.getEntity("urn:example.org:sp1"), "sp1");
+        cache.put(index, "urn:example.org:expired", index.getEntity("urn:example.org:expired"), "expired");
+        assertEquals(2, cache.size());
+
+        MetadataIndex.EntityRecord record = index.getEntity("urn:example.org:sp1");
+        MetadataIndex.EntityRecord expiredRecord = index.getEntity("urn:example.org:expired");
+        index.rebuild();
+        assertSame(record, index.getEntity("urn:example.org:sp1"));
+        assertSame(expiredRecord, index.getEntity("urn:example.org:expired"));
+        assertTrue(changedEntities.isEmpty());
+
+        EntitiesDescriptor metadata = (EntitiesDescriptor) metadataProvider.getMetadata();
+        EntityDescriptor sp1 = metadataProvider.getEntityDescriptor("urn:example.org:sp1");
+        SPSSODescriptor sp1Role = sp1.getSPSSODescriptor(SAMLConstants.SAML20P_NS);
+        sp1Role.getAssertionConsumerServices().remove(1);
+        metadata.getEntityDescriptors().remove(metadataProvider.getEntityDescriptor("urn:example.org:sp2"));
+        index.rebuild();
+
+        assertEquals(2, changedEntities.size());
+        assertTrue(changedEntities.contains("urn:example.org:sp1"));
+        assertTrue(changedEntities.contains("urn:example.org:sp2"));
+        assertNotSame(record, index.getEntity("urn:example.org:sp1"));
+        assertTrue(index.getEntity("urn:example.org:sp1").getAssertionConsumerServices(SAMLConstants.SAML20P_NS,
+                SAMLConstants.SAML2_ARTIFACT_BINDING_URI).isEmpty());
+        assertNull(index.getEntity("urn:example.org:sp2"));
+        assertSame(expiredRecord, index.getEntity("urn:example.org:expired"));
+
+        assertNull(cache.get(index, "urn:example.org:sp1"));
+        assertEquals("expired", cache.get(index, "urn:example.org:expired"));
+    }
+
+    /** Tests that a rebuild from a new document refers to it even for the entities which did not change. */
+    public void testRebuildFromNewDocument() throws Exception {
+        final XMLObject[] replacement = new XMLObject[1];
+        DOMMetadataProvider replaceableProvider = new DOMMetadataProvider(parser.parse(new StringReader(METADATA))
+                .getDocumentElement()) {
+            /** {@inheritDoc} */
+            public XMLObject getMetadata() throws MetadataProviderException {
+                if (replacement[0] != null) {
+                    return replacement[0];
+                }
+                return super.getMetadata();
+            }
+        };
+        replaceableProvider.setRequireValidMetadata(false);
+        replaceableProvider.initialize();
+
+        MetadataIndex replaceableIndex = new MetadataIndex(replaceableProvider);
+        replaceableIndex.rebuild();
+        MetadataIndex.EntityRecord record = replaceableIndex.getEntity("urn:example.org:sp1");
+        EntityMetadataCache<String> cache = new EntityMetadataCache<String>();
+        cache.put(replaceableIndex, "urn:example.org:sp1", record, "sp1");
+
+        Element newMetadataElement = parser.parse(new StringReader(METADATA)).getDocumentElement();
+        EntitiesDescriptor newMetadata = (EntitiesDescriptor) unmarshallerFactory.getUnmarshaller(newMetadataElement)
+                .unmarshall(newMetadataElement);
+        replacement[0] = newMetadata;
+        replaceableIndex.rebuild();
+
+        MetadataIndex.EntityRecord rebuiltRecord = replaceableIndex.getEntity("urn:example.org:sp1");
+        assertNotSame(record, rebuiltRecord);
+        assertEquals(record.getDigest(), rebuiltRecord.getDigest());
+        assertSame(newMetadata.getEntityDescriptors().get(0), rebuiltRecord.getEntityDescriptor());
+        assertNotSame(record.getEntityDescriptor(), rebuiltRecord.getEntityDescriptor());
+        assertEquals("sp1", cache.get(replaceableIndex, "urn:example.org:sp1"));
+    }
+
+    /** Tests that an index is shared between users of a provider. */
+    public void testGetInstance() throws Exception {
+        assertSame(MetadataIndex.getInstance(metadataProvider), MetadataIndex.getInstance(metadataProvider));
+        assertNull(MetadataIndex.getInstance(null));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.Signer;
+
+import edu.internet2.middleware.shibboleth.idp.BenchmarkSuite;
+import edu.internet2.middleware.shibboleth.idp.TestCaseBase;
+
+/**
+ * Benchmark comparing the assertion signing throughput of a {@link SigningService}, with and without its pool of
+ * worker threads, with that of preparing the signature parameters, marshalling and signing on each request thread, as
+ * the profile handlers used to.
+ * 
+ * Run it through {@link BenchmarkSuite}.
+ */
+public class SigningServiceBenchmark extends TestCaseBase {
+
+    /** Number of request threads signing assertions, more than the cores of most machines. */
+    private static final int REQUEST_THREADS = 4 * Runtime.getRuntime().availableProcessors();
+
+    /** Number of assertions signed by each request thread per measurement. */
+    private static final int SIGNATURES = 200;
+
+    /** Credential used to sign. */
+    private Credential credential;
+
+    /** Builder of assertions. */
+    private SAMLObjectBuilder<Assertion> assertionBuilder;
+
+    /** Builder of signatures. */
+    private XMLObjectBuilder<Signature> signatureBuilder;
+
+    /** {@inheritDoc} */
+    @SuppressWarnings("unchecked")
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        KeyPair keyPair = SecurityHelper.generateKeyPair("RSA", 2048, null);
+        credential = SecurityHelper.getSimpleCredential(keyPair.getPublic(), keyPair.getPrivate());
+        assertionBuilder = (SAMLObjectBuilder<Assertion>) builderFactory.getBuilder(Assertion.DEFAULT_ELEMENT_NAME);
+        signatureBuilder = (XMLObjectBuilder<Signature>) builderFactory.getBuilder(Signature.DEFAULT_ELEMENT_NAME);
+    }
+
+    /** Compares the signing throughput of both approaches. */
+    public void testSigning() throws Exception {
+        BenchmarkSuite.report("%d request threads, %d cores", REQUEST_THREADS, Runtime.getRuntime()
+                .availableProcessors());
+
+        // warm up the JIT and the providers before measuring
+        measure("per request (warm up)", null);
+
+        measure("per request", null);
+
+        SigningService callerService = new SigningService(0, 0);
+        measure("signing service without pool", callerService);
+        BenchmarkSuite.report("signing service without pool: mean latency %dms", callerService.getLatencies()
+                .getMean());
+
+        SigningService pooledService = new SigningService();
+        measure("signing service with pool", pooledService);
+        BenchmarkSuite.report("signing service with pool: %,d signatures computed by the caller, mean latency %dms",
+                pooledService.getCallerSignatures(), pooledService.getLatencies().getMean());
+        pooledService.destroy();
+    }
+
+    /**
+     * Signs assertions from all request threads and reports the number of signatures computed per second.
+     * 
+     * @param label label of the measurement
+     * @param service signing service to use, or null to sign on the request threads
+     */
+    private void measure(String label, final SigningService service) throws Exception {
+        final AtomicLong failures = new AtomicLong();
+        List<Thread> requestThreads = new ArrayList<Thread>();
+        for (int i = 0; i < REQUEST_THREADS; i++) {
+            requestThreads.add(new Thread() {
+                /** {@inheritDoc} */
+                public void run() {
+                    try {
+                        for (int j = 0; j < SIGNATURES; j++) {
+                            Assertion assertion = assertionBuilder.buildObject();
+                            assertion.setID("_" + getName() + "-" + j);
+                            if (service == null) {
+                                signPerRequest(assertion);
+                            } else {
+                                service.sign(assertion, credential);
+                            }
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread requestThread : requestThreads) {
+            requestThread.start();
+        }
+        for (Thread requestThread : requestThreads) {
+            requestThread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(0, failures.get());
+        long signatures = (long) REQUEST_THREADS * SIGNATURES;
+        BenchmarkSuite.report("%s: %,d signatures in %,d ms, %,.0f signatures/sec", label, signatures,
+                elapsed / 1000000, signatures * 1e9 / elapsed);
+    }
+
+    /**
+     * Signs an assertion the way the profile handlers did before the signing service.
+     * 
+     * @param assertion the assertion
+     */
+    private void signPerRequest(Assertion assertion) throws Exception {
+        Signature signature = signatureBuilder.buildObject(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(credential);
+        SecurityHelper.prepareSignatureParams(signature, credential, null, null);
+        assertion.setSignature(signature);
+        marshallerFactory.getMarshaller(assertion).marshall(assertion);
+        Signer.signObject(signature);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.signature.SignatureValidator;
+
+import edu.internet2.middleware.shibboleth.idp.TestCaseBase;
+
+/** Tests {@link SigningService}. */
+public class SigningServiceTest extends TestCaseBase {
+
+    /** Credential used to sign. */
+    private Credential credential;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        KeyPair keyPair = SecurityHelper.generateKeyPair("RSA", 1024, null);
+        credential = SecurityHelper.getSimpleCredential(keyPair.getPublic(), keyPair.getPrivate());
+    }
+
+    /** Tests signing on the caller's thread, reusing the prepared signature parameters. */
+    public void testCallerSigning() throws Exception {
+        SigningService service = new SigningService(0, 0);
+
+        Assertion first = buildAssertion("first");
+        service.sign(first, credential);
+        Assertion second = buildAssertion("second");
+        service.sign(second, credential);
+
+        assertValid(first);
+        assertValid(second);
+        assertEquals(1, service.getPreparedCredentials());
+        assertEquals(1, service.getParameterCacheHits());
+        assertEquals(2, service.getLatencies().getCount());
+        assertEquals(first.getSignature().getSignatureAlgorithm(), second.getSignature().getSignatureAlgorithm());
+        if (first.getSignature().getKeyInfo() != null) {
+            assertNotSame(first.getSignature().getKeyInfo(), second.getSignature().getKeyInfo());
+        }
+    }
+
+    /** Tests signing from many threads on a small pool, some signatures being computed by the callers. */
+    public void testPooledSigning() throws Exception {
+        final SigningService service = new SigningService(2, 0);
+        final List<Assertion> assertions = new ArrayList<Assertion>();
+        for (int i = 0; i < 64; i++) {
+            assertions.add(buildAssertion("assertion" + i));
+        }
+
+        final List<Exception> failures = new ArrayList<Exception>();
+        List<Thread> callers = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final int first = i * 8;
+            Thread caller = new Thread() {
+                /** {@inheritDoc} */
+                public void run() {
+                    try {
+                        for (int j = first; j < first + 8; j++) {
+                            service.sign(assertions.get(j), credential);
+                        }
+                    } catch (Exception e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            callers.add(caller);
+            caller.start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        service.destroy();
+
+        assertTrue(failures.isEmpty());
+        for (Assertion assertion : assertions) {
+            assertValid(assertion);
+        }
+        assertEquals(64, service.getLatencies().getCount());
+        assertEquals(1, service.getPreparedCredentials());
+        assertEquals(63, service.getParameterCacheHits());
+    }
+
+    /** Tests that invalid arguments are refused. */
+    public void testInvalidArguments() throws Exception {
+        try {
+            new SigningService(-1, 0);
+            fail("negative number of threads accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        SigningService service = new SigningService(0, 0);
+        try {
+            service.sign(buildAssertion("assertion"), null);
+            fail("missing credential accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Builds an unsigned assertion.
+     * 
+     * @param id ID of the assertion
+     * 
+     * @return the assertion
+     */
+    @SuppressWarnings("unchecked")
+    private Assertion buildAssertion(String id) {
+        SAMLObjectBuilder<Assertion> assertionBuilder = (SAMLObjectBuilder<Assertion>) builderFactory
+                .getBuilder(Assertion.DEFAULT_ELEMENT_NAME);
+        Assertion assertion = assertionBuilder.buildObject();
+        assertion.setID(id);
+        return assertion;
+    }
+
+    /**
+     * Asserts that an assertion carries a valid signature.
+     * 
+     * @param assertion the assertion
+     */
+    private void assertValid(Assertion assertion) throws Exception {
+        assertNotNull(assertion.getDOM());
+        assertTrue(assertion.isSigned());
+        new SignatureValidator(credential).validate(assertion.getSignature());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+
+/** Tests of {@link ConcurrentSessionStorageService}. */
+public class ConcurrentSessionStorageServiceTest extends TestCase {
+
+    /** Partition sessions are stored in. */
+    private static final String PARTITION = "session";
+
+    /** Inactivity timeout of the sessions. */
+    private static final long TIMEOUT = 1800000;
+
+    /** Store being tested. */
+    private ConcurrentSessionStorageService store;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        store = new ConcurrentSessionStorageService(16, 4);
+    }
+
+    /** Tests that a key bound to an unexpired entry is kept, and that one bound to an expired entry is replaced. */
+    public void testPutIfAbsent() {
+        SessionManagerEntry first = newEntry("first", false);
+        assertNull(store.putIfAbsent(PARTITION, "key", first));
+        assertSame(first, store.putIfAbsent(PARTITION, "key", newEntry("second", false)));
+        assertSame(first, store.get(PARTITION, "key"));
+
+        SessionManagerEntry expired = newEntry("expired", true);
+        store.put(PARTITION, "expired", expired);
+        SessionManagerEntry replacement = newEntry("expired", false);
+        assertNull(store.putIfAbsent(PARTITION, "expired", replacement));
+        assertSame(replacement, store.get(PARTITION, "expired"));
+    }
+
+    /** Tests that an expired entry is removed, under every key it is stored under, when it is read. */
+    public void testExpiryOnRead() {
+        SessionManagerEntry entry = newEntry("expiring", false);
+        entry.getSessionIndexes().add("index");
+        store.put(PARTITION, "expiring", entry);
+        store.put(PARTITION, "index", entry);
+        assertSame(entry, store.get(PARTITION, "index"));
+        assertTrue(store.contains(PARTITION, "expiring"));
+
+        ((SessionImpl) entry.getSession()).setLastActivityInstant(new DateTime().minus(TIMEOUT + 1000));
+        assertNull(store.get(PARTITION, "expiring"));
+        assertEquals(0, store.size(PARTITION));
+        assertFalse(store.contains(PARTITION, "index"));
+    }
+
+    /** Tests that a key is only removed while it is bound to the given entry. */
+    public void testConditionalRemove() {
+        SessionManagerEntry entry = newEntry("entry", false);
+        store.put(PARTITION, "key", entry);
+
+        assertFalse(store.remove(PARTITION, "key", newEntry("other", false)));
+        assertSame(entry, store.get(PARTITION, "key"));
+        assertFalse(store.remove("missing", "key", entry));
+        assertFalse(store.remove(PARTITION, null, entry));
+
+        assertTrue(store.remove(PARTITION, "key", entry));
+        assertNull(store.get(PARTITION, "key"));
+        assertFalse(store.remove(PARTITION, "key", entry));
+    }
+
+    /** Tests iterating over the partitions and the keys of a partition. */
+    public void testPartitionIteration() {
+        assertFalse(store.getPartitions().hasNext());
+        assertFalse(store.getKeys(PARTITION).hasNext());
+
+        store.put(PARTITION, "a", newEntry("a", false));
+        store.put(PARTITION, "b", newEntry("b", false));
+        store.put("other", "c", newEntry("c", false));
+
+        Set<String> partitions = new HashSet<String>();
+        for (Iterator<String> partitionItr = store.getPartitions(); partitionItr.hasNext();) {
+            partitions.add(partitionItr.next());
+        }
+        assertEquals(2, partitions.size());
+        assertTrue(partitions.contains(PARTITION));
+        assertTrue(partitions.contains("other"));
+
+        Set<String> keys = new HashSet<String>();
+        Iterator<String> keyItr = store.getKeys(PARTITION);
+        while (keyItr.hasNext()) {
+            String key = keyItr.next();
+            keys.add(key);
+            if ("a".equals(key)) {
+                keyItr.remove();
+            }
+        }
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains("b"));
+        assertNull(store.get(PARTITION, "a"));
+        assertEquals(1, store.size(PARTITION));
+        assertEquals(1, store.size("other"));
+        assertEquals(0, store.size("missing"));
+    }
+
+    /**
+     * Creates a store entry for a session.
+     * 
+     * @param sessionId ID of the session
+     * @param expired whether the session's inactivity timeout has already passed
+     * 
+     * @return the entry
+     */
+    private SessionManagerEntry newEntry(String sessionId, boolean expired) {
+        SessionImpl session = new SessionImpl(sessionId, new byte[16], TIMEOUT);
+        if (expired) {
+            session.setLastActivityInstant(new DateTime().minus(TIMEOUT + 1000));
+        }
+        return new SessionManagerEntry(session, TIMEOUT);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.util.Random;
+
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml2.core.AuthnContext;
+
+import edu.internet2.middleware.shibboleth.common.session.SessionManager;
+import edu.internet2.middleware.shibboleth.idp.BenchmarkSuite;
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.util.SlabAllocator;
+
+/**
+ * Benchmark comparing the heap usage and lookup latency of the {@link OffHeapSessionManager} with the
+ * {@link SessionManagerImpl} backed by a {@link ConcurrentSessionStorageService}.
+ * 
+ * Run it through {@link BenchmarkSuite}. The JVM running it needs at least 256MB of direct memory.
+ */
+public class OffHeapSessionManagerBenchmark extends TestCase {
+
+    /** Number of sessions created in each manager. */
+    private static final int SESSIONS = 100000;
+
+    /** Number of lookups timed in each manager. */
+    private static final int LOOKUPS = 500000;
+
+    /** Session lifetime, in milliseconds. */
+    private static final long LIFETIME = 1800000;
+
+    /** Compares both managers. */
+    public void testHeapAndLatency() {
+        measure("on-heap ", new SessionManagerImpl(new ConcurrentSessionStorageService(), LIFETIME));
+        measure("off-heap", new OffHeapSessionManager(new SlabAllocator(256 * 1024 * 1024), LIFETIME));
+    }
+
+    /**
+     * Loads a manager with sessions then reports the heap they use and the mean latency of looking them up.
+     * 
+     * @param name name of the manager in the report
+     * @param sessionManager the manager
+     */
+    private void measure(String name, SessionManager<Session> sessionManager) {
+        long heapBefore = usedHeap();
+        String[] sessionIds = new String[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            sessionIds[i] = populate(sessionManager.createSession(), i).getSessionID();
+        }
+        if (sessionManager instanceof OffHeapSessionManager) {
+            // let the views of the new sessions be collected and dropped, as they would be between requests
+            usedHeap();
+            ((OffHeapSessionManager) sessionManager).getMaterializedSessionCount();
+        }
+        long heapAfter = usedHeap();
+
+        Random random = new Random(42);
+        for (int i = 0; i < LOOKUPS / 10; i++) {
+            sessionManager.getSession(sessionIds[random.nextInt(SESSIONS)]).getPrincipalName();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            sessionManager.getSession(sessionIds[random.nextInt(SESSIONS)]).getPrincipalName();
+        }
+        long lookupNanos = (System.nanoTime() - start) / LOOKUPS;
+
+        BenchmarkSuite.report("%s: %,6d bytes of heap per session, %,8d ns per lookup", name,
+                (heapAfter - heapBefore) / SESSIONS, lookupNanos);
+        assertNotNull(sessionIds[0]);
+    }
+
+    /**
+     * Gives a session the state it has after a user logged in and visited one service.
+     * 
+     * @param session the session
+     * @param sequence sequence number of the session
+     * 
+     * @return the session
+     */
+    private Session populate(Session session, int sequence) {
+        UsernamePrincipal principal = new UsernamePrincipal("user" + sequence);
+        Subject subject = new Subject();
+        subject.getPrincipals().add(principal);
+        session.setSubject(subject);
+
+        AuthenticationMethodInformation authnMethod = new AuthenticationMethodInformationImpl(subject, principal,
+                AuthnContext.PPT_AUTHN_CTX, new DateTime(), LIFETIME);
+        session.getAuthenticationMethods().put(authnMethod.getAuthenticationMethod(), authnMethod);
+        ServiceInformationImpl service = new ServiceInformationImpl("https://sp" + (sequence % 50)
+                + ".example.org/shibboleth", new DateTime(), authnMethod);
+        session.getServicesInformation().put(service.getEntityID(), service);
+        return session;
+    }
+
+    /**
+     * Gets the heap in use after a full collection.
+     * 
+     * @return bytes of heap in use
+     */
+    private long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
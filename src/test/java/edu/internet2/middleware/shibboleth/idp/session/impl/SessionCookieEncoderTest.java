@@ -0,0 +1,144 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.util.Arrays;
+
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml2.core.AuthnContext;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+
+/** Tests of {@link SessionCookieEncoder}. */
+public class SessionCookieEncoderTest extends TestCase {
+
+    /** Current secret. */
+    private static final String SECRET = "c2Vzc2lvbi1jb29raWUtc2VjcmV0LTE=";
+
+    /** Retired secret. */
+    private static final String OLD_SECRET = "c2Vzc2lvbi1jb29raWUtc2VjcmV0LTA=";
+
+    /** Address of the client. */
+    private static final String CLIENT = "192.0.2.1";
+
+    /** Tests that a session survives the round trip through a cookie. */
+    public void testRoundTrip() {
+        SessionCookieEncoder encoder = newEncoder(SECRET);
+        Session session = buildSession(1800000);
+        String cookieValue = encoder.encode(session, CLIENT);
+        assertTrue(SessionCookieEncoder.isEncodedSession(cookieValue));
+
+        Session decoded = encoder.decode(cookieValue, CLIENT);
+        assertEquals(session.getSessionID(), decoded.getSessionID());
+        assertEquals("jdoe", decoded.getPrincipalName());
+        assertEquals(session.getAuthenticationMethods().keySet(), decoded.getAuthenticationMethods().keySet());
+        assertEquals(session.getServicesInformation().keySet(), decoded.getServicesInformation().keySet());
+    }
+
+    /** Tests that cookies which were altered, or are presented by another client, are rejected. */
+    public void testTamperedCookie() {
+        SessionCookieEncoder encoder = newEncoder(SECRET);
+        String cookieValue = encoder.encode(buildSession(1800000), CLIENT);
+        assertNull(encoder.decode(cookieValue, "192.0.2.2"));
+
+        char[] tampered = cookieValue.toCharArray();
+        tampered[20] = tampered[20] == 'A' ? 'B' : 'A';
+        assertNull(encoder.decode(new String(tampered), CLIENT));
+        assertEquals(2, encoder.getRejectedCookies());
+    }
+
+    /** Tests that cookies encrypted under a secret being rolled over are accepted, and rejected once it is removed. */
+    public void testSecretRollover() {
+        String cookieValue = newEncoder(OLD_SECRET).encode(buildSession(1800000), CLIENT);
+        assertNotNull(newEncoder(SECRET, OLD_SECRET).decode(cookieValue, CLIENT));
+        assertNull(newEncoder(SECRET).decode(cookieValue, CLIENT));
+    }
+
+    /** Tests that cookies carrying expired sessions are rejected. */
+    public void testExpiredSession() {
+        SessionCookieEncoder encoder = newEncoder(SECRET);
+        Session session = buildSession(1000);
+        session.setLastActivityInstant(new DateTime().minusMinutes(1));
+        assertNull(encoder.decode(encoder.encode(session, CLIENT), CLIENT));
+    }
+
+    /** Tests that cookies issued before their session was logged out are rejected afterwards. */
+    public void testRevokedSession() {
+        SessionCookieEncoder encoder = newEncoder(SECRET);
+        Session session = buildSession(1800000);
+        String cookieValue = encoder.encode(session, CLIENT);
+        assertNotNull(encoder.decode(cookieValue, CLIENT));
+
+        encoder.revoke(session);
+        assertTrue(encoder.isRevoked(session.getSessionID()));
+        assertNull(encoder.decode(cookieValue, CLIENT));
+        assertEquals(1, encoder.getRevokedSessions());
+        assertEquals(1, encoder.getRejectedCookies());
+    }
+
+    /** Tests that sessions exceeding the cookie size budget are not encoded. */
+    public void testOversizedSession() {
+        SessionCookieEncoder encoder = newEncoder(SECRET);
+        encoder.setMaxCookieSize(200);
+        assertNull(encoder.encode(buildSession(1800000), CLIENT));
+        assertEquals(1, encoder.getOversizedSessions());
+    }
+
+    /**
+     * Creates an encoder.
+     * 
+     * @param secrets secrets of the encoder's key set
+     * 
+     * @return the encoder
+     */
+    private SessionCookieEncoder newEncoder(String... secrets) {
+        return new SessionCookieEncoder(new SessionCookieKeySet(Arrays.asList(secrets),
+                SessionCookieKeySet.DEFAULT_ROTATION_INTERVAL));
+    }
+
+    /**
+     * Builds a session as it is after a user logged in to two services.
+     * 
+     * @param timeout inactivity timeout of the session
+     * 
+     * @return the session
+     */
+    private Session buildSession(long timeout) {
+        SessionImpl session = new SessionImpl("0123456789abcdef0123456789abcdef", new byte[16], timeout);
+        UsernamePrincipal principal = new UsernamePrincipal("jdoe");
+        Subject subject = new Subject();
+        subject.getPrincipals().add(principal);
+        session.setSubject(subject);
+
+        AuthenticationMethodInformation authnMethod = new AuthenticationMethodInformationImpl(subject, principal,
+                AuthnContext.PPT_AUTHN_CTX, new DateTime(), 28800000);
+        session.getAuthenticationMethods().put(authnMethod.getAuthenticationMethod(), authnMethod);
+        for (int i = 0; i < 2; i++) {
+            ServiceInformationImpl service = new ServiceInformationImpl("https://sp" + i + ".example.org/shibboleth",
+                    new DateTime(), authnMethod);
+            session.getServicesInformation().put(service.getEntityID(), service);
+        }
+        return session;
+    }
+}
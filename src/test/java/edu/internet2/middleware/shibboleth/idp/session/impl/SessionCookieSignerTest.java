@@ -0,0 +1,107 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/** Tests of {@link SessionCookieSigner} and {@link RejectedCookieCache}. */
+public class SessionCookieSignerTest extends TestCase {
+
+    /** Current key. */
+    private static final String KEY = "c2Vzc2lvbi1jb29raWUtc2lnbmVyLTE=";
+
+    /** Retired key. */
+    private static final String OLD_KEY = "c2Vzc2lvbi1jb29raWUtc2lnbmVyLTA=";
+
+    /** Address of the client. */
+    private static final byte[] CLIENT = "192.0.2.1".getBytes();
+
+    /** ID of the session. */
+    private static final byte[] SESSION_ID = "0123456789abcdef0123456789abcdef".getBytes();
+
+    /** Tests that signatures verify only for the content they were made over. */
+    public void testSignAndVerify() {
+        SessionCookieSigner signer = new SessionCookieSigner(Arrays.asList(KEY));
+        byte[] signature = signer.sign(CLIENT, SESSION_ID);
+        assertEquals(32, signature.length);
+        assertTrue(signer.verify(CLIENT, SESSION_ID, signature));
+
+        assertFalse(signer.verify("192.0.2.2".getBytes(), SESSION_ID, signature));
+        assertFalse(signer.verify(CLIENT, "0123456789abcdef0123456789abcdee".getBytes(), signature));
+        assertFalse(signer.verify("192.0.2.10".getBytes(), "123456789abcdef0123456789abcdef".getBytes(), signature));
+
+        byte[] tampered = signature.clone();
+        tampered[5] ^= 1;
+        assertFalse(signer.verify(CLIENT, SESSION_ID, tampered));
+        byte[] truncated = new byte[20];
+        System.arraycopy(signature, 0, truncated, 0, truncated.length);
+        assertFalse(signer.verify(CLIENT, SESSION_ID, truncated));
+        assertFalse(signer.verify(CLIENT, SESSION_ID, null));
+
+        assertFalse(new SessionCookieSigner(Arrays.asList(OLD_KEY)).verify(CLIENT, SESSION_ID, signature));
+    }
+
+    /** Tests the signatures made with the session's own secret when no signer is configured. */
+    public void testSessionSecretSignature() {
+        byte[] secret = "session-secret".getBytes();
+        byte[] signature = SessionCookieSigner.signWithSessionSecret(secret, CLIENT, SESSION_ID);
+        assertEquals(20, signature.length);
+        assertTrue(SessionCookieSigner.verifyWithSessionSecret(secret, CLIENT, SESSION_ID, signature));
+
+        assertFalse(SessionCookieSigner.verifyWithSessionSecret("other-secret".getBytes(), CLIENT, SESSION_ID,
+                signature));
+        assertFalse(SessionCookieSigner.verifyWithSessionSecret(secret, "192.0.2.2".getBytes(), SESSION_ID,
+                signature));
+        assertFalse(SessionCookieSigner.verifyWithSessionSecret(null, CLIENT, SESSION_ID, signature));
+    }
+
+    /** Tests that cookies signed with a retired key are accepted while it is still listed. */
+    public void testKeyRollover() {
+        byte[] oldSignature = new SessionCookieSigner(Arrays.asList(OLD_KEY)).sign(CLIENT, SESSION_ID);
+
+        SessionCookieSigner signer = new SessionCookieSigner(Arrays.asList(KEY, OLD_KEY));
+        assertTrue(signer.verify(CLIENT, SESSION_ID, oldSignature));
+        assertFalse(Arrays.equals(oldSignature, signer.sign(CLIENT, SESSION_ID)));
+
+        assertFalse(new SessionCookieSigner(Arrays.asList(KEY)).verify(CLIENT, SESSION_ID, oldSignature));
+    }
+
+    /** Tests that short keys are refused. */
+    public void testShortKey() {
+        try {
+            new SessionCookieSigner(Arrays.asList("c2hvcnQ="));
+            fail("Short key should have been refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /** Tests that rejected cookie values are remembered per client address. */
+    public void testRejectedCookieCache() {
+        RejectedCookieCache cache = new RejectedCookieCache(1000);
+        assertEquals(1024, cache.getSize());
+
+        assertFalse(cache.contains("192.0.2.1", "forged"));
+        cache.add("192.0.2.1", "forged");
+        assertTrue(cache.contains("192.0.2.1", "forged"));
+        assertFalse(cache.contains("192.0.2.2", "forged"));
+        assertFalse(cache.contains("192.0.2.1", "genuine"));
+        assertEquals(1, cache.getHits());
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.util.FileBackedStorageService;
+
+/** Tests of the limits {@link SessionManagerImpl} places on the sessions it holds. */
+public class SessionManagerImplTest extends TestCase {
+
+    /** Lifetime of the sessions. */
+    private static final long LIFETIME = 1800000;
+
+    /** Session manager being tested. */
+    private SessionManagerImpl sessionManager;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        sessionManager = new SessionManagerImpl(new ConcurrentSessionStorageService(), LIFETIME);
+    }
+
+    /** Tests that the least recently active sessions of a principal are destroyed once it holds too many. */
+    public void testPrincipalLimit() {
+        sessionManager.setMaxSessionsPerPrincipal(2);
+
+        long now = System.currentTimeMillis();
+        List<Session> sessions = new ArrayList<Session>();
+        for (int i = 0; i < 3; i++) {
+            Session session = login("jdoe", now - 10000 + i * 1000);
+            sessions.add(session);
+        }
+
+        assertNull(sessionManager.getSession(sessions.get(0).getSessionID()));
+        assertNotNull(sessionManager.getSession(sessions.get(1).getSessionID()));
+        assertNotNull(sessionManager.getSession(sessions.get(2).getSessionID()));
+        assertEquals(2, sessionManager.getSessionsForPrincipal("jdoe").size());
+        assertEquals(1, sessionManager.getPrincipalEvictions());
+
+        // other principals are not affected
+        Session other = login("jsmith", now - 20000);
+        assertNotNull(sessionManager.getSession(other.getSessionID()));
+        assertEquals(1, sessionManager.getPrincipalEvictions());
+    }
+
+    /** Tests that the least recently active sessions are evicted once the memory budget is exceeded. */
+    public void testMemoryBudget() {
+        long now = System.currentTimeMillis();
+        Session first = login("user0", now - 100000);
+        long sessionSize = sessionManager.getEstimatedMemory();
+        assertTrue(sessionSize > 0);
+
+        sessionManager.setMemoryBudget(sessionSize * 10);
+        List<Session> sessions = new ArrayList<Session>();
+        for (int i = 1; i < 20; i++) {
+            sessions.add(login("user" + i, now - 100000 + i * 1000));
+        }
+
+        assertTrue(sessionManager.getMemoryEvictions() > 0);
+        assertTrue(sessionManager.getEstimatedMemory() <= sessionManager.getMemoryBudget());
+        assertNull(sessionManager.getSession(first.getSessionID()));
+        assertNotNull(sessionManager.getSession(sessions.get(sessions.size() - 1).getSessionID()));
+
+        sessionManager.destroySession(sessions.get(sessions.size() - 1).getSessionID());
+        assertTrue(sessionManager.getEstimatedMemory() < sessionSize * 10);
+    }
+
+    /** Tests that the sessions evicted are the least recently used ones and that the estimate follows their growth. */
+    public void testLeastRecentlyUsed() {
+        long now = System.currentTimeMillis();
+        Session first = login("user0", now);
+        long sessionSize = sessionManager.getEstimatedMemory();
+        Session second = login("user1", now);
+        long memory = sessionManager.getEstimatedMemory();
+
+        sessionManager.indexSession(second, "a-much-longer-name-identifier-index-of-the-second-session");
+        assertTrue(sessionManager.getEstimatedMemory() > memory);
+
+        sessionManager.setMemoryBudget(sessionManager.getEstimatedMemory() + sessionSize / 2);
+        assertNotNull(sessionManager.getSession(first.getSessionID()));
+        Session third = login("user2", now);
+
+        assertEquals(1, sessionManager.getMemoryEvictions());
+        assertNotNull(sessionManager.getSession(first.getSessionID()));
+        assertNull(sessionManager.getSession(second.getSessionID()));
+        assertNotNull(sessionManager.getSession(third.getSessionID()));
+    }
+
+    /** Tests that the estimate of a session is taken again when it is used after it gained a service. */
+    public void testEstimateFollowsServices() {
+        Session session = login("user0", System.currentTimeMillis());
+        long memory = sessionManager.getEstimatedMemory();
+        assertNotNull(sessionManager.getSession(session.getSessionID()));
+        assertEquals(memory, sessionManager.getEstimatedMemory());
+
+        ServiceInformationImpl service = new ServiceInformationImpl("https://sp.example.org/shibboleth",
+                new DateTime(), null);
+        session.getServicesInformation().put(service.getEntityID(), service);
+        assertNotNull(sessionManager.getSession(session.getSessionID()));
+        assertTrue(sessionManager.getEstimatedMemory() > memory);
+    }
+
+    /**
+     * Tests that the activity of a session kept in a file backed store is journaled and that destroying it is too.
+     * 
+     * @throws Exception thrown if the store can not be written or read
+     */
+    public void testPersistedActivity() throws Exception {
+        File directory = File.createTempFile("sessions", "");
+        directory.delete();
+        try {
+            FileBackedStorageService<SessionManagerEntry> store = new FileBackedStorageService<SessionManagerEntry>(
+                    new ConcurrentSessionStorageService(), directory.getAbsolutePath());
+            store.initialize();
+            sessionManager = new SessionManagerImpl(store, LIFETIME);
+            long now = System.currentTimeMillis();
+            Session active = login("jdoe", now - 60000);
+            Session destroyed = login("jsmith", now - 60000);
+            store.flush();
+            active.setLastActivityInstant(new DateTime(now));
+            sessionManager.destroySession(destroyed.getSessionID());
+            store.flush();
+            store.destroy();
+
+            ConcurrentSessionStorageService memory = new ConcurrentSessionStorageService();
+            FileBackedStorageService<SessionManagerEntry> reloaded = new FileBackedStorageService<SessionManagerEntry>(
+                    memory, directory.getAbsolutePath());
+            reloaded.initialize();
+            reloaded.destroy();
+            SessionManagerEntry entry = memory.get("session", active.getSessionID());
+            assertNotNull(entry);
+            assertEquals(now, entry.getSession().getLastActivityInstant().getMillis());
+            assertNull(memory.get("session", destroyed.getSessionID()));
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    /** Tests that sessions created for the session cookie alone are neither stored nor indexed. */
+    public void testUnmanagedSession() {
+        Session session = sessionManager.createUnmanagedSession();
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new UsernamePrincipal("user0"));
+        session.setSubject(subject);
+
+        assertNull(sessionManager.getSession(session.getSessionID()));
+        assertFalse(sessionManager.indexSession(session, "user0"));
+        assertEquals(0, sessionManager.getEstimatedMemory());
+    }
+
+    /**
+     * Creates a session and logs a principal into it, as the authentication engine does.
+     *
+     * @param principalName name of the principal
+     * @param lastActivity last activity instant given to the session
+     *
+     * @return the session
+     */
+    private Session login(String principalName, long lastActivity) {
+        Session session = sessionManager.createSession();
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new UsernamePrincipal(principalName));
+        session.setSubject(subject);
+        session.setLastActivityInstant(new DateTime(lastActivity));
+        sessionManager.indexSession(session, principalName);
+        return session;
+    }
+}
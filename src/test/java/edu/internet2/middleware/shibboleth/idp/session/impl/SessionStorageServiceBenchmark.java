@@ -0,0 +1,131 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.opensaml.util.storage.MapBasedStorageService;
+import org.opensaml.util.storage.StorageService;
+
+import edu.internet2.middleware.shibboleth.idp.BenchmarkSuite;
+
+/**
+ * Throughput benchmark comparing the {@link ConcurrentSessionStorageService} with the map based storage service
+ * previously used to hold sessions.
+ * 
+ * Run it through {@link BenchmarkSuite}.
+ */
+public class SessionStorageServiceBenchmark extends TestCase {
+
+    /** Partition sessions are stored in. */
+    private static final String PARTITION = "session";
+
+    /** Number of sessions loaded in to the store before measuring. */
+    private static final int SESSIONS = 50000;
+
+    /** Length of each measurement, in milliseconds. */
+    private static final long DURATION = 2000;
+
+    /** Thread counts at which each store is measured. */
+    private static final int[] THREADS = {1, 8, 32};
+
+    /** Runs the benchmark against both stores. */
+    public void testThroughput() throws Exception {
+        for (int threads : THREADS) {
+            long mapOps = measure(new MapBasedStorageService<String, SessionManagerEntry>(), threads);
+            long concurrentOps = measure(new ConcurrentSessionStorageService(), threads);
+            BenchmarkSuite.report("%2d threads: map-based %,12d ops/s, concurrent %,12d ops/s (%.2fx)",
+                    threads, mapOps, concurrentOps, (double) concurrentOps / mapOps);
+        }
+    }
+
+    /**
+     * Measures the throughput of a store with a login-like mix of operations: mostly lookups, with a new session and
+     * a destroyed session for every eight lookups.
+     * 
+     * @param store store to measure
+     * @param threadCount number of concurrent threads
+     * 
+     * @return operations per second
+     * 
+     * @throws InterruptedException thrown if the benchmark is interrupted
+     */
+    private long measure(final StorageService<String, SessionManagerEntry> store, int threadCount)
+            throws InterruptedException {
+        final String[] keys = new String[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            keys[i] = Integer.toHexString(i);
+            store.put(PARTITION, keys[i], newEntry(keys[i]));
+        }
+
+        final AtomicLong operations = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final long[] deadline = new long[1];
+
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            Thread worker = new Thread() {
+                public void run() {
+                    Random random = new Random(seed);
+                    long ops = 0;
+                    try {
+                        start.await();
+                        while (System.currentTimeMillis() < deadline[0]) {
+                            String key = keys[random.nextInt(SESSIONS)];
+                            int op = ops % 10 == 8 ? 1 : ops % 10 == 9 ? 2 : 0;
+                            if (op == 0) {
+                                store.get(PARTITION, key);
+                            } else if (op == 1) {
+                                store.put(PARTITION, key, newEntry(key));
+                            } else {
+                                store.remove(PARTITION, key);
+                            }
+                            ops++;
+                        }
+                    } catch (InterruptedException e) {
+                        // fall through and report what was done
+                    }
+                    operations.addAndGet(ops);
+                    done.countDown();
+                }
+            };
+            worker.start();
+        }
+
+        deadline[0] = System.currentTimeMillis() + DURATION;
+        start.countDown();
+        done.await();
+        return operations.get() * 1000 / DURATION;
+    }
+
+    /**
+     * Creates a store entry for a new session.
+     * 
+     * @param sessionId ID of the session
+     * 
+     * @return the entry
+     */
+    private static SessionManagerEntry newEntry(String sessionId) {
+        return new SessionManagerEntry(new SessionImpl(sessionId, new byte[16], 1800000), 1800000);
+    }
+}
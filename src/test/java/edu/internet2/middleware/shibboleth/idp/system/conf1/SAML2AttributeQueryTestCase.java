@@ -18,6 +18,7 @@
 package edu.internet2.middleware.shibboleth.idp.system.conf1;
 
 import java.io.StringWriter;
+import java.util.Collections;
 
 import org.joda.time.DateTime;
 import org.opensaml.common.SAMLObjectBuilder;
@@ -42,6 +43,8 @@ import org.w3c.dom.Element;
 
 import edu.internet2.middleware.shibboleth.common.profile.ProfileHandler;
 import edu.internet2.middleware.shibboleth.common.profile.ProfileHandlerManager;
+import edu.internet2.middleware.shibboleth.idp.profile.AbstractSAMLProfileHandler;
+import edu.internet2.middleware.shibboleth.idp.profile.MetadataIndex;
 
 /**
  * A system test that meant to simulate various types of SAML 2 attribute queries.
@@ -76,6 +79,47 @@ public class SAML2AttributeQueryTestCase extends BaseConf1TestCase {
         assertTrue(response.contains("urn:example.org:entitlement:entitlement1"));
     }
     
+    /**
+     * Tests that successive responses to a relying party are built from the same response plan and that the plan is
+     * dropped when the metadata of the relying party changes.
+     */
+    public void testResponsePlanReuse() throws Exception {
+        ProfileHandlerManager handlerManager = (ProfileHandlerManager) getApplicationContext().getBean(
+                "shibboleth.HandlerManager");
+
+        AbstractSAMLProfileHandler handler = null;
+        for (int i = 0; i < 2; i++) {
+            MockHttpServletRequest servletRequest = new MockHttpServletRequest();
+            servletRequest.setMethod("POST");
+            servletRequest.setPathInfo("/saml2/SOAP/AttributeQuery");
+            servletRequest.setContent(getSOAPMessage(buildAttributeQuery("urn:example.org:sp1")).getBytes());
+
+            MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+
+            handler = (AbstractSAMLProfileHandler) handlerManager.getProfileHandler(servletRequest);
+            if (i == 0) {
+                handler.clearResponsePlans();
+            }
+            handler.processRequest(new HttpServletRequestAdapter(servletRequest), new HttpServletResponseAdapter(
+                    servletResponse, false));
+
+            String response = servletResponse.getContentAsString();
+            assertTrue(response.contains("urn:oasis:names:tc:SAML:2.0:status:Success"));
+            assertTrue(response.contains(">urn:example.org:sp1</"));
+            assertEquals(1, handler.getResponsePlanCount());
+        }
+
+        MetadataIndex index = handler.getMetadataIndex();
+        for (MetadataIndex.EntityChangeListener listener : index.getEntityChangeListeners()) {
+            listener.entitiesChanged(index, Collections.singleton("urn:example.org:sp2"));
+        }
+        assertEquals(1, handler.getResponsePlanCount());
+        for (MetadataIndex.EntityChangeListener listener : index.getEntityChangeListeners()) {
+            listener.entitiesChanged(index, Collections.singleton("urn:example.org:sp1"));
+        }
+        assertEquals(0, handler.getResponsePlanCount());
+    }
+
     /** Tests that the attribute query handler correctly fails out if the profile is not configured. */
     public void testAuthenticationWithoutConfiguredQuery() throws Exception{
         AttributeQuery query = buildAttributeQuery("urn:example.org:BogusSP");
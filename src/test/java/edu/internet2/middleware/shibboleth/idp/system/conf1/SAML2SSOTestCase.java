@@ -24,8 +24,12 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.joda.time.DateTime;
 import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.saml2.core.AuthnContextClassRef;
 import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Extensions;
 import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameIDPolicy;
+import org.opensaml.saml2.core.RequestedAuthnContext;
 import org.opensaml.ws.transport.http.HTTPInTransport;
 import org.opensaml.ws.transport.http.HTTPOutTransport;
 import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
@@ -34,8 +38,11 @@ import org.opensaml.xml.io.Marshaller;
 import org.opensaml.xml.io.MarshallingException;
 import org.opensaml.xml.util.Base64;
 import org.opensaml.xml.util.XMLHelper;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockFilterConfig;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletConfig;
 import org.springframework.mock.web.MockServletContext;
 import org.w3c.dom.Element;
 
@@ -43,12 +50,19 @@ import edu.internet2.middleware.shibboleth.common.profile.ProfileException;
 import edu.internet2.middleware.shibboleth.common.profile.ProfileHandler;
 import edu.internet2.middleware.shibboleth.common.profile.ProfileHandlerManager;
 import edu.internet2.middleware.shibboleth.common.profile.provider.AbstractShibbolethProfileHandler;
+import edu.internet2.middleware.shibboleth.common.session.SessionManager;
+import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationEngine;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
+import edu.internet2.middleware.shibboleth.idp.authn.Saml2AuthnRequestSummary;
 import edu.internet2.middleware.shibboleth.idp.authn.Saml2LoginContext;
 import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.profile.IdPProfileHandlerManager;
 import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.IdPSessionFilter;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
 import edu.internet2.middleware.shibboleth.idp.session.impl.AuthenticationMethodInformationImpl;
 import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
+import edu.internet2.middleware.shibboleth.idp.util.codec.DefaultCodecRegistry;
 
 /**
  * 
@@ -112,6 +126,136 @@ public class SAML2SSOTestCase extends BaseConf1TestCase {
         assertTrue(response.contains("SAMLResponse"));
     }
 
+    /** Tests that the login context is read from the storage service once per request. */
+    public void testLoginContextRequestCache() throws Exception {
+        MockServletContext servletContext = new MockServletContext();
+        MockHttpServletRequest bindingRequest = buildServletRequest("urn:example.org:sp1");
+        MockHttpServletResponse bindingResponse = new MockHttpServletResponse();
+
+        ProfileHandlerManager handlerManager = (ProfileHandlerManager) getApplicationContext().getBean(
+                "shibboleth.HandlerManager");
+        AbstractShibbolethProfileHandler handler = (AbstractShibbolethProfileHandler) handlerManager
+                .getProfileHandler(bindingRequest);
+        HttpServletHelper.bindLoginContext(buildLoginContext("urn:example.org:sp1"), handler.getStorageService(),
+                servletContext, bindingRequest, bindingResponse);
+
+        MockHttpServletRequest servletRequest = buildServletRequest("urn:example.org:sp1");
+        servletRequest.setCookies(bindingResponse.getCookies());
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+
+        LoginContext loginContext = HttpServletHelper.getLoginContext(handler.getStorageService(), servletContext,
+                servletRequest);
+        assertNotNull(loginContext);
+        assertSame(loginContext, HttpServletHelper.getLoginContext(handler.getStorageService(), servletContext,
+                servletRequest));
+        assertSame(loginContext, HttpServletHelper.getLoginContext(servletRequest));
+        assertEquals(1, HttpServletHelper.getLoginContextStorageCalls(servletRequest));
+
+        assertNotNull(HttpServletHelper.unbindLoginContext(handler.getStorageService(), servletContext,
+                servletRequest, servletResponse));
+        assertEquals(2, HttpServletHelper.getLoginContextStorageCalls(servletRequest));
+        assertNull(HttpServletHelper.getLoginContext(handler.getStorageService(), servletContext, servletRequest));
+        assertEquals(2, HttpServletHelper.getLoginContextStorageCalls(servletRequest));
+    }
+
+    /** Tests that neither leg of the SSO request creates a Servlet container session. */
+    public void testNoContainerSession() throws Exception {
+        MockServletContext servletContext = new MockServletContext();
+        servletContext.setAttribute(HttpServletHelper.DEFAULT_SESSION_MNGR_SID, getApplicationContext().getBean(
+                HttpServletHelper.DEFAULT_SESSION_MNGR_SID));
+        IdPSessionFilter sessionFilter = new IdPSessionFilter();
+        sessionFilter.init(new MockFilterConfig(servletContext));
+
+        IdPProfileHandlerManager handlerManager = (IdPProfileHandlerManager) getApplicationContext().getBean(
+                "shibboleth.HandlerManager");
+        handlerManager.setServletContext(servletContext);
+
+        // first leg
+        MockHttpServletRequest servletRequest = buildServletRequest("urn:example.org:sp1");
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+        sessionFilter.doFilter(servletRequest, servletResponse, new MockFilterChain());
+        AbstractShibbolethProfileHandler handler = (AbstractShibbolethProfileHandler) handlerManager
+                .getProfileHandler(servletRequest);
+        handler.processRequest(new HttpServletRequestAdapter(servletRequest), new HttpServletResponseAdapter(
+                servletResponse, false));
+        assertTrue(servletResponse.getRedirectedUrl().endsWith("/AuthnEngine"));
+        assertNull(servletRequest.getSession(false));
+
+        // second leg
+        servletRequest = buildServletRequest("urn:example.org:sp1");
+        servletResponse = new MockHttpServletResponse();
+        HttpServletHelper.bindLoginContext(buildLoginContext("urn:example.org:sp1"), handler.getStorageService(),
+                servletContext, servletRequest, servletResponse);
+        servletRequest.setCookies(servletResponse.getCookies());
+        servletResponse = new MockHttpServletResponse();
+        sessionFilter.doFilter(servletRequest, servletResponse, new MockFilterChain());
+        handler.processRequest(new HttpServletRequestAdapter(servletRequest), new HttpServletResponseAdapter(
+                servletResponse, false));
+        assertTrue(servletResponse.getContentAsString().contains("SAMLResponse"));
+        assertNull(servletRequest.getSession(false));
+    }
+
+    /**
+     * Tests that a request the user's existing session satisfies is completed by the profile handler without a
+     * redirect to the authentication engine, while forced and passive requests are still sent to the engine.
+     */
+    public void testAuthenticationFromExistingSession() throws Exception {
+        MockServletContext servletContext = new MockServletContext();
+        SessionManager<Session> sessionManager = (SessionManager<Session>) getApplicationContext().getBean(
+                HttpServletHelper.DEFAULT_SESSION_MNGR_SID);
+        servletContext.setAttribute(HttpServletHelper.DEFAULT_SESSION_MNGR_SID, sessionManager);
+        IdPProfileHandlerManager handlerManager = (IdPProfileHandlerManager) getApplicationContext().getBean(
+                HttpServletHelper.DEFAULT_PROFILE_HANDLER_MNGR_SID);
+        servletContext.setAttribute(HttpServletHelper.DEFAULT_PROFILE_HANDLER_MNGR_SID, handlerManager);
+        handlerManager.setServletContext(servletContext);
+
+        new AuthenticationEngine().init(new MockServletConfig(servletContext));
+        assertNotNull(HttpServletHelper.getAuthenticationProcessor(servletContext));
+
+        String method = "urn:oasis:names:tc:SAML:2.0:ac:classes:unspecified";
+        Principal principal = new UsernamePrincipal("test");
+        Subject subject = new Subject();
+        subject.getPrincipals().add(principal);
+        Session idpSession = sessionManager.createSession();
+        idpSession.setSubject(subject);
+        idpSession.getAuthenticationMethods().put(method,
+                new AuthenticationMethodInformationImpl(subject, principal, method, new DateTime(), 3600000));
+
+        MockHttpServletRequest servletRequest = buildServletRequest("urn:example.org:sp1");
+        servletRequest.setAttribute(Session.HTTP_SESSION_BINDING_ATTRIBUTE, idpSession);
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+        AbstractShibbolethProfileHandler handler = (AbstractShibbolethProfileHandler) handlerManager
+                .getProfileHandler(servletRequest);
+        handler.processRequest(new HttpServletRequestAdapter(servletRequest), new HttpServletResponseAdapter(
+                servletResponse, false));
+        assertNull(servletResponse.getRedirectedUrl());
+        assertTrue(servletResponse.getContentAsString().contains("SAMLResponse"));
+        assertEquals(0, servletResponse.getCookies().length);
+        assertNotNull(idpSession.getServicesInformation().get("urn:example.org:sp1"));
+
+        AuthnRequest forcedRequest = buildAuthnRequest("urn:example.org:sp1");
+        forcedRequest.setForceAuthn(true);
+        AuthnRequest passiveRequest = buildAuthnRequest("urn:example.org:sp1");
+        passiveRequest.setIsPassive(true);
+        for (AuthnRequest authnRequest : new AuthnRequest[] { forcedRequest, passiveRequest, }) {
+            servletRequest = buildServletRequestFor(authnRequest);
+            servletRequest.setAttribute(Session.HTTP_SESSION_BINDING_ATTRIBUTE, idpSession);
+            servletResponse = new MockHttpServletResponse();
+            handler.processRequest(new HttpServletRequestAdapter(servletRequest), new HttpServletResponseAdapter(
+                    servletResponse, false));
+            assertTrue(servletResponse.getRedirectedUrl().endsWith("/AuthnEngine"));
+
+            MockHttpServletRequest engineRequest = new MockHttpServletRequest();
+            engineRequest.setCookies(servletResponse.getCookies());
+            LoginContext loginContext = HttpServletHelper.getLoginContext(handler.getStorageService(),
+                    servletContext, engineRequest);
+            assertNotNull(loginContext);
+            assertFalse(loginContext.getAuthenticationAttempted());
+            assertEquals(authnRequest == forcedRequest, loginContext.isForceAuthRequired());
+            assertEquals(authnRequest == passiveRequest, loginContext.isPassiveAuthRequired());
+        }
+    }
+
     /** Tests that the handler correctly fails out if the SSO profile is not configured. */
     public void testAuthenticationWithoutConfiguredSSO() throws Exception{
         MockHttpServletRequest servletRequest = buildServletRequest("urn:example.org:BogusSP");
@@ -135,7 +279,10 @@ public class SAML2SSOTestCase extends BaseConf1TestCase {
     }
 
     protected MockHttpServletRequest buildServletRequest(String relyingPartyId) throws Exception{
-        AuthnRequest authnRequest = buildAuthnRequest(relyingPartyId);
+        return buildServletRequestFor(buildAuthnRequest(relyingPartyId));
+    }
+
+    protected MockHttpServletRequest buildServletRequestFor(AuthnRequest authnRequest) throws Exception {
         String authnRequestString = getSamlRequestString(authnRequest);
         
         MockHttpServletRequest servletRequest = new MockHttpServletRequest();
@@ -146,6 +293,69 @@ public class SAML2SSOTestCase extends BaseConf1TestCase {
         return servletRequest;
     }
 
+    /**
+     * Tests that a login context keeps a summary of the authentication request from which the request is rebuilt
+     * without parsing, and that both survive encoding.
+     */
+    public void testAuthenticationRequestSummary() throws Exception {
+        AuthnRequest request = buildAuthnRequest("urn:example.org:sp1");
+        request.setAssertionConsumerServiceIndex(2);
+        request.setProtocolBinding("urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST");
+
+        SAMLObjectBuilder<NameIDPolicy> policyBuilder = (SAMLObjectBuilder<NameIDPolicy>) builderFactory
+                .getBuilder(NameIDPolicy.DEFAULT_ELEMENT_NAME);
+        NameIDPolicy policy = policyBuilder.buildObject();
+        policy.setFormat("urn:oasis:names:tc:SAML:2.0:nameid-format:transient");
+        policy.setAllowCreate(true);
+        request.setNameIDPolicy(policy);
+
+        SAMLObjectBuilder<RequestedAuthnContext> contextBuilder =
+                (SAMLObjectBuilder<RequestedAuthnContext>) builderFactory
+                        .getBuilder(RequestedAuthnContext.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<AuthnContextClassRef> classRefBuilder =
+                (SAMLObjectBuilder<AuthnContextClassRef>) builderFactory
+                        .getBuilder(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+        RequestedAuthnContext requestedContext = contextBuilder.buildObject();
+        AuthnContextClassRef classRef = classRefBuilder.buildObject();
+        classRef.setAuthnContextClassRef("urn:oasis:names:tc:SAML:2.0:ac:classes:Password");
+        requestedContext.getAuthnContextClassRefs().add(classRef);
+        request.setRequestedAuthnContext(requestedContext);
+
+        Saml2LoginContext loginContext = new Saml2LoginContext("urn:example.org:sp1", "state", request);
+        Saml2LoginContext decoded = new DefaultCodecRegistry().decode(new DefaultCodecRegistry().encode(loginContext),
+                Saml2LoginContext.class);
+
+        for (Saml2LoginContext context : new Saml2LoginContext[] { loginContext, decoded, }) {
+            Saml2AuthnRequestSummary summary = context.getAuthenticationRequestSummary();
+            assertTrue(summary.isComplete());
+            assertEquals("1", summary.getID());
+            assertEquals(2, summary.getAssertionConsumerServiceIndex().intValue());
+
+            AuthnRequest rebuilt = context.getResponseAuthenticationRequest();
+            assertEquals("1", rebuilt.getID());
+            assertEquals("urn:example.org:sp1", rebuilt.getIssuer().getValue());
+            assertEquals(request.getIssueInstant().getMillis(), rebuilt.getIssueInstant().getMillis());
+            assertEquals("urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST", rebuilt.getProtocolBinding());
+            assertEquals("urn:oasis:names:tc:SAML:2.0:nameid-format:transient", rebuilt.getNameIDPolicy().getFormat());
+            assertTrue(rebuilt.getNameIDPolicy().getAllowCreate());
+            assertEquals("urn:oasis:names:tc:SAML:2.0:ac:classes:Password", rebuilt.getRequestedAuthnContext()
+                    .getAuthnContextClassRefs().get(0).getAuthnContextClassRef());
+            assertNull(rebuilt.getScoping());
+
+            assertEquals("state", context.getRelayState());
+            assertEquals("1", context.getAuthenticiationRequestXmlObject().getID());
+            assertTrue(context.getAuthenticationRequest().contains("urn:oasis:names:tc:SAML:2.0:ac:classes:Password"));
+        }
+
+        // content the summary does not hold is recovered by unmarshalling the serialized request
+        request = buildAuthnRequest("urn:example.org:sp1");
+        request.setExtensions((Extensions) builderFactory.getBuilder(Extensions.DEFAULT_ELEMENT_NAME).buildObject(
+                Extensions.DEFAULT_ELEMENT_NAME));
+        loginContext = new Saml2LoginContext("urn:example.org:sp1", null, request);
+        assertFalse(loginContext.getAuthenticationRequestSummary().isComplete());
+        assertNotNull(loginContext.getResponseAuthenticationRequest().getExtensions());
+    }
+
     protected Saml2LoginContext buildLoginContext(String relyingPartyId) throws Exception{
         Principal principal = new UsernamePrincipal("test");
 
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.opensaml.util.storage.MapBasedStorageService;
+
+/** Tests of {@link FileBackedStorageService}. */
+public class FileBackedStorageServiceTest extends TestCase {
+
+    /** Directory holding the journals and snapshots. */
+    private File directory;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("journal", "");
+        directory.delete();
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Tests that persisted partitions survive a restart and others do not.
+     * 
+     * @throws Exception thrown if the storage service can not be written or read
+     */
+    public void testRestart() throws Exception {
+        FileBackedStorageService<String> storageService =
+                newStorageService(new MapBasedStorageService<String, String>());
+        storageService.setPersistedPartitions(Arrays.asList("session", "loginContexts"));
+        for (int i = 0; i < 100; i++) {
+            storageService.put("session", "key" + i, "value" + i);
+        }
+        for (int i = 0; i < 50; i++) {
+            storageService.remove("session", "key" + i);
+        }
+        storageService.put("loginContexts", "key", "context");
+        storageService.put("replayCache", "key", "message");
+        storageService.flush();
+        storageService.destroy();
+
+        MapBasedStorageService<String, String> store = new MapBasedStorageService<String, String>();
+        newStorageService(store).destroy();
+        assertNull(store.get("session", "key0"));
+        assertEquals("value50", store.get("session", "key50"));
+        assertEquals("value99", store.get("session", "key99"));
+        assertEquals("context", store.get("loginContexts", "key"));
+        assertNull(store.get("replayCache", "key"));
+    }
+
+    /**
+     * Tests that a record torn by a crash is dropped without losing the records before it.
+     * 
+     * @throws Exception thrown if the storage service can not be written or read
+     */
+    public void testTornRecord() throws Exception {
+        FileBackedStorageService<String> storageService =
+                newStorageService(new MapBasedStorageService<String, String>());
+        storageService.put("session", "first", "1");
+        storageService.put("session", "second", "2");
+        storageService.flush();
+        storageService.destroy();
+
+        RandomAccessFile journal = new RandomAccessFile(new File(directory, "journal-1.log"), "rw");
+        journal.setLength(journal.length() - 2);
+        journal.close();
+
+        MapBasedStorageService<String, String> store = new MapBasedStorageService<String, String>();
+        newStorageService(store).destroy();
+        assertEquals("1", store.get("session", "first"));
+        assertNull(store.get("session", "second"));
+    }
+
+    /**
+     * Tests that conditional updates, values changed in place and changes made while the queue is full are persisted.
+     * 
+     * @throws Exception thrown if the storage service can not be written or read
+     */
+    public void testQueuedKeys() throws Exception {
+        MapBasedStorageService<String, String> memory = new MapBasedStorageService<String, String>();
+        FileBackedStorageService<String> storageService = new FileBackedStorageService<String>(memory, directory
+                .getAbsolutePath(), 2);
+        storageService.initialize();
+        for (int i = 0; i < 1000; i++) {
+            storageService.put("session", "key" + i, "value" + i);
+        }
+        assertEquals("value0", storageService.putIfAbsent("session", "key0", "other"));
+        assertNull(storageService.putIfAbsent("session", "absent", "stored"));
+        assertFalse(storageService.remove("session", "key1", "other"));
+        assertTrue(storageService.remove("session", "key2", storageService.get("session", "key2")));
+        memory.put("session", "key3", "changed");
+        storageService.update("session", "key3");
+        storageService.flush();
+        assertTrue(storageService.getPendingRecords() <= 2);
+        storageService.destroy();
+
+        MapBasedStorageService<String, String> store = new MapBasedStorageService<String, String>();
+        newStorageService(store).destroy();
+        assertEquals("value0", store.get("session", "key0"));
+        assertEquals("stored", store.get("session", "absent"));
+        assertEquals("value1", store.get("session", "key1"));
+        assertNull(store.get("session", "key2"));
+        assertEquals("changed", store.get("session", "key3"));
+        assertEquals("value999", store.get("session", "key999"));
+    }
+
+    /**
+     * Creates and initializes a storage service writing to the test directory.
+     * 
+     * @param store store holding the entries in memory
+     * 
+     * @return the storage service
+     * 
+     * @throws IOException thrown if the storage service can not be initialized
+     */
+    private FileBackedStorageService<String> newStorageService(MapBasedStorageService<String, String> store)
+            throws IOException {
+        FileBackedStorageService<String> storageService = new FileBackedStorageService<String>(store, directory
+                .getAbsolutePath());
+        storageService.initialize();
+        return storageService;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import junit.framework.TestCase;
+
+import org.opensaml.util.storage.MapBasedStorageService;
+import org.opensaml.util.storage.StorageService;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContextEntry;
+
+/** Tests of the per request memoization of login contexts by {@link HttpServletHelper}. */
+public class HttpServletHelperTest extends TestCase {
+
+    /** Storage service holding the login contexts. */
+    private StorageService<String, LoginContextEntry> storageService;
+
+    /** Servlet context of the requests. */
+    private MockServletContext servletContext;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        storageService = new MapBasedStorageService<String, LoginContextEntry>();
+        servletContext = new MockServletContext();
+    }
+
+    /** Tests that the absence of a login context is remembered for the rest of the request. */
+    public void testCachedAbsence() {
+        MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+        assertNull(HttpServletHelper.getLoginContext(storageService, servletContext, httpRequest));
+        assertEquals(0, HttpServletHelper.getLoginContextStorageCalls(httpRequest));
+
+        httpRequest = buildRequest(bindLoginContext(new LoginContext()));
+        storageService.remove(HttpServletHelper.DEFAULT_LOGIN_CTX_PARITION, httpRequest.getCookies()[0].getValue());
+        assertNull(HttpServletHelper.getLoginContext(storageService, servletContext, httpRequest));
+        assertEquals(1, HttpServletHelper.getLoginContextStorageCalls(httpRequest));
+
+        storageService.put(HttpServletHelper.DEFAULT_LOGIN_CTX_PARITION, httpRequest.getCookies()[0].getValue(),
+                new LoginContextEntry(new LoginContext(), 60000));
+        assertNull(HttpServletHelper.getLoginContext(storageService, servletContext, httpRequest));
+        assertEquals(1, HttpServletHelper.getLoginContextStorageCalls(httpRequest));
+    }
+
+    /**
+     * Tests that the login context looked up before a forward is returned after it, and that binding and unbinding a
+     * context after the forward change what the original request returns, all without further storage calls.
+     */
+    public void testRebindAndUnbindAcrossForward() {
+        LoginContext loginContext = new LoginContext();
+        MockHttpServletRequest httpRequest = buildRequest(bindLoginContext(loginContext));
+        assertSame(loginContext, HttpServletHelper.getLoginContext(storageService, servletContext, httpRequest));
+        assertEquals(1, HttpServletHelper.getLoginContextStorageCalls(httpRequest));
+
+        HttpServletRequest forwardedRequest = new HttpServletRequestWrapper(httpRequest);
+        assertSame(loginContext, HttpServletHelper.getLoginContext(storageService, servletContext,
+                forwardedRequest));
+        assertSame(loginContext, HttpServletHelper.getLoginContext(forwardedRequest));
+        assertEquals(1, HttpServletHelper.getLoginContextStorageCalls(forwardedRequest));
+
+        LoginContext reboundContext = new LoginContext();
+        HttpServletHelper.bindLoginContext(reboundContext, storageService, servletContext, forwardedRequest,
+                new MockHttpServletResponse());
+        int calls = HttpServletHelper.getLoginContextStorageCalls(httpRequest);
+        assertTrue(calls > 1);
+        assertSame(reboundContext, HttpServletHelper.getLoginContext(storageService, servletContext, httpRequest));
+        assertEquals(calls, HttpServletHelper.getLoginContextStorageCalls(httpRequest));
+
+        assertNotNull(HttpServletHelper.unbindLoginContext(storageService, servletContext, forwardedRequest,
+                new MockHttpServletResponse()));
+        assertEquals(calls + 1, HttpServletHelper.getLoginContextStorageCalls(httpRequest));
+        assertNull(HttpServletHelper.getLoginContext(storageService, servletContext, httpRequest));
+        assertNull(HttpServletHelper.getLoginContext(storageService, servletContext, forwardedRequest));
+        assertEquals(calls + 1, HttpServletHelper.getLoginContextStorageCalls(httpRequest));
+    }
+
+    /**
+     * Binds a login context on a request of its own.
+     * 
+     * @param loginContext the login context
+     * 
+     * @return the response carrying the login context cookie
+     */
+    private MockHttpServletResponse bindLoginContext(LoginContext loginContext) {
+        MockHttpServletRequest bindingRequest = new MockHttpServletRequest();
+        MockHttpServletResponse bindingResponse = new MockHttpServletResponse();
+        HttpServletHelper.bindLoginContext(loginContext, storageService, servletContext, bindingRequest,
+                bindingResponse);
+        assertEquals(2, HttpServletHelper.getLoginContextStorageCalls(bindingRequest));
+        return bindingResponse;
+    }
+
+    /**
+     * Builds a request presenting the cookies set by a response.
+     * 
+     * @param response the response
+     * 
+     * @return the request
+     */
+    private MockHttpServletRequest buildRequest(MockHttpServletResponse response) {
+        MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+        httpRequest.setCookies(response.getCookies());
+        return httpRequest;
+    }
+}
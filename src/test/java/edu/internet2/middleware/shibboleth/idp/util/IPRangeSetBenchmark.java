@@ -0,0 +1,124 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import edu.internet2.middleware.shibboleth.idp.BenchmarkSuite;
+
+/**
+ * Benchmark comparing address lookups in an {@link IPRangeSet} with a scan of each of its {@link IPRange}s.
+ * 
+ * Run it through {@link BenchmarkSuite}.
+ */
+public class IPRangeSetBenchmark extends TestCase {
+
+    /** Number of configured ranges. */
+    private static final int RANGES = 10000;
+
+    /** Number of distinct addresses looked up. */
+    private static final int ADDRESSES = 2000;
+
+    /** Number of lookups performed per measurement. */
+    private static final int LOOKUPS = 200000;
+
+    /** Compares the cost of a lookup through both structures. */
+    public void testLookup() {
+        Random random = new Random(42);
+        List<IPRange> ranges = new ArrayList<IPRange>();
+        for (int i = 0; i < RANGES; i++) {
+            ranges.add(IPRangeSetTest.randomRange(random));
+        }
+        IPRangeSet set = new IPRangeSet(ranges);
+
+        String[] addresses = new String[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++) {
+            if (random.nextBoolean()) {
+                addresses[i] = random.nextInt(32) + "." + random.nextInt(256) + "." + random.nextInt(256) + "."
+                        + random.nextInt(256);
+            } else {
+                addresses[i] = Integer.toHexString(random.nextInt(0x2000)) + ":"
+                        + Integer.toHexString(random.nextInt(0x10000)) + "::"
+                        + Integer.toHexString(random.nextInt(0x10000));
+            }
+        }
+
+        scan(ranges, addresses, LOOKUPS / 100);
+        lookup(set, addresses, LOOKUPS);
+
+        long start = System.nanoTime();
+        int scanned = scan(ranges, addresses, LOOKUPS / 100);
+        long scanCost = (System.nanoTime() - start) / (LOOKUPS / 100);
+
+        start = System.nanoTime();
+        int found = lookup(set, addresses, LOOKUPS);
+        long lookupCost = (System.nanoTime() - start) / LOOKUPS;
+
+        BenchmarkSuite.report("%,d ranges merged into %,d intervals", set.getRangeCount(), set
+                .getIntervalCount());
+        BenchmarkSuite.report("linear range scan: %,8d ns/lookup", scanCost);
+        BenchmarkSuite.report("compiled range set: %,7d ns/lookup", lookupCost);
+        assertEquals(scanned * 100, found);
+    }
+
+    /**
+     * Looks up addresses by checking each range in turn.
+     * 
+     * @param ranges the ranges
+     * @param addresses the addresses
+     * @param lookups number of lookups to perform
+     * 
+     * @return number of addresses found in a range
+     */
+    private int scan(List<IPRange> ranges, String[] addresses, int lookups) {
+        int found = 0;
+        for (int i = 0; i < lookups; i++) {
+            byte[] address = IPRange.parseAddress(addresses[i % addresses.length]);
+            for (IPRange range : ranges) {
+                if (range.contains(address)) {
+                    found++;
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Looks up addresses in the range set.
+     * 
+     * @param set the range set
+     * @param addresses the addresses
+     * @param lookups number of lookups to perform
+     * 
+     * @return number of addresses found in the set
+     */
+    private int lookup(IPRangeSet set, String[] addresses, int lookups) {
+        int found = 0;
+        for (int i = 0; i < lookups; i++) {
+            if (set.contains(addresses[i % addresses.length])) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/** Tests of {@link IPRange} and {@link IPRangeSet}. */
+public class IPRangeSetTest extends TestCase {
+
+    /** Tests parsing of textual addresses. */
+    public void testParseAddress() {
+        assertTrue(Arrays.equals(new byte[] { 10, 1, 2, 3 }, IPRange.parseAddress("10.1.2.3")));
+        assertTrue(Arrays.equals(new byte[] { (byte) 192, (byte) 168, 0, 1 },
+                IPRange.parseAddress("::ffff:192.168.0.1")));
+
+        byte[] loopback = new byte[16];
+        loopback[15] = 1;
+        assertTrue(Arrays.equals(loopback, IPRange.parseAddress("::1")));
+        assertTrue(Arrays.equals(loopback, IPRange.parseAddress("[0:0:0:0:0:0:0:1]")));
+        assertTrue(Arrays.equals(new byte[16], IPRange.parseAddress("::")));
+
+        byte[] address = IPRange.parseAddress("2001:db8::8:800:200c:417a%eth0");
+        assertEquals(16, address.length);
+        assertEquals(0x20, address[0] & 0xff);
+        assertEquals(0x0d, address[2] & 0xff);
+        assertEquals(0x08, address[9] & 0xff);
+        assertEquals(0x7a, address[15] & 0xff);
+
+        address = IPRange.parseAddress("64:ff9b::10.0.0.1");
+        assertEquals(16, address.length);
+        assertEquals(10, address[12]);
+        assertEquals(1, address[15]);
+
+        String[] invalid = { null, "", "localhost", "10.0.0", "10.0.0.256", "10.0.0.1.2", "1..2.3", "1:2:3:4:5:6:7",
+                "1::2::3", "1:2:3:4:5:6:7:8:9", "12345::", ":1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8::", "::1:", };
+        for (String text : invalid) {
+            try {
+                IPRange.parseAddress(text);
+                fail("Parsed invalid address " + text);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /** Tests that ranges mask their network address. */
+    public void testRange() {
+        IPRange range = IPRange.parseCIDRBlock("192.168.1.77/24");
+        assertEquals(24, range.getPrefixLength());
+        assertTrue(Arrays.equals(IPRange.parseAddress("192.168.1.0"), range.getNetworkAddress()));
+        assertTrue(Arrays.equals(IPRange.parseAddress("192.168.1.255"), range.getLastAddress()));
+        assertTrue(range.contains(IPRange.parseAddress("192.168.1.200")));
+        assertFalse(range.contains(IPRange.parseAddress("192.168.2.1")));
+        assertFalse(range.contains(IPRange.parseAddress("::1")));
+
+        range = IPRange.parseCIDRBlock("10.0.0.0/0");
+        assertTrue(range.contains(IPRange.parseAddress("255.255.255.255")));
+
+        range = IPRange.parseCIDRBlock("2001:db8::/33");
+        assertTrue(range.contains(IPRange.parseAddress("2001:db8:7fff::1")));
+        assertFalse(range.contains(IPRange.parseAddress("2001:db8:8000::")));
+
+        String[] invalid = { "10.0.0.0", "10.0.0.0/33", "::/129", "10.0.0.0/-1", "10.0.0.0/a", "host.example.org/8", };
+        for (String block : invalid) {
+            try {
+                IPRange.parseCIDRBlock(block);
+                fail("Parsed invalid CIDR block " + block);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /** Tests lookups in a set of ranges. */
+    public void testSet() {
+        IPRangeSet set = IPRangeSet.parseCIDRBlocks(" 127.0.0.1/32  ::1/128 10.0.0.0/9 10.128.0.0/9 10.0.0.0/24 "
+                + "fe80::/10 ::/128");
+        assertEquals(7, set.getRangeCount());
+        assertEquals(4, set.getIntervalCount());
+
+        assertTrue(set.contains("127.0.0.1"));
+        assertTrue(set.contains("::ffff:127.0.0.1"));
+        assertFalse(set.contains("127.0.0.2"));
+        assertTrue(set.contains("10.0.0.0"));
+        assertTrue(set.contains("10.255.255.255"));
+        assertFalse(set.contains("11.0.0.0"));
+        assertFalse(set.contains("9.255.255.255"));
+        assertTrue(set.contains("::1"));
+        assertTrue(set.contains("::"));
+        assertFalse(set.contains("::2"));
+        assertTrue(set.contains("fe80::1"));
+        assertTrue(set.contains("febf:ffff::"));
+        assertFalse(set.contains("fec0::"));
+        assertFalse(set.contains("not an address"));
+        assertFalse(set.contains((String) null));
+
+        assertTrue(IPRangeSet.parseCIDRBlocks(null).isEmpty());
+        assertTrue(IPRangeSet.parseCIDRBlocks("0.0.0.0/0").contains("255.255.255.255"));
+        assertTrue(IPRangeSet.parseCIDRBlocks("::/0").contains("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertEquals(1, IPRangeSet.parseCIDRBlocks("::/1 8000::/1").getIntervalCount());
+    }
+
+    /** Tests that a set gives the same answers as checking each of its ranges in turn. */
+    public void testEquivalence() {
+        Random random = new Random(42);
+        List<IPRange> ranges = new ArrayList<IPRange>();
+        for (int i = 0; i < 500; i++) {
+            ranges.add(randomRange(random));
+        }
+        IPRangeSet set = new IPRangeSet(ranges);
+
+        for (int i = 0; i < 20000; i++) {
+            byte[] address;
+            if (i % 2 == 0) {
+                // an address close to a range boundary
+                IPRange range = ranges.get(random.nextInt(ranges.size()));
+                address = random.nextBoolean() ? range.getNetworkAddress() : range.getLastAddress();
+                int last = address.length - 1;
+                address[last] = (byte) (address[last] + random.nextInt(3) - 1);
+            } else {
+                address = new byte[random.nextBoolean() ? 4 : 16];
+                random.nextBytes(address);
+                address[0] &= 0x1f;
+            }
+
+            boolean expected = false;
+            for (IPRange range : ranges) {
+                if (range.contains(address)) {
+                    expected = true;
+                    break;
+                }
+            }
+            assertEquals(expected, set.contains(address));
+        }
+    }
+
+    /**
+     * Creates a random range, within a limited part of the address space so that ranges overlap.
+     * 
+     * @param random source of randomness
+     * 
+     * @return the range
+     */
+    static IPRange randomRange(Random random) {
+        byte[] address = new byte[random.nextBoolean() ? 4 : 16];
+        random.nextBytes(address);
+        address[0] &= 0x1f;
+        int bits = address.length * 8;
+        return new IPRange(address, bits - random.nextInt(bits / 4));
+    }
+}
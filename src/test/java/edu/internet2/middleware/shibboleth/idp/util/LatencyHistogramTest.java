@@ -0,0 +1,86 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import junit.framework.TestCase;
+
+/** Tests of {@link LatencyHistogram}. */
+public class LatencyHistogramTest extends TestCase {
+
+    /** Tests the bounds of the buckets latencies are counted in. */
+    public void testBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(1);
+        histogram.record(2);
+        histogram.record(3);
+        histogram.record(4);
+        histogram.record(LatencyHistogram.MAX_BOUND);
+        histogram.record(LatencyHistogram.MAX_BOUND + 1);
+
+        long[] counts = histogram.getCounts();
+        assertEquals(18, counts.length);
+        assertEquals(2, counts[0]);
+        assertEquals(1, counts[1]);
+        assertEquals(2, counts[2]);
+        assertEquals(1, counts[16]);
+        assertEquals(1, counts[17]);
+        assertEquals(7, histogram.getCount());
+
+        assertEquals(1, LatencyHistogram.getUpperBound(0));
+        assertEquals(4, LatencyHistogram.getUpperBound(2));
+        assertEquals(LatencyHistogram.MAX_BOUND, LatencyHistogram.getUpperBound(16));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.getUpperBound(17));
+    }
+
+    /** Tests the percentiles and the mean of the recorded latencies. */
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMean());
+
+        for (int i = 0; i < 90; i++) {
+            histogram.record(1);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(100);
+        }
+        histogram.record(70000);
+
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(1, histogram.getPercentile(50));
+        assertEquals(1, histogram.getPercentile(90));
+        assertEquals(128, histogram.getPercentile(90.5));
+        assertEquals(128, histogram.getPercentile(99));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+        assertEquals((90 + 900 + 70000) / 100, histogram.getMean());
+
+        try {
+            histogram.getPercentile(100.5);
+            fail("Percentiles above 100 are invalid");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            histogram.getPercentile(-1);
+            fail("Negative percentiles are invalid");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
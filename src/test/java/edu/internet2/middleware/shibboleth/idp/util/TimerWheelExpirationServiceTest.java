@@ -0,0 +1,202 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.util.Timer;
+
+import junit.framework.TestCase;
+
+import org.opensaml.util.storage.MapBasedStorageService;
+
+/** Tests of {@link TimerWheelExpirationService}. */
+public class TimerWheelExpirationServiceTest extends TestCase {
+
+    /** Timer driving the wheel. */
+    private Timer timer;
+
+    /** Service being tested. */
+    private TimerWheelExpirationService expirationService;
+
+    /** Storage service whose entries are expired. */
+    private ExpiringStorageService<String, TestEntry> storageService;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        timer = new Timer(true);
+        expirationService = new TimerWheelExpirationService(timer, 10);
+        storageService = new ExpiringStorageService<String, TestEntry>(
+                new MapBasedStorageService<String, TestEntry>(), expirationService);
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        timer.cancel();
+        super.tearDown();
+    }
+
+    /** Tests that storing a key again replaces its schedule and that removing a key cancels it. */
+    public void testReplaceAndCancel() {
+        storageService.put("partition", "key", new TestEntry(60000));
+        storageService.put("partition", "key", new TestEntry(60000));
+        storageService.put("partition", "other", new TestEntry(60000));
+        assertEquals(2, expirationService.getScheduledEntries());
+
+        storageService.remove("partition", "key");
+        assertEquals(1, expirationService.getScheduledEntries());
+        storageService.remove("partition", "other");
+        assertEquals(0, expirationService.getScheduledEntries());
+        storageService.remove("partition", "missing");
+        assertEquals(0, expirationService.getScheduledEntries());
+    }
+
+    /**
+     * Tests that an entry stored again with a shorter lifetime expires when the new entry does, and only once.
+     * 
+     * @throws Exception thrown if the test is interrupted
+     */
+    public void testExpiration() throws Exception {
+        storageService.put("partition", "key", new TestEntry(60000));
+        TestEntry entry = new TestEntry(20);
+        storageService.put("partition", "key", entry);
+        TestEntry removed = new TestEntry(20);
+        storageService.put("partition", "removed", removed);
+        storageService.remove("partition", "removed");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (expirationService.getTotalExpired() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(storageService.get("partition", "key"));
+        assertEquals(1, entry.expirations);
+        assertEquals(0, removed.expirations);
+        assertEquals(1, expirationService.getTotalExpired());
+        assertEquals(0, expirationService.getScheduledEntries());
+    }
+
+    /**
+     * Tests that a key stored again between the expiration service reading its expired value and removing it keeps its
+     * new value.
+     * 
+     * @throws Exception thrown if the test is interrupted
+     */
+    public void testStoredAgainWhileExpiring() throws Exception {
+        RacingStorageService racingStore = new RacingStorageService();
+        ExpiringStorageService<String, TestEntry> racingService = new ExpiringStorageService<String, TestEntry>(
+                racingStore, expirationService);
+        TestEntry expiring = new TestEntry(20);
+        racingService.put("partition", "key", expiring);
+        TestEntry replacement = new TestEntry(60000);
+        racingStore.storeOnNextGet(racingService, replacement);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (racingStore.isArmed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertSame(replacement, racingService.get("partition", "key"));
+        assertEquals(0, expiring.expirations);
+        assertEquals(0, replacement.expirations);
+        assertEquals(0, expirationService.getTotalExpired());
+        assertEquals(1, expirationService.getScheduledEntries());
+    }
+
+    /** A storage service which, the next time a value is read, stores another value under its key before returning. */
+    private static class RacingStorageService extends MapBasedStorageService<String, TestEntry> implements
+            ConcurrentStorageService<String, TestEntry> {
+
+        /** Service through which the other value is stored. */
+        private volatile ExpiringStorageService<String, TestEntry> storeThrough;
+
+        /** Value stored on the next read, or null if none is. */
+        private volatile TestEntry nextValue;
+
+        /**
+         * Stores a value under the key read next, before the read returns.
+         * 
+         * @param service service through which the value is stored
+         * @param value the value
+         */
+        public void storeOnNextGet(ExpiringStorageService<String, TestEntry> service, TestEntry value) {
+            storeThrough = service;
+            nextValue = value;
+        }
+
+        /**
+         * Gets whether a value is still to be stored on the next read.
+         * 
+         * @return whether a value is still to be stored
+         */
+        public boolean isArmed() {
+            return nextValue != null;
+        }
+
+        /** {@inheritDoc} */
+        public synchronized TestEntry get(String partition, String key) {
+            TestEntry current = super.get(partition, key);
+            TestEntry value = nextValue;
+            if (value != null) {
+                nextValue = null;
+                storeThrough.put(partition, key, value);
+            }
+            return current;
+        }
+
+        /** {@inheritDoc} */
+        public synchronized TestEntry putIfAbsent(String partition, String key, TestEntry value) {
+            TestEntry current = super.get(partition, key);
+            if (current == null) {
+                super.put(partition, key, value);
+            }
+            return current;
+        }
+
+        /** {@inheritDoc} */
+        public synchronized boolean remove(String partition, String key, TestEntry value) {
+            if (super.get(partition, key) != value) {
+                return false;
+            }
+            super.remove(partition, key);
+            return true;
+        }
+    }
+
+    /** An entry counting how often it expired. */
+    private static class TestEntry extends AbstractExpiringEntry {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 1L;
+
+        /** Number of times the entry expired. */
+        private volatile int expirations;
+
+        /**
+         * Constructor.
+         * 
+         * @param lifetime lifetime of the entry, in milliseconds
+         */
+        public TestEntry(long lifetime) {
+            super(lifetime);
+        }
+
+        /** {@inheritDoc} */
+        public void onExpire() {
+            expirations++;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import junit.framework.TestCase;
+
+import edu.internet2.middleware.shibboleth.idp.BenchmarkSuite;
+
+/**
+ * Benchmark comparing the size and the encoding and decoding times of the {@link DefaultCodecRegistry} with those of
+ * Java serialization, for a session and a login context.
+ * 
+ * Run it through {@link BenchmarkSuite}.
+ */
+public class CodecBenchmark extends TestCase {
+
+    /** Number of timed iterations for each measurement. */
+    private static final int ITERATIONS = 20000;
+
+    /** Codec registry under test. */
+    private CodecRegistry registry = new DefaultCodecRegistry();
+
+    /**
+     * Compares both encodings of a session.
+     * 
+     * @throws Exception thrown if an object can not be encoded or decoded
+     */
+    public void testSession() throws Exception {
+        measure("session      ", CodecRegistryTest.buildSession());
+    }
+
+    /**
+     * Compares both encodings of a login context.
+     * 
+     * @throws Exception thrown if an object can not be encoded or decoded
+     */
+    public void testLoginContext() throws Exception {
+        measure("login context", CodecRegistryTest.buildLoginContext());
+    }
+
+    /**
+     * Reports the encoded size and the mean encoding and decoding times of an object in both encodings.
+     * 
+     * @param name name of the object in the report
+     * @param object the object
+     * 
+     * @throws Exception thrown if the object can not be encoded or decoded
+     */
+    private void measure(String name, Object object) throws Exception {
+        byte[] encoded = registry.encode(object);
+        byte[] serialized = serialize(object);
+
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            registry.decode(registry.encode(object));
+            deserialize(serialize(object));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            registry.encode(object);
+        }
+        long encodeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            registry.decode(encoded);
+        }
+        long decodeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            serialize(object);
+        }
+        long serializeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            deserialize(serialized);
+        }
+        long deserializeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        BenchmarkSuite.report("%s codec:         %,6d bytes, %,8d ns encode, %,8d ns decode", name,
+                encoded.length, encodeNanos, decodeNanos);
+        BenchmarkSuite.report("%s serialization: %,6d bytes, %,8d ns encode, %,8d ns decode", name,
+                serialized.length, serializeNanos, deserializeNanos);
+        assertTrue(encoded.length < serialized.length);
+    }
+
+    /**
+     * Serializes an object with Java serialization.
+     * 
+     * @param object the object
+     * 
+     * @return the serialized object
+     * 
+     * @throws IOException thrown if the object can not be serialized
+     */
+    private byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes an object with Java serialization.
+     * 
+     * @param serialized the serialized object
+     * 
+     * @return the object
+     * 
+     * @throws Exception thrown if the object can not be deserialized
+     */
+    private Object deserialize(byte[] serialized) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
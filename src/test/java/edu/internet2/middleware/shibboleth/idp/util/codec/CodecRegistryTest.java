@@ -0,0 +1,328 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util.codec;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+
+import edu.internet2.middleware.shibboleth.idp.authn.ShibbolethSSOLoginContext;
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AuthenticationMethodInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.ServiceInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionImpl;
+
+/** Tests of the binary codec format, including compatibility between codec versions. */
+public class CodecRegistryTest extends TestCase {
+
+    /** Password protected transport authentication method. */
+    private static final String PPT = "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport";
+
+    /** Tests that a session survives encoding and that objects it shares are still shared once decoded. */
+    public void testSessionRoundTrip() throws IOException {
+        SessionImpl session = buildSession();
+        CodecRegistry registry = new DefaultCodecRegistry();
+
+        SessionImpl decoded = registry.decode(registry.encode(session), SessionImpl.class);
+
+        assertEquals(session.getSessionID(), decoded.getSessionID());
+        assertTrue(Arrays.equals(session.getSessionSecret(), decoded.getSessionSecret()));
+        assertEquals(session.getInactivityTimeout(), decoded.getInactivityTimeout());
+        assertEquals(session.getLastActivityMillis(), decoded.getLastActivityMillis());
+        assertEquals("jdoe", decoded.getPrincipalName());
+
+        AuthenticationMethodInformation authnMethod = decoded.getAuthenticationMethods().get(PPT);
+        assertNotNull(authnMethod);
+        assertEquals(session.getAuthenticationMethods().get(PPT).getAuthenticationInstant(), authnMethod
+                .getAuthenticationInstant());
+        assertSame(decoded.getSubject(), authnMethod.getAuthenticationSubject());
+
+        ServiceInformation service = decoded.getServicesInformation().get("https://sp.example.org/shibboleth");
+        assertNotNull(service);
+        assertSame(authnMethod, service.getAuthenticationMethod());
+    }
+
+    /** Tests that a login context survives encoding. */
+    public void testLoginContextRoundTrip() throws IOException {
+        ShibbolethSSOLoginContext loginContext = buildLoginContext();
+        CodecRegistry registry = new DefaultCodecRegistry();
+
+        ShibbolethSSOLoginContext decoded = registry.decode(registry.encode(loginContext),
+                ShibbolethSSOLoginContext.class);
+
+        assertEquals(loginContext.getRelyingPartyId(), decoded.getRelyingPartyId());
+        assertEquals(loginContext.getProfileHandlerURL(), decoded.getProfileHandlerURL());
+        assertEquals(loginContext.getAuthenticationEngineURL(), decoded.getAuthenticationEngineURL());
+        assertEquals(loginContext.getSpAssertionConsumerService(), decoded.getSpAssertionConsumerService());
+        assertEquals(loginContext.getSpTarget(), decoded.getSpTarget());
+        assertEquals(loginContext.getRequestedAuthenticationMethods(), decoded.getRequestedAuthenticationMethods());
+        assertTrue(decoded.isForceAuthRequired());
+        assertFalse(decoded.isPassiveAuthRequired());
+        assertTrue(decoded.getAuthenticationAttempted());
+        assertTrue(decoded.isPrincipalAuthenticated());
+        assertEquals("jdoe", decoded.getPrincipalName());
+        assertEquals("value", decoded.getProperty("key"));
+    }
+
+    /** Tests that the format is more compact than Java serialization. */
+    public void testSmallerThanSerialization() throws IOException {
+        CodecRegistry registry = new DefaultCodecRegistry();
+        CodecRegistry serializingRegistry = new CodecRegistry();
+
+        SessionImpl session = buildSession();
+        assertTrue(registry.encode(session).length < serializingRegistry.encode(session).length);
+    }
+
+    /** Tests that data written by an older codec version is read by a newer one. */
+    public void testBackwardCompatibility() throws IOException {
+        CodecRegistry oldRegistry = new CodecRegistry();
+        oldRegistry.register(new SampleCodec(1));
+        CodecRegistry newRegistry = new CodecRegistry();
+        newRegistry.register(new SampleCodec(2));
+
+        Sample sample = new Sample("name", 42);
+        Sample decoded = newRegistry.decode(oldRegistry.encode(sample), Sample.class);
+
+        assertEquals("name", decoded.name);
+        assertEquals(0, decoded.count);
+    }
+
+    /** Tests that data written by a newer codec version is read by an older one, which skips the fields it lacks. */
+    public void testForwardCompatibility() throws IOException {
+        CodecRegistry oldRegistry = new CodecRegistry();
+        oldRegistry.register(new SampleCodec(1));
+        oldRegistry.register(new PairCodec());
+        CodecRegistry newRegistry = new CodecRegistry();
+        newRegistry.register(new SampleCodec(2));
+        newRegistry.register(new PairCodec());
+
+        Sample sample = new Sample("name", 42);
+        sample.peer = new Sample("peer", 7);
+        Sample last = new Sample("last", 1);
+        Pair decoded = oldRegistry.decode(newRegistry.encode(new Pair(sample, new Pair(sample.peer, last))),
+                Pair.class);
+
+        Sample first = (Sample) decoded.first;
+        assertEquals("name", first.name);
+        assertEquals(0, first.count);
+        assertNull(first.peer);
+
+        // the peer was skipped along with the newer fields, so the later reference to it can not be resolved
+        Pair second = (Pair) decoded.second;
+        assertNull(second.first);
+        assertEquals("last", ((Sample) second.second).name);
+    }
+
+    /** Tests that an object of a type unknown to the reader is skipped without disturbing the objects around it. */
+    public void testUnknownTypeIsSkipped() throws IOException {
+        CodecRegistry writer = new DefaultCodecRegistry();
+        writer.register(new SampleCodec(2));
+
+        ShibbolethSSOLoginContext loginContext = buildLoginContext();
+        loginContext.setProperty("sample", new Sample("name", 42));
+        ShibbolethSSOLoginContext decoded = new DefaultCodecRegistry().decode(writer.encode(loginContext),
+                ShibbolethSSOLoginContext.class);
+
+        assertNull(decoded.getProperty("sample"));
+        assertEquals("value", decoded.getProperty("key"));
+        assertEquals("jdoe", decoded.getPrincipalName());
+    }
+
+    /**
+     * Builds a session as it is after a user logged in to a service.
+     * 
+     * @return the session
+     */
+    static SessionImpl buildSession() {
+        SessionImpl session = new SessionImpl("0123456789abcdef0123456789abcdef", new byte[16], 1800000);
+        UsernamePrincipal principal = new UsernamePrincipal("jdoe");
+        Subject subject = new Subject();
+        subject.getPrincipals().add(principal);
+        session.setSubject(subject);
+
+        AuthenticationMethodInformation authnMethod = new AuthenticationMethodInformationImpl(subject, principal, PPT,
+                new DateTime(), 28800000);
+        session.getAuthenticationMethods().put(PPT, authnMethod);
+        ServiceInformationImpl service = new ServiceInformationImpl("https://sp.example.org/shibboleth",
+                new DateTime(), authnMethod);
+        session.getServicesInformation().put(service.getEntityID(), service);
+        return session;
+    }
+
+    /**
+     * Builds a login context as it is after the user has been authenticated.
+     * 
+     * @return the login context
+     */
+    static ShibbolethSSOLoginContext buildLoginContext() {
+        ShibbolethSSOLoginContext loginContext = new ShibbolethSSOLoginContext();
+        loginContext.setRelyingParty("https://sp.example.org/shibboleth");
+        loginContext.setProfileHandlerURL("https://idp.example.org/idp/profile/Shibboleth/SSO");
+        loginContext.setAuthenticationEngineURL("/AuthnEngine");
+        loginContext.setSpAssertionConsumerService("https://sp.example.org/Shibboleth.sso/SAML/POST");
+        loginContext.setSpTarget("https://sp.example.org/secure/");
+        loginContext.setForceAuthRequired(true);
+        loginContext.getRequestedAuthenticationMethods().add(PPT);
+        loginContext.setAuthenticationAttempted();
+        loginContext.setPrincipalAuthenticated(true);
+        loginContext.setProperty("key", "value");
+
+        UsernamePrincipal principal = new UsernamePrincipal("jdoe");
+        Subject subject = new Subject();
+        subject.getPrincipals().add(principal);
+        loginContext.setAuthenticationMethodInformation(new AuthenticationMethodInformationImpl(subject, principal,
+                PPT, new DateTime(), 28800000));
+        return loginContext;
+    }
+
+    /** Object encoded by the sample codec. */
+    private static class Sample implements Serializable {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 5135270307219040327L;
+
+        /** Name, written by every codec version. */
+        private String name;
+
+        /** Count, added in version 2. */
+        private int count;
+
+        /** Peer, added in version 2. */
+        private Sample peer;
+
+        /**
+         * Constructor.
+         * 
+         * @param sampleName name
+         * @param sampleCount count
+         */
+        public Sample(String sampleName, int sampleCount) {
+            name = sampleName;
+            count = sampleCount;
+        }
+    }
+
+    /** Pair of objects. */
+    private static class Pair {
+
+        /** First object. */
+        private Object first;
+
+        /** Second object. */
+        private Object second;
+
+        /**
+         * Constructor.
+         * 
+         * @param firstObject first object
+         * @param secondObject second object
+         */
+        public Pair(Object firstObject, Object secondObject) {
+            first = firstObject;
+            second = secondObject;
+        }
+    }
+
+    /** Codec of {@link Pair}s. */
+    private static class PairCodec implements ObjectCodec<Pair> {
+
+        /** {@inheritDoc} */
+        public int getTypeId() {
+            return 1001;
+        }
+
+        /** {@inheritDoc} */
+        public Class<Pair> getType() {
+            return Pair.class;
+        }
+
+        /** {@inheritDoc} */
+        public int getVersion() {
+            return 1;
+        }
+
+        /** {@inheritDoc} */
+        public void encode(Pair pair, CodecOutput out) throws IOException {
+            out.writeObject(pair.first);
+            out.writeObject(pair.second);
+        }
+
+        /** {@inheritDoc} */
+        public Pair decode(CodecInput in, int encodedVersion) throws IOException {
+            return new Pair(in.readObject(), in.readObject());
+        }
+    }
+
+    /** Codec of {@link Sample}s, which can act as either of two versions. */
+    private static class SampleCodec implements ObjectCodec<Sample> {
+
+        /** Version the codec acts as. */
+        private final int version;
+
+        /**
+         * Constructor.
+         * 
+         * @param codecVersion version the codec acts as
+         */
+        public SampleCodec(int codecVersion) {
+            version = codecVersion;
+        }
+
+        /** {@inheritDoc} */
+        public int getTypeId() {
+            return 1000;
+        }
+
+        /** {@inheritDoc} */
+        public Class<Sample> getType() {
+            return Sample.class;
+        }
+
+        /** {@inheritDoc} */
+        public int getVersion() {
+            return version;
+        }
+
+        /** {@inheritDoc} */
+        public void encode(Sample sample, CodecOutput out) throws IOException {
+            out.writeDictionaryString(sample.name);
+            if (version >= 2) {
+                out.writeVarInt(sample.count);
+                out.writeObject(sample.peer);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public Sample decode(CodecInput in, int encodedVersion) throws IOException {
+            Sample sample = new Sample(in.readDictionaryString(), 0);
+            if (version >= 2 && encodedVersion >= 2) {
+                sample.count = in.readVarInt();
+                sample.peer = in.readObject(Sample.class);
+            }
+            return sample;
+        }
+    }
+}